@@ -0,0 +1,389 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.bzip2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.at4j.support.io.LittleEndianBitInputStream;
+import org.entityfs.ReadableFile;
+import org.entityfs.WritableFile;
+import org.entityfs.support.exception.WrappedIOException;
+
+/**
+ * This is an index over the blocks of a bzip2 compressed file. Each bzip2 block
+ * is compressed independently of the other blocks, so decompression can start
+ * at any block. The index records where each block starts in the compressed
+ * data (as a bit offset, since bzip2 blocks are not aligned to byte
+ * boundaries) and where its data starts in the uncompressed data. It is used by
+ * the {@link BZip2RandomlyAccessibleFile} to decompress only the blocks that
+ * contain the data that is read.
+ * <p>
+ * Building an index requires decompressing the entire file once. The index can
+ * be saved to a file with {@link #writeTo(WritableFile)} and loaded again with
+ * {@link #load(ReadableFile)} to avoid having to do that the next time that the
+ * file is opened. The index format is specific to AT4J.
+ * <p>
+ * Only the first bzip2 stream in a file is indexed. Files containing several
+ * concatenated bzip2 streams, like the files created by some parallel bzip2
+ * implementations, are not supported. (They are not supported by the
+ * {@link BZip2InputStream} either.)
+ * <p>
+ * Index objects are immutable.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see BZip2RandomlyAccessibleFile
+ */
+public final class BZip2BlockIndex
+{
+	/**
+	 * The magic string that the saved index starts with.
+	 */
+	private static final byte[] MAGIC = new byte[] { 'A', 'T', '4', 'J', 'B', 'Z', 'I', 'X' };
+
+	/**
+	 * The version of the index format.
+	 */
+	private static final int VERSION = 1;
+
+	private final int m_blockSize;
+	private final long m_compressedSize;
+	private final long m_uncompressedSize;
+	// The bit offset in the compressed data where each block starts
+	private final long[] m_compressedBitOffsets;
+	// The offset in the uncompressed data where each block starts
+	private final long[] m_uncompressedOffsets;
+
+	private BZip2BlockIndex(int blockSize, long compressedSize, long uncompressedSize, long[] compressedBitOffsets, long[] uncompressedOffsets)
+	{
+		m_blockSize = blockSize;
+		m_compressedSize = compressedSize;
+		m_uncompressedSize = uncompressedSize;
+		m_compressedBitOffsets = compressedBitOffsets;
+		m_uncompressedOffsets = uncompressedOffsets;
+	}
+
+	private static long[] copyOf(long[] arr, int len)
+	{
+		long[] res = new long[len];
+		System.arraycopy(arr, 0, res, 0, Math.min(len, arr.length));
+		return res;
+	}
+
+	/**
+	 * Build an index by decompressing all bzip2 compressed data read from the
+	 * stream. The block checksums and the file checksum are verified while
+	 * doing so.
+	 * @param is A stream to read the compressed data from. The stream should be
+	 * buffered. It is not closed by this method.
+	 * @param compressedSize The size of the compressed file.
+	 * @return The index.
+	 * @throws IOException On I/O errors or if the data is not valid bzip2
+	 * compressed data.
+	 */
+	static BZip2BlockIndex build(InputStream is, long compressedSize) throws IOException
+	{
+		LittleEndianBitInputStream in = new LittleEndianBitInputStream(is);
+		int blockSize = BZip2InputStream.readFileHeader(in, null);
+		BlockDecoder decoder = new BlockDecoder(in, blockSize, null);
+
+		long[] compressedBitOffsets = new long[16];
+		long[] uncompressedOffsets = new long[16];
+		int noBlocks = 0;
+		long uncompressedOffset = 0L;
+		int fileChecksum = 0;
+		byte[] buf = new byte[8192];
+		while (true)
+		{
+			long bitOffset = in.getNumberOfBitsRead();
+			Block b = decoder.getNextBlock();
+			if (b instanceof CompressedDataBlock)
+			{
+				if (noBlocks == compressedBitOffsets.length)
+				{
+					compressedBitOffsets = copyOf(compressedBitOffsets, noBlocks * 2);
+					uncompressedOffsets = copyOf(uncompressedOffsets, noBlocks * 2);
+				}
+				compressedBitOffsets[noBlocks] = bitOffset;
+				uncompressedOffsets[noBlocks] = uncompressedOffset;
+				noBlocks++;
+
+				// Reading the entire block verifies its checksum.
+				CompressedDataBlock cdb = (CompressedDataBlock) b;
+				InputStream bis = cdb.getStream();
+				int noRead = bis.read(buf, 0, buf.length);
+				while (noRead >= 0)
+				{
+					uncompressedOffset += noRead;
+					noRead = bis.read(buf, 0, buf.length);
+				}
+
+				fileChecksum = (fileChecksum << 1) | (fileChecksum >>> 31);
+				fileChecksum ^= cdb.getBlockChecksum();
+			}
+			else if (b instanceof EosBlock)
+			{
+				if (fileChecksum != ((EosBlock) b).getReadCrc())
+				{
+					throw new IOException("Invalid file checksum " + fileChecksum + ". Expected " + ((EosBlock) b).getReadCrc());
+				}
+				return new BZip2BlockIndex(blockSize, compressedSize, uncompressedOffset, copyOf(compressedBitOffsets, noBlocks), copyOf(uncompressedOffsets, noBlocks));
+			}
+			else
+			{
+				throw new RuntimeException("Unknown bzip2 block type " + b + ". This is a bug");
+			}
+		}
+	}
+
+	/**
+	 * Build an index for the bzip2 compressed file. This decompresses the
+	 * entire file once.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for reading by this method.
+	 * @param f The bzip2 compressed file.
+	 * @return The index.
+	 * @throws WrappedIOException On I/O errors or if the file does not contain
+	 * valid bzip2 compressed data.
+	 */
+	public static BZip2BlockIndex build(ReadableFile f) throws WrappedIOException
+	{
+		Lock rl = f.lockForReading();
+		try
+		{
+			InputStream is = new BufferedInputStream(f.openForRead());
+			try
+			{
+				return build(is, f.getSize());
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			rl.unlock();
+		}
+	}
+
+	/**
+	 * Load an index that was saved with {@link #writeTo(WritableFile)}.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for reading by this method.
+	 * @param f The index file.
+	 * @return The index, or {@code null} if the file does not contain a valid
+	 * index.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public static BZip2BlockIndex load(ReadableFile f) throws WrappedIOException
+	{
+		Lock rl = f.lockForReading();
+		try
+		{
+			CRC32 crc = new CRC32();
+			DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(f.openForRead()), crc));
+			try
+			{
+				byte[] magic = new byte[MAGIC.length];
+				in.readFully(magic);
+				if (!Arrays.equals(MAGIC, magic) || (in.readInt() != VERSION))
+				{
+					return null;
+				}
+				int blockSize = in.readInt();
+				long compressedSize = in.readLong();
+				long uncompressedSize = in.readLong();
+				int noBlocks = in.readInt();
+				if ((noBlocks < 0) || (noBlocks > compressedSize))
+				{
+					return null;
+				}
+				long[] compressedBitOffsets = new long[noBlocks];
+				long[] uncompressedOffsets = new long[noBlocks];
+				for (int i = 0; i < noBlocks; i++)
+				{
+					compressedBitOffsets[i] = in.readLong();
+					uncompressedOffsets[i] = in.readLong();
+				}
+				int checksum = (int) crc.getValue();
+				if ((in.readInt() != checksum) || (in.read() != -1))
+				{
+					return null;
+				}
+				return new BZip2BlockIndex(blockSize, compressedSize, uncompressedSize, compressedBitOffsets, uncompressedOffsets);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (EOFException e)
+		{
+			// A truncated index
+			return null;
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			rl.unlock();
+		}
+	}
+
+	/**
+	 * Save the index to a file. The index can be loaded again using
+	 * {@link #load(ReadableFile)}.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for writing by this method.
+	 * @param f The file to write the index to. The previous contents of the
+	 * file is discarded.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public void writeTo(WritableFile f) throws WrappedIOException
+	{
+		Lock wl = f.lockForWriting();
+		try
+		{
+			CRC32 crc = new CRC32();
+			OutputStream os = f.openForWrite();
+			try
+			{
+				DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(os), crc));
+				out.write(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(m_blockSize);
+				out.writeLong(m_compressedSize);
+				out.writeLong(m_uncompressedSize);
+				out.writeInt(m_compressedBitOffsets.length);
+				for (int i = 0; i < m_compressedBitOffsets.length; i++)
+				{
+					out.writeLong(m_compressedBitOffsets[i]);
+					out.writeLong(m_uncompressedOffsets[i]);
+				}
+				out.writeInt((int) crc.getValue());
+				out.flush();
+			}
+			finally
+			{
+				os.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			wl.unlock();
+		}
+	}
+
+	/**
+	 * Get the block size used when compressing the file, in bytes.
+	 * @return The block size.
+	 */
+	public int getBlockSize()
+	{
+		return m_blockSize;
+	}
+
+	/**
+	 * Get the size of the compressed file that this index was built for.
+	 * @return The size of the compressed file.
+	 */
+	public long getCompressedSize()
+	{
+		return m_compressedSize;
+	}
+
+	/**
+	 * Get the size of the uncompressed data.
+	 * @return The size of the uncompressed data.
+	 */
+	public long getUncompressedSize()
+	{
+		return m_uncompressedSize;
+	}
+
+	/**
+	 * Get the number of bzip2 blocks in the file.
+	 * @return The number of blocks.
+	 */
+	public int getNumberOfBlocks()
+	{
+		return m_compressedBitOffsets.length;
+	}
+
+	long getCompressedBitOffset(int blockNo)
+	{
+		return m_compressedBitOffsets[blockNo];
+	}
+
+	long getUncompressedOffset(int blockNo)
+	{
+		return m_uncompressedOffsets[blockNo];
+	}
+
+	/**
+	 * Get the number of the block that contains the uncompressed data at the
+	 * supplied position.
+	 * @param pos The position in the uncompressed data. This must be less than
+	 * the size of the uncompressed data.
+	 * @return The block number.
+	 */
+	int findBlock(long pos)
+	{
+		int res = Arrays.binarySearch(m_uncompressedOffsets, pos);
+		if (res < 0)
+		{
+			// The insertion point - 1
+			res = -res - 2;
+		}
+		else
+		{
+			// Skip empty blocks. (Should not happen, but anyway)
+			while ((res < m_uncompressedOffsets.length - 1) && (m_uncompressedOffsets[res + 1] == pos))
+			{
+				res++;
+			}
+		}
+		return res;
+	}
+}
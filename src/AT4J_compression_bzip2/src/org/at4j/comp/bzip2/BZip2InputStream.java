@@ -60,7 +60,7 @@ public class BZip2InputStream extends InputStream
 	/**
 	 * Read the file header and return the block size.
 	 */
-	private static int readFileHeader(LittleEndianBitInputStream in, LogAdapter la) throws IOException
+	static int readFileHeader(LittleEndianBitInputStream in, LogAdapter la) throws IOException
 	{
 		byte[] barr = new byte[2];
 		int noRead = in.read(barr, 0, 2);
@@ -0,0 +1,318 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.bzip2;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.at4j.support.io.LittleEndianBitInputStream;
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomAccessCloseObserver;
+import org.entityfs.exception.ReadOnlyException;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+
+/**
+ * This is a read only {@link RandomAccess} on the uncompressed data of a bzip2
+ * compressed file. It uses a {@link BZip2BlockIndex} to start decompressing at
+ * the start of the block that contains the wanted position.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see BZip2RandomlyAccessibleFile
+ */
+final class BZip2RandomAccess implements RandomAccess
+{
+	/**
+	 * An input stream that reads the compressed data from a position in the
+	 * compressed {@link RandomAccess}. Closing it does not close the
+	 * {@code RandomAccess}.
+	 */
+	private final class CompressedDataInputStream extends InputStream
+	{
+		private long m_compressedPos;
+
+		private CompressedDataInputStream(long pos)
+		{
+			m_compressedPos = pos;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] barr = new byte[1];
+			return read(barr, 0, 1) > 0 ? barr[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] barr, int off, int len) throws IOException
+		{
+			// The random access may have been used by another stream
+			m_compressed.seek(m_compressedPos);
+			int res = m_compressed.read(barr, off, len);
+			if (res > 0)
+			{
+				m_compressedPos += res;
+			}
+			return res;
+		}
+	}
+
+	private final RandomAccess m_compressed;
+	private final BZip2BlockIndex m_index;
+	private final List<RandomAccessCloseObserver> m_closeObservers = new ArrayList<RandomAccessCloseObserver>(1);
+
+	// The decompressing stream for the current block, or null
+	private InputStream m_stream;
+	// The number of the current block
+	private int m_streamBlockNo;
+	// The position of m_stream in the uncompressed data
+	private long m_streamPos;
+	// The position of this object in the uncompressed data
+	private long m_pos;
+	private byte[] m_skipBuffer;
+	private boolean m_closed;
+
+	/**
+	 * @param compressed A random access on the compressed data. It is closed
+	 * when this object is closed.
+	 * @param index The block index for the compressed data.
+	 */
+	BZip2RandomAccess(RandomAccess compressed, BZip2BlockIndex index)
+	{
+		// Null checks
+		compressed.getClass();
+		index.getClass();
+
+		m_compressed = compressed;
+		m_index = index;
+	}
+
+	private void assertNotClosed() throws IllegalStateException
+	{
+		if (m_closed)
+		{
+			throw new IllegalStateException("This object is closed");
+		}
+	}
+
+	private long getEndOfBlock(int blockNo)
+	{
+		return blockNo < m_index.getNumberOfBlocks() - 1 ? m_index.getUncompressedOffset(blockNo + 1) : m_index.getUncompressedSize();
+	}
+
+	/**
+	 * Open a decompressing stream at the start of the block.
+	 */
+	private void openBlock(int blockNo) throws IOException
+	{
+		m_stream = null;
+
+		long bitOffset = m_index.getCompressedBitOffset(blockNo);
+		LittleEndianBitInputStream in = new LittleEndianBitInputStream(new BufferedInputStream(new CompressedDataInputStream(bitOffset >>> 3)));
+		// Skip the bits before the start of the block in its first byte
+		in.readBits((int) (bitOffset & 7));
+		Block b = new BlockDecoder(in, m_index.getBlockSize(), null).getNextBlock();
+		if (!(b instanceof CompressedDataBlock))
+		{
+			throw new IOException("Expected a compressed data block at bit offset " + bitOffset + ". Is the index stale?");
+		}
+		m_stream = ((CompressedDataBlock) b).getStream();
+		m_streamBlockNo = blockNo;
+		m_streamPos = m_index.getUncompressedOffset(blockNo);
+	}
+
+	/**
+	 * Make sure that there is a decompressing stream at the current position.
+	 */
+	private void positionStream() throws IOException
+	{
+		int blockNo = m_index.findBlock(m_pos);
+		if ((m_stream == null) || (m_streamBlockNo != blockNo) || (m_streamPos > m_pos))
+		{
+			openBlock(blockNo);
+		}
+
+		// Skip forward. The skipped data is decompressed too, since the block
+		// checksum is calculated over all data in the block.
+		if (m_streamPos < m_pos)
+		{
+			if (m_skipBuffer == null)
+			{
+				m_skipBuffer = new byte[8192];
+			}
+			while (m_streamPos < m_pos)
+			{
+				int noRead = m_stream.read(m_skipBuffer, 0, (int) Math.min(m_skipBuffer.length, m_pos - m_streamPos));
+				if (noRead < 0)
+				{
+					throw new IOException("Unexpected end of bzip2 block at position " + m_streamPos + ". Is the index stale?");
+				}
+				m_streamPos += noRead;
+			}
+		}
+	}
+
+	public RandomAccessMode getMode()
+	{
+		return RandomAccessMode.READ_ONLY;
+	}
+
+	public void addCloseObserver(RandomAccessCloseObserver rao)
+	{
+		m_closeObservers.add(rao);
+	}
+
+	public long getFilePointer() throws IllegalStateException
+	{
+		assertNotClosed();
+		return m_pos;
+	}
+
+	public long length() throws IllegalStateException
+	{
+		assertNotClosed();
+		return m_index.getUncompressedSize();
+	}
+
+	public void seek(long pos) throws IllegalStateException
+	{
+		assertNotClosed();
+		if (pos < 0)
+		{
+			throw new IllegalArgumentException("Invalid position " + pos);
+		}
+		// The stream is positioned when data is read
+		m_pos = pos;
+	}
+
+	public void setLength(long l) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("A bzip2 compressed file is read only");
+	}
+
+	public int available() throws IllegalStateException
+	{
+		assertNotClosed();
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, m_index.getUncompressedSize() - m_pos));
+	}
+
+	public int read() throws IllegalStateException, WrappedIOException
+	{
+		byte[] barr = new byte[1];
+		return read(barr, 0, 1) > 0 ? barr[0] & 0xFF : -1;
+	}
+
+	public int read(byte[] barr) throws IllegalStateException, WrappedIOException
+	{
+		return read(barr, 0, barr.length);
+	}
+
+	public int read(byte[] barr, int off, int len) throws IllegalStateException, WrappedIOException
+	{
+		assertNotClosed();
+		if (m_pos >= m_index.getUncompressedSize())
+		{
+			return -1;
+		}
+		else if (len == 0)
+		{
+			return 0;
+		}
+
+		try
+		{
+			positionStream();
+			long endOfBlock = getEndOfBlock(m_streamBlockNo);
+			int noRead = m_stream.read(barr, off, (int) Math.min(len, endOfBlock - m_pos));
+			if (noRead < 0)
+			{
+				throw new IOException("Unexpected end of bzip2 block at position " + m_pos + ". Is the index stale?");
+			}
+			m_pos += noRead;
+			m_streamPos += noRead;
+
+			if (m_streamPos == endOfBlock)
+			{
+				// Read to the end of the block stream to have it verify the
+				// block checksum.
+				if (m_stream.read() != -1)
+				{
+					throw new IOException("The bzip2 block at position " + m_index.getUncompressedOffset(m_streamBlockNo) + " is longer than expected. Is the index stale?");
+				}
+				m_stream = null;
+			}
+			return noRead;
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+	}
+
+	public long skipBytes(long n) throws IllegalStateException
+	{
+		assertNotClosed();
+		long res = Math.max(0, Math.min(n, m_index.getUncompressedSize() - m_pos));
+		m_pos += res;
+		return res;
+	}
+
+	public void write(int b) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("A bzip2 compressed file is read only");
+	}
+
+	public void write(byte[] barr) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("A bzip2 compressed file is read only");
+	}
+
+	public void write(byte[] barr, int off, int len) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("A bzip2 compressed file is read only");
+	}
+
+	public void flush()
+	{
+		// Nothing to do
+	}
+
+	public void close() throws WrappedIOException
+	{
+		if (!m_closed)
+		{
+			m_closed = true;
+			m_stream = null;
+			try
+			{
+				m_compressed.close();
+			}
+			finally
+			{
+				for (RandomAccessCloseObserver rao : m_closeObservers)
+				{
+					rao.notifyClosed(this);
+				}
+			}
+		}
+	}
+}
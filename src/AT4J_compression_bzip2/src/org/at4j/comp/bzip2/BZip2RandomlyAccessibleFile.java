@@ -0,0 +1,222 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.bzip2;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomlyAccessibleFile;
+import org.entityfs.exception.LockTimeoutException;
+import org.entityfs.exception.ReadOnlyException;
+import org.entityfs.lock.EntityLock;
+import org.entityfs.lock.ReadLockRequiredException;
+import org.entityfs.security.AccessDeniedException;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.io.RandomAccessToInputStreamAdapter;
+
+/**
+ * This is a {@link RandomlyAccessibleFile} that gives read only random access to
+ * the uncompressed contents of a bzip2 compressed file. It can for instance be
+ * used to open a {@code .tar.bz2} file as a {@link org.at4j.tar.TarFile}.
+ * <p>
+ * The bzip2 format compresses data in independent blocks of up to 900 kb of
+ * uncompressed data. This object uses a {@link BZip2BlockIndex} to find the
+ * block that contains the data at a given position, and only decompresses that
+ * block (and the following blocks, if more data is read). Seeking to a
+ * position and reading a small amount of data from it thus only decompresses
+ * one or two blocks, regardless of how large the file is.
+ * <p>
+ * If no index is supplied when the object is created, it is built the first
+ * time that the file is opened. This requires decompressing the entire file
+ * once. The index can be retrieved with {@link #getIndex()} and saved with
+ * {@link BZip2BlockIndex#writeTo(org.entityfs.WritableFile)}. If the size of
+ * the compressed file does not match the size recorded in the index, the
+ * index is considered stale and a new index is built.
+ * <p>
+ * Locking is delegated to the adapted file. The file can only be opened in
+ * {@link RandomAccessMode#READ_ONLY} mode.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see BZip2BlockIndex
+ * @see BZip2ReadableFile
+ */
+public class BZip2RandomlyAccessibleFile implements RandomlyAccessibleFile
+{
+	private final RandomlyAccessibleFile m_adapted;
+	private final Object m_indexLock = new Object();
+	// This is null until the index is built
+	private BZip2BlockIndex m_index;
+
+	/**
+	 * Create a new adapter. The block index is built the first time that the
+	 * file is opened.
+	 * @param adapted The adapted bzip2 compressed file.
+	 * @see #BZip2RandomlyAccessibleFile(RandomlyAccessibleFile, BZip2BlockIndex)
+	 */
+	public BZip2RandomlyAccessibleFile(RandomlyAccessibleFile adapted)
+	{
+		this(adapted, null);
+	}
+
+	/**
+	 * Create a new adapter that uses a previously built block index.
+	 * @param adapted The adapted bzip2 compressed file.
+	 * @param index The block index for the file, for instance loaded with
+	 * {@link BZip2BlockIndex#load(org.entityfs.ReadableFile)}. If this is
+	 * {@code null}, an index is built the first time that the file is opened.
+	 * @see #BZip2RandomlyAccessibleFile(RandomlyAccessibleFile)
+	 */
+	public BZip2RandomlyAccessibleFile(RandomlyAccessibleFile adapted, BZip2BlockIndex index)
+	{
+		// Null check
+		adapted.getClass();
+
+		m_adapted = adapted;
+		m_index = index;
+	}
+
+	/**
+	 * Get the adapted, bzip2 compressed file.
+	 * @return The adapted file.
+	 */
+	public RandomlyAccessibleFile getAdaptedFile()
+	{
+		return m_adapted;
+	}
+
+	/**
+	 * Get the index for the bzip2 compressed data in the compressed random
+	 * access. If there is no valid index, one is built.
+	 */
+	private BZip2BlockIndex getIndex(RandomAccess compressed) throws IOException
+	{
+		synchronized (m_indexLock)
+		{
+			long compressedSize = compressed.length();
+			if ((m_index == null) || (m_index.getCompressedSize() != compressedSize))
+			{
+				compressed.seek(0L);
+				m_index = BZip2BlockIndex.build(new BufferedInputStream(new RandomAccessToInputStreamAdapter(compressed)), compressedSize);
+			}
+			return m_index;
+		}
+	}
+
+	/**
+	 * Get the block index for the file. If no index has been built yet, it is
+	 * built by this method. This requires decompressing the entire file.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, the calling
+	 * thread must have a read lock on it.
+	 * @return The block index.
+	 * @throws ReadLockRequiredException If the file is in a locking file system
+	 * and the calling thread does not have a read lock on it.
+	 * @throws WrappedIOException On I/O errors or if the file does not contain
+	 * valid bzip2 compressed data.
+	 */
+	public BZip2BlockIndex getIndex() throws ReadLockRequiredException, WrappedIOException
+	{
+		RandomAccess compressed = m_adapted.openForRandomAccess(RandomAccessMode.READ_ONLY);
+		try
+		{
+			return getIndex(compressed);
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			compressed.close();
+		}
+	}
+
+	/**
+	 * Open the file for random access. If no index has been built for the
+	 * file yet, it is built by this method.
+	 * @param mode The mode to open the file in. This must be
+	 * {@link RandomAccessMode#READ_ONLY}.
+	 * @return A read only {@link RandomAccess} on the uncompressed data.
+	 * @throws ReadOnlyException If {@code mode} is not
+	 * {@link RandomAccessMode#READ_ONLY}.
+	 * @throws ReadLockRequiredException If the file is in a locking file system
+	 * and the calling thread does not have a read lock on it.
+	 * @throws WrappedIOException On I/O errors or if the file does not contain
+	 * valid bzip2 compressed data.
+	 */
+	public RandomAccess openForRandomAccess(RandomAccessMode mode) throws ReadOnlyException, ReadLockRequiredException, AccessDeniedException, WrappedIOException
+	{
+		if (mode != RandomAccessMode.READ_ONLY)
+		{
+			throw new ReadOnlyException("A bzip2 compressed file can only be opened in read only mode. Not in " + mode);
+		}
+
+		RandomAccess compressed = m_adapted.openForRandomAccess(RandomAccessMode.READ_ONLY);
+		boolean successful = false;
+		try
+		{
+			RandomAccess res = new BZip2RandomAccess(compressed, getIndex(compressed));
+			successful = true;
+			return res;
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			if (!successful)
+			{
+				compressed.close();
+			}
+		}
+	}
+
+	public EntityLock getReadLock()
+	{
+		return m_adapted.getReadLock();
+	}
+
+	public boolean isReadLockedByCurrentThread() throws IllegalStateException
+	{
+		return m_adapted.isReadLockedByCurrentThread();
+	}
+
+	public EntityLock lockForReading() throws LockTimeoutException
+	{
+		return m_adapted.lockForReading();
+	}
+
+	public EntityLock getWriteLock()
+	{
+		return m_adapted.getWriteLock();
+	}
+
+	public boolean isWriteLockedByCurrentThread()
+	{
+		return m_adapted.isWriteLockedByCurrentThread();
+	}
+
+	public EntityLock lockForWriting() throws LockTimeoutException
+	{
+		return m_adapted.lockForWriting();
+	}
+}
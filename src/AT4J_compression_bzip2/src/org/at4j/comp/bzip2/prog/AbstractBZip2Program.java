@@ -29,11 +29,13 @@ import java.io.OutputStream;
 
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.at4j.comp.bzip2.BZip2EncoderExecutorService;
 import org.at4j.comp.bzip2.BZip2InputStream;
 import org.at4j.comp.bzip2.BZip2OutputStream;
 import org.at4j.comp.bzip2.BZip2OutputStreamSettings;
 import org.at4j.comp.prog.AbstractStreamCompressionProgram;
 import org.at4j.comp.prog.IgnoreFileException;
+import org.at4j.support.prog.CommandErrorException;
 
 /**
  * Abstract base class for gzip compression programs.
@@ -42,6 +44,39 @@ import org.at4j.comp.prog.IgnoreFileException;
  */
 abstract class AbstractBZip2Program<T extends AbstractBZip2ProgramArguments> extends AbstractStreamCompressionProgram<T>
 {
+	// The encoder executor service shared by all files that are compressed.
+	// It is created when it is first needed.
+	private BZip2EncoderExecutorService m_encoderExecutorService;
+
+	private synchronized BZip2EncoderExecutorService getEncoderExecutorService(int noThreads)
+	{
+		if (m_encoderExecutorService == null)
+		{
+			m_encoderExecutorService = BZip2OutputStream.createExecutorService(noThreads);
+		}
+		return m_encoderExecutorService;
+	}
+
+	@Override
+	protected void run(String[] args) throws CommandErrorException, IOException
+	{
+		try
+		{
+			super.run(args);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				if (m_encoderExecutorService != null)
+				{
+					m_encoderExecutorService.shutdown();
+					m_encoderExecutorService = null;
+				}
+			}
+		}
+	}
+
 	@Override
 	protected InputStream createInputStream(int sourceNo, T settings) throws IOException
 	{
@@ -101,7 +136,16 @@ abstract class AbstractBZip2Program<T extends AbstractBZip2ProgramArguments> ext
 				{
 					BZip2OutputStreamSettings bs = new BZip2OutputStreamSettings();
 					bs.setBlockSize(settings.getBlockSize());
-					bs.setNumberOfEncoderThreads(settings.getNumberOfEncoderThreads());
+					if (settings.getNumberOfEncoderThreads() > 0)
+					{
+						bs.setNumberOfEncoderThreads(settings.getNumberOfEncoderThreads());
+					}
+					else if (settings.getNumberOfThreads() > 1)
+					{
+						// Encode the blocks of all files in parallel using a
+						// shared executor.
+						bs.setExecutorService(getEncoderExecutorService(settings.getNumberOfThreads()));
+					}
 					os = new BZip2OutputStream(os, bs);
 				}
 			}
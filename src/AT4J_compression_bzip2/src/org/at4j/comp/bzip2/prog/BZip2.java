@@ -59,8 +59,10 @@ import org.entityfs.support.exception.WrappedIOException;
  *   --suffix suf
  *   -S suf    - Use the suffix &quot;suf&quot; instead of &quot;.bz2&quot; for the compressed files.
  *   --threads no - Set the maximum number of threads to use for compressing.
- *               Different files may be compressed in different threads. The
- *               default number of threads is one.
+ *               Different files may be compressed in different threads. If
+ *               --encoderThreads is not set, the bzip2 blocks of all files are
+ *               also encoded in parallel by a shared pool of this many
+ *               encoder threads. The default number of threads is one.
  *   --timing  - After building the archive, print out how long it took.
  * </pre>
  * @author Karl Gustafsson
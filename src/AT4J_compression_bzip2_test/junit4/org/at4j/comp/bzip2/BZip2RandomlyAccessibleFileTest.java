@@ -0,0 +1,288 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.bzip2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.at4j.test.support.At4JTestCase;
+import org.at4j.test.support.TestFileSupport;
+import org.entityfs.RandomAccess;
+import org.entityfs.ReadWritableFile;
+import org.entityfs.exception.ReadOnlyException;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.Files;
+import org.entityfs.util.io.ReadWritableFileAdapter;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class BZip2RandomlyAccessibleFileTest extends At4JTestCase
+{
+	private static byte[] createThreeCharAlphabetData(int len, Random r)
+	{
+		byte[] res = new byte[len];
+		for (int i = 0; i < len; i++)
+		{
+			res[i] = (byte) ('A' + r.nextInt(3));
+		}
+		return res;
+	}
+
+	/**
+	 * Compress the data using the smallest block size to get several bzip2
+	 * blocks.
+	 */
+	private ReadWritableFile createCompressedFile(byte[] data)
+	{
+		ReadWritableFile res = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		Files.writeData(new BZip2WritableFile(res, new BZip2WritableFileSettings().setBlockSize(1)), data);
+		return res;
+	}
+
+	private void assertReadsData(BZip2RandomlyAccessibleFile f, byte[] data, Random r)
+	{
+		RandomAccess ra = f.openForRandomAccess(RandomAccessMode.READ_ONLY);
+		try
+		{
+			assertEquals(data.length, ra.length());
+
+			// Read everything
+			byte[] barr = new byte[data.length];
+			int pos = 0;
+			while (pos < barr.length)
+			{
+				int noRead = ra.read(barr, pos, Math.min(50000, barr.length - pos));
+				assertTrue(noRead > 0);
+				pos += noRead;
+			}
+			assertTrue(Arrays.equals(data, barr));
+			assertEquals(-1, ra.read());
+
+			// Read chunks from random positions, backwards and forwards. Some
+			// of the chunks span block boundaries.
+			for (int i = 0; i < 20; i++)
+			{
+				int start = r.nextInt(data.length);
+				int len = Math.min(r.nextInt(200000), data.length - start);
+				ra.seek(start);
+				byte[] chunk = new byte[len];
+				int noRead = 0;
+				while (noRead < len)
+				{
+					noRead += ra.read(chunk, noRead, len - noRead);
+				}
+				for (int j = 0; j < len; j++)
+				{
+					assertEquals(data[start + j], chunk[j]);
+				}
+				assertEquals(start + len, ra.getFilePointer());
+			}
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	@Test
+	public void testRandomAccess()
+	{
+		Random r = new Random(4711);
+		byte[] data = createThreeCharAlphabetData(450000, r);
+		ReadWritableFile f = createCompressedFile(data);
+		try
+		{
+			BZip2RandomlyAccessibleFile bf = new BZip2RandomlyAccessibleFile(f);
+			assertReadsData(bf, data, r);
+
+			BZip2BlockIndex index = bf.getIndex();
+			assertTrue(index.getNumberOfBlocks() > 3);
+			assertEquals(100 * 1000, index.getBlockSize());
+			assertEquals(data.length, index.getUncompressedSize());
+			assertEquals(f.getSize(), index.getCompressedSize());
+			assertEquals(0L, index.getUncompressedOffset(0));
+			// The first block starts after the four bytes long file header
+			assertEquals(32L, index.getCompressedBitOffset(0));
+			for (int i = 1; i < index.getNumberOfBlocks(); i++)
+			{
+				assertTrue(index.getUncompressedOffset(i) > index.getUncompressedOffset(i - 1));
+				assertTrue(index.getCompressedBitOffset(i) > index.getCompressedBitOffset(i - 1));
+				assertEquals(i, index.findBlock(index.getUncompressedOffset(i)));
+				assertEquals(i - 1, index.findBlock(index.getUncompressedOffset(i) - 1));
+			}
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testSaveAndLoadIndex()
+	{
+		Random r = new Random(17);
+		byte[] data = createThreeCharAlphabetData(250000, r);
+		ReadWritableFile f = createCompressedFile(data);
+		ReadWritableFile indexFile = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			BZip2BlockIndex index = BZip2BlockIndex.build(f);
+			index.writeTo(indexFile);
+
+			BZip2BlockIndex loaded = BZip2BlockIndex.load(indexFile);
+			assertNotNull(loaded);
+			assertEquals(index.getBlockSize(), loaded.getBlockSize());
+			assertEquals(index.getCompressedSize(), loaded.getCompressedSize());
+			assertEquals(index.getUncompressedSize(), loaded.getUncompressedSize());
+			assertEquals(index.getNumberOfBlocks(), loaded.getNumberOfBlocks());
+			for (int i = 0; i < index.getNumberOfBlocks(); i++)
+			{
+				assertEquals(index.getCompressedBitOffset(i), loaded.getCompressedBitOffset(i));
+				assertEquals(index.getUncompressedOffset(i), loaded.getUncompressedOffset(i));
+			}
+
+			BZip2RandomlyAccessibleFile bf = new BZip2RandomlyAccessibleFile(f, loaded);
+			assertReadsData(bf, data, r);
+			// The loaded index was used
+			assertEquals(loaded, bf.getIndex());
+		}
+		finally
+		{
+			f.delete();
+			indexFile.delete();
+		}
+	}
+
+	@Test
+	public void testInvalidIndex()
+	{
+		ReadWritableFile f = createCompressedFile(createThreeCharAlphabetData(150000, new Random(1)));
+		ReadWritableFile indexFile = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			// Not an index
+			Files.writeText(indexFile, "This is not a bzip2 block index");
+			assertNull(BZip2BlockIndex.load(indexFile));
+
+			// A truncated index
+			BZip2BlockIndex.build(f).writeTo(indexFile);
+			byte[] indexData = Files.readBinaryFile(indexFile);
+			Files.writeData(indexFile, Arrays.copyOf(indexData, indexData.length - 6));
+			assertNull(BZip2BlockIndex.load(indexFile));
+
+			// A corrupt index
+			indexData[30] ^= 1;
+			Files.writeData(indexFile, indexData);
+			assertNull(BZip2BlockIndex.load(indexFile));
+		}
+		finally
+		{
+			f.delete();
+			indexFile.delete();
+		}
+	}
+
+	@Test
+	public void testStaleIndex()
+	{
+		Random r = new Random(42);
+		ReadWritableFile f = createCompressedFile(createThreeCharAlphabetData(150000, r));
+		try
+		{
+			BZip2BlockIndex index = BZip2BlockIndex.build(f);
+
+			// Replace the file contents
+			byte[] data = createThreeCharAlphabetData(220000, r);
+			Files.writeData(new BZip2WritableFile(f, new BZip2WritableFileSettings().setBlockSize(1)), data);
+
+			// The file has another size, so a new index is built
+			BZip2RandomlyAccessibleFile bf = new BZip2RandomlyAccessibleFile(f, index);
+			assertReadsData(bf, data, r);
+			assertEquals(data.length, bf.getIndex().getUncompressedSize());
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testEmptyFile()
+	{
+		BZip2RandomlyAccessibleFile f = new BZip2RandomlyAccessibleFile(getTestDataFile("comp/bzip2/empty.bz2"));
+		RandomAccess ra = f.openForRandomAccess(RandomAccessMode.READ_ONLY);
+		try
+		{
+			assertEquals(0L, ra.length());
+			assertEquals(-1, ra.read());
+		}
+		finally
+		{
+			ra.close();
+		}
+		assertEquals(0, f.getIndex().getNumberOfBlocks());
+	}
+
+	@Test
+	public void testReadOnly()
+	{
+		ReadWritableFile f = createCompressedFile(new byte[] { 1, 2, 3 });
+		try
+		{
+			BZip2RandomlyAccessibleFile bf = new BZip2RandomlyAccessibleFile(f);
+			try
+			{
+				bf.openForRandomAccess(RandomAccessMode.READ_WRITE);
+				fail();
+			}
+			catch (ReadOnlyException e)
+			{
+				// ok
+			}
+
+			RandomAccess ra = bf.openForRandomAccess(RandomAccessMode.READ_ONLY);
+			try
+			{
+				ra.write(4);
+				fail();
+			}
+			catch (ReadOnlyException e)
+			{
+				// ok
+			}
+			finally
+			{
+				ra.close();
+			}
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+}
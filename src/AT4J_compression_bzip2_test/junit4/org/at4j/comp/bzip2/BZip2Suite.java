@@ -29,7 +29,7 @@ import org.junit.runners.Suite.SuiteClasses;
  */
 @RunWith(Suite.class)
 @SuiteClasses( { BlockEncoderTest.class, BurrowsWheelerDecoderTest.class, BurrowsWheelerEncoderTest.class, BZip2CompressorInputStreamTest.class, BZip2InputStreamTest.class, BZip2OutputStreamTest.class,
-		BZip2ReadableAndWritableFileTest.class, HighValueBranchHuffmanTreeTest.class, RLEDecodingInputStreamTest.class, ThreeWayRadixQuicksortTest.class,
+		BZip2RandomlyAccessibleFileTest.class, BZip2ReadableAndWritableFileTest.class, HighValueBranchHuffmanTreeTest.class, RLEDecodingInputStreamTest.class, ThreeWayRadixQuicksortTest.class,
 
 		ProgSuite.class })
 public class BZip2Suite
@@ -0,0 +1,422 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.gzip;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.at4j.support.comp.DeflateIndex;
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomlyAccessibleFile;
+import org.entityfs.ReadableFile;
+import org.entityfs.WritableFile;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.io.RandomAccessToInputStreamAdapter;
+
+/**
+ * This is an index over a gzip compressed file. It records where the deflated
+ * data starts in the file, after the gzip header, and contains a
+ * {@link DeflateIndex} with access points in the deflated data. It is used by
+ * the {@link GZipRandomlyAccessibleFile} to start inflating data close to the
+ * position that is read instead of at the beginning of the file.
+ * <p>
+ * Building an index requires decompressing the entire file once. The index can
+ * be saved to a file with {@link #writeTo(WritableFile)} and loaded again with
+ * {@link #load(ReadableFile)} to avoid having to do that the next time that the
+ * file is opened. The index format is specific to AT4J. Each access point
+ * stores the 32 kb of uncompressed data that precedes it, so the access point
+ * spacing should not be too small.
+ * <p>
+ * Only gzip files with a single member are supported. Files containing several
+ * concatenated gzip members, like the files created by some parallel gzip
+ * implementations, are rejected. The length of the uncompressed data is
+ * verified against the gzip trailer when the index is built, but the CRC
+ * checksum is not.
+ * <p>
+ * Index objects are immutable.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see GZipRandomlyAccessibleFile
+ */
+public final class GZipIndex
+{
+	/**
+	 * The magic string that the saved index starts with.
+	 */
+	private static final byte[] MAGIC = new byte[] { 'A', 'T', '4', 'J', 'G', 'Z', 'I', 'X' };
+
+	/**
+	 * The version of the index format.
+	 */
+	private static final int VERSION = 1;
+
+	// Gzip header flags
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final long m_compressedSize;
+	// The offset in the gzip file where the deflated data starts
+	private final long m_dataOffset;
+	private final DeflateIndex m_deflateIndex;
+
+	private GZipIndex(long compressedSize, long dataOffset, DeflateIndex deflateIndex)
+	{
+		m_compressedSize = compressedSize;
+		m_dataOffset = dataOffset;
+		m_deflateIndex = deflateIndex;
+	}
+
+	private static int readByte(InputStream is) throws IOException
+	{
+		int res = is.read();
+		if (res < 0)
+		{
+			throw new EOFException("Unexpected end of gzip file");
+		}
+		return res;
+	}
+
+	private static void skipFully(InputStream is, long n) throws IOException
+	{
+		for (long i = 0; i < n; i++)
+		{
+			readByte(is);
+		}
+	}
+
+	/**
+	 * Skip a zero-terminated string.
+	 * @return The length of the string, including the terminating zero.
+	 */
+	private static long skipZeroTerminatedString(InputStream is) throws IOException
+	{
+		long res = 1;
+		while (readByte(is) != 0)
+		{
+			res++;
+		}
+		return res;
+	}
+
+	/**
+	 * Parse the gzip header.
+	 * @return The length of the header.
+	 */
+	private static long parseHeader(RandomAccess ra) throws IOException
+	{
+		ra.seek(0L);
+		InputStream in = new BufferedInputStream(new RandomAccessToInputStreamAdapter(ra));
+		if ((readByte(in) != 0x1F) || (readByte(in) != 0x8B))
+		{
+			throw new IOException("Not a gzip file. Invalid magic bytes");
+		}
+		int method = readByte(in);
+		if (method != 8)
+		{
+			throw new IOException("Unsupported compression method " + method + ". Only deflate (8) is supported");
+		}
+		int flags = readByte(in);
+		// Skip the modification time, the extra flags and the operating system
+		skipFully(in, 6);
+		long res = 10;
+		if ((flags & FEXTRA) != 0)
+		{
+			int xlen = readByte(in) | (readByte(in) << 8);
+			skipFully(in, xlen);
+			res += 2 + xlen;
+		}
+		if ((flags & FNAME) != 0)
+		{
+			res += skipZeroTerminatedString(in);
+		}
+		if ((flags & FCOMMENT) != 0)
+		{
+			res += skipZeroTerminatedString(in);
+		}
+		if ((flags & FHCRC) != 0)
+		{
+			skipFully(in, 2);
+			res += 2;
+		}
+		return res;
+	}
+
+	/**
+	 * Build an index by decompressing all data in the gzip file.
+	 * @param ra The gzip file.
+	 * @param compressedSize The size of the gzip file.
+	 * @param accessPointSpacing The minimum number of uncompressed bytes
+	 * between two access points.
+	 * @return The index.
+	 * @throws IOException On I/O errors or if the file is not a valid, single
+	 * member gzip file.
+	 */
+	static GZipIndex build(RandomAccess ra, long compressedSize, long accessPointSpacing) throws IOException
+	{
+		long dataOffset = parseHeader(ra);
+
+		ra.seek(dataOffset);
+		DeflateIndex deflateIndex = DeflateIndex.build(new BufferedInputStream(new RandomAccessToInputStreamAdapter(ra)), accessPointSpacing);
+
+		// Verify the uncompressed size against the ISIZE field in the trailer.
+		// That is the uncompressed size modulo 2^32.
+		ra.seek(dataOffset + deflateIndex.getCompressedSize());
+		byte[] trailer = new byte[8];
+		int noRead = 0;
+		while (noRead < trailer.length)
+		{
+			int n = ra.read(trailer, noRead, trailer.length - noRead);
+			if (n < 0)
+			{
+				throw new EOFException("Unexpected end of gzip file. The trailer is missing");
+			}
+			noRead += n;
+		}
+		long isize = (trailer[4] & 0xFFL) | ((trailer[5] & 0xFFL) << 8) | ((trailer[6] & 0xFFL) << 16) | ((trailer[7] & 0xFFL) << 24);
+		if (isize != (deflateIndex.getUncompressedSize() & 0xFFFFFFFFL))
+		{
+			throw new IOException("Invalid uncompressed size " + deflateIndex.getUncompressedSize() + " (modulo 2^32). The gzip trailer says " + isize);
+		}
+
+		// Is there another gzip member after this one? Other trailing data,
+		// such as padding, is ignored just like gzip does.
+		if ((ra.read() == 0x1F) && (ra.read() == 0x8B))
+		{
+			throw new IOException("Multi-member gzip files are not supported");
+		}
+		return new GZipIndex(compressedSize, dataOffset, deflateIndex);
+	}
+
+	/**
+	 * Build an index for the gzip compressed file, using the
+	 * {@link DeflateIndex#DEFAULT_ACCESS_POINT_SPACING default access point
+	 * spacing}. This decompresses the entire file once.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for reading by this method.
+	 * @param f The gzip compressed file.
+	 * @return The index.
+	 * @throws WrappedIOException On I/O errors or if the file is not a valid,
+	 * single member gzip file.
+	 * @see #build(RandomlyAccessibleFile, long)
+	 */
+	public static GZipIndex build(RandomlyAccessibleFile f) throws WrappedIOException
+	{
+		return build(f, DeflateIndex.DEFAULT_ACCESS_POINT_SPACING);
+	}
+
+	/**
+	 * Build an index for the gzip compressed file. This decompresses the entire
+	 * file once.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for reading by this method.
+	 * @param f The gzip compressed file.
+	 * @param accessPointSpacing The minimum number of uncompressed bytes
+	 * between two access points. A smaller spacing makes random access faster,
+	 * but makes the index larger.
+	 * @return The index.
+	 * @throws WrappedIOException On I/O errors or if the file is not a valid,
+	 * single member gzip file.
+	 * @throws IllegalArgumentException If the access point spacing is not
+	 * positive.
+	 * @see #build(RandomlyAccessibleFile)
+	 */
+	public static GZipIndex build(RandomlyAccessibleFile f, long accessPointSpacing) throws WrappedIOException, IllegalArgumentException
+	{
+		Lock rl = f.lockForReading();
+		try
+		{
+			RandomAccess ra = f.openForRandomAccess(RandomAccessMode.READ_ONLY);
+			try
+			{
+				return build(ra, ra.length(), accessPointSpacing);
+			}
+			finally
+			{
+				ra.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			rl.unlock();
+		}
+	}
+
+	/**
+	 * Load an index that was saved with {@link #writeTo(WritableFile)}.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for reading by this method.
+	 * @param f The index file.
+	 * @return The index, or {@code null} if the file does not contain a valid
+	 * index.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public static GZipIndex load(ReadableFile f) throws WrappedIOException
+	{
+		Lock rl = f.lockForReading();
+		try
+		{
+			CRC32 crc = new CRC32();
+			DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(f.openForRead()), crc));
+			try
+			{
+				byte[] magic = new byte[MAGIC.length];
+				in.readFully(magic);
+				if (!Arrays.equals(MAGIC, magic) || (in.readInt() != VERSION))
+				{
+					return null;
+				}
+				long compressedSize = in.readLong();
+				long dataOffset = in.readLong();
+				if ((dataOffset < 10) || (dataOffset > compressedSize))
+				{
+					return null;
+				}
+				DeflateIndex deflateIndex = DeflateIndex.readFrom(in);
+				if ((deflateIndex == null) || (dataOffset + deflateIndex.getCompressedSize() > compressedSize))
+				{
+					return null;
+				}
+				int checksum = (int) crc.getValue();
+				if ((in.readInt() != checksum) || (in.read() != -1))
+				{
+					return null;
+				}
+				return new GZipIndex(compressedSize, dataOffset, deflateIndex);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (EOFException e)
+		{
+			// A truncated index
+			return null;
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			rl.unlock();
+		}
+	}
+
+	/**
+	 * Save the index to a file. The index can be loaded again using
+	 * {@link #load(ReadableFile)}.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for writing by this method.
+	 * @param f The file to write the index to. The previous contents of the
+	 * file is discarded.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public void writeTo(WritableFile f) throws WrappedIOException
+	{
+		Lock wl = f.lockForWriting();
+		try
+		{
+			CRC32 crc = new CRC32();
+			OutputStream os = f.openForWrite();
+			try
+			{
+				DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(os), crc));
+				out.write(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(m_compressedSize);
+				out.writeLong(m_dataOffset);
+				m_deflateIndex.writeTo(out);
+				out.writeInt((int) crc.getValue());
+				out.flush();
+			}
+			finally
+			{
+				os.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			wl.unlock();
+		}
+	}
+
+	/**
+	 * Get the size of the gzip file that this index was built for.
+	 * @return The size of the gzip file.
+	 */
+	public long getCompressedSize()
+	{
+		return m_compressedSize;
+	}
+
+	/**
+	 * Get the size of the uncompressed data.
+	 * @return The size of the uncompressed data.
+	 */
+	public long getUncompressedSize()
+	{
+		return m_deflateIndex.getUncompressedSize();
+	}
+
+	/**
+	 * Get the offset in the gzip file where the deflated data starts. This is
+	 * the length of the gzip header.
+	 * @return The offset of the deflated data.
+	 */
+	public long getDataOffset()
+	{
+		return m_dataOffset;
+	}
+
+	/**
+	 * Get the index over the deflated data.
+	 * @return The index over the deflated data.
+	 */
+	public DeflateIndex getDeflateIndex()
+	{
+		return m_deflateIndex;
+	}
+}
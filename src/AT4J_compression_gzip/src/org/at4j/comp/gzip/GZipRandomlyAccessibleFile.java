@@ -0,0 +1,254 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.gzip;
+
+import java.io.IOException;
+
+import org.at4j.support.comp.DeflateIndex;
+import org.at4j.support.comp.DeflatedRandomAccess;
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomlyAccessibleFile;
+import org.entityfs.exception.LockTimeoutException;
+import org.entityfs.exception.ReadOnlyException;
+import org.entityfs.lock.EntityLock;
+import org.entityfs.lock.ReadLockRequiredException;
+import org.entityfs.security.AccessDeniedException;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.io.RangeRandomAccess;
+
+/**
+ * This is a {@link RandomlyAccessibleFile} that gives read only random access to
+ * the uncompressed contents of a gzip compressed file. It can for instance be
+ * used to open a {@code .tar.gz} file as a {@link org.at4j.tar.TarFile}.
+ * <p>
+ * Deflated data cannot be decompressed from an arbitrary position without
+ * knowing the 32 kb of uncompressed data that precedes it. This object uses a
+ * {@link GZipIndex} with access points that record that data at regular
+ * intervals. When seeking to a position, it starts inflating at the closest
+ * access point before it. Seeking to a position and reading a small amount of
+ * data from it thus inflates at most one access point spacing of data,
+ * regardless of how large the file is.
+ * <p>
+ * If no index is supplied when the object is created, it is built the first
+ * time that the file is opened. This requires decompressing the entire file
+ * once. The index can be retrieved with {@link #getIndex()} and saved with
+ * {@link GZipIndex#writeTo(org.entityfs.WritableFile)}. If the size of the
+ * compressed file does not match the size recorded in the index, the index is
+ * considered stale and a new index is built.
+ * <p>
+ * Only gzip files with a single member are supported. See {@link GZipIndex}.
+ * <p>
+ * Locking is delegated to the adapted file. The file can only be opened in
+ * {@link RandomAccessMode#READ_ONLY} mode.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see GZipIndex
+ */
+public class GZipRandomlyAccessibleFile implements RandomlyAccessibleFile
+{
+	private final RandomlyAccessibleFile m_adapted;
+	private final long m_accessPointSpacing;
+	private final Object m_indexLock = new Object();
+	// This is null until the index is built
+	private GZipIndex m_index;
+
+	/**
+	 * Create a new adapter. The index is built the first time that the file is
+	 * opened.
+	 * @param adapted The adapted gzip compressed file.
+	 * @see #GZipRandomlyAccessibleFile(RandomlyAccessibleFile, GZipIndex)
+	 */
+	public GZipRandomlyAccessibleFile(RandomlyAccessibleFile adapted)
+	{
+		this(adapted, null);
+	}
+
+	/**
+	 * Create a new adapter that uses a previously built index.
+	 * @param adapted The adapted gzip compressed file.
+	 * @param index The index for the file, for instance loaded with
+	 * {@link GZipIndex#load(org.entityfs.ReadableFile)}. If this is
+	 * {@code null}, an index is built the first time that the file is opened.
+	 * @see #GZipRandomlyAccessibleFile(RandomlyAccessibleFile)
+	 */
+	public GZipRandomlyAccessibleFile(RandomlyAccessibleFile adapted, GZipIndex index)
+	{
+		this(adapted, index, DeflateIndex.DEFAULT_ACCESS_POINT_SPACING);
+	}
+
+	/**
+	 * Create a new adapter that uses a previously built index.
+	 * @param adapted The adapted gzip compressed file.
+	 * @param index The index for the file, for instance loaded with
+	 * {@link GZipIndex#load(org.entityfs.ReadableFile)}. If this is
+	 * {@code null}, an index is built the first time that the file is opened.
+	 * @param accessPointSpacing The access point spacing to use if this object
+	 * has to build a new index. A smaller spacing makes random access faster,
+	 * but makes the index use more memory.
+	 * @throws IllegalArgumentException If the access point spacing is not
+	 * positive.
+	 */
+	public GZipRandomlyAccessibleFile(RandomlyAccessibleFile adapted, GZipIndex index, long accessPointSpacing) throws IllegalArgumentException
+	{
+		// Null check
+		adapted.getClass();
+		if (accessPointSpacing <= 0)
+		{
+			throw new IllegalArgumentException("Invalid access point spacing " + accessPointSpacing + ". It must be positive");
+		}
+
+		m_adapted = adapted;
+		m_index = index;
+		m_accessPointSpacing = accessPointSpacing;
+	}
+
+	/**
+	 * Get the adapted, gzip compressed file.
+	 * @return The adapted file.
+	 */
+	public RandomlyAccessibleFile getAdaptedFile()
+	{
+		return m_adapted;
+	}
+
+	/**
+	 * Get the index for the gzip compressed data in the compressed random
+	 * access. If there is no valid index, one is built.
+	 */
+	private GZipIndex getIndex(RandomAccess compressed) throws IOException
+	{
+		synchronized (m_indexLock)
+		{
+			long compressedSize = compressed.length();
+			if ((m_index == null) || (m_index.getCompressedSize() != compressedSize))
+			{
+				m_index = GZipIndex.build(compressed, compressedSize, m_accessPointSpacing);
+			}
+			return m_index;
+		}
+	}
+
+	/**
+	 * Get the index for the file. If no index has been built yet, it is built
+	 * by this method. This requires decompressing the entire file.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, the calling
+	 * thread must have a read lock on it.
+	 * @return The index.
+	 * @throws ReadLockRequiredException If the file is in a locking file system
+	 * and the calling thread does not have a read lock on it.
+	 * @throws WrappedIOException On I/O errors or if the file is not a valid,
+	 * single member gzip file.
+	 */
+	public GZipIndex getIndex() throws ReadLockRequiredException, WrappedIOException
+	{
+		RandomAccess compressed = m_adapted.openForRandomAccess(RandomAccessMode.READ_ONLY);
+		try
+		{
+			return getIndex(compressed);
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			compressed.close();
+		}
+	}
+
+	/**
+	 * Open the file for random access. If no index has been built for the
+	 * file yet, it is built by this method.
+	 * @param mode The mode to open the file in. This must be
+	 * {@link RandomAccessMode#READ_ONLY}.
+	 * @return A read only {@link RandomAccess} on the uncompressed data.
+	 * @throws ReadOnlyException If {@code mode} is not
+	 * {@link RandomAccessMode#READ_ONLY}.
+	 * @throws ReadLockRequiredException If the file is in a locking file system
+	 * and the calling thread does not have a read lock on it.
+	 * @throws WrappedIOException On I/O errors or if the file is not a valid,
+	 * single member gzip file.
+	 */
+	public RandomAccess openForRandomAccess(RandomAccessMode mode) throws ReadOnlyException, ReadLockRequiredException, AccessDeniedException, WrappedIOException
+	{
+		if (mode != RandomAccessMode.READ_ONLY)
+		{
+			throw new ReadOnlyException("A gzip compressed file can only be opened in read only mode. Not in " + mode);
+		}
+
+		RandomAccess compressed = m_adapted.openForRandomAccess(RandomAccessMode.READ_ONLY);
+		boolean successful = false;
+		try
+		{
+			GZipIndex index = getIndex(compressed);
+			DeflateIndex deflateIndex = index.getDeflateIndex();
+			long deflatedSize = deflateIndex.getCompressedSize();
+			// The DeflatedRandomAccess wants the deflated data to start at
+			// position 0. Closing it closes the range and the adapted random
+			// access.
+			RandomAccess deflated = new RangeRandomAccess(compressed, index.getDataOffset(), index.getDataOffset() + deflatedSize - 1);
+			RandomAccess res = new DeflatedRandomAccess(deflated, deflatedSize, deflateIndex.getUncompressedSize(), deflateIndex, deflateIndex.getAccessPointSpacing(), null, null);
+			successful = true;
+			return res;
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			if (!successful)
+			{
+				compressed.close();
+			}
+		}
+	}
+
+	public EntityLock getReadLock()
+	{
+		return m_adapted.getReadLock();
+	}
+
+	public boolean isReadLockedByCurrentThread() throws IllegalStateException
+	{
+		return m_adapted.isReadLockedByCurrentThread();
+	}
+
+	public EntityLock lockForReading() throws LockTimeoutException
+	{
+		return m_adapted.lockForReading();
+	}
+
+	public EntityLock getWriteLock()
+	{
+		return m_adapted.getWriteLock();
+	}
+
+	public boolean isWriteLockedByCurrentThread()
+	{
+		return m_adapted.isWriteLockedByCurrentThread();
+	}
+
+	public EntityLock lockForWriting() throws LockTimeoutException
+	{
+		return m_adapted.lockForWriting();
+	}
+}
@@ -0,0 +1,212 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.gzip;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.at4j.support.comp.ParallelDeflaterOutputStream;
+
+/**
+ * This stream gzip compresses the data written to it, deflating chunks of the
+ * data in parallel in the same way as <a href="http://www.zlib.net/pigz/">pigz</a>
+ * does. It is useful for speeding up the compression of large files on
+ * computers with several processors.
+ * <p>
+ * The written data is a standard, single member gzip file that can be read by
+ * any gzip program or by Java's {@link java.util.zip.GZIPInputStream}. The
+ * deflating is done by a {@link ParallelDeflaterOutputStream}, see its
+ * documentation for details. The CRC checksum for the gzip trailer is
+ * calculated by the thread writing to this stream.
+ * <p>
+ * The stream uses {@code chunkSize * (maxPendingChunks + 2)} bytes of memory
+ * for buffers.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see ParallelGZipWritableFile
+ */
+public final class ParallelGZipOutputStream extends OutputStream
+{
+	/**
+	 * The default compression level, 6. This is the same as for the {@code gzip}
+	 * program.
+	 */
+	public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+	/**
+	 * The default chunk size, 128 kilobytes.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+
+	/**
+	 * This stream does not close the proxied stream when it is closed. The
+	 * gzip trailer is written to the proxied stream after the deflater stream
+	 * has been closed.
+	 */
+	private static final class DontCloseOutputStream extends FilterOutputStream
+	{
+		private DontCloseOutputStream(OutputStream proxied)
+		{
+			super(proxied);
+		}
+
+		@Override
+		public void write(byte[] barr, int off, int len) throws IOException
+		{
+			out.write(barr, off, len);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+
+	private final OutputStream m_out;
+	private final ParallelDeflaterOutputStream m_deflater;
+	private final CRC32 m_crc = new CRC32();
+	private long m_uncompressedSize;
+	private boolean m_closed;
+
+	/**
+	 * Create a parallel gzip stream that uses the default compression level
+	 * and the default chunk size. The number of chunks that are compressed at
+	 * the same time is limited to twice the number of available processors.
+	 * @param out The stream to write the gzip compressed data to. It is closed
+	 * when this stream is closed.
+	 * @param executor The executor that compresses the chunks.
+	 * @throws IOException If the gzip header cannot be written.
+	 */
+	public ParallelGZipOutputStream(OutputStream out, Executor executor) throws IOException
+	{
+		this(out, DEFAULT_COMPRESSION_LEVEL, executor, DEFAULT_CHUNK_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a parallel gzip stream.
+	 * @param out The stream to write the gzip compressed data to. It is closed
+	 * when this stream is closed.
+	 * @param level The compression level, between {@code 1} (fastest) and
+	 * {@code 9} (best compression).
+	 * @param executor The executor that compresses the chunks.
+	 * @param chunkSize The size of each chunk of uncompressed data. It must be
+	 * at least {@link ParallelDeflaterOutputStream#DICTIONARY_SIZE} bytes.
+	 * @param maxPendingChunks The maximum number of chunks that are compressed
+	 * or wait to be written at the same time. This should be at least the
+	 * number of threads used by the executor.
+	 * @throws IOException If the gzip header cannot be written.
+	 * @throws IllegalArgumentException If the compression level, the chunk size
+	 * or the maximum number of pending chunks are invalid.
+	 */
+	public ParallelGZipOutputStream(OutputStream out, int level, Executor executor, int chunkSize, int maxPendingChunks) throws IOException, IllegalArgumentException
+	{
+		// Null check
+		out.getClass();
+		if ((level < Deflater.BEST_SPEED) || (level > Deflater.BEST_COMPRESSION))
+		{
+			throw new IllegalArgumentException("Invalid compression level " + level + ". It must be between 1 and 9");
+		}
+
+		m_deflater = new ParallelDeflaterOutputStream(new DontCloseOutputStream(out), level, executor, chunkSize, maxPendingChunks);
+		m_out = out;
+
+		// The extra flags field tells if the best compression (2) or the
+		// fastest compression (4) was used.
+		int xfl = level == Deflater.BEST_COMPRESSION ? 2 : (level == Deflater.BEST_SPEED ? 4 : 0);
+		// Magic bytes, the deflate compression method, no flags, no time of
+		// last modification, the extra flags and an unknown operating system.
+		m_out.write(new byte[] { 0x1F, (byte) 0x8B, 8, 0, 0, 0, 0, 0, (byte) xfl, (byte) 255 });
+	}
+
+	private void assertNotClosed() throws IOException
+	{
+		if (m_closed)
+		{
+			throw new IOException("The stream is closed");
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] barr, int off, int len) throws IOException
+	{
+		assertNotClosed();
+		m_deflater.write(barr, off, len);
+		m_crc.update(barr, off, len);
+		m_uncompressedSize += len;
+	}
+
+	/**
+	 * Write all chunks that have been compressed and then flush the
+	 * underlying stream. Data in the chunk that is currently being filled is
+	 * not compressed until the chunk is full or until this stream is closed.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		assertNotClosed();
+		m_deflater.flush();
+	}
+
+	private static void writeLittleEndianInt(byte[] barr, int off, long l)
+	{
+		barr[off] = (byte) l;
+		barr[off + 1] = (byte) (l >>> 8);
+		barr[off + 2] = (byte) (l >>> 16);
+		barr[off + 3] = (byte) (l >>> 24);
+	}
+
+	/**
+	 * Compress the last chunk, write all pending chunks and the gzip trailer,
+	 * and close the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (!m_closed)
+		{
+			m_closed = true;
+			try
+			{
+				m_deflater.close();
+
+				// The trailer contains the CRC checksum and the uncompressed
+				// size modulo 2^32.
+				byte[] trailer = new byte[8];
+				writeLittleEndianInt(trailer, 0, m_crc.getValue());
+				writeLittleEndianInt(trailer, 4, m_uncompressedSize);
+				m_out.write(trailer);
+			}
+			finally
+			{
+				m_out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.gzip;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+
+import org.entityfs.WritableFile;
+import org.entityfs.exception.LockTimeoutException;
+import org.entityfs.exception.ReadOnlyException;
+import org.entityfs.lock.EntityLock;
+import org.entityfs.lock.WriteLockRequiredException;
+import org.entityfs.security.AccessDeniedException;
+import org.entityfs.support.exception.WrappedIOException;
+
+/**
+ * This is a {@link WritableFile} that transparently gzip compresses the data
+ * written to a file using a {@link ParallelGZipOutputStream}. The data is
+ * deflated in parallel chunks by the threads of an {@link Executor}.
+ * <p>
+ * This file cannot be appended to. The {@code openForAppend} methods throw an
+ * {@link UnsupportedOperationException}.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see org.entityfs.util.io.GZipWritableFile
+ * @see ParallelGZipOutputStream
+ */
+public class ParallelGZipWritableFile implements WritableFile
+{
+	private final WritableFile m_adapted;
+	private final int m_level;
+	private final Executor m_executor;
+	private final int m_chunkSize;
+	private final int m_maxPendingChunks;
+
+	/**
+	 * Create a new adapter that uses the default compression level and chunk
+	 * size. The number of chunks that are compressed at the same time is
+	 * limited to twice the number of available processors.
+	 * @param adapted The writable file to adapt.
+	 * @param executor The executor that compresses the chunks.
+	 */
+	public ParallelGZipWritableFile(WritableFile adapted, Executor executor)
+	{
+		this(adapted, ParallelGZipOutputStream.DEFAULT_COMPRESSION_LEVEL, executor, ParallelGZipOutputStream.DEFAULT_CHUNK_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a new adapter.
+	 * @param adapted The writable file to adapt.
+	 * @param level The compression level, between {@code 1} (fastest) and
+	 * {@code 9} (best compression).
+	 * @param executor The executor that compresses the chunks.
+	 * @param chunkSize The size of each chunk of uncompressed data.
+	 * @param maxPendingChunks The maximum number of chunks that are compressed
+	 * or wait to be written at the same time.
+	 * @see ParallelGZipOutputStream#ParallelGZipOutputStream(OutputStream, int,
+	 * Executor, int, int)
+	 */
+	public ParallelGZipWritableFile(WritableFile adapted, int level, Executor executor, int chunkSize, int maxPendingChunks)
+	{
+		// Null checks
+		adapted.getClass();
+		executor.getClass();
+
+		m_adapted = adapted;
+		m_level = level;
+		m_executor = executor;
+		m_chunkSize = chunkSize;
+		m_maxPendingChunks = maxPendingChunks;
+	}
+
+	/**
+	 * This method always throws an {@link UnsupportedOperationException}.
+	 * @throws UnsupportedOperationException Always.
+	 */
+	public WritableByteChannel openChannelForAppend() throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException("Appending to parallel gzip compressed files is not supported");
+	}
+
+	public WritableByteChannel openChannelForWrite() throws WriteLockRequiredException, AccessDeniedException, ReadOnlyException
+	{
+		return Channels.newChannel(openForWrite());
+	}
+
+	/**
+	 * This method always throws an {@link UnsupportedOperationException}.
+	 * @throws UnsupportedOperationException Always.
+	 */
+	public OutputStream openForAppend() throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException("Appending to parallel gzip compressed files is not supported");
+	}
+
+	public OutputStream openForWrite() throws WriteLockRequiredException, AccessDeniedException, ReadOnlyException
+	{
+		OutputStream os = m_adapted.openForWrite();
+		try
+		{
+			boolean successful = false;
+			try
+			{
+				OutputStream res = new ParallelGZipOutputStream(os, m_level, m_executor, m_chunkSize, m_maxPendingChunks);
+				successful = true;
+				return res;
+			}
+			finally
+			{
+				if (!successful)
+				{
+					os.close();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+	}
+
+	public EntityLock getWriteLock()
+	{
+		return m_adapted.getWriteLock();
+	}
+
+	public boolean isWriteLockedByCurrentThread()
+	{
+		return m_adapted.isWriteLockedByCurrentThread();
+	}
+
+	public EntityLock lockForWriting() throws LockTimeoutException
+	{
+		return m_adapted.lockForWriting();
+	}
+}
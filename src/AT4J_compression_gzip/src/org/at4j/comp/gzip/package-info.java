@@ -0,0 +1,30 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+/**
+ * This package contains the {@link org.at4j.comp.gzip.GZipRandomlyAccessibleFile}
+ * that gives random access to the uncompressed contents of a gzip compressed
+ * file, and the {@link org.at4j.comp.gzip.ParallelGZipOutputStream} and
+ * {@link org.at4j.comp.gzip.ParallelGZipWritableFile} that gzip compress data
+ * using several threads. Gzip compression and decompression is otherwise
+ * handled by Java's {@link java.util.zip.GZIPOutputStream} and
+ * {@link java.util.zip.GZIPInputStream}.
+ * @since 1.2
+ * @author Karl Gustafsson
+ */
+package org.at4j.comp.gzip;
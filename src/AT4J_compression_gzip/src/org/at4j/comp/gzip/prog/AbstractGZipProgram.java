@@ -26,11 +26,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import org.at4j.comp.gzip.ParallelGZipOutputStream;
 import org.at4j.comp.prog.AbstractStreamCompressionProgram;
 import org.at4j.comp.prog.IgnoreFileException;
+import org.at4j.support.prog.CommandErrorException;
 
 /**
  * Abstract base class for gzip compression programs.
@@ -39,6 +43,39 @@ import org.at4j.comp.prog.IgnoreFileException;
  */
 abstract class AbstractGZipProgram<T extends AbstractGZipProgramArguments> extends AbstractStreamCompressionProgram<T>
 {
+	// The executor that deflates chunks of all files that are compressed. It
+	// is created when it is first needed.
+	private ExecutorService m_deflaterExecutor;
+
+	private synchronized ExecutorService getDeflaterExecutor(int noThreads)
+	{
+		if (m_deflaterExecutor == null)
+		{
+			m_deflaterExecutor = Executors.newFixedThreadPool(noThreads);
+		}
+		return m_deflaterExecutor;
+	}
+
+	@Override
+	protected void run(String[] args) throws CommandErrorException, IOException
+	{
+		try
+		{
+			super.run(args);
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				if (m_deflaterExecutor != null)
+				{
+					m_deflaterExecutor.shutdown();
+					m_deflaterExecutor = null;
+				}
+			}
+		}
+	}
+
 	@Override
 	protected InputStream createInputStream(int sourceNo, T settings) throws IOException
 	{
@@ -90,7 +127,16 @@ abstract class AbstractGZipProgram<T extends AbstractGZipProgramArguments> exten
 			}
 			if (!settings.isDecompress())
 			{
-				os = new GZIPOutputStream(os);
+				if (settings.getNumberOfThreads() > 1)
+				{
+					// Deflate chunks of all files in parallel using a shared
+					// executor.
+					os = new ParallelGZipOutputStream(os, getDeflaterExecutor(settings.getNumberOfThreads()));
+				}
+				else
+				{
+					os = new GZIPOutputStream(os);
+				}
 			}
 			successful = true;
 			return os;
@@ -49,8 +49,10 @@ import org.entityfs.support.exception.WrappedIOException;
  *   --suffix suf
  *   -S suf    - Use the suffix &quot;suf&quot; instead of &quot;.gz&quot; for the compressed files.
  *   --threads no - Set the maximum number of threads to use for compressing.
- *               Different files may be compressed in different threads. The
- *               default number of threads is 1.
+ *               Different files may be compressed in different threads, and
+ *               chunks of each file are deflated in parallel by a shared pool
+ *               of this many threads, like pigz does. The default number of
+ *               threads is 1.
  *   --timing  - After building the archive, print out how long it took.
  * </pre>
  * @author Karl Gustafsson
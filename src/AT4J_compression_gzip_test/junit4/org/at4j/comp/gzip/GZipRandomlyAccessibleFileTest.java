@@ -0,0 +1,387 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.gzip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.at4j.test.support.At4JTestCase;
+import org.at4j.test.support.TestFileSupport;
+import org.entityfs.RandomAccess;
+import org.entityfs.ReadWritableFile;
+import org.entityfs.exception.ReadOnlyException;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.Files;
+import org.entityfs.util.io.GZipWritableFile;
+import org.entityfs.util.io.ReadWritableFileAdapter;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class GZipRandomlyAccessibleFileTest extends At4JTestCase
+{
+	/**
+	 * Use a small access point spacing to get several access points.
+	 */
+	private static final long ACCESS_POINT_SPACING = 50000;
+
+	private static byte[] createThreeCharAlphabetData(int len, Random r)
+	{
+		byte[] res = new byte[len];
+		for (int i = 0; i < len; i++)
+		{
+			res[i] = (byte) ('A' + r.nextInt(3));
+		}
+		return res;
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		GZIPOutputStream os = new GZIPOutputStream(bout);
+		os.write(data);
+		os.close();
+		return bout.toByteArray();
+	}
+
+	private ReadWritableFile createCompressedFile(byte[] data)
+	{
+		ReadWritableFile res = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		Files.writeData(new GZipWritableFile(res), data);
+		return res;
+	}
+
+	private void assertReadsData(GZipRandomlyAccessibleFile f, byte[] data, Random r)
+	{
+		RandomAccess ra = f.openForRandomAccess(RandomAccessMode.READ_ONLY);
+		try
+		{
+			assertEquals(data.length, ra.length());
+
+			// Read everything
+			byte[] barr = new byte[data.length];
+			int pos = 0;
+			while (pos < barr.length)
+			{
+				int noRead = ra.read(barr, pos, Math.min(50000, barr.length - pos));
+				assertTrue(noRead > 0);
+				pos += noRead;
+			}
+			assertTrue(Arrays.equals(data, barr));
+			assertEquals(-1, ra.read());
+
+			// Read chunks from random positions, backwards and forwards. Some
+			// of the chunks span access points.
+			for (int i = 0; i < 20 && data.length > 0; i++)
+			{
+				int start = r.nextInt(data.length);
+				int len = Math.min(r.nextInt(200000), data.length - start);
+				ra.seek(start);
+				byte[] chunk = new byte[len];
+				int noRead = 0;
+				while (noRead < len)
+				{
+					noRead += ra.read(chunk, noRead, len - noRead);
+				}
+				for (int j = 0; j < len; j++)
+				{
+					assertEquals(data[start + j], chunk[j]);
+				}
+				assertEquals(start + len, ra.getFilePointer());
+			}
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	@Test
+	public void testRandomAccess()
+	{
+		Random r = new Random(4711);
+		byte[] data = createThreeCharAlphabetData(450000, r);
+		ReadWritableFile f = createCompressedFile(data);
+		try
+		{
+			GZipRandomlyAccessibleFile gf = new GZipRandomlyAccessibleFile(f, null, ACCESS_POINT_SPACING);
+			assertReadsData(gf, data, r);
+
+			GZipIndex index = gf.getIndex();
+			assertTrue(index.getDeflateIndex().getNumberOfAccessPoints() > 3);
+			assertEquals(data.length, index.getUncompressedSize());
+			assertEquals(f.getSize(), index.getCompressedSize());
+			// The header written by Java's GZIPOutputStream is ten bytes long.
+			assertEquals(10L, index.getDataOffset());
+			// The eight bytes long trailer follows the deflated data
+			assertEquals(f.getSize() - 18L, index.getDeflateIndex().getCompressedSize());
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testHeaderWithOptionalFields() throws IOException
+	{
+		Random r = new Random(99);
+		byte[] data = createThreeCharAlphabetData(120000, r);
+		byte[] plain = gzip(data);
+
+		// Set the FHCRC, FEXTRA, FNAME and FCOMMENT flags and insert the
+		// fields after the ten bytes long header.
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		bout.write(plain, 0, 10);
+		bout.write(new byte[] { 3, 0, 'a', 'b', 'c' });
+		bout.write(new byte[] { 'f', '.', 't', 'x', 't', 0 });
+		bout.write(new byte[] { 'h', 'i', 0 });
+		bout.write(new byte[] { 0x12, 0x34 });
+		bout.write(plain, 10, plain.length - 10);
+		byte[] compressed = bout.toByteArray();
+		compressed[3] = 2 | 4 | 8 | 16;
+
+		ReadWritableFile f = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			Files.writeData(f, compressed);
+			GZipRandomlyAccessibleFile gf = new GZipRandomlyAccessibleFile(f, null, ACCESS_POINT_SPACING);
+			assertReadsData(gf, data, r);
+			assertEquals(10L + 5 + 6 + 3 + 2, gf.getIndex().getDataOffset());
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testSaveAndLoadIndex()
+	{
+		Random r = new Random(17);
+		byte[] data = createThreeCharAlphabetData(250000, r);
+		ReadWritableFile f = createCompressedFile(data);
+		ReadWritableFile indexFile = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			GZipIndex index = GZipIndex.build(f, ACCESS_POINT_SPACING);
+			index.writeTo(indexFile);
+
+			GZipIndex loaded = GZipIndex.load(indexFile);
+			assertNotNull(loaded);
+			assertEquals(index.getCompressedSize(), loaded.getCompressedSize());
+			assertEquals(index.getUncompressedSize(), loaded.getUncompressedSize());
+			assertEquals(index.getDataOffset(), loaded.getDataOffset());
+			assertEquals(index.getDeflateIndex().getCompressedSize(), loaded.getDeflateIndex().getCompressedSize());
+			assertEquals(index.getDeflateIndex().getAccessPointSpacing(), loaded.getDeflateIndex().getAccessPointSpacing());
+			assertEquals(index.getDeflateIndex().getNumberOfAccessPoints(), loaded.getDeflateIndex().getNumberOfAccessPoints());
+
+			GZipRandomlyAccessibleFile gf = new GZipRandomlyAccessibleFile(f, loaded);
+			assertReadsData(gf, data, r);
+			// The loaded index was used
+			assertSame(loaded, gf.getIndex());
+		}
+		finally
+		{
+			f.delete();
+			indexFile.delete();
+		}
+	}
+
+	@Test
+	public void testInvalidIndex()
+	{
+		ReadWritableFile f = createCompressedFile(createThreeCharAlphabetData(150000, new Random(1)));
+		ReadWritableFile indexFile = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			// Not an index
+			Files.writeText(indexFile, "This is not a gzip index");
+			assertNull(GZipIndex.load(indexFile));
+
+			// A truncated index
+			GZipIndex.build(f, ACCESS_POINT_SPACING).writeTo(indexFile);
+			byte[] indexData = Files.readBinaryFile(indexFile);
+			Files.writeData(indexFile, Arrays.copyOf(indexData, indexData.length - 6));
+			assertNull(GZipIndex.load(indexFile));
+
+			// A corrupt index
+			indexData[indexData.length - 100] ^= 1;
+			Files.writeData(indexFile, indexData);
+			assertNull(GZipIndex.load(indexFile));
+		}
+		finally
+		{
+			f.delete();
+			indexFile.delete();
+		}
+	}
+
+	@Test
+	public void testStaleIndex() throws IOException
+	{
+		Random r = new Random(42);
+		ReadWritableFile f = createCompressedFile(createThreeCharAlphabetData(150000, r));
+		try
+		{
+			GZipIndex index = GZipIndex.build(f, ACCESS_POINT_SPACING);
+
+			// Replace the file contents. (The GZipWritableFile appends data to
+			// the file, so it cannot be used here.)
+			byte[] data = createThreeCharAlphabetData(220000, r);
+			Files.writeData(f, gzip(data));
+
+			// The file has another size, so a new index is built
+			GZipRandomlyAccessibleFile gf = new GZipRandomlyAccessibleFile(f, index);
+			assertReadsData(gf, data, r);
+			assertEquals(data.length, gf.getIndex().getUncompressedSize());
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testEmptyFile()
+	{
+		ReadWritableFile f = createCompressedFile(new byte[0]);
+		try
+		{
+			GZipRandomlyAccessibleFile gf = new GZipRandomlyAccessibleFile(f);
+			RandomAccess ra = gf.openForRandomAccess(RandomAccessMode.READ_ONLY);
+			try
+			{
+				assertEquals(0L, ra.length());
+				assertEquals(-1, ra.read());
+			}
+			finally
+			{
+				ra.close();
+			}
+			assertEquals(0L, gf.getIndex().getUncompressedSize());
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testInvalidFiles() throws IOException
+	{
+		byte[] data = createThreeCharAlphabetData(10000, new Random(3));
+		byte[] compressed = gzip(data);
+		ReadWritableFile f = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			// Not a gzip file
+			Files.writeText(f, "This is not a gzip file");
+			assertBuildFails(f);
+
+			// A truncated trailer
+			Files.writeData(f, Arrays.copyOf(compressed, compressed.length - 3));
+			assertBuildFails(f);
+
+			// An invalid uncompressed size in the trailer
+			byte[] invalid = compressed.clone();
+			invalid[invalid.length - 4] ^= 1;
+			Files.writeData(f, invalid);
+			assertBuildFails(f);
+
+			// Two gzip members
+			byte[] twoMembers = Arrays.copyOf(compressed, compressed.length * 2);
+			System.arraycopy(compressed, 0, twoMembers, compressed.length, compressed.length);
+			Files.writeData(f, twoMembers);
+			assertBuildFails(f);
+
+			// Trailing zeroes are ignored
+			Files.writeData(f, Arrays.copyOf(compressed, compressed.length + 10));
+			assertReadsData(new GZipRandomlyAccessibleFile(f), data, new Random(4));
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+
+	private void assertBuildFails(ReadWritableFile f)
+	{
+		try
+		{
+			new GZipRandomlyAccessibleFile(f).openForRandomAccess(RandomAccessMode.READ_ONLY).close();
+			fail();
+		}
+		catch (WrappedIOException e)
+		{
+			// ok
+		}
+	}
+
+	@Test
+	public void testReadOnly()
+	{
+		ReadWritableFile f = createCompressedFile(new byte[] { 1, 2, 3 });
+		try
+		{
+			GZipRandomlyAccessibleFile gf = new GZipRandomlyAccessibleFile(f);
+			try
+			{
+				gf.openForRandomAccess(RandomAccessMode.READ_WRITE);
+				fail();
+			}
+			catch (ReadOnlyException e)
+			{
+				// ok
+			}
+
+			RandomAccess ra = gf.openForRandomAccess(RandomAccessMode.READ_ONLY);
+			try
+			{
+				ra.write(4);
+				fail();
+			}
+			catch (ReadOnlyException e)
+			{
+				// ok
+			}
+			finally
+			{
+				ra.close();
+			}
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+}
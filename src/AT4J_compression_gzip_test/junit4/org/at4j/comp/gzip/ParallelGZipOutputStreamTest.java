@@ -0,0 +1,234 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.comp.gzip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.at4j.test.support.At4JTestCase;
+import org.at4j.test.support.TestFileSupport;
+import org.entityfs.RandomAccess;
+import org.entityfs.ReadWritableFile;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.Files;
+import org.entityfs.util.io.ReadWritableFileAdapter;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class ParallelGZipOutputStreamTest extends At4JTestCase
+{
+	private static byte[] createThreeCharAlphabetData(int len, Random r)
+	{
+		byte[] res = new byte[len];
+		for (int i = 0; i < len; i++)
+		{
+			res[i] = (byte) ('A' + r.nextInt(3));
+		}
+		return res;
+	}
+
+	private static byte[] gunzip(byte[] compressed) throws IOException
+	{
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		InputStream is = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		try
+		{
+			byte[] buf = new byte[8192];
+			int noRead = is.read(buf);
+			while (noRead >= 0)
+			{
+				res.write(buf, 0, noRead);
+				noRead = is.read(buf);
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+		return res.toByteArray();
+	}
+
+	private static byte[] compress(byte[] data, int level, ExecutorService exec) throws IOException
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OutputStream os = new ParallelGZipOutputStream(bout, level, exec, 32768, 4);
+		// Write in pieces of different sizes
+		Random r = new Random(1);
+		int pos = 0;
+		while (pos < data.length)
+		{
+			int len = Math.min(r.nextInt(70000), data.length - pos);
+			if (len == 1)
+			{
+				os.write(data[pos]);
+			}
+			else
+			{
+				os.write(data, pos, len);
+			}
+			pos += len;
+		}
+		os.close();
+		return bout.toByteArray();
+	}
+
+	@Test
+	public void testCompress() throws IOException
+	{
+		ExecutorService exec = Executors.newFixedThreadPool(3);
+		try
+		{
+			Random r = new Random(4711);
+			for (int size : new int[] { 0, 1, 32767, 32768, 100000, 500000 })
+			{
+				byte[] data = createThreeCharAlphabetData(size, r);
+				for (int level : new int[] { 1, 6, 9 })
+				{
+					byte[] compressed = compress(data, level, exec);
+					assertTrue(Arrays.equals(data, gunzip(compressed)));
+					// The extra flags field
+					assertEquals(level == 9 ? 2 : (level == 1 ? 4 : 0), compressed[8]);
+				}
+			}
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+	}
+
+	@Test
+	public void testWritableFileAndRandomAccess() throws IOException
+	{
+		ExecutorService exec = Executors.newFixedThreadPool(2);
+		ReadWritableFile f = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			byte[] data = createThreeCharAlphabetData(400000, new Random(17));
+			Files.writeData(new ParallelGZipWritableFile(f, exec), data);
+			assertTrue(Arrays.equals(data, gunzip(Files.readBinaryFile(f))));
+
+			// The file is a single member gzip file with a valid trailer
+			GZipRandomlyAccessibleFile gf = new GZipRandomlyAccessibleFile(f, null, 50000);
+			RandomAccess ra = gf.openForRandomAccess(RandomAccessMode.READ_ONLY);
+			try
+			{
+				assertEquals(data.length, ra.length());
+				ra.seek(300000);
+				byte[] barr = new byte[1000];
+				int noRead = 0;
+				while (noRead < barr.length)
+				{
+					noRead += ra.read(barr, noRead, barr.length - noRead);
+				}
+				assertTrue(Arrays.equals(Arrays.copyOfRange(data, 300000, 301000), barr));
+			}
+			finally
+			{
+				ra.close();
+			}
+		}
+		finally
+		{
+			f.delete();
+			exec.shutdown();
+		}
+	}
+
+	@Test
+	public void testInvalidArguments() throws IOException
+	{
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try
+		{
+			try
+			{
+				new ParallelGZipOutputStream(new ByteArrayOutputStream(), 0, exec, 32768, 2);
+				fail();
+			}
+			catch (IllegalArgumentException e)
+			{
+				// ok
+			}
+			try
+			{
+				new ParallelGZipOutputStream(new ByteArrayOutputStream(), 6, exec, 32767, 2);
+				fail();
+			}
+			catch (IllegalArgumentException e)
+			{
+				// ok
+			}
+			try
+			{
+				new ParallelGZipOutputStream(new ByteArrayOutputStream(), 6, exec, 32768, 0);
+				fail();
+			}
+			catch (IllegalArgumentException e)
+			{
+				// ok
+			}
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+	}
+
+	@Test
+	public void testWriteAfterClose() throws IOException
+	{
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try
+		{
+			OutputStream os = new ParallelGZipOutputStream(new ByteArrayOutputStream(), exec);
+			os.close();
+			// Closing twice is ok
+			os.close();
+			try
+			{
+				os.write(1);
+				fail();
+			}
+			catch (IOException e)
+			{
+				// ok
+			}
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+	}
+}
@@ -45,4 +45,37 @@ public class GZipTest extends At4JTestCase
 			deleteTempDirectory(root);
 		}
 	}
+
+	@Test
+	public void testCompressAndDecompressWithThreads()
+	{
+		Directory root = createTempDirectory();
+		try
+		{
+			ReadableFile tf = getTestDataFile("the_complete_book_on_cheese.txt");
+			EFile f1 = Directories.newFile(root, "cheese1.txt");
+			Files.copyContents(tf, f1);
+			EFile f2 = Directories.newFile(root, "cheese2.txt");
+			Files.copyContents(tf, f2);
+
+			// Chunks of both files are deflated by a shared pool of threads.
+			GZip.main(new String[] { "--threads", "3", ECFileResolvableUtil.getFileObject(f1).getAbsolutePath(), ECFileResolvableUtil.getFileObject(f2).getAbsolutePath() });
+
+			assertFalse(Entities.isValid(f1));
+			assertFalse(Entities.isValid(f2));
+
+			EFile f1c = Directories.getFile(root, "cheese1.txt.gz");
+			EFile f2c = Directories.getFile(root, "cheese2.txt.gz");
+			assertTrue(Files.getSize(f1c) < Files.getSize(tf));
+
+			GUnzip.main(new String[] { "--threads", "2", ECFileResolvableUtil.getFileObject(f1c).getAbsolutePath(), ECFileResolvableUtil.getFileObject(f2c).getAbsolutePath() });
+
+			assertEquals(Files.readTextFile(tf), Files.readTextFile(Directories.getFile(root, "cheese1.txt")));
+			assertEquals(Files.readTextFile(tf), Files.readTextFile(Directories.getFile(root, "cheese2.txt")));
+		}
+		finally
+		{
+			deleteTempDirectory(root);
+		}
+	}
 }
@@ -16,7 +16,7 @@
 #                      to a file!
 #
 # Environment variables:
-#   JAVA_HOME     -- Should point to a version 5+ JDK.
+#   JAVA_HOME     -- Should point to a version 7+ JDK.
 #   FINDBUGS_HOME -- Should point to a Findbugs installation.
 #
 # The working directory when launching the script should be the root directory
@@ -49,9 +49,9 @@ def getApiLinks()
 		Schmant::ApiLink.new("org.apache.commons.compress.compressors.", "../api/index.html"),
 		Schmant::ApiLink.new("SevenZip.", "../api/index.html"),
 		Schmant::ApiLink.new("org.entityfs.", "http://entityfs.sourceforge.net/releases/current/api/index.html"),
-		Schmant::ApiLink.new("java.", "http://java.sun.com/j2se/1.5.0/docs/api/index.html"),
-		Schmant::ApiLink.new("javax.", "http://java.sun.com/j2se/1.5.0/docs/api/index.html"),
-		Schmant::ApiLink.new("org.xml.", "http://java.sun.com/j2se/1.5.0/docs/api/index.html")]
+		Schmant::ApiLink.new("java.", "http://docs.oracle.com/javase/7/docs/api/index.html"),
+		Schmant::ApiLink.new("javax.", "http://docs.oracle.com/javase/7/docs/api/index.html"),
+		Schmant::ApiLink.new("org.xml.", "http://docs.oracle.com/javase/7/docs/api/index.html")]
 
 	return res
 end
@@ -127,8 +127,8 @@ begin
 		setTarget(compileTargetDir).
 		setCompileTaskFactory(
 			Schmant::Jdk6JavacTF.new.
-				setTargetVersion("5").
-				setSourceCodeVersion("5")).create
+				setTargetVersion("1.7").
+				setSourceCodeVersion("1.7")).create
 	te.add(compileWorkspace)
 	
 	compileDep = compileWorkspace.getDependencyForTasksScheduledByThisTask
@@ -228,7 +228,7 @@ begin
 				Schmant::ExtStandardDocletDecorator.new.
 					setTarget(Schmant::Directories.newDirectory(distDocDir, "api")).
 					setAuthor(true).
-					addLink("http://java.sun.com/javase/6/docs/api/").
+					addLink("http://docs.oracle.com/javase/7/docs/api/").
 					addLink("http://entityfs.sourceforge.net/releases/current/api/").
 					setKeywords(true).
 					setDocTitle("AT4J version " + version + " Javadocs").
@@ -528,7 +528,7 @@ if $props.containsKey("linkValidation")
 					Schmant::HtmlLinkValidationTF.new.
 						setValidLinkCollection(vlc).
 					    addJavadocPackage("org.at4j").
-						addIgnorePattern("http://java.sun.com/javase/.*?/docs/api/.*")))
+						addIgnorePattern("http://docs.oracle.com/javase/.*?/docs/api/.*")))
 		
 		te.waitFor
 	ensure
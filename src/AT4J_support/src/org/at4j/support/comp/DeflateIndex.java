@@ -0,0 +1,249 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.comp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A deflate index contains access points into a deflated stream that makes it
+ * possible to start inflating the stream somewhere else than at its beginning.
+ * It is used for random access to deflated Zip entries and gzip files. This is
+ * the same technique that is used by the <i>zran</i> example program in the
+ * zlib distribution.
+ * <p>
+ * An access point is created at the start of a deflate block roughly every
+ * {@link #getAccessPointSpacing()} bytes of uncompressed data. Each access
+ * point contains the last 32 kilobytes of uncompressed data before it, since
+ * the data after the access point may refer back to it. An index thus uses
+ * about 32 kilobytes of memory per access point.
+ * <p>
+ * An index is built by inflating the entire stream once, using
+ * {@link #build(InputStream, long)}. It can be saved with
+ * {@link #writeTo(DataOutput)} and read again with {@link #readFrom(DataInput)}.
+ * <p>
+ * Deflate index objects are immutable.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see DeflateIndexCache
+ * @see DeflatedRandomAccess
+ */
+public final class DeflateIndex
+{
+	/**
+	 * The size of the deflate window, i.e. how far back in the uncompressed
+	 * data a deflated stream may refer.
+	 */
+	static final int WINDOW_SIZE = 32768;
+
+	/**
+	 * The default number of uncompressed bytes between two access points
+	 * (1 megabyte).
+	 */
+	public static final long DEFAULT_ACCESS_POINT_SPACING = 1024 * 1024;
+
+	private final long m_accessPointSpacing;
+	private final long m_compressedSize;
+	private final long m_uncompressedSize;
+	private final long[] m_uncompressedOffsets;
+	private final long[] m_compressedBitOffsets;
+	private final byte[][] m_windows;
+	private final long m_memorySize;
+
+	DeflateIndex(long accessPointSpacing, long compressedSize, long uncompressedSize, long[] uncompressedOffsets, long[] compressedBitOffsets, byte[][] windows)
+	{
+		m_accessPointSpacing = accessPointSpacing;
+		m_compressedSize = compressedSize;
+		m_uncompressedSize = uncompressedSize;
+		m_uncompressedOffsets = uncompressedOffsets;
+		m_compressedBitOffsets = compressedBitOffsets;
+		m_windows = windows;
+
+		long memorySize = 0;
+		for (byte[] window : windows)
+		{
+			memorySize += window.length + 16;
+		}
+		m_memorySize = memorySize;
+	}
+
+	/**
+	 * Build an index for a deflated stream by inflating it.
+	 * @param is The deflated stream. It is read until the end of the deflated
+	 * data. It is not closed by this method.
+	 * @param accessPointSpacing The minimum number of uncompressed bytes
+	 * between two access points. A smaller spacing makes random access faster,
+	 * but makes the index use more memory.
+	 * @return The index.
+	 * @throws IOException On I/O errors or if the deflated data is invalid.
+	 * @throws IllegalArgumentException If the access point spacing is not
+	 * positive.
+	 */
+	public static DeflateIndex build(InputStream is, long accessPointSpacing) throws IOException, IllegalArgumentException
+	{
+		if (accessPointSpacing <= 0)
+		{
+			throw new IllegalArgumentException("Invalid access point spacing " + accessPointSpacing + ". It must be positive");
+		}
+		return new DeflateIndexBuilder(is).build(accessPointSpacing);
+	}
+
+	/**
+	 * Read an index that was written with {@link #writeTo(DataOutput)}.
+	 * @param in The input to read from.
+	 * @return The index, or {@code null} if the data read is not a valid
+	 * index.
+	 * @throws IOException On I/O errors. If the input ends before the entire
+	 * index has been read, an {@link java.io.EOFException} is thrown.
+	 */
+	public static DeflateIndex readFrom(DataInput in) throws IOException
+	{
+		long accessPointSpacing = in.readLong();
+		long compressedSize = in.readLong();
+		long uncompressedSize = in.readLong();
+		int noAccessPoints = in.readInt();
+		if ((accessPointSpacing <= 0) || (compressedSize < 0) || (uncompressedSize < 0) || (noAccessPoints < 1) || (noAccessPoints > uncompressedSize / accessPointSpacing + 1))
+		{
+			return null;
+		}
+
+		long[] uncompressedOffsets = new long[noAccessPoints];
+		long[] compressedBitOffsets = new long[noAccessPoints];
+		byte[][] windows = new byte[noAccessPoints][];
+		for (int i = 0; i < noAccessPoints; i++)
+		{
+			uncompressedOffsets[i] = in.readLong();
+			compressedBitOffsets[i] = in.readLong();
+			int windowSize = in.readInt();
+			if ((windowSize < 0) || (windowSize > WINDOW_SIZE) || ((i > 0) && (uncompressedOffsets[i] <= uncompressedOffsets[i - 1])))
+			{
+				return null;
+			}
+			windows[i] = new byte[windowSize];
+			in.readFully(windows[i]);
+		}
+		return new DeflateIndex(accessPointSpacing, compressedSize, uncompressedSize, uncompressedOffsets, compressedBitOffsets, windows);
+	}
+
+	/**
+	 * Write the index. It can be read again with {@link #readFrom(DataInput)}.
+	 * The format is specific to AT4J.
+	 * @param out The output to write to.
+	 * @throws IOException On I/O errors.
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		out.writeLong(m_accessPointSpacing);
+		out.writeLong(m_compressedSize);
+		out.writeLong(m_uncompressedSize);
+		out.writeInt(m_uncompressedOffsets.length);
+		for (int i = 0; i < m_uncompressedOffsets.length; i++)
+		{
+			out.writeLong(m_uncompressedOffsets[i]);
+			out.writeLong(m_compressedBitOffsets[i]);
+			out.writeInt(m_windows[i].length);
+			out.write(m_windows[i]);
+		}
+	}
+
+	/**
+	 * Get the minimum number of uncompressed bytes between two access points.
+	 * @return The access point spacing.
+	 */
+	public long getAccessPointSpacing()
+	{
+		return m_accessPointSpacing;
+	}
+
+	/**
+	 * Get the size of the deflated data, including the partially used last
+	 * byte.
+	 * @return The size of the deflated data.
+	 */
+	public long getCompressedSize()
+	{
+		return m_compressedSize;
+	}
+
+	/**
+	 * Get the size of the uncompressed data.
+	 * @return The size of the uncompressed data.
+	 */
+	public long getUncompressedSize()
+	{
+		return m_uncompressedSize;
+	}
+
+	/**
+	 * Get the number of access points in the index. There is always at least
+	 * one access point, at the start of the data.
+	 * @return The number of access points.
+	 */
+	public int getNumberOfAccessPoints()
+	{
+		return m_uncompressedOffsets.length;
+	}
+
+	/**
+	 * Get the approximate number of bytes of memory used by the index.
+	 * @return The approximate memory size of the index.
+	 */
+	public long getMemorySize()
+	{
+		return m_memorySize;
+	}
+
+	/**
+	 * Get the index of the last access point at or before the position in the
+	 * uncompressed data.
+	 */
+	int findAccessPoint(long pos)
+	{
+		int res = Arrays.binarySearch(m_uncompressedOffsets, pos);
+		// If the position is not found, the binary search returns
+		// (-(insertion point) - 1)
+		return res >= 0 ? res : -res - 2;
+	}
+
+	long getUncompressedOffset(int accessPoint)
+	{
+		return m_uncompressedOffsets[accessPoint];
+	}
+
+	/**
+	 * Get the position, in bits, of the start of the deflate block at the
+	 * access point.
+	 */
+	long getCompressedBitOffset(int accessPoint)
+	{
+		return m_compressedBitOffsets[accessPoint];
+	}
+
+	/**
+	 * Get the uncompressed data before the access point. The returned array
+	 * must not be modified.
+	 */
+	byte[] getWindow(int accessPoint)
+	{
+		return m_windows[accessPoint];
+	}
+}
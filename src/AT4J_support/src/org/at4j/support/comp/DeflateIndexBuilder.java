@@ -0,0 +1,480 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.comp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This object inflates a deflated stream to build a {@link DeflateIndex} for
+ * it. It is a small inflater written in Java, since {@link java.util.zip.Inflater}
+ * does not tell where the deflate blocks start in the compressed data. The
+ * uncompressed data is not returned to the caller; only the last 32 kilobytes
+ * of it are kept for the access points' windows.
+ * <p>
+ * The implementation is based on Mark Adler's <i>puff</i> inflater. Huffman
+ * codes that are shorter than or as long as {@link #LOOKUP_BITS} bits are
+ * decoded using a lookup table.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class DeflateIndexBuilder
+{
+	private static final int WINDOW_SIZE = DeflateIndex.WINDOW_SIZE;
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+	private static final int MAX_BITS = 15;
+	private static final int LOOKUP_BITS = 9;
+	private static final int LOOKUP_MASK = (1 << LOOKUP_BITS) - 1;
+	private static final int MAX_LENGTH_CODES = 286;
+	private static final int MAX_DISTANCE_CODES = 30;
+	private static final int FIXED_LENGTH_CODES = 288;
+	private static final int END_OF_BLOCK = 256;
+
+	// Base lengths and extra bits for length codes 257..285
+	private static final int[] LENGTH_BASE = new int[] { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	private static final int[] LENGTH_EXTRA = new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+	// Base distances and extra bits for distance codes 0..29
+	private static final int[] DISTANCE_BASE = new int[] { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] DISTANCE_EXTRA = new int[] { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+	// The order of the code length code lengths in a dynamic block header
+	private static final int[] CODE_LENGTH_ORDER = new int[] { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+	private static final Huffman FIXED_LENGTH_CODE;
+	private static final Huffman FIXED_DISTANCE_CODE;
+
+	static
+	{
+		short[] lengths = new short[FIXED_LENGTH_CODES];
+		for (int i = 0; i < FIXED_LENGTH_CODES; i++)
+		{
+			lengths[i] = (short) (i < 144 ? 8 : (i < 256 ? 9 : (i < 280 ? 7 : 8)));
+		}
+		try
+		{
+			FIXED_LENGTH_CODE = new Huffman(lengths, 0, FIXED_LENGTH_CODES);
+
+			for (int i = 0; i < MAX_DISTANCE_CODES; i++)
+			{
+				lengths[i] = 5;
+			}
+			FIXED_DISTANCE_CODE = new Huffman(lengths, 0, MAX_DISTANCE_CODES);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException("Invalid fixed Huffman codes. This is a bug", e);
+		}
+	}
+
+	/**
+	 * A canonical Huffman code.
+	 */
+	private static final class Huffman
+	{
+		// The number of codes of each length
+		private final int[] m_count = new int[MAX_BITS + 1];
+		// The symbols, ordered by their codes
+		private final int[] m_symbol;
+		// Lookup table for the codes that are at most LOOKUP_BITS bits long,
+		// indexed by the next LOOKUP_BITS bits of input. Each entry is the
+		// symbol shifted four bits to the left, or:ed with the code length. An
+		// entry is 0 if the code is longer.
+		private final int[] m_lookup = new int[1 << LOOKUP_BITS];
+
+		private Huffman(short[] lengths, int offset, int n) throws IOException
+		{
+			m_symbol = new int[n];
+			for (int i = 0; i < n; i++)
+			{
+				m_count[lengths[offset + i]]++;
+			}
+			m_count[0] = 0;
+
+			// Check that the code is not over-subscribed. Incomplete codes are
+			// allowed.
+			int left = 1;
+			for (int len = 1; len <= MAX_BITS; len++)
+			{
+				left <<= 1;
+				left -= m_count[len];
+				if (left < 0)
+				{
+					throw new IOException("Invalid deflated data. Over-subscribed Huffman code");
+				}
+			}
+
+			// Offsets in the symbol table for each code length, and the first
+			// canonical code of each length.
+			int[] offs = new int[MAX_BITS + 1];
+			int[] nextCode = new int[MAX_BITS + 1];
+			int code = 0;
+			for (int len = 1; len <= MAX_BITS; len++)
+			{
+				if (len < MAX_BITS)
+				{
+					offs[len + 1] = offs[len] + m_count[len];
+				}
+				code = (code + m_count[len - 1]) << 1;
+				nextCode[len] = code;
+			}
+
+			for (int symbol = 0; symbol < n; symbol++)
+			{
+				int len = lengths[offset + symbol];
+				if (len != 0)
+				{
+					m_symbol[offs[len]++] = symbol;
+					int c = nextCode[len]++;
+					if (len <= LOOKUP_BITS)
+					{
+						// The codes are stored with the most significant bit
+						// first, but the bits are read least significant bit
+						// first. Reverse the code.
+						int reversed = 0;
+						for (int i = 0; i < len; i++)
+						{
+							reversed = (reversed << 1) | ((c >>> i) & 1);
+						}
+						for (int i = reversed; i < m_lookup.length; i += 1 << len)
+						{
+							m_lookup[i] = (symbol << 4) | len;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private final InputStream m_in;
+	private final byte[] m_inBuffer = new byte[65536];
+	private int m_inBufferPos;
+	private int m_inBufferLen;
+	// The number of bytes that have been moved to the bit buffer
+	private long m_noBytesConsumed;
+	private int m_bitBuffer;
+	private int m_bitCount;
+
+	// The last 32 kilobytes of the uncompressed data
+	private final byte[] m_window = new byte[WINDOW_SIZE];
+	private int m_windowPos;
+	// The number of uncompressed bytes
+	private long m_noBytesOut;
+
+	DeflateIndexBuilder(InputStream in)
+	{
+		// Null check
+		in.getClass();
+
+		m_in = in;
+	}
+
+	private int nextByte() throws IOException
+	{
+		if (m_inBufferPos == m_inBufferLen)
+		{
+			m_inBufferLen = m_in.read(m_inBuffer);
+			m_inBufferPos = 0;
+			if (m_inBufferLen <= 0)
+			{
+				m_inBufferLen = 0;
+				return -1;
+			}
+		}
+		m_noBytesConsumed++;
+		return m_inBuffer[m_inBufferPos++] & 0xFF;
+	}
+
+	/**
+	 * Fill the bit buffer with at least {@code n} bits, or with as many bits
+	 * as there are left in the input.
+	 */
+	private void fillBits(int n) throws IOException
+	{
+		while (m_bitCount < n)
+		{
+			int b = nextByte();
+			if (b < 0)
+			{
+				return;
+			}
+			m_bitBuffer |= b << m_bitCount;
+			m_bitCount += 8;
+		}
+	}
+
+	private int bits(int n) throws IOException
+	{
+		fillBits(n);
+		if (m_bitCount < n)
+		{
+			throw new IOException("Unexpected end of deflated data");
+		}
+		int res = m_bitBuffer & ((1 << n) - 1);
+		m_bitBuffer >>>= n;
+		m_bitCount -= n;
+		return res;
+	}
+
+	/**
+	 * Get the position of the next unread bit in the compressed data.
+	 */
+	private long getBitPosition()
+	{
+		return m_noBytesConsumed * 8 - m_bitCount;
+	}
+
+	private void output(int b)
+	{
+		m_window[m_windowPos] = (byte) b;
+		m_windowPos = (m_windowPos + 1) & WINDOW_MASK;
+		m_noBytesOut++;
+	}
+
+	/**
+	 * Get a copy of the last 32 kilobytes of uncompressed data, or all
+	 * uncompressed data if there is less.
+	 */
+	private byte[] copyWindow()
+	{
+		int len = (int) Math.min(WINDOW_SIZE, m_noBytesOut);
+		byte[] res = new byte[len];
+		int start = (m_windowPos - len) & WINDOW_MASK;
+		int firstPart = Math.min(len, WINDOW_SIZE - start);
+		System.arraycopy(m_window, start, res, 0, firstPart);
+		System.arraycopy(m_window, 0, res, firstPart, len - firstPart);
+		return res;
+	}
+
+	private int decode(Huffman h) throws IOException
+	{
+		fillBits(LOOKUP_BITS);
+		if (m_bitCount >= LOOKUP_BITS)
+		{
+			int entry = h.m_lookup[m_bitBuffer & LOOKUP_MASK];
+			if (entry != 0)
+			{
+				int len = entry & 0xF;
+				m_bitBuffer >>>= len;
+				m_bitCount -= len;
+				return entry >>> 4;
+			}
+		}
+
+		// Decode the code one bit at a time
+		int code = 0;
+		int first = 0;
+		int index = 0;
+		for (int len = 1; len <= MAX_BITS; len++)
+		{
+			code |= bits(1);
+			int count = h.m_count[len];
+			if (code - count < first)
+			{
+				return h.m_symbol[index + (code - first)];
+			}
+			index += count;
+			first += count;
+			first <<= 1;
+			code <<= 1;
+		}
+		throw new IOException("Invalid deflated data. Invalid Huffman code");
+	}
+
+	private void inflateStoredBlock() throws IOException
+	{
+		// Skip to the next byte boundary
+		bits(m_bitCount & 7);
+		int len = bits(16);
+		int nlen = bits(16);
+		if (len != (~nlen & 0xFFFF))
+		{
+			throw new IOException("Invalid deflated data. Stored block length " + len + " does not match its complement");
+		}
+		for (int i = 0; i < len; i++)
+		{
+			output(bits(8));
+		}
+	}
+
+	private void inflateCodes(Huffman lengthCode, Huffman distanceCode) throws IOException
+	{
+		int symbol = decode(lengthCode);
+		while (symbol != END_OF_BLOCK)
+		{
+			if (symbol < END_OF_BLOCK)
+			{
+				output(symbol);
+			}
+			else
+			{
+				symbol -= END_OF_BLOCK + 1;
+				if (symbol >= LENGTH_BASE.length)
+				{
+					throw new IOException("Invalid deflated data. Invalid length code");
+				}
+				int len = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+				symbol = decode(distanceCode);
+				if (symbol >= MAX_DISTANCE_CODES)
+				{
+					throw new IOException("Invalid deflated data. Invalid distance code");
+				}
+				int dist = DISTANCE_BASE[symbol] + bits(DISTANCE_EXTRA[symbol]);
+				if (dist > m_noBytesOut)
+				{
+					throw new IOException("Invalid deflated data. Distance " + dist + " is too far back");
+				}
+				for (int i = 0; i < len; i++)
+				{
+					output(m_window[(m_windowPos - dist) & WINDOW_MASK]);
+				}
+			}
+			symbol = decode(lengthCode);
+		}
+	}
+
+	private void inflateDynamicBlock() throws IOException
+	{
+		int nlen = bits(5) + 257;
+		int ndist = bits(5) + 1;
+		int ncode = bits(4) + 4;
+		if ((nlen > MAX_LENGTH_CODES) || (ndist > MAX_DISTANCE_CODES))
+		{
+			throw new IOException("Invalid deflated data. Bad dynamic block code counts");
+		}
+
+		short[] lengths = new short[MAX_LENGTH_CODES + MAX_DISTANCE_CODES];
+		for (int i = 0; i < ncode; i++)
+		{
+			lengths[CODE_LENGTH_ORDER[i]] = (short) bits(3);
+		}
+		Huffman codeLengthCode = new Huffman(lengths, 0, CODE_LENGTH_ORDER.length);
+
+		int index = 0;
+		while (index < nlen + ndist)
+		{
+			int symbol = decode(codeLengthCode);
+			if (symbol < 16)
+			{
+				lengths[index++] = (short) symbol;
+			}
+			else
+			{
+				short len = 0;
+				int repeat;
+				if (symbol == 16)
+				{
+					if (index == 0)
+					{
+						throw new IOException("Invalid deflated data. Repeated length with no previous length");
+					}
+					len = lengths[index - 1];
+					repeat = 3 + bits(2);
+				}
+				else if (symbol == 17)
+				{
+					repeat = 3 + bits(3);
+				}
+				else
+				{
+					repeat = 11 + bits(7);
+				}
+				if (index + repeat > nlen + ndist)
+				{
+					throw new IOException("Invalid deflated data. Too many lengths");
+				}
+				for (int i = 0; i < repeat; i++)
+				{
+					lengths[index++] = len;
+				}
+			}
+		}
+
+		if (lengths[END_OF_BLOCK] == 0)
+		{
+			throw new IOException("Invalid deflated data. No end of block code");
+		}
+
+		inflateCodes(new Huffman(lengths, 0, nlen), new Huffman(lengths, nlen, ndist));
+	}
+
+	/**
+	 * Inflate the entire stream and build an index for it.
+	 * @param accessPointSpacing The minimum number of uncompressed bytes
+	 * between two access points.
+	 * @return The index.
+	 * @throws IOException On I/O errors or if the deflated data is invalid.
+	 */
+	DeflateIndex build(long accessPointSpacing) throws IOException
+	{
+		List<Long> uncompressedOffsets = new ArrayList<Long>();
+		List<Long> compressedBitOffsets = new ArrayList<Long>();
+		List<byte[]> windows = new ArrayList<byte[]>();
+
+		// There is always an access point at the start of the data
+		uncompressedOffsets.add(Long.valueOf(0L));
+		compressedBitOffsets.add(Long.valueOf(0L));
+		windows.add(new byte[0]);
+		long lastAccessPoint = 0L;
+
+		boolean lastBlock;
+		do
+		{
+			// An access point can only be created at the start of a block
+			if (m_noBytesOut - lastAccessPoint >= accessPointSpacing)
+			{
+				uncompressedOffsets.add(Long.valueOf(m_noBytesOut));
+				compressedBitOffsets.add(Long.valueOf(getBitPosition()));
+				windows.add(copyWindow());
+				lastAccessPoint = m_noBytesOut;
+			}
+
+			lastBlock = bits(1) == 1;
+			int type = bits(2);
+			switch (type)
+			{
+				case 0:
+					inflateStoredBlock();
+					break;
+				case 1:
+					inflateCodes(FIXED_LENGTH_CODE, FIXED_DISTANCE_CODE);
+					break;
+				case 2:
+					inflateDynamicBlock();
+					break;
+				default:
+					throw new IOException("Invalid deflated data. Invalid block type " + type);
+			}
+		}
+		while (!lastBlock);
+
+		int n = uncompressedOffsets.size();
+		long[] uos = new long[n];
+		long[] cbos = new long[n];
+		for (int i = 0; i < n; i++)
+		{
+			uos[i] = uncompressedOffsets.get(i).longValue();
+			cbos[i] = compressedBitOffsets.get(i).longValue();
+		}
+		// The size of the compressed data includes the partially used last
+		// byte.
+		long compressedSize = (getBitPosition() + 7) >>> 3;
+		return new DeflateIndex(accessPointSpacing, compressedSize, m_noBytesOut, uos, cbos, windows.toArray(new byte[n][]));
+	}
+}
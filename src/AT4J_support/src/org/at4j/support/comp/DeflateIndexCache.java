@@ -0,0 +1,155 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.comp;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This is a cache for {@link DeflateIndex} objects, so that an index does not
+ * have to be rebuilt each time deflated data is opened for random access. For
+ * instance, each Zip file object has its own cache for the indexes of its
+ * deflated entries.
+ * <p>
+ * The cache is bounded by the memory used by the indexes in it. When it is
+ * full, the least recently used indexes are evicted. Indexes that are larger
+ * than the cache are not cached.
+ * <p>
+ * This object is safe to use concurrently from several threads.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see DeflateIndex
+ */
+public class DeflateIndexCache
+{
+	/**
+	 * The default maximum memory size of the indexes in a cache (64
+	 * megabytes).
+	 */
+	public static final long DEFAULT_MAX_MEMORY_SIZE = 64 * 1024 * 1024;
+
+	private final long m_maxMemorySize;
+	// Access ordered, so the first entry is the least recently used
+	private final Map<Object, DeflateIndex> m_indexes = new LinkedHashMap<Object, DeflateIndex>(16, 0.75f, true);
+	private long m_memorySize;
+
+	/**
+	 * Create a cache with the default maximum memory size.
+	 */
+	public DeflateIndexCache()
+	{
+		this(DEFAULT_MAX_MEMORY_SIZE);
+	}
+
+	/**
+	 * Create a cache.
+	 * @param maxMemorySize The maximum memory size of the indexes in the cache,
+	 * in bytes. If this is {@code 0}, no indexes are cached.
+	 * @throws IllegalArgumentException If the size is negative.
+	 */
+	public DeflateIndexCache(long maxMemorySize) throws IllegalArgumentException
+	{
+		if (maxMemorySize < 0)
+		{
+			throw new IllegalArgumentException("Invalid maximum memory size " + maxMemorySize);
+		}
+		m_maxMemorySize = maxMemorySize;
+	}
+
+	/**
+	 * Get the maximum memory size of the indexes in the cache.
+	 * @return The maximum memory size, in bytes.
+	 */
+	public long getMaxMemorySize()
+	{
+		return m_maxMemorySize;
+	}
+
+	/**
+	 * Get the cached index for the key.
+	 * @param key The key. For Zip entries, this is the position of the entry's
+	 * data in the Zip file.
+	 * @return The index, or {@code null} if it is not in the cache.
+	 */
+	public synchronized DeflateIndex get(Object key)
+	{
+		return m_indexes.get(key);
+	}
+
+	/**
+	 * Put an index in the cache. If the cache gets too large, the least
+	 * recently used indexes are evicted from it.
+	 * @param key The key.
+	 * @param index The index.
+	 */
+	public synchronized void put(Object key, DeflateIndex index)
+	{
+		// Null checks
+		key.getClass();
+		index.getClass();
+
+		if (index.getMemorySize() > m_maxMemorySize)
+		{
+			// Does not fit
+			return;
+		}
+
+		DeflateIndex old = m_indexes.put(key, index);
+		if (old != null)
+		{
+			m_memorySize -= old.getMemorySize();
+		}
+		m_memorySize += index.getMemorySize();
+
+		Iterator<DeflateIndex> itr = m_indexes.values().iterator();
+		while (m_memorySize > m_maxMemorySize)
+		{
+			m_memorySize -= itr.next().getMemorySize();
+			itr.remove();
+		}
+	}
+
+	/**
+	 * Get the number of indexes in the cache.
+	 * @return The number of indexes in the cache.
+	 */
+	public synchronized int size()
+	{
+		return m_indexes.size();
+	}
+
+	/**
+	 * Get the memory size of the indexes in the cache.
+	 * @return The memory size of the indexes in the cache, in bytes.
+	 */
+	public synchronized long getMemorySize()
+	{
+		return m_memorySize;
+	}
+
+	/**
+	 * Remove all indexes from the cache.
+	 */
+	public synchronized void clear()
+	{
+		m_indexes.clear();
+		m_memorySize = 0;
+	}
+}
@@ -0,0 +1,528 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.comp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Inflater;
+
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomAccessCloseObserver;
+import org.entityfs.exception.ReadOnlyException;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+
+/**
+ * This is a read only {@link RandomAccess} on the uncompressed data of raw
+ * deflated data, such as the data of a deflated Zip entry or of a gzip file.
+ * It uses a {@link DeflateIndex} to start inflating at the access point closest
+ * before the wanted position.
+ * <p>
+ * If no index is given to the constructor, it is not built until it is
+ * needed, i.e. until a client seeks backwards or far forwards in the data.
+ * Reading the data sequentially does not require an index.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public final class DeflatedRandomAccess implements RandomAccess
+{
+	/**
+	 * An input stream that reads the compressed data from a position in the
+	 * compressed {@link RandomAccess}. Closing it does not close the
+	 * {@code RandomAccess}.
+	 */
+	private final class CompressedDataInputStream extends InputStream
+	{
+		private long m_compressedPos;
+
+		private CompressedDataInputStream(long pos)
+		{
+			m_compressedPos = pos;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] barr = new byte[1];
+			return read(barr, 0, 1) > 0 ? barr[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] barr, int off, int len) throws IOException
+		{
+			if (m_compressedPos >= m_compressedSize)
+			{
+				return -1;
+			}
+			// The random access may have been used by another stream
+			m_compressed.seek(m_compressedPos);
+			int res = m_compressed.read(barr, off, (int) Math.min(len, m_compressedSize - m_compressedPos));
+			if (res > 0)
+			{
+				m_compressedPos += res;
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * This is used for writing the bits of the deflate blocks that are put
+	 * before an access point that is not at a byte boundary. Bits are written
+	 * least significant bit first.
+	 */
+	private static final class BitWriter
+	{
+		private final byte[] m_data = new byte[16];
+		private int m_noBits;
+
+		void write(int value, int noBits)
+		{
+			for (int i = 0; i < noBits; i++)
+			{
+				if (((value >>> i) & 1) != 0)
+				{
+					m_data[m_noBits >>> 3] |= 1 << (m_noBits & 7);
+				}
+				m_noBits++;
+			}
+		}
+
+		/**
+		 * Write an empty, non-final block using fixed Huffman codes. It is ten
+		 * bits long.
+		 */
+		void writeEmptyFixedBlock()
+		{
+			// BFINAL 0, BTYPE 01
+			write(0, 1);
+			write(1, 2);
+			// End of block, code 256 is seven zero bits
+			write(0, 7);
+		}
+
+		/**
+		 * Write an empty, non-final block using dynamic Huffman codes. It is 93
+		 * bits long.
+		 */
+		void writeEmptyDynamicBlock()
+		{
+			// BFINAL 0, BTYPE 10
+			write(0, 1);
+			write(2, 2);
+			// 257 literal/length codes, one distance code and 19 code length
+			// codes
+			write(0, 5);
+			write(0, 5);
+			write(15, 4);
+			// The code length code lengths. Only 18 (repeat zero) and 1 (code
+			// length 1) are used. 18 comes third in the list and 1 is the
+			// eighteenth.
+			for (int i = 0; i < 19; i++)
+			{
+				write(((i == 2) || (i == 17)) ? 1 : 0, 3);
+			}
+			// The code lengths. Code length symbol 1 has code 0 and 18 has
+			// code 1. 256 zeros (literals 0-255) are written as 138 + 118
+			// zeros.
+			write(1, 1);
+			write(138 - 11, 7);
+			write(1, 1);
+			write(118 - 11, 7);
+			// The end of block code 256 and the only distance code have the
+			// length 1.
+			write(0, 1);
+			write(0, 1);
+			// End of block.
+			write(0, 1);
+		}
+
+		int getNumberOfBits()
+		{
+			return m_noBits;
+		}
+
+		byte[] getData()
+		{
+			byte[] res = new byte[(m_noBits + 7) >>> 3];
+			System.arraycopy(m_data, 0, res, 0, res.length);
+			return res;
+		}
+	}
+
+	/**
+	 * Create the empty deflate blocks that are put before an access point that
+	 * starts {@code shift} bits into a byte. The blocks are {@code 8 * n +
+	 * shift} bits long, so that the bytes after the access point keep their
+	 * alignment. This is important for stored blocks, whose data starts at a
+	 * byte boundary. (zlib's {@code inflatePrime} is not available in
+	 * {@code java.util.zip}.)
+	 */
+	private static BitWriter createAlignmentBlocks(int shift)
+	{
+		BitWriter res = new BitWriter();
+		// Empty fixed blocks are ten bits long, i.e. two bits over a byte
+		// boundary. The empty dynamic block is 93 bits long, i.e. five bits
+		// over a byte boundary.
+		int noFixedBlocks;
+		if ((shift & 1) == 0)
+		{
+			noFixedBlocks = shift / 2;
+		}
+		else
+		{
+			res.writeEmptyDynamicBlock();
+			noFixedBlocks = ((shift + 8 - 5) % 8) / 2;
+		}
+		for (int i = 0; i < noFixedBlocks; i++)
+		{
+			res.writeEmptyFixedBlock();
+		}
+		assert (res.getNumberOfBits() & 7) == shift;
+		return res;
+	}
+
+	private final RandomAccess m_compressed;
+	private final long m_compressedSize;
+	private final long m_length;
+	private final long m_accessPointSpacing;
+	// These are null if no cache is used
+	private final DeflateIndexCache m_indexCache;
+	private final Object m_indexCacheKey;
+	private final List<RandomAccessCloseObserver> m_closeObservers = new ArrayList<RandomAccessCloseObserver>(1);
+
+	// This is null until the index is needed
+	private DeflateIndex m_index;
+	// The current inflating stream, or null
+	private InputStream m_stream;
+	// The position of m_stream in the uncompressed data
+	private long m_streamPos;
+	// The position of this object in the uncompressed data
+	private long m_pos;
+	private byte[] m_skipBuffer;
+	private boolean m_closed;
+
+	/**
+	 * Create a new random access object.
+	 * @param compressed A random access on the compressed data. Position
+	 * {@code 0} in it must be the start of the deflated data. It is closed when
+	 * this object is closed.
+	 * @param compressedSize The size of the compressed data.
+	 * @param uncompressedSize The size of the uncompressed data.
+	 * @param index The index to use, or {@code null} if it should be looked up
+	 * in the cache or built when needed.
+	 * @param accessPointSpacing The access point spacing used if an index is
+	 * built.
+	 * @param indexCache Cache for the index, or {@code null}.
+	 * @param indexCacheKey The key for the index in the cache, or {@code null}.
+	 */
+	public DeflatedRandomAccess(RandomAccess compressed, long compressedSize, long uncompressedSize, DeflateIndex index, long accessPointSpacing, DeflateIndexCache indexCache, Object indexCacheKey)
+	{
+		// Null check
+		compressed.getClass();
+
+		m_compressed = compressed;
+		m_compressedSize = compressedSize;
+		m_length = uncompressedSize;
+		m_index = index;
+		m_accessPointSpacing = index != null ? index.getAccessPointSpacing() : accessPointSpacing;
+		m_indexCache = indexCache;
+		m_indexCacheKey = indexCacheKey;
+		if ((m_index == null) && (indexCache != null))
+		{
+			m_index = indexCache.get(indexCacheKey);
+		}
+	}
+
+	private void assertNotClosed() throws IllegalStateException
+	{
+		if (m_closed)
+		{
+			throw new IllegalStateException("This object is closed");
+		}
+	}
+
+	private void closeStream() throws IOException
+	{
+		if (m_stream != null)
+		{
+			try
+			{
+				m_stream.close();
+			}
+			finally
+			{
+				m_stream = null;
+			}
+		}
+	}
+
+	private DeflateIndex getIndex() throws IOException
+	{
+		if (m_index == null)
+		{
+			// The index is built using the compressed random access, so the
+			// current stream cannot be used afterwards.
+			closeStream();
+			m_index = DeflateIndex.build(new CompressedDataInputStream(0L), m_accessPointSpacing);
+			if (m_indexCache != null)
+			{
+				m_indexCache.put(m_indexCacheKey, m_index);
+			}
+		}
+		return m_index;
+	}
+
+	/**
+	 * Open an inflating stream at the access point.
+	 */
+	private void openStream(DeflateIndex index, int accessPoint) throws IOException
+	{
+		closeStream();
+
+		long bitOffset = index.getCompressedBitOffset(accessPoint);
+		int shift = (int) (bitOffset & 7);
+		InputStream is;
+		if (shift == 0)
+		{
+			is = new CompressedDataInputStream(bitOffset >>> 3);
+		}
+		else
+		{
+			// Replace the bits before the access point in its first byte with
+			// empty deflate blocks.
+			byte[] prefix = createAlignmentBlocks(shift).getData();
+			m_compressed.seek(bitOffset >>> 3);
+			int b = m_compressed.read();
+			if (b < 0)
+			{
+				throw new IOException("Unexpected end of compressed data");
+			}
+			int mask = (1 << shift) - 1;
+			prefix[prefix.length - 1] = (byte) ((prefix[prefix.length - 1] & mask) | (b & ~mask));
+			is = new SequenceInputStream(new ByteArrayInputStream(prefix), new CompressedDataInputStream((bitOffset >>> 3) + 1));
+		}
+
+		Inflater inf = InflaterDeflaterPool.INSTANCE.borrowInflater();
+		byte[] window = index.getWindow(accessPoint);
+		if (window.length > 0)
+		{
+			inf.setDictionary(window);
+		}
+		m_stream = new PooledInflaterInputStream(is, inf);
+		m_streamPos = index.getUncompressedOffset(accessPoint);
+	}
+
+	/**
+	 * Open an inflating stream at the start of the data.
+	 */
+	private void openStreamAtStart() throws IOException
+	{
+		closeStream();
+		Inflater inf = InflaterDeflaterPool.INSTANCE.borrowInflater();
+		m_stream = new PooledInflaterInputStream(new CompressedDataInputStream(0L), inf);
+		m_streamPos = 0L;
+	}
+
+	/**
+	 * Make sure that there is an inflating stream at the current position.
+	 */
+	private void positionStream() throws IOException
+	{
+		// If the stream is a little before the wanted position, just skip
+		// forward.
+		if ((m_stream == null) || (m_streamPos > m_pos) || (m_pos - m_streamPos >= m_accessPointSpacing))
+		{
+			if ((m_index == null) && (m_stream == null) && (m_pos < m_accessPointSpacing))
+			{
+				// Don't build an index if the client reads from the start
+				openStreamAtStart();
+			}
+			else
+			{
+				DeflateIndex index = getIndex();
+				int accessPoint = index.findAccessPoint(m_pos);
+				if ((m_stream == null) || (m_streamPos > m_pos) || (index.getUncompressedOffset(accessPoint) > m_streamPos))
+				{
+					openStream(index, accessPoint);
+				}
+			}
+		}
+
+		// Skip forward
+		if (m_streamPos < m_pos)
+		{
+			if (m_skipBuffer == null)
+			{
+				m_skipBuffer = new byte[8192];
+			}
+			while (m_streamPos < m_pos)
+			{
+				int noRead = m_stream.read(m_skipBuffer, 0, (int) Math.min(m_skipBuffer.length, m_pos - m_streamPos));
+				if (noRead < 0)
+				{
+					throw new IOException("Unexpected end of deflated data at position " + m_streamPos);
+				}
+				m_streamPos += noRead;
+			}
+		}
+	}
+
+	public RandomAccessMode getMode()
+	{
+		return RandomAccessMode.READ_ONLY;
+	}
+
+	public void addCloseObserver(RandomAccessCloseObserver rao)
+	{
+		m_closeObservers.add(rao);
+	}
+
+	public long getFilePointer() throws IllegalStateException
+	{
+		assertNotClosed();
+		return m_pos;
+	}
+
+	public long length() throws IllegalStateException
+	{
+		assertNotClosed();
+		return m_length;
+	}
+
+	public void seek(long pos) throws IllegalStateException
+	{
+		assertNotClosed();
+		if (pos < 0)
+		{
+			throw new IllegalArgumentException("Invalid position " + pos);
+		}
+		// The stream is positioned when data is read
+		m_pos = pos;
+	}
+
+	public void setLength(long l) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("Deflated data is read only");
+	}
+
+	public int available() throws IllegalStateException
+	{
+		assertNotClosed();
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, m_length - m_pos));
+	}
+
+	public int read() throws IllegalStateException, WrappedIOException
+	{
+		byte[] barr = new byte[1];
+		return read(barr, 0, 1) > 0 ? barr[0] & 0xFF : -1;
+	}
+
+	public int read(byte[] barr) throws IllegalStateException, WrappedIOException
+	{
+		return read(barr, 0, barr.length);
+	}
+
+	public int read(byte[] barr, int off, int len) throws IllegalStateException, WrappedIOException
+	{
+		assertNotClosed();
+		if (m_pos >= m_length)
+		{
+			return -1;
+		}
+		else if (len == 0)
+		{
+			return 0;
+		}
+
+		try
+		{
+			positionStream();
+			// Never read past the end of the data. See the note in the
+			// PooledInflaterInputStream documentation.
+			int noRead = m_stream.read(barr, off, (int) Math.min(len, m_length - m_pos));
+			if (noRead < 0)
+			{
+				throw new IOException("Unexpected end of deflated data at position " + m_pos);
+			}
+			m_pos += noRead;
+			m_streamPos += noRead;
+			return noRead;
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+	}
+
+	public long skipBytes(long n) throws IllegalStateException
+	{
+		assertNotClosed();
+		long res = Math.max(0, Math.min(n, m_length - m_pos));
+		m_pos += res;
+		return res;
+	}
+
+	public void write(int b) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("Deflated data is read only");
+	}
+
+	public void write(byte[] barr) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("Deflated data is read only");
+	}
+
+	public void write(byte[] barr, int off, int len) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("Deflated data is read only");
+	}
+
+	public void flush()
+	{
+		// Nothing to do
+	}
+
+	public void close() throws WrappedIOException
+	{
+		if (!m_closed)
+		{
+			m_closed = true;
+			try
+			{
+				closeStream();
+			}
+			catch (IOException e)
+			{
+				throw new WrappedIOException(e);
+			}
+			finally
+			{
+				m_compressed.close();
+				for (RandomAccessCloseObserver rao : m_closeObservers)
+				{
+					rao.notifyClosed(this);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.comp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This is a bounded pool of {@link Inflater} and {@link Deflater} objects that
+ * is used by the deflate implementations in AT4J, such as the Zip
+ * {@code DeflatedCompressionMethod}. Each of those objects holds native zlib
+ * memory that is not released until the object is ended or garbage collected,
+ * so reusing them is cheaper than creating new objects for each Zip entry or
+ * stream.
+ * <p>
+ * Deflater objects are pooled per compression level. If a pool is full when
+ * an object is returned, the object is ended.
+ * <p>
+ * This object is safe to use concurrently from several threads.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public final class InflaterDeflaterPool
+{
+	/**
+	 * The maximum number of idle objects that is kept for each pool.
+	 */
+	public static final int MAX_POOL_SIZE = 16;
+
+	/**
+	 * The singleton instance.
+	 */
+	public static final InflaterDeflaterPool INSTANCE = new InflaterDeflaterPool();
+
+	private final LinkedList<Inflater> m_inflaters = new LinkedList<Inflater>();
+
+	// One pool for each compression level, 0 to 9.
+	private final List<LinkedList<Deflater>> m_deflaters;
+
+	private InflaterDeflaterPool()
+	{
+		m_deflaters = new ArrayList<LinkedList<Deflater>>(Deflater.BEST_COMPRESSION + 1);
+		for (int i = 0; i <= Deflater.BEST_COMPRESSION; i++)
+		{
+			m_deflaters.add(new LinkedList<Deflater>());
+		}
+	}
+
+	/**
+	 * Get an {@link Inflater} for inflating data without a zlib header.
+	 * @return An Inflater. It should be given back with
+	 * {@link #returnInflater(Inflater)} when the caller is done with it.
+	 */
+	public Inflater borrowInflater()
+	{
+		synchronized (m_inflaters)
+		{
+			if (!m_inflaters.isEmpty())
+			{
+				return m_inflaters.removeFirst();
+			}
+		}
+		return new Inflater(true);
+	}
+
+	/**
+	 * Return an {@link Inflater} to the pool. The Inflater is reset. It must
+	 * not be used by the caller after this.
+	 * @param inf The Inflater.
+	 */
+	public void returnInflater(Inflater inf)
+	{
+		inf.reset();
+		synchronized (m_inflaters)
+		{
+			if (m_inflaters.size() < MAX_POOL_SIZE)
+			{
+				m_inflaters.addFirst(inf);
+				return;
+			}
+		}
+		inf.end();
+	}
+
+	/**
+	 * Get a {@link Deflater} for deflating data without a zlib header.
+	 * @param level The compression level.
+	 * @return A Deflater. It should be given back with
+	 * {@link #returnDeflater(int, Deflater)} when the caller is done with it.
+	 */
+	public Deflater borrowDeflater(int level)
+	{
+		LinkedList<Deflater> pool = m_deflaters.get(level);
+		synchronized (pool)
+		{
+			if (!pool.isEmpty())
+			{
+				return pool.removeFirst();
+			}
+		}
+		return new Deflater(level, true);
+	}
+
+	/**
+	 * Return a {@link Deflater} to the pool. The Deflater is reset. It must not
+	 * be used by the caller after this.
+	 * @param level The compression level that the Deflater was borrowed with.
+	 * @param def The Deflater.
+	 */
+	public void returnDeflater(int level, Deflater def)
+	{
+		def.reset();
+		LinkedList<Deflater> pool = m_deflaters.get(level);
+		synchronized (pool)
+		{
+			if (pool.size() < MAX_POOL_SIZE)
+			{
+				pool.addFirst(def);
+				return;
+			}
+		}
+		def.end();
+	}
+
+	/**
+	 * Get the number of idle Inflater objects in the pool.
+	 * @return The number of idle Inflaters.
+	 */
+	public int getNumberOfIdleInflaters()
+	{
+		synchronized (m_inflaters)
+		{
+			return m_inflaters.size();
+		}
+	}
+
+	/**
+	 * Get the number of idle Deflater objects in the pool for the compression
+	 * level.
+	 * @param level The compression level.
+	 * @return The number of idle Deflaters.
+	 */
+	public int getNumberOfIdleDeflaters(int level)
+	{
+		LinkedList<Deflater> pool = m_deflaters.get(level);
+		synchronized (pool)
+		{
+			return pool.size();
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.comp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Deflater;
+/**
+ * This stream deflates the data written to it by splitting it into chunks and
+ * deflating the chunks in parallel, in the same way as <a
+ * href="http://www.zlib.net/pigz/">pigz</a> does.
+ * <p>
+ * Each chunk is deflated by its own {@link Deflater}, using the last 32
+ * kilobytes of the previous chunk as a preset dictionary. All chunks except
+ * the last one are ended with a sync flush, so that the compressed chunks can
+ * be concatenated into a single raw deflate stream that any inflater can
+ * read.
+ * <p>
+ * The compressed chunks are written to the wrapped stream in order by the
+ * thread writing to this stream. The number of chunks that are compressed or
+ * waiting to be written at the same time is limited. The stream uses
+ * {@code chunkSize * (maxPendingChunks + 2)} bytes of memory for buffers.
+ * <p>
+ * The stream writes raw deflated data, without a zlib or gzip header. It is
+ * used for Zip entries and for gzip files.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public final class ParallelDeflaterOutputStream extends OutputStream
+{
+	/**
+	 * The size of the deflate dictionary.
+	 */
+	public static final int DICTIONARY_SIZE = 32768;
+
+	private static final int OUTPUT_BUFFER_SIZE = 65536;
+
+	/**
+	 * Compresses one chunk.
+	 */
+	private static final class DeflateChunkCallable implements Callable<byte[]>
+	{
+		private final int m_level;
+		private final byte[] m_data;
+		private final int m_dataLen;
+		private final byte[] m_previousData;
+		private final int m_previousDataLen;
+		private final boolean m_last;
+
+		private DeflateChunkCallable(int level, byte[] data, int dataLen, byte[] previousData, int previousDataLen, boolean last)
+		{
+			m_level = level;
+			m_data = data;
+			m_dataLen = dataLen;
+			m_previousData = previousData;
+			m_previousDataLen = previousDataLen;
+			m_last = last;
+		}
+
+		public byte[] call()
+		{
+			ByteArrayOutputStream res = new ByteArrayOutputStream(m_dataLen / 2 + 64);
+			byte[] buf = new byte[OUTPUT_BUFFER_SIZE];
+			Deflater def = InflaterDeflaterPool.INSTANCE.borrowDeflater(m_level);
+			try
+			{
+				if (m_previousData != null)
+				{
+					int dictLen = Math.min(DICTIONARY_SIZE, m_previousDataLen);
+					def.setDictionary(m_previousData, m_previousDataLen - dictLen, dictLen);
+				}
+				def.setInput(m_data, 0, m_dataLen);
+				if (m_last)
+				{
+					def.finish();
+					while (!def.finished())
+					{
+						int noDeflated = def.deflate(buf);
+						res.write(buf, 0, noDeflated);
+					}
+				}
+				else
+				{
+					// Flush all output and align it to a byte boundary so that
+					// the output of the next chunk can be appended to it.
+					int noDeflated;
+					do
+					{
+						noDeflated = def.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+						res.write(buf, 0, noDeflated);
+					}
+					while (noDeflated == buf.length);
+				}
+			}
+			finally
+			{
+				InflaterDeflaterPool.INSTANCE.returnDeflater(m_level, def);
+			}
+			return res.toByteArray();
+		}
+	}
+
+	private final OutputStream m_out;
+	private final int m_level;
+	private final Executor m_executor;
+	private final int m_chunkSize;
+	private final int m_maxPendingChunks;
+	private final LinkedList<FutureTask<byte[]>> m_pendingChunks = new LinkedList<FutureTask<byte[]>>();
+
+	private byte[] m_chunk;
+	private int m_chunkLen;
+	private byte[] m_previousChunk;
+	private int m_previousChunkLen;
+	private boolean m_closed;
+
+	/**
+	 * Create a parallel deflating stream.
+	 * @param out The stream to write compressed data to. It is closed when
+	 * this stream is closed.
+	 * @param level The compression level, between {@code 0} and {@code 9}.
+	 * @param executor The executor that compresses the chunks.
+	 * @param chunkSize The size of each chunk. It must be at least
+	 * {@link #DICTIONARY_SIZE} bytes.
+	 * @param maxPendingChunks The maximum number of chunks that are being
+	 * compressed or are waiting to be written at the same time.
+	 * @throws IllegalArgumentException If the compression level, the chunk size
+	 * or the maximum number of pending chunks are invalid.
+	 */
+	public ParallelDeflaterOutputStream(OutputStream out, int level, Executor executor, int chunkSize, int maxPendingChunks) throws IllegalArgumentException
+	{
+		// Null checks
+		out.getClass();
+		executor.getClass();
+		if ((level < Deflater.NO_COMPRESSION) || (level > Deflater.BEST_COMPRESSION))
+		{
+			throw new IllegalArgumentException("Invalid compression level " + level + ". It must be between 0 and 9");
+		}
+		if (chunkSize < DICTIONARY_SIZE)
+		{
+			throw new IllegalArgumentException("Invalid chunk size " + chunkSize + ". It must be at least " + DICTIONARY_SIZE);
+		}
+		if (maxPendingChunks < 1)
+		{
+			throw new IllegalArgumentException("Invalid maximum number of pending chunks " + maxPendingChunks + ". It must be at least 1");
+		}
+
+		m_out = out;
+		m_level = level;
+		m_executor = executor;
+		m_chunkSize = chunkSize;
+		m_maxPendingChunks = maxPendingChunks;
+		m_chunk = new byte[chunkSize];
+	}
+
+	private void assertNotClosed() throws IOException
+	{
+		if (m_closed)
+		{
+			throw new IOException("The stream is closed");
+		}
+	}
+
+	private void writeChunk(FutureTask<byte[]> ft) throws IOException
+	{
+		byte[] compressed;
+		try
+		{
+			compressed = ft.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a chunk to be compressed");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			else if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			else
+			{
+				throw new RuntimeException(cause);
+			}
+		}
+		m_out.write(compressed);
+	}
+
+	private void submitChunk(boolean last) throws IOException
+	{
+		// Make room for the new chunk
+		while (m_pendingChunks.size() >= m_maxPendingChunks)
+		{
+			writeChunk(m_pendingChunks.removeFirst());
+		}
+
+		FutureTask<byte[]> ft = new FutureTask<byte[]>(new DeflateChunkCallable(m_level, m_chunk, m_chunkLen, m_previousChunk, m_previousChunkLen, last));
+		m_pendingChunks.addLast(ft);
+		m_executor.execute(ft);
+
+		// The chunk is used as the dictionary for the next chunk, so it cannot
+		// be reused.
+		m_previousChunk = m_chunk;
+		m_previousChunkLen = m_chunkLen;
+		m_chunk = last ? null : new byte[m_chunkSize];
+		m_chunkLen = 0;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] barr, int off, int len) throws IOException
+	{
+		assertNotClosed();
+		while (len > 0)
+		{
+			if (m_chunkLen == m_chunkSize)
+			{
+				submitChunk(false);
+			}
+			int noToCopy = Math.min(len, m_chunkSize - m_chunkLen);
+			System.arraycopy(barr, off, m_chunk, m_chunkLen, noToCopy);
+			m_chunkLen += noToCopy;
+			off += noToCopy;
+			len -= noToCopy;
+		}
+	}
+
+	/**
+	 * Write all chunks that have been compressed and then flush the
+	 * underlying stream. Data in the chunk that is currently being filled is
+	 * not compressed until the chunk is full or until this stream is closed.
+	 */
+	@Override
+	public void flush() throws IOException
+	{
+		assertNotClosed();
+		while ((!m_pendingChunks.isEmpty()) && m_pendingChunks.getFirst().isDone())
+		{
+			writeChunk(m_pendingChunks.removeFirst());
+		}
+		m_out.flush();
+	}
+
+	/**
+	 * Compress the last chunk, write all pending chunks and close the
+	 * underlying stream.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (!m_closed)
+		{
+			try
+			{
+				submitChunk(true);
+				while (!m_pendingChunks.isEmpty())
+				{
+					writeChunk(m_pendingChunks.removeFirst());
+				}
+			}
+			finally
+			{
+				m_closed = true;
+				m_previousChunk = null;
+				m_out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.comp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This stream inflates raw deflated data, i.e. deflated data without a zlib
+ * header, using an {@link Inflater} from the {@link InflaterDeflaterPool}. The
+ * Inflater is returned to the pool when the stream is closed, so the stream
+ * should always be closed.
+ * <p>
+ * <b>Note:</b> Never try to read more data than what is available in the
+ * stream. This <i>sometimes</i> causes Java's {@link InflaterInputStream} to
+ * throw an {@link java.io.EOFException} with the message "Unexpected end of
+ * ZLIB input stream". See <a
+ * href="http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4040920">this bug
+ * report</a>.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class PooledInflaterInputStream extends InflaterInputStream
+{
+	/**
+	 * The size of the input buffer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * This stream produces an extra 0 at the end of the data. That is needed
+	 * by the {@link Inflater} when inflating data without a zlib header. See
+	 * the Inflater documentation.
+	 */
+	private static class ExtraDummyByteAtTheEndStream extends FilterInputStream
+	{
+		private boolean m_haveReturnedDummyByte = false;
+
+		private ExtraDummyByteAtTheEndStream(InputStream proxied)
+		{
+			super(proxied);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int res = super.read();
+			if (res < 0)
+			{
+				if (m_haveReturnedDummyByte)
+				{
+					return res;
+				}
+				else
+				{
+					m_haveReturnedDummyByte = true;
+					return 0;
+				}
+			}
+			else
+			{
+				return res;
+			}
+		}
+
+		@Override
+		public int read(byte[] barr) throws IOException
+		{
+			return read(barr, 0, barr.length);
+		}
+
+		@Override
+		public int read(byte[] barr, int offset, int length) throws IOException
+		{
+			int res = super.read(barr, offset, length);
+			if (res < 0)
+			{
+				if (m_haveReturnedDummyByte)
+				{
+					return res;
+				}
+				else
+				{
+					m_haveReturnedDummyByte = true;
+					barr[offset] = 0;
+					return 1;
+				}
+			}
+			else
+			{
+				return res;
+			}
+		}
+	}
+
+	private boolean m_closed = false;
+
+	/**
+	 * Create a new inflating stream.
+	 * @param in The stream to read deflated data from.
+	 * @param inf An Inflater borrowed from {@link InflaterDeflaterPool#INSTANCE}
+	 * . It is returned to the pool when this stream is closed.
+	 */
+	public PooledInflaterInputStream(InputStream in, Inflater inf)
+	{
+		super(new ExtraDummyByteAtTheEndStream(in), inf, BUFFER_SIZE);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (!m_closed)
+		{
+			m_closed = true;
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				InflaterDeflaterPool.INSTANCE.returnInflater(inf);
+			}
+		}
+	}
+}
@@ -29,6 +29,9 @@ import org.entityfs.ostrat.OverwriteStrategy;
  * This is a {@link PotentialDirectory} that does not exist at the time when the
  * object is created. It is created by the first call to the
  * {@link #getDirectory()} method.
+ * <p>
+ * This object is thread safe. The directory is only created once even if
+ * several threads call {@link #getDirectory()} concurrently.
  * @author Karl Gustafsson
  * @since 1.0
  */
@@ -62,7 +65,7 @@ public final class FutureDirectory implements PotentialDirectory
 		m_lastModificationTime = lastModificationTime;
 	}
 
-	public Directory getDirectory()
+	public synchronized Directory getDirectory()
 	{
 		if (!m_hasCreatedDirectory)
 		{
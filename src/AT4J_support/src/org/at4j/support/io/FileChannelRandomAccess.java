@@ -0,0 +1,271 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.io;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomAccessCloseObserver;
+import org.entityfs.exception.UnexpectedEofException;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+
+/**
+ * This is a {@link RandomAccess} that is paired with a {@link FileChannel} on
+ * the same file. All {@code RandomAccess} methods are delegated to the wrapped
+ * {@code RandomAccess} object. The file channel is used by the
+ * {@link #transferTo(FileChannel, long)} and
+ * {@link #transferFrom(FileChannel, long, long)} methods to copy data directly
+ * between files using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * and {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}.
+ * This lets the operating system copy the data without moving it through a
+ * buffer on the Java heap, if it supports that.
+ * <p>
+ * The positions used by the file channel are absolute positions in the file.
+ * The file channel's own position is never used, so the file channel may be
+ * opened independently of the {@code RandomAccess} object.
+ * <p>
+ * Closing this object closes both the {@code RandomAccess} and the file
+ * channel.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class FileChannelRandomAccess implements RandomAccess
+{
+	private final RandomAccess m_randomAccess;
+	private final FileChannel m_channel;
+
+	/**
+	 * Create a new {@code RandomAccess} paired with a file channel.
+	 * @param ra The {@code RandomAccess} object to delegate to.
+	 * @param channel A file channel on the same file as the {@code
+	 * RandomAccess}. If the {@code RandomAccess} is opened for writing, the
+	 * channel must also be writable.
+	 */
+	public FileChannelRandomAccess(RandomAccess ra, FileChannel channel)
+	{
+		// Null checks
+		ra.getClass();
+		channel.getClass();
+
+		m_randomAccess = ra;
+		m_channel = channel;
+	}
+
+	/**
+	 * Get the file channel.
+	 * @return The file channel.
+	 */
+	public FileChannel getChannel()
+	{
+		return m_channel;
+	}
+
+	/**
+	 * Copy data from the current position of this object to the target file
+	 * channel, using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+	 * The data is written to the target channel's current position. When this
+	 * method returns, the positions of both this object and the target channel
+	 * have been advanced with the number of bytes copied.
+	 * @param target The target channel.
+	 * @param count The number of bytes to copy.
+	 * @return The number of bytes copied. This is less than {@code count} only
+	 * if the end of this file was reached.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public long transferTo(FileChannel target, long count) throws WrappedIOException
+	{
+		long pos = m_randomAccess.getFilePointer();
+		long noCopied = 0;
+		try
+		{
+			while (noCopied < count)
+			{
+				long noTransferred = m_channel.transferTo(pos + noCopied, count - noCopied, target);
+				if (noTransferred <= 0)
+				{
+					// End of file
+					break;
+				}
+				noCopied += noTransferred;
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		m_randomAccess.seek(pos + noCopied);
+		return noCopied;
+	}
+
+	/**
+	 * Copy data from the source file channel to the current position of this
+	 * object, using {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}.
+	 * When this method returns, the position of this object has been advanced
+	 * with the number of bytes copied.
+	 * @param src The source channel. Its position is set to {@code srcPos} and
+	 * is advanced with the number of bytes copied.
+	 * @param srcPos The position in the source channel to start copying from.
+	 * @param count The number of bytes to copy.
+	 * @return The number of bytes copied. This is less than {@code count} only
+	 * if the end of the source file was reached.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public long transferFrom(FileChannel src, long srcPos, long count) throws WrappedIOException
+	{
+		long pos = m_randomAccess.getFilePointer();
+		long noCopied = 0;
+		try
+		{
+			src.position(srcPos);
+			while (noCopied < count)
+			{
+				// This writes to an absolute position in this file and does not
+				// use the position of this object's file channel.
+				long noTransferred = m_channel.transferFrom(src, pos + noCopied, count - noCopied);
+				if (noTransferred <= 0)
+				{
+					// End of file
+					break;
+				}
+				noCopied += noTransferred;
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		m_randomAccess.seek(pos + noCopied);
+		return noCopied;
+	}
+
+	/**
+	 * Copy exactly {@code count} bytes from the current position of this
+	 * object to the target file channel.
+	 * @param target The target channel.
+	 * @param count The number of bytes to copy.
+	 * @throws UnexpectedEofException If the end of this file is reached before
+	 * all bytes have been copied.
+	 * @throws WrappedIOException On I/O errors.
+	 * @see #transferTo(FileChannel, long)
+	 */
+	public void transferFullyTo(FileChannel target, long count) throws UnexpectedEofException, WrappedIOException
+	{
+		long noCopied = transferTo(target, count);
+		if (noCopied != count)
+		{
+			throw new UnexpectedEofException("Wanted to copy " + count + " bytes. Got " + noCopied);
+		}
+	}
+
+	public int available() throws WrappedIOException
+	{
+		return m_randomAccess.available();
+	}
+
+	public long getFilePointer() throws WrappedIOException
+	{
+		return m_randomAccess.getFilePointer();
+	}
+
+	public long length() throws WrappedIOException
+	{
+		return m_randomAccess.length();
+	}
+
+	public int read() throws WrappedIOException
+	{
+		return m_randomAccess.read();
+	}
+
+	public int read(byte[] barr) throws WrappedIOException
+	{
+		return m_randomAccess.read(barr);
+	}
+
+	public int read(byte[] barr, int off, int len) throws WrappedIOException
+	{
+		return m_randomAccess.read(barr, off, len);
+	}
+
+	public void seek(long pos) throws WrappedIOException
+	{
+		m_randomAccess.seek(pos);
+	}
+
+	public void setLength(long newLength) throws WrappedIOException
+	{
+		m_randomAccess.setLength(newLength);
+	}
+
+	public long skipBytes(long n) throws WrappedIOException
+	{
+		return m_randomAccess.skipBytes(n);
+	}
+
+	public void write(int b) throws WrappedIOException
+	{
+		m_randomAccess.write(b);
+	}
+
+	public void write(byte[] barr) throws WrappedIOException
+	{
+		m_randomAccess.write(barr);
+	}
+
+	public void write(byte[] barr, int off, int len) throws WrappedIOException
+	{
+		m_randomAccess.write(barr, off, len);
+	}
+
+	public void flush() throws WrappedIOException
+	{
+		m_randomAccess.flush();
+	}
+
+	public RandomAccessMode getMode()
+	{
+		return m_randomAccess.getMode();
+	}
+
+	public void addCloseObserver(RandomAccessCloseObserver o)
+	{
+		m_randomAccess.addCloseObserver(o);
+	}
+
+	public void close() throws WrappedIOException
+	{
+		try
+		{
+			m_randomAccess.close();
+		}
+		finally
+		{
+			try
+			{
+				m_channel.close();
+			}
+			catch (IOException e)
+			{
+				throw new WrappedIOException(e);
+			}
+		}
+	}
+}
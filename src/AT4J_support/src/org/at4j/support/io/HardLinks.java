@@ -0,0 +1,121 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.entityfs.support.exception.WrappedIOException;
+
+/**
+ * This class contains static utility methods for working with hard links to
+ * files on disk.
+ * <p>
+ * On file systems that do not have Unix file attributes, the methods of this
+ * class behave as if no file had more than one link and as if hard links could
+ * not be created.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public final class HardLinks
+{
+	// The Unix attributes that identify the data of a file
+	private static final String UNIX_LINK_ATTRIBUTES = "unix:nlink,dev,ino";
+
+	/**
+	 * Get a key that identifies the data of a file that has more than one hard
+	 * link. All links to the same data give equal keys (the key is the file's
+	 * device and inode numbers).
+	 * @param f The file.
+	 * @return A key that identifies the file's data, or {@code null} if the
+	 * file only has one link or if the file's links cannot be inspected.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public static Object getLinkKey(File f) throws WrappedIOException
+	{
+		// Null check
+		f.getClass();
+
+		Map<String, Object> attrs;
+		try
+		{
+			attrs = Files.readAttributes(f.toPath(), UNIX_LINK_ATTRIBUTES);
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// The file system does not have Unix attributes
+			return null;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// The file system does not have all Unix attributes
+			return null;
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+
+		Number nlink = (Number) attrs.get("nlink");
+		if ((nlink == null) || (nlink.intValue() < 2))
+		{
+			return null;
+		}
+		return Arrays.asList(attrs.get("dev"), attrs.get("ino"));
+	}
+
+	/**
+	 * Create a new hard link to an existing file.
+	 * @param link The link to create. This file must not exist.
+	 * @param existing The existing file.
+	 * @return {@code true} if the link was created, {@code false} if the file
+	 * system does not support hard links.
+	 * @throws WrappedIOException On I/O errors, for instance if the two files
+	 * are in different file systems.
+	 */
+	public static boolean createLink(File link, File existing) throws WrappedIOException
+	{
+		// Null checks
+		link.getClass();
+		existing.getClass();
+
+		try
+		{
+			Files.createLink(link.toPath(), existing.toPath());
+			return true;
+		}
+		catch (UnsupportedOperationException e)
+		{
+			return false;
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+	}
+
+	// Hidden constructor
+	private HardLinks()
+	{
+		// Nothing
+	}
+}
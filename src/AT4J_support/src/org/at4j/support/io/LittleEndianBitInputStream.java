@@ -94,6 +94,17 @@ public class LittleEndianBitInputStream extends InputStream implements BitInput
 		return m_numberOfBytesRead;
 	}
 
+	/**
+	 * Get the number of bits read this far. This is the position of the next
+	 * bit to read, counted from the start of the stream.
+	 * @return The number of bits read this far.
+	 * @since 1.2
+	 */
+	public long getNumberOfBitsRead()
+	{
+		return m_numberOfBytesRead * 8 + m_pointerInByte;
+	}
+
 	private void assertNotAtEOF() throws IOException
 	{
 		if (isAtEof())
@@ -0,0 +1,242 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.util;
+
+import java.io.InterruptedIOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import org.entityfs.support.exception.WrappedIOException;
+
+/**
+ * This object runs indexed tasks on an {@link Executor} and limits the number
+ * of tasks that run concurrently. It is used for running tasks that would
+ * otherwise have been run one by one in index order, such as extracting
+ * archive entries.
+ * <p>
+ * Errors are reported deterministically. If one or several tasks fail, no new
+ * tasks with an index greater than or equal to the index of the first failed
+ * task are started, and {@link #throwFirstError()} throws the error from the
+ * failing task with the lowest index. Since tasks are submitted in index order,
+ * this is the same error that would have been reported if the tasks had been
+ * run sequentially. Tasks with a lower index than the first failed task are
+ * still run, just like they would have been if run sequentially. This makes it
+ * possible to record an error for an index that has not been submitted yet
+ * with {@link #recordError(int, Throwable)} and still have all tasks before it
+ * run.
+ * <p>
+ * Tasks are submitted by one thread. That thread should call
+ * {@link #waitForAll()} after submitting the last task.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public final class ParallelTaskRunner
+{
+	private final Executor m_executor;
+	private final int m_maxConcurrency;
+	private final Semaphore m_permits;
+	// Errors, indexed by the index of the task that failed. Guarded by this
+	// map's monitor.
+	private final SortedMap<Integer, Throwable> m_errors = new TreeMap<Integer, Throwable>();
+
+	/**
+	 * Create a new task runner.
+	 * @param executor The executor that runs the tasks.
+	 * @param maxConcurrency The maximum number of tasks that may run
+	 * concurrently.
+	 * @throws IllegalArgumentException If {@code maxConcurrency} is less than
+	 * {@code 1}.
+	 */
+	public ParallelTaskRunner(Executor executor, int maxConcurrency) throws IllegalArgumentException
+	{
+		// Null check
+		executor.getClass();
+		if (maxConcurrency < 1)
+		{
+			throw new IllegalArgumentException("Invalid max concurrency " + maxConcurrency + ". It must be at least 1");
+		}
+
+		m_executor = executor;
+		m_maxConcurrency = maxConcurrency;
+		m_permits = new Semaphore(maxConcurrency);
+	}
+
+	/**
+	 * Record an error for the task with the supplied index. This can be used
+	 * for errors that occur outside of the tasks run by this object, in the
+	 * submitting thread.
+	 * @param index The index.
+	 * @param t The error.
+	 */
+	public void recordError(int index, Throwable t)
+	{
+		synchronized (m_errors)
+		{
+			m_errors.put(Integer.valueOf(index), t);
+		}
+	}
+
+	/**
+	 * Has any task failed?
+	 * @return {@code true} if any task has failed.
+	 */
+	public boolean hasFailed()
+	{
+		synchronized (m_errors)
+		{
+			return !m_errors.isEmpty();
+		}
+	}
+
+	/**
+	 * Get the index of the first task that failed.
+	 * @return The index of the first task that failed, or
+	 * {@link Integer#MAX_VALUE} if no task has failed.
+	 */
+	public int getFirstFailedIndex()
+	{
+		synchronized (m_errors)
+		{
+			return m_errors.isEmpty() ? Integer.MAX_VALUE : m_errors.firstKey().intValue();
+		}
+	}
+
+	private WrappedIOException handleInterrupt()
+	{
+		// Wait for the running tasks to finish before returning
+		m_permits.acquireUninterruptibly(m_maxConcurrency);
+		m_permits.release(m_maxConcurrency);
+		Thread.currentThread().interrupt();
+		return new WrappedIOException(new InterruptedIOException("Interrupted when waiting for tasks to finish"));
+	}
+
+	/**
+	 * Submit a task. This blocks until there are fewer than the maximum number
+	 * of running tasks. If a task with an index that is lower than or equal to
+	 * the index of the new task has failed, the new task is not run.
+	 * <p>
+	 * Tasks must be submitted in increasing index order.
+	 * @param index The index of the task.
+	 * @param task The task.
+	 * @return {@code true} if the task was submitted, {@code false} if it was
+	 * not submitted because a task with a lower or the same index has failed.
+	 * @throws WrappedIOException If the thread is interrupted when waiting to
+	 * submit the task. Before this is thrown, all running tasks are waited for.
+	 */
+	public boolean submit(final int index, final Runnable task) throws WrappedIOException
+	{
+		try
+		{
+			m_permits.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			throw handleInterrupt();
+		}
+
+		if (index >= getFirstFailedIndex())
+		{
+			m_permits.release();
+			return false;
+		}
+
+		try
+		{
+			m_executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						task.run();
+					}
+					catch (Throwable t)
+					{
+						recordError(index, t);
+					}
+					finally
+					{
+						m_permits.release();
+					}
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			// Probably a RejectedExecutionException
+			m_permits.release();
+			recordError(index, e);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Wait for all submitted tasks to finish.
+	 * @throws WrappedIOException If the thread is interrupted while waiting.
+	 * Before this is thrown, all running tasks are waited for.
+	 */
+	public void waitForAll() throws WrappedIOException
+	{
+		try
+		{
+			m_permits.acquire(m_maxConcurrency);
+		}
+		catch (InterruptedException e)
+		{
+			throw handleInterrupt();
+		}
+		m_permits.release(m_maxConcurrency);
+	}
+
+	/**
+	 * Throw the error from the failing task with the lowest index, if any task
+	 * has failed. Runtime exceptions and errors are thrown as they are. Other
+	 * exceptions are wrapped in a {@link RuntimeException}.
+	 * <p>
+	 * This should be called after {@link #waitForAll()}.
+	 */
+	public void throwFirstError()
+	{
+		Throwable t;
+		synchronized (m_errors)
+		{
+			if (m_errors.isEmpty())
+			{
+				return;
+			}
+			t = m_errors.get(m_errors.firstKey());
+		}
+
+		if (t instanceof RuntimeException)
+		{
+			throw (RuntimeException) t;
+		}
+		else if (t instanceof Error)
+		{
+			throw (Error) t;
+		}
+		else
+		{
+			throw new RuntimeException(t);
+		}
+	}
+}
@@ -27,7 +27,7 @@ import org.junit.runners.Suite.SuiteClasses;
  * @since 1.0
  */
 @RunWith(Suite.class)
-@SuiteClasses( { ByteMoveToFrontTest.class, IntMoveToFrontTest.class })
+@SuiteClasses( { ByteMoveToFrontTest.class, DeflateIndexTest.class, IntMoveToFrontTest.class, ParallelDeflaterOutputStreamTest.class })
 public class CompSuite
 {
 	// Nothing
@@ -0,0 +1,350 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.comp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.at4j.test.support.At4JTestCase;
+import org.entityfs.RandomAccess;
+import org.entityfs.util.io.ByteArrayRandomAccess;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class DeflateIndexTest extends At4JTestCase
+{
+	/**
+	 * Create test data that is somewhat compressible.
+	 */
+	private byte[] createTestData(int size)
+	{
+		String[] words = new String[] { "Contents ", "of ", "a ", "deflated ", "file. ", "Lorem ", "ipsum ", "dolor ", "sit ", "amet\n" };
+		Random r = new Random(4711);
+		byte[] res = new byte[size];
+		int pos = 0;
+		while (pos < size)
+		{
+			byte[] word = words[r.nextInt(words.length)].getBytes();
+			int len = Math.min(word.length, size - pos);
+			System.arraycopy(word, 0, res, pos, len);
+			pos += len;
+			if ((pos < size) && (r.nextInt(20) == 0))
+			{
+				// Some random data
+				res[pos++] = (byte) r.nextInt();
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Deflate the data. The compression level is changed every {@code
+	 * segmentSize} bytes to get all kinds of deflate blocks (stored, fixed and
+	 * dynamic Huffman codes).
+	 */
+	private byte[] deflate(byte[] data, int segmentSize)
+	{
+		Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try
+		{
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int[] levels = new int[] { 6, 0, 1, 9 };
+			int pos = 0;
+			int segment = 0;
+			while (pos < data.length)
+			{
+				int len = Math.min(segmentSize, data.length - pos);
+				def.setLevel(levels[segment++ % levels.length]);
+				def.setInput(data, pos, len);
+				pos += len;
+				if (pos == data.length)
+				{
+					def.finish();
+				}
+				int noDeflated;
+				do
+				{
+					noDeflated = def.deflate(buf, 0, buf.length, Deflater.NO_FLUSH);
+					bout.write(buf, 0, noDeflated);
+				}
+				while (noDeflated > 0 || !def.needsInput() && !def.finished());
+			}
+			while (!def.finished())
+			{
+				bout.write(buf, 0, def.deflate(buf));
+			}
+			return bout.toByteArray();
+		}
+		finally
+		{
+			def.end();
+		}
+	}
+
+	private void assertReadsAt(RandomAccess ra, byte[] data, long pos, int len)
+	{
+		ra.seek(pos);
+		byte[] barr = new byte[len];
+		int noRead = 0;
+		while (noRead < len)
+		{
+			int n = ra.read(barr, noRead, len - noRead);
+			if (n < 0)
+			{
+				break;
+			}
+			noRead += n;
+		}
+		int expectedLen = (int) Math.max(0, Math.min(len, data.length - pos));
+		assertEquals(expectedLen, noRead);
+		assertTrue(Arrays.equals(Arrays.copyOfRange(data, (int) pos, (int) pos + expectedLen), Arrays.copyOf(barr, noRead)));
+		assertEquals(pos + expectedLen, ra.getFilePointer());
+	}
+
+	@Test
+	public void testBuildIndex() throws IOException
+	{
+		byte[] data = createTestData(1000000);
+		byte[] compressed = deflate(data, 100000);
+		DeflateIndex idx = DeflateIndex.build(new ByteArrayInputStream(compressed), 65536);
+		assertEquals(data.length, idx.getUncompressedSize());
+		assertEquals(compressed.length, idx.getCompressedSize());
+		assertEquals(65536, idx.getAccessPointSpacing());
+		// The first access point is at the start of the data.
+		assertEquals(0L, idx.getUncompressedOffset(0));
+		assertEquals(0L, idx.getCompressedBitOffset(0));
+		assertTrue(idx.getNumberOfAccessPoints() > 5);
+		for (int i = 1; i < idx.getNumberOfAccessPoints(); i++)
+		{
+			long offset = idx.getUncompressedOffset(i);
+			assertTrue(offset - idx.getUncompressedOffset(i - 1) >= 65536);
+			// The window is the data before the access point.
+			byte[] window = idx.getWindow(i);
+			assertEquals(DeflateIndex.WINDOW_SIZE, window.length);
+			assertTrue(Arrays.equals(Arrays.copyOfRange(data, (int) offset - window.length, (int) offset), window));
+		}
+		assertEquals(0, idx.findAccessPoint(0L));
+		assertEquals(0, idx.findAccessPoint(idx.getUncompressedOffset(1) - 1));
+		assertEquals(1, idx.findAccessPoint(idx.getUncompressedOffset(1)));
+	}
+
+	@Test
+	public void testBuildIndexStopsAtTheEndOfTheDeflatedData() throws IOException
+	{
+		byte[] data = createTestData(100000);
+		byte[] compressed = deflate(data, 30000);
+		// Add some data after the deflated data
+		byte[] withTrailer = Arrays.copyOf(compressed, compressed.length + 100);
+		DeflateIndex idx = DeflateIndex.build(new ByteArrayInputStream(withTrailer), 65536);
+		assertEquals(data.length, idx.getUncompressedSize());
+		assertEquals(compressed.length, idx.getCompressedSize());
+	}
+
+	@Test
+	public void testBuildIndexFromInvalidData()
+	{
+		byte[] compressed = deflate(createTestData(100000), 30000);
+		try
+		{
+			// Truncated
+			DeflateIndex.build(new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length / 2)), 65536);
+			fail();
+		}
+		catch (IOException e)
+		{
+			// ok
+		}
+
+		try
+		{
+			// Invalid block type 3
+			DeflateIndex.build(new ByteArrayInputStream(new byte[] { 7, 0, 0, 0 }), 65536);
+			fail();
+		}
+		catch (IOException e)
+		{
+			// ok
+		}
+	}
+
+	@Test
+	public void testWriteAndReadIndex() throws IOException
+	{
+		byte[] data = createTestData(500000);
+		byte[] compressed = deflate(data, 50000);
+		DeflateIndex idx = DeflateIndex.build(new ByteArrayInputStream(compressed), 65536);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		idx.writeTo(new DataOutputStream(bout));
+		byte[] written = bout.toByteArray();
+
+		DeflateIndex read = DeflateIndex.readFrom(new DataInputStream(new ByteArrayInputStream(written)));
+		assertNotNull(read);
+		assertEquals(idx.getAccessPointSpacing(), read.getAccessPointSpacing());
+		assertEquals(idx.getCompressedSize(), read.getCompressedSize());
+		assertEquals(idx.getUncompressedSize(), read.getUncompressedSize());
+		assertEquals(idx.getNumberOfAccessPoints(), read.getNumberOfAccessPoints());
+		for (int i = 0; i < idx.getNumberOfAccessPoints(); i++)
+		{
+			assertEquals(idx.getUncompressedOffset(i), read.getUncompressedOffset(i));
+			assertEquals(idx.getCompressedBitOffset(i), read.getCompressedBitOffset(i));
+			assertTrue(Arrays.equals(idx.getWindow(i), read.getWindow(i)));
+		}
+
+		RandomAccess ra = new DeflatedRandomAccess(new ByteArrayRandomAccess(compressed), compressed.length, data.length, read, read.getAccessPointSpacing(), null, null);
+		try
+		{
+			assertReadsAt(ra, data, 400000, 1000);
+			assertReadsAt(ra, data, 100000, 1000);
+		}
+		finally
+		{
+			ra.close();
+		}
+
+		// An invalid number of access points
+		written[27] = (byte) 0xFF;
+		assertNull(DeflateIndex.readFrom(new DataInputStream(new ByteArrayInputStream(written))));
+
+		// Truncated
+		try
+		{
+			DeflateIndex.readFrom(new DataInputStream(new ByteArrayInputStream(Arrays.copyOf(written, 20))));
+			fail();
+		}
+		catch (EOFException e)
+		{
+			// ok
+		}
+	}
+
+	@Test
+	public void testRandomAccess() throws IOException
+	{
+		byte[] data = createTestData(1000000);
+		byte[] compressed = deflate(data, 100000);
+		DeflateIndex idx = DeflateIndex.build(new ByteArrayInputStream(compressed), 65536);
+		RandomAccess ra = new DeflatedRandomAccess(new ByteArrayRandomAccess(compressed), compressed.length, data.length, idx, idx.getAccessPointSpacing(), null, null);
+		try
+		{
+			assertEquals(data.length, ra.length());
+			Random r = new Random(1234);
+			for (int i = 0; i < 100; i++)
+			{
+				assertReadsAt(ra, data, r.nextInt(data.length), r.nextInt(1000) + 1);
+			}
+			// At the access points
+			for (int i = 0; i < idx.getNumberOfAccessPoints(); i++)
+			{
+				assertReadsAt(ra, data, idx.getUncompressedOffset(i), 100);
+			}
+			// The end of the data
+			assertReadsAt(ra, data, data.length - 10, 100);
+			ra.seek(data.length);
+			assertEquals(-1, ra.read());
+			// Backwards
+			assertReadsAt(ra, data, 10, 100);
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	@Test
+	public void testIndexIsBuiltWhenNeededAndCached() throws IOException
+	{
+		byte[] data = createTestData(500000);
+		byte[] compressed = deflate(data, 200000);
+		DeflateIndexCache cache = new DeflateIndexCache();
+		Object key = Long.valueOf(17L);
+
+		RandomAccess ra = new DeflatedRandomAccess(new ByteArrayRandomAccess(compressed), compressed.length, data.length, null, DeflateIndex.DEFAULT_ACCESS_POINT_SPACING, cache, key);
+		try
+		{
+			// Reading from the start does not require an index
+			assertReadsAt(ra, data, 0, 50000);
+			assertNull(cache.get(key));
+			// Seeking backwards does
+			assertReadsAt(ra, data, 1000, 50000);
+			assertNotNull(cache.get(key));
+			assertReadsAt(ra, data, 400000, 100);
+		}
+		finally
+		{
+			ra.close();
+		}
+		DeflateIndex idx = cache.get(key);
+		assertEquals(data.length, idx.getUncompressedSize());
+		assertEquals(idx.getMemorySize(), cache.getMemorySize());
+
+		// The cached index is used by the next random access object
+		ra = new DeflatedRandomAccess(new ByteArrayRandomAccess(compressed), compressed.length, data.length, null, DeflateIndex.DEFAULT_ACCESS_POINT_SPACING, cache, key);
+		try
+		{
+			assertReadsAt(ra, data, 300000, 10000);
+			assertSame(idx, cache.get(key));
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	@Test
+	public void testCacheEvictsLeastRecentlyUsed() throws IOException
+	{
+		byte[] compressed = deflate(createTestData(200000), 20000);
+		DeflateIndex idx = DeflateIndex.build(new ByteArrayInputStream(compressed), 30000);
+		assertTrue(idx.getNumberOfAccessPoints() > 1);
+
+		DeflateIndexCache cache = new DeflateIndexCache(idx.getMemorySize() * 2);
+		cache.put("a", idx);
+		cache.put("b", idx);
+		// Use a, so that b is the least recently used index
+		assertSame(idx, cache.get("a"));
+		cache.put("c", idx);
+		assertEquals(2, cache.size());
+		assertSame(idx, cache.get("a"));
+		assertNull(cache.get("b"));
+		assertSame(idx, cache.get("c"));
+
+		// Too large
+		DeflateIndexCache smallCache = new DeflateIndexCache(idx.getMemorySize() - 1);
+		smallCache.put("a", idx);
+		assertEquals(0, smallCache.size());
+	}
+}
@@ -0,0 +1,115 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.comp;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class ParallelDeflaterOutputStreamTest
+{
+	private static byte[] inflate(byte[] compressed) throws IOException
+	{
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		InputStream is = new PooledInflaterInputStream(new ByteArrayInputStream(compressed), InflaterDeflaterPool.INSTANCE.borrowInflater());
+		try
+		{
+			byte[] buf = new byte[8192];
+			int noRead = is.read(buf);
+			while (noRead >= 0)
+			{
+				res.write(buf, 0, noRead);
+				noRead = is.read(buf);
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+		return res.toByteArray();
+	}
+
+	@Test
+	public void testDeflate() throws IOException
+	{
+		ExecutorService exec = Executors.newFixedThreadPool(3);
+		try
+		{
+			Random r = new Random(11);
+			for (int size : new int[] { 0, 100, 40000, 300000 })
+			{
+				byte[] data = new byte[size];
+				for (int i = 0; i < size; i++)
+				{
+					data[i] = (byte) ('a' + r.nextInt(4));
+				}
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				OutputStream os = new ParallelDeflaterOutputStream(bout, 6, exec, ParallelDeflaterOutputStream.DICTIONARY_SIZE, 2);
+				os.write(data);
+				os.close();
+				assertTrue(Arrays.equals(data, inflate(bout.toByteArray())));
+			}
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+	}
+
+	@Test
+	public void testInvalidArguments()
+	{
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try
+		{
+			int[][] invalid = new int[][] { { -1, 65536, 2 }, { 10, 65536, 2 }, { 6, 1000, 2 }, { 6, 65536, 0 } };
+			for (int[] args : invalid)
+			{
+				try
+				{
+					new ParallelDeflaterOutputStream(new ByteArrayOutputStream(), args[0], exec, args[1], args[2]);
+					fail();
+				}
+				catch (IllegalArgumentException e)
+				{
+					// ok
+				}
+			}
+		}
+		finally
+		{
+			exec.shutdown();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.entityfs.exception.UnexpectedEofException;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.io.RandomAccessAdapter;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class FileChannelRandomAccessTest
+{
+	private static File createTempFile(byte[] contents) throws IOException
+	{
+		File res = File.createTempFile("at4jtest", ".tmp");
+		res.deleteOnExit();
+		FileOutputStream fos = new FileOutputStream(res);
+		try
+		{
+			fos.write(contents);
+		}
+		finally
+		{
+			fos.close();
+		}
+		return res;
+	}
+
+	private static byte[] readFile(File f) throws IOException
+	{
+		byte[] res = new byte[(int) f.length()];
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try
+		{
+			raf.readFully(res);
+		}
+		finally
+		{
+			raf.close();
+		}
+		return res;
+	}
+
+	private static FileChannelRandomAccess open(File f, RandomAccessMode mode) throws IOException
+	{
+		String m = mode == RandomAccessMode.READ_ONLY ? "r" : "rw";
+		return new FileChannelRandomAccess(new RandomAccessAdapter(new RandomAccessFile(f, m), mode), new RandomAccessFile(f, m).getChannel());
+	}
+
+	@Test
+	public void testTransferTo() throws IOException
+	{
+		File src = createTempFile("0123456789abcdef".getBytes());
+		File target = createTempFile(new byte[0]);
+		FileChannelRandomAccess ra = open(src, RandomAccessMode.READ_ONLY);
+		try
+		{
+			FileChannel out = new FileOutputStream(target).getChannel();
+			try
+			{
+				ra.seek(2);
+				assertEquals(5, ra.transferTo(out, 5));
+				assertEquals(7, ra.getFilePointer());
+				assertEquals('7', ra.read());
+				// Only eight bytes are left
+				assertEquals(8, ra.transferTo(out, 10));
+				assertEquals(16, ra.getFilePointer());
+				assertEquals(-1, ra.read());
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			ra.close();
+		}
+		assertEquals("2345689abcdef", new String(readFile(target)));
+	}
+
+	@Test
+	public void testTransferFullyToUnexpectedEof() throws IOException
+	{
+		File src = createTempFile("0123456789".getBytes());
+		File target = createTempFile(new byte[0]);
+		FileChannelRandomAccess ra = open(src, RandomAccessMode.READ_ONLY);
+		try
+		{
+			FileChannel out = new FileOutputStream(target).getChannel();
+			try
+			{
+				ra.seek(5);
+				ra.transferFullyTo(out, 6);
+				fail();
+			}
+			catch (UnexpectedEofException e)
+			{
+				// ok
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	@Test
+	public void testTransferFrom() throws IOException
+	{
+		File src = createTempFile("0123456789".getBytes());
+		File target = createTempFile(new byte[0]);
+		FileChannelRandomAccess ra = open(target, RandomAccessMode.READ_WRITE);
+		try
+		{
+			FileChannel in = new FileInputStream(src).getChannel();
+			try
+			{
+				ra.write("abc".getBytes());
+				assertEquals(4, ra.transferFrom(in, 3, 4));
+				assertEquals(7, ra.getFilePointer());
+				ra.write('d');
+				// The source file only has two more bytes
+				assertEquals(2, ra.transferFrom(in, 8, 5));
+				assertEquals(10, ra.getFilePointer());
+				assertEquals(10, in.position());
+				// The file channel's own position is not used
+				assertEquals(0, ra.getChannel().position());
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		finally
+		{
+			ra.close();
+		}
+		assertTrue(Arrays.equals("abc3456d89".getBytes(), readFile(target)));
+	}
+
+	@Test
+	public void testCloseClosesChannel() throws IOException
+	{
+		File f = createTempFile("0123456789".getBytes());
+		FileChannelRandomAccess ra = open(f, RandomAccessMode.READ_ONLY);
+		ra.close();
+		assertFalse(ra.getChannel().isOpen());
+	}
+}
@@ -0,0 +1,67 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class HardLinksTest
+{
+	@Test
+	public void testLinks() throws IOException
+	{
+		File f1 = File.createTempFile("at4jtest", ".tmp");
+		File f2 = new File(f1.getParentFile(), f1.getName() + ".link");
+		File f3 = File.createTempFile("at4jtest", ".tmp");
+		try
+		{
+			// A file with only one link does not get a key
+			assertNull(HardLinks.getLinkKey(f1));
+
+			assertTrue(HardLinks.createLink(f2, f1));
+			Object key = HardLinks.getLinkKey(f1);
+			assertNotNull(key);
+			assertEquals(key, HardLinks.getLinkKey(f2));
+			assertNull(HardLinks.getLinkKey(f3));
+
+			// Removing the link
+			assertTrue(f2.delete());
+			assertNull(HardLinks.getLinkKey(f1));
+		}
+		finally
+		{
+			f1.delete();
+			f2.delete();
+			f3.delete();
+		}
+		assertFalse(f2.exists());
+	}
+}
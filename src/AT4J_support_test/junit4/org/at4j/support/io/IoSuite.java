@@ -27,7 +27,7 @@ import org.junit.runners.Suite.SuiteClasses;
  * @since 1.0
  */
 @RunWith(Suite.class)
-@SuiteClasses( { LittleEndianBitInputStreamTest.class, LittleEndianBitOutputStreamTest.class })
+@SuiteClasses( { FileChannelRandomAccessTest.class, HardLinksTest.class, LittleEndianBitInputStreamTest.class, LittleEndianBitOutputStreamTest.class })
 public class IoSuite
 {
 	// Nothing
@@ -96,6 +96,20 @@ public class UnsignedIntegerTest
 		assertEquals(0x1A2B3C4DL, UnsignedInteger.fromLittleEndianByteArrayToLong(new byte[] { 0x1A, 0x2B, 0x3C, 0x4D }, 0));
 	}
 
+	@Test
+	public void testFromBigEndianByteArrayToLongWithHighestBitSet()
+	{
+		assertEquals(0xFFFFFFFFL, UnsignedInteger.fromBigEndianByteArrayToLong(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }, 0));
+		assertEquals(0x8A2B3C4DL, UnsignedInteger.fromBigEndianByteArrayToLong(new byte[] { 0x00, 0x4D, 0x3C, 0x2B, (byte) 0x8A }, 1));
+	}
+
+	@Test
+	public void testFromLittleEndianByteArrayToLongWithHighestBitSet()
+	{
+		assertEquals(0xFFFFFFFFL, UnsignedInteger.fromLittleEndianByteArrayToLong(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF }, 0));
+		assertEquals(0x8A2B3C4DL, UnsignedInteger.fromLittleEndianByteArrayToLong(new byte[] { 0x00, (byte) 0x8A, 0x2B, 0x3C, 0x4D }, 1));
+	}
+
 	@Test
 	public void testReadBigEndian() throws IOException
 	{
@@ -0,0 +1,223 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.support.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class ParallelTaskRunnerTest
+{
+	@Test
+	public void testMaxConcurrency() throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try
+		{
+			final AtomicInteger running = new AtomicInteger();
+			final AtomicInteger maxRunning = new AtomicInteger();
+			final AtomicInteger noRun = new AtomicInteger();
+			ParallelTaskRunner runner = new ParallelTaskRunner(executor, 3);
+			for (int i = 0; i < 30; i++)
+			{
+				assertTrue(runner.submit(i, new Runnable()
+				{
+					public void run()
+					{
+						int n = running.incrementAndGet();
+						synchronized (maxRunning)
+						{
+							maxRunning.set(Math.max(n, maxRunning.get()));
+						}
+						try
+						{
+							Thread.sleep(5);
+						}
+						catch (InterruptedException e)
+						{
+							throw new RuntimeException(e);
+						}
+						running.decrementAndGet();
+						noRun.incrementAndGet();
+					}
+				}));
+			}
+			runner.waitForAll();
+			assertEquals(30, noRun.get());
+			assertTrue(maxRunning.get() <= 3);
+			assertFalse(runner.hasFailed());
+			assertEquals(Integer.MAX_VALUE, runner.getFirstFailedIndex());
+			// Does nothing
+			runner.throwFirstError();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testFirstErrorIsThrown() throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			ParallelTaskRunner runner = new ParallelTaskRunner(executor, 4);
+			int noSubmitted = 0;
+			for (int i = 0; i < 100; i++)
+			{
+				final int index = i;
+				boolean submitted = runner.submit(i, new Runnable()
+				{
+					public void run()
+					{
+						if (index == 2)
+						{
+							// Let task 3 fail first
+							try
+							{
+								Thread.sleep(100);
+							}
+							catch (InterruptedException e)
+							{
+								throw new RuntimeException(e);
+							}
+							throw new IllegalStateException("Task 2");
+						}
+						else if (index == 3)
+						{
+							throw new IllegalArgumentException("Task 3");
+						}
+
+						try
+						{
+							Thread.sleep(5);
+						}
+						catch (InterruptedException e)
+						{
+							throw new RuntimeException(e);
+						}
+					}
+				});
+				if (!submitted)
+				{
+					break;
+				}
+				noSubmitted++;
+			}
+			runner.waitForAll();
+
+			// No tasks should have been submitted after the tasks had failed.
+			assertTrue(noSubmitted < 100);
+			assertTrue(runner.hasFailed());
+			assertEquals(2, runner.getFirstFailedIndex());
+			try
+			{
+				runner.throwFirstError();
+				fail();
+			}
+			catch (IllegalStateException e)
+			{
+				assertEquals("Task 2", e.getMessage());
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRecordError()
+	{
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			ParallelTaskRunner runner = new ParallelTaskRunner(executor, 1);
+			runner.recordError(7, new Error("Error 7"));
+			// Tasks before the failed index are still run
+			final AtomicInteger run = new AtomicInteger();
+			for (int i = 5; i < 7; i++)
+			{
+				assertTrue(runner.submit(i, new Runnable()
+				{
+					public void run()
+					{
+						run.incrementAndGet();
+					}
+				}));
+			}
+			assertFalse(runner.submit(7, new Runnable()
+			{
+				public void run()
+				{
+					fail();
+				}
+			}));
+			assertFalse(runner.submit(8, new Runnable()
+			{
+				public void run()
+				{
+					fail();
+				}
+			}));
+			runner.waitForAll();
+			assertEquals(2, run.get());
+			assertEquals(7, runner.getFirstFailedIndex());
+			try
+			{
+				runner.throwFirstError();
+				fail();
+			}
+			catch (Error e)
+			{
+				assertEquals("Error 7", e.getMessage());
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testIllegalMaxConcurrency()
+	{
+		try
+		{
+			new ParallelTaskRunner(Executors.newSingleThreadExecutor(), 0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			// ok
+		}
+	}
+}
@@ -27,7 +27,7 @@ import org.junit.runners.Suite.SuiteClasses;
  * @since 1.0
  */
 @RunWith(Suite.class)
-@SuiteClasses( { MsDosDateTest.class, MsDosTimeTest.class, WinNtTimeTest.class })
+@SuiteClasses( { MsDosDateTest.class, MsDosTimeTest.class, ParallelTaskRunnerTest.class, WinNtTimeTest.class })
 public class UtilSuite
 {
 	// Nothing
@@ -18,21 +18,34 @@
  */
 package org.at4j.tar;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.locks.Lock;
 
+import org.at4j.support.io.FileChannelRandomAccess;
+import org.at4j.support.io.HardLinks;
 import org.entityfs.DataSource;
 import org.entityfs.Directory;
 import org.entityfs.EFile;
 import org.entityfs.ETDirectory;
 import org.entityfs.ETFile;
+import org.entityfs.EntityView;
+import org.entityfs.RandomAccess;
 import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.el.InvalidEntityLocationException;
 import org.entityfs.ostrat.OverwriteResult;
 import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
 import org.entityfs.support.io.StreamUtil;
 import org.entityfs.util.Directories;
+import org.entityfs.util.Files;
+import org.entityfs.util.cap.entity.ECFileResolvableUtil;
 import org.entityfs.util.io.DataSourceToInputStreamAdapter;
+import org.entityfs.util.io.RandomAccessToOutputStreamAdapter;
 
 /**
  * This strategy object extract Tar entries to a target directory. It is the
@@ -41,6 +54,13 @@ import org.entityfs.util.io.DataSourceToInputStreamAdapter;
  * The object can be configured to ignore symbolic link entries. If symbolic
  * links are not ignore, and this object gets a symbolic link entry, it throws a
  * {@link TarFileParseException}.
+ * <p>
+ * Hard link entries are extracted as hard links to the already extracted file
+ * that they link to, if the platform and the target file system supports it.
+ * Otherwise they are extracted as copies of that file.
+ * <p>
+ * This object is thread safe, so it can be used for extracting Tar entries in
+ * parallel.
  * @author Karl Gustafsson
  * @since 1.0
  * @see TarExtractSpecification
@@ -61,7 +81,12 @@ public class ExtractTarEntryExtractionStrategy implements TarEntryExtractionStra
 
 	protected Directory getDirectory(Directory targetRoot, AbsoluteLocation loc)
 	{
-		return Directories.putIfAbsentDirectory(targetRoot, loc.getRelativeTo(AbsoluteLocation.ROOT_DIR));
+		// Synchronize in case files are extracted in parallel and several
+		// threads try to create the same missing parent directory.
+		synchronized (targetRoot)
+		{
+			return Directories.putIfAbsentDirectory(targetRoot, loc.getRelativeTo(AbsoluteLocation.ROOT_DIR));
+		}
 	}
 
 	protected void skipToNextBlockBoundary(DataSource src, long leastNoToForwardFromLast)
@@ -111,6 +136,93 @@ public class ExtractTarEntryExtractionStrategy implements TarEntryExtractionStra
 		skipToNextBlockBoundary(src, headerData.getFileSize());
 	}
 
+	/**
+	 * Write the data segments of a sparse file entry to the file. The holes
+	 * between the segments are not written, but are created by extending the
+	 * file. If the target file system supports sparse files, the holes will
+	 * not occupy any disk space.
+	 * @param headerData The entry's header data.
+	 * @param src The data source, positioned at the start of the entry's
+	 * data.
+	 * @param f The file to write to. The caller has locked it for writing.
+	 * @since 1.2
+	 */
+	protected void extractSparseFileData(TarEntryHeaderData headerData, DataSource src, EFile f)
+	{
+		TarSparseMap map = headerData.getSparseMap();
+		RandomAccess ra = f.openForRandomAccess(RandomAccessMode.READ_WRITE);
+		try
+		{
+			InputStream is = new DataSourceToInputStreamAdapter(src);
+			OutputStream os = new RandomAccessToOutputStreamAdapter(ra, false);
+			int bufferSize = f.getFileSystem().getBufferSize();
+			for (int i = 0; i < map.getNumberOfSegments(); i++)
+			{
+				long size = map.getSegmentSize(i);
+				if (size > 0)
+				{
+					long offset = map.getSegmentOffset(i);
+					if (ra.length() < offset)
+					{
+						ra.setLength(offset);
+					}
+					ra.seek(offset);
+					long noCopied = StreamUtil.copyStreams(is, os, bufferSize, size);
+					if (noCopied != size)
+					{
+						throw new TarFileParseException("Unexpected end of data for the sparse file entry " + headerData.getLocation());
+					}
+				}
+			}
+			ra.setLength(map.getRealSize());
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	/**
+	 * Copy the file data from the Tar file to the target file using
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+	 * This lets the operating system copy the data directly between the files.
+	 * @param headerData The header data for the entry.
+	 * @param src The Tar file, positioned at the start of the entry's data.
+	 * @param f The target file. The caller must hold a write lock on it.
+	 * @return {@code true} if the data was copied, {@code false} if the target
+	 * file cannot give a {@code FileChannel}. In that case, nothing is copied.
+	 * @throws TarFileParseException If the Tar file ends before all of the
+	 * entry's data has been copied.
+	 * @since 1.2
+	 */
+	protected boolean extractFileDataWithChannel(TarEntryHeaderData headerData, FileChannelRandomAccess src, EFile f)
+	{
+		WritableByteChannel out = f.openChannelForWrite();
+		try
+		{
+			if (out instanceof FileChannel)
+			{
+				if (src.transferTo((FileChannel) out, headerData.getFileSize()) != headerData.getFileSize())
+				{
+					throw new TarFileParseException("Unexpected end of data for the file entry " + headerData.getLocation());
+				}
+				return true;
+			}
+			return false;
+		}
+		finally
+		{
+			try
+			{
+				out.close();
+			}
+			catch (IOException e)
+			{
+				throw new WrappedIOException(e);
+			}
+		}
+	}
+
 	protected void extractFile(TarEntryHeaderData headerData, DataSource src, Directory targetRoot, TarExtractSpecification spec)
 	{
 		String name = headerData.getLocation().getName();
@@ -131,23 +243,37 @@ public class ExtractTarEntryExtractionStrategy implements TarEntryExtractionStra
 					pwl.unlock();
 					pwl = null;
 
-					try
+					if (headerData.getSparseMap() != null)
+					{
+						extractSparseFileData(headerData, src, f);
+					}
+					else if ((src instanceof FileChannelRandomAccess) && extractFileDataWithChannel(headerData, (FileChannelRandomAccess) src, f))
+					{
+						// Nothing more to do
+					}
+					else
 					{
-						// Copy the file contents
-						OutputStream os = f.openForWrite();
 						try
 						{
-							StreamUtil.copyStreams(new DataSourceToInputStreamAdapter(src), os, f.getFileSystem().getBufferSize(), headerData.getFileSize());
+							// Copy the file contents
+							OutputStream os = f.openForWrite();
+							try
+							{
+								if (StreamUtil.copyStreams(new DataSourceToInputStreamAdapter(src), os, f.getFileSystem().getBufferSize(), headerData.getFileSize()) != headerData.getFileSize())
+								{
+									throw new TarFileParseException("Unexpected end of data for the file entry " + headerData.getLocation());
+								}
+							}
+							finally
+							{
+								os.close();
+							}
 						}
-						finally
+						catch (IOException e)
 						{
-							os.close();
+							throw new WrappedIOException(e);
 						}
 					}
-					catch (IOException e)
-					{
-						throw new WrappedIOException(e);
-					}
 
 					f.setLastModified(headerData.getLastModificationTime().getTime());
 				}
@@ -186,6 +312,113 @@ public class ExtractTarEntryExtractionStrategy implements TarEntryExtractionStra
 		}
 	}
 
+	private EFile getExtractedFile(Directory targetRoot, String name)
+	{
+		AbsoluteLocation location;
+		try
+		{
+			location = new AbsoluteLocation("/" + name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+		catch (InvalidEntityLocationException e)
+		{
+			return null;
+		}
+		EntityView ev = Directories.getEntityOrNull(targetRoot, location.getRelativeTo(AbsoluteLocation.ROOT_DIR));
+		return ev instanceof EFile ? (EFile) ev : null;
+	}
+
+	/**
+	 * Create a hard link in the directory to the target file, if the platform
+	 * and the target file system supports it.
+	 * @return {@code true} if the link was created.
+	 */
+	private boolean createHardLink(Directory parentDir, String name, EFile target)
+	{
+		if (ECFileResolvableUtil.supportsCapability(parentDir) && ECFileResolvableUtil.supportsCapability(target))
+		{
+			return HardLinks.createLink(new File(ECFileResolvableUtil.getFileObject(parentDir), name), ECFileResolvableUtil.getFileObject(target));
+		}
+		else
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Extract a hard link entry. If both the link and the file that it links
+	 * to are files on disk, a hard link is created using
+	 * {@link HardLinks#createLink(File, File)}. Otherwise, the link is
+	 * extracted as a copy of the file that it links to.
+	 * <p>
+	 * The file that the link links to must already have been extracted. If it
+	 * has not, for instance if it was not matched by the extract
+	 * specification's filter, a warning is printed and the link is not
+	 * extracted.
+	 * @param headerData The entry's header data.
+	 * @param src The data source, positioned at the start of the entry's
+	 * data.
+	 * @param targetRoot The target directory.
+	 * @param spec The extract specification.
+	 * @since 1.2
+	 */
+	protected void extractHardLink(TarEntryHeaderData headerData, DataSource src, Directory targetRoot, TarExtractSpecification spec)
+	{
+		EFile target = getExtractedFile(targetRoot, headerData.getLinkName());
+		if (target == null)
+		{
+			System.err.println("Cannot extract hard link " + headerData.getLocation() + " -> " + headerData.getLinkName() + ". The link target has not been extracted");
+		}
+		else
+		{
+			String name = headerData.getLocation().getName();
+			Directory parentDir = getDirectory(targetRoot, headerData.getLocation().getParentLocation());
+			Lock pwl = parentDir.lockForWriting();
+			try
+			{
+				if (spec.getOverwriteStrategy().overwrite(parentDir, name, ETFile.TYPE) == OverwriteResult.CAN_CREATE_NEW_ENTITY)
+				{
+					long parentDirLastModified = parentDir.getLastModified();
+					if (!createHardLink(parentDir, name, target))
+					{
+						// Copy the target file's contents instead
+						EFile f = (EFile) parentDir.newEntity(ETFile.TYPE, name, null);
+						Lock wl = f.lockForWriting();
+						try
+						{
+							Lock trl = target.lockForReading();
+							try
+							{
+								Files.copyContents(target, f);
+							}
+							finally
+							{
+								trl.unlock();
+							}
+							f.setLastModified(headerData.getLastModificationTime().getTime());
+						}
+						finally
+						{
+							wl.unlock();
+						}
+					}
+					parentDir.setLastModified(parentDirLastModified);
+				}
+			}
+			finally
+			{
+				pwl.unlock();
+			}
+		}
+
+		// The size of the data is probably 0, so mostly we don't have to skip
+		// anything.
+		skipToNextBlockBoundary(src, headerData.getFileSize());
+	}
+
 	public void extract(TarEntryHeaderData headerData, DataSource src, Directory targetRoot, TarExtractSpecification spec) throws WrappedIOException, TarFileParseException
 	{
 		char typeFlag = headerData.getTypeFlag();
@@ -197,6 +430,10 @@ public class ExtractTarEntryExtractionStrategy implements TarEntryExtractionStra
 		{
 			extractFile(headerData, src, targetRoot, spec);
 		}
+		else if (typeFlag == TarConstants.HARD_LINK_TYPE_FLAG)
+		{
+			extractHardLink(headerData, src, targetRoot, spec);
+		}
 		else if ((typeFlag == TarConstants.SYMBOLIC_LINK_TYPE_FLAG))
 		{
 			extractSymbolicLink(headerData, src, targetRoot, spec);
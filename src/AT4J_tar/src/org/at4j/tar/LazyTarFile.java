@@ -0,0 +1,699 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import org.at4j.archive.Archive;
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomlyAccessibleFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.el.InvalidEntityLocationException;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+
+/**
+ * A {@code LazyTarFile} is a Tar {@link Archive} that discovers its entries on
+ * demand. It is an alternative to {@link TarFile} for when only a few entries
+ * in a large Tar file are needed.
+ * <p>
+ * A {@link TarFile} scans through the entire Tar file and builds its entry
+ * tree when it is created. A {@code LazyTarFile} only scans as far into the
+ * Tar file as it has to:
+ * <ul>
+ * <li>{@link #get(Object)} and {@link #containsKey(Object)} scan forward until
+ * the entry is found. The entries that are found on the way are remembered,
+ * so they don't have to be scanned for again.</li>
+ * <li>{@link #iterator()} returns the entries in the order that they appear in
+ * the Tar file, including entries that are replaced by later entries with the
+ * same location. Entries are scanned for as the iteration proceeds.</li>
+ * <li>The methods that need all entries, such as {@link #size()},
+ * {@link #keySet()} and {@link #values()}, scan the rest of the Tar file.</li>
+ * </ul>
+ * The child entries of a {@link TarDirectoryEntry} from this archive are not
+ * known until the entire Tar file has been scanned, so accessing them scans
+ * the rest of the Tar file. The same goes for {@link TarEntry#getParent()}
+ * for entries whose parent directory is not present in the Tar file, or is
+ * located after the entry in it.
+ * <p>
+ * The entries are of the same types as the entries in a {@link TarFile}. If
+ * the Tar file contains several entries with the same location, which may
+ * happen if entries have been appended to it, a later entry replaces an
+ * earlier one when it is scanned. When the entire Tar file has been scanned,
+ * the last of them is used, just like in a {@link TarFile}. Since
+ * {@link #get(Object)} stops scanning when it finds an entry, it may return an
+ * entry that is replaced later. Call for instance {@link #size()} first to be
+ * sure to get the last entry for each location. The target of a hard link
+ * entry must come before the link in the Tar file.
+ * <p>
+ * The parse errors in the Tar file are reported when the part of the Tar file
+ * that contains them is scanned. After a parse error, all methods that have to
+ * scan further in the Tar file throw the same exception.
+ * <p>
+ * If the file used to create this object is in a locking
+ * {@link org.entityfs.FileSystem}, it is locked for reading by this object
+ * until it is {@link #close()}:d.
+ * <p>
+ * A {@code LazyTarFile} object should be safe to use concurrently from several
+ * parallel threads without any external synchronization. Scanning is done by
+ * one thread at the time.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see TarFile
+ */
+public class LazyTarFile implements Archive<TarEntry, TarDirectoryEntry>, Iterable<TarEntry>
+{
+	/**
+	 * This is the child entry map of the directory entries. It scans the rest
+	 * of the Tar file the first time that it is used.
+	 */
+	private final class LazyChildEntryMap extends AbstractMap<String, TarEntry>
+	{
+		private final AbsoluteLocation m_directoryLocation;
+
+		private LazyChildEntryMap(AbsoluteLocation directoryLocation)
+		{
+			m_directoryLocation = directoryLocation;
+		}
+
+		@Override
+		public Set<Map.Entry<String, TarEntry>> entrySet()
+		{
+			return getChildEntries(m_directoryLocation).entrySet();
+		}
+
+		@Override
+		public TarEntry get(Object key)
+		{
+			return getChildEntries(m_directoryLocation).get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key)
+		{
+			return getChildEntries(m_directoryLocation).containsKey(key);
+		}
+
+		@Override
+		public int size()
+		{
+			return getChildEntries(m_directoryLocation).size();
+		}
+	}
+
+	private final RandomlyAccessibleFile m_backingFile;
+	private final Lock m_tarFileReadLock;
+	private final TarEntryCollaborator m_entryCollaborator;
+	private final TarFileParser.HeaderParseContext m_parseContext;
+	private final TarDirectoryEntry m_rootEntry;
+
+	// This lock protects all of the variables below.
+	private final Object m_lock = new Object();
+	// This is used for scanning the Tar file. It is closed and set to null when
+	// the entire Tar file has been scanned.
+	private RandomAccess m_scanRandomAccess;
+	// This is set if scanning the Tar file failed.
+	private RuntimeException m_scanException;
+	// The entries found so far, in the order that they appear in the Tar file.
+	// This includes entries that have been replaced by later entries with the
+	// same location.
+	private final List<TarEntry> m_discoveredEntries = new ArrayList<TarEntry>();
+	// The last entry found so far for each location.
+	private final Map<AbsoluteLocation, TarEntry> m_discoveredEntryMap = new HashMap<AbsoluteLocation, TarEntry>();
+	// These are set when the entire Tar file has been scanned and the entry
+	// tree has been built.
+	private Map<AbsoluteLocation, TarEntry> m_allEntries;
+	private Map<AbsoluteLocation, Map<String, TarEntry>> m_childEntryMaps;
+
+	private final AtomicBoolean m_closed;
+
+	/**
+	 * Create a new lazy Tar file archive object that reads data from the
+	 * supplied file. File names and other text information in the Tar file is
+	 * interpreted using the platform's default charset.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for reading by this method. The read lock is released when this object is
+	 * {@link #close()}:d. If this method returns with an error, the file is not
+	 * locked.
+	 * @param f The Tar file.
+	 * @see #LazyTarFile(RandomlyAccessibleFile, Charset)
+	 */
+	public LazyTarFile(RandomlyAccessibleFile f)
+	{
+		this(f, null);
+	}
+
+	/**
+	 * Create a new lazy Tar file archive object that reads data from the
+	 * supplied file. Entry names and other text information in the Tar file is
+	 * interpreted using the supplied charset.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for reading by this method. The read lock is released when this object is
+	 * {@link #close()}:d. If this method returns with an error, the file is not
+	 * locked.
+	 * @param f The Tar file.
+	 * @param entryNameCharset The charset to use for interpreting text metadata
+	 * in the Tar file. If this is {@code null}, the platform's default charset
+	 * is used.
+	 * @see #LazyTarFile(RandomlyAccessibleFile)
+	 */
+	public LazyTarFile(RandomlyAccessibleFile f, Charset entryNameCharset)
+	{
+		// Null check
+		f.getClass();
+
+		m_backingFile = f;
+		m_parseContext = new TarFileParser.HeaderParseContext(entryNameCharset != null ? entryNameCharset : Charset.defaultCharset());
+		boolean successful = false;
+		m_tarFileReadLock = f.lockForReading();
+		try
+		{
+			m_entryCollaborator = new TarEntryCollaborator(f, this);
+			m_rootEntry = (TarDirectoryEntry) TarFileContentsBuildingEntryHandlerDelegate.createEntry(null, AbsoluteLocation.ROOT_DIR, 0, new LazyChildEntryMap(AbsoluteLocation.ROOT_DIR), m_entryCollaborator);
+			m_scanRandomAccess = f.openForRandomAccess(RandomAccessMode.READ_ONLY);
+			successful = true;
+		}
+		finally
+		{
+			if (!successful)
+			{
+				m_tarFileReadLock.unlock();
+			}
+		}
+		m_closed = new AtomicBoolean(false);
+	}
+
+	/**
+	 * This method throws an {@link IllegalStateException} if this object has
+	 * been closed.
+	 * @throws IllegalStateException If this object has been closed.
+	 */
+	protected void assertNotClosed() throws IllegalStateException
+	{
+		if (m_closed.get())
+		{
+			throw new IllegalStateException("This Tar file is closed");
+		}
+	}
+
+	private void closeScanRandomAccess()
+	{
+		if (m_scanRandomAccess != null)
+		{
+			try
+			{
+				m_scanRandomAccess.close();
+			}
+			finally
+			{
+				m_scanRandomAccess = null;
+			}
+		}
+	}
+
+	/**
+	 * Give a hard link entry the data of the file entry that it links to. The
+	 * link target must have been discovered already.
+	 * @return The start position of the link target's data, or {@code
+	 * startPosOfFileData} if the link target was not found.
+	 */
+	private long resolveHardLink(TarEntryHeaderData ehd, long startPosOfFileData)
+	{
+		TarEntry target;
+		try
+		{
+			target = m_discoveredEntryMap.get(new AbsoluteLocation("/" + ehd.getLinkName()));
+		}
+		catch (IllegalArgumentException e)
+		{
+			target = null;
+		}
+		catch (InvalidEntityLocationException e)
+		{
+			target = null;
+		}
+
+		if (!(target instanceof TarFileEntry))
+		{
+			System.err.println("The target " + ehd.getLinkName() + " of the hard link " + ehd.getLocation() + " was not found before the link in the Tar file. The link will be treated as an empty file.");
+			return startPosOfFileData;
+		}
+
+		TarFileEntry tfe = (TarFileEntry) target;
+		ehd.setFileSize(tfe.getStoredSize());
+		ehd.setSparseMap(tfe.getSparseMap());
+		return tfe.getStartPosOfFileData();
+	}
+
+	/**
+	 * Scan the Tar file for the next entry. The caller must hold
+	 * {@code m_lock}.
+	 * @return The next entry, or {@code null} if the entire Tar file has been
+	 * scanned.
+	 */
+	private TarEntry scanNextEntry() throws TarFileParseException, WrappedIOException
+	{
+		if (m_scanException != null)
+		{
+			throw m_scanException;
+		}
+
+		try
+		{
+			while (m_scanRandomAccess != null)
+			{
+				TarEntryHeaderData ehd = TarFileParser.INSTANCE.readNextEntry(m_scanRandomAccess, m_parseContext);
+				if (ehd == null)
+				{
+					// At the end of the Tar file.
+					closeScanRandomAccess();
+					return null;
+				}
+
+				// This must be read before resolving hard links
+				long noToSkip = ehd.getFileSize();
+				long startPosOfFileData = m_scanRandomAccess.getFilePointer();
+				TarFileParser.INSTANCE.skipEntryData(m_scanRandomAccess, noToSkip);
+
+				AbsoluteLocation location = ehd.getLocation();
+				if (location.equals(AbsoluteLocation.ROOT_DIR))
+				{
+					// The root directory entry is never read from the Tar
+					// file.
+					continue;
+				}
+
+				if (ehd.getTypeFlag() == TarConstants.HARD_LINK_TYPE_FLAG)
+				{
+					startPosOfFileData = resolveHardLink(ehd, startPosOfFileData);
+				}
+				TarEntry res = TarFileContentsBuildingEntryHandlerDelegate.createEntry(ehd, location, startPosOfFileData, new LazyChildEntryMap(location), m_entryCollaborator);
+				m_discoveredEntries.add(res);
+				// A later entry replaces an earlier entry with the same
+				// location.
+				m_discoveredEntryMap.put(location, res);
+				return res;
+			}
+			return null;
+		}
+		catch (RuntimeException e)
+		{
+			if ((e instanceof TarFileParseException) || (e instanceof WrappedIOException))
+			{
+				m_scanException = e;
+			}
+			else
+			{
+				m_scanException = new TarFileParseException(e);
+			}
+			closeScanRandomAccess();
+			throw m_scanException;
+		}
+	}
+
+	/**
+	 * Add the entry to its parent directory's child entry map. Parent
+	 * directories that are missing from the Tar file are created.
+	 */
+	private void addToParent(TarEntry e, Map<AbsoluteLocation, TarEntry> entries, Map<AbsoluteLocation, Map<String, TarEntry>> childEntryMaps)
+	{
+		AbsoluteLocation parentLocation = e.getLocation().getParentLocation();
+		Map<String, TarEntry> children = childEntryMaps.get(parentLocation);
+		if (children == null)
+		{
+			TarEntry parent = entries.get(parentLocation);
+			if (parent == null)
+			{
+				// A directory that is missing from the Tar file
+				parent = TarFileContentsBuildingEntryHandlerDelegate.createEntry(null, parentLocation, 0, new LazyChildEntryMap(parentLocation), m_entryCollaborator);
+				entries.put(parentLocation, parent);
+				addToParent(parent, entries, childEntryMaps);
+			}
+			else if (!(parent instanceof TarDirectoryEntry))
+			{
+				throw new TarFileParseException("The entry " + parentLocation + " has child entries but is not a directory");
+			}
+			children = new HashMap<String, TarEntry>();
+			childEntryMaps.put(parentLocation, children);
+		}
+		children.put(e.getName(), e);
+	}
+
+	/**
+	 * Scan the rest of the Tar file and build the entry tree, if that has not
+	 * already been done. The caller must hold {@code m_lock}.
+	 */
+	private void scanAll() throws TarFileParseException, WrappedIOException
+	{
+		if (m_allEntries == null)
+		{
+			while (scanNextEntry() != null)
+			{
+				// Scan on
+			}
+
+			Map<AbsoluteLocation, TarEntry> entries = new HashMap<AbsoluteLocation, TarEntry>(m_discoveredEntryMap);
+			entries.put(AbsoluteLocation.ROOT_DIR, m_rootEntry);
+			Map<AbsoluteLocation, Map<String, TarEntry>> childEntryMaps = new HashMap<AbsoluteLocation, Map<String, TarEntry>>();
+			for (TarEntry e : m_discoveredEntryMap.values())
+			{
+				addToParent(e, entries, childEntryMaps);
+			}
+			m_childEntryMaps = childEntryMaps;
+			m_allEntries = Collections.unmodifiableMap(entries);
+		}
+	}
+
+	private Map<AbsoluteLocation, TarEntry> getAllEntries() throws TarFileParseException, WrappedIOException, IllegalStateException
+	{
+		assertNotClosed();
+		synchronized (m_lock)
+		{
+			scanAll();
+			return m_allEntries;
+		}
+	}
+
+	private Map<String, TarEntry> getChildEntries(AbsoluteLocation directoryLocation) throws TarFileParseException, WrappedIOException, IllegalStateException
+	{
+		assertNotClosed();
+		synchronized (m_lock)
+		{
+			scanAll();
+			Map<String, TarEntry> res = m_childEntryMaps.get(directoryLocation);
+			return res != null ? Collections.unmodifiableMap(res) : Collections.<String, TarEntry> emptyMap();
+		}
+	}
+
+	/**
+	 * Get the root directory entry for the Tar file. The root directory entry
+	 * is the entry that has the absolute location {@code /} in the Tar file.
+	 * <p>
+	 * This entry is never present in the Tar file itself, so the returned
+	 * object is always a {@link TarDirectoryEntry} (and not some subclass of
+	 * that object). This method does not scan the Tar file, but accessing the
+	 * entry's child entries does.
+	 * @return The Tar archive's root directory entry.
+	 */
+	public TarDirectoryEntry getRootEntry()
+	{
+		assertNotClosed();
+		return m_rootEntry;
+	}
+
+	/**
+	 * Get an iterator over the entries in the Tar file, in the order that they
+	 * appear in the Tar file. The Tar file is scanned as the iteration proceeds.
+	 * The iterator does not return the root directory entry or directory
+	 * entries that are missing from the Tar file. If the Tar file contains
+	 * several entries with the same location, the iterator returns all of
+	 * them.
+	 * <p>
+	 * The iterator throws a {@link TarFileParseException} if the Tar file
+	 * cannot be parsed, and an {@link IllegalStateException} if this object is
+	 * closed.
+	 * @return An iterator over the entries in the Tar file. It does not support
+	 * {@link Iterator#remove()}.
+	 * @throws IllegalStateException If the Tar archive has been closed.
+	 */
+	public Iterator<TarEntry> iterator() throws IllegalStateException
+	{
+		assertNotClosed();
+		return new Iterator<TarEntry>()
+		{
+			private int m_index = 0;
+
+			public boolean hasNext()
+			{
+				assertNotClosed();
+				synchronized (m_lock)
+				{
+					return (m_index < m_discoveredEntries.size()) || (scanNextEntry() != null);
+				}
+			}
+
+			public TarEntry next()
+			{
+				synchronized (m_lock)
+				{
+					if (!hasNext())
+					{
+						throw new NoSuchElementException();
+					}
+					return m_discoveredEntries.get(m_index++);
+				}
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @throws UnsupportedOperationException Always.
+	 */
+	public void clear() throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Does the Tar archive contain the specified key (which should be an
+	 * {@link AbsoluteLocation} object)? This scans the Tar file until the
+	 * entry is found.
+	 * @param key The key to search for.
+	 * @return {@code true} if the supplied key is present in the Tar file.
+	 * @throws TarFileParseException If the Tar file cannot be parsed.
+	 * @throws IllegalStateException If the Tar file has been closed.
+	 */
+	public boolean containsKey(Object key) throws TarFileParseException, IllegalStateException
+	{
+		return get(key) != null;
+	}
+
+	/**
+	 * Does the Tar archive contain the specified value (which should be some
+	 * kind of {@link TarEntry} object)? This scans the entire Tar file.
+	 * @param value The value to search for.
+	 * @return {@code true} if the Tar file contains the specified value.
+	 * @throws TarFileParseException If the Tar file cannot be parsed.
+	 * @throws IllegalStateException If the Tar file has been closed.
+	 */
+	public boolean containsValue(Object value) throws TarFileParseException, IllegalStateException
+	{
+		return getAllEntries().containsValue(value);
+	}
+
+	/**
+	 * Get a read only set containing the entries in the Tar archive. This
+	 * scans the entire Tar file.
+	 * @return A read only set containing the Tar archive's entries.
+	 * @throws TarFileParseException If the Tar file cannot be parsed.
+	 * @throws IllegalStateException If the Tar archive has been closed.
+	 */
+	public Set<Map.Entry<AbsoluteLocation, TarEntry>> entrySet() throws TarFileParseException, IllegalStateException
+	{
+		// The map is unmodifiable
+		return getAllEntries().entrySet();
+	}
+
+	/**
+	 * Get the {@link TarEntry} stored at the specified absolute location in the
+	 * Tar file. If the entry has not been found yet, the Tar file is scanned
+	 * until it is found. If it is not found, the entire Tar file is scanned.
+	 * <p>
+	 * If the Tar file contains several entries with the location, this returns
+	 * the last of them that has been scanned so far. A later entry with the
+	 * same location replaces it if the Tar file is scanned further.
+	 * @param key The {@link AbsoluteLocation} where the Tar entry is stored.
+	 * @return The Tar entry or {@code null} if no Tar entry is stored at the
+	 * specified location.
+	 * @throws TarFileParseException If the Tar file cannot be parsed.
+	 * @throws IllegalStateException If the Tar archive has been closed.
+	 */
+	public TarEntry get(Object key) throws TarFileParseException, IllegalStateException
+	{
+		assertNotClosed();
+		if (!(key instanceof AbsoluteLocation))
+		{
+			return null;
+		}
+
+		synchronized (m_lock)
+		{
+			if (m_allEntries != null)
+			{
+				return m_allEntries.get(key);
+			}
+
+			TarEntry res = m_discoveredEntryMap.get(key);
+			while (res == null)
+			{
+				TarEntry e = scanNextEntry();
+				if (e == null)
+				{
+					// Not in the Tar file. It can still be the root directory
+					// or a directory that is missing from the Tar file.
+					scanAll();
+					return m_allEntries.get(key);
+				}
+				else if (e.getLocation().equals(key))
+				{
+					res = e;
+				}
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * This method always returns {@code false} since a Tar archive always has
+	 * its root directory entry.
+	 * @return {@code false}, always.
+	 * @throws IllegalStateException If the Tar archive has been closed.
+	 */
+	public boolean isEmpty() throws IllegalStateException
+	{
+		assertNotClosed();
+		return false;
+	}
+
+	/**
+	 * Get a read only set containing all the {@link AbsoluteLocation}:s where
+	 * Tar entries are stored in the Tar file. This scans the entire Tar file.
+	 * @return A read only set containing all Tar entry positions.
+	 * @throws TarFileParseException If the Tar file cannot be parsed.
+	 * @throws IllegalStateException If the Tar archive has been closed.
+	 */
+	public Set<AbsoluteLocation> keySet() throws TarFileParseException, IllegalStateException
+	{
+		return getAllEntries().keySet();
+	}
+
+	/**
+	 * @throws UnsupportedOperationException Always.
+	 */
+	public TarEntry put(AbsoluteLocation key, TarEntry value) throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @throws UnsupportedOperationException Always.
+	 */
+	public void putAll(Map<? extends AbsoluteLocation, ? extends TarEntry> m) throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @throws UnsupportedOperationException Always.
+	 */
+	public TarEntry remove(Object key) throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Get the number of Tar entries in the archive. This scans the entire Tar
+	 * file.
+	 * @return The number of Tar entries in the archive.
+	 * @throws TarFileParseException If the Tar file cannot be parsed.
+	 * @throws IllegalStateException If the Tar archive has been closed.
+	 */
+	public int size() throws TarFileParseException, IllegalStateException
+	{
+		return getAllEntries().size();
+	}
+
+	/**
+	 * Get a read only collection containing all {@link TarEntry} objects in the
+	 * Tar file. This scans the entire Tar file.
+	 * @return A read only collection containing all Tar entries.
+	 * @throws TarFileParseException If the Tar file cannot be parsed.
+	 * @throws IllegalStateException If the Tar archive has been closed.
+	 */
+	public Collection<TarEntry> values() throws TarFileParseException, IllegalStateException
+	{
+		return getAllEntries().values();
+	}
+
+	/**
+	 * Get the file that this object was created from.
+	 * @return The Tar file.
+	 */
+	public RandomlyAccessibleFile getBackingFile()
+	{
+		return m_backingFile;
+	}
+
+	/**
+	 * Close this Tar file. This closes all open streams on file entries in the
+	 * Tar file and releases the read lock on the Tar file.
+	 * <p>
+	 * This method can safely be called several times.
+	 */
+	public void close()
+	{
+		if (!m_closed.getAndSet(true))
+		{
+			try
+			{
+				try
+				{
+					synchronized (m_lock)
+					{
+						closeScanRandomAccess();
+					}
+				}
+				finally
+				{
+					m_entryCollaborator.close();
+				}
+			}
+			finally
+			{
+				m_tarFileReadLock.unlock();
+			}
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable
+	{
+		close();
+		super.finalize();
+	}
+}
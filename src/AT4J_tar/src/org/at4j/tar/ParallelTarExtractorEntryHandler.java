@@ -0,0 +1,139 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.entityfs.DataSource;
+import org.entityfs.Directory;
+import org.entityfs.RandomAccess;
+
+/**
+ * This is used by the {@link TarExtractor} for the header scan of a parallel
+ * extraction. Directory entries are extracted directly. The positions of all
+ * other entries' data are recorded so that the entries can be extracted
+ * later.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class ParallelTarExtractorEntryHandler implements TarEntryHandlerDelegate
+{
+	/**
+	 * An entry that is extracted after the scan.
+	 */
+	static final class DeferredEntry
+	{
+		private final int m_index;
+		private final TarEntryHeaderData m_headerData;
+		private final long m_startPosOfData;
+
+		private DeferredEntry(int index, TarEntryHeaderData headerData, long startPosOfData)
+		{
+			m_index = index;
+			m_headerData = headerData;
+			m_startPosOfData = startPosOfData;
+		}
+
+		/**
+		 * The entry's index in the Tar file.
+		 */
+		int getIndex()
+		{
+			return m_index;
+		}
+
+		TarEntryHeaderData getHeaderData()
+		{
+			return m_headerData;
+		}
+
+		long getStartPosOfData()
+		{
+			return m_startPosOfData;
+		}
+	}
+
+	private final TarExtractSpecification m_spec;
+	private final Directory m_targetRoot;
+	private final List<DeferredEntry> m_files = new ArrayList<DeferredEntry>();
+	private final List<DeferredEntry> m_otherEntries = new ArrayList<DeferredEntry>();
+	private int m_numberOfEntries;
+
+	ParallelTarExtractorEntryHandler(TarExtractSpecification spec, Directory targetRoot)
+	{
+		m_spec = spec;
+		m_targetRoot = targetRoot;
+	}
+
+	public long handle(TarEntryHeaderData ehd, DataSource src)
+	{
+		int index = m_numberOfEntries++;
+		if ((m_spec.getFilter() == null) || (m_spec.getFilter().matches(ehd)))
+		{
+			if (ehd.isDirectory())
+			{
+				m_spec.getEntryExtractionStrategy().extract(ehd, src, m_targetRoot, m_spec);
+				return 0;
+			}
+
+			DeferredEntry de = new DeferredEntry(index, ehd, ((RandomAccess) src).getFilePointer());
+			char typeFlag = ehd.getTypeFlag();
+			if ((typeFlag == TarConstants.FILE_TYPE_FLAG) || (typeFlag == TarConstants.ALT_FILE_TYPE_FLAG))
+			{
+				m_files.add(de);
+			}
+			else
+			{
+				// Symbolic links and other entries may depend on other
+				// entries having been extracted first.
+				m_otherEntries.add(de);
+			}
+		}
+		// Skip past the entry
+		return ehd.getFileSize();
+	}
+
+	/**
+	 * Get the number of entries that have been seen so far. If the scan
+	 * fails, all entries with a lower index than this were seen before the
+	 * failure.
+	 */
+	int getNumberOfEntries()
+	{
+		return m_numberOfEntries;
+	}
+
+	/**
+	 * Get the file entries, in archive order.
+	 */
+	List<DeferredEntry> getFiles()
+	{
+		return m_files;
+	}
+
+	/**
+	 * Get the entries that are neither files nor directories, in archive
+	 * order.
+	 */
+	List<DeferredEntry> getOtherEntries()
+	{
+		return m_otherEntries;
+	}
+}
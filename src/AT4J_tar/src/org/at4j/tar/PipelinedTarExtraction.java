@@ -0,0 +1,710 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+
+import org.entityfs.DataSource;
+import org.entityfs.Directory;
+import org.entityfs.ReadableFile;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.util.io.InputStreamToDataSourceAdapter;
+
+/**
+ * This object runs a pipelined extraction for the {@link TarExtractor}. The
+ * extraction is split up in three stages that run in separate threads:
+ * <ol>
+ * <li>The reader stage reads (and decompresses) data from the Tar file.</li>
+ * <li>The parser stage, that runs in the calling thread, parses the Tar entry
+ * headers and copies the data of each entry that should be extracted.</li>
+ * <li>The writer stage runs the entry extraction strategy for each entry, in
+ * archive order.</li>
+ * </ol>
+ * The stages are connected by bounded queues of data buffers. The buffers are
+ * taken from a bounded pool and are returned to it when they have been
+ * consumed.
+ * <p>
+ * If any stage fails, the other stages are stopped. If the writer stage fails,
+ * its error is reported since it comes from an entry that was read before the
+ * failure in the other stages. Otherwise the reader or parser error is
+ * reported.
+ * <p>
+ * The object is used for one extraction only.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class PipelinedTarExtraction
+{
+	/**
+	 * The size of the data buffers.
+	 */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * A chunk of data. Chunks are also used as markers in the queues.
+	 */
+	private static final class Chunk
+	{
+		private final byte[] m_buffer;
+		private final int m_length;
+		// This is set for error markers
+		private final Throwable m_error;
+
+		private Chunk(byte[] buffer, int length)
+		{
+			m_buffer = buffer;
+			m_length = length;
+			m_error = null;
+		}
+
+		private Chunk(Throwable error)
+		{
+			m_buffer = null;
+			m_length = 0;
+			m_error = error;
+		}
+	}
+
+	/**
+	 * Marks the start of an entry in the entry queue. It is followed by the
+	 * entry's data chunks and an {@link #ENTRY_END} marker.
+	 */
+	private static final class EntryStart
+	{
+		private final TarEntryHeaderData m_headerData;
+
+		private EntryStart(TarEntryHeaderData headerData)
+		{
+			m_headerData = headerData;
+		}
+	}
+
+	/**
+	 * Marks the end of the data in the data queue.
+	 */
+	private static final Chunk EOF = new Chunk(null, -1);
+
+	/**
+	 * Marks the end of an entry's data in the entry queue.
+	 */
+	private static final Object ENTRY_END = new Object();
+
+	/**
+	 * Marks the end of the entry queue.
+	 */
+	private static final Object END = new Object();
+
+	private final ReadableFile m_tarFile;
+	private final Directory m_targetRoot;
+	private final TarExtractSpecification m_spec;
+	private final ThreadFactory m_threadFactory;
+
+	private final BlockingQueue<byte[]> m_freeBuffers;
+	private final int m_maxNumberOfBuffers;
+	// Guarded by m_freeBuffers' monitor
+	private int m_numberOfBuffers;
+
+	private final BlockingQueue<Chunk> m_dataQueue;
+	private final BlockingQueue<Object> m_entryQueue;
+
+	// Set when the reader and parser stages should stop
+	private volatile boolean m_cancelled;
+	// Set by the writer stage if it fails
+	private volatile Throwable m_writerError;
+
+	PipelinedTarExtraction(ReadableFile tarFile, Directory targetRoot, TarExtractSpecification spec)
+	{
+		m_tarFile = tarFile;
+		m_targetRoot = targetRoot;
+		m_spec = spec;
+		m_threadFactory = spec.getThreadFactory();
+
+		int queueDepth = spec.getPipelineQueueDepth();
+		m_dataQueue = new ArrayBlockingQueue<Chunk>(queueDepth);
+		m_entryQueue = new ArrayBlockingQueue<Object>(queueDepth);
+		// Enough buffers for filling both queues and for one buffer in use by
+		// each stage, plus one extra for the parser stage that both reads and
+		// writes data.
+		m_maxNumberOfBuffers = 2 * queueDepth + 4;
+		m_freeBuffers = new ArrayBlockingQueue<byte[]>(m_maxNumberOfBuffers);
+	}
+
+	private byte[] takeBuffer() throws InterruptedException
+	{
+		synchronized (m_freeBuffers)
+		{
+			byte[] res = m_freeBuffers.poll();
+			if (res != null)
+			{
+				return res;
+			}
+			else if (m_numberOfBuffers < m_maxNumberOfBuffers)
+			{
+				// Allocate buffers lazily
+				m_numberOfBuffers++;
+				return new byte[BUFFER_SIZE];
+			}
+		}
+		return m_freeBuffers.take();
+	}
+
+	private void returnBuffer(byte[] buf)
+	{
+		if (buf != null)
+		{
+			m_freeBuffers.add(buf);
+		}
+	}
+
+	private static <T> void putUninterruptibly(BlockingQueue<T> q, T o)
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					q.put(o);
+					return;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		finally
+		{
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static <T> T takeUninterruptibly(BlockingQueue<T> q)
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					return q.take();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+		finally
+		{
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void joinUninterruptibly(Thread t)
+	{
+		boolean interrupted = false;
+		while (t.isAlive())
+		{
+			try
+			{
+				t.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Thread createThread(Runnable r)
+	{
+		return m_threadFactory != null ? m_threadFactory.newThread(r) : new Thread(r);
+	}
+
+	/**
+	 * The reader stage.
+	 */
+	private final class Reader implements Runnable
+	{
+		private void readData() throws IOException, InterruptedException
+		{
+			Lock rl = m_tarFile.lockForReading();
+			try
+			{
+				InputStream is = m_tarFile.openForRead();
+				try
+				{
+					while (!m_cancelled)
+					{
+						byte[] buf = takeBuffer();
+						int len = 0;
+						while (len < buf.length)
+						{
+							int noRead = is.read(buf, len, buf.length - len);
+							if (noRead < 0)
+							{
+								break;
+							}
+							len += noRead;
+						}
+
+						if (len > 0)
+						{
+							m_dataQueue.put(new Chunk(buf, len));
+						}
+						else
+						{
+							returnBuffer(buf);
+						}
+
+						if (len < buf.length)
+						{
+							// EOF
+							break;
+						}
+					}
+				}
+				finally
+				{
+					is.close();
+				}
+			}
+			finally
+			{
+				rl.unlock();
+			}
+		}
+
+		public void run()
+		{
+			try
+			{
+				readData();
+				putUninterruptibly(m_dataQueue, EOF);
+			}
+			catch (InterruptedException e)
+			{
+				putUninterruptibly(m_dataQueue, new Chunk(new InterruptedIOException("Interrupted when reading Tar data")));
+			}
+			catch (Throwable t)
+			{
+				putUninterruptibly(m_dataQueue, new Chunk(t));
+			}
+		}
+	}
+
+	/**
+	 * The stream that the parser stage reads data from.
+	 */
+	private final class DataQueueInputStream extends InputStream
+	{
+		private Chunk m_curChunk;
+		private int m_curPos;
+		private boolean m_eof;
+
+		/**
+		 * Make sure that there is a current chunk with data to read.
+		 * @return {@code false} at EOF.
+		 */
+		private boolean nextChunk() throws IOException
+		{
+			if (m_eof)
+			{
+				return false;
+			}
+			if ((m_curChunk != null) && (m_curPos < m_curChunk.m_length))
+			{
+				return true;
+			}
+			if (m_cancelled)
+			{
+				throw new IOException("The extraction was cancelled");
+			}
+
+			if (m_curChunk != null)
+			{
+				returnBuffer(m_curChunk.m_buffer);
+				m_curChunk = null;
+			}
+			Chunk c;
+			try
+			{
+				c = m_dataQueue.take();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted when waiting for data");
+			}
+			m_eof = (c == EOF) || (c.m_error != null);
+			if (c.m_error instanceof IOException)
+			{
+				throw (IOException) c.m_error;
+			}
+			else if (c.m_error instanceof RuntimeException)
+			{
+				throw (RuntimeException) c.m_error;
+			}
+			else if (c.m_error instanceof Error)
+			{
+				throw (Error) c.m_error;
+			}
+			else if (m_eof)
+			{
+				return false;
+			}
+			m_curChunk = c;
+			m_curPos = 0;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if (!nextChunk())
+			{
+				return -1;
+			}
+			return m_curChunk.m_buffer[m_curPos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] barr, int off, int len) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			int noRead = 0;
+			while ((noRead < len) && nextChunk())
+			{
+				int n = Math.min(len - noRead, m_curChunk.m_length - m_curPos);
+				System.arraycopy(m_curChunk.m_buffer, m_curPos, barr, off + noRead, n);
+				m_curPos += n;
+				noRead += n;
+			}
+			return noRead > 0 ? noRead : -1;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long noSkipped = 0;
+			while ((noSkipped < n) && nextChunk())
+			{
+				int s = (int) Math.min(n - noSkipped, m_curChunk.m_length - m_curPos);
+				m_curPos += s;
+				noSkipped += s;
+			}
+			return noSkipped;
+		}
+
+		/**
+		 * Consume all remaining data so that the reader stage can finish.
+		 */
+		void drain()
+		{
+			if (m_curChunk != null)
+			{
+				returnBuffer(m_curChunk.m_buffer);
+				m_curChunk = null;
+			}
+			while (!m_eof)
+			{
+				Chunk c = takeUninterruptibly(m_dataQueue);
+				m_eof = (c == EOF) || (c.m_error != null);
+				returnBuffer(c.m_buffer);
+			}
+		}
+	}
+
+	/**
+	 * The entry handler used by the parser stage. It copies the data of each
+	 * entry that should be extracted to the entry queue.
+	 */
+	private final class ParserEntryHandler implements TarEntryHandlerDelegate
+	{
+		// Set while an entry's data is being copied to the entry queue
+		private boolean m_entryOpen;
+
+		public long handle(TarEntryHeaderData ehd, DataSource src)
+		{
+			if (m_cancelled)
+			{
+				throw new TarFileParseException("The extraction was cancelled");
+			}
+
+			if ((m_spec.getFilter() != null) && (!m_spec.getFilter().matches(ehd)))
+			{
+				// Skip past the entry
+				return ehd.getFileSize();
+			}
+
+			try
+			{
+				m_entryQueue.put(new EntryStart(ehd));
+				m_entryOpen = true;
+				// Copy the data up to the next block boundary. That is what
+				// the entry extraction strategy expects to consume.
+				long remaining = ehd.getFileSize() == 0 ? 0 : ((ehd.getFileSize() - 1) / TarConstants.BLOCK_SIZE + 1) * TarConstants.BLOCK_SIZE;
+				while (remaining > 0)
+				{
+					byte[] buf = takeBuffer();
+					int len = 0;
+					int toRead = (int) Math.min(buf.length, remaining);
+					while (len < toRead)
+					{
+						int noRead = src.read(buf, len, toRead - len);
+						if (noRead < 0)
+						{
+							break;
+						}
+						len += noRead;
+					}
+					if (len == 0)
+					{
+						// EOF. Let the entry extraction strategy deal with the
+						// missing data.
+						returnBuffer(buf);
+						break;
+					}
+					m_entryQueue.put(new Chunk(buf, len));
+					remaining -= len;
+				}
+				m_entryQueue.put(ENTRY_END);
+				m_entryOpen = false;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new WrappedIOException(new InterruptedIOException("Interrupted when parsing Tar entries"));
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * The stream that the writer stage reads one entry's data from.
+	 */
+	private final class EntryInputStream extends InputStream
+	{
+		private Chunk m_curChunk;
+		private int m_curPos;
+		private boolean m_atEnd;
+
+		private boolean nextChunk()
+		{
+			if (m_atEnd)
+			{
+				return false;
+			}
+			if ((m_curChunk != null) && (m_curPos < m_curChunk.m_length))
+			{
+				return true;
+			}
+
+			if (m_curChunk != null)
+			{
+				returnBuffer(m_curChunk.m_buffer);
+				m_curChunk = null;
+			}
+			Object o = takeUninterruptibly(m_entryQueue);
+			if (o == ENTRY_END)
+			{
+				m_atEnd = true;
+				return false;
+			}
+			m_curChunk = (Chunk) o;
+			m_curPos = 0;
+			return true;
+		}
+
+		@Override
+		public int read()
+		{
+			if (!nextChunk())
+			{
+				return -1;
+			}
+			return m_curChunk.m_buffer[m_curPos++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] barr, int off, int len)
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			int noRead = 0;
+			while ((noRead < len) && nextChunk())
+			{
+				int n = Math.min(len - noRead, m_curChunk.m_length - m_curPos);
+				System.arraycopy(m_curChunk.m_buffer, m_curPos, barr, off + noRead, n);
+				m_curPos += n;
+				noRead += n;
+			}
+			return noRead > 0 ? noRead : -1;
+		}
+
+		@Override
+		public long skip(long n)
+		{
+			long noSkipped = 0;
+			while ((noSkipped < n) && nextChunk())
+			{
+				int s = (int) Math.min(n - noSkipped, m_curChunk.m_length - m_curPos);
+				m_curPos += s;
+				noSkipped += s;
+			}
+			return noSkipped;
+		}
+
+		/**
+		 * Consume the rest of the entry's data.
+		 */
+		void drain()
+		{
+			while (nextChunk())
+			{
+				m_curPos = m_curChunk.m_length;
+			}
+		}
+	}
+
+	/**
+	 * The writer stage.
+	 */
+	private final class Writer implements Runnable
+	{
+		public void run()
+		{
+			while (true)
+			{
+				Object o = takeUninterruptibly(m_entryQueue);
+				if (o == END)
+				{
+					return;
+				}
+
+				TarEntryHeaderData ehd = ((EntryStart) o).m_headerData;
+				EntryInputStream is = new EntryInputStream();
+				if (m_writerError == null)
+				{
+					try
+					{
+						m_spec.getEntryExtractionStrategy().extract(ehd, new InputStreamToDataSourceAdapter(is), m_targetRoot, m_spec);
+					}
+					catch (WrappedIOException e)
+					{
+						m_writerError = e;
+						m_cancelled = true;
+					}
+					catch (RuntimeException e)
+					{
+						// Wrap the exception just like the TarFileParser does
+						// when extracting sequentially.
+						m_writerError = new TarFileParseException(e);
+						m_cancelled = true;
+					}
+					catch (Error e)
+					{
+						m_writerError = e;
+						m_cancelled = true;
+					}
+				}
+				is.drain();
+			}
+		}
+	}
+
+	/**
+	 * Run the extraction. This returns when all stages have finished.
+	 * @throws TarFileParseException On parse errors.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	void run() throws TarFileParseException, WrappedIOException
+	{
+		Thread readerThread = createThread(new Reader());
+		Thread writerThread = createThread(new Writer());
+		readerThread.start();
+		writerThread.start();
+
+		RuntimeException parserError = null;
+		DataQueueInputStream is = new DataQueueInputStream();
+		ParserEntryHandler handler = new ParserEntryHandler();
+		try
+		{
+			TarFileParser.INSTANCE.parse(new InputStreamToDataSourceAdapter(is), m_spec.getFileNameCharset(), handler);
+		}
+		catch (RuntimeException e)
+		{
+			parserError = e;
+		}
+		finally
+		{
+			// Stop the reader stage if it has not finished already and let
+			// the writer stage finish.
+			m_cancelled = true;
+			if (handler.m_entryOpen)
+			{
+				putUninterruptibly(m_entryQueue, ENTRY_END);
+			}
+			putUninterruptibly(m_entryQueue, END);
+			is.drain();
+			joinUninterruptibly(readerThread);
+			joinUninterruptibly(writerThread);
+		}
+
+		Throwable writerError = m_writerError;
+		if (writerError instanceof RuntimeException)
+		{
+			throw (RuntimeException) writerError;
+		}
+		else if (writerError instanceof Error)
+		{
+			throw (Error) writerError;
+		}
+		else if (parserError != null)
+		{
+			throw parserError;
+		}
+	}
+}
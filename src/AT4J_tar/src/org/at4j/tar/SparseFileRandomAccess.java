@@ -0,0 +1,207 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomAccessCloseObserver;
+import org.entityfs.exception.ReadOnlyException;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+
+/**
+ * This is a read only {@link RandomAccess} on the data of a sparse Tar file
+ * entry. It uses the entry's {@link TarSparseMap} to map positions in the file
+ * to positions in the stored data. Holes are read as zeroes.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class SparseFileRandomAccess implements RandomAccess
+{
+	private final RandomAccess m_data;
+	private final TarSparseMap m_map;
+	private final List<RandomAccessCloseObserver> m_closeObservers = new ArrayList<RandomAccessCloseObserver>(1);
+
+	private long m_pos;
+	private boolean m_closed;
+
+	/**
+	 * @param data A random access on the stored data of the entry. It is
+	 * closed when this object is closed.
+	 * @param map The sparse map.
+	 */
+	SparseFileRandomAccess(RandomAccess data, TarSparseMap map)
+	{
+		// Null checks
+		data.getClass();
+		map.getClass();
+
+		m_data = data;
+		m_map = map;
+	}
+
+	private void assertNotClosed() throws IllegalStateException
+	{
+		if (m_closed)
+		{
+			throw new IllegalStateException("This object is closed");
+		}
+	}
+
+	public RandomAccessMode getMode()
+	{
+		return RandomAccessMode.READ_ONLY;
+	}
+
+	public void addCloseObserver(RandomAccessCloseObserver rao)
+	{
+		m_closeObservers.add(rao);
+	}
+
+	public long getFilePointer() throws IllegalStateException
+	{
+		assertNotClosed();
+		return m_pos;
+	}
+
+	public long length() throws IllegalStateException
+	{
+		assertNotClosed();
+		return m_map.getRealSize();
+	}
+
+	public void seek(long pos) throws IllegalStateException
+	{
+		assertNotClosed();
+		if (pos < 0)
+		{
+			throw new IllegalArgumentException("Invalid position " + pos);
+		}
+		m_pos = pos;
+	}
+
+	public void setLength(long l) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("A Tar entry is read only");
+	}
+
+	public int available() throws IllegalStateException
+	{
+		assertNotClosed();
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, m_map.getRealSize() - m_pos));
+	}
+
+	public int read() throws IllegalStateException, WrappedIOException
+	{
+		byte[] barr = new byte[1];
+		return read(barr, 0, 1) > 0 ? barr[0] & 0xFF : -1;
+	}
+
+	public int read(byte[] barr) throws IllegalStateException, WrappedIOException
+	{
+		return read(barr, 0, barr.length);
+	}
+
+	public int read(byte[] barr, int off, int len) throws IllegalStateException, WrappedIOException
+	{
+		assertNotClosed();
+		long realSize = m_map.getRealSize();
+		if (m_pos >= realSize)
+		{
+			return -1;
+		}
+		else if (len == 0)
+		{
+			return 0;
+		}
+
+		int segment = m_map.getSegmentIndexFor(m_pos);
+		if ((segment >= 0) && (m_pos < m_map.getSegmentOffset(segment) + m_map.getSegmentSize(segment)))
+		{
+			// In a data segment
+			long posInSegment = m_pos - m_map.getSegmentOffset(segment);
+			m_data.seek(m_map.getStoredSegmentOffset(segment) + posInSegment);
+			int noRead = m_data.read(barr, off, (int) Math.min(len, m_map.getSegmentSize(segment) - posInSegment));
+			if (noRead > 0)
+			{
+				m_pos += noRead;
+			}
+			return noRead;
+		}
+		else
+		{
+			// In a hole. It ends where the next segment starts.
+			long endOfHole = segment + 1 < m_map.getNumberOfSegments() ? m_map.getSegmentOffset(segment + 1) : realSize;
+			int noRead = (int) Math.min(len, endOfHole - m_pos);
+			Arrays.fill(barr, off, off + noRead, (byte) 0);
+			m_pos += noRead;
+			return noRead;
+		}
+	}
+
+	public long skipBytes(long n) throws IllegalStateException
+	{
+		assertNotClosed();
+		long res = Math.max(0, Math.min(n, m_map.getRealSize() - m_pos));
+		m_pos += res;
+		return res;
+	}
+
+	public void write(int b) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("A Tar entry is read only");
+	}
+
+	public void write(byte[] barr) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("A Tar entry is read only");
+	}
+
+	public void write(byte[] barr, int off, int len) throws ReadOnlyException
+	{
+		throw new ReadOnlyException("A Tar entry is read only");
+	}
+
+	public void flush()
+	{
+		// Nothing to do
+	}
+
+	public void close()
+	{
+		if (!m_closed)
+		{
+			m_closed = true;
+			try
+			{
+				m_data.close();
+			}
+			finally
+			{
+				for (RandomAccessCloseObserver rao : m_closeObservers)
+				{
+					rao.notifyClosed(this);
+				}
+			}
+		}
+	}
+}
@@ -43,6 +43,13 @@ public final class TarConstants
 	 */
 	public static final char ALT_FILE_TYPE_FLAG = '\0';
 
+	/**
+	 * The type flag for a hard link. The entry's link name is the name of an
+	 * earlier entry in the Tar file that contains the file data.
+	 * @since 1.2
+	 */
+	public static final char HARD_LINK_TYPE_FLAG = '1';
+
 	/**
 	 * The type flag for a symbolic link.
 	 */
@@ -53,6 +60,14 @@ public final class TarConstants
 	 */
 	public static final char DIRECTORY_TYPE_FLAG = '5';
 
+	/**
+	 * The type flag for an old Gnu Tar sparse file. The
+	 * {@link TarFileParser} reports such entries with the
+	 * {@link #FILE_TYPE_FLAG} and a {@link TarSparseMap}.
+	 * @since 1.2
+	 */
+	public static final char GNU_SPARSE_TYPE_FLAG = 'S';
+
 	// Hidden constructor
 	private TarConstants()
 	{
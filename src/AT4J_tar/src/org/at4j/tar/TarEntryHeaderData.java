@@ -49,6 +49,8 @@ public final class TarEntryHeaderData implements TarEntryHeader
 	private int m_devMinor;
 	// Variables set in a previous PAX header
 	private Map<String, String> m_paxVariables;
+	// Set for sparse file entries
+	private TarSparseMap m_sparseMap;
 
 	public AbsoluteLocation getLocation()
 	{
@@ -230,4 +232,27 @@ public final class TarEntryHeaderData implements TarEntryHeader
 	{
 		m_paxVariables = variables;
 	}
+
+	/**
+	 * Get the sparse map for a sparse file entry. For sparse file entries, the
+	 * {@link #getFileSize() file size} is the size of the data stored in the
+	 * Tar file and the sparse map contains the real size of the file.
+	 * @return The sparse map, or {@code null} if the entry is not a sparse
+	 * file entry.
+	 * @since 1.2
+	 */
+	public TarSparseMap getSparseMap()
+	{
+		return m_sparseMap;
+	}
+
+	/**
+	 * Set the sparse map for a sparse file entry.
+	 * @param sparseMap The sparse map.
+	 * @since 1.2
+	 */
+	public void setSparseMap(TarSparseMap sparseMap)
+	{
+		m_sparseMap = sparseMap;
+	}
 }
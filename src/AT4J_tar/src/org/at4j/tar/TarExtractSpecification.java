@@ -19,6 +19,8 @@
 package org.at4j.tar;
 
 import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 
 import org.entityfs.ostrat.DoOverwriteAndLogWarning;
 import org.entityfs.ostrat.OverwriteStrategy;
@@ -37,16 +39,35 @@ import org.entityfs.support.filter.Filter;
  * <li>File names are encoded in the platform's default charset.</li>
  * <li>Existing files and directories are overwritten and a warning is printed
  * out.</li>
+ * <li>All entries are extracted in the calling thread (no executor).</li>
+ * <li>When extracting with an executor, at most as many files as there are
+ * available processors are extracted concurrently.</li>
+ * <li>No pipelining. If pipelining is enabled, the default pipeline queue
+ * depth is {@link #DEFAULT_PIPELINE_QUEUE_DEPTH} and the pipeline threads are
+ * created with {@code new Thread}.</li>
  * </ul>
  * @author Karl Gustafsson
  * @since 1.0
  */
 public class TarExtractSpecification
 {
+	/**
+	 * The default depth of the queues between the stages of a pipelined
+	 * extraction.
+	 * @see #setPipelineQueueDepth(int)
+	 * @since 1.2
+	 */
+	public static final int DEFAULT_PIPELINE_QUEUE_DEPTH = 8;
+
 	private Filter<? super TarEntryHeaderData> m_filter;
 	private TarEntryExtractionStrategy m_entryExtractionStrategy = new ExtractTarEntryExtractionStrategy(false);
 	private Charset m_fileNameCharset = Charset.defaultCharset();
 	private OverwriteStrategy m_overwriteStrategy = DoOverwriteAndLogWarning.INSTANCE;
+	private Executor m_executor;
+	private int m_maxNumberOfConcurrentFileExtractions = Runtime.getRuntime().availableProcessors();
+	private boolean m_pipelined = false;
+	private int m_pipelineQueueDepth = DEFAULT_PIPELINE_QUEUE_DEPTH;
+	private ThreadFactory m_threadFactory;
 
 	/**
 	 * Set the filter to use to decide which entries to extract. Set this to
@@ -145,4 +166,170 @@ public class TarExtractSpecification
 	{
 		return m_overwriteStrategy;
 	}
+
+	/**
+	 * Set an executor that is used for extracting file entries in parallel.
+	 * <p>
+	 * Parallel extraction is only used if the Tar file is a
+	 * {@link org.entityfs.RandomlyAccessibleFile}, i.e. an uncompressed Tar
+	 * file. The extractor first scans through all entry headers, skipping over
+	 * the entry data. Directory entries are extracted during the scan. After
+	 * the scan, file entries are extracted concurrently, each read from its
+	 * own position in the Tar file. Other entries, such as symbolic links, are
+	 * extracted in archive order after all files have been extracted.
+	 * <p>
+	 * If the Tar file is not randomly accessible, the executor is ignored and
+	 * all entries are extracted sequentially.
+	 * <p>
+	 * The entry extraction strategy must be thread safe if an executor is
+	 * used, and the target directory should be in a locking file system.
+	 * @param executor The executor, or {@code null} if all entries should be
+	 * extracted in the calling thread.
+	 * @return {@code this}
+	 * @see #setMaxNumberOfConcurrentFileExtractions(int)
+	 * @since 1.2
+	 */
+	public TarExtractSpecification setExecutor(Executor executor)
+	{
+		m_executor = executor;
+		return this;
+	}
+
+	/**
+	 * Get the executor used for extracting file entries in parallel.
+	 * @return The executor, or {@code null} if entries are extracted in the
+	 * calling thread.
+	 * @since 1.2
+	 */
+	public Executor getExecutor()
+	{
+		return m_executor;
+	}
+
+	/**
+	 * Set the maximum number of file entries that may be extracted
+	 * concurrently when an executor is used.
+	 * @param n The maximum number of concurrent file extractions. This must be
+	 * at least {@code 1}.
+	 * @return {@code this}
+	 * @throws IllegalArgumentException If {@code n} is less than {@code 1}.
+	 * @see #setExecutor(Executor)
+	 * @since 1.2
+	 */
+	public TarExtractSpecification setMaxNumberOfConcurrentFileExtractions(int n) throws IllegalArgumentException
+	{
+		if (n < 1)
+		{
+			throw new IllegalArgumentException("Invalid maximum number of concurrent file extractions " + n + ". It must be at least 1");
+		}
+		m_maxNumberOfConcurrentFileExtractions = n;
+		return this;
+	}
+
+	/**
+	 * Get the maximum number of file entries that may be extracted
+	 * concurrently when an executor is used.
+	 * @return The maximum number of concurrent file extractions.
+	 * @since 1.2
+	 */
+	public int getMaxNumberOfConcurrentFileExtractions()
+	{
+		return m_maxNumberOfConcurrentFileExtractions;
+	}
+
+	/**
+	 * Should the extraction be pipelined? In a pipelined extraction, reading
+	 * (and decompressing) the Tar file, parsing the Tar entry headers and
+	 * writing the extracted entries run in separate threads. The threads are
+	 * connected with bounded queues of data buffers. This makes the extraction
+	 * of a compressed Tar file take about as long as the slowest of the three
+	 * stages rather than the sum of them.
+	 * <p>
+	 * Entries are still extracted one at a time, in archive order, so the
+	 * entry extraction strategy does not have to be thread safe. It is called
+	 * from the writer thread, though.
+	 * <p>
+	 * If an executor is set and the Tar file is randomly accessible, the
+	 * Tar file is extracted in parallel instead. See
+	 * {@link #setExecutor(Executor)}.
+	 * @param b Should the extraction be pipelined?
+	 * @return {@code this}
+	 * @see #setPipelineQueueDepth(int)
+	 * @see #setThreadFactory(ThreadFactory)
+	 * @since 1.2
+	 */
+	public TarExtractSpecification setPipelined(boolean b)
+	{
+		m_pipelined = b;
+		return this;
+	}
+
+	/**
+	 * Should the extraction be pipelined?
+	 * @return {@code true} if the extraction should be pipelined.
+	 * @see #setPipelined(boolean)
+	 * @since 1.2
+	 */
+	public boolean isPipelined()
+	{
+		return m_pipelined;
+	}
+
+	/**
+	 * Set the maximum number of data buffers in each of the queues between the
+	 * stages of a pipelined extraction. Each buffer is 64 kilobytes large.
+	 * @param depth The queue depth. This must be at least {@code 1}.
+	 * @return {@code this}
+	 * @throws IllegalArgumentException If {@code depth} is less than {@code 1}.
+	 * @see #setPipelined(boolean)
+	 * @since 1.2
+	 */
+	public TarExtractSpecification setPipelineQueueDepth(int depth) throws IllegalArgumentException
+	{
+		if (depth < 1)
+		{
+			throw new IllegalArgumentException("Invalid pipeline queue depth " + depth + ". It must be at least 1");
+		}
+		m_pipelineQueueDepth = depth;
+		return this;
+	}
+
+	/**
+	 * Get the maximum number of data buffers in each of the queues between the
+	 * stages of a pipelined extraction.
+	 * @return The queue depth.
+	 * @since 1.2
+	 */
+	public int getPipelineQueueDepth()
+	{
+		return m_pipelineQueueDepth;
+	}
+
+	/**
+	 * Set the thread factory to use for creating the reader and writer threads
+	 * of a pipelined extraction.
+	 * <p>
+	 * If this is not set, the threads are created with {@code new Thread}.
+	 * @param tf The thread factory, or {@code null} if the threads should be
+	 * created with {@code new Thread}.
+	 * @return {@code this}
+	 * @see #setPipelined(boolean)
+	 * @since 1.2
+	 */
+	public TarExtractSpecification setThreadFactory(ThreadFactory tf)
+	{
+		m_threadFactory = tf;
+		return this;
+	}
+
+	/**
+	 * Get the thread factory used for creating the threads of a pipelined
+	 * extraction.
+	 * @return The thread factory, or {@code null} if not set.
+	 * @since 1.2
+	 */
+	public ThreadFactory getThreadFactory()
+	{
+		return m_threadFactory;
+	}
 }
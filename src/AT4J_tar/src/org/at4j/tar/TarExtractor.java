@@ -19,19 +19,27 @@
 package org.at4j.tar;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.locks.Lock;
 
+import org.at4j.support.io.FileChannelRandomAccess;
+import org.at4j.support.util.ParallelTaskRunner;
 import org.entityfs.DataSource;
 import org.entityfs.Directory;
 import org.entityfs.DirectoryView;
 import org.entityfs.FileSystem;
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomlyAccessibleFile;
 import org.entityfs.ReadableFile;
 import org.entityfs.exception.EntityNotFoundException;
 import org.entityfs.exception.NotADirectoryException;
 import org.entityfs.fs.FSRWFileSystemBuilder;
 import org.entityfs.support.exception.WrappedIOException;
-import org.entityfs.util.FileReadableFile;
+import org.entityfs.support.io.RandomAccessMode;
 import org.entityfs.util.io.InputStreamToDataSourceAdapter;
+import org.entityfs.util.io.ReadWritableFileAdapter;
 
 /**
  * This object is used to extract entries from a Tar archive. It does the same
@@ -49,6 +57,20 @@ import org.entityfs.util.io.InputStreamToDataSourceAdapter;
  * If the target is in a locking file system, the extractor automatically locks
  * files and directories as required.
  * <p>
+ * If the specification has an {@link java.util.concurrent.Executor} and the
+ * Tar file is a {@link RandomlyAccessibleFile} (an uncompressed Tar file), file
+ * entries are extracted in parallel. See
+ * {@link TarExtractSpecification#setExecutor(java.util.concurrent.Executor)}.
+ * Compressed Tar files can instead be extracted with a pipeline where
+ * decompression, parsing and writing run in separate threads. See
+ * {@link TarExtractSpecification#setPipelined(boolean)}.
+ * <p>
+ * If both the Tar file and the extracted files are regular files on disk, file
+ * data is copied using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * which lets the operating system copy the data directly between the files.
+ * This requires that the Tar file is a {@link RandomlyAccessibleFile}, such
+ * as the one created by {@link #TarExtractor(File)}.
+ * <p>
  * This class has a runnable main method. When run, it prints out the contents
  * of a Tar file.
  * @author Karl Gustafsson
@@ -65,6 +87,8 @@ public class TarExtractor
 	 * <i>Tip:</i> {@link org.entityfs.util.io.GZipReadableFile},
 	 * {@link org.at4j.comp.bzip2.BZip2ReadableFile} and
 	 * {@link org.at4j.comp.lzma.LzmaReadableFile} can all be used here.
+	 * Only {@link RandomlyAccessibleFile}:s can be extracted in parallel,
+	 * though.
 	 * @param f The Tar file.
 	 */
 	public TarExtractor(ReadableFile f)
@@ -77,6 +101,9 @@ public class TarExtractor
 
 	/**
 	 * Create a new Tar extractor for the supplied file.
+	 * <p>
+	 * Since version 1.2 the file is read through a {@link RandomlyAccessibleFile}
+	 * so that it can be extracted in parallel.
 	 * @param f The Tar file.
 	 */
 	public TarExtractor(File f)
@@ -84,15 +111,193 @@ public class TarExtractor
 		// Null check
 		f.getClass();
 
-		m_tarFile = new FileReadableFile(f);
+		m_tarFile = new ReadWritableFileAdapter(f);
+	}
+
+	/**
+	 * Open a {@link FileChannelRandomAccess} on the Tar file, if it is a file
+	 * that can give a {@link FileChannel}. File data is copied from a {@code
+	 * FileChannelRandomAccess} to the extracted files without going through a
+	 * buffer on the Java heap.
+	 * @return A {@code FileChannelRandomAccess}, or {@code null} if the Tar
+	 * file does not support random access or cannot give a {@code
+	 * FileChannel}.
+	 */
+	private static FileChannelRandomAccess openWithFileChannel(ReadableFile tarFile)
+	{
+		if (!(tarFile instanceof RandomlyAccessibleFile))
+		{
+			return null;
+		}
+
+		ReadableByteChannel c = tarFile.openChannelForRead();
+		try
+		{
+			if (c instanceof FileChannel)
+			{
+				FileChannelRandomAccess res = new FileChannelRandomAccess(((RandomlyAccessibleFile) tarFile).openForRandomAccess(RandomAccessMode.READ_ONLY), (FileChannel) c);
+				c = null;
+				return res;
+			}
+			return null;
+		}
+		finally
+		{
+			if (c != null)
+			{
+				try
+				{
+					c.close();
+				}
+				catch (IOException e)
+				{
+					throw new WrappedIOException(e);
+				}
+			}
+		}
+	}
+
+	private static RandomAccess openForRandomAccess(RandomlyAccessibleFile tarFile)
+	{
+		RandomAccess res = tarFile instanceof ReadableFile ? openWithFileChannel((ReadableFile) tarFile) : null;
+		return res != null ? res : tarFile.openForRandomAccess(RandomAccessMode.READ_ONLY);
+	}
+
+	/**
+	 * Extract a deferred entry from its position in the Tar file.
+	 */
+	private void extractDeferredEntry(RandomlyAccessibleFile tarFile, ParallelTarExtractorEntryHandler.DeferredEntry de, Directory target, TarExtractSpecification spec)
+	{
+		Lock rl = tarFile.lockForReading();
+		try
+		{
+			RandomAccess ra = openForRandomAccess(tarFile);
+			try
+			{
+				ra.seek(de.getStartPosOfData());
+				spec.getEntryExtractionStrategy().extract(de.getHeaderData(), ra, target, spec);
+			}
+			finally
+			{
+				ra.close();
+			}
+		}
+		catch (WrappedIOException e)
+		{
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			// Wrap the exception just like the TarFileParser does when
+			// extracting sequentially.
+			throw new TarFileParseException(e);
+		}
+		finally
+		{
+			rl.unlock();
+		}
+	}
+
+	/**
+	 * Scan through the entry headers, creating directories on the way. Then
+	 * extract all file entries in parallel and, last, all other entries in
+	 * archive order.
+	 * <p>
+	 * If any of the entries cannot be extracted, the error from the entry that
+	 * comes first in the archive is thrown. No entries after that entry are
+	 * extracted.
+	 */
+	private void extractInParallel(final RandomlyAccessibleFile tarFile, final Directory target, final TarExtractSpecification spec)
+	{
+		ParallelTaskRunner runner = new ParallelTaskRunner(spec.getExecutor(), spec.getMaxNumberOfConcurrentFileExtractions());
+		Lock rl = tarFile.lockForReading();
+		try
+		{
+			ParallelTarExtractorEntryHandler handler = new ParallelTarExtractorEntryHandler(spec, target);
+			RandomAccess ra = tarFile.openForRandomAccess(RandomAccessMode.READ_ONLY);
+			try
+			{
+				TarFileParser.INSTANCE.parse(ra, spec.getFileNameCharset(), handler);
+			}
+			catch (RuntimeException e)
+			{
+				// Extract all entries before the failing entry before
+				// reporting the error.
+				runner.recordError(handler.getNumberOfEntries(), e);
+			}
+			finally
+			{
+				ra.close();
+			}
+
+			try
+			{
+				for (final ParallelTarExtractorEntryHandler.DeferredEntry de : handler.getFiles())
+				{
+					boolean submitted = runner.submit(de.getIndex(), new Runnable()
+					{
+						public void run()
+						{
+							extractDeferredEntry(tarFile, de, target, spec);
+						}
+					});
+					if (!submitted)
+					{
+						break;
+					}
+				}
+			}
+			finally
+			{
+				runner.waitForAll();
+			}
+
+			for (ParallelTarExtractorEntryHandler.DeferredEntry de : handler.getOtherEntries())
+			{
+				if (de.getIndex() >= runner.getFirstFailedIndex())
+				{
+					break;
+				}
+
+				try
+				{
+					extractDeferredEntry(tarFile, de, target, spec);
+				}
+				catch (RuntimeException e)
+				{
+					runner.recordError(de.getIndex(), e);
+					break;
+				}
+			}
+			runner.throwFirstError();
+		}
+		finally
+		{
+			rl.unlock();
+		}
 	}
 
 	protected void extractInternal(Directory target, TarExtractSpecification spec)
 	{
+		if ((spec.getExecutor() != null) && (m_tarFile instanceof RandomlyAccessibleFile))
+		{
+			extractInParallel((RandomlyAccessibleFile) m_tarFile, target, spec);
+			return;
+		}
+		else if (spec.isPipelined())
+		{
+			new PipelinedTarExtraction(m_tarFile, target, spec).run();
+			return;
+		}
+
 		Lock rl = m_tarFile.lockForReading();
 		try
 		{
-			DataSource src = new InputStreamToDataSourceAdapter(m_tarFile.openForRead());
+			DataSource src = openWithFileChannel(m_tarFile);
+			if (src == null)
+			{
+				src = new InputStreamToDataSourceAdapter(m_tarFile.openForRead());
+			}
 			try
 			{
 				TarFileParser.INSTANCE.parse(src, spec.getFileNameCharset(), new TarExtractorEntryHandler(spec, target));
@@ -180,7 +385,14 @@ public class TarExtractor
 				throw new NotADirectoryException("The target " + target + " is not a directory");
 			}
 
-			FileSystem fs = new FSRWFileSystemBuilder().disableAccessControls().disableEntityValidityControls().setRoot(target).create();
+			FSRWFileSystemBuilder fsb = new FSRWFileSystemBuilder().disableAccessControls().disableEntityValidityControls().setRoot(target);
+			if (spec.getExecutor() != null)
+			{
+				// The file system must be locking to be safe to use from
+				// several threads.
+				fsb.enableLocking();
+			}
+			FileSystem fs = fsb.create();
 			try
 			{
 				extractInternal(fs.getRootDirectory(), spec);
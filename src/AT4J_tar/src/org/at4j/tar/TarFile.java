@@ -30,6 +30,7 @@ import java.util.concurrent.locks.Lock;
 import org.at4j.archive.Archive;
 import org.entityfs.RandomAccess;
 import org.entityfs.RandomlyAccessibleFile;
+import org.entityfs.ReadableFile;
 import org.entityfs.el.AbsoluteLocation;
 import org.entityfs.support.exception.WrappedIOException;
 import org.entityfs.support.io.RandomAccessMode;
@@ -53,18 +54,44 @@ import org.entityfs.util.io.ReadWritableFileAdapter;
  * to 255 characters long and text user and group id:s. Represented by
  * {@link UstarEntry} objects.</li>
  * <li><i>Gnu Tar version</i> &ndash; supports path names of unlimited length
- * and text user and group id:s. Special features such as sparse archive files
- * are not supported. Represented by {@link UstarEntry} objects.</li>
+ * and text user and group id:s. Sparse files are supported, but other special
+ * features such as multi-volume archives are not. Represented by
+ * {@link UstarEntry} objects.</li>
  * <li><i>POSIX 1003.1-2001 (pax) version</i> &ndash; supports path names of
  * unlimited length, text user and group id:s and any number of metadata
  * variables (PAX variables) for each entry. Represented by {@link PaxEntry}
  * objects.</li>
  * </ul>
  * <p>
+ * Sparse files in the old Gnu Tar format and in the Gnu Tar Pax formats 0.1 and
+ * 1.0 are represented by {@link TarFileEntry} objects with a
+ * {@link TarSparseMap}. The holes in the file are read as zeroes.
+ * <p>
+ * Hard link entries are represented by {@link TarFileEntry} objects that have
+ * the data of the file entry that they link to. The link target must come
+ * before the link in the Tar file.
+ * <p>
  * The entries in a Tar archive are positioned in a directory hierarchy. Parent
  * directories of entries may be absent. In that case they are represented by
  * {@link TarDirectoryEntry} objects using default directory settings.
  * <p>
+ * Opening a large Tar file is slow since the entire file has to be scanned to
+ * find all entries. The entries can instead be loaded from a
+ * {@link TarFileIndex} that has been created for the Tar file earlier. If
+ * only a few entries are needed, a {@link LazyTarFile} that only scans the Tar
+ * file as far as it has to can be used instead.
+ * <p>
+ * A bzip2 compressed Tar file can be opened using a
+ * {@link org.at4j.comp.bzip2.BZip2RandomlyAccessibleFile}. Only the bzip2
+ * blocks that contain the data that is read are decompressed. Its block index
+ * and a {@link TarFileIndex} can be saved to make reopening the file fast.
+ * <p>
+ * Similarly, a gzip compressed Tar file can be opened using a
+ * {@link org.at4j.comp.gzip.GZipRandomlyAccessibleFile}. It starts inflating
+ * data at the closest access point before the data that is read, so it
+ * requires a {@link org.at4j.comp.gzip.GZipIndex}. That index can be saved
+ * too.
+ * <p>
  * If the file used to create this object is in a locking
  * {@link org.entityfs.FileSystem}, it is locked for reading by this object
  * until it is {@link #close()}:d.
@@ -90,6 +117,7 @@ import org.entityfs.util.io.ReadWritableFileAdapter;
  * @author Karl Gustafsson
  * @since 1.0
  * @see TarExtractor
+ * @see LazyTarFile
  */
 public class TarFile implements Archive<TarEntry, TarDirectoryEntry>
 {
@@ -131,12 +159,46 @@ public class TarFile implements Archive<TarEntry, TarDirectoryEntry>
 	 * @param entryNameCharset The charset to use for interpreting text metadata
 	 * in the Tar file.
 	 * @see #TarFile(RandomlyAccessibleFile)
+	 * @see #TarFile(RandomlyAccessibleFile, Charset, ReadableFile)
 	 */
 	public TarFile(RandomlyAccessibleFile f, Charset entryNameCharset)
+	{
+		this(f, entryNameCharset, null);
+	}
+
+	/**
+	 * Create a new Tar file archive object that reads data from the supplied
+	 * file. The entries are loaded from the supplied {@link TarFileIndex}
+	 * instead of scanning through the Tar file. If the index is not valid, or
+	 * if it was created for another version of the Tar file (with another size
+	 * or time of last modification), the Tar file is scanned as usual.
+	 * <p>
+	 * If the index file can give a {@link java.nio.channels.FileChannel}, it is
+	 * memory mapped when it is read.
+	 * <p>
+	 * If the file is in a locking {@link org.entityfs.FileSystem}, it is locked
+	 * for reading by this method. The read lock is released when this object is
+	 * {@link #close()}:d. If this method returns with an error, the file is not
+	 * locked. If the index is in a locking file system, it is locked for
+	 * reading while it is read.
+	 * @param f The Tar file.
+	 * @param entryNameCharset The charset to use for interpreting text metadata
+	 * in the Tar file. If this is {@code null}, the platform's default charset
+	 * is used. The index is only used if it was created using the same
+	 * charset.
+	 * @param index The index file. If this is {@code null}, the Tar file is
+	 * scanned.
+	 * @see TarFileIndex#create(RandomlyAccessibleFile, Charset,
+	 * org.entityfs.WritableFile)
+	 * @see org.at4j.tar.builder.TarBuilderSettings#setIndexFile(org.entityfs.WritableFile)
+	 * @since 1.2
+	 */
+	public TarFile(RandomlyAccessibleFile f, Charset entryNameCharset, ReadableFile index)
 	{
 		// Null checks
 		f.getClass();
 
+		Charset charset = entryNameCharset != null ? entryNameCharset : Charset.defaultCharset();
 		boolean successful = false;
 		m_backingFile = f;
 		m_tarFileReadLock = f.lockForReading();
@@ -147,8 +209,22 @@ public class TarFile implements Archive<TarEntry, TarDirectoryEntry>
 			RandomAccess ra = f.openForRandomAccess(RandomAccessMode.READ_ONLY);
 			try
 			{
-				TarFileContentsBuildingEntryHandlerDelegate del = new TarFileContentsBuildingEntryHandlerDelegate(m_entryCollaborator);
-				TarFileParser.INSTANCE.parse(ra, entryNameCharset != null ? entryNameCharset : Charset.defaultCharset(), del);
+				TarFileContentsBuildingEntryHandlerDelegate del = null;
+				if (index != null)
+				{
+					del = new TarFileContentsBuildingEntryHandlerDelegate(m_entryCollaborator);
+					if (!TarFileIndex.load(index, ra.length(), TarFileIndex.getLastModified(f), charset, del))
+					{
+						// Stale or invalid index. Scan the file instead.
+						del = null;
+					}
+				}
+
+				if (del == null)
+				{
+					del = new TarFileContentsBuildingEntryHandlerDelegate(m_entryCollaborator);
+					TarFileParser.INSTANCE.parse(ra, charset, del);
+				}
 				TarFileContents tfc = del.getContents();
 				m_entries = Collections.unmodifiableMap(tfc.getEntryMap());
 				m_rootEntry = tfc.getRootEntry();
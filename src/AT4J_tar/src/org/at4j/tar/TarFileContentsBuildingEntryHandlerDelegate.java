@@ -26,6 +26,7 @@ import java.util.Map;
 import org.entityfs.DataSource;
 import org.entityfs.RandomAccess;
 import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.el.InvalidEntityLocationException;
 
 /**
  * This is the Tar entry handler delegate used by {@link TarFile} to build its
@@ -74,23 +75,88 @@ class TarFileContentsBuildingEntryHandlerDelegate implements TarEntryHandlerDele
 		}
 	}
 
-	public long handle(TarEntryHeaderData ehd, DataSource src)
+	private TarEntryNode findNode(String name)
+	{
+		AbsoluteLocation location;
+		try
+		{
+			location = new AbsoluteLocation("/" + name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+		catch (InvalidEntityLocationException e)
+		{
+			return null;
+		}
+
+		TarEntryNode n = m_rootNode;
+		for (String pathSegment : location.getPathSegmentStack())
+		{
+			n = n.m_childNodes.get(pathSegment);
+			if (n == null)
+			{
+				return null;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Give a hard link entry the data of the file entry that it links to. The
+	 * link target must come before the link in the Tar file.
+	 * @return The start position of the link target's data, or {@code
+	 * startPosOfFileData} if the link target was not found.
+	 */
+	private long resolveHardLink(TarEntryHeaderData ehd, long startPosOfFileData)
+	{
+		TarEntryNode target = findNode(ehd.getLinkName());
+		if ((target == null) || (target.m_headerData == null) || target.m_headerData.isDirectory())
+		{
+			System.err.println("The target " + ehd.getLinkName() + " of the hard link " + ehd.getLocation() + " was not found before the link in the Tar file. The link will be treated as an empty file.");
+			return startPosOfFileData;
+		}
+
+		ehd.setFileSize(target.m_headerData.getFileSize());
+		ehd.setSparseMap(target.m_headerData.getSparseMap());
+		return target.m_startPosOfFileData;
+	}
+
+	/**
+	 * Add an entry to the tree. This is called by {@link #handle} and when
+	 * loading entries from a {@link TarFileIndex}.
+	 * @param ehd The entry's header data, just as it was parsed from the Tar
+	 * file.
+	 * @param startPosOfFileData The position of the entry's data in the Tar
+	 * file.
+	 */
+	void add(TarEntryHeaderData ehd, long startPosOfFileData)
 	{
 		m_numberOfEntries++;
-		if (src instanceof RandomAccess)
+		if (ehd.getTypeFlag() == TarConstants.HARD_LINK_TYPE_FLAG)
 		{
-			putInTree(m_rootNode, ehd, ehd.getLocation().getPathSegmentStack(), ((RandomAccess) src).getFilePointer());
+			startPosOfFileData = resolveHardLink(ehd, startPosOfFileData);
 		}
-		else
+		putInTree(m_rootNode, ehd, ehd.getLocation().getPathSegmentStack(), startPosOfFileData);
+	}
+
+	public long handle(TarEntryHeaderData ehd, DataSource src)
+	{
+		if (!(src instanceof RandomAccess))
 		{
 			throw new RuntimeException("Bug: expected a RandomAccess source");
 		}
 
-		// Skip past the entry's data to the next header
-		return ehd.getFileSize();
+		// Skip past the entry's data to the next header. This must be read
+		// before add resolves hard links.
+		long noToSkip = ehd.getFileSize();
+
+		add(ehd, ((RandomAccess) src).getFilePointer());
+		return noToSkip;
 	}
 
-	private TarDirectoryEntry createDirectoryEntry(TarEntryHeaderData hd, AbsoluteLocation location, Map<String, TarEntry> childEntries, TarEntryCollaborator collaborator)
+	private static TarDirectoryEntry createDirectoryEntry(TarEntryHeaderData hd, AbsoluteLocation location, Map<String, TarEntry> childEntries, TarEntryCollaborator collaborator)
 	{
 		if ((hd != null) && USTAR_MAGIC.equals(hd.getMagic()))
 		{
@@ -111,7 +177,7 @@ class TarFileContentsBuildingEntryHandlerDelegate implements TarEntryHandlerDele
 		}
 	}
 
-	private TarFileEntry createFileEntry(TarEntryHeaderData hd, long startPosOfFileData, TarEntryCollaborator collaborator)
+	private static TarFileEntry createFileEntry(TarEntryHeaderData hd, long startPosOfFileData, TarEntryCollaborator collaborator)
 	{
 		if (USTAR_MAGIC.equals(hd.getMagic()))
 		{
@@ -132,7 +198,7 @@ class TarFileContentsBuildingEntryHandlerDelegate implements TarEntryHandlerDele
 		}
 	}
 
-	private TarSymbolicLinkEntry createSymbolicLinkEntry(TarEntryHeaderData hd, TarEntryCollaborator collaborator)
+	private static TarSymbolicLinkEntry createSymbolicLinkEntry(TarEntryHeaderData hd, TarEntryCollaborator collaborator)
 	{
 		if (USTAR_MAGIC.equals(hd.getMagic()))
 		{
@@ -179,28 +245,50 @@ class TarFileContentsBuildingEntryHandlerDelegate implements TarEntryHandlerDele
 		else
 		{
 			// No child nodes
-			if ((hd == null) || hd.isDirectory())
-			{
-				assert (hd == null) || ((hd.getTypeFlag() == TarConstants.DIRECTORY_TYPE_FLAG) || (!"ustar".equals(hd.getMagic())));
-				return createDirectoryEntry(hd, nodeLocation, Collections.EMPTY_MAP, collaborator);
-			}
-			else if ((hd.getTypeFlag() == TarConstants.FILE_TYPE_FLAG) || (hd.getTypeFlag() == TarConstants.ALT_FILE_TYPE_FLAG))
-			{
-				// Regular file
-				return createFileEntry(hd, n.m_startPosOfFileData, collaborator);
-			}
-			else if (hd.getTypeFlag() == TarConstants.SYMBOLIC_LINK_TYPE_FLAG)
-			{
-				// Symbolic link
-				return createSymbolicLinkEntry(hd, collaborator);
-			}
-			else
-			{
-				// Don't understand this. Print a warning and treat it as a
-				// regular file
-				System.err.println("Don't understand the entry type flag " + hd.getTypeFlag() + ". This entry will be treated as a regular file.");
-				return createFileEntry(hd, n.m_startPosOfFileData, collaborator);
-			}
+			return createEntry(hd, nodeLocation, n.m_startPosOfFileData, Collections.EMPTY_MAP, collaborator);
+		}
+	}
+
+	/**
+	 * Create the entry object for an entry. This is also used by
+	 * {@link LazyTarFile}.
+	 * @param hd The entry's header data, or {@code null} for a directory entry
+	 * that is not present in the Tar file.
+	 * @param location The entry's location.
+	 * @param startPosOfFileData The start position of the entry's data.
+	 * @param childEntries The child entries if the entry is a directory.
+	 * @param collaborator The entry collaborator.
+	 * @return The entry.
+	 * @since 1.2
+	 */
+	static TarEntry createEntry(TarEntryHeaderData hd, AbsoluteLocation location, long startPosOfFileData, Map<String, TarEntry> childEntries, TarEntryCollaborator collaborator)
+	{
+		if ((hd == null) || hd.isDirectory())
+		{
+			assert (hd == null) || ((hd.getTypeFlag() == TarConstants.DIRECTORY_TYPE_FLAG) || (!"ustar".equals(hd.getMagic())));
+			return createDirectoryEntry(hd, location, childEntries, collaborator);
+		}
+		else if ((hd.getTypeFlag() == TarConstants.FILE_TYPE_FLAG) || (hd.getTypeFlag() == TarConstants.ALT_FILE_TYPE_FLAG))
+		{
+			// Regular file
+			return createFileEntry(hd, startPosOfFileData, collaborator);
+		}
+		else if (hd.getTypeFlag() == TarConstants.HARD_LINK_TYPE_FLAG)
+		{
+			// Hard link. It has got the data of the file that it links to.
+			return createFileEntry(hd, startPosOfFileData, collaborator);
+		}
+		else if (hd.getTypeFlag() == TarConstants.SYMBOLIC_LINK_TYPE_FLAG)
+		{
+			// Symbolic link
+			return createSymbolicLinkEntry(hd, collaborator);
+		}
+		else
+		{
+			// Don't understand this. Print a warning and treat it as a regular
+			// file
+			System.err.println("Don't understand the entry type flag " + hd.getTypeFlag() + ". This entry will be treated as a regular file.");
+			return createFileEntry(hd, startPosOfFileData, collaborator);
 		}
 	}
 
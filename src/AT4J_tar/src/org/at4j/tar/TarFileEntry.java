@@ -33,11 +33,19 @@ import org.entityfs.lock.EntityLock;
 import org.entityfs.support.io.RandomAccessMode;
 import org.entityfs.support.io.ScatteringByteChannelAdapter;
 import org.entityfs.util.base.EmptyRandomAccess;
+import org.entityfs.util.io.RandomAccessToInputStreamAdapter;
 
 /**
  * This object represents a Unix v7 Tar file entry. All Tar file entries support
  * being opened for random access.
  * <p>
+ * Sparse file entries, written by Gnu Tar or by the
+ * {@link org.at4j.tar.builder.PaxTarEntryStrategy}, are represented by file
+ * entries with a {@link TarSparseMap}. Their holes are read as zeroes.
+ * <p>
+ * Hard link entries are represented by file entries that read the data of the
+ * file entry that they link to.
+ * <p>
  * Tar entry objects are always immutable.
  * @author Karl Gustafsson
  * @since 1.0
@@ -50,13 +58,20 @@ public class TarFileEntry extends TarEntry implements ArchiveFileEntry<TarEntry,
 
 	private final long m_startPosOfFileData;
 	private final long m_size;
+	// The size of the data stored in the Tar file. This is different from
+	// m_size for sparse files.
+	private final long m_storedSize;
+	// Null if this is not a sparse file
+	private final TarSparseMap m_sparseMap;
 
 	TarFileEntry(TarEntryHeaderData hd, long startPosOfFileData, TarEntryCollaborator collaborator)
 	{
 		super(hd, hd.getLocation(), collaborator);
 
 		m_startPosOfFileData = startPosOfFileData;
-		m_size = hd.getFileSize();
+		m_storedSize = hd.getFileSize();
+		m_sparseMap = hd.getSparseMap();
+		m_size = m_sparseMap != null ? m_sparseMap.getRealSize() : m_storedSize;
 	}
 
 	@Override
@@ -113,12 +128,22 @@ public class TarFileEntry extends TarEntry implements ArchiveFileEntry<TarEntry,
 		{
 			return new ByteArrayInputStream(new byte[0]);
 		}
+		else if (m_sparseMap != null)
+		{
+			return new RandomAccessToInputStreamAdapter(openSparseRandomAccess());
+		}
 		else
 		{
 			return getCollaborator().openStream(m_startPosOfFileData, m_startPosOfFileData + m_size - 1);
 		}
 	}
 
+	private RandomAccess openSparseRandomAccess()
+	{
+		RandomAccess data = m_storedSize == 0 ? new EmptyRandomAccess() : getCollaborator().openRandomAccess(m_startPosOfFileData, m_startPosOfFileData + m_storedSize - 1);
+		return new SparseFileRandomAccess(data, m_sparseMap);
+	}
+
 	public RandomAccess openForRandomAccess(RandomAccessMode ram) throws ReadOnlyException
 	{
 		if (ram != RandomAccessMode.READ_ONLY)
@@ -129,6 +154,10 @@ public class TarFileEntry extends TarEntry implements ArchiveFileEntry<TarEntry,
 		{
 			return new EmptyRandomAccess();
 		}
+		else if (m_sparseMap != null)
+		{
+			return openSparseRandomAccess();
+		}
 		else
 		{
 			return getCollaborator().openRandomAccess(m_startPosOfFileData, m_startPosOfFileData + m_size - 1);
@@ -148,8 +177,8 @@ public class TarFileEntry extends TarEntry implements ArchiveFileEntry<TarEntry,
 	}
 
 	/**
-	 * Get the size of the file data for this Tar file entry. This is a value
-	 * between {@code 0} and {@code 8589934591} bytes (~ 8.6 Gb) (inclusive).
+	 * Get the size of the file data for this Tar file entry. For sparse files,
+	 * this is the size of the file including its holes.
 	 * <p>
 	 * This method returns the same value as {@link #getSize()}.
 	 * @return The size of the file data for this Tar file entry.
@@ -160,8 +189,8 @@ public class TarFileEntry extends TarEntry implements ArchiveFileEntry<TarEntry,
 	}
 
 	/**
-	 * Get the size of the file data for this Tar file entry. This is a value
-	 * between {@code 0} and {@code 8589934591} bytes (~ 8.6 Gb) (inclusive).
+	 * Get the size of the file data for this Tar file entry. For sparse files,
+	 * this is the size of the file including its holes.
 	 * <p>
 	 * This method returns the same value as {@link #getDataSize()}.
 	 * @return The size of the file data for this Tar file entry.
@@ -170,4 +199,38 @@ public class TarFileEntry extends TarEntry implements ArchiveFileEntry<TarEntry,
 	{
 		return m_size;
 	}
+
+	/**
+	 * Get the size of the file data that is stored in the Tar file. This is
+	 * the same as {@link #getSize()}, except for sparse files for which only
+	 * the data segments are stored.
+	 * @return The size of the stored file data.
+	 * @since 1.2
+	 */
+	public long getStoredSize()
+	{
+		return m_storedSize;
+	}
+
+	/**
+	 * Is this a sparse file entry?
+	 * @return {@code true} if this is a sparse file entry.
+	 * @since 1.2
+	 * @see #getSparseMap()
+	 */
+	public boolean isSparse()
+	{
+		return m_sparseMap != null;
+	}
+
+	/**
+	 * Get the sparse map for this entry, if it is a sparse file entry.
+	 * @return The sparse map, or {@code null} if this is not a sparse file
+	 * entry.
+	 * @since 1.2
+	 */
+	public TarSparseMap getSparseMap()
+	{
+		return m_sparseMap;
+	}
 }
@@ -0,0 +1,529 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+
+import org.at4j.comp.bzip2.BZip2RandomlyAccessibleFile;
+import org.at4j.comp.gzip.GZipRandomlyAccessibleFile;
+import org.entityfs.EntityView;
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomlyAccessibleFile;
+import org.entityfs.ReadableFile;
+import org.entityfs.WritableFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.entityattrs.unix.UnixEntityMode;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.io.ReadWritableFileAdapter;
+
+/**
+ * This class creates and reads Tar file indices. An index is a file that lists
+ * the header data and the position of the file data of all entries in a Tar
+ * file. A {@link TarFile} can load its entries from an index instead of
+ * scanning through the entire Tar file, which saves a lot of time when opening
+ * large Tar files. See {@link TarFile#TarFile(RandomlyAccessibleFile, Charset,
+ * ReadableFile)}.
+ * <p>
+ * The index also contains the size and the time of last modification of the
+ * Tar file that it was created for. If they don't match the Tar file when it
+ * is opened, the index is considered stale and is not used. The time of last
+ * modification can only be read from Tar files that are
+ * {@link org.entityfs.EntityView}:s or {@link ReadWritableFileAdapter}:s, or
+ * from {@link BZip2RandomlyAccessibleFile}:s and
+ * {@link GZipRandomlyAccessibleFile}:s adapting such files. For other
+ * files only the size is checked.
+ * <p>
+ * An index can also be written by the
+ * {@link org.at4j.tar.builder.TarBuilder} while it is building a Tar file.
+ * See {@link org.at4j.tar.builder.TarBuilderSettings#setIndexFile(WritableFile)}.
+ * <p>
+ * The index format is specific to AT4J. It starts with a header containing
+ * the name of the charset used for interpreting the Tar entry names. Then
+ * comes one record for each Tar entry, and last a trailer of fixed size with
+ * the number of entries, a checksum of the header and the records and the
+ * size and time of last modification of the Tar file. All numbers are stored big-endian and all strings are UTF-8
+ * encoded.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see TarFileIndexWriter
+ */
+public final class TarFileIndex
+{
+	/**
+	 * The magic string that the index starts and ends with.
+	 */
+	static final byte[] MAGIC = new byte[] { 'A', 'T', '4', 'J', 'T', 'I', 'D', 'X' };
+
+	/**
+	 * The version of the index format.
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * The size of the trailer. It contains the number of entries (an
+	 * {@code int}), the CRC32 checksum of everything before the trailer (an
+	 * {@code int}), the size of the Tar file (a {@code long}), the time of last
+	 * modification of the Tar file (a {@code long}) and the magic string.
+	 */
+	static final int TRAILER_SIZE = 4 + 4 + 8 + 8 + MAGIC.length;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The value stored for the time of last modification of a Tar file when it
+	 * is not known.
+	 */
+	static final long UNKNOWN_LAST_MODIFIED = -1L;
+
+	private static final int DIRECTORY_FLAG = 1;
+
+	// Hidden constructor
+	private TarFileIndex()
+	{
+		// Nothing
+	}
+
+	/**
+	 * Create an index for an existing Tar file. This scans through the entire
+	 * Tar file once.
+	 * <p>
+	 * If the Tar file is in a locking {@link org.entityfs.FileSystem}, it is
+	 * locked for reading by this method. If the index file is in a locking file
+	 * system, it is locked for writing.
+	 * @param tarFile The Tar file.
+	 * @param entryNameCharset The charset to use for interpreting text metadata
+	 * in the Tar file. This must be the same charset that is used when the Tar
+	 * file is opened using the index. If this is {@code null}, the platform's
+	 * default charset is used.
+	 * @param index The file to write the index to. The previous contents of
+	 * this file is discarded.
+	 * @throws TarFileParseException If the Tar file cannot be parsed.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public static void create(RandomlyAccessibleFile tarFile, Charset entryNameCharset, WritableFile index) throws TarFileParseException, WrappedIOException
+	{
+		// Null checks
+		tarFile.getClass();
+		index.getClass();
+
+		Lock rl = tarFile.lockForReading();
+		try
+		{
+			TarFileIndexWriter w = new TarFileIndexWriter(index, entryNameCharset);
+			boolean successful = false;
+			try
+			{
+				RandomAccess ra = tarFile.openForRandomAccess(RandomAccessMode.READ_ONLY);
+				try
+				{
+					w.update(ra);
+				}
+				finally
+				{
+					ra.close();
+				}
+				w.close(tarFile);
+				successful = true;
+			}
+			finally
+			{
+				if (!successful)
+				{
+					w.abort();
+				}
+			}
+		}
+		finally
+		{
+			rl.unlock();
+		}
+	}
+
+	/**
+	 * Get the time of last modification of the Tar file, if it can be
+	 * determined.
+	 * @return The time of last modification, or {@link #UNKNOWN_LAST_MODIFIED}
+	 * if it is not known.
+	 */
+	static long getLastModified(RandomlyAccessibleFile f)
+	{
+		if (f instanceof EntityView)
+		{
+			return ((EntityView) f).getLastModified();
+		}
+		else if (f instanceof ReadWritableFileAdapter)
+		{
+			return ((ReadWritableFileAdapter) f).getFile().lastModified();
+		}
+		else if (f instanceof BZip2RandomlyAccessibleFile)
+		{
+			// Use the time of last modification of the compressed file
+			return getLastModified(((BZip2RandomlyAccessibleFile) f).getAdaptedFile());
+		}
+		else if (f instanceof GZipRandomlyAccessibleFile)
+		{
+			// Use the time of last modification of the compressed file
+			return getLastModified(((GZipRandomlyAccessibleFile) f).getAdaptedFile());
+		}
+		else
+		{
+			return UNKNOWN_LAST_MODIFIED;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if (s == null)
+		{
+			out.writeInt(-1);
+		}
+		else
+		{
+			byte[] barr = s.getBytes(UTF8.name());
+			out.writeInt(barr.length);
+			out.write(barr);
+		}
+	}
+
+	private static String readString(ByteBuffer bb)
+	{
+		int len = bb.getInt();
+		if (len == -1)
+		{
+			return null;
+		}
+		checkCount(bb, len, 1);
+		byte[] barr = new byte[len];
+		bb.get(barr);
+		return UTF8.decode(ByteBuffer.wrap(barr)).toString();
+	}
+
+	/**
+	 * Verify that a count read from the index is not larger than what fits in
+	 * the rest of the index. This protects against allocating huge arrays when
+	 * reading a corrupt index.
+	 */
+	private static void checkCount(ByteBuffer bb, int count, int minSizeOfEach)
+	{
+		if ((count < 0) || (count > bb.remaining() / minSizeOfEach))
+		{
+			throw new BufferUnderflowException();
+		}
+	}
+
+	/**
+	 * Write the header of a new index.
+	 */
+	static void writeHeader(DataOutputStream out, Charset entryNameCharset) throws IOException
+	{
+		out.write(MAGIC);
+		out.writeInt(VERSION);
+		writeString(out, entryNameCharset.name());
+	}
+
+	/**
+	 * Write an index record for a Tar entry.
+	 * @param out The stream to write to.
+	 * @param ehd The entry's header data, just as it was parsed from the Tar
+	 * file.
+	 * @param startPosOfFileData The position of the entry's file data in the
+	 * Tar file.
+	 */
+	static void writeRecord(DataOutputStream out, TarEntryHeaderData ehd, long startPosOfFileData) throws IOException
+	{
+		out.writeLong(startPosOfFileData);
+		writeString(out, ehd.getLocation().toString());
+		out.writeByte(ehd.isDirectory() ? DIRECTORY_FLAG : 0);
+		out.writeInt(ehd.getMode() != null ? ehd.getMode().getCode() : -1);
+		out.writeInt(ehd.getOwnerUid());
+		out.writeInt(ehd.getOwnerGid());
+		out.writeLong(ehd.getFileSize());
+		Date lastModificationTime = ehd.getLastModificationTime();
+		out.writeLong(lastModificationTime != null ? lastModificationTime.getTime() : Long.MIN_VALUE);
+		out.writeInt(ehd.getChecksum());
+		out.writeChar(ehd.getTypeFlag());
+		writeString(out, ehd.getLinkName());
+		writeString(out, ehd.getMagic());
+		writeString(out, ehd.getUstarVersion());
+		writeString(out, ehd.getOwnerUserName());
+		writeString(out, ehd.getOwnerGroupName());
+		out.writeInt(ehd.getDevMajor());
+		out.writeInt(ehd.getDevMinor());
+
+		Map<String, String> variables = ehd.getVariables();
+		if (variables == null)
+		{
+			out.writeInt(-1);
+		}
+		else
+		{
+			out.writeInt(variables.size());
+			for (Map.Entry<String, String> e : variables.entrySet())
+			{
+				writeString(out, e.getKey());
+				writeString(out, e.getValue());
+			}
+		}
+
+		TarSparseMap sparseMap = ehd.getSparseMap();
+		if (sparseMap == null)
+		{
+			out.writeInt(-1);
+		}
+		else
+		{
+			int noSegments = sparseMap.getNumberOfSegments();
+			out.writeInt(noSegments);
+			out.writeLong(sparseMap.getRealSize());
+			for (int i = 0; i < noSegments; i++)
+			{
+				out.writeLong(sparseMap.getSegmentOffset(i));
+				out.writeLong(sparseMap.getSegmentSize(i));
+			}
+		}
+	}
+
+	/**
+	 * Write the trailer that finishes the index.
+	 */
+	static void writeTrailer(DataOutputStream out, int numberOfEntries, int checksum, long tarFileSize, long tarFileLastModified) throws IOException
+	{
+		out.writeInt(numberOfEntries);
+		out.writeInt(checksum);
+		out.writeLong(tarFileSize);
+		out.writeLong(tarFileLastModified);
+		out.write(MAGIC);
+	}
+
+	private static void readRecord(ByteBuffer bb, TarFileContentsBuildingEntryHandlerDelegate del)
+	{
+		long startPosOfFileData = bb.getLong();
+		TarEntryHeaderData res = new TarEntryHeaderData();
+		res.setLocation(new AbsoluteLocation(readString(bb)));
+		res.setDirectory((bb.get() & DIRECTORY_FLAG) != 0);
+		int mode = bb.getInt();
+		if (mode != -1)
+		{
+			res.setMode(UnixEntityMode.forCode(mode));
+		}
+		res.setOwnerUid(bb.getInt());
+		res.setOwnerGid(bb.getInt());
+		res.setFileSize(bb.getLong());
+		long lastModificationTime = bb.getLong();
+		if (lastModificationTime != Long.MIN_VALUE)
+		{
+			res.setLastModificationTime(new Date(lastModificationTime));
+		}
+		res.setChecksum(bb.getInt());
+		res.setTypeFlag(bb.getChar());
+		res.setLinkName(readString(bb));
+		res.setMagic(readString(bb));
+		res.setUstarVersion(readString(bb));
+		res.setOwnerName(readString(bb));
+		res.setGroupName(readString(bb));
+		res.setDevMajor(bb.getInt());
+		res.setDevMinor(bb.getInt());
+
+		int noVariables = bb.getInt();
+		if (noVariables != -1)
+		{
+			checkCount(bb, noVariables, 8);
+			Map<String, String> variables = new HashMap<String, String>(noVariables);
+			for (int i = 0; i < noVariables; i++)
+			{
+				String key = readString(bb);
+				variables.put(key, readString(bb));
+			}
+			res.setVariables(variables);
+		}
+
+		int noSegments = bb.getInt();
+		if (noSegments != -1)
+		{
+			checkCount(bb, noSegments, 16);
+			long realSize = bb.getLong();
+			long[] offsets = new long[noSegments];
+			long[] sizes = new long[noSegments];
+			for (int i = 0; i < noSegments; i++)
+			{
+				offsets[i] = bb.getLong();
+				sizes[i] = bb.getLong();
+			}
+			res.setSparseMap(new TarSparseMap(offsets, sizes, realSize));
+		}
+
+		del.add(res, startPosOfFileData);
+	}
+
+	/**
+	 * Get the contents of the index file in a byte buffer. If the index file
+	 * can give a {@link FileChannel}, the file is memory mapped. If not, it is
+	 * read into memory.
+	 */
+	private static ByteBuffer mapIndex(ReadableFile index) throws IOException
+	{
+		ReadableByteChannel c = index.openChannelForRead();
+		try
+		{
+			if (c instanceof FileChannel)
+			{
+				FileChannel fc = (FileChannel) c;
+				return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			}
+		}
+		finally
+		{
+			c.close();
+		}
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		InputStream is = index.openForRead();
+		try
+		{
+			byte[] buf = new byte[8192];
+			int noRead = is.read(buf);
+			while (noRead >= 0)
+			{
+				baos.write(buf, 0, noRead);
+				noRead = is.read(buf);
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+		return ByteBuffer.wrap(baos.toByteArray());
+	}
+
+	private static int calculateChecksum(ByteBuffer bb)
+	{
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[8192];
+		while (bb.hasRemaining())
+		{
+			int len = Math.min(buf.length, bb.remaining());
+			bb.get(buf, 0, len);
+			crc.update(buf, 0, len);
+		}
+		return (int) crc.getValue();
+	}
+
+	private static boolean hasMagicAt(ByteBuffer bb, int pos)
+	{
+		byte[] barr = new byte[MAGIC.length];
+		bb.position(pos);
+		bb.get(barr);
+		return Arrays.equals(MAGIC, barr);
+	}
+
+	/**
+	 * Load the entries in the index into the delegate.
+	 * @param index The index file. It is locked for reading by this method if
+	 * it is in a locking file system.
+	 * @param tarFileSize The current size of the Tar file.
+	 * @param tarFileLastModified The current time of last modification of the
+	 * Tar file, or {@link #UNKNOWN_LAST_MODIFIED} if not known.
+	 * @param entryNameCharset The charset used for interpreting the Tar file.
+	 * @param del The delegate to add the entries to.
+	 * @return {@code true} if the index was loaded, {@code false} if the index
+	 * is invalid or was not made for the current version of the Tar file. If
+	 * this method returns {@code false}, the delegate may contain some of the
+	 * entries from the index and should not be used.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	static boolean load(ReadableFile index, long tarFileSize, long tarFileLastModified, Charset entryNameCharset, TarFileContentsBuildingEntryHandlerDelegate del) throws WrappedIOException
+	{
+		Lock rl = index.lockForReading();
+		try
+		{
+			ByteBuffer bb = mapIndex(index);
+			if ((bb.limit() < MAGIC.length + 4 + TRAILER_SIZE) || !hasMagicAt(bb, 0) || !hasMagicAt(bb, bb.limit() - MAGIC.length))
+			{
+				// Not an index or an index that was never finished.
+				return false;
+			}
+
+			bb.position(MAGIC.length);
+			if ((bb.getInt() != VERSION) || !entryNameCharset.name().equals(readString(bb)))
+			{
+				return false;
+			}
+			int recordsStart = bb.position();
+
+			bb.position(bb.limit() - TRAILER_SIZE);
+			int numberOfEntries = bb.getInt();
+			int checksum = bb.getInt();
+			long indexedSize = bb.getLong();
+			long indexedLastModified = bb.getLong();
+			if ((indexedSize != tarFileSize) || ((indexedLastModified != UNKNOWN_LAST_MODIFIED) && (tarFileLastModified != UNKNOWN_LAST_MODIFIED) && (indexedLastModified != tarFileLastModified)))
+			{
+				// Stale index
+				return false;
+			}
+
+			bb.position(0);
+			bb.limit(bb.limit() - TRAILER_SIZE);
+			if (calculateChecksum(bb) != checksum)
+			{
+				// A corrupt index
+				return false;
+			}
+
+			bb.position(recordsStart);
+			for (int i = 0; i < numberOfEntries; i++)
+			{
+				readRecord(bb, del);
+			}
+			return !bb.hasRemaining();
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		catch (WrappedIOException e)
+		{
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			// A corrupt index. It passed the checksum test, so this should
+			// only happen if it was deliberately tampered with.
+			return false;
+		}
+		finally
+		{
+			rl.unlock();
+		}
+	}
+}
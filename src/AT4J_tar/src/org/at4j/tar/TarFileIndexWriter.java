@@ -0,0 +1,267 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.entityfs.DataSource;
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomlyAccessibleFile;
+import org.entityfs.WritableFile;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+
+/**
+ * This object writes a {@link TarFileIndex} incrementally. Each time
+ * {@link #update(RandomAccess)} is called, it indexes the Tar entries that
+ * have been added to the Tar file since the last call. When the Tar file is
+ * finished, the index is finished by calling {@link #close(RandomlyAccessibleFile)}
+ * or {@link #close(long, long)}.
+ * <p>
+ * This is used by the {@link org.at4j.tar.builder.TarBuilder} to write an index
+ * while it builds a Tar file, and by
+ * {@link TarFileIndex#create(RandomlyAccessibleFile, Charset, WritableFile)}.
+ * <p>
+ * If the index file is in a locking {@link org.entityfs.FileSystem}, it is
+ * locked for writing by this object until it is closed.
+ * <p>
+ * This object is not thread safe.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class TarFileIndexWriter
+{
+	private final Lock m_indexWriteLock;
+	private final DataOutputStream m_out;
+	private final CRC32 m_checksum = new CRC32();
+	private final Charset m_entryNameCharset;
+	private final TarEntryHandlerDelegate m_delegate = new TarEntryHandlerDelegate()
+	{
+		public long handle(TarEntryHeaderData ehd, DataSource src)
+		{
+			try
+			{
+				TarFileIndex.writeRecord(m_out, ehd, ((RandomAccess) src).getFilePointer());
+			}
+			catch (IOException e)
+			{
+				throw new WrappedIOException(e);
+			}
+			m_numberOfEntries++;
+			return ehd.getFileSize();
+		}
+	};
+
+	private long m_indexedPosition;
+	private int m_numberOfEntries;
+	private boolean m_closed;
+
+	/**
+	 * Create a new index writer.
+	 * @param index The file to write the index to. The previous contents of
+	 * this file is discarded.
+	 * @param entryNameCharset The charset to use for interpreting text metadata
+	 * in the Tar file. This must be the same charset that is used when the Tar
+	 * file is opened using the index. If this is {@code null}, the platform's
+	 * default charset is used.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public TarFileIndexWriter(WritableFile index, Charset entryNameCharset) throws WrappedIOException
+	{
+		// Null check
+		index.getClass();
+
+		m_entryNameCharset = entryNameCharset != null ? entryNameCharset : Charset.defaultCharset();
+		m_indexWriteLock = index.lockForWriting();
+		boolean successful = false;
+		try
+		{
+			m_out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(index.openForWrite()), m_checksum));
+			try
+			{
+				TarFileIndex.writeHeader(m_out, m_entryNameCharset);
+				successful = true;
+			}
+			finally
+			{
+				if (!successful)
+				{
+					m_out.close();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			if (!successful)
+			{
+				m_indexWriteLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Index all entries that have been added to the Tar file since the last
+	 * time that this method was called. The Tar file must only contain whole
+	 * entries. The entries are parsed from the Tar file using the
+	 * {@link TarFileParser}.
+	 * @param tarFile The Tar file. It must be readable. Its file pointer is the
+	 * same when this method returns as it was when it was called.
+	 * @throws TarFileParseException If the new entries cannot be parsed.
+	 * @throws WrappedIOException On I/O errors.
+	 * @throws IllegalStateException If this object is closed.
+	 */
+	public void update(RandomAccess tarFile) throws TarFileParseException, WrappedIOException, IllegalStateException
+	{
+		assertNotClosed();
+
+		long pos = tarFile.getFilePointer();
+		tarFile.seek(m_indexedPosition);
+		try
+		{
+			TarFileParser.INSTANCE.parse(tarFile, m_entryNameCharset, m_delegate);
+			m_indexedPosition = tarFile.getFilePointer();
+		}
+		finally
+		{
+			tarFile.seek(pos);
+		}
+	}
+
+	/**
+	 * Get the number of entries that have been indexed so far.
+	 * @return The number of indexed entries.
+	 */
+	public int getNumberOfEntries()
+	{
+		return m_numberOfEntries;
+	}
+
+	private void assertNotClosed() throws IllegalStateException
+	{
+		if (m_closed)
+		{
+			throw new IllegalStateException("This index writer is closed");
+		}
+	}
+
+	/**
+	 * Finish the index and close this writer.
+	 * @param tarFileSize The size of the finished Tar file.
+	 * @param tarFileLastModified The time of last modification of the finished
+	 * Tar file, or {@code -1} if it is not known. If it is not known, the index
+	 * is only validated against the Tar file's size when it is loaded.
+	 * @throws WrappedIOException On I/O errors.
+	 * @throws IllegalStateException If this object is already closed.
+	 * @see #close(RandomlyAccessibleFile)
+	 */
+	public void close(long tarFileSize, long tarFileLastModified) throws WrappedIOException, IllegalStateException
+	{
+		assertNotClosed();
+
+		m_closed = true;
+		try
+		{
+			try
+			{
+				TarFileIndex.writeTrailer(m_out, m_numberOfEntries, (int) m_checksum.getValue(), tarFileSize, tarFileLastModified);
+			}
+			finally
+			{
+				m_out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		finally
+		{
+			m_indexWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Finish the index and close this writer. The size and the time of last
+	 * modification of the Tar file are read from the file.
+	 * @param tarFile The finished Tar file. If it is in a locking
+	 * {@link org.entityfs.FileSystem}, it is locked for reading by this
+	 * method.
+	 * @throws WrappedIOException On I/O errors.
+	 * @throws IllegalStateException If this object is already closed.
+	 * @see #close(long, long)
+	 */
+	public void close(RandomlyAccessibleFile tarFile) throws WrappedIOException, IllegalStateException
+	{
+		long size;
+		Lock rl = tarFile.lockForReading();
+		try
+		{
+			RandomAccess ra = tarFile.openForRandomAccess(RandomAccessMode.READ_ONLY);
+			try
+			{
+				size = ra.length();
+			}
+			finally
+			{
+				ra.close();
+			}
+		}
+		finally
+		{
+			rl.unlock();
+		}
+		close(size, TarFileIndex.getLastModified(tarFile));
+	}
+
+	/**
+	 * Close this writer without finishing the index. The index file is left
+	 * without a trailer, which makes it invalid. This method does nothing if
+	 * the writer is already closed.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public void abort() throws WrappedIOException
+	{
+		if (!m_closed)
+		{
+			m_closed = true;
+			try
+			{
+				m_out.close();
+			}
+			catch (IOException e)
+			{
+				throw new WrappedIOException(e);
+			}
+			finally
+			{
+				m_indexWriteLock.unlock();
+			}
+		}
+	}
+}
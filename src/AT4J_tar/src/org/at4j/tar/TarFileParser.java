@@ -18,11 +18,15 @@
  */
 package org.at4j.tar;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.at4j.support.nio.charset.Charsets;
@@ -50,6 +54,10 @@ public final class TarFileParser
 
 	private static final byte[] EMPTY_BLOCK = new byte[TarConstants.BLOCK_SIZE];
 
+	// The largest initial capacity of the lists that a Pax 1.0 sparse map is
+	// read into.
+	private static final int MAX_INITIAL_SPARSE_MAP_CAPACITY = 16;
+
 	static
 	{
 		Arrays.fill(EMPTY_BLOCK, (byte) 0);
@@ -60,9 +68,287 @@ public final class TarFileParser
 		// Nothing.
 	}
 
-	private UnixEntityMode parseEntityMode(String s)
+	/**
+	 * Per-parse state. This keeps the header buffer and caches decoded
+	 * strings that usually are the same in all entry headers so that parsing
+	 * a header does not have to allocate more objects than necessary.
+	 */
+	static final class HeaderParseContext
+	{
+		private static final int OWNER_NAME_CACHE = 0;
+		private static final int GROUP_NAME_CACHE = 1;
+
+		private final Charset m_charset;
+		// Does the charset decode ASCII characters into themselves?
+		private final boolean m_asciiCompatible;
+		// The buffer for the current header block
+		private final byte[] m_header = new byte[TarConstants.BLOCK_SIZE];
+		// The raw bytes and the decoded strings of the last owner and group
+		// names.
+		private final byte[][] m_cachedBytes = new byte[2][];
+		private final String[] m_cachedStrings = new String[2];
+
+		HeaderParseContext(Charset cs)
+		{
+			m_charset = cs;
+			m_asciiCompatible = isAsciiCompatible(cs);
+		}
+	}
+
+	private static boolean isAsciiCompatible(Charset cs)
+	{
+		// Test all printable ASCII characters
+		byte[] barr = new byte[95];
+		for (int i = 0; i < barr.length; i++)
+		{
+			barr[i] = (byte) (32 + i);
+		}
+		String s = cs.decode(ByteBuffer.wrap(barr)).toString();
+		if (s.length() != barr.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < barr.length; i++)
+		{
+			if (s.charAt(i) != barr[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Verify the header checksum. The checksum is the sum of all bytes in the
+	 * header, with the bytes of the checksum field counted as spaces. Some old
+	 * Tar implementations used signed bytes for calculating the checksum, so
+	 * that is accepted too.
+	 * @return The stored checksum.
+	 * @throws TarFileParseException If the checksum is invalid.
+	 */
+	private long verifyChecksum(byte[] header) throws TarFileParseException
+	{
+		long unsignedSum = 0;
+		long signedSum = 0;
+		for (int i = 0; i < TarConstants.BLOCK_SIZE; i++)
+		{
+			if ((i < 148) || (i >= 156))
+			{
+				unsignedSum += header[i] & 0xFF;
+				signedSum += header[i];
+			}
+		}
+		// The checksum field as spaces
+		unsignedSum += 8 * ' ';
+		signedSum += 8 * ' ';
+
+		long stored = parseOctal(header, 148, 8);
+		if ((stored != unsignedSum) && (stored != signedSum))
+		{
+			throw new TarFileParseException("Invalid Tar header checksum " + stored + ". The calculated checksum is " + unsignedSum);
+		}
+		return stored;
+	}
+
+	private static boolean isEmptyField(byte[] header, int offset, int len)
+	{
+		int end = offset + len;
+		for (int i = offset; i < end; i++)
+		{
+			byte b = header[i];
+			if (b == 0)
+			{
+				return true;
+			}
+			else if (b != ' ')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a numeric field. Numeric fields are stored as octal ASCII digits,
+	 * optionally preceded by spaces and terminated by a space or a NUL
+	 * character.
+	 * @throws TarFileParseException If the field is empty or contains
+	 * something else than octal digits.
+	 */
+	private long parseOctal(byte[] header, int offset, int len) throws TarFileParseException
+	{
+		int end = offset + len;
+		int i = offset;
+		while ((i < end) && (header[i] == ' '))
+		{
+			i++;
+		}
+		if ((i == end) || (header[i] == 0))
+		{
+			throw new TarFileParseException("Empty numeric field at position " + offset + " in the Tar header");
+		}
+
+		long res = 0;
+		for (; i < end; i++)
+		{
+			byte b = header[i];
+			if ((b >= '0') && (b <= '7'))
+			{
+				res = (res << 3) + (b - '0');
+			}
+			else if ((b == ' ') || (b == 0))
+			{
+				break;
+			}
+			else
+			{
+				throw new TarFileParseException("Invalid character " + (b & 0xFF) + " in the numeric field at position " + offset + " in the Tar header");
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Parse a numeric field that may be stored either as octal ASCII digits or
+	 * in the Gnu Tar base-256 encoding. Base-256 encoded fields have the high
+	 * bit of the first byte set and store the value as a big-endian two's
+	 * complement binary number in the rest of the field. This encoding is used
+	 * by Gnu Tar and other Tar implementations for values that do not fit in
+	 * the octal field, such as the size of files that are larger than 8 GiB.
+	 * @throws TarFileParseException If the field cannot be parsed or if its
+	 * value does not fit in a {@code long}.
+	 */
+	private long parseNumeric(byte[] header, int offset, int len) throws TarFileParseException
 	{
-		return UnixEntityMode.forCode(Integer.parseInt(s, 8));
+		byte first = header[offset];
+		if ((first & 0x80) == 0)
+		{
+			return parseOctal(header, offset, len);
+		}
+
+		// Base-256. Bit 6 of the first byte is the sign bit.
+		boolean negative = (first & 0x40) != 0;
+		long res = negative ? (first | ~0x7FL) : (first & 0x7F);
+		int end = offset + len;
+		for (int i = offset + 1; i < end; i++)
+		{
+			if ((res >> 55) != (negative ? -1L : 0L))
+			{
+				throw new TarFileParseException("The base-256 numeric field at position " + offset + " in the Tar header is too large");
+			}
+			res = (res << 8) | (header[i] & 0xFF);
+		}
+		return res;
+	}
+
+	/**
+	 * Decode a text field. The field ends at the first NUL character or at the
+	 * end of the field, and the decoded string is trimmed.
+	 */
+	private String decodeString(HeaderParseContext ctx, int offset, int len)
+	{
+		byte[] header = ctx.m_header;
+		if (!ctx.m_asciiCompatible)
+		{
+			return ctx.m_charset.decode(ByteBuffer.wrap(header, offset, len)).toString().trim();
+		}
+
+		int fieldEnd = offset + len;
+		int end = offset;
+		boolean ascii = true;
+		while ((end < fieldEnd) && (header[end] != 0))
+		{
+			if (header[end] < 0)
+			{
+				ascii = false;
+			}
+			end++;
+		}
+
+		// Trim the string
+		int start = offset;
+		while ((start < end) && ((header[start] & 0xFF) <= ' '))
+		{
+			start++;
+		}
+		while ((end > start) && ((header[end - 1] & 0xFF) <= ' '))
+		{
+			end--;
+		}
+
+		if (start == end)
+		{
+			return "";
+		}
+		else if (ascii)
+		{
+			char[] carr = new char[end - start];
+			for (int i = 0; i < carr.length; i++)
+			{
+				carr[i] = (char) header[start + i];
+			}
+			return new String(carr);
+		}
+		else
+		{
+			return ctx.m_charset.decode(ByteBuffer.wrap(header, start, end - start)).toString();
+		}
+	}
+
+	/**
+	 * Decode a text field that probably has the same value as in the previous
+	 * header. The decoded value is cached and reused as long as the raw bytes
+	 * of the field do not change.
+	 */
+	private String decodeCachedString(HeaderParseContext ctx, int offset, int len, int cacheIndex)
+	{
+		byte[] header = ctx.m_header;
+		byte[] cached = ctx.m_cachedBytes[cacheIndex];
+		if (cached != null)
+		{
+			boolean equal = true;
+			for (int i = 0; i < len; i++)
+			{
+				if (cached[i] != header[offset + i])
+				{
+					equal = false;
+					break;
+				}
+			}
+			if (equal)
+			{
+				return ctx.m_cachedStrings[cacheIndex];
+			}
+		}
+		else
+		{
+			cached = new byte[len];
+			ctx.m_cachedBytes[cacheIndex] = cached;
+		}
+
+		String res = decodeString(ctx, offset, len).intern();
+		System.arraycopy(header, offset, cached, 0, len);
+		ctx.m_cachedStrings[cacheIndex] = res;
+		return res;
+	}
+
+	/**
+	 * Read a block into the supplied buffer.
+	 * @return {@code false} at EOF.
+	 */
+	private boolean readBlockEofOk(DataSource src, byte[] buf)
+	{
+		int noRead = src.read(buf);
+		if (noRead == -1)
+		{
+			// EOF
+			return false;
+		}
+		else if (noRead != buf.length)
+		{
+			throw new TarFileParseException("Wanted to read " + buf.length + " bytes. Got " + noRead);
+		}
+		return true;
 	}
 
 	private byte[] readEofOk(DataSource src, int no)
@@ -186,16 +472,267 @@ public final class TarFileParser
 		return new PaxHeader(vm);
 	}
 
+	private long parsePaxLong(String name, String value) throws TarFileParseException
+	{
+		try
+		{
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new TarFileParseException("Invalid value " + value + " for the Pax variable " + name);
+		}
+	}
+
+	/**
+	 * Check that a numeric header value, such as a uid or a gid, fits in the
+	 * {@code int} that it is stored in. Larger values would otherwise wrap
+	 * around silently.
+	 */
+	private int toIntValue(String name, long value) throws TarFileParseException
+	{
+		if ((value < 0) || (value > Integer.MAX_VALUE))
+		{
+			throw new TarFileParseException("The " + name + " value " + value + " is out of range");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Parse a Pax time value. It is the number of seconds since the epoch,
+	 * optionally with a decimal fraction. The fraction is discarded to give
+	 * the time the same resolution as the time in the ustar header. (The full
+	 * value is still available among the entry's Pax variables.)
+	 */
+	private Date parsePaxTime(String value) throws TarFileParseException
+	{
+		try
+		{
+			return new Date(new BigDecimal(value).setScale(0, RoundingMode.FLOOR).longValue() * 1000);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new TarFileParseException("Invalid value " + value + " for the Pax variable mtime");
+		}
+	}
+
+	private TarSparseMap createSparseMap(List<Long> offsets, List<Long> sizes, long realSize) throws TarFileParseException
+	{
+		long[] offsetArr = new long[offsets.size()];
+		long[] sizeArr = new long[sizes.size()];
+		for (int i = 0; i < offsetArr.length; i++)
+		{
+			offsetArr[i] = offsets.get(i).longValue();
+			sizeArr[i] = sizes.get(i).longValue();
+		}
+		try
+		{
+			return new TarSparseMap(offsetArr, sizeArr, realSize);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new TarFileParseException("Invalid sparse map: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Add the sparse map entries in a Gnu Tar sparse header or sparse header
+	 * extension block. Each entry consists of a 12 byte offset field and a 12
+	 * byte size field. Unused entries are empty.
+	 */
+	private void addGnuSparseEntries(byte[] block, int offset, int maxNoOfEntries, List<Long> offsets, List<Long> sizes)
+	{
+		for (int i = 0; i < maxNoOfEntries; i++)
+		{
+			int pos = offset + i * 24;
+			if (block[pos] == 0)
+			{
+				return;
+			}
+			offsets.add(Long.valueOf(parseNumeric(block, pos, 12)));
+			sizes.add(Long.valueOf(parseNumeric(block, pos + 12, 12)));
+		}
+	}
+
+	/**
+	 * Read the sparse map from an old Gnu Tar sparse file header. The header
+	 * has room for four map entries. If the map has more entries, they are
+	 * stored in extension blocks directly after the header.
+	 */
+	private TarSparseMap readGnuSparseMap(DataSource src, byte[] header)
+	{
+		List<Long> offsets = new ArrayList<Long>();
+		List<Long> sizes = new ArrayList<Long>();
+		addGnuSparseEntries(header, 386, 4, offsets, sizes);
+		boolean extended = header[482] != 0;
+		long realSize = parseNumeric(header, 483, 12);
+		byte[] ext = new byte[TarConstants.BLOCK_SIZE];
+		while (extended)
+		{
+			if (!readBlockEofOk(src, ext))
+			{
+				throw new TarFileParseException("Unexpected EOF in the Gnu sparse map");
+			}
+			addGnuSparseEntries(ext, 0, 21, offsets, sizes);
+			extended = ext[504] != 0;
+		}
+		return createSparseMap(offsets, sizes, realSize);
+	}
+
+	/**
+	 * This reads decimal numbers from the sparse map at the start of the data
+	 * of a Pax 1.0 sparse file entry. Each number is terminated by a newline
+	 * and the map is padded with NUL characters to the next block boundary.
+	 */
+	private static final class PaxSparseMapReader
+	{
+		private final DataSource m_src;
+		private final byte[] m_block = new byte[TarConstants.BLOCK_SIZE];
+		private int m_pos = TarConstants.BLOCK_SIZE;
+		private int m_noOfBlocksRead;
+
+		private PaxSparseMapReader(DataSource src)
+		{
+			m_src = src;
+		}
+
+		private long readNumber() throws TarFileParseException
+		{
+			long res = 0;
+			int noOfDigits = 0;
+			while (true)
+			{
+				if (m_pos == m_block.length)
+				{
+					int noRead = m_src.read(m_block);
+					if (noRead != m_block.length)
+					{
+						throw new TarFileParseException("Unexpected EOF in the Pax sparse map");
+					}
+					m_noOfBlocksRead++;
+					m_pos = 0;
+				}
+				byte b = m_block[m_pos++];
+				if (b == '\n')
+				{
+					break;
+				}
+				else if ((b < '0') || (b > '9') || (noOfDigits == 18))
+				{
+					throw new TarFileParseException("Invalid number in the Pax sparse map");
+				}
+				res = 10 * res + (b - '0');
+				noOfDigits++;
+			}
+			if (noOfDigits == 0)
+			{
+				throw new TarFileParseException("Empty number in the Pax sparse map");
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * Read the sparse map at the start of the entry data of a Pax 1.0 sparse
+	 * file entry. The entry's file size is adjusted to not include the map.
+	 */
+	private void readPax1SparseMap(DataSource src, TarEntryHeaderData res, long realSize)
+	{
+		PaxSparseMapReader r = new PaxSparseMapReader(src);
+		long noOfSegments = r.readNumber();
+		// Each segment occupies at least four bytes in the map
+		if ((noOfSegments > Integer.MAX_VALUE) || (noOfSegments > res.getFileSize() / 4))
+		{
+			throw new TarFileParseException("Invalid number of segments in the Pax sparse map: " + noOfSegments);
+		}
+		// The number of segments is not trusted for sizing the lists. They
+		// grow as the segments are actually read.
+		int initialCapacity = (int) Math.min(noOfSegments, MAX_INITIAL_SPARSE_MAP_CAPACITY);
+		List<Long> offsets = new ArrayList<Long>(initialCapacity);
+		List<Long> sizes = new ArrayList<Long>(initialCapacity);
+		for (int i = 0; i < noOfSegments; i++)
+		{
+			offsets.add(Long.valueOf(r.readNumber()));
+			sizes.add(Long.valueOf(r.readNumber()));
+		}
+		res.setFileSize(res.getFileSize() - r.m_noOfBlocksRead * TarConstants.BLOCK_SIZE);
+		res.setSparseMap(createSparseMap(offsets, sizes, realSize));
+	}
+
+	/**
+	 * Parse the sparse map in the "GNU.sparse.map" variable of a Pax 0.1
+	 * sparse file entry. The map is a comma separated list of offsets and
+	 * sizes.
+	 */
+	private TarSparseMap parsePax01SparseMap(String map, long realSize)
+	{
+		List<Long> offsets = new ArrayList<Long>();
+		List<Long> sizes = new ArrayList<Long>();
+		if (map.length() > 0)
+		{
+			String[] values = map.split(",");
+			if (values.length % 2 != 0)
+			{
+				throw new TarFileParseException("Odd number of values in the Pax sparse map " + map);
+			}
+			for (int i = 0; i < values.length; i += 2)
+			{
+				offsets.add(Long.valueOf(parsePaxLong("GNU.sparse.map", values[i])));
+				sizes.add(Long.valueOf(parsePaxLong("GNU.sparse.map", values[i + 1])));
+			}
+		}
+		return createSparseMap(offsets, sizes, realSize);
+	}
+
+	/**
+	 * Set the sparse file properties of the entry if its Pax variables
+	 * describe a Gnu Tar sparse file. Pax 0.1 sparse files have their map in
+	 * a Pax variable. Pax 1.0 sparse files have their map at the start of the
+	 * entry data. The older 0.0 format uses repeated variables which cannot be
+	 * represented in the variable map, so that format is not supported.
+	 */
+	private void handlePaxSparseVariables(DataSource src, TarEntryHeaderData res, Map<String, String> variables)
+	{
+		String sparseName = variables.get("GNU.sparse.name");
+		if (sparseName != null)
+		{
+			res.setLocation(new AbsoluteLocation("/" + sparseName));
+		}
+
+		if ("1".equals(variables.get("GNU.sparse.major")) && "0".equals(variables.get("GNU.sparse.minor")))
+		{
+			String realSize = variables.get("GNU.sparse.realsize");
+			if (realSize == null)
+			{
+				throw new TarFileParseException("Missing GNU.sparse.realsize variable for the sparse entry " + res.getLocation());
+			}
+			readPax1SparseMap(src, res, parsePaxLong("GNU.sparse.realsize", realSize));
+		}
+		else if (variables.get("GNU.sparse.map") != null)
+		{
+			String realSize = variables.get("GNU.sparse.size");
+			if (realSize == null)
+			{
+				throw new TarFileParseException("Missing GNU.sparse.size variable for the sparse entry " + res.getLocation());
+			}
+			res.setSparseMap(parsePax01SparseMap(variables.get("GNU.sparse.map"), parsePaxLong("GNU.sparse.size", realSize)));
+		}
+		else if (variables.get("GNU.sparse.numblocks") != null)
+		{
+			throw new TarFileParseException("The Pax 0.0 sparse file format used for the entry " + res.getLocation() + " is not supported");
+		}
+	}
+
 	/**
 	 * Read the Tar file entry header at the {@code DataSource}'s current
 	 * position. After reading the entry, the data source is positioned at the
 	 * start of the next entry's header.
 	 * @return The current Tar entry header or {@code null} if at EOF.
 	 */
-	private TarEntryHeader readEntryHeader(DataSource src, Charset fileNameCharset, TarEntryHeader previousHeader) throws TarFileParseException
+	private TarEntryHeader readEntryHeader(DataSource src, HeaderParseContext ctx, TarEntryHeader previousHeader) throws TarFileParseException
 	{
-		byte[] header = readEofOk(src, TarConstants.BLOCK_SIZE);
-		if (header == null)
+		byte[] header = ctx.m_header;
+		if (!readBlockEofOk(src, header))
 		{
 			// EOF
 			return null;
@@ -207,11 +744,11 @@ public final class TarFileParser
 			return null;
 		}
 
-		TarEntryHeaderData res = new TarEntryHeaderData();
-		long fileSize = Long.parseLong(fileNameCharset.decode(ByteBuffer.wrap(header, 124, 12)).toString().trim(), 8);
-		res.setFileSize(fileSize);
-		res.setTypeFlag(fileNameCharset.decode(ByteBuffer.wrap(header, 156, 1)).toString().charAt(0));
-		if ('L' == res.getTypeFlag())
+		long checksum = verifyChecksum(header);
+		long fileSize = parseNumeric(header, 124, 12);
+		char typeFlag = (char) (header[156] & 0xFF);
+		Charset fileNameCharset = ctx.m_charset;
+		if ('L' == typeFlag)
 		{
 			// This is a Gnu Tar long file name header. It contains
 			// information on the file name. This header's following file 
@@ -219,7 +756,7 @@ public final class TarFileParser
 			assert (previousHeader == null) || (previousHeader instanceof GnuExtendedInformationHeader);
 			return parseGnuLongFileNameHeader(src, fileNameCharset, (int) fileSize, previousHeader != null ? (GnuExtendedInformationHeader) previousHeader : new GnuExtendedInformationHeader());
 		}
-		else if ('K' == res.getTypeFlag())
+		else if ('K' == typeFlag)
 		{
 			// This is a Gnu Tar long link target header. It contains
 			// information on the file name and the link target. This header's following file 
@@ -227,7 +764,7 @@ public final class TarFileParser
 			assert (previousHeader == null) || (previousHeader instanceof GnuExtendedInformationHeader);
 			return parseGnuLongLinkTargetHeader(src, fileNameCharset, (int) fileSize, previousHeader != null ? (GnuExtendedInformationHeader) previousHeader : new GnuExtendedInformationHeader());
 		}
-		else if ('x' == res.getTypeFlag() || 'X' == res.getTypeFlag())
+		else if ('x' == typeFlag || 'X' == typeFlag)
 		{
 			// This is a pax header. The following file contains variables with
 			// information on the next file in the archive
@@ -235,7 +772,12 @@ public final class TarFileParser
 			return parsePaxHeader(src, (int) fileSize);
 		}
 
-		String fileName = fileNameCharset.decode(ByteBuffer.wrap(header, 0, 100)).toString().trim();
+		TarEntryHeaderData res = new TarEntryHeaderData();
+		res.setFileSize(fileSize);
+		res.setTypeFlag(typeFlag);
+		res.setChecksum((int) checksum);
+
+		String fileName = decodeString(ctx, 0, 100);
 		if (fileName.endsWith("/"))
 		{
 			res.setDirectory(true);
@@ -243,26 +785,27 @@ public final class TarFileParser
 		}
 		else
 		{
-			res.setDirectory('5' == res.getTypeFlag());
+			res.setDirectory('5' == typeFlag);
 		}
-		res.setMode(parseEntityMode(fileNameCharset.decode(ByteBuffer.wrap(header, 100, 8)).toString().trim()));
-		res.setOwnerUid(Integer.parseInt(fileNameCharset.decode(ByteBuffer.wrap(header, 108, 8)).toString().trim(), 8));
-		res.setOwnerGid(Integer.parseInt(fileNameCharset.decode(ByteBuffer.wrap(header, 116, 8)).toString().trim(), 8));
-		res.setLastModificationTime(new Date(Long.parseLong(fileNameCharset.decode(ByteBuffer.wrap(header, 136, 12)).toString().trim(), 8) * 1000));
-		res.setChecksum(Integer.parseInt(fileNameCharset.decode(ByteBuffer.wrap(header, 148, 8)).toString().trim(), 8));
-		res.setLinkName(fileNameCharset.decode(ByteBuffer.wrap(header, 157, 100)).toString().trim());
-		res.setMagic(fileNameCharset.decode(ByteBuffer.wrap(header, 257, 6)).toString().trim().intern());
-		if ("ustar".equals(res.getMagic()))
+		res.setMode(UnixEntityMode.forCode((int) parseOctal(header, 100, 8)));
+		res.setOwnerUid(toIntValue("uid", parseNumeric(header, 108, 8)));
+		res.setOwnerGid(toIntValue("gid", parseNumeric(header, 116, 8)));
+		res.setLastModificationTime(new Date(parseNumeric(header, 136, 12) * 1000));
+		res.setLinkName(decodeString(ctx, 157, 100));
+		// The magic is "ustar" followed by a NUL for POSIX Tar files, and
+		// "ustar " for Gnu Tar files.
+		if ((header[257] == 'u') && (header[258] == 's') && (header[259] == 't') && (header[260] == 'a') && (header[261] == 'r') && ((header[262] == 0) || (header[262] == ' ')))
 		{
 			// USTAR (POSIX (IEEE P1003.1)) format
-			res.setUstarVersion(fileNameCharset.decode(ByteBuffer.wrap(header, 263, 2)).toString().trim().intern());
-			res.setOwnerName(fileNameCharset.decode(ByteBuffer.wrap(header, 265, 32)).toString().trim().intern());
-			res.setGroupName(fileNameCharset.decode(ByteBuffer.wrap(header, 297, 32)).toString().trim().intern());
-			String devMajorStr = fileNameCharset.decode(ByteBuffer.wrap(header, 329, 8)).toString().trim();
-			res.setDevMajor(devMajorStr.length() > 0 ? Integer.parseInt(devMajorStr, 8) : 0);
-			String devMinorStr = fileNameCharset.decode(ByteBuffer.wrap(header, 337, 8)).toString().trim();
-			res.setDevMinor(devMinorStr.length() > 0 ? Integer.parseInt(devMinorStr, 8) : 0);
-			String fileNamePrefix = fileNameCharset.decode(ByteBuffer.wrap(header, 345, 155)).toString().trim();
+			res.setMagic("ustar");
+			res.setUstarVersion(((header[263] == '0') && (header[264] == '0')) ? "00" : decodeString(ctx, 263, 2).intern());
+			res.setOwnerName(decodeCachedString(ctx, 265, 32, HeaderParseContext.OWNER_NAME_CACHE));
+			res.setGroupName(decodeCachedString(ctx, 297, 32, HeaderParseContext.GROUP_NAME_CACHE));
+			res.setDevMajor(isEmptyField(header, 329, 8) ? 0 : toIntValue("device major number", parseNumeric(header, 329, 8)));
+			res.setDevMinor(isEmptyField(header, 337, 8) ? 0 : toIntValue("device minor number", parseNumeric(header, 337, 8)));
+			// Gnu Tar headers use the space of the file name prefix for other
+			// data, such as the sparse map.
+			String fileNamePrefix = header[262] == ' ' ? "" : decodeString(ctx, 345, 155);
 			if (fileNamePrefix.length() > 0)
 			{
 				fileName = fileNamePrefix + "/" + fileName;
@@ -272,9 +815,18 @@ public final class TarFileParser
 		else
 		{
 			// Old Tar format
+			res.setMagic(decodeString(ctx, 257, 6).intern());
 			res.setLocation(new AbsoluteLocation("/" + fileName));
 		}
 
+		// An old Gnu Tar sparse file? It is reported as a regular file with a
+		// sparse map.
+		if ((TarConstants.GNU_SPARSE_TYPE_FLAG == typeFlag) && (header[262] == ' '))
+		{
+			res.setSparseMap(readGnuSparseMap(src, header));
+			res.setTypeFlag(TarConstants.FILE_TYPE_FLAG);
+		}
+
 		// Was this header preceded with a header containing metadata?
 		if (previousHeader != null)
 		{
@@ -316,6 +868,38 @@ public final class TarFileParser
 				{
 					res.setLinkName(linkPath);
 				}
+				// Numeric values that may be too large for the ustar header
+				String size = variables.get("size");
+				if (size != null)
+				{
+					res.setFileSize(parsePaxLong("size", size));
+				}
+				String uid = variables.get("uid");
+				if (uid != null)
+				{
+					res.setOwnerUid(toIntValue("uid", parsePaxLong("uid", uid)));
+				}
+				String gid = variables.get("gid");
+				if (gid != null)
+				{
+					res.setOwnerGid(toIntValue("gid", parsePaxLong("gid", gid)));
+				}
+				String mtime = variables.get("mtime");
+				if (mtime != null)
+				{
+					res.setLastModificationTime(parsePaxTime(mtime));
+				}
+				String uname = variables.get("uname");
+				if (uname != null)
+				{
+					res.setOwnerName(uname);
+				}
+				String gname = variables.get("gname");
+				if (gname != null)
+				{
+					res.setGroupName(gname);
+				}
+				handlePaxSparseVariables(src, res, variables);
 			}
 		}
 		return res;
@@ -334,31 +918,13 @@ public final class TarFileParser
 		try
 		{
 			// Read all entry headers
-
-			// This variable is set if the previous header read contained meta
-			// data about the next header to read.
-			TarEntryHeader previousHeader = null;
-			TarEntryHeader entryHeader = readEntryHeader(src, fileNameCharset, null);
-			while (entryHeader != null)
+			HeaderParseContext ctx = new HeaderParseContext(fileNameCharset);
+			TarEntryHeaderData ehd = readNextEntry(src, ctx);
+			while (ehd != null)
 			{
-				if (entryHeader instanceof TarEntryHeaderData)
-				{
-					TarEntryHeaderData ehd = (TarEntryHeaderData) entryHeader;
-					long noToSkip = entryHandler.handle(ehd, src);
-					if (noToSkip > 0)
-					{
-						skipForward(src, noToSkip, 0);
-					}
-					// System.out.println(ehd.getLocation());
-					previousHeader = null;
-				}
-				else
-				{
-					// The entry contained meta information about the next
-					// entry.
-					previousHeader = entryHeader;
-				}
-				entryHeader = readEntryHeader(src, fileNameCharset, previousHeader);
+				skipEntryData(src, entryHandler.handle(ehd, src));
+				// System.out.println(ehd.getLocation());
+				ehd = readNextEntry(src, ctx);
 			}
 		}
 		catch (WrappedIOException e)
@@ -370,4 +936,54 @@ public final class TarFileParser
 			throw new TarFileParseException(e);
 		}
 	}
+
+	/**
+	 * Read the header data for the next entry from the data source. Headers
+	 * containing meta data about the next entry are read and applied to the
+	 * entry's header data. This is used by {@link #parse} and by
+	 * {@link LazyTarFile} that reads one entry at the time.
+	 * @param src The data source. It must be positioned at the start of an
+	 * entry header. When this method returns, it is positioned at the start of
+	 * the entry's data.
+	 * @param ctx The parse context. The same context should be used for all
+	 * entries in a Tar file.
+	 * @return The entry's header data, or {@code null} if the end of the Tar
+	 * file was reached.
+	 * @throws TarFileParseException On parse errors. Other runtime exceptions
+	 * thrown when parsing the header are not wrapped in a
+	 * {@code TarFileParseException} by this method.
+	 * @throws WrappedIOException On I/O errors.
+	 * @since 1.2
+	 */
+	TarEntryHeaderData readNextEntry(DataSource src, HeaderParseContext ctx) throws TarFileParseException, WrappedIOException
+	{
+		// This variable is set if the previous header read contained meta data
+		// about the next header to read.
+		TarEntryHeader previousHeader = null;
+		TarEntryHeader entryHeader = readEntryHeader(src, ctx, null);
+		while ((entryHeader != null) && !(entryHeader instanceof TarEntryHeaderData))
+		{
+			// The entry contained meta information about the next entry.
+			previousHeader = entryHeader;
+			entryHeader = readEntryHeader(src, ctx, previousHeader);
+		}
+		return (TarEntryHeaderData) entryHeader;
+	}
+
+	/**
+	 * Skip past an entry's data to the start of the next entry header.
+	 * @param src The data source.
+	 * @param minNoToSkip The minimum number of bytes to skip. This is rounded
+	 * up to the next Tar block boundary.
+	 * @throws TarFileParseException If the data source ends too early.
+	 * @throws WrappedIOException On I/O errors.
+	 * @since 1.2
+	 */
+	void skipEntryData(DataSource src, long minNoToSkip) throws TarFileParseException, WrappedIOException
+	{
+		if (minNoToSkip > 0)
+		{
+			skipForward(src, minNoToSkip, 0);
+		}
+	}
 }
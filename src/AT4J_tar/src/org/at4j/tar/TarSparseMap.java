@@ -0,0 +1,186 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar;
+
+/**
+ * This object contains the map of the data segments of a sparse Tar file
+ * entry. A sparse file entry only stores the segments of the file that
+ * contain data. The rest of the file, the holes, contain only zeroes.
+ * <p>
+ * Each data segment is described by its offset in the file and its size. The
+ * segments are stored one after another in the Tar file, in the same order as
+ * they appear in the map. The segments are sorted by their offsets and do not
+ * overlap.
+ * <p>
+ * Sparse map objects are immutable.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see TarFileEntry#getSparseMap()
+ * @see TarEntryHeaderData#getSparseMap()
+ */
+public final class TarSparseMap
+{
+	private final long[] m_offsets;
+	private final long[] m_sizes;
+	// The start position of each segment in the stored data.
+	private final long[] m_storedOffsets;
+	private final long m_realSize;
+	private final long m_storedSize;
+
+	/**
+	 * Create a new sparse map.
+	 * @param offsets The offsets of the data segments in the file. These must
+	 * be in ascending order.
+	 * @param sizes The sizes of the data segments. The last segment may have
+	 * the size zero. Gnu Tar adds such a segment to mark the end of a file that
+	 * ends with a hole.
+	 * @param realSize The size of the file, including the holes.
+	 * @throws IllegalArgumentException If the offsets and sizes arrays have
+	 * different lengths, if segments overlap or are out of order or if a
+	 * segment ends after the end of the file.
+	 */
+	public TarSparseMap(long[] offsets, long[] sizes, long realSize) throws IllegalArgumentException
+	{
+		if (offsets.length != sizes.length)
+		{
+			throw new IllegalArgumentException("The offsets and the sizes arrays must have the same length. They were " + offsets.length + " and " + sizes.length);
+		}
+		if (realSize < 0)
+		{
+			throw new IllegalArgumentException("Invalid file size " + realSize);
+		}
+
+		m_offsets = offsets.clone();
+		m_sizes = sizes.clone();
+		m_storedOffsets = new long[offsets.length];
+		long endOfLast = 0;
+		long storedSize = 0;
+		for (int i = 0; i < m_offsets.length; i++)
+		{
+			if ((m_offsets[i] < endOfLast) || (m_sizes[i] < 0) || (m_offsets[i] + m_sizes[i] > realSize))
+			{
+				throw new IllegalArgumentException("Invalid sparse segment " + i + ": offset " + m_offsets[i] + ", size " + m_sizes[i] + ". The file size is " + realSize);
+			}
+			m_storedOffsets[i] = storedSize;
+			storedSize += m_sizes[i];
+			endOfLast = m_offsets[i] + m_sizes[i];
+		}
+		m_realSize = realSize;
+		m_storedSize = storedSize;
+	}
+
+	/**
+	 * Get the size of the file, including holes.
+	 * @return The size of the file.
+	 */
+	public long getRealSize()
+	{
+		return m_realSize;
+	}
+
+	/**
+	 * Get the total size of all data segments. This is the number of bytes of
+	 * file data that is stored in the Tar file.
+	 * @return The total size of all data segments.
+	 */
+	public long getStoredSize()
+	{
+		return m_storedSize;
+	}
+
+	/**
+	 * Get the number of data segments in the map.
+	 * @return The number of data segments.
+	 */
+	public int getNumberOfSegments()
+	{
+		return m_offsets.length;
+	}
+
+	/**
+	 * Get the offset in the file of a data segment.
+	 * @param index The index of the segment.
+	 * @return The offset of the data segment in the file.
+	 * @throws ArrayIndexOutOfBoundsException If there is no segment with that
+	 * index.
+	 */
+	public long getSegmentOffset(int index) throws ArrayIndexOutOfBoundsException
+	{
+		return m_offsets[index];
+	}
+
+	/**
+	 * Get the size of a data segment.
+	 * @param index The index of the segment.
+	 * @return The size of the data segment.
+	 * @throws ArrayIndexOutOfBoundsException If there is no segment with that
+	 * index.
+	 */
+	public long getSegmentSize(int index) throws ArrayIndexOutOfBoundsException
+	{
+		return m_sizes[index];
+	}
+
+	/**
+	 * Get the position of a data segment in the stored data, i.e. the sum of
+	 * the sizes of all preceding segments.
+	 */
+	long getStoredSegmentOffset(int index)
+	{
+		return m_storedOffsets[index];
+	}
+
+	/**
+	 * Get the index of the last segment that starts at or before the supplied
+	 * position in the file.
+	 * @return The segment index, or {@code -1} if the position is before the
+	 * first segment.
+	 */
+	int getSegmentIndexFor(long pos)
+	{
+		int low = 0;
+		int high = m_offsets.length - 1;
+		int res = -1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			if (m_offsets[mid] <= pos)
+			{
+				res = mid;
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid - 1;
+			}
+		}
+		return res;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("Sparse map (size " + m_realSize + "):");
+		for (int i = 0; i < m_offsets.length; i++)
+		{
+			sb.append(" ").append(m_offsets[i]).append("+").append(m_sizes[i]);
+		}
+		return sb.toString();
+	}
+}
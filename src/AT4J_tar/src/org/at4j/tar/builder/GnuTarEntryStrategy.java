@@ -38,6 +38,11 @@ import org.entityfs.el.AbsoluteLocation;
  * for an entry is too long to fit in the ustar header, this strategy adds a
  * special file name header containing the Tar entry path before the regular
  * ustar entry header.
+ * <p>
+ * Numeric values that are too large for the octal fields of the ustar header,
+ * such as the size of files that are larger than 8 GiB or user and group ids
+ * that are larger than {@code 2097151}, are written using Gnu Tar's base-256
+ * encoding.
  * @author Karl Gustafsson
  * @since 1.0
  */
@@ -102,11 +107,34 @@ public class GnuTarEntryStrategy extends UstarEntryStrategy
 		super(cs);
 	}
 
-	private void writeGnuLongFileNameHeader(DataSink out, byte[] fileName)
+	/**
+	 * Override the inherited implementation to use the base-256 encoding for
+	 * values that do not fit in octal fields.
+	 * @since 1.2
+	 */
+	@Override
+	protected void setNumericFieldInHeader(byte[] header, int offset, int len, long value, String fieldName)
+	{
+		if (fitsInOctalField(value, len))
+		{
+			super.setNumericFieldInHeader(header, offset, len, value, fieldName);
+		}
+		else
+		{
+			setBase256NumericFieldInHeader(header, offset, len, value);
+		}
+	}
+
+	/**
+	 * @param typeFlag {@code L} for a long file name or {@code K} for a long
+	 * link name.
+	 */
+	private void writeGnuLongFileNameHeader(DataSink out, byte[] fileName, char typeFlag)
 	{
 		// Copy the template
 		byte[] header = new byte[512];
 		System.arraycopy(GNU_LONG_FILE_NAME_HEADER_TEMPLATE, 0, header, 0, 512);
+		header[156] = (byte) typeFlag;
 
 		// Fill in the file name length
 		System.arraycopy(zeroPadLeft(Integer.toOctalString(fileName.length), 11), 0, header, 124, 11);
@@ -123,13 +151,22 @@ public class GnuTarEntryStrategy extends UstarEntryStrategy
 
 	private AbsoluteLocation addLongFileNameHeaderIfNecessary(DataSink out, AbsoluteLocation location)
 	{
-		// A file name longer than 99 bytes?
+		return addLongNameHeaderIfNecessary(out, location, 'L');
+	}
+
+	/**
+	 * @param typeFlag {@code L} for a long file name or {@code K} for a long
+	 * link name.
+	 */
+	private AbsoluteLocation addLongNameHeaderIfNecessary(DataSink out, AbsoluteLocation location, char typeFlag)
+	{
+		// A name longer than 99 bytes?
 		String fileName = getFileName(location, false);
 		byte[] fileNameBytes = Charsets.getBytes(fileName, getTextEncodingCharset());
 		if (fileNameBytes.length > 99)
 		{
-			// Create a Gnu long file name header
-			writeGnuLongFileNameHeader(out, fileNameBytes);
+			// Create a Gnu long name header
+			writeGnuLongFileNameHeader(out, fileNameBytes, typeFlag);
 
 			String truncatedFileName = getTextEncodingCharset().decode(ByteBuffer.wrap(fileNameBytes, 0, 99)).toString();
 			while (truncatedFileName.endsWith("/"))
@@ -173,4 +210,17 @@ public class GnuTarEntryStrategy extends UstarEntryStrategy
 		location = addLongFileNameHeaderIfNecessary(out, location);
 		super.writeDirectory(out, da, location, effectiveSettings, lastModified);
 	}
+
+	/**
+	 * Override the inherited implementation to prepend the Tar entry header
+	 * with special file name and link name headers if necessary.
+	 * @since 1.2
+	 */
+	@Override
+	public void writeHardLink(DataSink out, ReadableFile f, AbsoluteLocation location, AbsoluteLocation linkTarget, TarEntrySettings effectiveSettings, Date lastModified)
+	{
+		linkTarget = addLongNameHeaderIfNecessary(out, linkTarget, 'K');
+		location = addLongFileNameHeaderIfNecessary(out, location);
+		super.writeHardLink(out, f, location, linkTarget, effectiveSettings, lastModified);
+	}
 }
@@ -0,0 +1,121 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar.builder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.at4j.support.io.HardLinks;
+import org.entityfs.EntityView;
+import org.entityfs.ReadableFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.util.FileReadableFile;
+import org.entityfs.util.cap.entity.ECFileResolvableUtil;
+import org.entityfs.util.io.ReadWritableFileAdapter;
+
+/**
+ * This is used by the Tar builders to detect files that are hard links to the
+ * data of files that already have been added to the archive. It keeps track of
+ * the device and inode numbers of all added files that have more than one
+ * link.
+ * <p>
+ * This object is not thread safe. It should only be used by the thread
+ * adding entries to the Tar builder.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see TarBuilderSettings#setDetectHardLinks(boolean)
+ */
+final class HardLinkDetector
+{
+	private final Map<Object, AbsoluteLocation> m_locationsByKey = new HashMap<Object, AbsoluteLocation>();
+
+	/**
+	 * Create a hard link detector if the settings say that hard links should
+	 * be detected.
+	 * @return A hard link detector, or {@code null} if hard links should not
+	 * be detected.
+	 */
+	static HardLinkDetector create(TarBuilderSettings settings)
+	{
+		if ((settings == null) || (!settings.isDetectHardLinks()))
+		{
+			return null;
+		}
+		return new HardLinkDetector();
+	}
+
+	/**
+	 * Get the file on disk that backs the supplied file, if any.
+	 * @return The file on disk, or {@code null}.
+	 */
+	private static File getFileObject(ReadableFile f)
+	{
+		if (f instanceof ReadWritableFileAdapter)
+		{
+			return ((ReadWritableFileAdapter) f).getFile();
+		}
+		else if (f instanceof FileReadableFile)
+		{
+			return ((FileReadableFile) f).getFile();
+		}
+		else if ((f instanceof EntityView) && ECFileResolvableUtil.supportsCapability((EntityView) f))
+		{
+			return ECFileResolvableUtil.getFileObject((EntityView) f);
+		}
+		else
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Get the location of the entry for an earlier added file that has the
+	 * same data as the supplied file. If there is no such entry, the supplied
+	 * file's location is remembered so that later added links to the same data
+	 * can refer to it.
+	 * @param f The file that is added.
+	 * @param location The location of the file's entry in the archive.
+	 * @return The location of the earlier entry, or {@code null} if the file
+	 * should be written as a regular file entry.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	AbsoluteLocation getLinkTarget(ReadableFile f, AbsoluteLocation location) throws WrappedIOException
+	{
+		File file = getFileObject(f);
+		if (file == null)
+		{
+			return null;
+		}
+
+		Object key = HardLinks.getLinkKey(file);
+		if (key == null)
+		{
+			return null;
+		}
+
+		AbsoluteLocation res = m_locationsByKey.get(key);
+		if (res == null)
+		{
+			m_locationsByKey.put(key, location);
+		}
+		return res;
+	}
+}
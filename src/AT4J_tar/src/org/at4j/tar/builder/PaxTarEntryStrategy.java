@@ -21,15 +21,20 @@ package org.at4j.tar.builder;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.at4j.archive.builder.ArchiveEntryAddException;
 import org.at4j.support.nio.charset.Charsets;
+import org.at4j.tar.TarConstants;
+import org.at4j.tar.TarSparseMap;
 import org.entityfs.DataSink;
 import org.entityfs.ETFile;
 import org.entityfs.RandomAccess;
@@ -37,6 +42,8 @@ import org.entityfs.ReadableFile;
 import org.entityfs.el.AbsoluteLocation;
 import org.entityfs.entityattrs.unix.UnixEntityMode;
 import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.StreamUtil;
+import org.entityfs.util.io.DataSinkToOutputStreamAdapter;
 
 /**
  * This strategy extends the {@link UstarEntryStrategy} creates a special Pax
@@ -57,6 +64,13 @@ import org.entityfs.support.exception.WrappedIOException;
  * and perhaps the "path" Pax variables to the headers that it creates. By
  * adding {@link PaxVariableProvider} objects to the strategy, more variables
  * can be set.
+ * <p>
+ * If the file size or the owner user or group id is too large to fit in the
+ * ustar header, it is set in the "size", "uid" or "gid" Pax variable. The
+ * ustar header field is then written using Gnu Tar's base-256 encoding. The
+ * size of a file that is added from a stream is not known when the Pax
+ * header is written, so a file from a stream that is larger than 8 GiB only
+ * gets its size in the base-256 encoded ustar header field.
  * @author Karl Gustafsson
  * @since 1.0
  */
@@ -68,7 +82,11 @@ public class PaxTarEntryStrategy extends UstarEntryStrategy
 
 	private final List<PaxVariableProvider> m_variableProviders = new ArrayList<PaxVariableProvider>(2);
 
+	// The granularity of sparse file hole detection
+	private static final int SPARSE_BLOCK_SIZE = 4096;
+
 	private int m_processId = DEFAULT_PID;
+	private boolean m_detectSparseFiles;
 
 	/**
 	 * Create a new strategy object that will use the platform's default
@@ -120,6 +138,41 @@ public class PaxTarEntryStrategy extends UstarEntryStrategy
 		return m_processId;
 	}
 
+	/**
+	 * Set whether the strategy should detect holes in files and write files
+	 * containing holes as sparse files. This is disabled by default.
+	 * <p>
+	 * Holes are detected by looking for {@code 4096} byte blocks that contain
+	 * only zeroes, so each file is read twice when this is enabled. Files
+	 * containing holes are written using the Gnu Tar Pax 1.0 sparse file
+	 * format, which is understood by Gnu Tar 1.17 and later, by bsdtar and by
+	 * {@link org.at4j.tar.TarFile}. Other Tar implementations will extract the
+	 * file with its sparse map prepended to its data, as a file in a
+	 * directory called {@code GNUSparseFile.<process id>}.
+	 * <p>
+	 * Sparse file detection is only used for files. Data added from streams is
+	 * always written as regular files.
+	 * @param b Should sparse files be detected?
+	 * @return {@code this}
+	 * @since 1.2
+	 */
+	public PaxTarEntryStrategy setDetectSparseFiles(boolean b)
+	{
+		m_detectSparseFiles = b;
+		return this;
+	}
+
+	/**
+	 * Is sparse file detection enabled?
+	 * @return {@code true} if sparse file detection is enabled.
+	 * @since 1.2
+	 * @see #setDetectSparseFiles(boolean)
+	 */
+	public boolean isDetectSparseFiles()
+	{
+		return m_detectSparseFiles;
+	}
+
 	/**
 	 * Add one Pax variable provider.
 	 * @param p A Pax variable provider.
@@ -150,13 +203,75 @@ public class PaxTarEntryStrategy extends UstarEntryStrategy
 		return location;
 	}
 
-	private byte[] createVariablesData(Object entity, AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified)
+	/**
+	 * Override the inherited implementation to use the base-256 encoding for
+	 * values that do not fit in octal fields. The values are also set in Pax
+	 * variables when possible.
+	 * @since 1.2
+	 */
+	@Override
+	protected void setNumericFieldInHeader(byte[] header, int offset, int len, long value, String fieldName)
+	{
+		if (fitsInOctalField(value, len))
+		{
+			super.setNumericFieldInHeader(header, offset, len, value, fieldName);
+		}
+		else
+		{
+			setBase256NumericFieldInHeader(header, offset, len, value);
+		}
+	}
+
+	private String formatTime(long timestamp)
+	{
+		// Round the seconds down so that the fraction always is positive
+		long seconds = timestamp / 1000;
+		long millis = timestamp % 1000;
+		if (millis < 0)
+		{
+			seconds--;
+			millis += 1000;
+		}
+		String millisStr = "" + millis;
+		while (millisStr.length() < 3)
+		{
+			millisStr = "0" + millisStr;
+		}
+		return "" + seconds + "." + millisStr + "000000";
+	}
+
+	/**
+	 * @param headerLocation The location that is set in the ustar header. This
+	 * is the same as {@code location}, except for sparse files.
+	 * @param fileSize The file size, or {@code -1} if it is not known yet.
+	 * @param extraVariables Extra variables to add, or {@code null}.
+	 */
+	private byte[] createVariablesData(Object entity, AbsoluteLocation location, AbsoluteLocation headerLocation, TarEntrySettings effectiveSettings, Date lastModified, long fileSize, Map<String, String> extraVariables)
 	{
 		Map<String, String> variables = new HashMap<String, String>(8);
-		long lastModifiedStamp = lastModified.getTime();
-		variables.put("mtime", "" + (lastModifiedStamp / 1000) + "." + (lastModifiedStamp % 1000) + "000000");
+		variables.put("mtime", formatTime(lastModified.getTime()));
+		if (extraVariables != null)
+		{
+			variables.putAll(extraVariables);
+		}
 
-		String pathStr = location.getLocation().substring(1);
+		// Numeric values that do not fit in the ustar header
+		if ((fileSize >= 0) && !fitsInOctalField(fileSize, 12))
+		{
+			variables.put("size", "" + fileSize);
+		}
+		int uid = effectiveSettings.getOwnerUid().intValue();
+		if (!fitsInOctalField(uid, 8))
+		{
+			variables.put("uid", "" + uid);
+		}
+		int gid = effectiveSettings.getOwnerGid().intValue();
+		if (!fitsInOctalField(gid, 8))
+		{
+			variables.put("gid", "" + gid);
+		}
+
+		String pathStr = headerLocation.getLocation().substring(1);
 		byte[] pathBytes = Charsets.getBytes(pathStr, Charsets.UTF8);
 		if (pathBytes.length > 99)
 		{
@@ -167,9 +282,11 @@ public class PaxTarEntryStrategy extends UstarEntryStrategy
 			// Non-ASCII characters in the path
 			variables.put("path", pathStr);
 		}
+		// Give the providers the original file, not the read ahead data.
+		Object providerEntity = entity instanceof ReadAheadFile ? ((ReadAheadFile) entity).getFile() : entity;
 		for (PaxVariableProvider prov : m_variableProviders)
 		{
-			prov.addVariables(variables, entity, location, effectiveSettings, lastModified);
+			prov.addVariables(variables, providerEntity, location, effectiveSettings, lastModified);
 		}
 
 		try
@@ -204,12 +321,229 @@ public class PaxTarEntryStrategy extends UstarEntryStrategy
 		}
 	}
 
-	private void writePaxHeader(DataSink out, Object entity, AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified)
+	private static boolean isZeroes(byte[] barr, int len)
+	{
+		for (int i = 0; i < len; i++)
+		{
+			if (barr[i] != 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read up to {@code len} bytes from the stream. This only returns fewer
+	 * bytes at the end of the stream.
+	 */
+	private static int readFully(InputStream is, byte[] barr, int len) throws IOException
+	{
+		int res = 0;
+		while (res < len)
+		{
+			int noRead = is.read(barr, res, len - res);
+			if (noRead < 0)
+			{
+				break;
+			}
+			res += noRead;
+		}
+		return res;
+	}
+
+	/**
+	 * Skip {@code n} bytes in the stream. This only skips fewer bytes at the
+	 * end of the stream.
+	 */
+	private static long skipFully(InputStream is, long n) throws IOException
+	{
+		long res = 0;
+		while (res < n)
+		{
+			long noSkipped = is.skip(n - res);
+			if (noSkipped <= 0)
+			{
+				// Either at EOF or the stream does not want to skip. Read a byte
+				// to find out.
+				if (is.read() < 0)
+				{
+					break;
+				}
+				noSkipped = 1;
+			}
+			res += noSkipped;
+		}
+		return res;
+	}
+
+	/**
+	 * Find the data segments of the file by looking for blocks that contain
+	 * only zeroes.
+	 * @return The sparse map, or {@code null} if the file does not contain
+	 * any holes.
+	 */
+	private TarSparseMap findDataSegments(ReadableFile f) throws WrappedIOException
+	{
+		List<Long> offsets = new ArrayList<Long>();
+		List<Long> sizes = new ArrayList<Long>();
+		long pos = 0;
+		// The start of the current data segment, or -1 if in a hole
+		long segmentStart = -1;
+		boolean holeFound = false;
+		try
+		{
+			InputStream is = f.openForRead();
+			try
+			{
+				byte[] block = new byte[SPARSE_BLOCK_SIZE];
+				int noRead = readFully(is, block, block.length);
+				while (noRead > 0)
+				{
+					if (isZeroes(block, noRead))
+					{
+						holeFound = true;
+						if (segmentStart >= 0)
+						{
+							offsets.add(Long.valueOf(segmentStart));
+							sizes.add(Long.valueOf(pos - segmentStart));
+							segmentStart = -1;
+						}
+					}
+					else if (segmentStart < 0)
+					{
+						segmentStart = pos;
+					}
+					pos += noRead;
+					noRead = readFully(is, block, block.length);
+				}
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+
+		if (!holeFound)
+		{
+			return null;
+		}
+		if (segmentStart >= 0)
+		{
+			offsets.add(Long.valueOf(segmentStart));
+			sizes.add(Long.valueOf(pos - segmentStart));
+		}
+		else
+		{
+			// The file ends with a hole. Mark the end of the file with an
+			// empty segment, like Gnu Tar does.
+			offsets.add(Long.valueOf(pos));
+			sizes.add(Long.valueOf(0L));
+		}
+
+		long[] offsetArr = new long[offsets.size()];
+		long[] sizeArr = new long[sizes.size()];
+		for (int i = 0; i < offsetArr.length; i++)
+		{
+			offsetArr[i] = offsets.get(i).longValue();
+			sizeArr[i] = sizes.get(i).longValue();
+		}
+		return new TarSparseMap(offsetArr, sizeArr, pos);
+	}
+
+	/**
+	 * Create the sparse map that is written first in the data of a Pax 1.0
+	 * sparse file. It contains the number of segments followed by the offset
+	 * and size of each segment, all as decimal numbers on a line of their own.
+	 * It is padded with zeroes to the next block boundary.
+	 */
+	private byte[] createPax1SparseMapData(TarSparseMap sparseMap)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(sparseMap.getNumberOfSegments()).append('\n');
+		for (int i = 0; i < sparseMap.getNumberOfSegments(); i++)
+		{
+			sb.append(sparseMap.getSegmentOffset(i)).append('\n');
+			sb.append(sparseMap.getSegmentSize(i)).append('\n');
+		}
+		byte[] mapBytes = sb.toString().getBytes();
+		byte[] res = new byte[((mapBytes.length - 1) / TarConstants.BLOCK_SIZE + 1) * TarConstants.BLOCK_SIZE];
+		System.arraycopy(mapBytes, 0, res, 0, mapBytes.length);
+		return res;
+	}
+
+	/**
+	 * Write the file as a Gnu Tar Pax 1.0 sparse file. The real path and size
+	 * of the file are set in Pax variables and the ustar header gets a special
+	 * file name. The entry data consists of the sparse map followed by the data
+	 * segments.
+	 */
+	private void writeSparseFile(DataSink out, ReadableFile f, AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified, TarSparseMap sparseMap)
+	{
+		byte[] mapData = createPax1SparseMapData(sparseMap);
+		long storedSize = mapData.length + sparseMap.getStoredSize();
+		AbsoluteLocation sparseLocation = location.getParentLocation().getChildLocation("GNUSparseFile." + m_processId).getChildLocation(location.getName());
+
+		Map<String, String> sparseVariables = new HashMap<String, String>(4);
+		sparseVariables.put("GNU.sparse.major", "1");
+		sparseVariables.put("GNU.sparse.minor", "0");
+		sparseVariables.put("GNU.sparse.name", location.getLocation().substring(1));
+		sparseVariables.put("GNU.sparse.realsize", "" + sparseMap.getRealSize());
+		writePaxHeader(out, f, location, sparseLocation, effectiveSettings, lastModified, storedSize, sparseVariables);
+
+		byte[] header = getHeader(f, getFileName(truncateLocation(sparseLocation), false), effectiveSettings, storedSize, ETFile.TYPE, lastModified);
+		addChecksumToHeader(header);
+		out.write(header);
+		out.write(mapData);
+
+		// Write the data segments
+		try
+		{
+			InputStream is = f.openForRead();
+			try
+			{
+				OutputStream os = new DataSinkToOutputStreamAdapter(out);
+				long pos = 0;
+				for (int i = 0; i < sparseMap.getNumberOfSegments(); i++)
+				{
+					long offset = sparseMap.getSegmentOffset(i);
+					long size = sparseMap.getSegmentSize(i);
+					if (size > 0)
+					{
+						if (skipFully(is, offset - pos) != offset - pos)
+						{
+							throw new ArchiveEntryAddException("The file " + f + " was truncated while it was being added");
+						}
+						if (StreamUtil.copyStreams(is, os, 16384, size) != size)
+						{
+							throw new ArchiveEntryAddException("The file " + f + " was truncated while it was being added");
+						}
+						pos = offset + size;
+					}
+				}
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		goToNextBlockBoundary(out, storedSize);
+	}
+
+	private void writePaxHeader(DataSink out, Object entity, AbsoluteLocation location, AbsoluteLocation headerLocation, TarEntrySettings effectiveSettings, Date lastModified, long fileSize, Map<String, String> extraVariables)
 	{
 		AbsoluteLocation parentLocation = location.getParentLocation();
 		String truncatedLocation = truncateLocation(parentLocation.getChildLocation("PaxHeader." + m_processId).getChildLocation(location.getName())).getLocation().substring(1);
 
-		byte[] variablesData = createVariablesData(entity, location, effectiveSettings, lastModified);
+		byte[] variablesData = createVariablesData(entity, location, headerLocation, effectiveSettings, lastModified, fileSize, extraVariables);
 
 		TarEntrySettings paxHeaderSettings = new TarEntrySettings();
 		paxHeaderSettings.setEntityMode(UnixEntityMode.forCode(0644));
@@ -231,12 +565,23 @@ public class PaxTarEntryStrategy extends UstarEntryStrategy
 
 	/**
 	 * Override the inherited implementation to add a Pax header before the
-	 * ustar header.
+	 * ustar header. If sparse file detection is enabled and the file contains
+	 * holes, it is written as a sparse file.
 	 */
 	@Override
 	public void writeFile(DataSink out, ReadableFile f, AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified)
 	{
-		writePaxHeader(out, f, location, effectiveSettings, lastModified);
+		if (m_detectSparseFiles)
+		{
+			TarSparseMap sparseMap = findDataSegments(f);
+			if (sparseMap != null)
+			{
+				writeSparseFile(out, f, location, effectiveSettings, lastModified, sparseMap);
+				return;
+			}
+		}
+
+		writePaxHeader(out, f, location, location, effectiveSettings, lastModified, f.getDataSize(), null);
 		location = truncateLocation(location);
 		super.writeFile(out, f, location, effectiveSettings, lastModified);
 	}
@@ -248,7 +593,7 @@ public class PaxTarEntryStrategy extends UstarEntryStrategy
 	@Override
 	public void writeFileFromStream(RandomAccess out, InputStream is, AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified)
 	{
-		writePaxHeader(out, is, location, effectiveSettings, lastModified);
+		writePaxHeader(out, is, location, location, effectiveSettings, lastModified, -1, null);
 		location = truncateLocation(location);
 		super.writeFileFromStream(out, is, location, effectiveSettings, lastModified);
 	}
@@ -260,8 +605,28 @@ public class PaxTarEntryStrategy extends UstarEntryStrategy
 	@Override
 	public void writeDirectory(DataSink out, DirectoryAdapter<?> da, AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified)
 	{
-		writePaxHeader(out, da, location, effectiveSettings, lastModified);
+		writePaxHeader(out, da, location, location, effectiveSettings, lastModified, 0, null);
 		location = truncateLocation(location);
 		super.writeDirectory(out, da, location, effectiveSettings, lastModified);
 	}
+
+	/**
+	 * Override the inherited implementation to add a Pax header before the
+	 * ustar header. If the link target does not fit in the ustar header, it is
+	 * stored in the Pax header's {@code linkpath} variable.
+	 * @since 1.2
+	 */
+	@Override
+	public void writeHardLink(DataSink out, ReadableFile f, AbsoluteLocation location, AbsoluteLocation linkTarget, TarEntrySettings effectiveSettings, Date lastModified)
+	{
+		Map<String, String> extraVariables = null;
+		String linkPathStr = linkTarget.getLocation().substring(1);
+		byte[] linkPathBytes = Charsets.getBytes(linkPathStr, Charsets.UTF8);
+		if ((linkPathBytes.length > 99) || (linkPathBytes.length != linkPathStr.length()))
+		{
+			extraVariables = Collections.singletonMap("linkpath", linkPathStr);
+		}
+		writePaxHeader(out, f, location, location, effectiveSettings, lastModified, 0, extraVariables);
+		super.writeHardLink(out, f, truncateLocation(location), truncateLocation(linkTarget), effectiveSettings, lastModified);
+	}
 }
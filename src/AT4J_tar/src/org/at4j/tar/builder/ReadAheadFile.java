@@ -0,0 +1,54 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar.builder;
+
+import org.entityfs.ReadableFile;
+import org.entityfs.util.ByteArrayReadableFile;
+
+/**
+ * This is the contents of a file that has been read ahead by a
+ * {@link ReadAheadQueue}. It is given to the {@link TarEntryStrategy} instead
+ * of the original file.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class ReadAheadFile extends ByteArrayReadableFile
+{
+	private final ReadableFile m_file;
+
+	ReadAheadFile(ReadableFile f, byte[] data)
+	{
+		super(data);
+		m_file = f;
+	}
+
+	/**
+	 * Get the file that was read.
+	 */
+	ReadableFile getFile()
+	{
+		return m_file;
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_file.toString();
+	}
+}
@@ -0,0 +1,368 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar.builder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
+
+import org.at4j.archive.builder.ArchiveEntryAddException;
+import org.entityfs.DataSink;
+import org.entityfs.ReadableFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.support.exception.WrappedIOException;
+
+/**
+ * This is used by the Tar builders to read the files that are added to the
+ * archive ahead of time in an {@link Executor}'s threads. The entries are
+ * written to the archive in the order that they were added by the thread
+ * adding them. This hides the latency of opening and reading files on slow
+ * file systems.
+ * <p>
+ * The read ahead file data is kept in memory. Files that are larger than the
+ * memory budget are not read ahead. They are read when all previously added
+ * entries have been written.
+ * <p>
+ * This object is not thread safe. It should only be used by the thread
+ * adding entries to the Tar builder.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class ReadAheadQueue
+{
+	/**
+	 * An entry that is waiting to be written.
+	 */
+	private static class PendingEntry
+	{
+		private final AbsoluteLocation m_location;
+		private final TarEntrySettings m_effectiveSettings;
+		private final Date m_lastModified;
+		// This is null for file entries
+		private final DirectoryAdapter<?> m_directory;
+		// These are null for directory entries
+		private final ReadableFile m_file;
+		// This is null for hard link entries
+		private final FutureTask<byte[]> m_task;
+		private final long m_allocated;
+		// This is only set for hard link entries
+		private final AbsoluteLocation m_linkTarget;
+
+		private PendingEntry(AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified, DirectoryAdapter<?> da, ReadableFile f, FutureTask<byte[]> task, long allocated, AbsoluteLocation linkTarget)
+		{
+			m_location = location;
+			m_effectiveSettings = effectiveSettings;
+			m_lastModified = lastModified;
+			m_directory = da;
+			m_file = f;
+			m_task = task;
+			m_allocated = allocated;
+			m_linkTarget = linkTarget;
+		}
+	}
+
+	private final TarEntryStrategy m_entryStrategy;
+	private final DataSink m_out;
+	private final Executor m_executor;
+	private final long m_memoryBudget;
+	private final int m_maxNumberOfPendingEntries;
+	// Entries that are waiting to be written, in the order that they were
+	// added.
+	private final LinkedList<PendingEntry> m_pendingEntries = new LinkedList<PendingEntry>();
+	// The memory used by the pending entries.
+	private long m_usedMemory;
+
+	ReadAheadQueue(TarEntryStrategy entryStrategy, DataSink out, Executor executor, long memoryBudget, int maxNumberOfPendingEntries)
+	{
+		// Null checks
+		entryStrategy.getClass();
+		out.getClass();
+		executor.getClass();
+
+		m_entryStrategy = entryStrategy;
+		m_out = out;
+		m_executor = executor;
+		m_memoryBudget = memoryBudget;
+		m_maxNumberOfPendingEntries = maxNumberOfPendingEntries;
+	}
+
+	/**
+	 * Create a read ahead queue if the settings has a read ahead executor.
+	 * @return A read ahead queue, or {@code null} if files should not be read
+	 * ahead.
+	 */
+	static ReadAheadQueue create(TarBuilderSettings settings, TarEntryStrategy entryStrategy, DataSink out)
+	{
+		if ((settings == null) || (settings.getReadAheadExecutor() == null))
+		{
+			return null;
+		}
+		return new ReadAheadQueue(entryStrategy, out, settings.getReadAheadExecutor(), settings.getReadAheadMemoryBudget(), settings.getMaxNumberOfReadAheadFiles());
+	}
+
+	private static byte[] readFile(ReadableFile f, int size) throws IOException
+	{
+		byte[] res = new byte[size];
+		int noRead = 0;
+		InputStream is = f.openForRead();
+		try
+		{
+			while (noRead < size)
+			{
+				int n = is.read(res, noRead, size - noRead);
+				if (n < 0)
+				{
+					// The file has shrunk since its size was read.
+					return Arrays.copyOf(res, noRead);
+				}
+				noRead += n;
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+		return res;
+	}
+
+	private static byte[] getData(FutureTask<byte[]> task) throws WrappedIOException
+	{
+		try
+		{
+			return task.get();
+		}
+		catch (InterruptedException e)
+		{
+			// Restore the interrupt status for the caller
+			Thread.currentThread().interrupt();
+			throw new WrappedIOException(new InterruptedIOException("Interrupted when waiting for the file to be read"));
+		}
+		catch (ExecutionException e)
+		{
+			Throwable t = e.getCause();
+			if (t instanceof IOException)
+			{
+				throw new WrappedIOException((IOException) t);
+			}
+			else if (t instanceof RuntimeException)
+			{
+				throw (RuntimeException) t;
+			}
+			else if (t instanceof Error)
+			{
+				throw (Error) t;
+			}
+			else
+			{
+				throw new RuntimeException(t);
+			}
+		}
+	}
+
+	/**
+	 * Write the first pending entry. If it is a file, this waits for the file
+	 * to be read.
+	 */
+	private void writeFirstPendingEntry() throws WrappedIOException, ArchiveEntryAddException
+	{
+		PendingEntry pe = m_pendingEntries.removeFirst();
+		try
+		{
+			if (pe.m_directory != null)
+			{
+				m_entryStrategy.writeDirectory(m_out, pe.m_directory, pe.m_location, pe.m_effectiveSettings, pe.m_lastModified);
+			}
+			else if (pe.m_linkTarget != null)
+			{
+				m_entryStrategy.writeHardLink(m_out, pe.m_file, pe.m_location, pe.m_linkTarget, pe.m_effectiveSettings, pe.m_lastModified);
+			}
+			else
+			{
+				m_entryStrategy.writeFile(m_out, new ReadAheadFile(pe.m_file, getData(pe.m_task)), pe.m_location, pe.m_effectiveSettings, pe.m_lastModified);
+			}
+		}
+		finally
+		{
+			m_usedMemory -= pe.m_allocated;
+		}
+	}
+
+	/**
+	 * Write pending entries until the first entry that is still being read,
+	 * unless there are more pending entries than what is allowed. In that case,
+	 * wait for the first entries to be read.
+	 */
+	private void writeFinishedEntries() throws WrappedIOException, ArchiveEntryAddException
+	{
+		while (!m_pendingEntries.isEmpty())
+		{
+			PendingEntry pe = m_pendingEntries.getFirst();
+			if ((m_pendingEntries.size() > m_maxNumberOfPendingEntries) || (pe.m_task == null) || pe.m_task.isDone())
+			{
+				writeFirstPendingEntry();
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Write all pending entries. This waits for all files to be read.
+	 * @throws WrappedIOException On I/O errors. If an entry cannot be written,
+	 * the entries after it are left in the queue.
+	 * @throws ArchiveEntryAddException If an entry cannot be written.
+	 */
+	void writeAll() throws WrappedIOException, ArchiveEntryAddException
+	{
+		while (!m_pendingEntries.isEmpty())
+		{
+			writeFirstPendingEntry();
+		}
+	}
+
+	/**
+	 * Write all pending entries, even if some of them fail. This is used when
+	 * the Tar builder is closed.
+	 * @throws RuntimeException The error from the first entry that could not be
+	 * written, if any.
+	 */
+	void close()
+	{
+		RuntimeException firstException = null;
+		while (!m_pendingEntries.isEmpty())
+		{
+			try
+			{
+				writeFirstPendingEntry();
+			}
+			catch (RuntimeException e)
+			{
+				if (firstException == null)
+				{
+					firstException = e;
+				}
+			}
+		}
+		if (firstException != null)
+		{
+			throw firstException;
+		}
+	}
+
+	/**
+	 * Add a directory entry. It is written directly if there are no pending
+	 * entries before it.
+	 */
+	void addDirectory(DirectoryAdapter<?> da, AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
+	{
+		if (m_pendingEntries.isEmpty())
+		{
+			m_entryStrategy.writeDirectory(m_out, da, location, effectiveSettings, lastModified);
+		}
+		else
+		{
+			// Keep the order of the entries
+			m_pendingEntries.add(new PendingEntry(location, effectiveSettings, lastModified, da, null, null, 0L, null));
+			writeFinishedEntries();
+		}
+	}
+
+	/**
+	 * Add a hard link entry. It is written directly if there are no pending
+	 * entries before it.
+	 */
+	void addHardLink(ReadableFile f, AbsoluteLocation location, AbsoluteLocation linkTarget, TarEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
+	{
+		if (m_pendingEntries.isEmpty())
+		{
+			m_entryStrategy.writeHardLink(m_out, f, location, linkTarget, effectiveSettings, lastModified);
+		}
+		else
+		{
+			// Keep the order of the entries
+			m_pendingEntries.add(new PendingEntry(location, effectiveSettings, lastModified, null, f, null, 0L, linkTarget));
+			writeFinishedEntries();
+		}
+	}
+
+	/**
+	 * Add a file entry. The file is read in the executor's thread if it fits
+	 * in the memory budget.
+	 */
+	void addFile(final ReadableFile f, AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
+	{
+		final long size = f.getDataSize();
+		if ((size > m_memoryBudget) || (size > Integer.MAX_VALUE))
+		{
+			// Too big. Write it directly after all pending entries.
+			writeAll();
+			m_entryStrategy.writeFile(m_out, f, location, effectiveSettings, lastModified);
+			return;
+		}
+
+		// Make room for the file in the memory budget
+		while (m_usedMemory + size > m_memoryBudget)
+		{
+			writeFirstPendingEntry();
+		}
+
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>()
+		{
+			public byte[] call() throws IOException
+			{
+				Lock rl = f.lockForReading();
+				try
+				{
+					return readFile(f, (int) size);
+				}
+				finally
+				{
+					rl.unlock();
+				}
+			}
+		});
+		m_pendingEntries.add(new PendingEntry(location, effectiveSettings, lastModified, null, f, task, size, null));
+		m_usedMemory += size;
+		boolean successful = false;
+		try
+		{
+			m_executor.execute(task);
+			successful = true;
+		}
+		finally
+		{
+			if (!successful)
+			{
+				m_pendingEntries.removeLast();
+				m_usedMemory -= size;
+			}
+		}
+		writeFinishedEntries();
+	}
+}
@@ -19,17 +19,25 @@
 package org.at4j.tar.builder;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.concurrent.locks.Lock;
 
 import org.at4j.archive.builder.AbstractStreamAddCapableArchiveBuilder;
 import org.at4j.archive.builder.ArchiveEntryAddException;
+import org.at4j.support.io.FileChannelRandomAccess;
 import org.at4j.tar.TarConstants;
+import org.at4j.tar.TarFileIndexWriter;
 import org.entityfs.DirectoryView;
 import org.entityfs.RandomAccess;
 import org.entityfs.RandomlyAccessibleFile;
 import org.entityfs.ReadableFile;
+import org.entityfs.WritableFile;
 import org.entityfs.el.AbsoluteLocation;
 import org.entityfs.lock.DummyLock;
 import org.entityfs.support.exception.WrappedIOException;
@@ -62,7 +70,8 @@ import org.entityfs.support.io.RandomAccessMode;
  * such as sparse files and archive labels.</li>
  * <li>{@link PaxTarEntryStrategy} &nsash; creates a Tar file using the POSIX
  * 1003.1-2001 (pax) format. This extends the ustar format with support for file
- * names of an unlimited length and with support for metadata variables.</li>
+ * names of an unlimited length and with support for metadata variables. It can
+ * also be configured to store files with holes as sparse files.</li>
  * </ul>
  * All file formats are somewhat compatible with each other. If a tar
  * implementation does not understand a specific feature, it treats it as a
@@ -75,6 +84,19 @@ import org.entityfs.support.io.RandomAccessMode;
  * <p>
  * This implementation does not support adding symbolic links to the archive.
  * <p>
+ * If the settings has a {@link TarBuilderSettings#setReadAheadExecutor(java.util.concurrent.Executor) read ahead executor},
+ * files are opened and read ahead of time in the executor's threads. This
+ * helps when adding many files from a slow file system.
+ * <p>
+ * If the settings has {@link TarBuilderSettings#setDetectHardLinks(boolean) hard link detection}
+ * enabled, files on disk that are hard links to the data of a file that
+ * already has been added are written as hard link entries.
+ * <p>
+ * If the settings has an {@link TarBuilderSettings#setIndexFile(WritableFile) index file},
+ * an {@link org.at4j.tar.TarFileIndex} of the archive's entries is written to
+ * it as the entries are added. The index is finished when the builder is
+ * closed.
+ * <p>
  * If it is in a locking {@link org.entityfs.FileSystem}, the target file is
  * locked for writing until the Tar builder is {@link #close()}:d.
  * <p>
@@ -91,6 +113,14 @@ public class TarBuilder extends AbstractStreamAddCapableArchiveBuilder<TarBuilde
 	private final boolean m_closeRandomAccessWhenClosing;
 	private final Lock m_targetWriteLock;
 	private final TarEntryStrategy m_entryStrategy;
+	// This is null if files are not read ahead.
+	private final ReadAheadQueue m_readAheadQueue;
+	// This is null if hard links are not detected.
+	private final HardLinkDetector m_hardLinkDetector;
+	// This is null if the builder was created with a RandomAccess
+	private final RandomlyAccessibleFile m_target;
+	// This is null if no index is written.
+	private final TarFileIndexWriter m_indexWriter;
 
 	private boolean m_closed = false;
 
@@ -130,14 +160,22 @@ public class TarBuilder extends AbstractStreamAddCapableArchiveBuilder<TarBuilde
 
 		m_entryStrategy = settings != null ? settings.getEntryStrategy() : TarBuilderSettings.DEFAULT_ENTRY_STRATEGY;
 		m_closeRandomAccessWhenClosing = true;
+		m_target = target;
 
 		RandomAccess targetRandomAccess = null;
+		FileChannel targetChannel = null;
 		boolean successful = false;
 		m_targetWriteLock = target.lockForWriting();
 		try
 		{
+			targetChannel = openFileChannelIfPossible(target);
 			targetRandomAccess = target.openForRandomAccess(RandomAccessMode.READ_WRITE);
 			targetRandomAccess.setLength(0);
+			if (targetChannel != null)
+			{
+				targetRandomAccess = new FileChannelRandomAccess(targetRandomAccess, targetChannel);
+			}
+			m_indexWriter = createIndexWriter(settings, m_entryStrategy);
 			successful = true;
 			m_targetRandomAccess = targetRandomAccess;
 		}
@@ -151,6 +189,75 @@ public class TarBuilder extends AbstractStreamAddCapableArchiveBuilder<TarBuilde
 				{
 					targetRandomAccess.close();
 				}
+				closeChannel(targetChannel);
+			}
+		}
+		m_readAheadQueue = ReadAheadQueue.create(settings, m_entryStrategy, m_targetRandomAccess);
+		m_hardLinkDetector = HardLinkDetector.create(settings);
+	}
+
+	/**
+	 * Open a {@link FileChannel} for writing to the target file, if the target
+	 * file supports it. The file channel is used by the entry strategies for
+	 * copying file data directly from the files added to the archive, without
+	 * going through a buffer on the Java heap.
+	 * @return A file channel, or {@code null} if the target file cannot give
+	 * one.
+	 */
+	private static FileChannel openFileChannelIfPossible(RandomlyAccessibleFile target)
+	{
+		if (target instanceof WritableFile)
+		{
+			// This truncates the file, but that is done below anyway
+			WritableByteChannel res = ((WritableFile) target).openChannelForWrite();
+			if (res instanceof FileChannel)
+			{
+				return (FileChannel) res;
+			}
+			closeChannel(res);
+		}
+		return null;
+	}
+
+	/**
+	 * Create an index writer if the settings has an index file.
+	 * @return An index writer, or {@code null}.
+	 */
+	private static TarFileIndexWriter createIndexWriter(TarBuilderSettings settings, TarEntryStrategy strategy)
+	{
+		if ((settings == null) || (settings.getIndexFile() == null))
+		{
+			return null;
+		}
+		// The index must be parsed with the same charset that the entry
+		// strategy encodes entry names with.
+		Charset cs = strategy instanceof V7TarEntryStrategy ? ((V7TarEntryStrategy) strategy).getTextEncodingCharset() : Charset.defaultCharset();
+		return new TarFileIndexWriter(settings.getIndexFile(), cs);
+	}
+
+	/**
+	 * Index the entries that have been written since the last time that this
+	 * method was called, if an index is written.
+	 */
+	private void updateIndex()
+	{
+		if (m_indexWriter != null)
+		{
+			m_indexWriter.update(m_targetRandomAccess);
+		}
+	}
+
+	private static void closeChannel(Channel c)
+	{
+		if (c != null)
+		{
+			try
+			{
+				c.close();
+			}
+			catch (IOException e)
+			{
+				throw new WrappedIOException(e);
 			}
 		}
 	}
@@ -177,8 +284,12 @@ public class TarBuilder extends AbstractStreamAddCapableArchiveBuilder<TarBuilde
 
 		m_entryStrategy = settings != null ? settings.getEntryStrategy() : TarBuilderSettings.DEFAULT_ENTRY_STRATEGY;
 		m_closeRandomAccessWhenClosing = false;
+		m_target = null;
 		m_targetRandomAccess = target;
 		m_targetWriteLock = DummyLock.INSTANCE;
+		m_indexWriter = createIndexWriter(settings, m_entryStrategy);
+		m_readAheadQueue = ReadAheadQueue.create(settings, m_entryStrategy, m_targetRandomAccess);
+		m_hardLinkDetector = HardLinkDetector.create(settings);
 	}
 
 	@Override
@@ -218,19 +329,54 @@ public class TarBuilder extends AbstractStreamAddCapableArchiveBuilder<TarBuilde
 		{
 			throw new ArchiveEntryAddException("Don't know how to adapt " + d + " to something that I can use");
 		}
-		m_entryStrategy.writeDirectory(m_targetRandomAccess, da, location, effectiveSettings, lastModified);
+		if (m_readAheadQueue != null)
+		{
+			m_readAheadQueue.addDirectory(da, location, effectiveSettings, lastModified);
+		}
+		else
+		{
+			m_entryStrategy.writeDirectory(m_targetRandomAccess, da, location, effectiveSettings, lastModified);
+		}
+		updateIndex();
 	}
 
 	@Override
 	protected void addFileCallback(AbsoluteLocation location, ReadableFile f, TarEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
 	{
-		m_entryStrategy.writeFile(m_targetRandomAccess, f, location, effectiveSettings, lastModified);
+		AbsoluteLocation linkTarget = m_hardLinkDetector != null ? m_hardLinkDetector.getLinkTarget(f, location) : null;
+		if (linkTarget != null)
+		{
+			if (m_readAheadQueue != null)
+			{
+				m_readAheadQueue.addHardLink(f, location, linkTarget, effectiveSettings, lastModified);
+			}
+			else
+			{
+				m_entryStrategy.writeHardLink(m_targetRandomAccess, f, location, linkTarget, effectiveSettings, lastModified);
+			}
+		}
+		else if (m_readAheadQueue != null)
+		{
+			m_readAheadQueue.addFile(f, location, effectiveSettings, lastModified);
+		}
+		else
+		{
+			m_entryStrategy.writeFile(m_targetRandomAccess, f, location, effectiveSettings, lastModified);
+		}
+		updateIndex();
 	}
 
 	@Override
 	protected void addStreamCallback(AbsoluteLocation location, InputStream is, TarEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
 	{
+		if (m_readAheadQueue != null)
+		{
+			// The stream has to be read before this method returns, so all
+			// pending entries must be written first.
+			m_readAheadQueue.writeAll();
+		}
 		m_entryStrategy.writeFileFromStream(m_targetRandomAccess, is, location, effectiveSettings, lastModified);
+		updateIndex();
 	}
 
 	public boolean isClosed()
@@ -241,33 +387,86 @@ public class TarBuilder extends AbstractStreamAddCapableArchiveBuilder<TarBuilde
 	/**
 	 * This method finishes writing the Tar file and closes it. It also releases
 	 * the write lock on the created Tar file, if it is in a locking
-	 * {@link org.entityfs.FileSystem}.
+	 * {@link org.entityfs.FileSystem}. If an index is written, it is finished
+	 * and closed too.
 	 * @throws WrappedIOException On I/O errors.
 	 */
 	public void close() throws WrappedIOException
 	{
 		if (!m_closed)
 		{
+			RuntimeException pendingEntryException = null;
+			long archiveSize = -1L;
 			try
 			{
 				try
 				{
-					// Write two empty blocks
-					// The array contents defaults to zeroes. Just what we want.
-					m_targetRandomAccess.write(new byte[TarConstants.BLOCK_SIZE * 2]);
+					try
+					{
+						if (m_readAheadQueue != null)
+						{
+							// Write the entries that are still waiting. If one
+							// of them fails, the Tar file is still finished
+							// before the error is reported.
+							try
+							{
+								m_readAheadQueue.close();
+							}
+							catch (RuntimeException e)
+							{
+								pendingEntryException = e;
+							}
+						}
+						updateIndex();
+
+						// Write two empty blocks
+						// The array contents defaults to zeroes. Just what we
+						// want.
+						m_targetRandomAccess.write(new byte[TarConstants.BLOCK_SIZE * 2]);
+						archiveSize = m_targetRandomAccess.length();
+					}
+					finally
+					{
+						if (m_closeRandomAccessWhenClosing)
+						{
+							m_targetRandomAccess.close();
+						}
+					}
 				}
 				finally
 				{
-					if (m_closeRandomAccessWhenClosing)
+					m_targetWriteLock.unlock();
+					m_closed = true;
+				}
+
+				if (m_indexWriter != null)
+				{
+					// The index is validated against the size and the time
+					// of last modification of the finished Tar file.
+					if (m_target != null)
 					{
-						m_targetRandomAccess.close();
+						m_indexWriter.close(m_target);
+					}
+					else
+					{
+						m_indexWriter.close(archiveSize, -1L);
 					}
 				}
 			}
 			finally
 			{
-				m_targetWriteLock.unlock();
-				m_closed = true;
+				if (m_indexWriter != null)
+				{
+					// Leave an unfinished (invalid) index if the Tar file
+					// could not be finished. This does nothing if the index
+					// was closed above.
+					m_indexWriter.abort();
+				}
+			}
+
+			if (pendingEntryException != null)
+			{
+				throw pendingEntryException;
 			}
 		}
 	}
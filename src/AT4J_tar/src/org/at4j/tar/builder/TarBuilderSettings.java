@@ -1,5 +1,9 @@
 package org.at4j.tar.builder;
 
+import java.util.concurrent.Executor;
+
+import org.entityfs.WritableFile;
+
 /**
  * This object contains the settings for a Tar archive builder. When a new
  * instance is created, it is initialized with the default settings.
@@ -64,6 +68,15 @@ package org.at4j.tar.builder;
  * means that the Tar builder will create Gnu Tar compatible archives by
  * default.
  * <p>
+ * By default, files are read by the thread adding them to the Tar builder. See
+ * {@link #setReadAheadExecutor(Executor)}.
+ * <p>
+ * By default, hard links are not detected. See
+ * {@link #setDetectHardLinks(boolean)}.
+ * <p>
+ * By default, no index is written for the archive. See
+ * {@link #setIndexFile(WritableFile)}.
+ * <p>
  * The setter methods of this object return the object instance so that setter
  * calls can be chained together.
  * @author Karl Gustafsson
@@ -75,9 +88,28 @@ public class TarBuilderSettings
 {
 	static final TarEntryStrategy DEFAULT_ENTRY_STRATEGY = new GnuTarEntryStrategy();
 
+	/**
+	 * The default memory budget for files that are read ahead (16 MB).
+	 * @since 1.2
+	 * @see #setReadAheadMemoryBudget(long)
+	 */
+	public static final long DEFAULT_READ_AHEAD_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+	/**
+	 * The default maximum number of files that are read ahead (128).
+	 * @since 1.2
+	 * @see #setMaxNumberOfReadAheadFiles(int)
+	 */
+	public static final int DEFAULT_MAX_NUMBER_OF_READ_AHEAD_FILES = 128;
+
 	private TarEntrySettings m_defaultFileEntrySettings = TarBuilderConstants.DEFAULT_DEFAULT_TAR_FILE_ENTRY_SETTINGS;
 	private TarEntrySettings m_defaultDirectoryEntrySettings = TarBuilderConstants.DEFAULT_DEFAULT_TAR_DIRECTORY_ENTRY_SETTINGS;
 	private TarEntryStrategy m_entryStrategy = DEFAULT_ENTRY_STRATEGY;
+	private Executor m_readAheadExecutor;
+	private long m_readAheadMemoryBudget = DEFAULT_READ_AHEAD_MEMORY_BUDGET;
+	private int m_maxNumberOfReadAheadFiles = DEFAULT_MAX_NUMBER_OF_READ_AHEAD_FILES;
+	private boolean m_detectHardLinks;
+	private WritableFile m_indexFile;
 
 	/**
 	 * Get the default file entry settings.
@@ -155,4 +187,175 @@ public class TarBuilderSettings
 		m_entryStrategy = entryStrategy;
 		return this;
 	}
+
+	/**
+	 * Get the executor used for reading files ahead of time.
+	 * @return The executor, or {@code null} if files are read by the thread
+	 * adding them to the Tar builder.
+	 * @since 1.2
+	 */
+	public Executor getReadAheadExecutor()
+	{
+		return m_readAheadExecutor;
+	}
+
+	/**
+	 * Set an executor that the Tar builder uses to open and read the files
+	 * added to it ahead of time. The entries are still written to the Tar
+	 * file in the order that they were added, so the archive is the same as
+	 * when files are not read ahead. This speeds up adding many small files
+	 * from a file system where opening and reading a file takes a long time,
+	 * such as a network file system.
+	 * <p>
+	 * The read ahead file data is kept in memory, within the
+	 * {@link #setReadAheadMemoryBudget(long) memory budget}. Files that are
+	 * larger than the memory budget are read by the thread adding them when
+	 * all previously added entries have been written.
+	 * <p>
+	 * The Tar builder does not shut the executor down when it is closed.
+	 * @param executor The executor, or {@code null} if files should be read by
+	 * the thread adding them to the Tar builder.
+	 * @return {@code this}
+	 * @since 1.2
+	 */
+	public TarBuilderSettings setReadAheadExecutor(Executor executor)
+	{
+		m_readAheadExecutor = executor;
+		return this;
+	}
+
+	/**
+	 * Get the memory budget for files that are read ahead.
+	 * @return The memory budget, in bytes.
+	 * @since 1.2
+	 */
+	public long getReadAheadMemoryBudget()
+	{
+		return m_readAheadMemoryBudget;
+	}
+
+	/**
+	 * Set the memory budget for files that are read ahead. The default budget
+	 * is {@link #DEFAULT_READ_AHEAD_MEMORY_BUDGET}.
+	 * @param budget The memory budget, in bytes.
+	 * @return {@code this}
+	 * @throws IllegalArgumentException If {@code budget} is negative.
+	 * @since 1.2
+	 * @see #setReadAheadExecutor(Executor)
+	 */
+	public TarBuilderSettings setReadAheadMemoryBudget(long budget) throws IllegalArgumentException
+	{
+		if (budget < 0)
+		{
+			throw new IllegalArgumentException("Invalid memory budget " + budget + ". It must be zero or greater");
+		}
+
+		m_readAheadMemoryBudget = budget;
+		return this;
+	}
+
+	/**
+	 * Get the maximum number of files that are read ahead.
+	 * @return The maximum number of files that are read ahead.
+	 * @since 1.2
+	 */
+	public int getMaxNumberOfReadAheadFiles()
+	{
+		return m_maxNumberOfReadAheadFiles;
+	}
+
+	/**
+	 * Set the maximum number of entries that may be waiting to be written to
+	 * the archive when files are read ahead. The default value is
+	 * {@link #DEFAULT_MAX_NUMBER_OF_READ_AHEAD_FILES}.
+	 * @param no The maximum number of files.
+	 * @return {@code this}
+	 * @throws IllegalArgumentException If {@code no} is less than one.
+	 * @since 1.2
+	 * @see #setReadAheadExecutor(Executor)
+	 */
+	public TarBuilderSettings setMaxNumberOfReadAheadFiles(int no) throws IllegalArgumentException
+	{
+		if (no < 1)
+		{
+			throw new IllegalArgumentException("Invalid number of files " + no + ". It must be one or greater");
+		}
+
+		m_maxNumberOfReadAheadFiles = no;
+		return this;
+	}
+
+	/**
+	 * Does the Tar builder detect files that are hard links to the same data?
+	 * @return {@code true} if hard links are detected.
+	 * @since 1.2
+	 */
+	public boolean isDetectHardLinks()
+	{
+		return m_detectHardLinks;
+	}
+
+	/**
+	 * Should the Tar builder detect files on disk that are hard links to the
+	 * same data? If so, the builder keeps track of the device and inode
+	 * numbers of the files added to it that have more than one link. When a
+	 * file with the same data as an earlier added file is added again, it is
+	 * written as a hard link entry that refers to the earlier entry instead of
+	 * as a file entry with a copy of the data.
+	 * <p>
+	 * Hard links can only be detected for files that are backed by files on
+	 * disk, on a file system that has Unix file attributes. Other files are
+	 * always written as file entries.
+	 * <p>
+	 * Hard links are not detected by default.
+	 * @param b Should hard links be detected?
+	 * @return {@code this}
+	 * @since 1.2
+	 * @see org.at4j.support.io.HardLinks
+	 */
+	public TarBuilderSettings setDetectHardLinks(boolean b)
+	{
+		m_detectHardLinks = b;
+		return this;
+	}
+
+	/**
+	 * Get the file that an index of the archive is written to.
+	 * @return The index file, or {@code null} if no index is written.
+	 * @since 1.2
+	 */
+	public WritableFile getIndexFile()
+	{
+		return m_indexFile;
+	}
+
+	/**
+	 * Set a file that the {@link TarBuilder} should write an
+	 * {@link org.at4j.tar.TarFileIndex} of the archive to. The entries are
+	 * indexed as they are written to the archive and the index is finished when
+	 * the builder is closed. The index can then be given to
+	 * {@link org.at4j.tar.TarFile#TarFile(org.entityfs.RandomlyAccessibleFile, java.nio.charset.Charset, org.entityfs.ReadableFile)}
+	 * to open the archive without scanning through it. The archive must be
+	 * opened using the same charset as the entry strategy uses for encoding
+	 * entry names.
+	 * <p>
+	 * The Tar builder reads back the entries that it has written to index them,
+	 * so the target file must be readable.
+	 * <p>
+	 * The index is not used by the {@link TarStreamBuilder}, since it cannot
+	 * read back what it has written.
+	 * <p>
+	 * By default, no index is written.
+	 * @param f The index file. The previous contents of this file is
+	 * discarded. If it is in a locking {@link org.entityfs.FileSystem}, it is
+	 * locked for writing by the builder until the builder is closed. Set this
+	 * to {@code null} to not write an index.
+	 * @return {@code this}
+	 * @since 1.2
+	 */
+	public TarBuilderSettings setIndexFile(WritableFile f)
+	{
+		m_indexFile = f;
+		return this;
+	}
 }
@@ -46,8 +46,6 @@ import org.entityfs.entityattrs.unix.UnixEntityMode;
  */
 public class TarEntrySettings implements ArchiveEntrySettings<TarEntrySettings>
 {
-	// The maximum uid or gid (8^7 - 1)
-	private static final int MAX_ID = 2097151;
 
 	private UnixEntityMode m_entityMode;
 	private Integer m_ownerUid;
@@ -108,18 +106,19 @@ public class TarEntrySettings implements ArchiveEntrySettings<TarEntrySettings>
 		if (i != null)
 		{
 			int v = i.intValue();
-			if (v < 0 || v > MAX_ID)
+			if (v < 0)
 			{
-				throw new IllegalArgumentException("Illegal UID or GID " + v + ". It must be between 0 and " + MAX_ID + " (inclusive)");
+				throw new IllegalArgumentException("Illegal UID or GID " + v + ". It must be zero or positive");
 			}
 		}
 	}
 
 	/**
 	 * Set the owner user id.
-	 * @param uid The owner user id. This must be a value between {@code 0} and
-	 * {@code 2097151} (inclusive), or {@code null} if this property should not
-	 * be set.
+	 * @param uid The owner user id. This must be zero or a positive value, or
+	 * {@code null} if this property should not be set. The V7 and the ustar
+	 * Tar entry strategies only support values up to {@code 2097151}. Larger
+	 * values require a Gnu or a Pax Tar entry strategy.
 	 * @return {@code this}
 	 * @throws IllegalArgumentException If the UID is not in the permitted
 	 * range.
@@ -147,9 +146,10 @@ public class TarEntrySettings implements ArchiveEntrySettings<TarEntrySettings>
 
 	/**
 	 * Set the owner group id.
-	 * @param gid The owner group id. This must be a value between {@code 0} and
-	 * {@code 2097151} (inclusive), or {@code null} if this property should not
-	 * be set.
+	 * @param gid The owner group id. This must be zero or a positive value, or
+	 * {@code null} if this property should not be set. The V7 and the ustar
+	 * Tar entry strategies only support values up to {@code 2097151}. Larger
+	 * values require a Gnu or a Pax Tar entry strategy.
 	 * @return {@code this}
 	 * @throws IllegalArgumentException If the GID is not in the permitted
 	 * range.
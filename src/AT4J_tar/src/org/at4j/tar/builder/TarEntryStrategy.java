@@ -96,4 +96,28 @@ public interface TarEntryStrategy
 	 * for some other reason than an I/O error.
 	 */
 	void writeDirectory(DataSink out, DirectoryAdapter<?> d, AbsoluteLocation location, TarEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException;
+
+	/**
+	 * Write a hard link entry to the Tar file. A hard link entry does not
+	 * contain any file data. Its data is the data of an earlier file entry in
+	 * the same Tar file.
+	 * @param out The {@code DataSink} to write to. This may be a
+	 * {@link RandomAccess} object. When this method is called, the {@code
+	 * DataSink} is positioned at the start of the entry to write. If this
+	 * method returns successfully, the {@code DataSink} should be positioned at
+	 * the next block boundary after the written entry (the Tar file is divided
+	 * into 512-byte blocks).
+	 * @param f The file that the hard link entry is created for. Its data is
+	 * not written to the Tar file.
+	 * @param location The absolute location of the entry in the Tar archive.
+	 * @param linkTarget The absolute location of the earlier file entry in the
+	 * Tar archive that has the file data.
+	 * @param effectiveSettings The effective settings for the entry.
+	 * @param lastModified The time when the file entity was last modified.
+	 * @throws WrappedIOException On I/O errors.
+	 * @throws ArchiveEntryAddException If the hard link entry cannot be added
+	 * for some other reason than an I/O error.
+	 * @since 1.2
+	 */
+	void writeHardLink(DataSink out, ReadableFile f, AbsoluteLocation location, AbsoluteLocation linkTarget, TarEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException;
 }
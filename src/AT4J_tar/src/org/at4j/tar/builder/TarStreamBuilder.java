@@ -34,6 +34,10 @@ public class TarStreamBuilder extends AbstractArchiveBuilder<TarStreamBuilder, T
 	private final boolean m_closeOutStreamWhenClosing;
 	private final EntityLock m_targetWriteLock;
 	private final TarEntryStrategy m_entryStrategy;
+	// This is null if files are not read ahead.
+	private final ReadAheadQueue m_readAheadQueue;
+	// This is null if hard links are not detected.
+	private final HardLinkDetector m_hardLinkDetector;
 
 	private boolean m_closed = false;
 
@@ -101,6 +105,8 @@ public class TarStreamBuilder extends AbstractArchiveBuilder<TarStreamBuilder, T
 				}
 			}
 		}
+		m_readAheadQueue = ReadAheadQueue.create(settings, m_entryStrategy, m_out);
+		m_hardLinkDetector = HardLinkDetector.create(settings);
 	}
 
 	/**
@@ -127,6 +133,8 @@ public class TarStreamBuilder extends AbstractArchiveBuilder<TarStreamBuilder, T
 		m_entryStrategy = settings != null ? settings.getEntryStrategy() : TarBuilderSettings.DEFAULT_ENTRY_STRATEGY;
 		m_closeOutStreamWhenClosing = false;
 		m_targetWriteLock = DummyLock.INSTANCE;
+		m_readAheadQueue = ReadAheadQueue.create(settings, m_entryStrategy, m_out);
+		m_hardLinkDetector = HardLinkDetector.create(settings);
 	}
 
 	@Override
@@ -166,13 +174,39 @@ public class TarStreamBuilder extends AbstractArchiveBuilder<TarStreamBuilder, T
 		{
 			throw new ArchiveEntryAddException("Don't know how to adapt " + d + " to something that I can use");
 		}
-		m_entryStrategy.writeDirectory(m_out, da, location, effectiveSettings, lastModified);
+		if (m_readAheadQueue != null)
+		{
+			m_readAheadQueue.addDirectory(da, location, effectiveSettings, lastModified);
+		}
+		else
+		{
+			m_entryStrategy.writeDirectory(m_out, da, location, effectiveSettings, lastModified);
+		}
 	}
 
 	@Override
 	protected void addFileCallback(AbsoluteLocation location, ReadableFile f, TarEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
 	{
-		m_entryStrategy.writeFile(m_out, f, location, effectiveSettings, lastModified);
+		AbsoluteLocation linkTarget = m_hardLinkDetector != null ? m_hardLinkDetector.getLinkTarget(f, location) : null;
+		if (linkTarget != null)
+		{
+			if (m_readAheadQueue != null)
+			{
+				m_readAheadQueue.addHardLink(f, location, linkTarget, effectiveSettings, lastModified);
+			}
+			else
+			{
+				m_entryStrategy.writeHardLink(m_out, f, location, linkTarget, effectiveSettings, lastModified);
+			}
+		}
+		else if (m_readAheadQueue != null)
+		{
+			m_readAheadQueue.addFile(f, location, effectiveSettings, lastModified);
+		}
+		else
+		{
+			m_entryStrategy.writeFile(m_out, f, location, effectiveSettings, lastModified);
+		}
 	}
 
 	public boolean isClosed()
@@ -190,10 +224,26 @@ public class TarStreamBuilder extends AbstractArchiveBuilder<TarStreamBuilder, T
 	{
 		if (!m_closed)
 		{
+			RuntimeException pendingEntryException = null;
 			try
 			{
 				try
 				{
+					if (m_readAheadQueue != null)
+					{
+						// Write the entries that are still waiting. If one of
+						// them fails, the Tar file is still finished before
+						// the error is reported.
+						try
+						{
+							m_readAheadQueue.close();
+						}
+						catch (RuntimeException e)
+						{
+							pendingEntryException = e;
+						}
+					}
+
 					// Write two empty blocks
 					// The array contents defaults to zeroes. Just what we want.
 					m_out.write(new byte[TarConstants.BLOCK_SIZE * 2]);
@@ -211,6 +261,11 @@ public class TarStreamBuilder extends AbstractArchiveBuilder<TarStreamBuilder, T
 				m_targetWriteLock.unlock();
 				m_closed = true;
 			}
+
+			if (pendingEntryException != null)
+			{
+				throw pendingEntryException;
+			}
 		}
 	}
 
@@ -20,11 +20,14 @@ package org.at4j.tar.builder;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Date;
 
 import org.at4j.archive.builder.ArchiveEntryAddException;
+import org.at4j.support.io.FileChannelRandomAccess;
 import org.at4j.support.nio.charset.Charsets;
 import org.at4j.tar.TarConstants;
 import org.entityfs.DataSink;
@@ -70,11 +73,13 @@ import org.entityfs.util.io.RandomAccessToOutputStreamAdapter;
  * <tr>
  * <td>File size</td>
  * <td>For files, this is a value between {@code 0} and {@code 8589934591} bytes
- * (~ 8.6 Gb), inclusive.</td>
+ * (~ 8.6 Gb), inclusive. Trying to add a larger file results in an
+ * {@link ArchiveEntryAddException}.</td>
  * </tr>
  * <tr>
  * <td>Link name</td>
- * <td>For symbolic links, this is the link target. Limited to 99 characters.</td>
+ * <td>For symbolic links and hard links, this is the link target. Limited to
+ * 99 characters.</td>
  * </tr>
  * </table>
  * @author Karl Gustafsson
@@ -141,6 +146,65 @@ public class V7TarEntryStrategy implements TarEntryStrategy
 		return res;
 	}
 
+	/**
+	 * Does the supplied value fit in an octal numeric field of the given size?
+	 * The last byte of the field is reserved for a terminating NUL character
+	 * or space.
+	 * @param value The value.
+	 * @param len The length of the field, in bytes.
+	 * @return {@code true} if the value fits in the field.
+	 * @since 1.2
+	 */
+	protected static boolean fitsInOctalField(long value, int len)
+	{
+		return (value >= 0) && (value < (1L << (3 * (len - 1))));
+	}
+
+	/**
+	 * Set a numeric field in the Tar entry header. This implementation writes
+	 * the value as zero padded octal ASCII digits and throws an
+	 * {@link ArchiveEntryAddException} if the value does not fit in the field.
+	 * Subclasses may override this method to use another encoding for values
+	 * that are too large.
+	 * @param header The Tar entry header.
+	 * @param offset The offset of the field in the header.
+	 * @param len The length of the field, in bytes.
+	 * @param value The value.
+	 * @param fieldName The name of the field. This is used in error messages.
+	 * @throws ArchiveEntryAddException If the value does not fit in the field.
+	 * @since 1.2
+	 */
+	protected void setNumericFieldInHeader(byte[] header, int offset, int len, long value, String fieldName) throws ArchiveEntryAddException
+	{
+		if (!fitsInOctalField(value, len))
+		{
+			throw new ArchiveEntryAddException("The " + fieldName + " " + value + " does not fit in the Tar entry header. Use a Gnu or a Pax Tar entry strategy for large values");
+		}
+		System.arraycopy(zeroPadLeft(Long.toOctalString(value), len - 1), 0, header, offset, len - 1);
+	}
+
+	/**
+	 * Set a numeric field in the Tar entry header using the base-256 encoding
+	 * that Gnu Tar uses for values that are too large for octal fields. The
+	 * high bit of the first byte is set and the value is written as a
+	 * big-endian two's complement binary number in the rest of the field.
+	 * @param header The Tar entry header.
+	 * @param offset The offset of the field in the header.
+	 * @param len The length of the field, in bytes.
+	 * @param value The value.
+	 * @since 1.2
+	 */
+	protected static void setBase256NumericFieldInHeader(byte[] header, int offset, int len, long value)
+	{
+		long v = value;
+		for (int i = offset + len - 1; i > offset; i--)
+		{
+			header[i] = (byte) (v & 0xFF);
+			v >>= 8;
+		}
+		header[offset] = (byte) (value < 0 ? 0xFF : 0x80);
+	}
+
 	/**
 	 * Set the current position of the {@code DataSink} to be on the next tar
 	 * block boundary after a writing operation. Tar blocks are 512 bytes big.
@@ -200,6 +264,26 @@ public class V7TarEntryStrategy implements TarEntryStrategy
 		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
 	}
 
+	/**
+	 * Set the link name field in the Tar entry header. This implementation
+	 * throws an {@link ArchiveEntryAddException} if the link name is longer
+	 * than 99 bytes.
+	 * @param header The header to add the link name to.
+	 * @param linkName The link name to add.
+	 * @throws ArchiveEntryAddException If the link name is longer than 99
+	 * bytes.
+	 * @since 1.2
+	 */
+	protected void setLinkNameInHeader(byte[] header, String linkName) throws ArchiveEntryAddException
+	{
+		byte[] nameBytes = Charsets.getBytes(linkName, m_textEncodingCharset);
+		if (nameBytes.length > 99)
+		{
+			throw new ArchiveEntryAddException("The link name " + linkName + " is longer than 99 bytes when encoded in the " + m_textEncodingCharset + " charset");
+		}
+		System.arraycopy(nameBytes, 0, header, 157, nameBytes.length);
+	}
+
 	/**
 	 * Create a Tar header for the new entry. The header is a 512 bytes long
 	 * byte array that contains metadata about the file system entity (file,
@@ -235,17 +319,17 @@ public class V7TarEntryStrategy implements TarEntryStrategy
 		System.arraycopy(zeroPadLeft(Integer.toOctalString(effectiveSettings.getEntityMode().getCode()), 7), 0, header, 100, 7);
 
 		// Owner uid
-		System.arraycopy(zeroPadLeft(Integer.toOctalString(effectiveSettings.getOwnerUid().intValue()), 7), 0, header, 108, 7);
+		setNumericFieldInHeader(header, 108, 8, effectiveSettings.getOwnerUid().intValue(), "owner uid");
 
 		// Owner gid
-		System.arraycopy(zeroPadLeft(Integer.toOctalString(effectiveSettings.getOwnerGid().intValue()), 7), 0, header, 116, 7);
+		setNumericFieldInHeader(header, 116, 8, effectiveSettings.getOwnerGid().intValue(), "owner gid");
 
 		// File length
-		System.arraycopy(zeroPadLeft(Long.toOctalString(fileSize), 11), 0, header, 124, 11);
+		setNumericFieldInHeader(header, 124, 12, fileSize, "file size");
 
 		// File modify time
 		long modifyTime = lastModified.getTime() / 1000;
-		System.arraycopy(zeroPadLeft(Long.toOctalString(modifyTime), 11), 0, header, 136, 11);
+		setNumericFieldInHeader(header, 136, 12, modifyTime, "last modification time");
 
 		// Checksum (skip)
 
@@ -272,6 +356,11 @@ public class V7TarEntryStrategy implements TarEntryStrategy
 	 * the {@code RandomAccess} is positioned just after the written data. (I.e:
 	 * probably not at the next Tar block boundary). If this method throws an
 	 * exception, the position of the {@code RandomAccess} is unspecified.
+	 * <p>
+	 * If both the archive and the file are regular files on disk, the data is
+	 * copied using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+	 * This lets the operating system copy the data directly between the two
+	 * files.
 	 * @return The size of the written file.
 	 * @throws WrappedIOException On I/O errors.
 	 */
@@ -279,6 +368,22 @@ public class V7TarEntryStrategy implements TarEntryStrategy
 	{
 		try
 		{
+			if (out instanceof FileChannelRandomAccess)
+			{
+				ReadableByteChannel in = f.openChannelForRead();
+				try
+				{
+					if (in instanceof FileChannel)
+					{
+						return ((FileChannelRandomAccess) out).transferFrom((FileChannel) in, 0, f.getDataSize());
+					}
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+
 			InputStream is = f.openForRead();
 			try
 			{
@@ -373,4 +478,14 @@ public class V7TarEntryStrategy implements TarEntryStrategy
 		// Don't have to go to the next block boundary since we're already there
 		// (The directory consists of just a header.)
 	}
+
+	public void writeHardLink(DataSink out, ReadableFile f, AbsoluteLocation location, AbsoluteLocation linkTarget, TarEntrySettings effectiveSettings, Date lastModified)
+	{
+		byte[] header = getHeader(f, getFileName(location, false), effectiveSettings, 0, ETFile.TYPE, lastModified);
+		header[156] = (byte) TarConstants.HARD_LINK_TYPE_FLAG;
+		setLinkNameInHeader(header, getFileName(linkTarget, false));
+		out.write(addChecksumToHeader(header));
+		// Don't have to go to the next block boundary since we're already there
+		// (The hard link consists of just a header.)
+	}
 }
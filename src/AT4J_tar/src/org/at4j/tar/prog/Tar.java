@@ -21,11 +21,15 @@ package org.at4j.tar.prog;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.at4j.comp.bzip2.BZip2ReadableFile;
 import org.at4j.comp.bzip2.BZip2ReadableFileSettings;
 import org.at4j.comp.bzip2.BZip2WritableFile;
 import org.at4j.comp.bzip2.BZip2WritableFileSettings;
+import org.at4j.comp.gzip.ParallelGZipOutputStream;
+import org.at4j.comp.gzip.ParallelGZipWritableFile;
 import org.at4j.comp.lzma.LzmaReadableFile;
 import org.at4j.comp.lzma.LzmaWritableFile;
 import org.at4j.support.prog.AbstractProgram;
@@ -39,15 +43,12 @@ import org.at4j.tar.builder.TarBuilderSettings;
 import org.at4j.tar.builder.TarStreamBuilder;
 import org.at4j.tar.builder.UstarEntryStrategy;
 import org.at4j.tar.builder.V7TarEntryStrategy;
-import org.entityfs.Directory;
 import org.entityfs.DirectoryView;
 import org.entityfs.ReadableFile;
 import org.entityfs.WritableFile;
 import org.entityfs.el.AbsoluteLocation;
-import org.entityfs.fs.FSRWFileSystemBuilder;
 import org.entityfs.ostrat.DontOverwriteAndLogWarning;
 import org.entityfs.support.exception.WrappedIOException;
-import org.entityfs.util.FileReadableFile;
 import org.entityfs.util.io.GZipReadableFile;
 import org.entityfs.util.io.GZipWritableFile;
 import org.entityfs.util.io.ReadWritableFileAdapter;
@@ -95,6 +96,13 @@ import org.entityfs.util.io.ReadWritableFileAdapter;
  *   --keep-old-files
  *             - Don't overwrite existing files when extracting an archive.
  *   --lzma    - The Tar file is compressed with LZMA compression.
+ *   --threads no
+ *             - Set the number of threads to use. When creating an archive,
+ *               files are read ahead of time in parallel and, if the archive
+ *               is gzipped or bzipped, chunks of it are deflated or its bzip2
+ *               blocks are encoded in parallel. When extracting an
+ *               uncompressed archive, up to this many files are extracted in
+ *               parallel. The default number of threads is one.
  *   --timing  - After extracting the files, print out how long it took.
  *   -z
  *   --gzip    - The Tar file is gzipped.
@@ -202,6 +210,11 @@ public final class Tar extends AbstractProgram
 			cla.setTiming();
 			return 0;
 		}
+		else if ("--threads".equals(option))
+		{
+			cla.setNumberOfThreads(Integer.parseInt(getArg(args, nextPos, "Missing number of threads")));
+			return 1;
+		}
 		else if ("--charset".equals(option))
 		{
 			cla.setCharset(Charset.forName(getArg(args, nextPos, "Missing charset name")));
@@ -297,54 +310,76 @@ public final class Tar extends AbstractProgram
 			throw new CommandErrorException("Could not create target file " + targetFile);
 		}
 
-		WritableFile f = new ReadWritableFileAdapter(targetFile);
-		if (cla.isGZip())
-		{
-			f = new GZipWritableFile(f);
-		}
-		else if (cla.isBZip2())
-		{
-			f = new BZip2WritableFile(f, new BZip2WritableFileSettings().setBlockSize(9));
-		}
-		else if (cla.isLzma())
+		// The executor reads files ahead of time and, if the archive is
+		// gzipped, deflates chunks of it in parallel.
+		ExecutorService exec = cla.getNumberOfThreads() > 1 ? Executors.newFixedThreadPool(cla.getNumberOfThreads()) : null;
+		try
 		{
-			f = new LzmaWritableFile(f);
-		}
+			WritableFile f = new ReadWritableFileAdapter(targetFile);
+			if (cla.isGZip())
+			{
+				f = exec != null ? new ParallelGZipWritableFile(f, ParallelGZipOutputStream.DEFAULT_COMPRESSION_LEVEL, exec, ParallelGZipOutputStream.DEFAULT_CHUNK_SIZE, 2 * cla.getNumberOfThreads()) : new GZipWritableFile(f);
+			}
+			else if (cla.isBZip2())
+			{
+				BZip2WritableFileSettings bs = new BZip2WritableFileSettings().setBlockSize(9);
+				if (cla.getNumberOfThreads() > 1)
+				{
+					bs.setNumberOfEncoderThreads(cla.getNumberOfThreads());
+				}
+				f = new BZip2WritableFile(f, bs);
+			}
+			else if (cla.isLzma())
+			{
+				f = new LzmaWritableFile(f);
+			}
 
-		TarBuilderSettings tbs = new TarBuilderSettings();
-		if ("gnu".equals(cla.getArchiveFormat()))
-		{
-			tbs.setEntryStrategy(new GnuTarEntryStrategy(cla.getCharset()));
-		}
-		else if ("v7".equals(cla.getArchiveFormat()))
-		{
-			tbs.setEntryStrategy(new V7TarEntryStrategy(cla.getCharset()));
-		}
-		else if ("ustar".equals(cla.getArchiveFormat()))
-		{
-			tbs.setEntryStrategy(new UstarEntryStrategy(cla.getCharset()));
-		}
-		else if ("posix".equals(cla.getArchiveFormat()))
-		{
-			tbs.setEntryStrategy(new PaxTarEntryStrategy(cla.getCharset()));
-		}
-		else
-		{
-			throw new CommandErrorException("Unknown archive format: " + cla.getArchiveFormat());
-		}
+			TarBuilderSettings tbs = new TarBuilderSettings();
+			if ("gnu".equals(cla.getArchiveFormat()))
+			{
+				tbs.setEntryStrategy(new GnuTarEntryStrategy(cla.getCharset()));
+			}
+			else if ("v7".equals(cla.getArchiveFormat()))
+			{
+				tbs.setEntryStrategy(new V7TarEntryStrategy(cla.getCharset()));
+			}
+			else if ("ustar".equals(cla.getArchiveFormat()))
+			{
+				tbs.setEntryStrategy(new UstarEntryStrategy(cla.getCharset()));
+			}
+			else if ("posix".equals(cla.getArchiveFormat()))
+			{
+				tbs.setEntryStrategy(new PaxTarEntryStrategy(cla.getCharset()));
+			}
+			else
+			{
+				throw new CommandErrorException("Unknown archive format: " + cla.getArchiveFormat());
+			}
+			if (exec != null)
+			{
+				tbs.setReadAheadExecutor(exec);
+			}
 
-		TarStreamBuilder tb = new TarStreamBuilder(f, tbs);
-		try
-		{
-			for (File ftz : cla.getFilesToTar())
+			TarStreamBuilder tb = new TarStreamBuilder(f, tbs);
+			try
+			{
+				for (File ftz : cla.getFilesToTar())
+				{
+					AbsoluteLocation parentLocation = getParentLocation(ftz);
+					tb.addRecursively(ftz, parentLocation.getChildLocation(ftz.getName()));
+				}
+			}
+			finally
 			{
-				AbsoluteLocation parentLocation = getParentLocation(ftz);
-				tb.addRecursively(ftz, parentLocation.getChildLocation(ftz.getName()));
+				tb.close();
 			}
 		}
 		finally
 		{
-			tb.close();
+			if (exec != null)
+			{
+				exec.shutdown();
+			}
 		}
 	}
 
@@ -360,7 +395,10 @@ public final class Tar extends AbstractProgram
 			throw new CommandErrorException(tarFile + " is not a file");
 		}
 
-		ReadableFile res = new FileReadableFile(tarFile);
+		// A ReadWritableFileAdapter is a RandomlyAccessibleFile which lets the
+		// extractor copy file data from an uncompressed Tar file without
+		// reading it into Java
+		ReadableFile res = new ReadWritableFileAdapter(tarFile);
 		if (cla.isGZip())
 		{
 			res = new GZipReadableFile(res);
@@ -378,13 +416,38 @@ public final class Tar extends AbstractProgram
 
 	private void extract(TarCommandLineArguments cla) throws CommandErrorException, IOException
 	{
-		// Extract the file in the current working directory
-		Directory target = new FSRWFileSystemBuilder().disableAccessControls().disableEntityValidityControls().setRoot(new File(".")).create().getRootDirectory();
 		ReadableFile f = getTarFile(cla);
 		TarExtractSpecification spec = new TarExtractSpecification();
 		spec.setFileNameCharset(cla.getCharset());
 		spec.setOverwriteStrategy(cla.getOverwriteStrategy());
-		new TarExtractor(f).extract(target, spec);
+		boolean compressed = cla.isGZip() || cla.isBZip2() || cla.isLzma();
+		// Decompress, parse and write in separate threads for compressed files
+		spec.setPipelined(compressed);
+
+		// File entries in an uncompressed Tar file can be extracted in
+		// parallel since each entry can be read from its own position in the
+		// file.
+		ExecutorService exec = (!compressed) && cla.getNumberOfThreads() > 1 ? Executors.newFixedThreadPool(cla.getNumberOfThreads()) : null;
+		try
+		{
+			if (exec != null)
+			{
+				spec.setExecutor(exec);
+				spec.setMaxNumberOfConcurrentFileExtractions(cla.getNumberOfThreads());
+			}
+
+			// Extract the file in the current working directory. The extractor
+			// creates a locking file system for the target directory if the
+			// entries are extracted in parallel.
+			new TarExtractor(f).extract(new File("."), spec);
+		}
+		finally
+		{
+			if (exec != null)
+			{
+				exec.shutdown();
+			}
+		}
 	}
 
 	private void list(TarCommandLineArguments cla) throws CommandErrorException, IOException
@@ -23,6 +23,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.at4j.support.prog.CommandErrorException;
 import org.entityfs.ostrat.DoOverwriteAndLogWarning;
 import org.entityfs.ostrat.OverwriteStrategy;
 
@@ -35,6 +36,7 @@ final class TarCommandLineArguments
 	private File m_tarFile;
 	private List<File> m_filesToTar = new ArrayList<File>();
 	private boolean m_timing;
+	private int m_numberOfThreads = 1;
 	private Charset m_charset = Charset.defaultCharset();
 	private OverwriteStrategy m_overwriteStrategy = DoOverwriteAndLogWarning.INSTANCE;
 	private String m_archiveFormat = "gnu";
@@ -109,6 +111,20 @@ final class TarCommandLineArguments
 		return m_timing;
 	}
 
+	void setNumberOfThreads(int no) throws CommandErrorException
+	{
+		if (no < 1)
+		{
+			throw new CommandErrorException("Invalid number of threads: " + no);
+		}
+		m_numberOfThreads = no;
+	}
+
+	int getNumberOfThreads()
+	{
+		return m_numberOfThreads;
+	}
+
 	void setCharset(Charset cs)
 	{
 		m_charset = cs;
@@ -18,7 +18,16 @@
  */
 package org.at4j.tar;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
 import org.at4j.test.support.At4JTestCase;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.util.Files;
 
 /**
  * @author Karl Gustafsson
@@ -26,6 +35,26 @@ import org.at4j.test.support.At4JTestCase;
  */
 public class AbstractTarFileTest extends At4JTestCase
 {
+	/**
+	 * Get the contents of the sparse file in the tar/gnuSparse.tar,
+	 * tar/pax01Sparse.tar and tar/pax10Sparse.tar test files. The file is one
+	 * MiB long and has six data segments, each at the start of a 4096 bytes
+	 * long block.
+	 */
+	protected static byte[] getSparseTestFileContents()
+	{
+		byte[] res = new byte[1024 * 1024];
+		for (int i = 0; i < 6; i++)
+		{
+			byte[] segment = ("Segment " + i + " ").getBytes();
+			for (int j = 0; j < 100; j++)
+			{
+				System.arraycopy(segment, 0, res, i * 135168 + j * segment.length, segment.length);
+			}
+		}
+		return res;
+	}
+
 	protected String getNumericalName(int no)
 	{
 		char[] dnameArr = new char[no];
@@ -35,4 +64,55 @@ public class AbstractTarFileTest extends At4JTestCase
 		}
 		return new String(dnameArr);
 	}
+
+	/**
+	 * Assert that the two Tar files have the same entries with the same
+	 * metadata and the same contents.
+	 */
+	protected void assertSameEntries(Map<AbsoluteLocation, TarEntry> expected, Map<AbsoluteLocation, TarEntry> actual)
+	{
+		assertEquals(expected.keySet(), actual.keySet());
+		for (Map.Entry<AbsoluteLocation, TarEntry> e : expected.entrySet())
+		{
+			TarEntry ee = e.getValue();
+			TarEntry ae = actual.get(e.getKey());
+			assertSame(ee.getClass(), ae.getClass());
+			assertEquals(ee.getEntityMode(), ae.getEntityMode());
+			assertEquals(ee.getOwnerUid(), ae.getOwnerUid());
+			assertEquals(ee.getOwnerGid(), ae.getOwnerGid());
+			assertEquals(ee.getChecksum(), ae.getChecksum());
+			if (ee instanceof TarDirectoryEntry)
+			{
+				assertEquals(((TarDirectoryEntry) ee).getChildEntries().keySet(), ((TarDirectoryEntry) ae).getChildEntries().keySet());
+			}
+			if (ee.getChecksum() != 0)
+			{
+				// Not a directory entry that is missing from the Tar file. They
+				// get the current time.
+				assertEquals(ee.getLastModificationTime(), ae.getLastModificationTime());
+			}
+			if (ee instanceof UstarEntry)
+			{
+				assertEquals(((UstarEntry) ee).getOwnerUserName(), ((UstarEntry) ae).getOwnerUserName());
+				assertEquals(((UstarEntry) ee).getOwnerGroupName(), ((UstarEntry) ae).getOwnerGroupName());
+			}
+			if (ee instanceof PaxEntry)
+			{
+				assertEquals(((PaxEntry) ee).getPaxVariables(), ((PaxEntry) ae).getPaxVariables());
+			}
+			if (ee instanceof TarFileEntry)
+			{
+				TarFileEntry efe = (TarFileEntry) ee;
+				TarFileEntry afe = (TarFileEntry) ae;
+				assertEquals(efe.getStartPosOfFileData(), afe.getStartPosOfFileData());
+				assertEquals(efe.getSize(), afe.getSize());
+				assertEquals(efe.isSparse(), afe.isSparse());
+				assertTrue(Arrays.equals(Files.readBinaryFile(efe), Files.readBinaryFile(afe)));
+			}
+			else if (ee instanceof TarSymbolicLinkEntry)
+			{
+				assertEquals(((TarSymbolicLinkEntry) ee).getLinkTarget(), ((TarSymbolicLinkEntry) ae).getLinkTarget());
+			}
+		}
+	}
 }
@@ -0,0 +1,400 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.at4j.support.nio.charset.Charsets;
+import org.at4j.tar.builder.TarBuilder;
+import org.at4j.test.support.TestFileSupport;
+import org.entityfs.RandomAccess;
+import org.entityfs.ReadWritableFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.ram.RamFileSystemBuilder;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.CharSequenceReadableFile;
+import org.entityfs.util.Directories;
+import org.entityfs.util.Files;
+import org.entityfs.util.NamedReadableFileAdapter;
+import org.entityfs.util.io.ReadWritableFileAdapter;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class LazyTarFileTest extends AbstractTarFileTest
+{
+	private static final List<String> ENTRIES_IN_ORDER = Arrays.asList("/f0.txt", "/f1.txt", "/f2.txt", "/f3.txt", "/f4.txt", "/f5.txt", "/f6.txt", "/f7.txt", "/f8.txt", "/f9.txt", "/d", "/d/g.txt", "/e/h.txt");
+
+	/**
+	 * Create a Tar file with ten files, a directory with a file and a file in a
+	 * directory that is not present in the Tar file.
+	 */
+	private ReadWritableFile createTarFile()
+	{
+		ReadWritableFile res = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		TarBuilder tb = new TarBuilder(res);
+		try
+		{
+			for (int i = 0; i < 10; i++)
+			{
+				tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f" + i + ".txt"), "f" + i + ".txt"));
+			}
+			tb.add(Directories.newDirectory(new RamFileSystemBuilder().create().getRootDirectory(), "d"));
+			tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of g.txt"), "g.txt"), new AbsoluteLocation("/d"));
+			tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of h.txt"), "h.txt"), new AbsoluteLocation("/e"));
+		}
+		finally
+		{
+			tb.close();
+		}
+		return res;
+	}
+
+	/**
+	 * Break the header of the entry at the supplied location.
+	 */
+	private void breakHeader(ReadWritableFile tar, String location)
+	{
+		long headerPos;
+		TarFile tf = new TarFile(tar);
+		try
+		{
+			headerPos = ((TarFileEntry) tf.get(new AbsoluteLocation(location))).getStartPosOfFileData() - TarConstants.BLOCK_SIZE;
+		}
+		finally
+		{
+			tf.close();
+		}
+
+		RandomAccess ra = tar.openForRandomAccess(RandomAccessMode.READ_WRITE);
+		try
+		{
+			ra.seek(headerPos);
+			ra.write('x');
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	@Test
+	public void testGetAndIterate()
+	{
+		ReadWritableFile tar = createTarFile();
+		try
+		{
+			LazyTarFile ltf = new LazyTarFile(tar);
+			try
+			{
+				TarFileEntry f3 = (TarFileEntry) ltf.get(new AbsoluteLocation("/f3.txt"));
+				assertEquals("Contents of f3.txt", Files.readTextFile(f3));
+				assertTrue(ltf.containsKey(new AbsoluteLocation("/d/g.txt")));
+				assertNull(ltf.get("/f3.txt"));
+				assertFalse(ltf.isEmpty());
+
+				// The iterator returns the entries in the order that they
+				// appear in the Tar file. It returns the same entry objects as
+				// get.
+				List<String> locations = new ArrayList<String>();
+				for (TarEntry te : ltf)
+				{
+					locations.add(te.getLocation().toString());
+					assertSame(te, ltf.get(te.getLocation()));
+				}
+				assertEquals(ENTRIES_IN_ORDER, locations);
+
+				// The missing directory /e and the root directory
+				assertEquals(15, ltf.size());
+				TarDirectoryEntry e = (TarDirectoryEntry) ltf.get(new AbsoluteLocation("/e"));
+				assertSame(TarDirectoryEntry.class, e.getClass());
+				assertEquals(new HashSet<String>(Arrays.asList("h.txt")), e.getChildEntries().keySet());
+				assertSame(e, ltf.get(new AbsoluteLocation("/e/h.txt")).getParent());
+				assertSame(ltf.getRootEntry(), ltf.get(AbsoluteLocation.ROOT_DIR));
+				assertEquals(12, ltf.getRootEntry().getChildEntries().size());
+				assertSame(f3, ltf.getRootEntry().getChildEntries().get("f3.txt"));
+				assertTrue(ltf.values().contains(f3));
+				assertNull(ltf.get(new AbsoluteLocation("/f10.txt")));
+
+				TarFile tf = new TarFile(tar);
+				try
+				{
+					assertSameEntries(tf, ltf);
+				}
+				finally
+				{
+					tf.close();
+				}
+			}
+			finally
+			{
+				ltf.close();
+			}
+		}
+		finally
+		{
+			tar.delete();
+		}
+	}
+
+	@Test
+	public void testChildEntriesScanTheRestOfTheFile()
+	{
+		ReadWritableFile tar = createTarFile();
+		try
+		{
+			LazyTarFile ltf = new LazyTarFile(tar);
+			try
+			{
+				TarDirectoryEntry d = (TarDirectoryEntry) ltf.get(new AbsoluteLocation("/d"));
+				assertSame(d, ltf.get(new AbsoluteLocation("/d/g.txt")).getParent());
+				assertEquals(new HashSet<String>(Arrays.asList("g.txt")), d.getChildEntries().keySet());
+				assertSame(ltf.getRootEntry(), d.getParent());
+				assertFalse(ltf.getRootEntry().isEmpty());
+			}
+			finally
+			{
+				ltf.close();
+			}
+		}
+		finally
+		{
+			tar.delete();
+		}
+	}
+
+	@Test
+	public void testOnlyScanAsFarAsNecessary()
+	{
+		ReadWritableFile tar = createTarFile();
+		try
+		{
+			breakHeader(tar, "/f5.txt");
+			try
+			{
+				new TarFile(tar);
+				fail();
+			}
+			catch (TarFileParseException e)
+			{
+				// ok
+			}
+
+			LazyTarFile ltf = new LazyTarFile(tar);
+			try
+			{
+				assertEquals("Contents of f2.txt", Files.readTextFile((TarFileEntry) ltf.get(new AbsoluteLocation("/f2.txt"))));
+
+				Iterator<TarEntry> itr = ltf.iterator();
+				for (int i = 0; i < 5; i++)
+				{
+					assertEquals("/f" + i + ".txt", itr.next().getLocation().toString());
+				}
+				TarFileParseException e1 = null;
+				try
+				{
+					itr.hasNext();
+					fail();
+				}
+				catch (TarFileParseException e)
+				{
+					e1 = e;
+				}
+
+				// The same error is reported every time
+				try
+				{
+					ltf.get(new AbsoluteLocation("/f7.txt"));
+					fail();
+				}
+				catch (TarFileParseException e)
+				{
+					assertSame(e1, e);
+				}
+				try
+				{
+					ltf.size();
+					fail();
+				}
+				catch (TarFileParseException e)
+				{
+					assertSame(e1, e);
+				}
+
+				// Entries that have been found can still be used
+				assertEquals("Contents of f4.txt", Files.readTextFile((TarFileEntry) ltf.get(new AbsoluteLocation("/f4.txt"))));
+			}
+			finally
+			{
+				ltf.close();
+			}
+		}
+		finally
+		{
+			tar.delete();
+		}
+	}
+
+	@Test
+	public void testSameEntriesAsTarFile()
+	{
+		String[] names = new String[] { "tar/empty.tar", "tar/someFilesAndDirectories.tar", "tar/v7FilesAndDirectories.tar", "tar/symbolicLinks.tar", "tar/gnuTarFileNameLongerThan512Bytes.tar", "tar/paxTarFileNameLongerThan512Bytes.tar",
+				"tar/paxNonAsciiCharactersInFileName.tar", "tar/solarisNoTrailingSlashesOnDirs.tar", "tar/gnuHardLink.tar", "tar/gnuSparse.tar", "tar/pax10Sparse.tar" };
+		for (String name : names)
+		{
+			TarFile tf = new TarFile(getTestDataFile(name), Charsets.UTF8);
+			try
+			{
+				LazyTarFile ltf = new LazyTarFile(getTestDataFile(name), Charsets.UTF8);
+				try
+				{
+					assertSameEntries(tf, ltf);
+				}
+				finally
+				{
+					ltf.close();
+				}
+			}
+			finally
+			{
+				tf.close();
+			}
+		}
+	}
+
+	@Test
+	public void testLaterEntryReplacesEarlierEntry()
+	{
+		ReadWritableFile tar = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			TarBuilder tb = new TarBuilder(tar);
+			try
+			{
+				tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("First f.txt"), "f.txt"));
+				tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of g.txt"), "g.txt"));
+				tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Second f.txt"), "f.txt"));
+			}
+			finally
+			{
+				tb.close();
+			}
+
+			LazyTarFile ltf = new LazyTarFile(tar);
+			try
+			{
+				// Only the first entry has been scanned
+				TarFileEntry f1 = (TarFileEntry) ltf.get(new AbsoluteLocation("/f.txt"));
+				assertEquals("First f.txt", Files.readTextFile(f1));
+
+				// The iterator returns both entries
+				List<String> locations = new ArrayList<String>();
+				for (TarEntry te : ltf)
+				{
+					locations.add(te.getLocation().toString());
+				}
+				assertEquals(Arrays.asList("/f.txt", "/g.txt", "/f.txt"), locations);
+
+				// Now the second entry has replaced the first
+				TarFileEntry f2 = (TarFileEntry) ltf.get(new AbsoluteLocation("/f.txt"));
+				assertEquals("Second f.txt", Files.readTextFile(f2));
+				assertEquals(3, ltf.size());
+				assertSame(f2, ltf.getRootEntry().getChildEntries().get("f.txt"));
+				assertFalse(ltf.values().contains(f1));
+
+				TarFile tf = new TarFile(tar);
+				try
+				{
+					assertEquals("Second f.txt", Files.readTextFile((TarFileEntry) tf.get(new AbsoluteLocation("/f.txt"))));
+					assertSameEntries(tf, ltf);
+				}
+				finally
+				{
+					tf.close();
+				}
+			}
+			finally
+			{
+				ltf.close();
+			}
+		}
+		finally
+		{
+			tar.delete();
+		}
+	}
+
+	@Test
+	public void testHardLinks()
+	{
+		LazyTarFile ltf = new LazyTarFile(getTestDataFile("tar/gnuHardLink.tar"));
+		try
+		{
+			// The link target comes before the link
+			UstarFileEntry link = (UstarFileEntry) ltf.get(new AbsoluteLocation("/link.txt"));
+			assertEquals(18, link.getSize());
+			assertEquals("Contents of f1.txt", Files.readTextFile(link));
+		}
+		finally
+		{
+			ltf.close();
+		}
+	}
+
+	@Test
+	public void testClosed()
+	{
+		LazyTarFile ltf = new LazyTarFile(getTestDataFile("tar/someFilesAndDirectories.tar"));
+		Iterator<TarEntry> itr = ltf.iterator();
+		ltf.close();
+		// Closing again is ok
+		ltf.close();
+		try
+		{
+			ltf.get(AbsoluteLocation.ROOT_DIR);
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			// ok
+		}
+		try
+		{
+			itr.hasNext();
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			// ok
+		}
+	}
+}
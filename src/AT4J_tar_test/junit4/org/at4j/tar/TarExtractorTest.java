@@ -19,27 +19,48 @@
 package org.at4j.tar;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.at4j.support.io.HardLinks;
 import org.at4j.support.nio.charset.Charsets;
-import org.at4j.test.support.At4JTestCase;
+import org.at4j.tar.builder.TarBuilder;
 import org.at4j.test.support.TestFileSupport;
+import org.entityfs.DataSource;
 import org.entityfs.Directory;
 import org.entityfs.DirectoryView;
 import org.entityfs.EFile;
 import org.entityfs.FileSystem;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.el.RelativeLocation;
 import org.entityfs.fs.FSRWFileSystemBuilder;
+import org.entityfs.ram.RamFileSystemBuilder;
+import org.entityfs.support.filter.Filter;
 import org.entityfs.support.util.regexp.Glob;
+import org.entityfs.util.CharSequenceReadableFile;
 import org.entityfs.util.Directories;
 import org.entityfs.util.Entities;
+import org.entityfs.util.FileReadableFile;
 import org.entityfs.util.Files;
+import org.entityfs.util.NamedReadableFileAdapter;
+import org.entityfs.util.cap.entity.ECFileResolvableUtil;
+import org.entityfs.util.io.GZipReadableFile;
+import org.entityfs.util.io.GZipWritableFile;
+import org.entityfs.util.io.ReadWritableFileAdapter;
 import org.junit.Test;
 
-public class TarExtractorTest extends At4JTestCase
+public class TarExtractorTest extends AbstractTarFileTest
 {
 	@Test
 	public void testEmptyTar()
@@ -267,4 +288,569 @@ public class TarExtractorTest extends At4JTestCase
 			TestFileSupport.deleteRecursively(targetDir);
 		}
 	}
+
+	private static String getParallelTestFileContents(int i)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int j = 0; j < 100 * i; j++)
+		{
+			sb.append("Contents of file " + i + "\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Create a Tar file with 40 files in four directories.
+	 */
+	private File createTarFileForParallelExtraction()
+	{
+		File res = TestFileSupport.createTemporaryFile();
+		TarBuilder tb = new TarBuilder(new ReadWritableFileAdapter(res));
+		for (int i = 0; i < 40; i++)
+		{
+			tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(getParallelTestFileContents(i)), "f" + i + ".txt"), new AbsoluteLocation("/d" + (i % 4)));
+		}
+		tb.close();
+		return res;
+	}
+
+	@Test
+	public void testExtractInParallel()
+	{
+		File tarFile = createTarFileForParallelExtraction();
+		try
+		{
+			ExecutorService executor = Executors.newFixedThreadPool(4);
+			try
+			{
+				File targetDir = TestFileSupport.createTemporaryDir();
+				try
+				{
+					new TarExtractor(tarFile).extract(targetDir, new TarExtractSpecification().setExecutor(executor).setMaxNumberOfConcurrentFileExtractions(3));
+
+					for (int i = 0; i < 40; i++)
+					{
+						assertEquals(getParallelTestFileContents(i), Files.readTextFile(new FileReadableFile(new File(targetDir, "d" + (i % 4) + File.separator + "f" + i + ".txt"))));
+					}
+				}
+				finally
+				{
+					TestFileSupport.deleteRecursively(targetDir);
+				}
+			}
+			finally
+			{
+				executor.shutdown();
+			}
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(tarFile);
+		}
+	}
+
+	@Test
+	public void testSomeFilesAndDirectoriesInParallel()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			File targetDir1 = TestFileSupport.createTemporaryDir();
+			File targetDir2 = TestFileSupport.createTemporaryDir();
+			try
+			{
+				new TarExtractor(getTestDataFile("tar/someFilesAndDirectories.tar")).extract(targetDir1);
+				new TarExtractor(getTestDataFile("tar/someFilesAndDirectories.tar")).extract(targetDir2, new TarExtractSpecification().setExecutor(executor));
+
+				for (String path : new String[] { "f1.txt", "d2", "d1", "d1/d", "d1/d/f2.txt" })
+				{
+					File f1 = new File(targetDir1, path);
+					File f2 = new File(targetDir2, path);
+					assertTrue(f2.exists());
+					// The files' and directories' last modification times
+					// should be the same as for the sequential extraction
+					assertEquals(path, f1.lastModified(), f2.lastModified());
+				}
+				assertEquals("Contents of f2.txt\n", Files.readTextFile(new FileReadableFile(new File(targetDir2, "d1/d/f2.txt"))));
+			}
+			finally
+			{
+				TestFileSupport.deleteRecursively(targetDir1);
+				TestFileSupport.deleteRecursively(targetDir2);
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSymbolicLinkInParallel()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			Directory target = TestFileSupport.createTemporaryDirectory();
+			try
+			{
+				new TarExtractor(getTestDataFile("tar/paxTarLinkTargetLongerThan155Bytes.tar")).extract(target, new TarExtractSpecification().setExecutor(executor));
+				fail();
+			}
+			catch (TarFileParseException e)
+			{
+				assertTrue(e.getMessage().contains("symbolic link"));
+			}
+			finally
+			{
+				TestFileSupport.deleteRecursively(target);
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Entry extraction strategy that fails for every tenth file. It waits a
+	 * while before failing for the first of those files.
+	 */
+	private static class FailingTarEntryExtractionStrategy extends ExtractTarEntryExtractionStrategy
+	{
+		private FailingTarEntryExtractionStrategy()
+		{
+			super(false);
+		}
+
+		@Override
+		protected void extractFile(TarEntryHeaderData headerData, DataSource src, Directory targetRoot, TarExtractSpecification spec)
+		{
+			String name = headerData.getLocation().getName();
+			if (name.endsWith("0.txt"))
+			{
+				if ("f10.txt".equals(name))
+				{
+					try
+					{
+						Thread.sleep(200);
+					}
+					catch (InterruptedException e)
+					{
+						throw new RuntimeException(e);
+					}
+				}
+				throw new TarFileParseException("Failed to extract " + name);
+			}
+			super.extractFile(headerData, src, targetRoot, spec);
+		}
+	}
+
+	private String extractAndGetErrorMessage(File tarFile, TarExtractSpecification spec)
+	{
+		File targetDir = TestFileSupport.createTemporaryDir();
+		try
+		{
+			new TarExtractor(tarFile).extract(targetDir, spec.setEntryExtractionStrategy(new FailingTarEntryExtractionStrategy()));
+			fail();
+			return null;
+		}
+		catch (TarFileParseException e)
+		{
+			return e.getMessage();
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(targetDir);
+		}
+	}
+
+	@Test
+	public void testParallelExtractionReportsSameErrorAsSequentialExtraction()
+	{
+		File tarFile = createTarFileForParallelExtraction();
+		try
+		{
+			ExecutorService executor = Executors.newFixedThreadPool(4);
+			try
+			{
+				String expected = extractAndGetErrorMessage(tarFile, new TarExtractSpecification());
+				for (int i = 0; i < 3; i++)
+				{
+					assertEquals(expected, extractAndGetErrorMessage(tarFile, new TarExtractSpecification().setExecutor(executor)));
+				}
+			}
+			finally
+			{
+				executor.shutdown();
+			}
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(tarFile);
+		}
+	}
+
+	/**
+	 * Create a Tar file with the three files a.txt, b.txt and c.txt. The
+	 * header of c.txt has an invalid checksum.
+	 */
+	private File createTarFileWithCorruptThirdHeader() throws IOException
+	{
+		File res = TestFileSupport.createTemporaryFile();
+		TarBuilder tb = new TarBuilder(new ReadWritableFileAdapter(res));
+		tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of a"), "a.txt"), AbsoluteLocation.ROOT_DIR);
+		tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of b"), "b.txt"), AbsoluteLocation.ROOT_DIR);
+		tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of c"), "c.txt"), AbsoluteLocation.ROOT_DIR);
+		tb.close();
+
+		// Each file occupies one header block and one data block. Change the
+		// first digit of the third header's checksum field.
+		RandomAccessFile raf = new RandomAccessFile(res, "rw");
+		try
+		{
+			raf.seek(2 * 1024 + 148);
+			int b = raf.read();
+			raf.seek(2 * 1024 + 148);
+			raf.write(b == '1' ? '2' : '1');
+		}
+		finally
+		{
+			raf.close();
+		}
+		return res;
+	}
+
+	private void testExtractTarFileWithCorruptHeader(TarExtractSpecification spec) throws IOException
+	{
+		File tarFile = createTarFileWithCorruptThirdHeader();
+		try
+		{
+			File targetDir = TestFileSupport.createTemporaryDir();
+			try
+			{
+				try
+				{
+					new TarExtractor(tarFile).extract(targetDir, spec);
+					fail();
+				}
+				catch (TarFileParseException e)
+				{
+					assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+				}
+
+				// The entries before the corrupt entry are extracted
+				assertEquals("Contents of a", Files.readTextFile(new FileReadableFile(new File(targetDir, "a.txt"))));
+				assertEquals("Contents of b", Files.readTextFile(new FileReadableFile(new File(targetDir, "b.txt"))));
+				assertFalse(new File(targetDir, "c.txt").exists());
+			}
+			finally
+			{
+				TestFileSupport.deleteRecursively(targetDir);
+			}
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(tarFile);
+		}
+	}
+
+	@Test
+	public void testExtractTarFileWithCorruptHeader() throws IOException
+	{
+		testExtractTarFileWithCorruptHeader(new TarExtractSpecification());
+	}
+
+	@Test
+	public void testExtractTarFileWithCorruptHeaderInParallel() throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			testExtractTarFileWithCorruptHeader(new TarExtractSpecification().setExecutor(executor));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSomeFilesAndDirectoriesPipelined()
+	{
+		Directory target = TestFileSupport.createTemporaryDirectory();
+		try
+		{
+			new TarExtractor(getTestDataFile("tar/someFilesAndDirectories.tar")).extract(target, new TarExtractSpecification().setPipelined(true));
+
+			assertEquals(3, Directories.size(target));
+			assertEquals("Contents of f1.txt\n", Files.readTextFile(Directories.getFile(target, "f1.txt")));
+			assertTrue(Directories.isEmpty(Directories.getDirectory(target, "d2")));
+			DirectoryView d1 = Directories.getDirectory(target, "d1");
+			assertEquals(1, Directories.size(d1));
+			DirectoryView d1d = Directories.getDirectory(d1, "d");
+			assertEquals(1, Directories.size(d1d));
+			assertEquals("Contents of f2.txt\n", Files.readTextFile(Directories.getFile(d1d, "f2.txt")));
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(target);
+		}
+	}
+
+	private void testExtractCompressedTarPipelined(int queueDepth)
+	{
+		File tarFile = createTarFileForParallelExtraction();
+		try
+		{
+			File gzFile = TestFileSupport.createTemporaryFile();
+			try
+			{
+				Files.copyContents(new FileReadableFile(tarFile), new GZipWritableFile(new ReadWritableFileAdapter(gzFile)));
+
+				File targetDir = TestFileSupport.createTemporaryDir();
+				try
+				{
+					// Filter out the files in d1
+					new TarExtractor(new GZipReadableFile(new FileReadableFile(gzFile))).extract(targetDir, new TarExtractSpecification().setPipelined(true).setPipelineQueueDepth(queueDepth).setFilter(new TarEntryNameGlobFilter("f*").and(new Filter<TarEntryHeaderData>()
+					{
+						public boolean matches(TarEntryHeaderData o)
+						{
+							return !o.getLocation().getParentLocation().getName().equals("d1");
+						}
+					})));
+
+					assertFalse(new File(targetDir, "d1").exists());
+					for (int i = 0; i < 40; i++)
+					{
+						if (i % 4 != 1)
+						{
+							assertEquals(getParallelTestFileContents(i), Files.readTextFile(new FileReadableFile(new File(targetDir, "d" + (i % 4) + File.separator + "f" + i + ".txt"))));
+						}
+					}
+				}
+				finally
+				{
+					TestFileSupport.deleteRecursively(targetDir);
+				}
+			}
+			finally
+			{
+				TestFileSupport.deleteRecursively(gzFile);
+			}
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(tarFile);
+		}
+	}
+
+	@Test
+	public void testExtractCompressedTarPipelined()
+	{
+		testExtractCompressedTarPipelined(TarExtractSpecification.DEFAULT_PIPELINE_QUEUE_DEPTH);
+	}
+
+	@Test
+	public void testExtractCompressedTarPipelinedWithShortQueues()
+	{
+		testExtractCompressedTarPipelined(1);
+	}
+
+	@Test
+	public void testSymbolicLinkPipelined()
+	{
+		Directory target = TestFileSupport.createTemporaryDirectory();
+		try
+		{
+			new TarExtractor(getTestDataFile("tar/paxTarLinkTargetLongerThan155Bytes.tar")).extract(target, new TarExtractSpecification().setPipelined(true));
+			fail();
+		}
+		catch (TarFileParseException e)
+		{
+			assertTrue(e.getMessage().contains("symbolic link"));
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(target);
+		}
+	}
+
+	@Test
+	public void testPipelinedExtractionReportsSameErrorAsSequentialExtraction()
+	{
+		File tarFile = createTarFileForParallelExtraction();
+		try
+		{
+			String expected = extractAndGetErrorMessage(tarFile, new TarExtractSpecification());
+			assertEquals(expected, extractAndGetErrorMessage(tarFile, new TarExtractSpecification().setPipelined(true)));
+			assertEquals(expected, extractAndGetErrorMessage(tarFile, new TarExtractSpecification().setPipelined(true).setPipelineQueueDepth(1)));
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(tarFile);
+		}
+	}
+
+	private void testExtractSparseFile(String tarFileName, boolean parallel)
+	{
+		Directory target = TestFileSupport.createTemporaryDirectory();
+		ExecutorService executor = parallel ? Executors.newFixedThreadPool(2) : null;
+		try
+		{
+			TarExtractSpecification spec = new TarExtractSpecification();
+			if (parallel)
+			{
+				spec.setExecutor(executor);
+			}
+			new TarExtractor(getTestDataFile(tarFileName)).extract(target, spec);
+
+			assertEquals(1, Directories.size(target));
+			EFile f = Directories.getFile(target, "sparse.bin");
+			assertEquals(1024 * 1024, f.getDataSize());
+			assertTrue(Arrays.equals(getSparseTestFileContents(), Files.readBinaryFile(f)));
+		}
+		finally
+		{
+			if (executor != null)
+			{
+				executor.shutdown();
+			}
+			TestFileSupport.deleteRecursively(target);
+		}
+	}
+
+	@Test
+	public void testExtractSparseFiles()
+	{
+		testExtractSparseFile("tar/gnuSparse.tar", false);
+		testExtractSparseFile("tar/pax01Sparse.tar", false);
+		testExtractSparseFile("tar/pax10Sparse.tar", false);
+	}
+
+	@Test
+	public void testExtractSparseFilesInParallel()
+	{
+		testExtractSparseFile("tar/gnuSparse.tar", true);
+		testExtractSparseFile("tar/pax10Sparse.tar", true);
+	}
+
+	private void assertHardLinksExtracted(Directory target)
+	{
+		assertEquals(3, Directories.size(target));
+		EFile f1 = Directories.getFile(target, new RelativeLocation("d/f1.txt"));
+		EFile f2 = Directories.getFile(target, new RelativeLocation("d/f2.txt"));
+		EFile link = Directories.getFile(target, "link.txt");
+		EFile f3 = Directories.getFile(target, "f3.txt");
+		assertEquals("Contents of f1.txt", Files.readTextFile(f1));
+		assertEquals("Contents of f1.txt", Files.readTextFile(f2));
+		assertEquals("Contents of f1.txt", Files.readTextFile(link));
+		assertEquals("Contents of f3.txt", Files.readTextFile(f3));
+		assertEquals(getUtcDate("20100102030405").getTime(), link.getLastModified());
+	}
+
+	private void testExtractHardLinks(TarExtractSpecification spec)
+	{
+		Directory target = TestFileSupport.createTemporaryDirectory();
+		try
+		{
+			new TarExtractor(getTestDataFile("tar/gnuHardLink.tar")).extract(target, spec);
+			assertHardLinksExtracted(target);
+
+			// The links should have been created as hard links
+			Object key = HardLinks.getLinkKey(ECFileResolvableUtil.getFileObject(Directories.getFile(target, new RelativeLocation("d/f1.txt"))));
+			assertNotNull(key);
+			assertEquals(key, HardLinks.getLinkKey(ECFileResolvableUtil.getFileObject(Directories.getFile(target, new RelativeLocation("d/f2.txt")))));
+			assertEquals(key, HardLinks.getLinkKey(ECFileResolvableUtil.getFileObject(Directories.getFile(target, "link.txt"))));
+			assertNull(HardLinks.getLinkKey(ECFileResolvableUtil.getFileObject(Directories.getFile(target, "f3.txt"))));
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(target);
+		}
+	}
+
+	@Test
+	public void testExtractHardLinks()
+	{
+		testExtractHardLinks(new TarExtractSpecification());
+		testExtractHardLinks(new TarExtractSpecification().setPipelined(true));
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			testExtractHardLinks(new TarExtractSpecification().setExecutor(executor));
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testExtractHardLinksToRamFileSystem()
+	{
+		// The links are extracted as copies of the linked file
+		Directory target = new RamFileSystemBuilder().create().getRootDirectory();
+		new TarExtractor(getTestDataFile("tar/gnuHardLink.tar")).extract(target);
+		assertHardLinksExtracted(target);
+		Files.writeText(Directories.getFile(target, "link.txt"), "New contents");
+		assertEquals("Contents of f1.txt", Files.readTextFile(Directories.getFile(target, new RelativeLocation("d/f1.txt"))));
+	}
+	private void testExtractTruncatedTarFile(Directory target) throws IOException
+	{
+		File tarFile = TestFileSupport.createTemporaryFile();
+		try
+		{
+			TarBuilder tb = new TarBuilder(new ReadWritableFileAdapter(tarFile));
+			tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(getParallelTestFileContents(20)), "f.txt"), AbsoluteLocation.ROOT_DIR);
+			tb.close();
+
+			// Cut the file in the middle of the entry's data
+			RandomAccessFile raf = new RandomAccessFile(tarFile, "rw");
+			try
+			{
+				raf.setLength(2048);
+			}
+			finally
+			{
+				raf.close();
+			}
+
+			try
+			{
+				new TarExtractor(tarFile).extract(target);
+				fail();
+			}
+			catch (TarFileParseException e)
+			{
+				// ok
+			}
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(tarFile);
+		}
+	}
+
+	@Test
+	public void testExtractTruncatedTarFile() throws IOException
+	{
+		// This copies the file data with FileChannel.transferTo
+		Directory target = TestFileSupport.createTemporaryDirectory();
+		try
+		{
+			testExtractTruncatedTarFile(target);
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(target);
+		}
+	}
+
+	@Test
+	public void testExtractTruncatedTarFileToRamFileSystem() throws IOException
+	{
+		// This copies the file data with streams
+		testExtractTruncatedTarFile(new RamFileSystemBuilder().create().getRootDirectory());
+	}
 }
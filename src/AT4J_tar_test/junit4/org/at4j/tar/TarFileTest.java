@@ -19,23 +19,40 @@
 package org.at4j.tar;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
-
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.at4j.comp.bzip2.BZip2BlockIndex;
+import org.at4j.comp.bzip2.BZip2RandomlyAccessibleFile;
+import org.at4j.comp.bzip2.BZip2WritableFile;
+import org.at4j.comp.bzip2.BZip2WritableFileSettings;
+import org.at4j.comp.gzip.GZipIndex;
+import org.at4j.comp.gzip.GZipRandomlyAccessibleFile;
 import org.at4j.support.nio.charset.Charsets;
+import org.at4j.test.support.TestFileSupport;
 import org.entityfs.RandomAccess;
+import org.entityfs.ReadWritableFile;
+import org.entityfs.ReadableFile;
 import org.entityfs.el.AbsoluteLocation;
 import org.entityfs.el.RelativeLocation;
 import org.entityfs.entityattrs.unix.UnixEntityMode;
 import org.entityfs.exception.ReadOnlyException;
 import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.ram.RamFileSystemBuilder;
+import org.entityfs.util.Directories;
 import org.entityfs.util.Files;
+import org.entityfs.util.io.GZipWritableFile;
+import org.entityfs.util.io.ReadWritableFileAdapter;
 import org.junit.Test;
 
 /**
@@ -2059,7 +2076,7 @@ public class TarFileTest extends AbstractTarFileTest
 	public void testEntryWithUnknownTypeFlag()
 	{
 		// This is singleFile.tar with the file's type flag modified using a
-		// hex editor
+		// hex editor. The header checksum is updated to match.
 		TarFile tf = new TarFile(getTestDataFile("tar/unknownTypeFlag.tar"));
 		try
 		{
@@ -2073,7 +2090,7 @@ public class TarFileTest extends AbstractTarFileTest
 			assertSame(root, f.getParent());
 			assertEquals(new AbsoluteLocation("/test.txt"), f.getLocation());
 			assertEquals("test.txt", f.getName());
-			assertEquals(4958, f.getChecksum());
+			assertEquals(5011, f.getChecksum());
 			assertEquals(UnixEntityMode.forCode(0644), f.getEntityMode());
 			assertEquals(getUtcDate("20081222092338"), f.getLastModificationTime());
 			assertEquals(1000, f.getOwnerGid());
@@ -2175,4 +2192,680 @@ public class TarFileTest extends AbstractTarFileTest
 			tf.close();
 		}
 	}
+
+	/**
+	 * Create a copy of singleFile.tar with some bytes in the header replaced.
+	 * @param offset The offset in the header of the bytes to replace.
+	 * @param replacement The new bytes.
+	 * @param checksum How the header checksum should be updated: {@code 0}
+	 * for not at all, {@code 1} for calculating it with unsigned bytes and
+	 * {@code 2} for calculating it with signed bytes.
+	 */
+	private File createSingleFileTarWithModifiedHeader(int offset, byte[] replacement, int checksum)
+	{
+		File res = TestFileSupport.createTemporaryFile();
+		ReadWritableFile f = new ReadWritableFileAdapter(res);
+		Files.copyContents(getTestDataFile("tar/singleFile.tar"), f);
+		RandomAccess ra = f.openForRandomAccess(RandomAccessMode.READ_WRITE);
+		try
+		{
+			byte[] header = new byte[512];
+			assertEquals(512, ra.read(header));
+			System.arraycopy(replacement, 0, header, offset, replacement.length);
+			if (checksum > 0)
+			{
+				Arrays.fill(header, 148, 156, (byte) ' ');
+				long sum = 0;
+				for (int i = 0; i < header.length; i++)
+				{
+					sum += checksum == 1 ? header[i] & 0xFF : header[i];
+				}
+				String cs = Long.toOctalString(sum);
+				while (cs.length() < 6)
+				{
+					cs = "0" + cs;
+				}
+				System.arraycopy(cs.getBytes(), 0, header, 148, 6);
+				header[154] = 0;
+			}
+			ra.seek(0);
+			ra.write(header);
+		}
+		finally
+		{
+			ra.close();
+		}
+		return res;
+	}
+
+	@Test
+	public void testInvalidHeaderChecksum()
+	{
+		File f = createSingleFileTarWithModifiedHeader(0, new byte[] { (byte) 'b' }, 0);
+		try
+		{
+			new TarFile(new ReadWritableFileAdapter(f));
+			fail();
+		}
+		catch (TarFileParseException e)
+		{
+			assertTrue(e.getMessage().contains("checksum"));
+		}
+		finally
+		{
+			assertTrue(f.delete());
+		}
+	}
+
+	@Test
+	public void testNonAsciiFileNameAndSignedHeaderChecksum()
+	{
+		// 0xE4 is an a with two dots on top in ISO-8859-1
+		for (int checksum = 1; checksum <= 2; checksum++)
+		{
+			File f = createSingleFileTarWithModifiedHeader(0, new byte[] { (byte) 0xE4 }, checksum);
+			try
+			{
+				TarFile tf = new TarFile(new ReadWritableFileAdapter(f), Charset.forName("ISO-8859-1"));
+				try
+				{
+					assertEquals(2, tf.size());
+					UstarFileEntry fe = (UstarFileEntry) tf.get(new AbsoluteLocation("/\u00e4est.txt"));
+					assertEquals("\u00e4est.txt", fe.getName());
+					assertEquals("kalle", fe.getOwnerUserName());
+					assertEquals("Contents of test.txt \u00e5\u00e4\u00f6\n", Files.readTextFile(fe, Charsets.UTF8));
+				}
+				finally
+				{
+					tf.close();
+				}
+			}
+			finally
+			{
+				assertTrue(f.delete());
+			}
+		}
+	}
+
+	@Test
+	public void testBase256NumericFields()
+	{
+		// Base-256 encoded file size (the same size as in the original file)
+		// and owner uid (larger than what fits in the octal field)
+		byte[] base256 = new byte[] {
+				// Uid 3000000
+				(byte) 0x80, 0, 0, 0, 0, (byte) 0x2D, (byte) 0xC6, (byte) 0xC0,
+				// Gid
+				'0', '0', '0', '1', '7', '5', '0', 0,
+				// Size 28
+				(byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 28 };
+		File f = createSingleFileTarWithModifiedHeader(108, base256, 1);
+		try
+		{
+			TarFile tf = new TarFile(new ReadWritableFileAdapter(f));
+			try
+			{
+				UstarFileEntry fe = (UstarFileEntry) tf.get(new AbsoluteLocation("/test.txt"));
+				assertEquals(3000000, fe.getOwnerUid());
+				assertEquals(1000, fe.getOwnerGid());
+				assertEquals(28, fe.getSize());
+				assertEquals("Contents of test.txt \u00e5\u00e4\u00f6\n", Files.readTextFile(fe, Charsets.UTF8));
+			}
+			finally
+			{
+				tf.close();
+			}
+		}
+		finally
+		{
+			assertTrue(f.delete());
+		}
+	}
+
+	@Test
+	public void testPaxLargeValues()
+	{
+		// The Tar file has a Pax header with the size, uid, gid and mtime
+		// variables. The size field in the ustar header is set to zero and the
+		// uid, gid and mtime values are too large to fit in the ustar header.
+		TarFile tf = new TarFile(getTestDataFile("tar/paxLargeValues.tar"));
+		try
+		{
+			assertEquals(2, tf.size());
+			PaxFileEntry f = (PaxFileEntry) tf.get(new AbsoluteLocation("/f1.txt"));
+			assertEquals(19, f.getSize());
+			assertEquals(3000000, f.getOwnerUid());
+			assertEquals(4000000, f.getOwnerGid());
+			assertEquals(17179869184000L, f.getLastModificationTime().getTime());
+			assertEquals("kalle", f.getOwnerUserName());
+			assertEquals("users", f.getOwnerGroupName());
+			assertEquals("19", f.getPaxVariables().get("size"));
+			assertEquals("Contents of f1.txt\n", Files.readTextFile(f));
+		}
+		finally
+		{
+			tf.close();
+		}
+	}
+
+	@Test
+	public void testPaxUidTooLarge()
+	{
+		// The Pax uid variable is 3000000000, which does not fit in an int.
+		// The archive was created with GNU tar.
+		try
+		{
+			new TarFile(getTestDataFile("tar/paxUidTooLarge.tar"));
+			fail();
+		}
+		catch (TarFileParseException e)
+		{
+			assertTrue(e.getMessage().contains("3000000000"));
+		}
+	}
+
+	private void assertSparseTestFile(TarFileEntry f)
+	{
+		assertTrue(f.isSparse());
+		assertEquals(1024 * 1024, f.getSize());
+		assertEquals(6 * 4096, f.getStoredSize());
+		TarSparseMap map = f.getSparseMap();
+		assertEquals(7, map.getNumberOfSegments());
+		for (int i = 0; i < 6; i++)
+		{
+			assertEquals(i * 135168, map.getSegmentOffset(i));
+			assertEquals(4096, map.getSegmentSize(i));
+		}
+		// Gnu Tar marks the hole at the end of the file with an empty segment
+		assertEquals(1024 * 1024, map.getSegmentOffset(6));
+		assertEquals(0, map.getSegmentSize(6));
+
+		byte[] expected = getSparseTestFileContents();
+		assertTrue(Arrays.equals(expected, Files.readBinaryFile(f)));
+
+		// Random access in a hole and in a data segment
+		RandomAccess ra = f.openForRandomAccess(RandomAccessMode.READ_ONLY);
+		try
+		{
+			assertEquals(1024 * 1024, ra.length());
+			byte[] barr = new byte[20];
+			ra.seek(100000);
+			assertEquals(20, ra.read(barr));
+			assertTrue(Arrays.equals(new byte[20], barr));
+			ra.seek(2 * 135168 + 5);
+			assertEquals(20, ra.read(barr));
+			assertEquals("nt 2 Segment 2 Segme", new String(barr));
+			ra.seek(1024 * 1024 - 10);
+			assertEquals(10, ra.read(barr));
+			assertEquals(-1, ra.read(barr));
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	@Test
+	public void testGnuSparseFile()
+	{
+		// The old Gnu Tar sparse format. The sparse map does not fit in the
+		// header so it is continued in an extension block.
+		TarFile tf = new TarFile(getTestDataFile("tar/gnuSparse.tar"));
+		try
+		{
+			assertEquals(2, tf.size());
+			UstarFileEntry f = (UstarFileEntry) tf.get(new AbsoluteLocation("/sparse.bin"));
+			assertEquals("kalle", f.getOwnerUserName());
+			assertEquals(getUtcDate("20100102030405"), f.getLastModificationTime());
+			assertSparseTestFile(f);
+		}
+		finally
+		{
+			tf.close();
+		}
+	}
+
+	@Test
+	public void testGnuHardLinks()
+	{
+		// Hard links have the data of the file that they link to
+		TarFile tf = new TarFile(getTestDataFile("tar/gnuHardLink.tar"));
+		try
+		{
+			assertEquals(6, tf.size());
+			UstarFileEntry f1 = (UstarFileEntry) tf.get(new AbsoluteLocation("/d/f1.txt"));
+			assertEquals(18, f1.getSize());
+			assertEquals("Contents of f1.txt", Files.readTextFile(f1));
+			UstarFileEntry f2 = (UstarFileEntry) tf.get(new AbsoluteLocation("/d/f2.txt"));
+			assertEquals(18, f2.getSize());
+			assertEquals("kalle", f2.getOwnerUserName());
+			assertEquals(getUtcDate("20100102030405"), f2.getLastModificationTime());
+			assertEquals("Contents of f1.txt", Files.readTextFile(f2));
+			UstarFileEntry link = (UstarFileEntry) tf.get(new AbsoluteLocation("/link.txt"));
+			assertEquals("Contents of f1.txt", Files.readTextFile(link));
+			assertEquals("Contents of f3.txt", Files.readTextFile((TarFileEntry) tf.get(new AbsoluteLocation("/f3.txt"))));
+		}
+		finally
+		{
+			tf.close();
+		}
+	}
+
+	@Test
+	public void testPax01SparseFile()
+	{
+		TarFile tf = new TarFile(getTestDataFile("tar/pax01Sparse.tar"));
+		try
+		{
+			assertEquals(2, tf.size());
+			PaxFileEntry f = (PaxFileEntry) tf.get(new AbsoluteLocation("/sparse.bin"));
+			assertEquals(getUtcDate("20100102030405"), f.getLastModificationTime());
+			assertEquals("sparse.bin", f.getPaxVariables().get("GNU.sparse.name"));
+			assertSparseTestFile(f);
+		}
+		finally
+		{
+			tf.close();
+		}
+	}
+
+	@Test
+	public void testPax10SparseFile()
+	{
+		TarFile tf = new TarFile(getTestDataFile("tar/pax10Sparse.tar"));
+		try
+		{
+			assertEquals(2, tf.size());
+			PaxFileEntry f = (PaxFileEntry) tf.get(new AbsoluteLocation("/sparse.bin"));
+			assertEquals(getUtcDate("20100102030405"), f.getLastModificationTime());
+			assertEquals("1", f.getPaxVariables().get("GNU.sparse.major"));
+			assertSparseTestFile(f);
+		}
+		finally
+		{
+			tf.close();
+		}
+	}
+
+	private ReadWritableFile copyTestDataToTemporaryFile(String name)
+	{
+		ReadWritableFile res = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		Files.copyContents(getTestDataFile(name), res);
+		return res;
+	}
+
+	private void assertIndexGivesSameEntries(ReadWritableFile tar, Charset cs, ReadableFile index)
+	{
+		TarFile scanned = new TarFile(tar, cs);
+		try
+		{
+			TarFile indexed = new TarFile(tar, cs, index);
+			try
+			{
+				assertSameEntries(scanned, indexed);
+			}
+			finally
+			{
+				indexed.close();
+			}
+		}
+		finally
+		{
+			scanned.close();
+		}
+	}
+
+	@Test
+	public void testIndex()
+	{
+		String[] names = new String[] { "tar/empty.tar", "tar/someFilesAndDirectories.tar", "tar/v7FilesAndDirectories.tar", "tar/symbolicLinks.tar", "tar/gnuTarFileNameLongerThan512Bytes.tar", "tar/gnuTarLinkTargetLongerThan155Bytes.tar",
+				"tar/paxTarFileNameLongerThan512Bytes.tar", "tar/paxNonAsciiCharactersInFileName.tar", "tar/paxLargeValues.tar", "tar/solarisExtendedHeaders.tar", "tar/gnuHardLink.tar", "tar/gnuSparse.tar", "tar/pax01Sparse.tar", "tar/pax10Sparse.tar" };
+		for (String name : names)
+		{
+			ReadWritableFile tar = copyTestDataToTemporaryFile(name);
+			ReadWritableFile index = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+			try
+			{
+				TarFileIndex.create(tar, null, index);
+				assertIndexGivesSameEntries(tar, null, index);
+			}
+			finally
+			{
+				tar.delete();
+				index.delete();
+			}
+		}
+
+		// Entry names in another charset than the platform's default charset
+		ReadWritableFile tar = copyTestDataToTemporaryFile("tar/singleFileWithStrangeCharactersInName.tar");
+		ReadWritableFile index = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			TarFileIndex.create(tar, Charsets.UTF8, index);
+			assertIndexGivesSameEntries(tar, Charsets.UTF8, index);
+		}
+		finally
+		{
+			tar.delete();
+			index.delete();
+		}
+	}
+
+	@Test
+	public void testIndexIsUsed()
+	{
+		// The index is read from a file on disk (memory mapped) and from a
+		// file in a RAM file system.
+		ReadWritableFile[] indices = new ReadWritableFile[] { new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile()), Directories.newFile(new RamFileSystemBuilder().create().getRootDirectory(), "index") };
+		for (ReadWritableFile index : indices)
+		{
+			ReadWritableFile tar = copyTestDataToTemporaryFile("tar/singleFile.tar");
+			try
+			{
+				TarFileIndex.create(tar, null, index);
+
+				// Break the entry header checksum without changing the size or
+				// the time of last modification of the file.
+				File tarFile = ((ReadWritableFileAdapter) tar).getFile();
+				long lastModified = tarFile.lastModified();
+				RandomAccess ra = tar.openForRandomAccess(RandomAccessMode.READ_WRITE);
+				try
+				{
+					ra.write('x');
+				}
+				finally
+				{
+					ra.close();
+				}
+				assertTrue(tarFile.setLastModified(lastModified));
+
+				try
+				{
+					new TarFile(tar);
+					fail();
+				}
+				catch (TarFileParseException e)
+				{
+					// ok
+				}
+
+				// The header is not parsed when the index is used.
+				TarFile tf = new TarFile(tar, null, index);
+				try
+				{
+					assertEquals(2, tf.size());
+					UstarFileEntry f = (UstarFileEntry) tf.get(new AbsoluteLocation("/test.txt"));
+					assertEquals(4958, f.getChecksum());
+					assertEquals(getUtcDate("20081222092338"), f.getLastModificationTime());
+				}
+				finally
+				{
+					tf.close();
+				}
+			}
+			finally
+			{
+				tar.delete();
+				index.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testStaleIndex()
+	{
+		ReadWritableFile tar = copyTestDataToTemporaryFile("tar/d1f1.tar");
+		ReadWritableFile index = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			TarFileIndex.create(tar, null, index);
+
+			// Replace the contents of the Tar file with another archive with
+			// the same size.
+			File tarFile = ((ReadWritableFileAdapter) tar).getFile();
+			long lastModified = tarFile.lastModified();
+			Files.copyContents(getTestDataFile("tar/d1f2.tar"), tar);
+			assertTrue(tarFile.setLastModified(lastModified + 10000));
+
+			// The index is not used
+			assertIndexGivesSameEntries(tar, null, index);
+			TarFile tf = new TarFile(tar, null, index);
+			try
+			{
+				assertTrue(tf.containsKey(new AbsoluteLocation("/d1/f2")));
+			}
+			finally
+			{
+				tf.close();
+			}
+
+			// Replace the contents with a smaller archive
+			TarFileIndex.create(tar, null, index);
+			Files.copyContents(getTestDataFile("tar/singleFile.tar"), tar);
+			assertIndexGivesSameEntries(tar, null, index);
+		}
+		finally
+		{
+			tar.delete();
+			index.delete();
+		}
+	}
+
+	@Test
+	public void testInvalidIndex()
+	{
+		ReadWritableFile tar = copyTestDataToTemporaryFile("tar/someFilesAndDirectories.tar");
+		ReadWritableFile index = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			// Not an index
+			Files.writeText(index, "This is not a Tar file index");
+			assertIndexGivesSameEntries(tar, null, index);
+
+			// An index that was never finished
+			TarFileIndexWriter w = new TarFileIndexWriter(index, null);
+			RandomAccess ra = tar.openForRandomAccess(RandomAccessMode.READ_ONLY);
+			try
+			{
+				w.update(ra);
+			}
+			finally
+			{
+				ra.close();
+			}
+			w.abort();
+			assertIndexGivesSameEntries(tar, null, index);
+
+			// An index made for another charset
+			TarFileIndex.create(tar, Charsets.UTF8, index);
+			assertIndexGivesSameEntries(tar, CP437, index);
+
+			// A truncated index
+			TarFileIndex.create(tar, null, index);
+			byte[] indexData = Files.readBinaryFile(index);
+			byte[] truncated = new byte[indexData.length - 100];
+			System.arraycopy(indexData, 0, truncated, 0, 50);
+			System.arraycopy(indexData, 150, truncated, 50, truncated.length - 50);
+			Files.writeData(index, truncated);
+			assertIndexGivesSameEntries(tar, null, index);
+		}
+		finally
+		{
+			tar.delete();
+			index.delete();
+		}
+	}
+
+	private ReadWritableFile compressTestDataToTemporaryFile(String name)
+	{
+		ReadWritableFile res = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		// Use the smallest block size to get several bzip2 blocks.
+		Files.copyContents(getTestDataFile(name), new BZip2WritableFile(res, new BZip2WritableFileSettings().setBlockSize(1)));
+		return res;
+	}
+
+	@Test
+	public void testBZip2CompressedTarFile()
+	{
+		String[] names = new String[] { "tar/empty.tar", "tar/someFilesAndDirectories.tar", "tar/fileSpanningSeveral512kBlocks.tar", "tar/gnuHardLink.tar", "tar/gnuSparse.tar", "tar/pax10Sparse.tar" };
+		for (String name : names)
+		{
+			ReadWritableFile tbz = compressTestDataToTemporaryFile(name);
+			try
+			{
+				TarFile expected = new TarFile(getTestDataFile(name));
+				try
+				{
+					TarFile actual = new TarFile(new BZip2RandomlyAccessibleFile(tbz));
+					try
+					{
+						assertSameEntries(expected, actual);
+					}
+					finally
+					{
+						actual.close();
+					}
+				}
+				finally
+				{
+					expected.close();
+				}
+			}
+			finally
+			{
+				tbz.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testBZip2CompressedTarFileWithIndices()
+	{
+		ReadWritableFile tbz = compressTestDataToTemporaryFile("tar/someFilesAndDirectories.tar");
+		ReadWritableFile blockIndex = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		ReadWritableFile tarIndex = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			BZip2RandomlyAccessibleFile f = new BZip2RandomlyAccessibleFile(tbz);
+			TarFileIndex.create(f, null, tarIndex);
+			f.getIndex().writeTo(blockIndex);
+
+			// The time of last modification of the compressed file is used
+			assertEquals(((ReadWritableFileAdapter) tbz).getFile().lastModified(), TarFileIndex.getLastModified(f));
+
+			BZip2BlockIndex bi = BZip2BlockIndex.load(blockIndex);
+			assertNotNull(bi);
+
+			TarFile expected = new TarFile(getTestDataFile("tar/someFilesAndDirectories.tar"));
+			try
+			{
+				TarFile actual = new TarFile(new BZip2RandomlyAccessibleFile(tbz, bi), null, tarIndex);
+				try
+				{
+					assertSameEntries(expected, actual);
+				}
+				finally
+				{
+					actual.close();
+				}
+			}
+			finally
+			{
+				expected.close();
+			}
+		}
+		finally
+		{
+			tbz.delete();
+			blockIndex.delete();
+			tarIndex.delete();
+		}
+	}
+
+	private ReadWritableFile gzipTestDataToTemporaryFile(String name)
+	{
+		ReadWritableFile res = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		Files.copyContents(getTestDataFile(name), new GZipWritableFile(res));
+		return res;
+	}
+
+	@Test
+	public void testGZipCompressedTarFile()
+	{
+		String[] names = new String[] { "tar/empty.tar", "tar/someFilesAndDirectories.tar", "tar/fileSpanningSeveral512kBlocks.tar", "tar/gnuHardLink.tar", "tar/gnuSparse.tar", "tar/pax10Sparse.tar" };
+		for (String name : names)
+		{
+			ReadWritableFile tgz = gzipTestDataToTemporaryFile(name);
+			try
+			{
+				TarFile expected = new TarFile(getTestDataFile(name));
+				try
+				{
+					// Use a small access point spacing to get several access
+					// points.
+					TarFile actual = new TarFile(new GZipRandomlyAccessibleFile(tgz, null, 16 * 1024));
+					try
+					{
+						assertSameEntries(expected, actual);
+					}
+					finally
+					{
+						actual.close();
+					}
+				}
+				finally
+				{
+					expected.close();
+				}
+			}
+			finally
+			{
+				tgz.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testGZipCompressedTarFileWithIndices()
+	{
+		ReadWritableFile tgz = gzipTestDataToTemporaryFile("tar/someFilesAndDirectories.tar");
+		ReadWritableFile gzipIndex = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		ReadWritableFile tarIndex = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			GZipRandomlyAccessibleFile f = new GZipRandomlyAccessibleFile(tgz, null, 16 * 1024);
+			TarFileIndex.create(f, null, tarIndex);
+			f.getIndex().writeTo(gzipIndex);
+
+			// The time of last modification of the compressed file is used
+			assertEquals(((ReadWritableFileAdapter) tgz).getFile().lastModified(), TarFileIndex.getLastModified(f));
+
+			GZipIndex gi = GZipIndex.load(gzipIndex);
+			assertNotNull(gi);
+
+			TarFile expected = new TarFile(getTestDataFile("tar/someFilesAndDirectories.tar"));
+			try
+			{
+				TarFile actual = new TarFile(new GZipRandomlyAccessibleFile(tgz, gi), null, tarIndex);
+				try
+				{
+					assertSameEntries(expected, actual);
+				}
+				finally
+				{
+					actual.close();
+				}
+			}
+			finally
+			{
+				expected.close();
+			}
+		}
+		finally
+		{
+			tgz.delete();
+			gzipIndex.delete();
+			tarIndex.delete();
+		}
+	}
 }
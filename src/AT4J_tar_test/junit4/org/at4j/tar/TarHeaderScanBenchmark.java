@@ -0,0 +1,121 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.tar;
+
+import java.io.File;
+
+import org.at4j.support.nio.charset.Charsets;
+import org.at4j.tar.builder.TarBuilder;
+import org.at4j.test.support.TestFileSupport;
+import org.entityfs.RandomAccess;
+import org.entityfs.ReadWritableFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.CharSequenceReadableFile;
+import org.entityfs.util.NamedReadableFileAdapter;
+import org.entityfs.util.io.ReadWritableFileAdapter;
+
+/**
+ * This class contains a main method that measures how many Tar entry headers
+ * per second the {@link TarFileParser} can scan. It is not a unit test. Run it
+ * with:
+ * <pre>
+ * java org.at4j.tar.TarHeaderScanBenchmark [number of entries] [number of rounds]
+ * </pre>
+ * The default is 100000 entries and ten rounds.
+ * <p>
+ * The benchmark builds a Tar file with the requested number of empty files,
+ * spread out over directories with 1000 files in each. The Tar file's contents
+ * are the same every time that the benchmark is run. Each round scans all
+ * entry headers in the file. The first rounds warm up the JVM, so the figures
+ * for the last rounds are the ones to look at.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class TarHeaderScanBenchmark
+{
+	private static ReadWritableFile createTarFile(File f, int noOfEntries)
+	{
+		ReadWritableFile res = new ReadWritableFileAdapter(f);
+		TarBuilder tb = new TarBuilder(res);
+		try
+		{
+			for (int i = 0; i < noOfEntries; i++)
+			{
+				tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(""), "f" + i + ".txt"), new AbsoluteLocation("/d" + (i / 1000)));
+			}
+		}
+		finally
+		{
+			tb.close();
+		}
+		return res;
+	}
+
+	/**
+	 * Scan all entry headers in the Tar file.
+	 * @return The number of scanned headers.
+	 */
+	private static int scanHeaders(ReadWritableFile tar)
+	{
+		TarFileParser.HeaderParseContext ctx = new TarFileParser.HeaderParseContext(Charsets.UTF8);
+		RandomAccess ra = tar.openForRandomAccess(RandomAccessMode.READ_ONLY);
+		try
+		{
+			int res = 0;
+			TarEntryHeaderData ehd = TarFileParser.INSTANCE.readNextEntry(ra, ctx);
+			while (ehd != null)
+			{
+				res++;
+				TarFileParser.INSTANCE.skipEntryData(ra, ehd.getFileSize());
+				ehd = TarFileParser.INSTANCE.readNextEntry(ra, ctx);
+			}
+			return res;
+		}
+		finally
+		{
+			ra.close();
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		int noOfEntries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int noOfRounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		System.out.println("Building a Tar file with " + noOfEntries + " entries...");
+		File f = TestFileSupport.createTemporaryFile();
+		try
+		{
+			ReadWritableFile tar = createTarFile(f, noOfEntries);
+			System.out.println("The Tar file " + f.getAbsolutePath() + " is " + f.length() + " bytes long.");
+			for (int i = 0; i < noOfRounds; i++)
+			{
+				long start = System.nanoTime();
+				int noOfHeaders = scanHeaders(tar);
+				long elapsed = System.nanoTime() - start;
+				System.out.println("Round " + (i + 1) + ": scanned " + noOfHeaders + " headers in " + (elapsed / 1000000L) + " ms, " + Math.round(noOfHeaders * 1000000000.0 / elapsed) + " headers/s");
+			}
+		}
+		finally
+		{
+			f.delete();
+		}
+	}
+}
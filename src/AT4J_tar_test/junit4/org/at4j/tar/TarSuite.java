@@ -28,7 +28,7 @@ import org.junit.runners.Suite.SuiteClasses;
  * @since 1.0
  */
 @RunWith(Suite.class)
-@SuiteClasses( { TarExtractorTest.class, TarFileTest.class,
+@SuiteClasses( { TarExtractorTest.class, TarFileTest.class, LazyTarFileTest.class,
 
 BuilderSuite.class })
 public class TarSuite
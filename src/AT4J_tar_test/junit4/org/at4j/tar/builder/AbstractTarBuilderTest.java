@@ -19,6 +19,8 @@
 package org.at4j.tar.builder;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
@@ -28,26 +30,37 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.at4j.archive.builder.ArchiveBuilder;
 import org.at4j.archive.builder.ArchiveEntryAddException;
 import org.at4j.archive.builder.ArchiveEntrySettingsRule;
 import org.at4j.archive.builder.NameGlobETAF;
+import org.at4j.support.io.HardLinks;
 import org.at4j.tar.AbstractTarFileTest;
 import org.at4j.tar.PaxDirectoryEntry;
 import org.at4j.tar.PaxFileEntry;
 import org.at4j.tar.TarDirectoryEntry;
+import org.at4j.tar.TarExtractor;
 import org.at4j.tar.TarFile;
 import org.at4j.tar.TarFileEntry;
+import org.at4j.tar.TarSparseMap;
 import org.at4j.tar.UstarDirectoryEntry;
 import org.at4j.tar.UstarFileEntry;
 import org.at4j.test.support.TestFileSupport;
 import org.entityfs.Directory;
+import org.entityfs.EFile;
+import org.entityfs.NamedReadableFile;
 import org.entityfs.ReadWritableFile;
 import org.entityfs.el.AbsoluteLocation;
 import org.entityfs.entityattrs.unix.UnixEntityMode;
 import org.entityfs.ram.RamFileSystemBuilder;
+import org.entityfs.support.exception.WrappedIOException;
 import org.entityfs.support.nio.Charsets;
 import org.entityfs.util.CharSequenceReadableFile;
 import org.entityfs.util.Directories;
@@ -82,6 +95,12 @@ public abstract class AbstractTarBuilderTest<T extends ArchiveBuilder<T, TarEntr
 	 */
 	protected abstract void addDataFromStream(T tb, InputStream is, AbsoluteLocation l, TarEntrySettings settings);
 
+	/**
+	 * Add all data from the supplied stream with the supplied time of last
+	 * modification and then close the stream.
+	 */
+	protected abstract void addDataFromStreamWithLastModified(T tb, InputStream is, AbsoluteLocation l, Date lastModified);
+
 	@Test
 	public void testAddEmptyFile()
 	{
@@ -1358,4 +1377,479 @@ public abstract class AbstractTarBuilderTest<T extends ArchiveBuilder<T, TarEntr
 			raf.delete();
 		}
 	}
+
+	@Test
+	public void testTooLargeOwnerUidInUstar()
+	{
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			T tb = createTarBuilder(raf, new TarBuilderSettings().setEntryStrategy(new UstarEntryStrategy()));
+			try
+			{
+				addDataFromStream(tb, new ByteArrayInputStream("Contents of f1.txt".getBytes()), new AbsoluteLocation("/f1.txt"), new TarEntrySettings().setOwnerUid(3000000));
+				fail();
+			}
+			catch (ArchiveEntryAddException e)
+			{
+				assertTrue(e.getMessage().contains("owner uid"));
+			}
+			tb.close();
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testLargeOwnerIdsInGnuTar() throws IOException
+	{
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			T tb = createTarBuilder(raf, new TarBuilderSettings().setEntryStrategy(new GnuTarEntryStrategy()));
+			addDataFromStream(tb, new ByteArrayInputStream("Contents of f1.txt".getBytes()), new AbsoluteLocation("/f1.txt"), new TarEntrySettings().setOwnerUid(3000000).setOwnerGid(2097151));
+			tb.close();
+
+			// The uid does not fit in the octal field and should be base-256
+			// encoded. The gid just fits.
+			byte[] header = new byte[512];
+			InputStream is = raf.openForRead();
+			try
+			{
+				assertEquals(512, is.read(header));
+			}
+			finally
+			{
+				is.close();
+			}
+			assertEquals((byte) 0x80, header[108]);
+			assertEquals('7', header[116]);
+
+			TarFile tf = new TarFile(raf);
+			try
+			{
+				UstarFileEntry f1 = (UstarFileEntry) tf.get(new AbsoluteLocation("/f1.txt"));
+				assertEquals(3000000, f1.getOwnerUid());
+				assertEquals(2097151, f1.getOwnerGid());
+				assertEquals("Contents of f1.txt", Files.readTextFile(f1));
+			}
+			finally
+			{
+				tf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testLargeOwnerIdsInPaxTar()
+	{
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			T tb = createTarBuilder(raf, new TarBuilderSettings().setEntryStrategy(new PaxTarEntryStrategy()));
+			addDataFromStream(tb, new ByteArrayInputStream("Contents of f1.txt".getBytes()), new AbsoluteLocation("/f1.txt"), new TarEntrySettings().setOwnerUid(3000000).setOwnerGid(4000000));
+			tb.close();
+
+			TarFile tf = new TarFile(raf);
+			try
+			{
+				PaxFileEntry f1 = (PaxFileEntry) tf.get(new AbsoluteLocation("/f1.txt"));
+				assertEquals(3000000, f1.getOwnerUid());
+				assertEquals(4000000, f1.getOwnerGid());
+				assertEquals(3, f1.getPaxVariables().size());
+				assertEquals("3000000", f1.getPaxVariables().get("uid"));
+				assertEquals("4000000", f1.getPaxVariables().get("gid"));
+				assertWithinLast30Seconds(parsePaxDate(f1.getPaxVariables().get("mtime")));
+				assertEquals("Contents of f1.txt", Files.readTextFile(f1));
+			}
+			finally
+			{
+				tf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testPaxTarSparseFile()
+	{
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			// A file with one data block, a hole and then some more data
+			// followed by a hole at the end of the file.
+			byte[] sparseData = new byte[10 * 4096];
+			Arrays.fill(sparseData, 0, 100, (byte) 'a');
+			Arrays.fill(sparseData, 5 * 4096 + 7, 6 * 4096 + 9, (byte) 'b');
+			Directory d = new RamFileSystemBuilder().create().getRootDirectory();
+			EFile sparse = Files.writeData(Directories.newFile(d, "sparse.bin"), sparseData);
+			EFile notSparse = Files.writeText(Directories.newFile(d, "notSparse.txt"), "Contents of notSparse.txt");
+
+			T tb = createTarBuilder(raf, new TarBuilderSettings().setEntryStrategy(new PaxTarEntryStrategy().setDetectSparseFiles(true)));
+			tb.add(sparse);
+			tb.add(notSparse);
+			tb.close();
+
+			TarFile tf = new TarFile(raf);
+			try
+			{
+				assertEquals(3, tf.size());
+				PaxFileEntry f = (PaxFileEntry) tf.get(new AbsoluteLocation("/sparse.bin"));
+				assertTrue(f.isSparse());
+				assertEquals(10 * 4096, f.getSize());
+				assertEquals(3 * 4096, f.getStoredSize());
+				TarSparseMap map = f.getSparseMap();
+				assertEquals(3, map.getNumberOfSegments());
+				assertEquals(0, map.getSegmentOffset(0));
+				assertEquals(4096, map.getSegmentSize(0));
+				assertEquals(5 * 4096, map.getSegmentOffset(1));
+				assertEquals(2 * 4096, map.getSegmentSize(1));
+				assertEquals(10 * 4096, map.getSegmentOffset(2));
+				assertEquals(0, map.getSegmentSize(2));
+				assertTrue(Arrays.equals(sparseData, Files.readBinaryFile(f)));
+
+				TarFileEntry f2 = (TarFileEntry) tf.get(new AbsoluteLocation("/notSparse.txt"));
+				assertFalse(f2.isSparse());
+				assertNull(f2.getSparseMap());
+				assertEquals("Contents of notSparse.txt", Files.readTextFile(f2));
+			}
+			finally
+			{
+				tf.close();
+			}
+
+			// Without sparse file detection
+			raf.delete();
+			raf = createTargetFile();
+			tb = createTarBuilder(raf, new TarBuilderSettings().setEntryStrategy(new PaxTarEntryStrategy()));
+			tb.add(sparse);
+			tb.close();
+
+			tf = new TarFile(raf);
+			try
+			{
+				TarFileEntry f = (TarFileEntry) tf.get(new AbsoluteLocation("/sparse.bin"));
+				assertFalse(f.isSparse());
+				assertEquals(10 * 4096, f.getStoredSize());
+				assertTrue(Arrays.equals(sparseData, Files.readBinaryFile(f)));
+			}
+			finally
+			{
+				tf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testAddFilesOnDisk()
+	{
+		// If the target is a file on disk too, the file data is copied
+		// directly between the files.
+		ReadWritableFile raf = createTargetFile();
+		ReadWritableFile f1 = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		ReadWritableFile f2 = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			byte[] f1Data = new byte[100000];
+			for (int i = 0; i < f1Data.length; i++)
+			{
+				f1Data[i] = (byte) (i % 253);
+			}
+			Files.writeData(f1, f1Data);
+			T tb = createTarBuilder(raf, new TarBuilderSettings());
+			tb.add(new NamedReadableFileAdapter(f1, "f1.bin"));
+			tb.add(new NamedReadableFileAdapter(f2, "f2.txt"));
+			addDataFromStream(tb, new ByteArrayInputStream("Contents of f3.txt".getBytes()), new AbsoluteLocation("/f3.txt"), null);
+			tb.close();
+
+			TarFile tf = new TarFile(raf);
+			try
+			{
+				assertEquals(4, tf.size());
+				TarFileEntry tf1 = (TarFileEntry) tf.get(new AbsoluteLocation("/f1.bin"));
+				assertEquals(100000, tf1.getSize());
+				assertTrue(Arrays.equals(f1Data, Files.readBinaryFile(tf1)));
+				TarFileEntry tf2 = (TarFileEntry) tf.get(new AbsoluteLocation("/f2.txt"));
+				assertEquals(0, tf2.getSize());
+				TarFileEntry tf3 = (TarFileEntry) tf.get(new AbsoluteLocation("/f3.txt"));
+				assertEquals("Contents of f3.txt", Files.readTextFile(tf3));
+			}
+			finally
+			{
+				tf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+			f1.delete();
+			f2.delete();
+		}
+	}
+
+	private void buildTarForReadAheadTest(ReadWritableFile target, Directory src, TarBuilderSettings settings)
+	{
+		T tb = createTarBuilder(target, settings);
+		tb.addRecursively(src, new AbsoluteLocation("/src"));
+		// The stream entry gets a fixed time of last modification so that
+		// both archives get the same contents
+		addDataFromStreamWithLastModified(tb, new ByteArrayInputStream("Contents of stream.txt".getBytes()), new AbsoluteLocation("/stream.txt"), new Date(1234567890000L));
+		tb.add(Directories.getFile(src, "big.bin"), new AbsoluteLocation("/again"));
+		tb.close();
+	}
+
+	@Test
+	public void testReadAhead()
+	{
+		Directory src = new RamFileSystemBuilder().create().getRootDirectory();
+		for (int i = 0; i < 10; i++)
+		{
+			Directory d = Directories.newDirectory(src, "d" + i);
+			for (int j = 0; j < 20; j++)
+			{
+				Files.writeText(Directories.newFile(d, "f" + j + ".txt"), "Contents of d" + i + "/f" + j + ".txt");
+			}
+		}
+		// Larger than the memory budget
+		byte[] bigData = new byte[100000];
+		Arrays.fill(bigData, (byte) 'x');
+		Files.writeData(Directories.newFile(src, "big.bin"), bigData);
+
+		ReadWritableFile withoutReadAhead = createTargetFile();
+		ReadWritableFile withReadAhead = createTargetFile();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			buildTarForReadAheadTest(withoutReadAhead, src, new TarBuilderSettings());
+			buildTarForReadAheadTest(withReadAhead, src, new TarBuilderSettings().setReadAheadExecutor(executor).setReadAheadMemoryBudget(2000).setMaxNumberOfReadAheadFiles(16));
+
+			// The archives should be identical
+			assertTrue(Arrays.equals(Files.readBinaryFile(withoutReadAhead), Files.readBinaryFile(withReadAhead)));
+
+			TarFile tf = new TarFile(withReadAhead);
+			try
+			{
+				assertEquals(10 * 21 + 6, tf.size());
+				assertEquals("Contents of stream.txt", Files.readTextFile((TarFileEntry) tf.get(new AbsoluteLocation("/stream.txt"))));
+				assertEquals("Contents of d7/f13.txt", Files.readTextFile((TarFileEntry) tf.get(new AbsoluteLocation("/src/d7/f13.txt"))));
+				assertTrue(Arrays.equals(bigData, Files.readBinaryFile((TarFileEntry) tf.get(new AbsoluteLocation("/again/big.bin")))));
+			}
+			finally
+			{
+				tf.close();
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+			withoutReadAhead.delete();
+			withReadAhead.delete();
+		}
+	}
+
+	@Test
+	public void testReadAheadUnreadableFile()
+	{
+		ReadWritableFile raf = createTargetFile();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			NamedReadableFile unreadable = new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f2.txt"), "f2.txt")
+			{
+				@Override
+				public InputStream openForRead()
+				{
+					throw new WrappedIOException(new IOException("Expected"));
+				}
+			};
+
+			// The error may be reported when any of the later files are added
+			// or when the builder is closed, depending on when the file is
+			// read.
+			int noOfErrors = 0;
+			T tb = createTarBuilder(raf, new TarBuilderSettings().setReadAheadExecutor(executor));
+			NamedReadableFile[] files = new NamedReadableFile[] { new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f1.txt"), "f1.txt"), unreadable, new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f3.txt"), "f3.txt") };
+			for (NamedReadableFile f : files)
+			{
+				try
+				{
+					tb.add(f);
+				}
+				catch (WrappedIOException e)
+				{
+					noOfErrors++;
+				}
+			}
+			try
+			{
+				tb.close();
+			}
+			catch (WrappedIOException e)
+			{
+				noOfErrors++;
+			}
+			assertEquals(1, noOfErrors);
+			assertTrue(tb.isClosed());
+
+			// The Tar file contains the other two files
+			TarFile tf = new TarFile(raf);
+			try
+			{
+				assertEquals(3, tf.size());
+				assertEquals("Contents of f1.txt", Files.readTextFile((TarFileEntry) tf.get(new AbsoluteLocation("/f1.txt"))));
+				assertEquals("Contents of f3.txt", Files.readTextFile((TarFileEntry) tf.get(new AbsoluteLocation("/f3.txt"))));
+			}
+			finally
+			{
+				tf.close();
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testReadAheadInterrupted()
+	{
+		EFile target = Directories.newFile(new RamFileSystemBuilder().create().getRootDirectory(), "t.tar");
+		// This executor never runs the read ahead tasks, so the builder has to
+		// wait for them when it is closed
+		Executor executor = new Executor()
+		{
+			public void execute(Runnable command)
+			{
+				// Nothing
+			}
+		};
+		T tb = createTarBuilder(target, new TarBuilderSettings().setReadAheadExecutor(executor));
+		tb.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f1.txt"), "f1.txt"));
+		Thread.currentThread().interrupt();
+		try
+		{
+			tb.close();
+			fail();
+		}
+		catch (WrappedIOException e)
+		{
+			assertTrue(e.getCause() instanceof InterruptedIOException);
+		}
+		finally
+		{
+			// The interrupt status is restored. This clears it.
+			assertTrue(Thread.interrupted());
+		}
+	}
+
+	private void assertHardLinksInTar(ReadWritableFile raf, String dirName, byte[] f1Data)
+	{
+		assertTrue(raf.getDataSize() < 2 * f1Data.length);
+
+		TarFile tf = new TarFile(raf);
+		try
+		{
+			assertEquals(11, tf.size());
+			for (String root : new String[] { "/src", "/c" })
+			{
+				assertTrue(Arrays.equals(f1Data, Files.readBinaryFile((TarFileEntry) tf.get(new AbsoluteLocation(root + "/" + dirName + "/f1.bin")))));
+				assertTrue(Arrays.equals(f1Data, Files.readBinaryFile((TarFileEntry) tf.get(new AbsoluteLocation(root + "/f2.bin")))));
+				assertEquals("Contents of f3.txt", Files.readTextFile((TarFileEntry) tf.get(new AbsoluteLocation(root + "/f3.txt"))));
+			}
+		}
+		finally
+		{
+			tf.close();
+		}
+
+		// The links are extracted as hard links
+		File target = TestFileSupport.createTemporaryDir();
+		try
+		{
+			new TarExtractor(raf).extract(target);
+			Object key = HardLinks.getLinkKey(new File(target, "src/" + dirName + "/f1.bin"));
+			assertNotNull(key);
+			assertEquals(key, HardLinks.getLinkKey(new File(target, "src/f2.bin")));
+			assertEquals(key, HardLinks.getLinkKey(new File(target, "c/" + dirName + "/f1.bin")));
+			assertEquals(key, HardLinks.getLinkKey(new File(target, "c/f2.bin")));
+			assertNull(HardLinks.getLinkKey(new File(target, "src/f3.txt")));
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(target);
+		}
+	}
+
+	@Test
+	public void testDetectHardLinks()
+	{
+		File src = TestFileSupport.createTemporaryDir();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			// Long enough to not fit in the link name field of the Tar header
+			String dirName = "a_directory_with_a_name_that_is_too_long_to_fit_in_the_link_name_field_of_the_tar_entry_header";
+			File d = new File(src, dirName);
+			assertTrue(d.mkdir());
+			byte[] f1Data = new byte[100000];
+			for (int i = 0; i < f1Data.length; i++)
+			{
+				f1Data[i] = (byte) (i % 251);
+			}
+			File f1 = new File(d, "f1.bin");
+			Files.writeData(new ReadWritableFileAdapter(f1), f1Data);
+			assertTrue(HardLinks.createLink(new File(src, "f2.bin"), f1));
+			Files.writeText(new ReadWritableFileAdapter(new File(src, "f3.txt")), "Contents of f3.txt");
+
+			TarEntryStrategy[] strategies = new TarEntryStrategy[] { new GnuTarEntryStrategy(), new PaxTarEntryStrategy() };
+			for (TarEntryStrategy strategy : strategies)
+			{
+				for (int i = 0; i < 2; i++)
+				{
+					TarBuilderSettings settings = new TarBuilderSettings().setEntryStrategy(strategy).setDetectHardLinks(true);
+					if (i == 1)
+					{
+						settings.setReadAheadExecutor(executor);
+					}
+					ReadWritableFile raf = createTargetFile();
+					try
+					{
+						T tb = createTarBuilder(raf, settings);
+						// The file in the directory is added first, so the
+						// link has a long link name.
+						tb.add(f1, new AbsoluteLocation("/src/" + dirName));
+						tb.add(new File(src, "f2.bin"), new AbsoluteLocation("/src"));
+						tb.add(new File(src, "f3.txt"), new AbsoluteLocation("/src"));
+						// All files with the data are links now
+						tb.addRecursively(src, new AbsoluteLocation("/c"));
+						tb.close();
+						assertHardLinksInTar(raf, dirName, f1Data);
+					}
+					finally
+					{
+						raf.delete();
+					}
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+			TestFileSupport.deleteRecursively(src);
+		}
+	}
 }
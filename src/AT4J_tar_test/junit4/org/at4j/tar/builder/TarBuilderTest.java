@@ -18,11 +18,31 @@
  */
 package org.at4j.tar.builder;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.at4j.tar.TarFile;
+import org.at4j.tar.TarFileEntry;
+import org.at4j.tar.TarFileParseException;
+import org.at4j.test.support.TestFileSupport;
+import org.entityfs.Directory;
+import org.entityfs.RandomAccess;
 import org.entityfs.ReadWritableFile;
 import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.ram.RamFileSystemBuilder;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.Directories;
+import org.entityfs.util.Files;
+import org.entityfs.util.io.ReadWritableFileAdapter;
 import org.junit.Test;
 
 /**
@@ -64,10 +84,170 @@ public class TarBuilderTest extends AbstractTarBuilderTest<TarBuilder>
 		}
 	}
 
-	// So that this is recognized as a test class
+	@Override
+	protected void addDataFromStreamWithLastModified(TarBuilder tb, InputStream is, AbsoluteLocation l, Date lastModified)
+	{
+		try
+		{
+			try
+			{
+				// The callback is called directly to get a fixed time of last
+				// modification.
+				tb.addStreamCallback(l, is, tb.getDefaultFileEntrySettings(), lastModified);
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void assertIndexIsUsed(ReadWritableFile tar, ReadWritableFile index, int noOfEntries)
+	{
+		TarFile scanned = new TarFile(tar);
+		try
+		{
+			TarFile indexed = new TarFile(tar, null, index);
+			try
+			{
+				assertEquals(noOfEntries, indexed.size());
+				assertSameEntries(scanned, indexed);
+			}
+			finally
+			{
+				indexed.close();
+			}
+		}
+		finally
+		{
+			scanned.close();
+		}
+
+		// Break the first entry header without changing the size or the time
+		// of last modification of the Tar file. The index can still be used.
+		File tarFile = ((ReadWritableFileAdapter) tar).getFile();
+		long lastModified = tarFile.lastModified();
+		RandomAccess ra = tar.openForRandomAccess(RandomAccessMode.READ_WRITE);
+		try
+		{
+			ra.write('x');
+		}
+		finally
+		{
+			ra.close();
+		}
+		assertTrue(tarFile.setLastModified(lastModified));
+		try
+		{
+			new TarFile(tar);
+			fail();
+		}
+		catch (TarFileParseException e)
+		{
+			// ok
+		}
+		TarFile tf = new TarFile(tar, null, index);
+		try
+		{
+			assertEquals(noOfEntries, tf.size());
+			assertEquals("Contents of d3/f2.txt", Files.readTextFile((TarFileEntry) tf.get(new AbsoluteLocation("/src/d3/f2.txt"))));
+			assertEquals("From a stream", Files.readTextFile((TarFileEntry) tf.get(new AbsoluteLocation("/stream.txt"))));
+		}
+		finally
+		{
+			tf.close();
+		}
+	}
+
+	private void addFilesForIndexTest(TarBuilder tb, Directory src)
+	{
+		tb.addRecursively(src, new AbsoluteLocation("/src"));
+		tb.add(new ByteArrayInputStream("From a stream".getBytes()), new AbsoluteLocation("/stream.txt"));
+		tb.add(Directories.getFile(Directories.getDirectory(src, "d1"), "f1.txt"), new AbsoluteLocation("/again"));
+	}
+
 	@Test
-	public void testDummy()
+	public void testWriteIndex()
 	{
-		// Empty
+		Directory src = new RamFileSystemBuilder().create().getRootDirectory();
+		for (int i = 0; i < 5; i++)
+		{
+			Directory d = Directories.newDirectory(src, "d" + i);
+			for (int j = 0; j < 4; j++)
+			{
+				Files.writeText(Directories.newFile(d, "f" + j + ".txt"), "Contents of d" + i + "/f" + j + ".txt");
+			}
+		}
+		// A file with a long name
+		Files.writeText(Directories.newFile(src, getNumericalName(150) + ".txt"), "Long name");
+		// The root, /src, /again, five directories with four files each, the
+		// long name file, the stream and the file in /again
+		int noOfEntries = 31;
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			TarEntryStrategy[] strategies = new TarEntryStrategy[] { new GnuTarEntryStrategy(), new PaxTarEntryStrategy() };
+			for (TarEntryStrategy strategy : strategies)
+			{
+				for (boolean readAhead : new boolean[] { false, true })
+				{
+					ReadWritableFile tar = createTargetFile();
+					ReadWritableFile index = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+					try
+					{
+						TarBuilderSettings settings = new TarBuilderSettings().setEntryStrategy(strategy).setIndexFile(index);
+						if (readAhead)
+						{
+							settings.setReadAheadExecutor(executor);
+						}
+						TarBuilder tb = new TarBuilder(tar, settings);
+						addFilesForIndexTest(tb, src);
+						tb.close();
+
+						assertIndexIsUsed(tar, index, noOfEntries);
+					}
+					finally
+					{
+						tar.delete();
+						index.delete();
+					}
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		// A Tar builder created with a RandomAccess. The index is only
+		// validated against the size of the Tar file.
+		ReadWritableFile tar = createTargetFile();
+		ReadWritableFile index = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			RandomAccess ra = tar.openForRandomAccess(RandomAccessMode.READ_WRITE);
+			try
+			{
+				TarBuilder tb = new TarBuilder(ra, new TarBuilderSettings().setIndexFile(index));
+				addFilesForIndexTest(tb, src);
+				tb.close();
+			}
+			finally
+			{
+				ra.close();
+			}
+
+			assertIndexIsUsed(tar, index, noOfEntries);
+		}
+		finally
+		{
+			tar.delete();
+			index.delete();
+		}
 	}
 }
@@ -25,6 +25,7 @@ import static org.junit.Assert.fail;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Date;
 
 import org.at4j.comp.bzip2.BZip2ReadableFile;
 import org.at4j.comp.bzip2.BZip2WritableFile;
@@ -33,6 +34,7 @@ import org.at4j.tar.TarFile;
 import org.at4j.tar.TarFileEntry;
 import org.at4j.tar.TarFileParseException;
 import org.entityfs.Directory;
+import org.entityfs.EFile;
 import org.entityfs.NamedReadableFile;
 import org.entityfs.ReadWritableFile;
 import org.entityfs.el.AbsoluteLocation;
@@ -95,6 +97,39 @@ public class TarStreamBuilderTest extends AbstractTarBuilderTest<TarStreamBuilde
 		}
 	}
 
+	@Override
+	protected void addDataFromStreamWithLastModified(TarStreamBuilder tb, InputStream is, AbsoluteLocation l, Date lastModified)
+	{
+		// Read the stream to a file with the supplied time of last
+		// modification first
+		try
+		{
+			EFile f = Directories.newFile(new RamFileSystemBuilder().create().getRootDirectory(), l.getName());
+			try
+			{
+				OutputStream os = f.openForWrite();
+				try
+				{
+					StreamUtil.copyStreams(is, os, 4096);
+				}
+				finally
+				{
+					os.close();
+				}
+			}
+			finally
+			{
+				is.close();
+			}
+			f.setLastModified(lastModified.getTime());
+			tb.add(f, l.getParentLocation());
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
 	@Test
 	public void testCreateCompressedArchiveOnStream() throws IOException
 	{
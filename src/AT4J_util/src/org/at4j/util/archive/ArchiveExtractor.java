@@ -19,7 +19,10 @@
 package org.at4j.util.archive;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.at4j.archive.Archive;
 import org.at4j.archive.ArchiveDirectoryEntry;
@@ -29,6 +32,7 @@ import org.at4j.archive.ArchiveSymbolicLinkEntry;
 import org.at4j.support.entityfs.ExistingDirectory;
 import org.at4j.support.entityfs.FutureDirectory;
 import org.at4j.support.entityfs.PotentialDirectory;
+import org.at4j.support.util.ParallelTaskRunner;
 import org.entityfs.Directory;
 import org.entityfs.DirectoryView;
 import org.entityfs.FileSystem;
@@ -46,6 +50,16 @@ import org.entityfs.support.filter.Filter;
  * An extraction operation is configured with an optional
  * {@link ExtractSpecification} object. It can be used to fine-tune the
  * extraction process.
+ * <p>
+ * If the specification has an {@link Executor}, file entries are extracted in
+ * parallel. All directories are created by the calling thread before the
+ * files are extracted, and the directories are post-processed after all files
+ * have been extracted. The {@link EntryExtractionStrategy} must be safe to
+ * use concurrently from several threads in that case. If one or several file
+ * entries cannot be extracted, the error from the entry that comes first in
+ * the archive is thrown, just like when extracting the entries sequentially.
+ * If the target directory is not given as a {@code File}, it should be in a
+ * locking file system when extracting in parallel.
  * @author Karl Gustafsson
  * @since 1.0
  * @see org.at4j.tar.TarExtractor
@@ -67,7 +81,45 @@ public class ArchiveExtractor
 		m_archive = archive;
 	}
 
-	private void extractDirectory(ArchiveDirectoryEntry<?, ?> dir, PotentialDirectory target, ExtractSpecification spec)
+	/**
+	 * A file entry that should be extracted when extracting in parallel.
+	 */
+	private static final class FileExtraction
+	{
+		private final ArchiveFileEntry<?, ?> m_entry;
+		private final PotentialDirectory m_target;
+
+		private FileExtraction(ArchiveFileEntry<?, ?> entry, PotentialDirectory target)
+		{
+			m_entry = entry;
+			m_target = target;
+		}
+	}
+
+	/**
+	 * A directory that should be post-processed after all file entries have
+	 * been extracted when extracting in parallel.
+	 */
+	private static final class DirectoryPostProcessing
+	{
+		private final ArchiveDirectoryEntry<?, ?> m_entry;
+		private final Directory m_directory;
+
+		private DirectoryPostProcessing(ArchiveDirectoryEntry<?, ?> entry, Directory directory)
+		{
+			m_entry = entry;
+			m_directory = directory;
+		}
+	}
+
+	/**
+	 * Extract the directory's child entries.
+	 * @param files If this is {@code null}, file entries are extracted
+	 * directly. If not, they are added to this list and extracted later.
+	 * @param postProcessing If {@code files} is not {@code null}, directories
+	 * to post-process are added to this list.
+	 */
+	private void extractDirectory(ArchiveDirectoryEntry<?, ?> dir, PotentialDirectory target, ExtractSpecification spec, List<FileExtraction> files, List<DirectoryPostProcessing> postProcessing)
 	{
 		Filter<? super ArchiveEntry<?, ?>> filter = spec.getFilter();
 		for (Map.Entry<String, ?> me : dir.getChildEntries().entrySet())
@@ -80,7 +132,14 @@ public class ArchiveExtractor
 				filterMatches = true;
 				if (entry instanceof ArchiveFileEntry<?, ?>)
 				{
-					spec.getEntryExtractionStrategy().extractFile((ArchiveFileEntry<?, ?>) entry, target, spec);
+					if (files != null)
+					{
+						files.add(new FileExtraction((ArchiveFileEntry<?, ?>) entry, target));
+					}
+					else
+					{
+						spec.getEntryExtractionStrategy().extractFile((ArchiveFileEntry<?, ?>) entry, target, spec);
+					}
 				}
 				else if (entry instanceof ArchiveDirectoryEntry<?, ?>)
 				{
@@ -112,18 +171,81 @@ public class ArchiveExtractor
 				// but failed.
 				if (thisDir != null) 
 				{
-					extractDirectory((ArchiveDirectoryEntry<?, ?>) entry, thisDir, spec);
+					extractDirectory((ArchiveDirectoryEntry<?, ?>) entry, thisDir, spec, files, postProcessing);
 					
 					if (filterMatches)
 					{
 						// Post-process the created directory now that we have
 						// extracted all of its child entries. This can be used to
 						// set the last modification time of the directory.
-						spec.getEntryExtractionStrategy().postProcessDirectory((ArchiveDirectoryEntry<?, ?>) entry, ((ExistingDirectory) thisDir).getDirectory(), spec);
+						if (files != null)
+						{
+							postProcessing.add(new DirectoryPostProcessing((ArchiveDirectoryEntry<?, ?>) entry, ((ExistingDirectory) thisDir).getDirectory()));
+						}
+						else
+						{
+							spec.getEntryExtractionStrategy().postProcessDirectory((ArchiveDirectoryEntry<?, ?>) entry, ((ExistingDirectory) thisDir).getDirectory(), spec);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Extract the file entries using the specification's executor. If one or
+	 * several of the extractions fail, the error from the entry that comes
+	 * first in the archive is thrown. No new extractions are started after an
+	 * extraction has failed.
+	 */
+	private void extractFilesInParallel(List<FileExtraction> files, final ExtractSpecification spec, Executor executor) throws WrappedIOException
+	{
+		ParallelTaskRunner runner = new ParallelTaskRunner(executor, spec.getMaxNumberOfConcurrentFileExtractions());
+		try
+		{
+			for (int i = 0; i < files.size(); i++)
+			{
+				final FileExtraction fe = files.get(i);
+				boolean submitted = runner.submit(i, new Runnable()
+				{
+					public void run()
+					{
+						spec.getEntryExtractionStrategy().extractFile(fe.m_entry, fe.m_target, spec);
 					}
+				});
+				if (!submitted)
+				{
+					break;
 				}
 			}
 		}
+		finally
+		{
+			runner.waitForAll();
+		}
+		runner.throwFirstError();
+	}
+
+	private void extractInternal(PotentialDirectory target, ExtractSpecification spec) throws WrappedIOException
+	{
+		Executor executor = spec.getExecutor();
+		if (executor == null)
+		{
+			extractDirectory(m_archive.getRootEntry(), target, spec, null, null);
+		}
+		else
+		{
+			// Create all directories first. Then extract the files in parallel
+			// and, last, post-process the directories.
+			List<FileExtraction> files = new ArrayList<FileExtraction>();
+			List<DirectoryPostProcessing> postProcessing = new ArrayList<DirectoryPostProcessing>();
+			extractDirectory(m_archive.getRootEntry(), target, spec, files, postProcessing);
+			extractFilesInParallel(files, spec, executor);
+			for (DirectoryPostProcessing dpp : postProcessing)
+			{
+				spec.getEntryExtractionStrategy().postProcessDirectory(dpp.m_entry, dpp.m_directory, spec);
+			}
+		}
 	}
 
 	/**
@@ -134,7 +256,7 @@ public class ArchiveExtractor
 	 */
 	public void extract(DirectoryView target) throws WrappedIOException
 	{
-		extractDirectory(m_archive.getRootEntry(), new ExistingDirectory((Directory) target.getViewedEntity()), new ExtractSpecification());
+		extractInternal(new ExistingDirectory((Directory) target.getViewedEntity()), new ExtractSpecification());
 	}
 
 	/**
@@ -148,10 +270,15 @@ public class ArchiveExtractor
 	 */
 	public void extract(DirectoryView target, ExtractSpecification spec) throws WrappedIOException
 	{
-		extractDirectory(m_archive.getRootEntry(), new ExistingDirectory((Directory) target.getViewedEntity()), spec);
+		extractInternal(new ExistingDirectory((Directory) target.getViewedEntity()), spec);
 	}
 
-	private FileSystem getTargetFileSystem(File f) throws EntityNotFoundException, NotADirectoryException
+	/**
+	 * Create a file system for the target directory. If entries are extracted
+	 * in parallel, the file system must be locking to make it safe to use from
+	 * several threads.
+	 */
+	private FileSystem getTargetFileSystem(File f, boolean locking) throws EntityNotFoundException, NotADirectoryException
 	{
 		if (!f.exists())
 		{
@@ -162,7 +289,12 @@ public class ArchiveExtractor
 			throw new NotADirectoryException("The target " + f + " is not a directory");
 		}
 
-		return new FSRWFileSystemBuilder().disableAccessControls().disableEntityValidityControls().setRoot(f).create();
+		FSRWFileSystemBuilder fsb = new FSRWFileSystemBuilder().disableAccessControls().disableEntityValidityControls().setRoot(f);
+		if (locking)
+		{
+			fsb.enableLocking();
+		}
+		return fsb.create();
 	}
 
 	/**
@@ -175,10 +307,10 @@ public class ArchiveExtractor
 	 */
 	public void extract(File target) throws WrappedIOException, EntityNotFoundException, NotADirectoryException
 	{
-		FileSystem targetFs = getTargetFileSystem(target);
+		FileSystem targetFs = getTargetFileSystem(target, false);
 		try
 		{
-			extractDirectory(m_archive.getRootEntry(), new ExistingDirectory(targetFs.getRootDirectory()), new ExtractSpecification());
+			extractInternal(new ExistingDirectory(targetFs.getRootDirectory()), new ExtractSpecification());
 		}
 		finally
 		{
@@ -199,10 +331,10 @@ public class ArchiveExtractor
 	 */
 	public void extract(File target, ExtractSpecification spec) throws WrappedIOException, EntityNotFoundException, NotADirectoryException
 	{
-		FileSystem targetFs = getTargetFileSystem(target);
+		FileSystem targetFs = getTargetFileSystem(target, spec.getExecutor() != null);
 		try
 		{
-			extractDirectory(m_archive.getRootEntry(), new ExistingDirectory(targetFs.getRootDirectory()), spec);
+			extractInternal(new ExistingDirectory(targetFs.getRootDirectory()), spec);
 		}
 		finally
 		{
@@ -18,6 +18,8 @@
  */
 package org.at4j.util.archive;
 
+import java.util.concurrent.Executor;
+
 import org.at4j.archive.ArchiveEntry;
 import org.entityfs.ostrat.DoOverwriteAndLogWarning;
 import org.entityfs.ostrat.OverwriteStrategy;
@@ -34,6 +36,9 @@ import org.entityfs.support.filter.Filter;
  * <li>Do extract entries ({@link EntryExtractor}).</li>
  * <li>Overwrite existing entities and print a warning.</li>
  * <li>Don't preserve modification times.</li>
+ * <li>Extract all entries in the calling thread (no executor).</li>
+ * <li>When extracting with an executor, extract at most as many files
+ * concurrently as there are available processors.</li>
  * </ul>
  * @author Karl Gustafsson
  * @since 1.0
@@ -44,6 +49,8 @@ public class ExtractSpecification
 	private EntryExtractionStrategy m_entryExtractionStrategy = EntryExtractor.INSTANCE;
 	private OverwriteStrategy m_overwriteStrategy = DoOverwriteAndLogWarning.INSTANCE;
 	private boolean m_preserveModificationTimes = false;
+	private Executor m_executor;
+	private int m_maxNumberOfConcurrentFileExtractions = Runtime.getRuntime().availableProcessors();
 
 	/**
 	 * Get the filter for the extraction operation.
@@ -132,4 +139,67 @@ public class ExtractSpecification
 	{
 		return m_preserveModificationTimes;
 	}
+
+	/**
+	 * Set an executor that is used for extracting file entries in parallel.
+	 * All directories are created by the calling thread before the file
+	 * entries are extracted. The extraction method does not return until all
+	 * file entries have been extracted.
+	 * <p>
+	 * The entry extraction strategy must be thread safe if an executor is
+	 * used.
+	 * @param executor The executor, or {@code null} if all entries should be
+	 * extracted in the calling thread.
+	 * @return {@code this}
+	 * @see #setMaxNumberOfConcurrentFileExtractions(int)
+	 * @since 1.2
+	 */
+	public ExtractSpecification setExecutor(Executor executor)
+	{
+		m_executor = executor;
+		return this;
+	}
+
+	/**
+	 * Get the executor used for extracting file entries in parallel.
+	 * @return The executor, or {@code null} if entries are extracted in the
+	 * calling thread.
+	 * @since 1.2
+	 */
+	public Executor getExecutor()
+	{
+		return m_executor;
+	}
+
+	/**
+	 * Set the maximum number of file entries that may be extracted
+	 * concurrently when an executor is used. This limits the number of
+	 * simultaneously open entry streams and target files.
+	 * @param n The maximum number of concurrent file extractions. This must be
+	 * at least {@code 1}.
+	 * @return {@code this}
+	 * @throws IllegalArgumentException If {@code n} is less than {@code 1}.
+	 * @see #setExecutor(Executor)
+	 * @since 1.2
+	 */
+	public ExtractSpecification setMaxNumberOfConcurrentFileExtractions(int n) throws IllegalArgumentException
+	{
+		if (n < 1)
+		{
+			throw new IllegalArgumentException("Invalid maximum number of concurrent file extractions " + n + ". It must be at least 1");
+		}
+		m_maxNumberOfConcurrentFileExtractions = n;
+		return this;
+	}
+
+	/**
+	 * Get the maximum number of file entries that may be extracted
+	 * concurrently when an executor is used.
+	 * @return The maximum number of concurrent file extractions.
+	 * @since 1.2
+	 */
+	public int getMaxNumberOfConcurrentFileExtractions()
+	{
+		return m_maxNumberOfConcurrentFileExtractions;
+	}
 }
@@ -26,9 +26,14 @@ import java.io.File;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.at4j.archive.Archive;
+import org.at4j.archive.ArchiveFileEntry;
 import org.at4j.archive.NameGlobAEF;
+import org.at4j.support.entityfs.PotentialDirectory;
 import org.at4j.support.nio.charset.Charsets;
 import org.at4j.tar.TarFile;
 import org.at4j.test.support.At4JTestCase;
@@ -63,10 +68,19 @@ public class ArchiveExtractorTest extends At4JTestCase
 	}
 
 	private void extract(Archive<?, ?> arc, Directory target, boolean preserveModificationTimes)
+	{
+		extract(arc, target, preserveModificationTimes, null);
+	}
+
+	private void extract(Archive<?, ?> arc, Directory target, boolean preserveModificationTimes, Executor executor)
 	{
 		ArchiveExtractor ae = new ArchiveExtractor(arc);
 		ExtractSpecification es = new ExtractSpecification();
 		es.setPreserveModificationTimes(preserveModificationTimes);
+		if (executor != null)
+		{
+			es.setExecutor(executor).setMaxNumberOfConcurrentFileExtractions(2);
+		}
 		ae.extract(target, es);
 	}
 	
@@ -127,7 +141,7 @@ public class ArchiveExtractorTest extends At4JTestCase
 		}
 	}
 	
-	private void testSomeFilesAndDirectoriesInTar(boolean preserveModificationTimes)
+	private void testSomeFilesAndDirectoriesInTar(boolean preserveModificationTimes, Executor executor)
 	{
 		Directory target = TestFileSupport.createTemporaryDirectory();
 		try
@@ -135,7 +149,7 @@ public class ArchiveExtractorTest extends At4JTestCase
 			TarFile tf = readTar("tar/someFilesAndDirectories.tar");
 			try
 			{
-				extract(tf, target, preserveModificationTimes);
+				extract(tf, target, preserveModificationTimes, executor);
 			}
 			finally
 			{
@@ -173,16 +187,30 @@ public class ArchiveExtractorTest extends At4JTestCase
 	@Test
 	public void testSomeFilesAndDirectoriesInTar()
 	{
-		testSomeFilesAndDirectoriesInTar(false);
+		testSomeFilesAndDirectoriesInTar(false, null);
 	}
 
 	@Test
 	public void testSomeFilesAndDirectoriesInTarPreserveModificationTimes()
 	{
-		testSomeFilesAndDirectoriesInTar(true);
+		testSomeFilesAndDirectoriesInTar(true, null);
 	}
 
-	private void testSomeFilesAndDirectoriesInZip(boolean preserveModificationTimes)
+	@Test
+	public void testSomeFilesAndDirectoriesInTarInParallel()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			testSomeFilesAndDirectoriesInTar(true, executor);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private void testSomeFilesAndDirectoriesInZip(boolean preserveModificationTimes, Executor executor)
 	{
 		Directory target = TestFileSupport.createTemporaryDirectory();
 		try
@@ -190,7 +218,7 @@ public class ArchiveExtractorTest extends At4JTestCase
 			ZipFile zf = readZip("zip/InfoZipFunkyUnix.zip");
 			try
 			{
-				extract(zf, target, preserveModificationTimes);
+				extract(zf, target, preserveModificationTimes, executor);
 			}
 			finally
 			{
@@ -221,13 +249,27 @@ public class ArchiveExtractorTest extends At4JTestCase
 	@Test
 	public void testSomeFilesAndDirectoriesInZip()
 	{
-		testSomeFilesAndDirectoriesInZip(false);
+		testSomeFilesAndDirectoriesInZip(false, null);
 	}
 	
 	@Test
 	public void testSomeFilesAndDirectoriesInZipPreserveModificationTimes()
 	{
-		testSomeFilesAndDirectoriesInZip(true);
+		testSomeFilesAndDirectoriesInZip(true, null);
+	}
+
+	@Test
+	public void testSomeFilesAndDirectoriesInZipInParallel()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			testSomeFilesAndDirectoriesInZip(true, executor);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
 	}
 	
 	@Test
@@ -310,6 +352,136 @@ public class ArchiveExtractorTest extends At4JTestCase
 		}
 	}
 
+	@Test
+	public void testLockingTargetFileSystemAndFilterInParallel()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			File targetDir = TestFileSupport.createTemporaryDir();
+			try
+			{
+				FileSystem fs = new FSRWFileSystemBuilder().setRoot(targetDir).enableLocking().create();
+				try
+				{
+					Directory target = fs.getRootDirectory();
+					TarFile tf = readTar("tar/someFilesAndDirectories.tar");
+					try
+					{
+						new ArchiveExtractor(tf).extract(target, new ExtractSpecification().setFilter(new NameGlobAEF(new Glob("f*"))).setExecutor(executor));
+					}
+					finally
+					{
+						tf.close();
+					}
+
+					assertEquals(2, Directories.size(target));
+					assertEquals("Contents of f1.txt\n", Files.readTextFile(Directories.getFile(target, "f1.txt")));
+					DirectoryView d1 = Directories.getDirectory(target, "d1");
+					assertEquals(1, Directories.size(d1));
+					DirectoryView d1d = Directories.getDirectory(d1, "d");
+					assertEquals(1, Directories.size(d1d));
+					assertEquals("Contents of f2.txt\n", Files.readTextFile(Directories.getFile(d1d, "f2.txt")));
+				}
+				finally
+				{
+					fs.close();
+				}
+			}
+			finally
+			{
+				TestFileSupport.deleteRecursively(targetDir);
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Entry extractor that fails for all files. It waits a while before
+	 * failing for f1.txt.
+	 */
+	private static class FailingEntryExtractor extends EntryExtractor
+	{
+		@Override
+		public void extractFile(ArchiveFileEntry<?, ?> f, PotentialDirectory target, ExtractSpecification spec)
+		{
+			if ("f1.txt".equals(f.getName()))
+			{
+				try
+				{
+					Thread.sleep(200);
+				}
+				catch (InterruptedException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+			throw new IllegalStateException("Failed to extract " + f.getName());
+		}
+	}
+
+	private String extractAndGetErrorMessage(Archive<?, ?> arc, Executor executor)
+	{
+		Directory target = TestFileSupport.createTemporaryDirectory();
+		try
+		{
+			new ArchiveExtractor(arc).extract(target, new ExtractSpecification().setEntryExtractionStrategy(new FailingEntryExtractor()).setExecutor(executor));
+			fail();
+			return null;
+		}
+		catch (IllegalStateException e)
+		{
+			return e.getMessage();
+		}
+		finally
+		{
+			TestFileSupport.deleteRecursively(target);
+		}
+	}
+
+	@Test
+	public void testParallelExtractionReportsSameErrorAsSequentialExtraction()
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			TarFile tf = readTar("tar/someFilesAndDirectories.tar");
+			try
+			{
+				String expected = extractAndGetErrorMessage(tf, null);
+				for (int i = 0; i < 3; i++)
+				{
+					assertEquals(expected, extractAndGetErrorMessage(tf, executor));
+				}
+			}
+			finally
+			{
+				tf.close();
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testIllegalMaxNumberOfConcurrentFileExtractions()
+	{
+		try
+		{
+			new ExtractSpecification().setMaxNumberOfConcurrentFileExtractions(0);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			// ok
+		}
+	}
+
 	@Test
 	public void testZipFile()
 	{
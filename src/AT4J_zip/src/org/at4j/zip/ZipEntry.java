@@ -185,6 +185,17 @@ public abstract class ZipEntry extends AbstractArchiveEntry<ZipEntry, ZipDirecto
 		m_comment = zecd.getFileComment();
 	}
 
+	/**
+	 * Get the Zip file's entry collaborator.
+	 * @return The entry collaborator.
+	 * @since 1.2
+	 */
+	@Override
+	protected ZipEntryCollaborator getCollaborator()
+	{
+		return (ZipEntryCollaborator) super.getCollaborator();
+	}
+
 	/**
 	 * Get the PK-Zip version (or equivalent) that was used to create this Zip
 	 * entry. The version method is the version * 10, i.e. if this method
@@ -23,6 +23,7 @@ import java.util.Date;
 
 import org.at4j.support.lang.UnsignedByte;
 import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
 import org.at4j.support.lang.UnsignedShort;
 import org.at4j.zip.comp.ZipEntryCompressionMethod;
 import org.at4j.zip.ef.ZipEntryExtraField;
@@ -48,16 +49,19 @@ public class ZipEntryCentralFileHeaderData
 	private ZipEntryCompressionMethod m_compressionMethod;
 	private Date m_lastModificationTime;
 	private UnsignedInteger m_crc32;
-	private UnsignedInteger m_compressedSize;
-	private UnsignedInteger m_uncompressedSize;
+	private UnsignedLong m_compressedSize;
+	private UnsignedLong m_uncompressedSize;
 	private UnsignedShort m_diskNumberStart;
 	private ZipInternalFileAttributes m_internalFileAttributes;
 	private ZipExternalFileAttributes m_externalFileAttributes;
-	private UnsignedInteger m_relativeOffsetOfLocalHeader;
+	private UnsignedLong m_relativeOffsetOfLocalHeader;
 	private AbsoluteLocation m_location;
 	private Collection<ZipEntryExtraField> m_extraFields;
+	private byte[] m_encodedExtraFields;
 	private String m_fileComment;
 	private boolean m_directory;
+	private long m_startPositionOfCentralFileHeader;
+	private int m_sizeOfCentralFileHeader;
 
 	public void setVersionUsedToCreate(UnsignedByte versionUsedToCreate)
 	{
@@ -120,22 +124,22 @@ public class ZipEntryCentralFileHeaderData
 		m_crc32 = crc32;
 	}
 
-	public UnsignedInteger getCompressedSize()
+	public UnsignedLong getCompressedSize()
 	{
 		return m_compressedSize;
 	}
 
-	public void setCompressedSize(UnsignedInteger compressedSize)
+	public void setCompressedSize(UnsignedLong compressedSize)
 	{
 		m_compressedSize = compressedSize;
 	}
 
-	public UnsignedInteger getUncompressedSize()
+	public UnsignedLong getUncompressedSize()
 	{
 		return m_uncompressedSize;
 	}
 
-	public void setUncompressedSize(UnsignedInteger uncompressedSize)
+	public void setUncompressedSize(UnsignedLong uncompressedSize)
 	{
 		m_uncompressedSize = uncompressedSize;
 	}
@@ -170,12 +174,12 @@ public class ZipEntryCentralFileHeaderData
 		m_externalFileAttributes = externalFileAttributes;
 	}
 
-	public UnsignedInteger getRelativeOffsetOfLocalHeader()
+	public UnsignedLong getRelativeOffsetOfLocalHeader()
 	{
 		return m_relativeOffsetOfLocalHeader;
 	}
 
-	public void setRelativeOffsetOfLocalHeader(UnsignedInteger relativeOffsetOfLocalHeader)
+	public void setRelativeOffsetOfLocalHeader(UnsignedLong relativeOffsetOfLocalHeader)
 	{
 		m_relativeOffsetOfLocalHeader = relativeOffsetOfLocalHeader;
 	}
@@ -200,6 +204,16 @@ public class ZipEntryCentralFileHeaderData
 		m_extraFields = extraFields;
 	}
 
+	public byte[] getEncodedExtraFields()
+	{
+		return m_encodedExtraFields;
+	}
+
+	public void setEncodedExtraFields(byte[] encodedExtraFields)
+	{
+		m_encodedExtraFields = encodedExtraFields;
+	}
+
 	public String getFileComment()
 	{
 		return m_fileComment;
@@ -219,4 +233,34 @@ public class ZipEntryCentralFileHeaderData
 	{
 		m_directory = directory;
 	}
+
+	/**
+	 * Get the position of this entry's central file header record in the Zip
+	 * file.
+	 * @since 1.2
+	 */
+	public long getStartPositionOfCentralFileHeader()
+	{
+		return m_startPositionOfCentralFileHeader;
+	}
+
+	public void setStartPositionOfCentralFileHeader(long pos)
+	{
+		m_startPositionOfCentralFileHeader = pos;
+	}
+
+	/**
+	 * Get the size of this entry's central file header record, including the
+	 * file name, the extra fields and the file comment.
+	 * @since 1.2
+	 */
+	public int getSizeOfCentralFileHeader()
+	{
+		return m_sizeOfCentralFileHeader;
+	}
+
+	public void setSizeOfCentralFileHeader(int size)
+	{
+		m_sizeOfCentralFileHeader = size;
+	}
 }
@@ -21,6 +21,7 @@ package org.at4j.zip;
 import java.util.Map;
 
 import org.at4j.archive.ArchiveEntryCollaborator;
+import org.at4j.support.comp.DeflateIndexCache;
 import org.entityfs.RandomlyAccessibleFile;
 import org.entityfs.el.AbsoluteLocation;
 
@@ -35,6 +36,8 @@ import org.entityfs.el.AbsoluteLocation;
  */
 public class ZipEntryCollaborator extends ArchiveEntryCollaborator<ZipEntry, ZipDirectoryEntry>
 {
+	private final DeflateIndexCache m_deflateIndexCache = new DeflateIndexCache();
+
 	/**
 	 * Create a new collaborator.
 	 * @param zipFile The Zip file. This file must be locked for reading while
@@ -49,4 +52,15 @@ public class ZipEntryCollaborator extends ArchiveEntryCollaborator<ZipEntry, Zip
 	{
 		super(zipFile, entryMap);
 	}
+
+	/**
+	 * Get the cache for the indexes used for random access to deflated
+	 * entries.
+	 * @return The deflate index cache.
+	 * @since 1.2
+	 */
+	public DeflateIndexCache getDeflateIndexCache()
+	{
+		return m_deflateIndexCache;
+	}
 }
@@ -35,6 +35,7 @@ import org.at4j.zip.ef.ZipEntryExtraField;
 public class ZipEntryLocalFileHeaderData
 {
 	private Collection<ZipEntryExtraField> m_extraFields;
+	private byte[] m_encodedExtraFields;
 	private long m_startPositionOfFileData;
 
 	public Collection<ZipEntryExtraField> getExtraFields()
@@ -47,6 +48,16 @@ public class ZipEntryLocalFileHeaderData
 		m_extraFields = extraFields;
 	}
 
+	public byte[] getEncodedExtraFields()
+	{
+		return m_encodedExtraFields;
+	}
+
+	public void setEncodedExtraFields(byte[] encodedExtraFields)
+	{
+		m_encodedExtraFields = encodedExtraFields;
+	}
+
 	public long getStartPositionOfFileData()
 	{
 		return m_startPositionOfFileData;
@@ -27,6 +27,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 
 import org.at4j.archive.Archive;
+import org.at4j.support.comp.DeflateIndexCache;
 import org.entityfs.RandomAccess;
 import org.entityfs.RandomlyAccessibleFile;
 import org.entityfs.el.AbsoluteLocation;
@@ -63,8 +64,18 @@ import org.entityfs.support.io.RandomAccessMode;
  * A {@code ZipFile} object should be safe to use concurrently from several
  * parallel threads without any external synchronization.
  * <p>
- * This implementation does not support Zip file encryption or signatures, Zip
- * archives that span several files or the Zip64 format.
+ * Zip64 archives, i.e. archives that are larger than 4 GB or that contain more
+ * than 65535 entries, and Zip64 entries larger than 4 GB are supported. The
+ * 64-bit sizes and offsets are read from the Zip64 end of central directory
+ * record and from
+ * {@link org.at4j.zip.ef.Zip64ExtendedInformationExtraField}:s.
+ * <p>
+ * Deflated entries can be opened for random access. The
+ * {@link org.at4j.support.comp.DeflateIndex}:es used for that are kept in a
+ * bounded {@link DeflateIndexCache} per Zip file.
+ * <p>
+ * This implementation does not support Zip file encryption or signatures, or
+ * Zip archives that span several files.
  * <p>
  * <b>Note on character encoding:</b> It is not specified in either PK-Zip's nor
  * Info-Zip's documentation (see below) which character encoding to use when
@@ -410,6 +421,18 @@ public class ZipFile implements Archive<ZipEntry, ZipDirectoryEntry>
 		}
 	}
 	
+	/**
+	 * Get the cache for the {@link org.at4j.support.comp.DeflateIndex}:es used for
+	 * random access to deflated entries in this Zip file.
+	 * @return The deflate index cache.
+	 * @since 1.2
+	 * @see ZipFileEntry#getDeflateIndex()
+	 */
+	public DeflateIndexCache getDeflateIndexCache()
+	{
+		return m_entryCollaborator.getDeflateIndexCache();
+	}
+
 	/**
 	 * Get the file that this {@link ZipFile} was created from.
 	 * @since 1.2
@@ -18,6 +18,8 @@
  */
 package org.at4j.zip;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.entityfs.el.AbsoluteLocation;
@@ -38,17 +40,34 @@ public class ZipFileContents
 	private final ZipDirectoryEntry m_rootEntry;
 	private final Map<AbsoluteLocation, ZipEntry> m_entryMap;
 	private final String m_comment;
+	private final long m_startOfCentralDirectory;
+	private final List<ZipEntryCentralFileHeaderData> m_centralFileHeaders;
 
 	public ZipFileContents(ZipDirectoryEntry rootEntry, Map<AbsoluteLocation, ZipEntry> entryMap, String comment)
+	{
+		this(rootEntry, entryMap, comment, 0L, Collections.<ZipEntryCentralFileHeaderData> emptyList());
+	}
+
+	/**
+	 * @param startOfCentralDirectory The position of the start of the central
+	 * directory in the Zip file.
+	 * @param centralFileHeaders The central file headers, in the order that
+	 * they appear in the central directory.
+	 * @since 1.2
+	 */
+	public ZipFileContents(ZipDirectoryEntry rootEntry, Map<AbsoluteLocation, ZipEntry> entryMap, String comment, long startOfCentralDirectory, List<ZipEntryCentralFileHeaderData> centralFileHeaders)
 	{
 		// Null checks
 		rootEntry.getClass();
 		entryMap.getClass();
 		comment.getClass();
+		centralFileHeaders.getClass();
 
 		m_rootEntry = rootEntry;
 		m_entryMap = entryMap;
 		m_comment = comment;
+		m_startOfCentralDirectory = startOfCentralDirectory;
+		m_centralFileHeaders = centralFileHeaders;
 	}
 
 	public ZipDirectoryEntry getRootEntry()
@@ -65,4 +84,23 @@ public class ZipFileContents
 	{
 		return m_comment;
 	}
+
+	/**
+	 * Get the position of the start of the central directory in the Zip file.
+	 * @since 1.2
+	 */
+	public long getStartOfCentralDirectory()
+	{
+		return m_startOfCentralDirectory;
+	}
+
+	/**
+	 * Get the data from the central file headers, in the order that they
+	 * appear in the central directory.
+	 * @since 1.2
+	 */
+	public List<ZipEntryCentralFileHeaderData> getCentralFileHeaders()
+	{
+		return m_centralFileHeaders;
+	}
 }
@@ -25,7 +25,11 @@ import java.nio.channels.Channels;
 import java.nio.channels.ScatteringByteChannel;
 
 import org.at4j.archive.ArchiveFileEntry;
+import org.at4j.support.comp.DeflateIndex;
+import org.at4j.support.comp.DeflateIndexCache;
 import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
+import org.at4j.zip.comp.DeflatedCompressionMethod;
 import org.at4j.zip.comp.UnsupportedCompressionMethodException;
 import org.at4j.zip.comp.ZipEntryCompressionMethod;
 import org.entityfs.RandomAccess;
@@ -48,10 +52,13 @@ import org.entityfs.util.base.EmptyRandomAccess;
  * data, and the file has a CRC 32 checksum of its data.
  * <p>
  * Only the Zip file entries that are stored uncompressed (
- * {@link org.at4j.zip.comp.StoredCompressionMethod}) support being opened for
- * random access. If it is stored with another compression method, its {@code
+ * {@link org.at4j.zip.comp.StoredCompressionMethod}) or that are deflated (
+ * {@link DeflatedCompressionMethod}) support being opened for random access.
+ * If it is stored with another compression method, its {@code
  * openForRandomAccess} method will throw an
- * {@link UnsupportedOperationException}.
+ * {@link UnsupportedOperationException}. Random access to a deflated entry
+ * uses a {@link DeflateIndex} that is built the first time that it is needed
+ * and that is kept in the Zip file's {@link DeflateIndexCache}.
  * <p>
  * Zip entries are always immutable.
  * @author Karl Gustafsson
@@ -63,10 +70,14 @@ public class ZipFileEntry extends ZipEntry implements ArchiveFileEntry<ZipEntry,
 {
 	private final long m_startPosOfFileData;
 	private final ZipEntryCompressionMethod m_compressionMethod;
-	private final UnsignedInteger m_uncompressedSize;
-	private final UnsignedInteger m_compressedSize;
+	private final UnsignedLong m_uncompressedSize;
+	private final UnsignedLong m_compressedSize;
 	private final UnsignedInteger m_crc32;
 	private final ZipInternalFileAttributes m_internalFileAttributes;
+	// The extra fields as they are stored in the Zip file. These are used when
+	// copying the entry to another Zip file.
+	private final byte[] m_encodedLocalExtraFields;
+	private final byte[] m_encodedCentralExtraFields;
 
 	/**
 	 * Create a new Zip file entry.
@@ -83,6 +94,8 @@ public class ZipFileEntry extends ZipEntry implements ArchiveFileEntry<ZipEntry,
 		m_compressedSize = zecd.getCompressedSize();
 		m_crc32 = zecd.getCrc32();
 		m_internalFileAttributes = zecd.getInternalFileAttributes();
+		m_encodedLocalExtraFields = zeld.getEncodedExtraFields() != null ? zeld.getEncodedExtraFields() : new byte[0];
+		m_encodedCentralExtraFields = zecd.getEncodedExtraFields() != null ? zecd.getEncodedExtraFields() : new byte[0];
 	}
 
 	/**
@@ -122,7 +135,7 @@ public class ZipFileEntry extends ZipEntry implements ArchiveFileEntry<ZipEntry,
 	 * @see #getDataSize()
 	 * @see #getCompressedSize()
 	 */
-	public UnsignedInteger getUncompressedSize()
+	public UnsignedLong getUncompressedSize()
 	{
 		return m_uncompressedSize;
 	}
@@ -134,7 +147,7 @@ public class ZipFileEntry extends ZipEntry implements ArchiveFileEntry<ZipEntry,
 	 * @see #getSize()
 	 * @see #getUncompressedSize()
 	 */
-	public UnsignedInteger getCompressedSize()
+	public UnsignedLong getCompressedSize()
 	{
 		return m_compressedSize;
 	}
@@ -171,6 +184,55 @@ public class ZipFileEntry extends ZipEntry implements ArchiveFileEntry<ZipEntry,
 		return m_internalFileAttributes.isTextFile();
 	}
 
+	/**
+	 * Get the entry's internal file attributes.
+	 * @return The internal file attributes.
+	 * @since 1.2
+	 */
+	public ZipInternalFileAttributes getInternalFileAttributes()
+	{
+		return m_internalFileAttributes;
+	}
+
+	/**
+	 * Get the entry's extra fields as they are encoded in the Zip file. This
+	 * includes extra fields that are not parsed into
+	 * {@link org.at4j.zip.ef.ZipEntryExtraField} objects.
+	 * @param localHeader Should the extra fields from the local header or from
+	 * the central header be returned?
+	 * @return A copy of the encoded extra fields, including the four byte
+	 * header of each field.
+	 * @since 1.2
+	 */
+	public byte[] getEncodedExtraFields(boolean localHeader)
+	{
+		// Defensive copy
+		return (localHeader ? m_encodedLocalExtraFields : m_encodedCentralExtraFields).clone();
+	}
+
+	/**
+	 * Open a stream on the file data as it is stored in the Zip file, i.e.
+	 * without uncompressing it. This can be used for copying the entry to
+	 * another Zip file without recompressing it.
+	 * @return A stream on the compressed file data. The stream must be closed
+	 * by the caller.
+	 * @throws WrappedIOException On I/O errors.
+	 * @since 1.2
+	 * @see #openForRead()
+	 * @see org.at4j.zip.builder.ZipBuilder#addRaw(ZipFileEntry, org.entityfs.el.AbsoluteLocation)
+	 */
+	public InputStream openCompressedForRead() throws WrappedIOException
+	{
+		if (m_compressedSize.longValue() == 0)
+		{
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		else
+		{
+			return getCollaborator().openStream(m_startPosOfFileData, m_startPosOfFileData + m_compressedSize.longValue() - 1);
+		}
+	}
+
 	/**
 	 * This method returns a dummy lock.
 	 * @return A dummy lock.
@@ -205,7 +267,7 @@ public class ZipFileEntry extends ZipEntry implements ArchiveFileEntry<ZipEntry,
 
 	public InputStream openForRead() throws UnsupportedCompressionMethodException, ZipFileParseException
 	{
-		if (m_compressedSize.intValue() == 0)
+		if (m_compressedSize.longValue() == 0)
 		{
 			return new ByteArrayInputStream(new byte[0]);
 		}
@@ -248,7 +310,7 @@ public class ZipFileEntry extends ZipEntry implements ArchiveFileEntry<ZipEntry,
 			throw new UnsupportedOperationException("Random access is not supported for files compressed with the " + m_compressionMethod + " compression method");
 		}
 
-		if (m_compressedSize.intValue() == 0)
+		if (m_compressedSize.longValue() == 0)
 		{
 			return new EmptyRandomAccess();
 		}
@@ -260,7 +322,16 @@ public class ZipFileEntry extends ZipEntry implements ArchiveFileEntry<ZipEntry,
 				RandomAccess ra = getCollaborator().openRandomAccess(m_startPosOfFileData, m_startPosOfFileData + m_compressedSize.longValue() - 1);
 				try
 				{
-					RandomAccess res = m_compressionMethod.createRandomAccess(ra, m_compressedSize.longValue(), m_uncompressedSize.longValue());
+					RandomAccess res;
+					if (m_compressionMethod instanceof DeflatedCompressionMethod)
+					{
+						// Use the Zip file's index cache
+						res = ((DeflatedCompressionMethod) m_compressionMethod).createRandomAccess(ra, m_compressedSize.longValue(), m_uncompressedSize.longValue(), getCollaborator().getDeflateIndexCache(), Long.valueOf(m_startPosOfFileData));
+					}
+					else
+					{
+						res = m_compressionMethod.createRandomAccess(ra, m_compressedSize.longValue(), m_uncompressedSize.longValue());
+					}
 					successful = true;
 					return res;
 				}
@@ -279,6 +350,52 @@ public class ZipFileEntry extends ZipEntry implements ArchiveFileEntry<ZipEntry,
 		}
 	}
 
+	/**
+	 * Get the index used for random access to this deflated entry. If the
+	 * index is not in the Zip file's {@link DeflateIndexCache}, it is built by
+	 * inflating the entry's data and then put in the cache. This can be used
+	 * for building the index in advance, before the entry is opened for random
+	 * access.
+	 * @return The index.
+	 * @throws UnsupportedOperationException If the entry is not deflated.
+	 * @throws WrappedIOException On I/O errors or if the deflated data is
+	 * invalid.
+	 * @since 1.2
+	 * @see ZipFile#getDeflateIndexCache()
+	 */
+	public DeflateIndex getDeflateIndex() throws UnsupportedOperationException, WrappedIOException
+	{
+		if (!(m_compressionMethod instanceof DeflatedCompressionMethod))
+		{
+			throw new UnsupportedOperationException("The entry " + getLocation() + " is not deflated");
+		}
+
+		DeflateIndexCache cache = getCollaborator().getDeflateIndexCache();
+		Long key = Long.valueOf(m_startPosOfFileData);
+		DeflateIndex res = cache.get(key);
+		if (res == null)
+		{
+			try
+			{
+				InputStream is = getCollaborator().openStream(m_startPosOfFileData, m_startPosOfFileData + m_compressedSize.longValue() - 1);
+				try
+				{
+					res = DeflateIndex.build(is, DeflateIndex.DEFAULT_ACCESS_POINT_SPACING);
+				}
+				finally
+				{
+					is.close();
+				}
+			}
+			catch (IOException e)
+			{
+				throw new WrappedIOException(e);
+			}
+			cache.put(key, res);
+		}
+		return res;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -25,7 +25,6 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -34,11 +33,13 @@ import java.util.Map;
 
 import org.at4j.support.lang.UnsignedByte;
 import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
 import org.at4j.support.lang.UnsignedShort;
 import org.at4j.support.nio.charset.Charsets;
 import org.at4j.support.util.MsDosDate;
 import org.at4j.support.util.MsDosTime;
 import org.at4j.zip.comp.ZipEntryCompressionMethodRegistry;
+import org.at4j.zip.ef.Zip64ExtendedInformationExtraField;
 import org.at4j.zip.ef.ZipEntryExtraField;
 import org.at4j.zip.ef.ZipEntryExtraFieldParser;
 import org.at4j.zip.ef.ZipEntryExtraFieldParserRegistry;
@@ -64,11 +65,20 @@ public class ZipFileParser
 {
 	protected static final long LOCAL_FILE_HEADER = 0x04034b50;
 	protected static final long CENTRAL_FILE_HEADER = 0x02014b50;
+	protected static final long ZIP64_END_OF_CENTRAL_DIRECTORY_RECORD = 0x06064b50;
+	protected static final long ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
 
 	private static final int[] END_OF_CENTRAL_DIRECTORY_HEADER_BACKWARDS = new int[] { 0x06, 0x05, 0x4b, 0x50 };
 	// The maximum allowed size of the central directory header is somewhat
 	// above 64k (the maximum size of the Zip file comment).
 	private static final int BYTES_TO_SCAN_FOR_END_OF_CENTRAL_DIRECTORY_HEADER_BEFORE_GIVING_UP = 67000;
+	// The size of the Zip64 end of central directory locator.
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+	// Header values that are set to these values have their real values in the
+	// Zip64 extended information extra field or in the Zip64 end of central
+	// directory record.
+	private static final long ZIP64_MAGIC_INTEGER = UnsignedInteger.MAX_VALUE;
+	private static final int ZIP64_MAGIC_SHORT = UnsignedShort.MAX_VALUE;
 
 	private static final class ZipEntityHolder
 	{
@@ -79,7 +89,7 @@ public class ZipFileParser
 
 	private static final class EndOfCentralDirectoryRecordContents
 	{
-		private UnsignedInteger m_startOfCentralDirectory;
+		private UnsignedLong m_startOfCentralDirectory;
 		private String m_fileComment;
 	}
 
@@ -274,14 +284,27 @@ public class ZipFileParser
 		return barr;
 	}
 
-	private Collection<ZipEntryExtraField> parseExtraFields(final byte[] barr, final boolean inLocalHeader)
+	private List<ZipEntryExtraField> parseExtraFields(final byte[] barr, final boolean inLocalHeader)
+	{
+		return parseExtraFields(m_extraFieldParserRegistry, barr, inLocalHeader);
+	}
+
+	/**
+	 * Parse the extra fields in the byte array. This is also used by the
+	 * {@link ZipStreamParser}.
+	 * @param registry The registry with extra field parsers.
+	 * @param barr The extra fields data.
+	 * @param inLocalHeader Are the extra fields from a local file header?
+	 * @return The parsed extra fields.
+	 */
+	static List<ZipEntryExtraField> parseExtraFields(final ZipEntryExtraFieldParserRegistry registry, final byte[] barr, final boolean inLocalHeader)
 	{
 		if (barr.length < (UnsignedShort.SIZE * 2))
 		{
 			return new ArrayList<ZipEntryExtraField>(0);
 		}
 
-		Collection<ZipEntryExtraField> res = new ArrayList<ZipEntryExtraField>(3);
+		List<ZipEntryExtraField> res = new ArrayList<ZipEntryExtraField>(3);
 		try
 		{
 			InputStream is = new ByteArrayInputStream(barr);
@@ -301,7 +324,7 @@ public class ZipFileParser
 						}
 					}
 
-					ZipEntryExtraFieldParser zefp = m_extraFieldParserRegistry.forCode(header);
+					ZipEntryExtraFieldParser zefp = registry.forCode(header);
 					res.add(zefp.parse(extraFieldData, inLocalHeader));
 				}
 			}
@@ -339,12 +362,13 @@ public class ZipFileParser
 		MsDosDate.parseMsDosDate(UnsignedShort.readBigEndian(ra), time);
 		zed.setLastModificationTime(time.getTime());
 		zed.setCrc32(UnsignedInteger.readBigEndian(ra));
-		zed.setCompressedSize(UnsignedInteger.readBigEndian(ra));
-		zed.setUncompressedSize(UnsignedInteger.readBigEndian(ra));
+		UnsignedInteger compressedSize = UnsignedInteger.readBigEndian(ra);
+		UnsignedInteger uncompressedSize = UnsignedInteger.readBigEndian(ra);
 		UnsignedShort fileNameLength = UnsignedShort.readBigEndian(ra);
 		UnsignedShort extraFieldsLength = UnsignedShort.readBigEndian(ra);
 		UnsignedShort fileCommentLength = UnsignedShort.readBigEndian(ra);
-		zed.setDiskNumberStart(UnsignedShort.readBigEndian(ra));
+		UnsignedShort diskNumberStart = UnsignedShort.readBigEndian(ra);
+		zed.setDiskNumberStart(diskNumberStart);
 		zed.setInternalFileAttributes(new ZipInternalFileAttributes(UnsignedShort.readBigEndian(ra)));
 		byte[] externalFileAttrs = new byte[4];
 		int noRead = ra.read(externalFileAttrs);
@@ -353,7 +377,7 @@ public class ZipFileParser
 			throw new ZipFileParseException("Wanted to read 4 bytes. Got " + noRead);
 		}
 		zed.setExternalFileAttributes(m_externalFileAttrFactoryRegistry.forVersionMadeBy(vmb).parse(vmb, externalFileAttrs));
-		zed.setRelativeOffsetOfLocalHeader(UnsignedInteger.readBigEndian(ra));
+		UnsignedInteger relativeOffsetOfLocalHeader = UnsignedInteger.readBigEndian(ra);
 		boolean utf8Encoding = zed.getGeneralPurposeBitFlags().isUtf8Encoding();
 		String fileName = readString(ra, fileNameLength.intValue(), fileNameEncodingCs, utf8Encoding);
 		if ("/".equals(fileName))
@@ -373,11 +397,51 @@ public class ZipFileParser
 			zed.setDirectory(false);
 		}
 		zed.setLocation(new AbsoluteLocation("/" + fileName));
-		zed.setExtraFields(parseExtraFields(readByteArray(ra, extraFieldsLength.intValue()), false));
+		byte[] encodedExtraFields = readByteArray(ra, extraFieldsLength.intValue());
+		List<ZipEntryExtraField> extraFields = parseExtraFields(encodedExtraFields, false);
 		zed.setFileComment(readString(ra, fileCommentLength.intValue(), textEncodingCs, utf8Encoding));
+
+		boolean uncompressedSizeInZip64 = uncompressedSize.longValue() == ZIP64_MAGIC_INTEGER;
+		boolean compressedSizeInZip64 = compressedSize.longValue() == ZIP64_MAGIC_INTEGER;
+		boolean relativeOffsetInZip64 = relativeOffsetOfLocalHeader.longValue() == ZIP64_MAGIC_INTEGER;
+		boolean diskNumberStartInZip64 = diskNumberStart.intValue() == ZIP64_MAGIC_SHORT;
+		Zip64ExtendedInformationExtraField zip64Field = null;
+		if (uncompressedSizeInZip64 || compressedSizeInZip64 || relativeOffsetInZip64 || diskNumberStartInZip64)
+		{
+			zip64Field = reinterpretZip64ExtraField(extraFields, uncompressedSizeInZip64, compressedSizeInZip64, relativeOffsetInZip64, diskNumberStartInZip64);
+		}
+		// If the Zip64 extra field does not exist, the Zip file is probably
+		// broken, but give it a chance anyway by using the 32-bit values.
+		zed.setUncompressedSize((zip64Field != null) && uncompressedSizeInZip64 ? zip64Field.getUncompressedSize() : UnsignedLong.valueOf(uncompressedSize.longValue()));
+		zed.setCompressedSize((zip64Field != null) && compressedSizeInZip64 ? zip64Field.getCompressedSize() : UnsignedLong.valueOf(compressedSize.longValue()));
+		zed.setRelativeOffsetOfLocalHeader((zip64Field != null) && relativeOffsetInZip64 ? zip64Field.getRelativeOffsetOfLocalHeader() : UnsignedLong.valueOf(relativeOffsetOfLocalHeader.longValue()));
+		zed.setExtraFields(extraFields);
+		zed.setEncodedExtraFields(encodedExtraFields);
 		return shouldBeIgnored ? null : zed;
 	}
 
+	/**
+	 * Find the Zip64 extended information extra field among the central header
+	 * extra fields and replace it with a version that is reinterpreted using
+	 * the knowledge of which values that are present in it.
+	 * @return The reinterpreted extra field, or {@code null} if there is no
+	 * Zip64 extended information extra field.
+	 */
+	private Zip64ExtendedInformationExtraField reinterpretZip64ExtraField(List<ZipEntryExtraField> extraFields, boolean uncompressedSizePresent, boolean compressedSizePresent, boolean relativeOffsetPresent, boolean diskNumberStartPresent)
+	{
+		for (int i = 0; i < extraFields.size(); i++)
+		{
+			ZipEntryExtraField ef = extraFields.get(i);
+			if (ef instanceof Zip64ExtendedInformationExtraField)
+			{
+				Zip64ExtendedInformationExtraField res = ((Zip64ExtendedInformationExtraField) ef).reinterpret(uncompressedSizePresent, compressedSizePresent, relativeOffsetPresent, diskNumberStartPresent);
+				extraFields.set(i, res);
+				return res;
+			}
+		}
+		return null;
+	}
+
 	private void placeEntryInTree(ZipEntityHolder parentHolder, LinkedList<String> pathSegmentStack, ZipEntryCentralFileHeaderData zecd, ZipEntryLocalFileHeaderData zeld)
 	{
 		int stackSize = pathSegmentStack.size();
@@ -558,7 +622,7 @@ public class ZipFileParser
 				{
 					// found
 					ra.skipBytes(15);
-					res.m_startOfCentralDirectory = UnsignedInteger.readBigEndian(ra);
+					res.m_startOfCentralDirectory = UnsignedLong.valueOf(UnsignedInteger.readBigEndian(ra).longValue());
 					found = true;
 				}
 			}
@@ -590,9 +654,51 @@ public class ZipFileParser
 		{
 			res.m_fileComment = "";
 		}
+
+		// Is this a Zip64 file? In that case, the Zip64 end of central
+		// directory locator is located immediately before the end of central
+		// directory record.
+		if (curPos >= ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE)
+		{
+			ra.seek(curPos - ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE);
+			if (UnsignedInteger.readBigEndian(ra).longValue() == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR)
+			{
+				parseZip64EndOfCentralDirectoryRecord(ra, res);
+			}
+		}
 		return res;
 	}
 
+	/**
+	 * Read the start position of the central directory from the Zip64 end of
+	 * central directory record. When this method is called, the random access
+	 * is positioned right after the Zip64 end of central directory locator's
+	 * signature.
+	 */
+	private void parseZip64EndOfCentralDirectoryRecord(RandomAccess ra, EndOfCentralDirectoryRecordContents eocd)
+	{
+		// Skip the number of the disk with the start of the Zip64 end of
+		// central directory record.
+		ra.skipBytes(4);
+		long zip64EocdPos = UnsignedLong.readBigEndian(ra).longValue();
+		if ((zip64EocdPos < 0) || (zip64EocdPos > ra.length() - 56))
+		{
+			throw new ZipFileParseException("Invalid position for the Zip64 end of central directory record: " + zip64EocdPos);
+		}
+		ra.seek(zip64EocdPos);
+		if (UnsignedInteger.readBigEndian(ra).longValue() != ZIP64_END_OF_CENTRAL_DIRECTORY_RECORD)
+		{
+			throw new ZipFileParseException("Expected a Zip64 end of central directory record at position " + zip64EocdPos);
+		}
+		// Skip the size of the record (8), version made by (2), version needed
+		// to extract (2), number of this disk (4), number of the disk with the
+		// start of the central directory (4), total number of entries on this
+		// disk (8), total number of entries (8) and the size of the central
+		// directory (8).
+		ra.skipBytes(44);
+		eocd.m_startOfCentralDirectory = UnsignedLong.readBigEndian(ra);
+	}
+
 	private ZipEntryLocalFileHeaderData readLocalFileHeader(RandomAccess ra)
 	{
 		ZipEntryLocalFileHeaderData res = new ZipEntryLocalFileHeaderData();
@@ -600,7 +706,9 @@ public class ZipFileParser
 		UnsignedShort fileNameLength = UnsignedShort.readBigEndian(ra);
 		UnsignedShort extraFieldsLength = UnsignedShort.readBigEndian(ra);
 		ra.skipBytes(fileNameLength.intValue());
-		res.setExtraFields(parseExtraFields(readByteArray(ra, extraFieldsLength.intValue()), true));
+		byte[] encodedExtraFields = readByteArray(ra, extraFieldsLength.intValue());
+		res.setExtraFields(parseExtraFields(encodedExtraFields, true));
+		res.setEncodedExtraFields(encodedExtraFields);
 		res.setStartPositionOfFileData(ra.getFilePointer());
 		return res;
 	}
@@ -636,9 +744,12 @@ public class ZipFileParser
 			int noFiles = 0;
 			while (isCentralFileHeader(header))
 			{
+				long startOfHeader = ra.getFilePointer() - UnsignedInteger.SIZE;
 				ZipEntryCentralFileHeaderData cfhd = readCentralFileHeader(ra, fileNameEncodingCs, textEncodingCs);
 				if (cfhd != null)
 				{
+					cfhd.setStartPositionOfCentralFileHeader(startOfHeader);
+					cfhd.setSizeOfCentralFileHeader((int) (ra.getFilePointer() - startOfHeader));
 					noFiles++;
 					centralFileHeaders.add(cfhd);
 				}
@@ -667,7 +778,7 @@ public class ZipFileParser
 
 			Map<AbsoluteLocation, ZipEntry> entryMap = new HashMap<AbsoluteLocation, ZipEntry>(noFiles);
 			ZipEntry rootEntry = createEntries(collaborator, rootDirectoryHolder, AbsoluteLocation.ROOT_DIR, entryMap, textEncodingCs);
-			return new ZipFileContents((ZipDirectoryEntry) rootEntry, entryMap, eocd.m_fileComment);
+			return new ZipFileContents((ZipDirectoryEntry) rootEntry, entryMap, eocd.m_fileComment, eocd.m_startOfCentralDirectory.longValue(), centralFileHeaders);
 		}
 		catch (RuntimeException e)
 		{
@@ -0,0 +1,49 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An implementation of this interface is used by the {@link ZipStreamParser}
+ * to deal with each entry that it reads from a Zip stream.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see ZipStreamParser
+ */
+public interface ZipStreamEntryHandlerDelegate
+{
+	/**
+	 * Handle a Zip entry.
+	 * @param ehd The entry's local header data. If the entry uses a data
+	 * descriptor, the checksum and the sizes are not known until the entry's
+	 * data has been read. They are set by the parser when this method has
+	 * returned.
+	 * @param data A stream with the entry's uncompressed data. It is only
+	 * valid until this method returns. The handler does not have to read all
+	 * data from it, and it does not have to close it. The data that is not
+	 * read is skipped by the parser. For a directory entry, the stream is
+	 * empty.
+	 * @throws IOException On I/O errors. This is wrapped in a
+	 * {@link org.entityfs.support.exception.WrappedIOException} and rethrown
+	 * by the parser.
+	 */
+	void handle(ZipStreamEntryHeaderData ehd, InputStream data) throws IOException;
+}
@@ -0,0 +1,167 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip;
+
+import java.util.Collection;
+import java.util.Date;
+
+import org.at4j.support.lang.UnsignedByte;
+import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
+import org.at4j.zip.comp.ZipEntryCompressionMethod;
+import org.at4j.zip.ef.ZipEntryExtraField;
+import org.entityfs.el.AbsoluteLocation;
+
+/**
+ * This bean contains the data stored about a Zip entry in its local file
+ * header. It is created by the {@link ZipStreamParser} and given to the
+ * {@link ZipStreamEntryHandlerDelegate} together with the entry's data.
+ * <p>
+ * If the entry's general purpose bit flag says that the local header fields
+ * are zeroed, the checksum and the sizes are not known until the entry's data
+ * has been read. The parser updates them with the values from the entry's data
+ * descriptor after the handler delegate has returned.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see ZipStreamParser
+ */
+public class ZipStreamEntryHeaderData
+{
+	private UnsignedByte m_versionNeededToExtract;
+	private ZipGeneralPurposeBitFlags m_generalPurposeBitFlags;
+	private ZipEntryCompressionMethod m_compressionMethod;
+	private Date m_lastModificationTime;
+	private UnsignedInteger m_crc32;
+	private UnsignedLong m_compressedSize;
+	private UnsignedLong m_uncompressedSize;
+	private AbsoluteLocation m_location;
+	private Collection<ZipEntryExtraField> m_extraFields;
+	private boolean m_directory;
+
+	public UnsignedByte getVersionNeededToExtract()
+	{
+		return m_versionNeededToExtract;
+	}
+
+	public void setVersionNeededToExtract(UnsignedByte versionNeededToExtract)
+	{
+		m_versionNeededToExtract = versionNeededToExtract;
+	}
+
+	public ZipGeneralPurposeBitFlags getGeneralPurposeBitFlags()
+	{
+		return m_generalPurposeBitFlags;
+	}
+
+	public void setGeneralPurposeBitFlags(ZipGeneralPurposeBitFlags generalPurposeBitFlags)
+	{
+		m_generalPurposeBitFlags = generalPurposeBitFlags;
+	}
+
+	public ZipEntryCompressionMethod getCompressionMethod()
+	{
+		return m_compressionMethod;
+	}
+
+	public void setCompressionMethod(ZipEntryCompressionMethod compressionMethod)
+	{
+		m_compressionMethod = compressionMethod;
+	}
+
+	public Date getLastModificationTime()
+	{
+		return m_lastModificationTime;
+	}
+
+	public void setLastModificationTime(Date lastModificationTime)
+	{
+		// Defensive copy
+		m_lastModificationTime = lastModificationTime != null ? new Date(lastModificationTime.getTime()) : null;
+	}
+
+	public UnsignedInteger getCrc32()
+	{
+		return m_crc32;
+	}
+
+	public void setCrc32(UnsignedInteger crc32)
+	{
+		m_crc32 = crc32;
+	}
+
+	public UnsignedLong getCompressedSize()
+	{
+		return m_compressedSize;
+	}
+
+	public void setCompressedSize(UnsignedLong compressedSize)
+	{
+		m_compressedSize = compressedSize;
+	}
+
+	public UnsignedLong getUncompressedSize()
+	{
+		return m_uncompressedSize;
+	}
+
+	public void setUncompressedSize(UnsignedLong uncompressedSize)
+	{
+		m_uncompressedSize = uncompressedSize;
+	}
+
+	public AbsoluteLocation getLocation()
+	{
+		return m_location;
+	}
+
+	public void setLocation(AbsoluteLocation location)
+	{
+		m_location = location;
+	}
+
+	public Collection<ZipEntryExtraField> getExtraFields()
+	{
+		return m_extraFields;
+	}
+
+	public void setExtraFields(Collection<ZipEntryExtraField> extraFields)
+	{
+		m_extraFields = extraFields;
+	}
+
+	public boolean isDirectory()
+	{
+		return m_directory;
+	}
+
+	public void setDirectory(boolean directory)
+	{
+		m_directory = directory;
+	}
+
+	/**
+	 * Are the checksum and the sizes of the entry stored in a data descriptor
+	 * after the entry's data?
+	 * @return {@code true} if the entry has a data descriptor.
+	 */
+	public boolean isDataDescriptorUsed()
+	{
+		return m_generalPurposeBitFlags.isLocalHeaderFieldZeroed();
+	}
+}
@@ -0,0 +1,631 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.at4j.support.lang.UnsignedByte;
+import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
+import org.at4j.support.lang.UnsignedShort;
+import org.at4j.support.nio.charset.Charsets;
+import org.at4j.support.util.MsDosDate;
+import org.at4j.support.util.MsDosTime;
+import org.at4j.zip.comp.DeflatedCompressionMethod;
+import org.at4j.zip.comp.StoredCompressionMethod;
+import org.at4j.zip.comp.ZipEntryCompressionMethod;
+import org.at4j.zip.comp.ZipEntryCompressionMethodRegistry;
+import org.at4j.zip.ef.Zip64ExtendedInformationExtraField;
+import org.at4j.zip.ef.ZipEntryExtraField;
+import org.at4j.zip.ef.ZipEntryExtraFieldParserRegistry;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.exception.UnexpectedEofException;
+import org.entityfs.support.exception.WrappedIOException;
+
+/**
+ * The Zip stream parser reads a Zip archive from a stream, from start to end,
+ * without seeking. It can be used for Zip data that arrives over a network
+ * connection or from a decompressing pipeline, where the {@link ZipFile} cannot
+ * be used since it requires random access to the Zip file.
+ * <p>
+ * The parser walks through the local file headers of the archive and uses a
+ * {@link ZipStreamEntryHandlerDelegate} to handle each entry. The delegate is
+ * given the entry's uncompressed data as a stream. Parsing stops when the
+ * central directory is reached; it is not read.
+ * <p>
+ * Since the central directory is not read, the parser does not have access to
+ * entry metadata that is only stored there, such as entry comments and
+ * external file attributes. Entries are handled in the order that they occur
+ * in the archive. If an entry occurs several times, it is handled several
+ * times.
+ * <p>
+ * If an entry uses a data descriptor for storing its checksum and sizes, the
+ * parser must find the end of the entry's data by decompressing it. This is
+ * only supported for entries that are compressed using the
+ * {@link DeflatedCompressionMethod}. Other entries with data descriptors cause
+ * a {@link ZipFileParseException}.
+ * <p>
+ * The parser uses the same extension points as the {@link ZipFileParser} for
+ * supporting new compression methods and extra field types.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see ZipFileParser
+ */
+public class ZipStreamParser
+{
+	private static final long LOCAL_FILE_HEADER = 0x04034b50;
+	private static final long DATA_DESCRIPTOR = 0x08074b50;
+	private static final long ZIP64_MAGIC_INTEGER = UnsignedInteger.MAX_VALUE;
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The data read from a local file header.
+	 */
+	private static final class LocalFileHeader
+	{
+		private final ZipStreamEntryHeaderData m_headerData;
+		// Does the header have a Zip64 extra field?
+		private final boolean m_zip64;
+
+		private LocalFileHeader(ZipStreamEntryHeaderData headerData, boolean zip64)
+		{
+			m_headerData = headerData;
+			m_zip64 = zip64;
+		}
+	}
+
+	/**
+	 * This stream reads a limited number of bytes from the archive stream. It
+	 * does not close the archive stream when it is closed.
+	 */
+	private static final class BoundedInputStream extends InputStream
+	{
+		private final InputStream m_in;
+		private long m_remaining;
+
+		private BoundedInputStream(InputStream in, long size)
+		{
+			m_in = in;
+			m_remaining = size;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] barr = new byte[1];
+			return read(barr, 0, 1) == 1 ? barr[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] barr, int off, int len) throws IOException
+		{
+			if (m_remaining == 0)
+			{
+				return -1;
+			}
+			int noRead = m_in.read(barr, off, (int) Math.min(len, m_remaining));
+			if (noRead < 0)
+			{
+				throw new UnexpectedEofException("Unexpected end of Zip stream. " + m_remaining + " bytes of entry data remained");
+			}
+			m_remaining -= noRead;
+			return noRead;
+		}
+
+		/**
+		 * Skip the rest of the entry data.
+		 */
+		private void skipRemaining() throws IOException
+		{
+			byte[] barr = new byte[BUFFER_SIZE];
+			while (read(barr, 0, barr.length) >= 0)
+			{
+				// Nothing
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			// Don't close the archive stream.
+		}
+	}
+
+	/**
+	 * This stream inflates deflated entry data of unknown size. When the end
+	 * of the deflated data is reached, it pushes back the bytes that it has
+	 * read past the end to the archive stream.
+	 */
+	private static final class InflatingInputStream extends InputStream
+	{
+		private final PushbackInputStream m_in;
+		private final Inflater m_inflater = new Inflater(true);
+		private final byte[] m_buf = new byte[BUFFER_SIZE];
+		private int m_bufLen;
+		private boolean m_dummyByteGiven;
+		private boolean m_eof;
+
+		private InflatingInputStream(PushbackInputStream in)
+		{
+			m_in = in;
+		}
+
+		private void fill() throws IOException
+		{
+			m_bufLen = m_in.read(m_buf);
+			if (m_bufLen < 0)
+			{
+				if (m_dummyByteGiven)
+				{
+					throw new UnexpectedEofException("Unexpected end of Zip stream in deflated entry data");
+				}
+				// The Inflater may need an extra dummy byte at the end of
+				// the data. See the Inflater docs.
+				m_buf[0] = 0;
+				m_bufLen = 1;
+				m_dummyByteGiven = true;
+			}
+			m_inflater.setInput(m_buf, 0, m_bufLen);
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] barr = new byte[1];
+			return read(barr, 0, 1) == 1 ? barr[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] barr, int off, int len) throws IOException
+		{
+			if (m_eof)
+			{
+				return -1;
+			}
+			else if (len == 0)
+			{
+				return 0;
+			}
+
+			try
+			{
+				while (true)
+				{
+					int noInflated = m_inflater.inflate(barr, off, len);
+					if (noInflated > 0)
+					{
+						return noInflated;
+					}
+					else if (m_inflater.finished())
+					{
+						m_eof = true;
+						int noRemaining = m_inflater.getRemaining();
+						if ((noRemaining > 0) && !m_dummyByteGiven)
+						{
+							// Give back the data that belongs to the next
+							// part of the archive.
+							m_in.unread(m_buf, m_bufLen - noRemaining, noRemaining);
+						}
+						return -1;
+					}
+					else if (m_inflater.needsDictionary())
+					{
+						throw new ZipFileParseException("The deflated entry data requires a preset dictionary");
+					}
+					else if (m_inflater.needsInput())
+					{
+						fill();
+					}
+				}
+			}
+			catch (DataFormatException e)
+			{
+				throw new ZipFileParseException("Invalid deflated entry data", e);
+			}
+		}
+
+		/**
+		 * Inflate the rest of the entry data to find its end.
+		 */
+		private void skipRemaining() throws IOException
+		{
+			byte[] barr = new byte[BUFFER_SIZE];
+			while (read(barr, 0, barr.length) >= 0)
+			{
+				// Nothing
+			}
+		}
+
+		private long getCompressedSize()
+		{
+			return m_inflater.getBytesRead() - (m_dummyByteGiven ? 1 : 0);
+		}
+
+		private long getUncompressedSize()
+		{
+			return m_inflater.getBytesWritten();
+		}
+
+		private void dispose()
+		{
+			m_inflater.end();
+		}
+
+		@Override
+		public void close()
+		{
+			// Don't close the archive stream. The Inflater is released by
+			// the parser.
+		}
+	}
+
+	// Factory objects used to parse extra fields.
+	private ZipEntryExtraFieldParserRegistry m_extraFieldParserRegistry = new ZipEntryExtraFieldParserRegistry();
+	private ZipEntryCompressionMethodRegistry m_compressionMethodRegistry = new ZipEntryCompressionMethodRegistry();
+
+	/**
+	 * Get the compression method registry used by this object.
+	 * <p>
+	 * The object returned is the actual registry used by this object. By
+	 * changing its configuration, the behavior of this parser is changed.
+	 * @return The compression method registry used by this object.
+	 * @see #setCompressionMethodRegistry(ZipEntryCompressionMethodRegistry)
+	 */
+	public ZipEntryCompressionMethodRegistry getCompressionMethodRegistry()
+	{
+		return m_compressionMethodRegistry;
+	}
+
+	/**
+	 * Set a custom compression method registry.
+	 * <p>
+	 * If this is not set, a registry with the default configuration for
+	 * {@link ZipEntryCompressionMethodRegistry} is used.
+	 * @param registry The new compression method registry.
+	 * @see #getCompressionMethodRegistry()
+	 */
+	public void setCompressionMethodRegistry(ZipEntryCompressionMethodRegistry registry)
+	{
+		// Null check
+		registry.getClass();
+
+		m_compressionMethodRegistry = registry;
+	}
+
+	/**
+	 * Get the extra field parser registry used by this object.
+	 * <p>
+	 * The object returned is the actual registry used by this object. By
+	 * changing its configuration, the behavior of this object is changed.
+	 * @return The extra field parser registry used by this object.
+	 * @see #setExtraFieldParserRegistry(ZipEntryExtraFieldParserRegistry)
+	 */
+	public ZipEntryExtraFieldParserRegistry getExtraFieldParserRegistry()
+	{
+		return m_extraFieldParserRegistry;
+	}
+
+	/**
+	 * Set a custom Zip entry extra field parser registry.
+	 * <p>
+	 * If this is not set, the default configuration for
+	 * {@link ZipEntryExtraFieldParserRegistry} is used.
+	 * @param registry The new registry.
+	 * @see #getExtraFieldParserRegistry()
+	 */
+	public void setExtraFieldParserRegistry(ZipEntryExtraFieldParserRegistry registry)
+	{
+		// Null check
+		registry.getClass();
+
+		m_extraFieldParserRegistry = registry;
+	}
+
+	private byte[] readByteArray(InputStream is, int length) throws IOException
+	{
+		byte[] res = new byte[length];
+		int pos = 0;
+		while (pos < length)
+		{
+			int noRead = is.read(res, pos, length - pos);
+			if (noRead < 0)
+			{
+				throw new UnexpectedEofException("Wanted to read " + length + " bytes. Got " + pos);
+			}
+			pos += noRead;
+		}
+		return res;
+	}
+
+	/**
+	 * Read a header signature.
+	 * @return The signature, or {@code null} if at the end of the stream.
+	 */
+	private UnsignedInteger readSignatureEofOk(InputStream is) throws IOException
+	{
+		int b = is.read();
+		if (b < 0)
+		{
+			return null;
+		}
+		byte[] barr = new byte[UnsignedInteger.SIZE];
+		barr[0] = (byte) b;
+		System.arraycopy(readByteArray(is, UnsignedInteger.SIZE - 1), 0, barr, 1, UnsignedInteger.SIZE - 1);
+		return UnsignedInteger.fromBigEndianByteArray(barr);
+	}
+
+	private Zip64ExtendedInformationExtraField getZip64ExtraField(List<ZipEntryExtraField> extraFields)
+	{
+		for (ZipEntryExtraField ef : extraFields)
+		{
+			if (ef instanceof Zip64ExtendedInformationExtraField)
+			{
+				return (Zip64ExtendedInformationExtraField) ef;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read a local file header. When this is called, the stream is positioned
+	 * right after the header's signature.
+	 * @return The header data.
+	 */
+	private LocalFileHeader readLocalFileHeader(InputStream is, Charset fileNameEncodingCs) throws IOException
+	{
+		ZipStreamEntryHeaderData res = new ZipStreamEntryHeaderData();
+		// This is stored in two bytes in the file, but the value is only one
+		// byte long
+		res.setVersionNeededToExtract(UnsignedByte.valueOf(UnsignedShort.readBigEndian(is).intValue()));
+		res.setGeneralPurposeBitFlags(new ZipGeneralPurposeBitFlags(UnsignedShort.readBigEndian(is)));
+		res.setCompressionMethod(m_compressionMethodRegistry.forCode(UnsignedShort.readBigEndian(is)).create(res.getGeneralPurposeBitFlags()));
+		Calendar time = Calendar.getInstance();
+		time.clear();
+		MsDosTime.parseMsDosTime(UnsignedShort.readBigEndian(is), time);
+		MsDosDate.parseMsDosDate(UnsignedShort.readBigEndian(is), time);
+		res.setLastModificationTime(time.getTime());
+		res.setCrc32(UnsignedInteger.readBigEndian(is));
+		UnsignedInteger compressedSize = UnsignedInteger.readBigEndian(is);
+		UnsignedInteger uncompressedSize = UnsignedInteger.readBigEndian(is);
+		int fileNameLength = UnsignedShort.readBigEndian(is).intValue();
+		int extraFieldsLength = UnsignedShort.readBigEndian(is).intValue();
+
+		byte[] fileNameBytes = readByteArray(is, fileNameLength);
+		String fileName = (res.getGeneralPurposeBitFlags().isUtf8Encoding() ? Charsets.UTF8 : fileNameEncodingCs).decode(ByteBuffer.wrap(fileNameBytes)).toString();
+		if (fileName.endsWith("/"))
+		{
+			res.setDirectory(true);
+			fileName = fileName.substring(0, fileName.length() - 1);
+		}
+		res.setLocation(new AbsoluteLocation("/" + fileName));
+
+		List<ZipEntryExtraField> extraFields = ZipFileParser.parseExtraFields(m_extraFieldParserRegistry, readByteArray(is, extraFieldsLength), true);
+		res.setExtraFields(extraFields);
+
+		// A Zip64 extra field in the local header contains both sizes.
+		Zip64ExtendedInformationExtraField zip64Field = getZip64ExtraField(extraFields);
+		res.setUncompressedSize((zip64Field != null) && (uncompressedSize.longValue() == ZIP64_MAGIC_INTEGER) ? zip64Field.getUncompressedSize() : UnsignedLong.valueOf(uncompressedSize.longValue()));
+		res.setCompressedSize((zip64Field != null) && (compressedSize.longValue() == ZIP64_MAGIC_INTEGER) ? zip64Field.getCompressedSize() : UnsignedLong.valueOf(compressedSize.longValue()));
+		return new LocalFileHeader(res, zip64Field != null);
+	}
+
+	/**
+	 * Read the data descriptor after the entry data and update the header
+	 * data with its contents.
+	 * @param zip64 Are the sizes stored as eight byte values?
+	 */
+	private void readDataDescriptor(InputStream is, ZipStreamEntryHeaderData ehd, boolean zip64) throws IOException
+	{
+		// The signature is optional
+		UnsignedInteger crc = UnsignedInteger.readBigEndian(is);
+		if (crc.longValue() == DATA_DESCRIPTOR)
+		{
+			crc = UnsignedInteger.readBigEndian(is);
+		}
+		ehd.setCrc32(crc);
+		if (zip64)
+		{
+			ehd.setCompressedSize(UnsignedLong.readBigEndian(is));
+			ehd.setUncompressedSize(UnsignedLong.readBigEndian(is));
+		}
+		else
+		{
+			ehd.setCompressedSize(UnsignedLong.valueOf(UnsignedInteger.readBigEndian(is).longValue()));
+			ehd.setUncompressedSize(UnsignedLong.valueOf(UnsignedInteger.readBigEndian(is).longValue()));
+		}
+	}
+
+	/**
+	 * Let the handler delegate handle an entry with a known size and then skip
+	 * to the end of the entry's data.
+	 */
+	private void handleEntryWithKnownSize(PushbackInputStream in, ZipStreamEntryHeaderData ehd, ZipStreamEntryHandlerDelegate entryHandler) throws IOException
+	{
+		long compressedSize = ehd.getCompressedSize().longValue();
+		BoundedInputStream bis = new BoundedInputStream(in, compressedSize);
+		InputStream data = compressedSize == 0 ? new ByteArrayInputStream(new byte[0]) : ehd.getCompressionMethod().createInputStream(bis, compressedSize, ehd.getUncompressedSize().longValue());
+		try
+		{
+			entryHandler.handle(ehd, data);
+		}
+		finally
+		{
+			// This does not close the archive stream
+			data.close();
+		}
+		bis.skipRemaining();
+	}
+
+	/**
+	 * Let the handler delegate handle a deflated entry with an unknown size
+	 * and then inflate the rest of the entry's data to find its end.
+	 */
+	private void handleDeflatedEntryWithUnknownSize(PushbackInputStream in, ZipStreamEntryHeaderData ehd, ZipStreamEntryHandlerDelegate entryHandler, boolean zip64) throws IOException
+	{
+		InflatingInputStream data = new InflatingInputStream(in);
+		try
+		{
+			entryHandler.handle(ehd, data);
+			data.skipRemaining();
+			readDataDescriptor(in, ehd, zip64);
+			if ((ehd.getCompressedSize().longValue() != data.getCompressedSize()) || (ehd.getUncompressedSize().longValue() != data.getUncompressedSize()))
+			{
+				throw new ZipFileParseException("The sizes in the data descriptor for " + ehd.getLocation() + " do not match the size of the entry data");
+			}
+		}
+		finally
+		{
+			data.dispose();
+		}
+	}
+
+	private void handleEntry(PushbackInputStream in, ZipStreamEntryHeaderData ehd, boolean zip64, ZipStreamEntryHandlerDelegate entryHandler) throws IOException
+	{
+		ZipEntryCompressionMethod cm = ehd.getCompressionMethod();
+		if (!ehd.isDataDescriptorUsed())
+		{
+			handleEntryWithKnownSize(in, ehd, entryHandler);
+		}
+		else if (ehd.getCompressedSize().longValue() > 0)
+		{
+			// Some Zip programs write the sizes to the local header even
+			// though they use data descriptors.
+			handleEntryWithKnownSize(in, ehd, entryHandler);
+			readDataDescriptor(in, ehd, zip64);
+		}
+		else if (cm instanceof DeflatedCompressionMethod)
+		{
+			handleDeflatedEntryWithUnknownSize(in, ehd, entryHandler, zip64);
+		}
+		else if (ehd.isDirectory() && (cm instanceof StoredCompressionMethod))
+		{
+			// A directory does not have any data
+			handleEntryWithKnownSize(in, ehd, entryHandler);
+			readDataDescriptor(in, ehd, zip64);
+		}
+		else
+		{
+			throw new ZipFileParseException("Cannot find the end of the data for " + ehd.getLocation() + ". Its size is not known in advance, and it is compressed using " + cm.getName());
+		}
+	}
+
+	/**
+	 * Parse the Zip data read from the stream.
+	 * @param is The stream to read Zip data from. The stream is not closed by
+	 * this method. When this method returns, the stream is positioned
+	 * somewhere after the start of the Zip file's central directory.
+	 * @param fileNameEncodingCs The charset used to decode file names. This is
+	 * not used for entries that have the UTF-8 bit in their general purpose
+	 * bit flag set.
+	 * @param entryHandler The delegate object that handles each parsed entry.
+	 * @throws ZipFileParseException On parse errors.
+	 * @throws WrappedIOException On I/O errors.
+	 * @see #parse(ReadableByteChannel, Charset, ZipStreamEntryHandlerDelegate)
+	 */
+	public void parse(InputStream is, Charset fileNameEncodingCs, ZipStreamEntryHandlerDelegate entryHandler) throws ZipFileParseException, WrappedIOException
+	{
+		// Null checks
+		is.getClass();
+		fileNameEncodingCs.getClass();
+		entryHandler.getClass();
+
+		// The pushback buffer is used for giving back data that has been read
+		// past the end of a deflated entry.
+		PushbackInputStream in = new PushbackInputStream(is, BUFFER_SIZE);
+		try
+		{
+			UnsignedInteger signature = readSignatureEofOk(in);
+			if ((signature != null) && (signature.longValue() == DATA_DESCRIPTOR))
+			{
+				// The archive begins with a spanning marker. Ignore it.
+				signature = readSignatureEofOk(in);
+			}
+
+			// Read entries until the start of the central directory
+			while ((signature != null) && (signature.longValue() == LOCAL_FILE_HEADER))
+			{
+				LocalFileHeader header = readLocalFileHeader(in, fileNameEncodingCs);
+				ZipStreamEntryHeaderData ehd = header.m_headerData;
+				// The sizes in the data descriptor are eight bytes long if the
+				// entry has a Zip64 extra field in its local header.
+				boolean zip64 = header.m_zip64;
+				if (!AbsoluteLocation.ROOT_DIR.equals(ehd.getLocation()))
+				{
+					handleEntry(in, ehd, zip64, entryHandler);
+				}
+				else
+				{
+					// An empty root directory. Ignore it.
+					handleEntry(in, ehd, zip64, new ZipStreamEntryHandlerDelegate()
+					{
+						public void handle(ZipStreamEntryHeaderData rootEhd, InputStream data)
+						{
+							// Nothing
+						}
+					});
+				}
+				signature = readSignatureEofOk(in);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+		catch (WrappedIOException e)
+		{
+			throw e;
+		}
+		catch (ZipFileParseException e)
+		{
+			throw e;
+		}
+		catch (RuntimeException e)
+		{
+			throw new ZipFileParseException(e);
+		}
+	}
+
+	/**
+	 * Parse the Zip data read from the channel.
+	 * @param c The channel to read Zip data from. The channel is not closed by
+	 * this method.
+	 * @param fileNameEncodingCs The charset used to decode file names. This is
+	 * not used for entries that have the UTF-8 bit in their general purpose
+	 * bit flag set.
+	 * @param entryHandler The delegate object that handles each parsed entry.
+	 * @throws ZipFileParseException On parse errors.
+	 * @throws WrappedIOException On I/O errors.
+	 * @see #parse(InputStream, Charset, ZipStreamEntryHandlerDelegate)
+	 */
+	public void parse(ReadableByteChannel c, Charset fileNameEncodingCs, ZipStreamEntryHandlerDelegate entryHandler) throws ZipFileParseException, WrappedIOException
+	{
+		parse(Channels.newInputStream(c), fileNameEncodingCs, entryHandler);
+	}
+}
@@ -0,0 +1,965 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.at4j.archive.builder.AbstractStreamAddCapableArchiveBuilder;
+import org.at4j.archive.builder.ArchiveEntryAddException;
+import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
+import org.at4j.support.lang.UnsignedShort;
+import org.at4j.support.nio.charset.Charsets;
+import org.at4j.support.util.MsDosDate;
+import org.at4j.support.util.MsDosTime;
+import org.at4j.zip.ZipFileEntry;
+import org.at4j.zip.ZipGeneralPurposeBitFlags;
+import org.at4j.zip.ZipInternalFileAttributes;
+import org.at4j.zip.comp.StoredCompressionMethod;
+import org.at4j.zip.ef.Zip64ExtendedInformationExtraField;
+import org.at4j.zip.ef.ZipEntryExtraField;
+import org.at4j.zip.ef.ZipEntryExtraFieldFactory;
+import org.at4j.zip.extattrs.UnixEntityType;
+import org.at4j.zip.extattrs.ZipExternalFileAttributes;
+import org.at4j.zip.extattrs.ZipExternalFileAttributesFactory;
+import org.entityfs.DataSink;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.lock.ReadLockRequiredException;
+import org.entityfs.lock.ReadLockable;
+import org.entityfs.support.exception.WrappedIOException;
+
+/**
+ * This is an abstract base class for the Zip builders, {@link ZipBuilder} and
+ * {@link ZipStreamBuilder}. It contains the logic for creating the local and
+ * central file headers, extra fields and the central directory of a Zip file.
+ * How the entries' data is written to the target is left to the subclasses.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @param <U> The type of the builder.
+ */
+public abstract class AbstractZipBuilder<U extends AbstractZipBuilder<U>> extends AbstractStreamAddCapableArchiveBuilder<U, ZipEntrySettings> implements ZipBuilderConfiguration
+{
+	static class ExtraFieldsCreationResult
+	{
+		List<byte[]> m_localHeaderExtraFieldFragments;
+		List<byte[]> m_centralHeaderExtraFieldFragments;
+		UnsignedShort m_localHeaderExtraFieldSize;
+		UnsignedShort m_centralHeaderExtraFieldSize;
+	}
+
+	/**
+	 * The metadata for an entry. This is created when the entry is added to
+	 * the builder.
+	 */
+	static class EntryData
+	{
+		AbsoluteLocation m_location;
+		byte[] m_fileName;
+		ExtraFieldsCreationResult m_extraFields;
+		byte[] m_fileComment;
+		ZipInternalFileAttributes m_internalFileAttributes;
+		ZipExternalFileAttributes m_externalFileAttributes;
+		ZipEntrySettings m_effectiveSettings;
+		Date m_lastModified;
+		// -1 if not known
+		long m_dataSize;
+		// The general purpose bit flags for entries that are copied from
+		// other Zip files. This is null for other entries. Their flags are
+		// created from the effective settings.
+		byte[] m_generalPurposeBitFlags;
+	}
+
+	static final int LOCAL_HEADER_SIZE = 30;
+	static final int CENTRAL_HEADER_SIZE = 46;
+	// The size except for the Zip file comment size which is variable.
+	static final int END_OF_CENTRAL_DIRECTORY_RECORD_SIZE = 22;
+
+	static final byte[] LOCAL_FILE_HEADER_SIGNATURE = new byte[] { (byte) 4, (byte) 3, (byte) 0x4b, (byte) 0x50 };
+	static final byte[] CENTRAL_FILE_HEADER_SIGNATURE = new byte[] { (byte) 2, (byte) 1, (byte) 0x4b, (byte) 0x50 };
+	static final byte[] END_OF_CENTRAL_DIRECTORY_SIGNATURE = new byte[] { (byte) 6, (byte) 5, (byte) 0x4b, (byte) 0x50 };
+	static final byte[] ZERO_BYTES = new byte[] { (byte) 0, (byte) 0, (byte) 0, (byte) 0 };
+
+	static final int ZIP64_END_OF_CENTRAL_DIRECTORY_RECORD_SIZE = 56;
+	static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+	// The size of the local header Zip64 extra field, including the extra
+	// field header. It contains the entry's uncompressed and compressed sizes.
+	static final int ZIP64_LOCAL_EXTRA_FIELD_SIZE = 20;
+	static final byte[] ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = new byte[] { (byte) 6, (byte) 6, (byte) 0x4b, (byte) 0x50 };
+	static final byte[] ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = new byte[] { (byte) 7, (byte) 6, (byte) 0x4b, (byte) 0x50 };
+	// Header field values that signal that the real value is stored in a Zip64
+	// extra field or in the Zip64 end of central directory record.
+	static final long ZIP64_MAGIC_INTEGER = 0xFFFFFFFFL;
+	static final int ZIP64_MAGIC_SHORT = 0xFFFF;
+	static final byte[] ZIP64_MAGIC_BYTES = new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+	// PKZip 4.5 is required to extract Zip64 entries
+	static final int ZIP64_VERSION_NEEDED_TO_EXTRACT = 45;
+
+	private final Charset m_fileNameEncodingCharset;
+	private final Charset m_textEncodingCharset;
+	// The central file header is written to this stream as entities are added
+	// to the Zip archive. When the builder is closed, the contents of this
+	// stream is written at the end of the created Zip file.
+	private final ByteArrayOutputStream m_centralHeaderStream;
+
+	private InternalFileAttributesStrategy m_internalFileAttributesStrategy;
+	// The file comment. This may be null
+	private final String m_fileComment;
+	private final Zip64Mode m_zip64Mode;
+	private final boolean m_storeIncompressibleFiles;
+	private int m_numberOfEntriesInCentralDirectory;
+
+	AbstractZipBuilder(ZipBuilderSettings settings)
+	{
+		super(settings != null ? ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_FILE_ENTRY_SETTINGS.combineWith(settings.getDefaultFileEntrySettings()) : ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_FILE_ENTRY_SETTINGS,
+				settings != null ? ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_DIRECTORY_ENTRY_SETTINGS.combineWith(settings.getDefaultDirectoryEntrySettings()) : ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_DIRECTORY_ENTRY_SETTINGS);
+
+		m_fileNameEncodingCharset = settings != null ? settings.getFileNameEncodingCharset() : ZipBuilderSettings.DEFAULT_FILE_NAME_ENCODING_CHARSET;
+		m_textEncodingCharset = settings != null ? settings.getTextEncodingCharset() : ZipBuilderSettings.DEFAULT_TEXT_ENCODING_CHARSET;
+		m_centralHeaderStream = new ByteArrayOutputStream();
+		m_internalFileAttributesStrategy = settings != null ? settings.getInternalFileAttributesStrategy() : new DefaultInternalFileAttributesStrategy();
+		m_fileComment = settings != null ? settings.getFileComment() : ZipBuilderSettings.DEFAULT_FILE_COMMENT;
+		m_zip64Mode = settings != null ? settings.getZip64Mode() : ZipBuilderSettings.DEFAULT_ZIP64_MODE;
+		m_storeIncompressibleFiles = settings != null ? settings.isStoreIncompressibleFiles() : true;
+	}
+
+	/**
+	 * Set the strategy to use for determining a Zip entry's internal file
+	 * attributes property.
+	 * <p>
+	 * By default, the Zip builder uses an instance of the
+	 * {@link DefaultInternalFileAttributesStrategy}.
+	 * @param strat The new internal file attributes strategy.
+	 * @return {@code this}
+	 * @see #getInternalFileAttributesStrategy()
+	 */
+	public U setInternalFileAttributesStrategy(InternalFileAttributesStrategy strat)
+	{
+		// Null check
+		strat.getClass();
+		m_internalFileAttributesStrategy = strat;
+		return getThis();
+	}
+
+	/**
+	 * Get the strategy used for determining a Zip entry's internal file
+	 * attributes property.
+	 * @return The strategy.
+	 * @see #setInternalFileAttributesStrategy(InternalFileAttributesStrategy)
+	 */
+	public InternalFileAttributesStrategy getInternalFileAttributesStrategy()
+	{
+		return m_internalFileAttributesStrategy;
+	}
+
+	/**
+	 * This method returns the default directory entry settings.
+	 * <p>
+	 * The returned object should not be modified in any way by the caller.
+	 * @return The default directory entry settings.
+	 */
+	@Override
+	protected ZipEntrySettings getDefaultDefaultDirectoryEntrySettings()
+	{
+		return ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_DIRECTORY_ENTRY_SETTINGS;
+	}
+
+	/**
+	 * This method returns the default file entry settings.
+	 * <p>
+	 * The returned object should not be modified in any way by the caller.
+	 * @return The default file entry settings.
+	 */
+	@Override
+	protected ZipEntrySettings getDefaultDefaultFileEntrySettings()
+	{
+		return ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_FILE_ENTRY_SETTINGS;
+	}
+
+	/**
+	 * Get the Zip file comment.
+	 * @return The Zip file comment. This may be {@code null}.
+	 */
+	public String getFileComment()
+	{
+		return m_fileComment;
+	}
+
+	/**
+	 * Get the charset used for encoding file names in the Zip file.
+	 * @return The charset used for encoding file names in the Zip file.
+	 * @see #getTextEncodingCharset()
+	 */
+	public Charset getFileNameEncodingCharset()
+	{
+		return m_fileNameEncodingCharset;
+	}
+
+	/**
+	 * Get the charset used for encoding text such as comments in the Zip file.
+	 * @return The charset used for encoding text in the Zip file.
+	 * @see #getFileNameEncodingCharset()
+	 */
+	public Charset getTextEncodingCharset()
+	{
+		return m_textEncodingCharset;
+	}
+
+	/**
+	 * Get the Zip64 mode used by this builder.
+	 * @return The Zip64 mode.
+	 * @since 1.2
+	 */
+	public Zip64Mode getZip64Mode()
+	{
+		return m_zip64Mode;
+	}
+
+	/**
+	 * Are file entries that do not compress stored uncompressed?
+	 * @return {@code true} if incompressible file entries are stored
+	 * uncompressed.
+	 * @since 1.2
+	 * @see ZipBuilderSettings#setStoreIncompressibleFiles(boolean)
+	 */
+	public boolean isStoreIncompressibleFiles()
+	{
+		return m_storeIncompressibleFiles;
+	}
+
+	/**
+	 * This method throws a {@link ReadLockRequiredException} if the supplied
+	 * object is not locked for reading.
+	 * @param o The object to check for locking.
+	 * @throws ReadLockRequiredException If the supplied object is not locked
+	 * for reading by the calling thread.
+	 */
+	protected void assertReadLocked(ReadLockable o) throws ReadLockRequiredException
+	{
+		if (!o.isReadLockedByCurrentThread())
+		{
+			throw new ReadLockRequiredException(o + " must be locked for reading when calling this method.");
+		}
+	}
+
+	byte[] createGeneralPurposeBitFlags(ZipEntrySettings effectiveSettings, boolean dataDescriptor)
+	{
+		ZipGeneralPurposeBitFlags res = new ZipGeneralPurposeBitFlags();
+		res.setLocalHeaderFieldsZeroed(dataDescriptor);
+		return res.toBytes(effectiveSettings.getCompressionMethod());
+	}
+
+	/**
+	 * Create local and central header versions of the extra fields.
+	 * @returnThe local and central header versions of the extra fields in a
+	 * byte[2][][]. Each extra field (local and central) is returned as an array
+	 * of data fragments.
+	 */
+	ExtraFieldsCreationResult createExtraFields(AbsoluteLocation loc, UnixEntityType entityType, Object entryToZip, ZipEntrySettings effectiveSettings)
+	{
+		ExtraFieldsCreationResult res = new ExtraFieldsCreationResult();
+		int centralHeaderExtraFieldSize = 0;
+		int localHeaderExtraFieldSize = 0;
+		res.m_centralHeaderExtraFieldFragments = new ArrayList<byte[]>();
+		res.m_localHeaderExtraFieldFragments = new ArrayList<byte[]>();
+
+		for (ZipEntryExtraFieldFactory f : effectiveSettings.getExtraFieldFactories())
+		{
+			byte[] efcode = f.getCode().getBigEndianByteArray();
+			{
+				ZipEntryExtraField lef = f.create(true, loc, entityType, entryToZip, effectiveSettings);
+				byte[] lefb = lef.encode(this);
+				byte[] lefbs = UnsignedShort.valueOf(lefb.length).getBigEndianByteArray();
+				byte[] lheader = new byte[4];
+				lheader[0] = efcode[0];
+				lheader[1] = efcode[1];
+				lheader[2] = lefbs[0];
+				lheader[3] = lefbs[1];
+				res.m_localHeaderExtraFieldFragments.add(lheader);
+				if (lefb.length > 0)
+				{
+					res.m_localHeaderExtraFieldFragments.add(lefb);
+				}
+				localHeaderExtraFieldSize += 4 + lefb.length;
+			}
+
+			{
+				ZipEntryExtraField cef = f.create(false, loc, entityType, entryToZip, effectiveSettings);
+				byte[] cefb = cef.encode(this);
+				byte[] cefbs = UnsignedShort.valueOf(cefb.length).getBigEndianByteArray();
+				byte[] cheader = new byte[4];
+				cheader[0] = efcode[0];
+				cheader[1] = efcode[1];
+				cheader[2] = cefbs[0];
+				cheader[3] = cefbs[1];
+				res.m_centralHeaderExtraFieldFragments.add(cheader);
+				if (cefb.length > 0)
+				{
+					res.m_centralHeaderExtraFieldFragments.add(cefb);
+				}
+				centralHeaderExtraFieldSize += 4 + cefb.length;
+			}
+		}
+
+		res.m_centralHeaderExtraFieldSize = UnsignedShort.valueOf(centralHeaderExtraFieldSize);
+		res.m_localHeaderExtraFieldSize = UnsignedShort.valueOf(localHeaderExtraFieldSize);
+		return res;
+	}
+
+	/**
+	 * Create local and central file headers. Some values are not filled in yet
+	 * because they require that the file has been compressed first.
+	 * @param fwr If {@code null}, it is assumed that the entry is a directory.
+	 * @param zip64InLocalHeader Is there a Zip64 extra field with the entry's
+	 * sizes in the local header?
+	 * @param centralZip64ExtraField The Zip64 extra field for the central
+	 * header, or {@code null} if the central header does not have one. The
+	 * header values that are present in the extra field are set to the Zip64
+	 * magic value in the central header.
+	 * @param dataDescriptor Is the entry followed by a data descriptor? In that
+	 * case, the general purpose bit flag 3 is set.
+	 * @return The local and central file headers (in a byte[2][])
+	 */
+	byte[][] createFileHeaders(ZipEntrySettings effectiveSettings, Date lastModified, FileWriteResult fwr, UnsignedShort fileNameLength, UnsignedShort fileCommentLength, UnsignedShort localExtraFieldsLength,
+			UnsignedShort centralExtraFieldsLength, ZipInternalFileAttributes internalFileAttributes, long relativeOffsetOfLocalHeader, ZipExternalFileAttributes extFileAttrs, boolean zip64InLocalHeader,
+			Zip64ExtendedInformationExtraField centralZip64ExtraField, boolean dataDescriptor)
+	{
+		byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
+		byte[] centralHeader = new byte[CENTRAL_HEADER_SIZE];
+
+		// Local header signature, big-endian
+		localHeader[0] = LOCAL_FILE_HEADER_SIGNATURE[3];
+		localHeader[1] = LOCAL_FILE_HEADER_SIGNATURE[2];
+		localHeader[2] = LOCAL_FILE_HEADER_SIGNATURE[1];
+		localHeader[3] = LOCAL_FILE_HEADER_SIGNATURE[0];
+
+		// Central header signature, big-endian
+		centralHeader[0] = CENTRAL_FILE_HEADER_SIGNATURE[3];
+		centralHeader[1] = CENTRAL_FILE_HEADER_SIGNATURE[2];
+		centralHeader[2] = CENTRAL_FILE_HEADER_SIGNATURE[1];
+		centralHeader[3] = CENTRAL_FILE_HEADER_SIGNATURE[0];
+
+		// Use the version required to extract for the version used to create.
+		byte[] versionNeededToExtract = fwr != null ? fwr.getCompressionMethod().getVersionNeededToExtract().getBigEndianByteArray() : new byte[] { (byte) 10, (byte) 0 };
+		if ((zip64InLocalHeader || (centralZip64ExtraField != null)) && (UnsignedShort.fromBigEndianByteArray(versionNeededToExtract).intValue() < ZIP64_VERSION_NEEDED_TO_EXTRACT))
+		{
+			versionNeededToExtract = UnsignedShort.valueOf(ZIP64_VERSION_NEEDED_TO_EXTRACT).getBigEndianByteArray();
+		}
+		centralHeader[4] = versionNeededToExtract[0];
+
+		// The version made by code
+		centralHeader[5] = extFileAttrs.getVersionMadeBy().getCode().byteValue();
+
+		// The version needed to extract
+		localHeader[4] = versionNeededToExtract[0];
+		localHeader[5] = versionNeededToExtract[1];
+		centralHeader[6] = versionNeededToExtract[0];
+		centralHeader[7] = versionNeededToExtract[1];
+
+		// General purpose bit flag
+		byte[] gpBitFlag = createGeneralPurposeBitFlags(effectiveSettings, dataDescriptor);
+		localHeader[6] = gpBitFlag[0];
+		localHeader[7] = gpBitFlag[1];
+		centralHeader[8] = gpBitFlag[0];
+		centralHeader[9] = gpBitFlag[1];
+
+		// Compression method
+		byte[] compressionMethod = fwr != null ? fwr.getCompressionMethod().getCode().getBigEndianByteArray() : StoredCompressionMethod.CODE.getBigEndianByteArray();
+		localHeader[8] = compressionMethod[0];
+		localHeader[9] = compressionMethod[1];
+		centralHeader[10] = compressionMethod[0];
+		centralHeader[11] = compressionMethod[1];
+
+		// Last mod file time
+		Calendar lastMod = Calendar.getInstance();
+		lastMod.clear();
+		lastMod.setTime(lastModified);
+		byte[] lastModFileTime = MsDosTime.encodeMsDosTime(lastMod).getBigEndianByteArray();
+		localHeader[10] = lastModFileTime[0];
+		localHeader[11] = lastModFileTime[1];
+		centralHeader[12] = lastModFileTime[0];
+		centralHeader[13] = lastModFileTime[1];
+
+		// Last mod file date
+		byte[] lastModFileDate = MsDosDate.encodeMsDosDate(lastMod).getBigEndianByteArray();
+		localHeader[12] = lastModFileDate[0];
+		localHeader[13] = lastModFileDate[1];
+		centralHeader[14] = lastModFileDate[0];
+		centralHeader[15] = lastModFileDate[1];
+
+		// CRC32
+		byte[] crc32Checksum = fwr != null ? UnsignedInteger.valueOf(fwr.getCrc32Checksum()).getBigEndianByteArray() : ZERO_BYTES;
+		localHeader[14] = crc32Checksum[0];
+		localHeader[15] = crc32Checksum[1];
+		localHeader[16] = crc32Checksum[2];
+		localHeader[17] = crc32Checksum[3];
+		centralHeader[16] = crc32Checksum[0];
+		centralHeader[17] = crc32Checksum[1];
+		centralHeader[18] = crc32Checksum[2];
+		centralHeader[19] = crc32Checksum[3];
+
+		// Compressed size. If the size is stored in a Zip64 extra field, the
+		// header field is set to the Zip64 magic value.
+		byte[] compressedSize = fwr != null ? UnsignedInteger.valueOf(fwr.getCompressedSize()).getBigEndianByteArray() : ZERO_BYTES;
+		byte[] localCompressedSize = zip64InLocalHeader ? ZIP64_MAGIC_BYTES : compressedSize;
+		localHeader[18] = localCompressedSize[0];
+		localHeader[19] = localCompressedSize[1];
+		localHeader[20] = localCompressedSize[2];
+		localHeader[21] = localCompressedSize[3];
+		byte[] centralCompressedSize = (centralZip64ExtraField != null) && (centralZip64ExtraField.getCompressedSize() != null) ? ZIP64_MAGIC_BYTES : compressedSize;
+		centralHeader[20] = centralCompressedSize[0];
+		centralHeader[21] = centralCompressedSize[1];
+		centralHeader[22] = centralCompressedSize[2];
+		centralHeader[23] = centralCompressedSize[3];
+
+		// Uncompressed size
+		byte[] uncompressedSize = fwr != null ? UnsignedInteger.valueOf(fwr.getUncompressedSize()).getBigEndianByteArray() : ZERO_BYTES;
+		byte[] localUncompressedSize = zip64InLocalHeader ? ZIP64_MAGIC_BYTES : uncompressedSize;
+		localHeader[22] = localUncompressedSize[0];
+		localHeader[23] = localUncompressedSize[1];
+		localHeader[24] = localUncompressedSize[2];
+		localHeader[25] = localUncompressedSize[3];
+		byte[] centralUncompressedSize = (centralZip64ExtraField != null) && (centralZip64ExtraField.getUncompressedSize() != null) ? ZIP64_MAGIC_BYTES : uncompressedSize;
+		centralHeader[24] = centralUncompressedSize[0];
+		centralHeader[25] = centralUncompressedSize[1];
+		centralHeader[26] = centralUncompressedSize[2];
+		centralHeader[27] = centralUncompressedSize[3];
+
+		// File name length
+		byte[] flarr = fileNameLength.getBigEndianByteArray();
+		localHeader[26] = flarr[0];
+		localHeader[27] = flarr[1];
+		centralHeader[28] = flarr[0];
+		centralHeader[29] = flarr[1];
+
+		// Extra fields length
+		byte[] lefl = localExtraFieldsLength.getBigEndianByteArray();
+		localHeader[28] = lefl[0];
+		localHeader[29] = lefl[1];
+		byte[] cefl = centralExtraFieldsLength.getBigEndianByteArray();
+		centralHeader[30] = cefl[0];
+		centralHeader[31] = cefl[1];
+
+		// File comment length
+		byte[] fcl = fileCommentLength.getBigEndianByteArray();
+		centralHeader[32] = fcl[0];
+		centralHeader[33] = fcl[1];
+
+		// Disk number start
+		centralHeader[34] = (byte) 0;
+		centralHeader[35] = (byte) 0;
+
+		// Internal file attributes
+		byte[] ifa = internalFileAttributes.getEncodedValue().getBigEndianByteArray();
+		centralHeader[36] = ifa[0];
+		centralHeader[37] = ifa[1];
+
+		// External file attributes
+		byte[] efa = extFileAttrs.getEncodedValue().getBigEndianByteArray();
+		centralHeader[38] = efa[0];
+		centralHeader[39] = efa[1];
+		centralHeader[40] = efa[2];
+		centralHeader[41] = efa[3];
+
+		// Relative offset of local header
+		byte[] roolh = (centralZip64ExtraField != null) && (centralZip64ExtraField.getRelativeOffsetOfLocalHeader() != null) ? ZIP64_MAGIC_BYTES : UnsignedInteger.valueOf(relativeOffsetOfLocalHeader).getBigEndianByteArray();
+		centralHeader[42] = roolh[0];
+		centralHeader[43] = roolh[1];
+		centralHeader[44] = roolh[2];
+		centralHeader[45] = roolh[3];
+
+		return new byte[][] { localHeader, centralHeader };
+	}
+
+	/**
+	 * Encode the Zip64 extra field, including the extra field header.
+	 */
+	byte[] encodeZip64ExtraField(Zip64ExtendedInformationExtraField ef)
+	{
+		byte[] efb = ef.encode(this);
+		byte[] res = new byte[4 + efb.length];
+		byte[] efcode = Zip64ExtendedInformationExtraField.CODE.getBigEndianByteArray();
+		byte[] efbs = UnsignedShort.valueOf(efb.length).getBigEndianByteArray();
+		res[0] = efcode[0];
+		res[1] = efcode[1];
+		res[2] = efbs[0];
+		res[3] = efbs[1];
+		System.arraycopy(efb, 0, res, 4, efb.length);
+		return res;
+	}
+
+	/**
+	 * Create the Zip64 extra field for an entry's central header.
+	 * @return The extra field, or {@code null} if the entry's central header
+	 * does not need one.
+	 */
+	Zip64ExtendedInformationExtraField createCentralZip64ExtraField(long uncompressedSize, long compressedSize, long relativeOffsetOfLocalHeader)
+	{
+		boolean always = m_zip64Mode == Zip64Mode.ALWAYS;
+		UnsignedLong us = always || (uncompressedSize >= ZIP64_MAGIC_INTEGER) ? UnsignedLong.valueOf(uncompressedSize) : null;
+		UnsignedLong cs = always || (compressedSize >= ZIP64_MAGIC_INTEGER) ? UnsignedLong.valueOf(compressedSize) : null;
+		UnsignedLong roolh = always || (relativeOffsetOfLocalHeader >= ZIP64_MAGIC_INTEGER) ? UnsignedLong.valueOf(relativeOffsetOfLocalHeader) : null;
+		return (us != null) || (cs != null) || (roolh != null) ? new Zip64ExtendedInformationExtraField(false, us, cs, roolh, null) : null;
+	}
+
+	/**
+	 * Throw an exception if the Zip64 extensions are disabled and there are
+	 * already too many entries to add another one to the archive.
+	 */
+	void assertCanAddEntry(AbsoluteLocation loc) throws ArchiveEntryAddException
+	{
+		if ((m_zip64Mode == Zip64Mode.NEVER) && (getNumberOfEntriesInCentralDirectory() + getNumberOfPendingEntries() + 1 >= ZIP64_MAGIC_SHORT))
+		{
+			throw new ArchiveEntryAddException("Cannot add " + loc + ". The archive cannot have more than " + (ZIP64_MAGIC_SHORT - 1) + " entries without using Zip64 extensions");
+		}
+	}
+
+	/**
+	 * Throw an exception if the Zip64 extensions are disabled and the entry
+	 * ends beyond the limit of what can be addressed in a Zip file without
+	 * using them.
+	 */
+	void assertEntryEndsWithinLimits(AbsoluteLocation loc, long endPos) throws ArchiveEntryAddException
+	{
+		if ((m_zip64Mode == Zip64Mode.NEVER) && (endPos >= ZIP64_MAGIC_INTEGER))
+		{
+			throw new ArchiveEntryAddException("Cannot add " + loc + ". The archive cannot be larger than 4 GB without using Zip64 extensions");
+		}
+	}
+
+	/**
+	 * Create the metadata for an entry. This is done when the entry is added,
+	 * while the file or directory is locked for reading by the calling thread.
+	 * @param loc The absolute location for the entry in the file.
+	 * @param entityType The type of entry.
+	 * @param entryToZip The file, directory or stream to add.
+	 * @param effectiveSettings The effective Zip entry settings for this entry.
+	 * @param dataSize The size of the file's data, or {@code -1} if it is not
+	 * known in advance.
+	 * @throws IOException On I/O errors
+	 */
+	EntryData prepareEntry(AbsoluteLocation loc, UnixEntityType entityType, Object entryToZip, ZipEntrySettings effectiveSettings, Date lastModified, long dataSize) throws IOException
+	{
+		EntryData res = new EntryData();
+		res.m_location = loc;
+		res.m_effectiveSettings = effectiveSettings;
+		res.m_lastModified = lastModified;
+		res.m_dataSize = dataSize;
+
+		String name = entityType == UnixEntityType.DIRECTORY ? loc.getLocation() + "/" : loc.getLocation();
+		res.m_fileName = name.substring(1).getBytes(m_fileNameEncodingCharset.name());
+
+		// Create extra fields
+		res.m_extraFields = createExtraFields(loc, entityType, entryToZip, effectiveSettings);
+
+		String fc = effectiveSettings.getComment();
+		res.m_fileComment = fc != null ? fc.getBytes(m_textEncodingCharset.name()) : new byte[0];
+
+		res.m_internalFileAttributes = m_internalFileAttributesStrategy.createInternalFileAttributes(entityType, loc);
+
+		res.m_externalFileAttributes = effectiveSettings.getExternalFileAttributesFactory().create(entityType, loc, entryToZip);
+		return res;
+	}
+
+	/**
+	 * Remove all Zip64 extra fields from the encoded extra fields. The builder
+	 * writes its own Zip64 extra fields when they are needed.
+	 */
+	byte[] removeZip64ExtraFields(byte[] encodedExtraFields)
+	{
+		ByteArrayOutputStream res = new ByteArrayOutputStream(encodedExtraFields.length);
+		int pos = 0;
+		while (pos < encodedExtraFields.length)
+		{
+			if (pos + 4 > encodedExtraFields.length)
+			{
+				// Trailing garbage. Keep it.
+				res.write(encodedExtraFields, pos, encodedExtraFields.length - pos);
+				break;
+			}
+			// Little-endian code and length
+			int code = (encodedExtraFields[pos] & 0xFF) | ((encodedExtraFields[pos + 1] & 0xFF) << 8);
+			int len = 4 + ((encodedExtraFields[pos + 2] & 0xFF) | ((encodedExtraFields[pos + 3] & 0xFF) << 8));
+			if (pos + len > encodedExtraFields.length)
+			{
+				// The field is truncated. Keep it the way it is.
+				len = encodedExtraFields.length - pos;
+			}
+			if (code != Zip64ExtendedInformationExtraField.CODE.intValue())
+			{
+				res.write(encodedExtraFields, pos, len);
+			}
+			pos += len;
+		}
+		return res.toByteArray();
+	}
+
+	/**
+	 * Create the metadata for an entry that is copied from another Zip file.
+	 * All metadata except for the entry's location is copied from the source
+	 * entry.
+	 * @param entry The source entry.
+	 * @param loc The location of the entry in the built archive.
+	 * @param effectiveSettings The default file entry settings. They are only
+	 * used for things that are not copied from the source entry.
+	 * @throws IOException On I/O errors
+	 * @throws ArchiveEntryAddException If the entry cannot be copied.
+	 */
+	EntryData prepareRawEntry(ZipFileEntry entry, AbsoluteLocation loc, ZipEntrySettings effectiveSettings) throws IOException, ArchiveEntryAddException
+	{
+		ZipGeneralPurposeBitFlags gpFlags = new ZipGeneralPurposeBitFlags(UnsignedShort.fromBigEndianByteArray(entry.getGeneralPurposeBitFlags().toBytes(entry.getCompressionMethod())));
+		if (gpFlags.isEncrypted() && gpFlags.isLocalHeaderFieldZeroed())
+		{
+			// The encryption header of such entries is verified against the
+			// last modification time instead of against the checksum. The
+			// builder does not write data descriptors, so it cannot copy
+			// them.
+			throw new ArchiveEntryAddException("Cannot copy " + entry.getLocation() + ". It is encrypted and uses a data descriptor");
+		}
+		// The sizes and the checksum are written to the local header.
+		gpFlags.setLocalHeaderFieldsZeroed(false);
+		// The file name is encoded using the builder's charset.
+		gpFlags.setUtf8Encoding(false);
+
+		EntryData res = new EntryData();
+		res.m_location = loc;
+		res.m_effectiveSettings = effectiveSettings;
+		res.m_lastModified = entry.getLastModified();
+		// The compressed data is copied as it is, so it may be larger than the
+		// uncompressed data.
+		res.m_dataSize = Math.max(entry.getUncompressedSize().longValue(), entry.getCompressedSize().longValue());
+		res.m_generalPurposeBitFlags = gpFlags.toBytes(entry.getCompressionMethod());
+		res.m_fileName = loc.getLocation().substring(1).getBytes(m_fileNameEncodingCharset.name());
+
+		ExtraFieldsCreationResult extraFields = new ExtraFieldsCreationResult();
+		byte[] localExtraFields = removeZip64ExtraFields(entry.getEncodedExtraFields(true));
+		byte[] centralExtraFields = removeZip64ExtraFields(entry.getEncodedExtraFields(false));
+		extraFields.m_localHeaderExtraFieldFragments = new ArrayList<byte[]>(1);
+		extraFields.m_localHeaderExtraFieldFragments.add(localExtraFields);
+		extraFields.m_localHeaderExtraFieldSize = UnsignedShort.valueOf(localExtraFields.length);
+		extraFields.m_centralHeaderExtraFieldFragments = new ArrayList<byte[]>(1);
+		extraFields.m_centralHeaderExtraFieldFragments.add(centralExtraFields);
+		extraFields.m_centralHeaderExtraFieldSize = UnsignedShort.valueOf(centralExtraFields.length);
+		res.m_extraFields = extraFields;
+
+		res.m_fileComment = entry.getComment().getBytes(m_textEncodingCharset.name());
+		res.m_internalFileAttributes = entry.getInternalFileAttributes();
+		res.m_externalFileAttributes = entry.getExternalFileAttributes();
+		return res;
+	}
+
+	/**
+	 * Replace the general purpose bit flags in the local and central headers
+	 * created by
+	 * {@link #createFileHeaders(ZipEntrySettings, Date, FileWriteResult, UnsignedShort, UnsignedShort, UnsignedShort, UnsignedShort, ZipInternalFileAttributes, long, ZipExternalFileAttributes, boolean, Zip64ExtendedInformationExtraField, boolean)}
+	 * with the flags from the entry data, if it has any.
+	 */
+	void setGeneralPurposeBitFlags(EntryData ed, byte[][] headers)
+	{
+		if (ed.m_generalPurposeBitFlags != null)
+		{
+			headers[0][6] = ed.m_generalPurposeBitFlags[0];
+			headers[0][7] = ed.m_generalPurposeBitFlags[1];
+			headers[1][8] = ed.m_generalPurposeBitFlags[0];
+			headers[1][9] = ed.m_generalPurposeBitFlags[1];
+		}
+	}
+
+	/**
+	 * Save the entry's central file header for writing when the builder is
+	 * closed.
+	 * @param centralZip64ExtraField The encoded Zip64 extra field, or {@code
+	 * null}.
+	 */
+	void writeCentralFileHeader(EntryData ed, byte[] centralHeader, byte[] centralZip64ExtraField) throws IOException
+	{
+		m_centralHeaderStream.write(centralHeader);
+		m_centralHeaderStream.write(ed.m_fileName);
+		if (centralZip64ExtraField != null)
+		{
+			m_centralHeaderStream.write(centralZip64ExtraField);
+		}
+		for (byte[] centralExtraFieldFragment : ed.m_extraFields.m_centralHeaderExtraFieldFragments)
+		{
+			m_centralHeaderStream.write(centralExtraFieldFragment);
+		}
+		m_centralHeaderStream.write(ed.m_fileComment);
+		m_numberOfEntriesInCentralDirectory++;
+	}
+
+	/**
+	 * Create the Zip64 end of central directory record.
+	 */
+	byte[] createZip64EndOfCentralDirectoryRecord(long startOfCentralDirectory, long sizeOfCentralDirectory)
+	{
+		byte[] res = new byte[ZIP64_END_OF_CENTRAL_DIRECTORY_RECORD_SIZE];
+
+		// Zip64 end of central directory signature, big endian
+		res[0] = ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE[3];
+		res[1] = ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE[2];
+		res[2] = ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE[1];
+		res[3] = ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE[0];
+
+		// Size of the rest of the record
+		System.arraycopy(UnsignedLong.valueOf(ZIP64_END_OF_CENTRAL_DIRECTORY_RECORD_SIZE - 12).getBigEndianByteArray(), 0, res, 4, 8);
+
+		// Version made by and version needed to extract
+		byte[] version = UnsignedShort.valueOf(ZIP64_VERSION_NEEDED_TO_EXTRACT).getBigEndianByteArray();
+		res[12] = version[0];
+		res[13] = version[1];
+		res[14] = version[0];
+		res[15] = version[1];
+
+		// Number of this disk and number of the disk with the start of the
+		// central directory are both zero (bytes 16 to 23).
+
+		// Total number of entries in the central directory on this disk and
+		// in total
+		byte[] numberOfEntries = UnsignedLong.valueOf(getNumberOfEntriesInCentralDirectory()).getBigEndianByteArray();
+		System.arraycopy(numberOfEntries, 0, res, 24, 8);
+		System.arraycopy(numberOfEntries, 0, res, 32, 8);
+
+		// Size of the central directory
+		System.arraycopy(UnsignedLong.valueOf(sizeOfCentralDirectory).getBigEndianByteArray(), 0, res, 40, 8);
+
+		// Offset of start of central directory
+		System.arraycopy(UnsignedLong.valueOf(startOfCentralDirectory).getBigEndianByteArray(), 0, res, 48, 8);
+		return res;
+	}
+
+	/**
+	 * Create the Zip64 end of central directory locator.
+	 */
+	byte[] createZip64EndOfCentralDirectoryLocator(long startOfZip64EndOfCentralDirectoryRecord)
+	{
+		byte[] res = new byte[ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE];
+
+		// Zip64 end of central directory locator signature, big endian
+		res[0] = ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE[3];
+		res[1] = ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE[2];
+		res[2] = ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE[1];
+		res[3] = ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE[0];
+
+		// Number of the disk with the start of the Zip64 end of central
+		// directory record is zero (bytes 4 to 7).
+
+		// Relative offset of the Zip64 end of central directory record
+		System.arraycopy(UnsignedLong.valueOf(startOfZip64EndOfCentralDirectoryRecord).getBigEndianByteArray(), 0, res, 8, 8);
+
+		// Total number of disks
+		res[16] = 1;
+		return res;
+	}
+
+	/**
+	 * Create the end of central directory record. Values that do not fit are
+	 * replaced with the Zip64 magic value. In that case, the Zip64 end of
+	 * central directory record contains the real values.
+	 */
+	byte[] createEndOfCentralDirectoryRecord(long startOfCentralDirectory, long sizeOfCentralDirectory)
+	{
+		boolean always = m_zip64Mode == Zip64Mode.ALWAYS;
+
+		String fileCommentString = getFileComment();
+		byte[] fileComment = fileCommentString != null ? Charsets.getBytes(fileCommentString, m_textEncodingCharset) : new byte[0];
+
+		byte[] res = new byte[END_OF_CENTRAL_DIRECTORY_RECORD_SIZE + fileComment.length];
+
+		// End of central directory signature, big endian
+		res[0] = END_OF_CENTRAL_DIRECTORY_SIGNATURE[3];
+		res[1] = END_OF_CENTRAL_DIRECTORY_SIGNATURE[2];
+		res[2] = END_OF_CENTRAL_DIRECTORY_SIGNATURE[1];
+		res[3] = END_OF_CENTRAL_DIRECTORY_SIGNATURE[0];
+
+		// Number of this disk
+		res[4] = 0;
+		res[5] = 0;
+
+		// Number of the disk with the start of the central directory
+		res[6] = 0;
+		res[7] = 0;
+
+		// Total number of entries in the central directory on this disk, big
+		// endian
+		int numberOfEntriesInCentralDirectory = getNumberOfEntriesInCentralDirectory();
+		byte[] numberOfEntries = UnsignedShort.valueOf(always || (numberOfEntriesInCentralDirectory >= ZIP64_MAGIC_SHORT) ? ZIP64_MAGIC_SHORT : numberOfEntriesInCentralDirectory).getBigEndianByteArray();
+		res[8] = numberOfEntries[0];
+		res[9] = numberOfEntries[1];
+
+		// Total number of entries in the central directory, big endian
+		res[10] = numberOfEntries[0];
+		res[11] = numberOfEntries[1];
+
+		// Size of the central directory, big endian
+		byte[] siocd = always || (sizeOfCentralDirectory >= ZIP64_MAGIC_INTEGER) ? ZIP64_MAGIC_BYTES : UnsignedInteger.valueOf(sizeOfCentralDirectory).getBigEndianByteArray();
+		res[12] = siocd[0];
+		res[13] = siocd[1];
+		res[14] = siocd[2];
+		res[15] = siocd[3];
+
+		// Offset of start of central directory with respect to the starting
+		// disk number, big endian
+		byte[] socd = always || (startOfCentralDirectory >= ZIP64_MAGIC_INTEGER) ? ZIP64_MAGIC_BYTES : UnsignedInteger.valueOf(startOfCentralDirectory).getBigEndianByteArray();
+		res[16] = socd[0];
+		res[17] = socd[1];
+		res[18] = socd[2];
+		res[19] = socd[3];
+
+		// Zip file comment length, big endian
+		byte[] fileCommentLength = UnsignedShort.valueOf(fileComment.length).getBigEndianByteArray();
+		res[20] = fileCommentLength[0];
+		res[21] = fileCommentLength[1];
+
+		// Zip file comment
+		if (fileComment.length > 0)
+		{
+			System.arraycopy(fileComment, 0, res, 22, fileComment.length);
+		}
+
+		return res;
+	}
+
+	/**
+	 * Get the central file header records for entries that were in the Zip
+	 * file before this builder was created. They are written first in the
+	 * central directory. This is used when updating an existing Zip file. This
+	 * implementation returns an empty collection.
+	 * @since 1.2
+	 */
+	Collection<byte[]> getExistingCentralFileHeaders()
+	{
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Get the total number of entries in the central directory, including the
+	 * existing entries.
+	 */
+	private int getNumberOfEntriesInCentralDirectory()
+	{
+		return m_numberOfEntriesInCentralDirectory + getExistingCentralFileHeaders().size();
+	}
+
+	/**
+	 * Get the number of entries that have been added to the builder but that
+	 * are not yet written to the central directory. This is used when
+	 * verifying that new entries can be added without Zip64 extensions.
+	 * Subclasses that buffer entries should override this. This implementation
+	 * returns {@code 0}.
+	 */
+	int getNumberOfPendingEntries()
+	{
+		return 0;
+	}
+
+	/**
+	 * Get an upper bound for the compressed size of data. Compressing data that
+	 * does not compress makes it slightly larger. The bound leaves a generous
+	 * margin for all compression methods.
+	 * @param dataSize The size of the uncompressed data.
+	 * @return The largest size that the data can get when compressed.
+	 */
+	static long getMaxCompressedSize(long dataSize)
+	{
+		return dataSize + dataSize / 32 + 65536;
+	}
+
+	/**
+	 * Should space for the entry's sizes be reserved in a Zip64 extra field in
+	 * the local header? In the {@link Zip64Mode#AS_NEEDED} mode, this is the
+	 * case if the entry's data may be 4 GB or larger. If the size of the data
+	 * is not known in advance, such as for data added from a stream, it may be.
+	 * @param dataSize The size of the entry's data, or {@code -1} if it is not
+	 * known in advance.
+	 * @param compressed Is the data compressed? If so, the compressed data may
+	 * be slightly larger than the uncompressed data.
+	 */
+	boolean isZip64InLocalHeader(long dataSize, boolean compressed)
+	{
+		switch (m_zip64Mode)
+		{
+			case NEVER:
+				return false;
+			case ALWAYS:
+				return true;
+			default:
+				if (dataSize < 0)
+				{
+					return true;
+				}
+				return (compressed ? getMaxCompressedSize(dataSize) : dataSize) >= ZIP64_MAGIC_INTEGER;
+		}
+	}
+
+	/**
+	 * Write the central directory, the Zip64 end of central directory record
+	 * and locator, if they are needed, and the end of central directory record
+	 * to the target.
+	 * @param out The target.
+	 * @param startOfCentralDirectory The position of the start of the central
+	 * directory in the Zip file.
+	 * @throws WrappedIOException On I/O errors, or if Zip64 extensions are
+	 * needed but are disabled.
+	 */
+	void writeCentralDirectory(DataSink out, long startOfCentralDirectory) throws WrappedIOException
+	{
+		try
+		{
+			m_centralHeaderStream.close();
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+
+		long sizeOfCentralDirectory = 0;
+		for (byte[] existingCentralFileHeader : getExistingCentralFileHeaders())
+		{
+			out.write(existingCentralFileHeader);
+			sizeOfCentralDirectory += existingCentralFileHeader.length;
+		}
+
+		byte[] centralDirectory = m_centralHeaderStream.toByteArray();
+		out.write(centralDirectory);
+		sizeOfCentralDirectory += centralDirectory.length;
+
+		if ((m_zip64Mode == Zip64Mode.ALWAYS) || (getNumberOfEntriesInCentralDirectory() >= ZIP64_MAGIC_SHORT) || (startOfCentralDirectory >= ZIP64_MAGIC_INTEGER) || (sizeOfCentralDirectory >= ZIP64_MAGIC_INTEGER))
+		{
+			if (m_zip64Mode == Zip64Mode.NEVER)
+			{
+				throw new WrappedIOException(new IOException("The central directory is too large to be written without using Zip64 extensions"));
+			}
+
+			// Write the Zip64 end of central directory record and locator
+			long startOfZip64EndOfCentralDirectoryRecord = startOfCentralDirectory + sizeOfCentralDirectory;
+			out.write(createZip64EndOfCentralDirectoryRecord(startOfCentralDirectory, sizeOfCentralDirectory));
+			out.write(createZip64EndOfCentralDirectoryLocator(startOfZip64EndOfCentralDirectoryRecord));
+		}
+
+		// Write the end of central directory record
+		out.write(createEndOfCentralDirectoryRecord(startOfCentralDirectory, sizeOfCentralDirectory));
+	}
+}
@@ -0,0 +1,208 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+import org.at4j.support.comp.InflaterDeflaterPool;
+import org.entityfs.ReadableFile;
+
+/**
+ * This is used by the Zip builders for estimating how well a file's data
+ * compresses by looking at a sample from the start of it. Files that do not
+ * compress, such as JPEG images, other archives or encrypted data, are stored
+ * uncompressed without wasting time on compressing them.
+ * <p>
+ * The estimate first calculates the byte entropy of the sample. If that is low
+ * enough, the data is compressible. If not, the sample is compressed with the
+ * fastest Deflate compression level. That also finds compressible data with
+ * repeated strings of random looking bytes.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class CompressibilityEstimator
+{
+	/**
+	 * The size of the sample read from the start of each file (64 kilobytes).
+	 */
+	static final int SAMPLE_SIZE = 64 * 1024;
+
+	/**
+	 * Samples smaller than this are not estimated. The compression overhead
+	 * makes all small samples look incompressible.
+	 */
+	static final int MIN_SAMPLE_SIZE = 1024;
+
+	/**
+	 * Data with a sample that is compressed to more than this share of its
+	 * size is considered incompressible.
+	 */
+	static final double INCOMPRESSIBLE_RATIO = 0.97;
+
+	/**
+	 * Data with a sample that is compressed to more than this share of its
+	 * size may become larger when compressed.
+	 */
+	static final double BORDERLINE_RATIO = 0.9;
+
+	// Samples with a lower byte entropy than this (bits per byte) are
+	// compressible
+	private static final double ENTROPY_THRESHOLD = 7.5;
+
+	private static final double LOG_2 = Math.log(2.0);
+
+	/**
+	 * Hidden constructor.
+	 */
+	private CompressibilityEstimator()
+	{
+		// Nothing
+	}
+
+	/**
+	 * Read a sample from the stream.
+	 * @param is The stream to read from. It is not closed by this method.
+	 * @param barr The array to read the sample into. It is filled unless the
+	 * end of the stream is reached before that.
+	 * @return The number of bytes read. If this is less than the length of the
+	 * array, all of the stream's data has been read.
+	 * @throws IOException On I/O errors.
+	 */
+	static int readSample(InputStream is, byte[] barr) throws IOException
+	{
+		int noRead = 0;
+		while (noRead < barr.length)
+		{
+			int n = is.read(barr, noRead, barr.length - noRead);
+			if (n < 0)
+			{
+				break;
+			}
+			noRead += n;
+		}
+		return noRead;
+	}
+
+	/**
+	 * Calculate the byte (order zero) entropy of the data.
+	 * @return The entropy, in bits per byte.
+	 */
+	private static double calculateEntropy(byte[] barr, int len)
+	{
+		int[] counts = new int[256];
+		for (int i = 0; i < len; i++)
+		{
+			counts[barr[i] & 0xFF]++;
+		}
+		double res = 0.0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			if (counts[i] > 0)
+			{
+				double p = ((double) counts[i]) / len;
+				res -= p * Math.log(p);
+			}
+		}
+		return res / LOG_2;
+	}
+
+	/**
+	 * Compress the sample with the fastest Deflate compression level.
+	 * @return The compressed size.
+	 */
+	private static long trialCompress(byte[] barr, int len)
+	{
+		Deflater def = InflaterDeflaterPool.INSTANCE.borrowDeflater(Deflater.BEST_SPEED);
+		try
+		{
+			def.setInput(barr, 0, len);
+			def.finish();
+			byte[] buf = new byte[8192];
+			while (!def.finished())
+			{
+				def.deflate(buf);
+			}
+			return def.getBytesWritten();
+		}
+		finally
+		{
+			InflaterDeflaterPool.INSTANCE.returnDeflater(Deflater.BEST_SPEED, def);
+		}
+	}
+
+	/**
+	 * Estimate how well the data compresses.
+	 * @param barr The sample.
+	 * @param len The size of the sample.
+	 * @return The estimated compressed size as a share of the uncompressed
+	 * size. If the sample is smaller than {@link #MIN_SAMPLE_SIZE}, this
+	 * method returns {@code 0}.
+	 */
+	static double estimateCompressionRatio(byte[] barr, int len)
+	{
+		if (len < MIN_SAMPLE_SIZE)
+		{
+			return 0.0;
+		}
+
+		double entropy = calculateEntropy(barr, len);
+		if (entropy < ENTROPY_THRESHOLD)
+		{
+			// Entropy coding alone makes the data this much smaller.
+			return entropy / 8;
+		}
+		return ((double) trialCompress(barr, len)) / len;
+	}
+
+	/**
+	 * Is the data incompressible?
+	 * @param barr The sample.
+	 * @param len The size of the sample.
+	 * @return {@code true} if the data should be stored uncompressed.
+	 */
+	static boolean isIncompressible(byte[] barr, int len)
+	{
+		return estimateCompressionRatio(barr, len) >= INCOMPRESSIBLE_RATIO;
+	}
+
+	/**
+	 * Is the file incompressible? This reads a sample from the start of the
+	 * file.
+	 * @param f The file. It must be locked for reading by the calling thread.
+	 * @return {@code true} if the file should be stored uncompressed.
+	 * @throws IOException On I/O errors.
+	 */
+	static boolean isIncompressible(ReadableFile f) throws IOException
+	{
+		byte[] sample = new byte[SAMPLE_SIZE];
+		int sampleLen;
+		InputStream is = f.openForRead();
+		try
+		{
+			sampleLen = readSample(is, sample);
+		}
+		finally
+		{
+			is.close();
+		}
+		return isIncompressible(sample, sampleLen);
+	}
+}
@@ -0,0 +1,74 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+/**
+ * This keeps track of how much memory the buffers used for parallel
+ * compression are allowed to use. It is shared by all buffers of a
+ * {@link ZipBuilder}.
+ * <p>
+ * This object is safe to use concurrently from several threads.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class CompressionMemoryBudget
+{
+	private final long m_budget;
+	private long m_used;
+
+	CompressionMemoryBudget(long budget)
+	{
+		if (budget < 0)
+		{
+			throw new IllegalArgumentException("Invalid memory budget " + budget + ". It must be zero or greater");
+		}
+		m_budget = budget;
+	}
+
+	/**
+	 * Try to allocate memory from the budget.
+	 * @param n The number of bytes to allocate.
+	 * @return {@code true} if the memory was allocated, {@code false} if there
+	 * is not enough memory left in the budget.
+	 */
+	synchronized boolean allocate(long n)
+	{
+		if (m_used + n > m_budget)
+		{
+			return false;
+		}
+		m_used += n;
+		return true;
+	}
+
+	/**
+	 * Return memory to the budget.
+	 * @param n The number of bytes to return.
+	 */
+	synchronized void release(long n)
+	{
+		m_used -= n;
+		assert m_used >= 0;
+	}
+
+	synchronized long getUsed()
+	{
+		return m_used;
+	}
+}
@@ -0,0 +1,382 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomAccessCloseObserver;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.RandomAccessMode;
+import org.entityfs.util.io.RandomAccessAdapter;
+
+/**
+ * This is a {@link RandomAccess} that buffers an entry's compressed data when
+ * parallel compression is used. The data is kept in memory for as long as the
+ * {@link CompressionMemoryBudget} allows it. After that, it is moved to a
+ * temporary file.
+ * <p>
+ * When the buffer is no longer used, it must be {@link #close()}:d to release
+ * its memory or delete its temporary file.
+ * <p>
+ * This object is <i>not</i> safe to use concurrently from several threads.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class EntryDataBuffer implements RandomAccess
+{
+	private static final int INITIAL_CAPACITY = 8192;
+	// The largest array that is allocated
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+	private static final byte[] EMPTY_ARRAY = new byte[0];
+
+	private final CompressionMemoryBudget m_budget;
+
+	// In-memory data. This is null when the data has been moved to a temporary
+	// file.
+	private byte[] m_data = EMPTY_ARRAY;
+	private int m_length;
+	private int m_pos;
+
+	// The temporary file and its RandomAccess. These are used when the data
+	// does not fit in the memory budget.
+	private File m_tempFile;
+	private RandomAccess m_tempFileRandomAccess;
+
+	private boolean m_closed;
+
+	EntryDataBuffer(CompressionMemoryBudget budget)
+	{
+		// Null check
+		budget.getClass();
+
+		m_budget = budget;
+	}
+
+	private void assertNotClosed() throws IllegalStateException
+	{
+		if (m_closed)
+		{
+			throw new IllegalStateException("This buffer is closed");
+		}
+	}
+
+	/**
+	 * Is the data kept in memory?
+	 */
+	boolean isInMemory()
+	{
+		return m_data != null;
+	}
+
+	/**
+	 * Move the data to a temporary file and release the memory.
+	 */
+	private void moveToTempFile() throws WrappedIOException
+	{
+		try
+		{
+			m_tempFile = File.createTempFile("at4j", ".zipentry");
+			m_tempFileRandomAccess = new RandomAccessAdapter(new RandomAccessFile(m_tempFile, "rw"), RandomAccessMode.READ_WRITE);
+		}
+		catch (IOException e)
+		{
+			if (m_tempFile != null)
+			{
+				m_tempFile.delete();
+				m_tempFile = null;
+			}
+			throw new WrappedIOException(e);
+		}
+		m_tempFileRandomAccess.write(m_data, 0, m_length);
+		m_tempFileRandomAccess.seek(m_pos);
+		m_budget.release(m_data.length);
+		m_data = null;
+	}
+
+	/**
+	 * Make sure that the in-memory buffer can hold {@code capacity} bytes. If
+	 * the memory budget does not allow that, the data is moved to a temporary
+	 * file.
+	 */
+	private void ensureCapacity(long capacity) throws WrappedIOException
+	{
+		if (capacity <= m_data.length)
+		{
+			return;
+		}
+		else if (capacity > MAX_CAPACITY)
+		{
+			moveToTempFile();
+			return;
+		}
+
+		int newCapacity = (int) Math.max(capacity, Math.min(MAX_CAPACITY, Math.max(INITIAL_CAPACITY, 2L * m_data.length)));
+		if (!m_budget.allocate(newCapacity - m_data.length))
+		{
+			// Try with just what is needed
+			newCapacity = (int) capacity;
+			if (!m_budget.allocate(newCapacity - m_data.length))
+			{
+				moveToTempFile();
+				return;
+			}
+		}
+		// The allocated memory is always the size of the array
+		byte[] newData = new byte[newCapacity];
+		System.arraycopy(m_data, 0, newData, 0, m_length);
+		m_data = newData;
+	}
+
+	/**
+	 * Write the contents of the buffer to the target.
+	 * @param out The target. The data is written at its current position.
+	 */
+	void writeTo(RandomAccess out) throws WrappedIOException
+	{
+		assertNotClosed();
+		if (m_data != null)
+		{
+			out.write(m_data, 0, m_length);
+		}
+		else
+		{
+			byte[] buf = new byte[65536];
+			m_tempFileRandomAccess.seek(0);
+			int noRead = m_tempFileRandomAccess.read(buf);
+			while (noRead >= 0)
+			{
+				out.write(buf, 0, noRead);
+				noRead = m_tempFileRandomAccess.read(buf);
+			}
+		}
+	}
+
+	public RandomAccessMode getMode()
+	{
+		return RandomAccessMode.READ_WRITE;
+	}
+
+	public void addCloseObserver(RandomAccessCloseObserver rao)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	public long getFilePointer() throws IllegalStateException
+	{
+		assertNotClosed();
+		return m_data != null ? m_pos : m_tempFileRandomAccess.getFilePointer();
+	}
+
+	public long length() throws IllegalStateException
+	{
+		assertNotClosed();
+		return m_data != null ? m_length : m_tempFileRandomAccess.length();
+	}
+
+	public void seek(long pos) throws IllegalStateException
+	{
+		assertNotClosed();
+		if (pos < 0)
+		{
+			throw new IllegalArgumentException("Invalid position " + pos);
+		}
+
+		if (m_data != null)
+		{
+			if (pos > MAX_CAPACITY)
+			{
+				moveToTempFile();
+				m_tempFileRandomAccess.seek(pos);
+			}
+			else
+			{
+				m_pos = (int) pos;
+			}
+		}
+		else
+		{
+			m_tempFileRandomAccess.seek(pos);
+		}
+	}
+
+	public void setLength(long l) throws IllegalStateException
+	{
+		assertNotClosed();
+		if (m_data != null)
+		{
+			ensureCapacity(l);
+		}
+
+		if (m_data != null)
+		{
+			if (l > m_length)
+			{
+				// Zero the new bytes
+				for (int i = m_length; i < l; i++)
+				{
+					m_data[i] = 0;
+				}
+			}
+			m_length = (int) l;
+			m_pos = Math.min(m_pos, m_length);
+		}
+		else
+		{
+			m_tempFileRandomAccess.setLength(l);
+		}
+	}
+
+	public int available() throws IllegalStateException
+	{
+		assertNotClosed();
+		return m_data != null ? Math.max(0, m_length - m_pos) : m_tempFileRandomAccess.available();
+	}
+
+	public int read() throws IllegalStateException
+	{
+		assertNotClosed();
+		if (m_data != null)
+		{
+			return m_pos < m_length ? m_data[m_pos++] & 0xFF : -1;
+		}
+		else
+		{
+			return m_tempFileRandomAccess.read();
+		}
+	}
+
+	public int read(byte[] barr) throws IllegalStateException
+	{
+		return read(barr, 0, barr.length);
+	}
+
+	public int read(byte[] barr, int off, int len) throws IllegalStateException
+	{
+		assertNotClosed();
+		if (m_data != null)
+		{
+			if (m_pos >= m_length)
+			{
+				return len == 0 ? 0 : -1;
+			}
+			int noToRead = Math.min(len, m_length - m_pos);
+			System.arraycopy(m_data, m_pos, barr, off, noToRead);
+			m_pos += noToRead;
+			return noToRead;
+		}
+		else
+		{
+			return m_tempFileRandomAccess.read(barr, off, len);
+		}
+	}
+
+	public long skipBytes(long n) throws IllegalStateException
+	{
+		assertNotClosed();
+		if (m_data != null)
+		{
+			int noToSkip = (int) Math.max(0, Math.min(n, m_length - m_pos));
+			m_pos += noToSkip;
+			return noToSkip;
+		}
+		else
+		{
+			return m_tempFileRandomAccess.skipBytes(n);
+		}
+	}
+
+	public void write(int b) throws IllegalStateException
+	{
+		assertNotClosed();
+		if (m_data != null)
+		{
+			ensureCapacity(m_pos + 1L);
+		}
+
+		if (m_data != null)
+		{
+			m_data[m_pos++] = (byte) b;
+			m_length = Math.max(m_length, m_pos);
+		}
+		else
+		{
+			m_tempFileRandomAccess.write(b);
+		}
+	}
+
+	public void write(byte[] barr) throws IllegalStateException
+	{
+		write(barr, 0, barr.length);
+	}
+
+	public void write(byte[] barr, int off, int len) throws IllegalStateException
+	{
+		assertNotClosed();
+		if (m_data != null)
+		{
+			ensureCapacity(((long) m_pos) + len);
+		}
+
+		if (m_data != null)
+		{
+			System.arraycopy(barr, off, m_data, m_pos, len);
+			m_pos += len;
+			m_length = Math.max(m_length, m_pos);
+		}
+		else
+		{
+			m_tempFileRandomAccess.write(barr, off, len);
+		}
+	}
+
+	public void flush()
+	{
+		// Nothing to do
+	}
+
+	/**
+	 * Release the buffer's memory or delete its temporary file.
+	 */
+	public void close()
+	{
+		if (!m_closed)
+		{
+			m_closed = true;
+			if (m_data != null)
+			{
+				m_budget.release(m_data.length);
+				m_data = null;
+			}
+			else
+			{
+				try
+				{
+					m_tempFileRandomAccess.close();
+				}
+				finally
+				{
+					m_tempFile.delete();
+				}
+			}
+		}
+	}
+}
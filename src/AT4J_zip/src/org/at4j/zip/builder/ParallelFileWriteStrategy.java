@@ -0,0 +1,179 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import org.entityfs.RandomAccess;
+import org.entityfs.ReadableFile;
+import org.entityfs.support.exception.WrappedIOException;
+
+/**
+ * This strategy is used when the {@link ZipBuilder} compresses entries in
+ * parallel. The file is compressed by a {@link RereadableFileWriteStrategy}
+ * running in an {@link Executor}'s thread into an {@link EntryDataBuffer}.
+ * When the {@link ZipBuilder} writes the entry, the buffered data is copied to
+ * the Zip file.
+ * <p>
+ * The compressing thread locks the file for reading while it reads it.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class ParallelFileWriteStrategy implements FileWriteStrategy
+{
+	private final EntryDataBuffer m_buffer;
+	private final FutureTask<FileWriteResult> m_task;
+	// This is set when the compression starts, or when this object is disposed
+	// of before that.
+	private final AtomicBoolean m_started = new AtomicBoolean(false);
+	// This is counted down when the compression is finished.
+	private final CountDownLatch m_finished = new CountDownLatch(1);
+
+	ParallelFileWriteStrategy(final ReadableFile f, final ZipEntrySettings effectiveSettings, final boolean storeIncompressible, CompressionMemoryBudget budget)
+	{
+		// Null checks
+		f.getClass();
+		effectiveSettings.getClass();
+
+		m_buffer = new EntryDataBuffer(budget);
+		m_task = new FutureTask<FileWriteResult>(new Callable<FileWriteResult>()
+		{
+			public FileWriteResult call() throws IOException
+			{
+				if (!m_started.compareAndSet(false, true))
+				{
+					// Disposed of
+					return null;
+				}
+
+				try
+				{
+					Lock rl = f.lockForReading();
+					try
+					{
+						return new RereadableFileWriteStrategy(f, effectiveSettings, storeIncompressible).writeFile(m_buffer);
+					}
+					finally
+					{
+						rl.unlock();
+					}
+				}
+				finally
+				{
+					m_finished.countDown();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start compressing the file.
+	 */
+	void start(Executor executor)
+	{
+		executor.execute(m_task);
+	}
+
+	/**
+	 * Is the file compressed (or has the compression failed)?
+	 */
+	boolean isDone()
+	{
+		return m_task.isDone();
+	}
+
+	/**
+	 * Wait for the file to be compressed and then copy the compressed data to
+	 * {@code out}.
+	 */
+	public FileWriteResult writeFile(RandomAccess out) throws IOException
+	{
+		FileWriteResult res;
+		try
+		{
+			res = m_task.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new WrappedIOException(new IOException("Interrupted when waiting for the file to be compressed"));
+		}
+		catch (ExecutionException e)
+		{
+			Throwable t = e.getCause();
+			if (t instanceof IOException)
+			{
+				throw (IOException) t;
+			}
+			else if (t instanceof RuntimeException)
+			{
+				throw (RuntimeException) t;
+			}
+			else if (t instanceof Error)
+			{
+				throw (Error) t;
+			}
+			else
+			{
+				throw new RuntimeException(t);
+			}
+		}
+
+		m_buffer.writeTo(out);
+		return res;
+	}
+
+	/**
+	 * Release the resources used by this object. If the compression has not
+	 * started yet, it is canceled. If it is running, this method waits for it
+	 * to finish.
+	 */
+	void dispose()
+	{
+		if (!m_started.compareAndSet(false, true))
+		{
+			// The compression has started. Wait for it to finish before
+			// releasing the buffer.
+			boolean interrupted = false;
+			while (true)
+			{
+				try
+				{
+					m_finished.await();
+					break;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		m_buffer.close();
+	}
+}
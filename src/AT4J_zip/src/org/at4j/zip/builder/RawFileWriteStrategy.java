@@ -0,0 +1,77 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.at4j.zip.ZipFileEntry;
+import org.entityfs.RandomAccess;
+
+/**
+ * This strategy copies the compressed data of an entry in another Zip file
+ * without uncompressing and recompressing it. The entry's checksum, sizes and
+ * compression method are copied too.
+ * <p>
+ * This object is used by the {@link ZipBuilder}.
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+final class RawFileWriteStrategy implements FileWriteStrategy
+{
+	private static final int BUFFER_SIZE = 65536;
+
+	private final ZipFileEntry m_entry;
+
+	RawFileWriteStrategy(ZipFileEntry entry)
+	{
+		// Null check
+		entry.getClass();
+
+		m_entry = entry;
+	}
+
+	public FileWriteResult writeFile(RandomAccess out) throws IOException
+	{
+		long compressedSize = m_entry.getCompressedSize().longValue();
+		long noCopied = 0;
+		byte[] buf = new byte[BUFFER_SIZE];
+		InputStream is = m_entry.openCompressedForRead();
+		try
+		{
+			int noRead = is.read(buf);
+			while (noRead >= 0)
+			{
+				out.write(buf, 0, noRead);
+				noCopied += noRead;
+				noRead = is.read(buf);
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+		if (noCopied != compressedSize)
+		{
+			throw new IOException("Expected to copy " + compressedSize + " bytes of data for " + m_entry.getLocation() + ". Got " + noCopied);
+		}
+		out.setLength(out.getFilePointer());
+		return new FileWriteResult(m_entry.getCompressionMethod(), m_entry.getCrc32().longValue(), m_entry.getUncompressedSize().longValue(), compressedSize);
+	}
+}
@@ -38,6 +38,10 @@ import org.entityfs.util.io.RandomAccessToOutputStreamAdapter;
  * out to be larger than the original file, it erases it an writes the file
  * uncompressed instead.
  * <p>
+ * If so configured, it first reads a sample from the start of the file. If the
+ * {@link CompressibilityEstimator} says that the file does not compress, it is
+ * written uncompressed directly.
+ * <p>
  * This object is used by the {@link ZipBuilder}.
  * @author Karl Gustafsson
  * @since 1.0
@@ -46,12 +50,15 @@ final class RereadableFileWriteStrategy implements FileWriteStrategy
 {
 	private final ReadableFile m_file;
 	private final ZipEntrySettings m_effectiveSettings;
+	private final boolean m_storeIncompressible;
 
 	/**
 	 * @param f Must be locked for reading by the calling thread during the
 	 * lifetime of this object.
+	 * @param storeIncompressible Should the file be sampled first, and stored
+	 * uncompressed if it seems to be incompressible?
 	 */
-	public RereadableFileWriteStrategy(ReadableFile f, ZipEntrySettings effectiveSettings)
+	public RereadableFileWriteStrategy(ReadableFile f, ZipEntrySettings effectiveSettings, boolean storeIncompressible)
 	{
 		// Null checks
 		f.getClass();
@@ -59,10 +66,51 @@ final class RereadableFileWriteStrategy implements FileWriteStrategy
 
 		m_file = f;
 		m_effectiveSettings = effectiveSettings;
+		m_storeIncompressible = storeIncompressible;
+	}
+
+	/**
+	 * Write the file uncompressed.
+	 */
+	private FileWriteResult writeStored(RandomAccess out) throws IOException
+	{
+		CRC32 checksum = new CRC32();
+		long size;
+		ChecksumInputStream<CRC32> chis = new ChecksumInputStream<CRC32>(m_file.openForRead(), checksum);
+		try
+		{
+			// Don't close the underlying RandomAccess
+			OutputStream os = new RandomAccessToOutputStreamAdapter(out, false);
+			try
+			{
+				size = StreamUtil.copyStreams(chis, os, 16384);
+			}
+			catch (WrappedIOException e)
+			{
+				// Un-wrap
+				throw e.getWrapped();
+			}
+			finally
+			{
+				// This does not close the RandomAccess
+				os.close();
+			}
+		}
+		finally
+		{
+			chis.close();
+		}
+		return new FileWriteResult(StoredCompressionMethod.INSTANCE, checksum.getValue(), size, size);
 	}
 
 	public FileWriteResult writeFile(RandomAccess out) throws IOException
 	{
+		if (m_storeIncompressible && (!(m_effectiveSettings.getCompressionMethod() instanceof StoredCompressionMethod)) && CompressibilityEstimator.isIncompressible(m_file))
+		{
+			// Don't waste time on compressing the file
+			return writeStored(out);
+		}
+
 		long startPos = out.getFilePointer();
 
 		long compressedSize, uncompressedSize;
@@ -111,32 +159,7 @@ final class RereadableFileWriteStrategy implements FileWriteStrategy
 
 			// Rewind to the starting point
 			out.setLength(startPos);
-			is = m_file.openForRead();
-			try
-			{
-				// Don't close the underlying RandomAccess
-				OutputStream os = new RandomAccessToOutputStreamAdapter(out, false);
-				try
-				{
-					StreamUtil.copyStreams(is, os, 16384);
-				}
-				catch (WrappedIOException e)
-				{
-					// Un-wrap
-					throw e.getWrapped();
-				}
-				finally
-				{
-					// This does not close the RandomAccess
-					os.close();
-				}
-			}
-			finally
-			{
-				is.close();
-			}
-
-			return new FileWriteResult(StoredCompressionMethod.INSTANCE, checksum.getValue(), uncompressedSize, uncompressedSize);
+			return writeStored(out);
 		}
 	}
 }
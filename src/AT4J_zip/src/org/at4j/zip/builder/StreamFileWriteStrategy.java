@@ -18,11 +18,14 @@
  */
 package org.at4j.zip.builder;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.util.zip.CRC32;
 
+import org.at4j.zip.comp.StoredCompressionMethod;
 import org.entityfs.RandomAccess;
 import org.entityfs.support.exception.WrappedIOException;
 import org.entityfs.support.io.ChecksumInputStream;
@@ -33,8 +36,17 @@ import org.entityfs.util.io.RandomAccessToOutputStreamAdapter;
 
 /**
  * This is a {@link FileWriteStrategy} that is used by the {@link ZipBuilder}
- * when data read from a stream should be added as a file entity to a Zip
- * archive.
+ * and the {@link ZipStreamBuilder} when data read from a stream should be added
+ * as a file entity to a Zip archive.
+ * <p>
+ * When used by the {@link ZipBuilder}, this strategy may store incompressible
+ * data uncompressed. It reads a sample from the start of the stream and uses
+ * the {@link CompressibilityEstimator} to decide whether to compress the data
+ * at all. If the compressed data turns out to be larger than the uncompressed
+ * data, the entry is rewritten uncompressed. The stream cannot be reread, so
+ * the uncompressed data is kept in a spill buffer while it is compressed. That
+ * is only done if all of the data did not fit in the sample and if the sample
+ * did not compress very well.
  * @author Karl Gustafsson
  * @since 1.0
  */
@@ -42,11 +54,26 @@ final class StreamFileWriteStrategy implements FileWriteStrategy
 {
 	private final InputStream m_stream;
 	private final ZipEntrySettings m_effectiveSettings;
+	// This is null if incompressible data should not be stored uncompressed.
+	private final CompressionMemoryBudget m_spillBudget;
 
 	/**
 	 * @param is This stream is not closed by this object.
 	 */
 	public StreamFileWriteStrategy(InputStream is, ZipEntrySettings effectiveSettings)
+	{
+		this(is, effectiveSettings, null);
+	}
+
+	/**
+	 * @param is This stream is not closed by this object.
+	 * @param spillBudget The memory budget for the spill buffers that are used
+	 * for rewriting entries uncompressed, or {@code null} if incompressible
+	 * data should not be stored uncompressed. This is only used when writing
+	 * to a {@link RandomAccess}.
+	 * @since 1.2
+	 */
+	StreamFileWriteStrategy(InputStream is, ZipEntrySettings effectiveSettings, CompressionMemoryBudget spillBudget)
 	{
 		// Null checks
 		is.getClass();
@@ -54,9 +81,120 @@ final class StreamFileWriteStrategy implements FileWriteStrategy
 
 		m_stream = is;
 		m_effectiveSettings = effectiveSettings;
+		m_spillBudget = spillBudget;
+	}
+
+	/**
+	 * Copy the data to {@code out} and to the spill buffer, if there is one.
+	 * @return The number of bytes copied.
+	 */
+	private long copyData(InputStream is, OutputStream out, EntryDataBuffer spill) throws IOException
+	{
+		byte[] buf = new byte[16384];
+		long res = 0;
+		int noRead = is.read(buf);
+		while (noRead >= 0)
+		{
+			out.write(buf, 0, noRead);
+			if (spill != null)
+			{
+				spill.write(buf, 0, noRead);
+			}
+			res += noRead;
+			noRead = is.read(buf);
+		}
+		return res;
 	}
 
 	public FileWriteResult writeFile(RandomAccess out) throws IOException
+	{
+		if ((m_spillBudget == null) || (m_effectiveSettings.getCompressionMethod() instanceof StoredCompressionMethod))
+		{
+			// Instruct the adapter to not close the underlying RandomAccess when
+			// closed
+			return writeFile(new RandomAccessToOutputStreamAdapter(out, false));
+		}
+
+		long startPos = out.getFilePointer();
+		byte[] sample = new byte[CompressibilityEstimator.SAMPLE_SIZE];
+		int sampleLen = CompressibilityEstimator.readSample(m_stream, sample);
+		// If the sample is not full, it contains all of the data.
+		boolean allDataInSample = sampleLen < sample.length;
+		double estimatedRatio = CompressibilityEstimator.estimateCompressionRatio(sample, sampleLen);
+		InputStream data = allDataInSample ? new ByteArrayInputStream(sample, 0, sampleLen) : new SequenceInputStream(new ByteArrayInputStream(sample, 0, sampleLen), m_stream);
+
+		CRC32 checksum = new CRC32();
+		// Calculate the CRC32 checksum for the uncompressed file
+		ChecksumInputStream<CRC32> chis = new ChecksumInputStream<CRC32>(data, checksum);
+		// Don't close the underlying RandomAccess
+		CountingOutputStream cos = new CountingOutputStream(new RandomAccessToOutputStreamAdapter(out, false));
+
+		if (estimatedRatio >= CompressibilityEstimator.INCOMPRESSIBLE_RATIO)
+		{
+			// Don't waste time on compressing the data
+			try
+			{
+				copyData(chis, cos, null);
+			}
+			finally
+			{
+				cos.close();
+			}
+			return new FileWriteResult(StoredCompressionMethod.INSTANCE, checksum.getValue(), cos.getNoOfBytesWritten(), cos.getNoOfBytesWritten());
+		}
+
+		EntryDataBuffer spill = ((!allDataInSample) && (estimatedRatio >= CompressibilityEstimator.BORDERLINE_RATIO)) ? new EntryDataBuffer(m_spillBudget) : null;
+		try
+		{
+			long uncompressedSize;
+			OutputStream os = m_effectiveSettings.getCompressionMethod().createOutputStream(cos);
+			try
+			{
+				uncompressedSize = copyData(chis, os, spill);
+			}
+			finally
+			{
+				os.close();
+			}
+			long compressedSize = cos.getNoOfBytesWritten();
+
+			if ((compressedSize >= uncompressedSize) && (allDataInSample || (spill != null)))
+			{
+				// The data got larger when it was compressed. Rewrite it
+				// uncompressed.
+				out.setLength(startPos);
+				out.seek(startPos);
+				if (allDataInSample)
+				{
+					out.write(sample, 0, sampleLen);
+				}
+				else
+				{
+					spill.writeTo(out);
+				}
+				return new FileWriteResult(StoredCompressionMethod.INSTANCE, checksum.getValue(), uncompressedSize, uncompressedSize);
+			}
+			return new FileWriteResult(m_effectiveSettings.getCompressionMethod(), checksum.getValue(), uncompressedSize, compressedSize);
+		}
+		finally
+		{
+			if (spill != null)
+			{
+				spill.close();
+			}
+		}
+	}
+
+	/**
+	 * Write the compressed file data to the stream. This is used by the
+	 * {@link ZipStreamBuilder}.
+	 * @param out The stream to write to. It is closed by this method, so it
+	 * should not close any underlying stream that should be kept open.
+	 * @return Metadata about the file.
+	 * @throws IOException On I/O errors.
+	 * @since 1.2
+	 */
+	FileWriteResult writeFile(OutputStream out) throws IOException
 	{
 		long compressedSize;
 		CRC32 checksum = new CRC32();
@@ -67,9 +205,7 @@ final class StreamFileWriteStrategy implements FileWriteStrategy
 		try
 		{
 			// Count the number of bytes written.
-			// Instruct the adapter to not close the underlying RandomAccess
-			// when closed
-			CountingOutputStream cos = new CountingOutputStream(new RandomAccessToOutputStreamAdapter(out, false));
+			CountingOutputStream cos = new CountingOutputStream(out);
 			OutputStream os = m_effectiveSettings.getCompressionMethod().createOutputStream(cos);
 			try
 			{
@@ -82,7 +218,6 @@ final class StreamFileWriteStrategy implements FileWriteStrategy
 			}
 			finally
 			{
-				// This does not close the RandomAccess
 				os.close();
 			}
 			compressedSize = cos.getNoOfBytesWritten();
@@ -92,8 +227,8 @@ final class StreamFileWriteStrategy implements FileWriteStrategy
 			chis.close();
 		}
 		long uncompressedSize = cis.getNoOfBytesReadOrSkipped();
-		// TODO: use a temporary file to uncompress the contents if it turns out
-		// that the uncompressed version was smaller.
+		// The ZipStreamBuilder cannot rewrite the entry uncompressed if it got
+		// larger.
 		return new FileWriteResult(m_effectiveSettings.getCompressionMethod(), checksum.getValue(), uncompressedSize, compressedSize);
 	}
 }
@@ -0,0 +1,64 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+/**
+ * This enumeration controls when the {@link ZipBuilder} uses the Zip64
+ * extensions to the Zip file format. Zip64 is required for archives larger
+ * than 4 GB, for entries larger than 4 GB and for archives with more than 65534
+ * entries.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see ZipBuilderSettings#setZip64Mode(Zip64Mode)
+ */
+public enum Zip64Mode
+{
+	/**
+	 * Never use Zip64. Adding an entry that would require Zip64 fails with an
+	 * {@link org.at4j.archive.builder.ArchiveEntryAddException}.
+	 */
+	NEVER("never"),
+
+	/**
+	 * Use Zip64 for entries and for the central directory only when required.
+	 * If an entry that is read from a stream turns out to be larger than 4 GB,
+	 * its data is moved to make room for the Zip64 extra field in its local
+	 * header. That requires rewriting the entry's data.
+	 */
+	AS_NEEDED("as needed"),
+
+	/**
+	 * Use Zip64 for all entries and for the central directory, regardless of
+	 * their sizes.
+	 */
+	ALWAYS("always");
+
+	private final String m_tag;
+
+	private Zip64Mode(String tag)
+	{
+		m_tag = tag;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Zip64 " + m_tag;
+	}
+}
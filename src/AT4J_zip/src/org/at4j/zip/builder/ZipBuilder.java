@@ -18,40 +18,28 @@
  */
 package org.at4j.zip.builder;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.List;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 
-import org.at4j.archive.builder.AbstractStreamAddCapableArchiveBuilder;
 import org.at4j.archive.builder.ArchiveBuilder;
 import org.at4j.archive.builder.ArchiveEntryAddException;
-import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
 import org.at4j.support.lang.UnsignedShort;
-import org.at4j.support.nio.charset.Charsets;
-import org.at4j.support.util.MsDosDate;
-import org.at4j.support.util.MsDosTime;
-import org.at4j.zip.ZipGeneralPurposeBitFlags;
-import org.at4j.zip.ZipInternalFileAttributes;
-import org.at4j.zip.comp.StoredCompressionMethod;
+import org.at4j.zip.ZipFileEntry;
 import org.at4j.zip.comp.ZipEntryCompressionMethodFactory;
-import org.at4j.zip.ef.ZipEntryExtraField;
+import org.at4j.zip.ef.Zip64ExtendedInformationExtraField;
 import org.at4j.zip.ef.ZipEntryExtraFieldFactory;
 import org.at4j.zip.extattrs.UnixEntityType;
-import org.at4j.zip.extattrs.ZipExternalFileAttributes;
 import org.at4j.zip.extattrs.ZipExternalFileAttributesFactory;
 import org.entityfs.RandomAccess;
 import org.entityfs.RandomlyAccessibleFile;
 import org.entityfs.ReadableFile;
 import org.entityfs.el.AbsoluteLocation;
 import org.entityfs.lock.DummyLock;
-import org.entityfs.lock.ReadLockRequiredException;
-import org.entityfs.lock.ReadLockable;
 import org.entityfs.support.exception.WrappedIOException;
 import org.entityfs.support.io.RandomAccessMode;
 
@@ -89,6 +77,24 @@ import org.entityfs.support.io.RandomAccessMode;
  * Global Zip file settings, such as the Zip file comment, are set directly on
  * this object.
  * <p>
+ * The Zip64 extensions to the Zip file format are used for entries and for the
+ * central directory when required, i.e. when the archive or one of its entries
+ * is larger than 4 GB, or when the archive has more than 65534 entries. This
+ * behavior is controlled by the {@link Zip64Mode} in the
+ * {@link ZipBuilderSettings}.
+ * <p>
+ * If the {@link ZipBuilderSettings} has a compression executor, file entries
+ * are compressed in parallel by the executor's threads. The compressed data is
+ * buffered in memory, or in temporary files if it does not fit in the
+ * configured memory budget, and the entries are written to the Zip file in the
+ * order that they were added. Errors that occur when compressing an entry may
+ * then be reported by a later call to an {@code add} method or to
+ * {@link #close()}. Files added to the builder must not be modified before the
+ * builder is closed.
+ * <p>
+ * File entries from other Zip files can be copied to the archive without
+ * uncompressing and recompressing them by using the {@code addRaw} methods.
+ * <p>
  * This implementation does not support adding symbolic links to the archive.
  * <p>
  * If it is in a locking {@link org.entityfs.FileSystem}, the target file is
@@ -100,40 +106,41 @@ import org.entityfs.support.io.RandomAccessMode;
  * @since 1.0
  * @see org.at4j.zip.ZipFile
  */
-public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilder, ZipEntrySettings> implements ZipBuilderConfiguration
+public class ZipBuilder extends AbstractZipBuilder<ZipBuilder>
 {
-	private static class ExtraFieldsCreationResult
+
+	/**
+	 * An entry that is waiting to be written to the Zip file when parallel
+	 * compression is used.
+	 */
+	private static class PendingEntry
 	{
-		private List<byte[]> m_localHeaderExtraFieldFragments;
-		private List<byte[]> m_centralHeaderExtraFieldFragments;
-		private UnsignedShort m_localHeaderExtraFieldSize;
-		private UnsignedShort m_centralHeaderExtraFieldSize;
-	}
+		private final EntryData m_entryData;
+		// This is null for directory entries
+		private final ParallelFileWriteStrategy m_fileWriteStrategy;
 
-	private static final int LOCAL_HEADER_SIZE = 30;
-	private static final int CENTRAL_HEADER_SIZE = 46;
-	// The size except for the Zip file comment size which is variable.
-	private static final int END_OF_CENTRAL_DIRECTORY_RECORD_SIZE = 22;
+		private PendingEntry(EntryData ed, ParallelFileWriteStrategy fws)
+		{
+			m_entryData = ed;
+			m_fileWriteStrategy = fws;
+		}
+	}
 
-	private static final byte[] LOCAL_FILE_HEADER_SIGNATURE = new byte[] { (byte) 4, (byte) 3, (byte) 0x4b, (byte) 0x50 };
-	private static final byte[] CENTRAL_FILE_HEADER_SIGNATURE = new byte[] { (byte) 2, (byte) 1, (byte) 0x4b, (byte) 0x50 };
-	private static final byte[] END_OF_CENTRAL_DIRECTORY_SIGNATURE = new byte[] { (byte) 6, (byte) 5, (byte) 0x4b, (byte) 0x50 };
-	private static final byte[] ZERO_BYTES = new byte[] { (byte) 0, (byte) 0, (byte) 0, (byte) 0 };
+	// The maximum number of entries that may be waiting to be written when
+	// parallel compression is used. This limits the number of temporary files
+	// used for entries that do not fit in the memory budget.
+	private static final int MAX_NUMBER_OF_PENDING_ENTRIES = 128;
 
 	private final Lock m_targetWriteLock;
 	private final RandomAccess m_targetRandomAccess;
 	private final boolean m_closeRandomAccessWhenClosingBuilder;
-	private final Charset m_fileNameEncodingCharset;
-	private final Charset m_textEncodingCharset;
-	// The central file header is written to this stream as entities are added
-	// to the Zip archive. When the builder is closed, the contents of this
-	// stream is written at the end of the created Zip file.
-	private final ByteArrayOutputStream m_centralHeaderStream;
-
-	private InternalFileAttributesStrategy m_internalFileAttributesStrategy;
-	// The file comment. This may be null
-	private final String m_fileComment;
-	private int m_numberOfEntriesInCentralDirectory;
+	// The executor used for parallel compression. This is null if entries
+	// should be compressed by the thread adding them.
+	private final Executor m_compressionExecutor;
+	private final CompressionMemoryBudget m_compressionMemoryBudget;
+	// Entries that are waiting to be written to the Zip file, in the order
+	// that they were added.
+	private final LinkedList<PendingEntry> m_pendingEntries = new LinkedList<PendingEntry>();
 
 	// This is set to true by the close() method.
 	private boolean m_closed;
@@ -171,18 +178,26 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 	 */
 	public ZipBuilder(RandomlyAccessibleFile target, ZipBuilderSettings settings) throws WrappedIOException
 	{
-		super(settings != null ? ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_FILE_ENTRY_SETTINGS.combineWith(settings.getDefaultFileEntrySettings()) : ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_FILE_ENTRY_SETTINGS,
-				settings != null ? ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_DIRECTORY_ENTRY_SETTINGS.combineWith(settings.getDefaultDirectoryEntrySettings()) : ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_DIRECTORY_ENTRY_SETTINGS);
+		this(target, settings, true);
+	}
+
+	/**
+	 * Create a new Zip builder on the target file.
+	 * @param truncate Should the previous contents of the target file be
+	 * discarded? If not, the subclass is responsible for positioning the
+	 * target {@link RandomAccess} where the first entry should be written.
+	 * @since 1.2
+	 */
+	ZipBuilder(RandomlyAccessibleFile target, ZipBuilderSettings settings, boolean truncate) throws WrappedIOException
+	{
+		super(settings);
 
 		// Null checks
 		target.getClass();
 
-		m_fileNameEncodingCharset = settings != null ? settings.getFileNameEncodingCharset() : ZipBuilderSettings.DEFAULT_FILE_NAME_ENCODING_CHARSET;
-		m_textEncodingCharset = settings != null ? settings.getTextEncodingCharset() : ZipBuilderSettings.DEFAULT_TEXT_ENCODING_CHARSET;
-		m_centralHeaderStream = new ByteArrayOutputStream();
 		m_closeRandomAccessWhenClosingBuilder = true;
-		m_internalFileAttributesStrategy = settings != null ? settings.getInternalFileAttributesStrategy() : new DefaultInternalFileAttributesStrategy();
-		m_fileComment = settings != null ? settings.getFileComment() : ZipBuilderSettings.DEFAULT_FILE_COMMENT;
+		m_compressionExecutor = settings != null ? settings.getCompressionExecutor() : null;
+		m_compressionMemoryBudget = new CompressionMemoryBudget(settings != null ? settings.getCompressionMemoryBudget() : ZipBuilderSettings.DEFAULT_COMPRESSION_MEMORY_BUDGET);
 
 		boolean successful = false;
 		RandomAccess targetRandomAccess = null;
@@ -190,7 +205,10 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 		try
 		{
 			targetRandomAccess = target.openForRandomAccess(RandomAccessMode.READ_WRITE);
-			targetRandomAccess.setLength(0);
+			if (truncate)
+			{
+				targetRandomAccess.setLength(0);
+			}
 			m_targetRandomAccess = targetRandomAccess;
 			successful = true;
 		}
@@ -223,102 +241,16 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 	 */
 	public ZipBuilder(RandomAccess target, ZipBuilderSettings settings) throws WrappedIOException
 	{
-		super(settings != null ? ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_FILE_ENTRY_SETTINGS.combineWith(settings.getDefaultFileEntrySettings()) : ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_FILE_ENTRY_SETTINGS,
-				settings != null ? ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_DIRECTORY_ENTRY_SETTINGS.combineWith(settings.getDefaultDirectoryEntrySettings()) : ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_DIRECTORY_ENTRY_SETTINGS);
+		super(settings);
 
 		// Null check
 		target.getClass();
 
-		m_fileNameEncodingCharset = settings != null ? settings.getFileNameEncodingCharset() : ZipBuilderSettings.DEFAULT_FILE_NAME_ENCODING_CHARSET;
-		m_textEncodingCharset = settings != null ? settings.getTextEncodingCharset() : ZipBuilderSettings.DEFAULT_TEXT_ENCODING_CHARSET;
-		m_centralHeaderStream = new ByteArrayOutputStream();
 		m_closeRandomAccessWhenClosingBuilder = false;
 		m_targetRandomAccess = target;
 		m_targetWriteLock = DummyLock.INSTANCE;
-		m_internalFileAttributesStrategy = settings != null ? settings.getInternalFileAttributesStrategy() : new DefaultInternalFileAttributesStrategy();
-		m_fileComment = settings != null ? settings.getFileComment() : ZipBuilderSettings.DEFAULT_FILE_COMMENT;
-	}
-
-	/**
-	 * Set the strategy to use for determining a Zip entry's internal file
-	 * attributes property.
-	 * <p>
-	 * By default, the Zip builder uses an instance of the
-	 * {@link DefaultInternalFileAttributesStrategy}.
-	 * @param strat The new internal file attributes strategy.
-	 * @return {@code this}
-	 * @see #getInternalFileAttributesStrategy()
-	 */
-	public ZipBuilder setInternalFileAttributesStrategy(InternalFileAttributesStrategy strat)
-	{
-		// Null check
-		strat.getClass();
-		m_internalFileAttributesStrategy = strat;
-		return this;
-	}
-
-	/**
-	 * Get the strategy used for determining a Zip entry's internal file
-	 * attributes property.
-	 * @return The strategy.
-	 * @see #setInternalFileAttributesStrategy(InternalFileAttributesStrategy)
-	 */
-	public InternalFileAttributesStrategy getInternalFileAttributesStrategy()
-	{
-		return m_internalFileAttributesStrategy;
-	}
-
-	/**
-	 * This method returns the default directory entry settings.
-	 * <p>
-	 * The returned object should not be modified in any way by the caller.
-	 * @return The default directory entry settings.
-	 */
-	@Override
-	protected ZipEntrySettings getDefaultDefaultDirectoryEntrySettings()
-	{
-		return ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_DIRECTORY_ENTRY_SETTINGS;
-	}
-
-	/**
-	 * This method returns the default file entry settings.
-	 * <p>
-	 * The returned object should not be modified in any way by the caller.
-	 * @return The default file entry settings.
-	 */
-	@Override
-	protected ZipEntrySettings getDefaultDefaultFileEntrySettings()
-	{
-		return ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_FILE_ENTRY_SETTINGS;
-	}
-
-	/**
-	 * Get the Zip file comment.
-	 * @return The Zip file comment. This may be {@code null}.
-	 */
-	public String getFileComment()
-	{
-		return m_fileComment;
-	}
-
-	/**
-	 * Get the charset used for encoding file names in the Zip file.
-	 * @return The charset used for encoding file names in the Zip file.
-	 * @see #getTextEncodingCharset()
-	 */
-	public Charset getFileNameEncodingCharset()
-	{
-		return m_fileNameEncodingCharset;
-	}
-
-	/**
-	 * Get the charset used for encoding text such as comments in the Zip file.
-	 * @return The charset used for encoding text in the Zip file.
-	 * @see #getFileNameEncodingCharset()
-	 */
-	public Charset getTextEncodingCharset()
-	{
-		return m_textEncodingCharset;
+		m_compressionExecutor = settings != null ? settings.getCompressionExecutor() : null;
+		m_compressionMemoryBudget = new CompressionMemoryBudget(settings != null ? settings.getCompressionMemoryBudget() : ZipBuilderSettings.DEFAULT_COMPRESSION_MEMORY_BUDGET);
 	}
 
 	/**
@@ -336,249 +268,90 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 	}
 
 	/**
-	 * This method throws a {@link ReadLockRequiredException} if the supplied
-	 * object is not locked for reading.
-	 * @param o The object to check for locking.
-	 * @throws ReadLockRequiredException If the supplied object is not locked
-	 * for reading by the calling thread.
+	 * Get the {@link RandomAccess} on the target file.
 	 */
-	protected void assertReadLocked(ReadLockable o) throws ReadLockRequiredException
-	{
-		if (!o.isReadLockedByCurrentThread())
-		{
-			throw new ReadLockRequiredException(o + " must be locked for reading when calling this method.");
-		}
-	}
-
-	private byte[] createGeneralPurposeBitFlags(ZipEntrySettings effectiveSettings)
+	RandomAccess getTargetRandomAccess()
 	{
-		ZipGeneralPurposeBitFlags res = new ZipGeneralPurposeBitFlags();
-		// Nothing here for now...
-		return res.toBytes(effectiveSettings.getCompressionMethod());
+		return m_targetRandomAccess;
 	}
 
 	/**
-	 * Create local and central header versions of the extra fields.
-	 * @returnThe local and central header versions of the extra fields in a
-	 * byte[2][][]. Each extra field (local and central) is returned as an array
-	 * of data fragments.
+	 * Close the builder without writing the central directory. This is used by
+	 * subclasses that fail to initialize themselves.
 	 */
-	private ExtraFieldsCreationResult createExtraFields(AbsoluteLocation loc, UnixEntityType entityType, Object entryToZip, ZipEntrySettings effectiveSettings)
+	void abort()
 	{
-		ExtraFieldsCreationResult res = new ExtraFieldsCreationResult();
-		int centralHeaderExtraFieldSize = 0;
-		int localHeaderExtraFieldSize = 0;
-		res.m_centralHeaderExtraFieldFragments = new ArrayList<byte[]>();
-		res.m_localHeaderExtraFieldFragments = new ArrayList<byte[]>();
-
-		for (ZipEntryExtraFieldFactory f : effectiveSettings.getExtraFieldFactories())
+		if (!m_closed)
 		{
-			byte[] efcode = f.getCode().getBigEndianByteArray();
+			try
 			{
-				ZipEntryExtraField lef = f.create(true, loc, entityType, entryToZip, effectiveSettings);
-				byte[] lefb = lef.encode(this);
-				byte[] lefbs = UnsignedShort.valueOf(lefb.length).getBigEndianByteArray();
-				byte[] lheader = new byte[4];
-				lheader[0] = efcode[0];
-				lheader[1] = efcode[1];
-				lheader[2] = lefbs[0];
-				lheader[3] = lefbs[1];
-				res.m_localHeaderExtraFieldFragments.add(lheader);
-				if (lefb.length > 0)
+				if (m_closeRandomAccessWhenClosingBuilder)
 				{
-					res.m_localHeaderExtraFieldFragments.add(lefb);
+					m_targetRandomAccess.close();
 				}
-				localHeaderExtraFieldSize += 4 + lefb.length;
 			}
-
+			finally
 			{
-				ZipEntryExtraField cef = f.create(false, loc, entityType, entryToZip, effectiveSettings);
-				byte[] cefb = cef.encode(this);
-				byte[] cefbs = UnsignedShort.valueOf(cefb.length).getBigEndianByteArray();
-				byte[] cheader = new byte[4];
-				cheader[0] = efcode[0];
-				cheader[1] = efcode[1];
-				cheader[2] = cefbs[0];
-				cheader[3] = cefbs[1];
-				res.m_centralHeaderExtraFieldFragments.add(cheader);
-				if (cefb.length > 0)
-				{
-					res.m_centralHeaderExtraFieldFragments.add(cefb);
-				}
-				centralHeaderExtraFieldSize += 4 + cefb.length;
+				m_targetWriteLock.unlock();
+				m_closed = true;
 			}
 		}
-
-		res.m_centralHeaderExtraFieldSize = UnsignedShort.valueOf(centralHeaderExtraFieldSize);
-		res.m_localHeaderExtraFieldSize = UnsignedShort.valueOf(localHeaderExtraFieldSize);
-		return res;
 	}
 
 	/**
-	 * Create local and central file headers. Some values are not filled in yet
-	 * because they require that the file has been compressed first.
-	 * @param fwr If {@code null}, it is assumed that the entry is a directory.
-	 * @return The local and central file headers (in a byte[2][])
+	 * Move the data between {@code pos} and {@code endPos} {@code n} bytes
+	 * forward in the target file. This is used to make room for a Zip64 extra
+	 * field in the local header of an entry that turned out to be larger than
+	 * expected.
+	 * @return The new end position.
 	 */
-	private byte[][] createFileHeaders(ZipEntrySettings effectiveSettings, Date lastModified, FileWriteResult fwr, UnsignedShort fileNameLength, UnsignedShort fileCommentLength, UnsignedShort localExtraFieldsLength,
-			UnsignedShort centralExtraFieldsLength, ZipInternalFileAttributes internalFileAttributes, UnsignedInteger relativeOffsetOfLocalHeader, ZipExternalFileAttributes extFileAttrs)
+	private long insertSpace(long pos, long endPos, int n)
 	{
-		byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
-		byte[] centralHeader = new byte[CENTRAL_HEADER_SIZE];
-
-		// Local header signature, big-endian
-		localHeader[0] = LOCAL_FILE_HEADER_SIGNATURE[3];
-		localHeader[1] = LOCAL_FILE_HEADER_SIGNATURE[2];
-		localHeader[2] = LOCAL_FILE_HEADER_SIGNATURE[1];
-		localHeader[3] = LOCAL_FILE_HEADER_SIGNATURE[0];
-
-		// Central header signature, big-endian
-		centralHeader[0] = CENTRAL_FILE_HEADER_SIGNATURE[3];
-		centralHeader[1] = CENTRAL_FILE_HEADER_SIGNATURE[2];
-		centralHeader[2] = CENTRAL_FILE_HEADER_SIGNATURE[1];
-		centralHeader[3] = CENTRAL_FILE_HEADER_SIGNATURE[0];
-
-		// Use the version required to extract for the version used to create.
-		byte[] versionNeededToExtract = fwr != null ? fwr.getCompressionMethod().getVersionNeededToExtract().getBigEndianByteArray() : new byte[] { (byte) 10, (byte) 0 };
-		centralHeader[4] = versionNeededToExtract[0];
-
-		// The version made by code
-		centralHeader[5] = extFileAttrs.getVersionMadeBy().getCode().byteValue();
-
-		// The version needed to extract
-		localHeader[4] = versionNeededToExtract[0];
-		localHeader[5] = versionNeededToExtract[1];
-		centralHeader[6] = versionNeededToExtract[0];
-		centralHeader[7] = versionNeededToExtract[1];
-
-		// General purpose bit flag
-		byte[] gpBitFlag = createGeneralPurposeBitFlags(effectiveSettings);
-		localHeader[6] = gpBitFlag[0];
-		localHeader[7] = gpBitFlag[1];
-		centralHeader[8] = gpBitFlag[0];
-		centralHeader[9] = gpBitFlag[1];
-
-		// Compression method
-		byte[] compressionMethod = fwr != null ? fwr.getCompressionMethod().getCode().getBigEndianByteArray() : StoredCompressionMethod.CODE.getBigEndianByteArray();
-		localHeader[8] = compressionMethod[0];
-		localHeader[9] = compressionMethod[1];
-		centralHeader[10] = compressionMethod[0];
-		centralHeader[11] = compressionMethod[1];
-
-		// Last mod file time
-		Calendar lastMod = Calendar.getInstance();
-		lastMod.clear();
-		lastMod.setTime(lastModified);
-		byte[] lastModFileTime = MsDosTime.encodeMsDosTime(lastMod).getBigEndianByteArray();
-		localHeader[10] = lastModFileTime[0];
-		localHeader[11] = lastModFileTime[1];
-		centralHeader[12] = lastModFileTime[0];
-		centralHeader[13] = lastModFileTime[1];
-
-		// Last mod file date
-		byte[] lastModFileDate = MsDosDate.encodeMsDosDate(lastMod).getBigEndianByteArray();
-		localHeader[12] = lastModFileDate[0];
-		localHeader[13] = lastModFileDate[1];
-		centralHeader[14] = lastModFileDate[0];
-		centralHeader[15] = lastModFileDate[1];
-
-		// CRC32
-		byte[] crc32Checksum = fwr != null ? UnsignedInteger.valueOf(fwr.getCrc32Checksum()).getBigEndianByteArray() : ZERO_BYTES;
-		localHeader[14] = crc32Checksum[0];
-		localHeader[15] = crc32Checksum[1];
-		localHeader[16] = crc32Checksum[2];
-		localHeader[17] = crc32Checksum[3];
-		centralHeader[16] = crc32Checksum[0];
-		centralHeader[17] = crc32Checksum[1];
-		centralHeader[18] = crc32Checksum[2];
-		centralHeader[19] = crc32Checksum[3];
-
-		// Compressed size
-		byte[] compressedSize = fwr != null ? UnsignedInteger.valueOf(fwr.getCompressedSize()).getBigEndianByteArray() : ZERO_BYTES;
-		localHeader[18] = compressedSize[0];
-		localHeader[19] = compressedSize[1];
-		localHeader[20] = compressedSize[2];
-		localHeader[21] = compressedSize[3];
-		centralHeader[20] = compressedSize[0];
-		centralHeader[21] = compressedSize[1];
-		centralHeader[22] = compressedSize[2];
-		centralHeader[23] = compressedSize[3];
-
-		// Uncompressed size
-		byte[] uncompressedSize = fwr != null ? UnsignedInteger.valueOf(fwr.getUncompressedSize()).getBigEndianByteArray() : ZERO_BYTES;
-		localHeader[22] = uncompressedSize[0];
-		localHeader[23] = uncompressedSize[1];
-		localHeader[24] = uncompressedSize[2];
-		localHeader[25] = uncompressedSize[3];
-		centralHeader[24] = uncompressedSize[0];
-		centralHeader[25] = uncompressedSize[1];
-		centralHeader[26] = uncompressedSize[2];
-		centralHeader[27] = uncompressedSize[3];
-
-		// File name length
-		byte[] flarr = fileNameLength.getBigEndianByteArray();
-		localHeader[26] = flarr[0];
-		localHeader[27] = flarr[1];
-		centralHeader[28] = flarr[0];
-		centralHeader[29] = flarr[1];
-
-		// Extra fields length
-		byte[] lefl = localExtraFieldsLength.getBigEndianByteArray();
-		localHeader[28] = lefl[0];
-		localHeader[29] = lefl[1];
-		byte[] cefl = centralExtraFieldsLength.getBigEndianByteArray();
-		centralHeader[30] = cefl[0];
-		centralHeader[31] = cefl[1];
-
-		// File comment length
-		byte[] fcl = fileCommentLength.getBigEndianByteArray();
-		centralHeader[32] = fcl[0];
-		centralHeader[33] = fcl[1];
-
-		// Disk number start
-		centralHeader[34] = (byte) 0;
-		centralHeader[35] = (byte) 0;
-
-		// Internal file attributes
-		byte[] ifa = internalFileAttributes.getEncodedValue().getBigEndianByteArray();
-		centralHeader[36] = ifa[0];
-		centralHeader[37] = ifa[1];
-
-		// External file attributes
-		byte[] efa = extFileAttrs.getEncodedValue().getBigEndianByteArray();
-		centralHeader[38] = efa[0];
-		centralHeader[39] = efa[1];
-		centralHeader[40] = efa[2];
-		centralHeader[41] = efa[3];
-
-		// Relative offset of local header
-		byte[] roolh = relativeOffsetOfLocalHeader.getBigEndianByteArray();
-		centralHeader[42] = roolh[0];
-		centralHeader[43] = roolh[1];
-		centralHeader[44] = roolh[2];
-		centralHeader[45] = roolh[3];
-
-		return new byte[][] { localHeader, centralHeader };
+		byte[] buf = new byte[65536];
+		long readPos = endPos;
+		while (readPos > pos)
+		{
+			int len = (int) Math.min(buf.length, readPos - pos);
+			readPos -= len;
+			m_targetRandomAccess.seek(readPos);
+			int noRead = 0;
+			while (noRead < len)
+			{
+				int r = m_targetRandomAccess.read(buf, noRead, len - noRead);
+				if (r < 0)
+				{
+					throw new WrappedIOException(new IOException("Unexpected end of file at position " + (readPos + noRead)));
+				}
+				noRead += r;
+			}
+			m_targetRandomAccess.seek(readPos + n);
+			m_targetRandomAccess.write(buf, 0, len);
+		}
+		return endPos + n;
 	}
 
 	/**
 	 * Write a file entry to the Zip file. This method writes the entry to the
 	 * file and saves the entry's central directory record for later writing.
-	 * @param loc The absolute location for the entry in the file.
-	 * @param f The file to write. The file should be locked for reading when
-	 * this method is called.
-	 * @param effectiveSettings The effective Zip entry settings for this entry.
+	 * @param ed The entry's metadata.
+	 * @param fws The strategy for writing the file's data.
 	 * @throws IOException On I/O errors
+	 * @throws ArchiveEntryAddException If the entry requires Zip64 extensions
+	 * and they are disabled.
 	 */
-	private void writeFile(AbsoluteLocation loc, FileWriteStrategy fws, Object entryToZip, ZipEntrySettings effectiveSettings, Date lastModified) throws IOException
+	private void writeFile(EntryData ed, FileWriteStrategy fws) throws IOException, ArchiveEntryAddException
 	{
-		byte[] fileName = loc.getLocation().substring(1).getBytes(m_fileNameEncodingCharset.name());
-
-		// Create extra fields
-		ExtraFieldsCreationResult extraFields = createExtraFields(loc, UnixEntityType.REGULAR_FILE, entryToZip, effectiveSettings);
+		AbsoluteLocation loc = ed.m_location;
+		byte[] fileName = ed.m_fileName;
+		ExtraFieldsCreationResult extraFields = ed.m_extraFields;
+		// Files that do not get smaller when compressed are stored
+		// uncompressed, so the compressed size of a file is never larger than
+		// its size. If data of unknown size turns out to need Zip64
+		// extensions, room for them is made after the data has been written.
+		boolean zip64InLocalHeader = ed.m_dataSize >= 0 ? isZip64InLocalHeader(ed.m_dataSize, false) : getZip64Mode() == Zip64Mode.ALWAYS;
 
 		byte[][] headers;
-		byte[] fileComment;
+		byte[] centralZip64ExtraField = null;
 
 		// Write the file name, the local extra fields and the file, but leave 
 		// the local header blank so far
@@ -590,29 +363,57 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 
 			m_targetRandomAccess.write(fileName);
 
+			if (zip64InLocalHeader)
+			{
+				// Reserve space for the Zip64 extra field. It is written
+				// together with the local header when the entry's sizes are
+				// known.
+				m_targetRandomAccess.write(new byte[ZIP64_LOCAL_EXTRA_FIELD_SIZE]);
+			}
+
 			for (byte[] localExtraFieldFragment : extraFields.m_localHeaderExtraFieldFragments)
 			{
 				m_targetRandomAccess.write(localExtraFieldFragment);
 			}
 
 			FileWriteResult fwr = fws.writeFile(m_targetRandomAccess);
+			long endPos = m_targetRandomAccess.getFilePointer();
 
-			String fc = effectiveSettings.getComment();
-			fileComment = fc != null ? fc.getBytes(m_textEncodingCharset.name()) : new byte[0];
-
-			ZipInternalFileAttributes intFileAttributes = m_internalFileAttributesStrategy.createInternalFileAttributes(UnixEntityType.REGULAR_FILE, loc);
-
-			ZipExternalFileAttributes extFileAttrs = effectiveSettings.getExternalFileAttributesFactory().create(UnixEntityType.REGULAR_FILE, loc, entryToZip);
+			if ((!zip64InLocalHeader) && ((fwr.getUncompressedSize() >= ZIP64_MAGIC_INTEGER) || (fwr.getCompressedSize() >= ZIP64_MAGIC_INTEGER)))
+			{
+				if (getZip64Mode() == Zip64Mode.NEVER)
+				{
+					throw new ArchiveEntryAddException("Cannot add " + loc + ". Entries larger than 4 GB require Zip64 extensions, and they are disabled");
+				}
+				// The entry's size was not known in advance. Make room for
+				// the Zip64 extra field after the file name.
+				endPos = insertSpace(startPos + LOCAL_HEADER_SIZE + fileName.length, endPos, ZIP64_LOCAL_EXTRA_FIELD_SIZE);
+				zip64InLocalHeader = true;
+			}
+			assertEntryEndsWithinLimits(loc, endPos);
 
-			headers = createFileHeaders(effectiveSettings, lastModified, fwr, UnsignedShort.valueOf(fileName.length), UnsignedShort.valueOf(fileComment.length), extraFields.m_localHeaderExtraFieldSize,
-					extraFields.m_centralHeaderExtraFieldSize, intFileAttributes, UnsignedInteger.valueOf(startPos), extFileAttrs);
+			Zip64ExtendedInformationExtraField cz64ef = createCentralZip64ExtraField(fwr.getUncompressedSize(), fwr.getCompressedSize(), startPos);
+			if (cz64ef != null)
+			{
+				centralZip64ExtraField = encodeZip64ExtraField(cz64ef);
+			}
 
-			long endPos = m_targetRandomAccess.getFilePointer();
+			UnsignedShort localExtraFieldsLength = UnsignedShort.valueOf(extraFields.m_localHeaderExtraFieldSize.intValue() + (zip64InLocalHeader ? ZIP64_LOCAL_EXTRA_FIELD_SIZE : 0));
+			UnsignedShort centralExtraFieldsLength = UnsignedShort.valueOf(extraFields.m_centralHeaderExtraFieldSize.intValue() + (centralZip64ExtraField != null ? centralZip64ExtraField.length : 0));
+			headers = createFileHeaders(ed.m_effectiveSettings, ed.m_lastModified, fwr, UnsignedShort.valueOf(fileName.length), UnsignedShort.valueOf(ed.m_fileComment.length), localExtraFieldsLength, centralExtraFieldsLength,
+					ed.m_internalFileAttributes, startPos, ed.m_externalFileAttributes, zip64InLocalHeader, cz64ef, false);
+			setGeneralPurposeBitFlags(ed, headers);
 
 			// Rewind to write the local file header.
 			m_targetRandomAccess.seek(startPos);
 			m_targetRandomAccess.write(headers[0]);
 			assert m_targetRandomAccess.getFilePointer() == startPos + LOCAL_HEADER_SIZE;
+			if (zip64InLocalHeader)
+			{
+				// Write the Zip64 extra field after the file name
+				m_targetRandomAccess.seek(startPos + LOCAL_HEADER_SIZE + fileName.length);
+				m_targetRandomAccess.write(encodeZip64ExtraField(new Zip64ExtendedInformationExtraField(true, UnsignedLong.valueOf(fwr.getUncompressedSize()), UnsignedLong.valueOf(fwr.getCompressedSize()), null, null)));
+			}
 			m_targetRandomAccess.seek(endPos);
 			successful = true;
 		}
@@ -626,58 +427,55 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 			}
 		}
 
-		// Write the central file header
-		m_centralHeaderStream.write(headers[1]);
-		m_centralHeaderStream.write(fileName);
-		for (byte[] centralExtraFieldFragment : extraFields.m_centralHeaderExtraFieldFragments)
-		{
-			m_centralHeaderStream.write(centralExtraFieldFragment);
-		}
-		m_centralHeaderStream.write(fileComment);
-		m_numberOfEntriesInCentralDirectory++;
+		writeCentralFileHeader(ed, headers[1], centralZip64ExtraField);
 	}
 
 	/**
 	 * Write a single directory entry to the Zip file. The directory's contents
 	 * is not added.
-	 * @param loc The absolute location for the entry in the file.
-	 * @param effectiveSettings The effective Zip entry settings for this entry.
+	 * @param ed The entry's metadata.
 	 * @throws IOException On I/O errors
+	 * @throws ArchiveEntryAddException If the entry requires Zip64 extensions
+	 * and they are disabled.
 	 */
-	private void writeDirectory(AbsoluteLocation loc, Object entryToZip, ZipEntrySettings effectiveSettings, Date lastModified) throws IOException
+	private void writeDirectory(EntryData ed) throws IOException, ArchiveEntryAddException
 	{
-		byte[] fileName = (loc.getLocation() + "/").substring(1).getBytes(m_fileNameEncodingCharset.name());
-
-		// Create extra fields
-		ExtraFieldsCreationResult extraFields = createExtraFields(loc, UnixEntityType.DIRECTORY, entryToZip, effectiveSettings);
+		ExtraFieldsCreationResult extraFields = ed.m_extraFields;
+		boolean zip64InLocalHeader = getZip64Mode() == Zip64Mode.ALWAYS;
 
 		byte[][] headers;
-		byte[] fileComment;
+		byte[] centralZip64ExtraField = null;
 
 		long startPos = m_targetRandomAccess.getFilePointer();
 		boolean successful = false;
 		try
 		{
-			ZipInternalFileAttributes intFileAttributes = m_internalFileAttributesStrategy.createInternalFileAttributes(UnixEntityType.DIRECTORY, loc);
-
-			ZipExternalFileAttributes extFileAttrs = effectiveSettings.getExternalFileAttributesFactory().create(UnixEntityType.DIRECTORY, loc, entryToZip);
-
-			String fc = effectiveSettings.getComment();
-			fileComment = fc != null ? fc.getBytes(m_textEncodingCharset.name()) : new byte[0];
+			Zip64ExtendedInformationExtraField cz64ef = createCentralZip64ExtraField(0L, 0L, startPos);
+			if (cz64ef != null)
+			{
+				centralZip64ExtraField = encodeZip64ExtraField(cz64ef);
+			}
 
 			// Create local and central file headers
-			headers = createFileHeaders(effectiveSettings, lastModified, null, UnsignedShort.valueOf(fileName.length), UnsignedShort.valueOf(fileComment.length), extraFields.m_localHeaderExtraFieldSize,
-					extraFields.m_centralHeaderExtraFieldSize, intFileAttributes, UnsignedInteger.valueOf(startPos), extFileAttrs);
+			UnsignedShort localExtraFieldsLength = UnsignedShort.valueOf(extraFields.m_localHeaderExtraFieldSize.intValue() + (zip64InLocalHeader ? ZIP64_LOCAL_EXTRA_FIELD_SIZE : 0));
+			UnsignedShort centralExtraFieldsLength = UnsignedShort.valueOf(extraFields.m_centralHeaderExtraFieldSize.intValue() + (centralZip64ExtraField != null ? centralZip64ExtraField.length : 0));
+			headers = createFileHeaders(ed.m_effectiveSettings, ed.m_lastModified, null, UnsignedShort.valueOf(ed.m_fileName.length), UnsignedShort.valueOf(ed.m_fileComment.length), localExtraFieldsLength,
+					centralExtraFieldsLength, ed.m_internalFileAttributes, startPos, ed.m_externalFileAttributes, zip64InLocalHeader, cz64ef, false);
 
 			// Local file header
 			m_targetRandomAccess.write(headers[0]);
 			// Directory name
-			m_targetRandomAccess.write(fileName);
+			m_targetRandomAccess.write(ed.m_fileName);
+			if (zip64InLocalHeader)
+			{
+				m_targetRandomAccess.write(encodeZip64ExtraField(new Zip64ExtendedInformationExtraField(true, UnsignedLong.valueOf(0L), UnsignedLong.valueOf(0L), null, null)));
+			}
 			// Local extra fields
 			for (byte[] localExtraFieldFragment : extraFields.m_localHeaderExtraFieldFragments)
 			{
 				m_targetRandomAccess.write(localExtraFieldFragment);
 			}
+			assertEntryEndsWithinLimits(ed.m_location, m_targetRandomAccess.getFilePointer());
 			successful = true;
 		}
 		finally
@@ -690,23 +488,111 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 			}
 		}
 
-		// Write the central file header
-		m_centralHeaderStream.write(headers[1]);
-		m_centralHeaderStream.write(fileName);
-		for (byte[] centralExtraFieldFragment : extraFields.m_centralHeaderExtraFieldFragments)
+		writeCentralFileHeader(ed, headers[1], centralZip64ExtraField);
+	}
+
+	/**
+	 * Write a pending entry to the Zip file.
+	 */
+	private void writePendingEntry(PendingEntry pe) throws WrappedIOException, ArchiveEntryAddException
+	{
+		try
+		{
+			if (pe.m_fileWriteStrategy != null)
+			{
+				writeFile(pe.m_entryData, pe.m_fileWriteStrategy);
+			}
+			else
+			{
+				writeDirectory(pe.m_entryData);
+			}
+		}
+		catch (IOException e)
 		{
-			m_centralHeaderStream.write(centralExtraFieldFragment);
+			throw new WrappedIOException(e);
 		}
-		m_centralHeaderStream.write(fileComment);
-		m_numberOfEntriesInCentralDirectory++;
+		finally
+		{
+			if (pe.m_fileWriteStrategy != null)
+			{
+				pe.m_fileWriteStrategy.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Write pending entries to the Zip file, in the order that they were
+	 * added. Entries are written until the first entry that is still being
+	 * compressed, unless there are more pending entries than what is allowed.
+	 * In that case, this method waits for the first entries to be compressed.
+	 * @param all Should all pending entries be written?
+	 */
+	private void writePendingEntries(boolean all) throws WrappedIOException, ArchiveEntryAddException
+	{
+		while (!m_pendingEntries.isEmpty())
+		{
+			PendingEntry pe = m_pendingEntries.getFirst();
+			if (all || (m_pendingEntries.size() > MAX_NUMBER_OF_PENDING_ENTRIES) || (pe.m_fileWriteStrategy == null) || pe.m_fileWriteStrategy.isDone())
+			{
+				m_pendingEntries.removeFirst();
+				writePendingEntry(pe);
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Add an entry to the list of pending entries. If the entry is a file, its
+	 * compression is started.
+	 */
+	private void addPendingEntry(PendingEntry pe) throws WrappedIOException, ArchiveEntryAddException
+	{
+		m_pendingEntries.add(pe);
+		if (pe.m_fileWriteStrategy != null)
+		{
+			boolean successful = false;
+			try
+			{
+				pe.m_fileWriteStrategy.start(m_compressionExecutor);
+				successful = true;
+			}
+			finally
+			{
+				if (!successful)
+				{
+					m_pendingEntries.removeLast();
+					pe.m_fileWriteStrategy.dispose();
+				}
+			}
+		}
+		writePendingEntries(false);
+	}
+
+	@Override
+	int getNumberOfPendingEntries()
+	{
+		return m_pendingEntries.size();
 	}
 
 	@Override
 	protected void addDirectoryCallback(AbsoluteLocation location, Object d, ZipEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
 	{
+		assertCanAddEntry(location);
 		try
 		{
-			writeDirectory(location, d, effectiveSettings, lastModified);
+			EntryData ed = prepareEntry(location, UnixEntityType.DIRECTORY, d, effectiveSettings, lastModified, 0L);
+			if (m_pendingEntries.isEmpty())
+			{
+				writeDirectory(ed);
+			}
+			else
+			{
+				// Keep the order of the entries
+				addPendingEntry(new PendingEntry(ed, null));
+			}
 		}
 		catch (IOException e)
 		{
@@ -717,9 +603,18 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 	@Override
 	protected void addFileCallback(AbsoluteLocation location, ReadableFile f, ZipEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
 	{
+		assertCanAddEntry(location);
 		try
 		{
-			writeFile(location, new RereadableFileWriteStrategy(f, effectiveSettings), f, effectiveSettings, lastModified);
+			EntryData ed = prepareEntry(location, UnixEntityType.REGULAR_FILE, f, effectiveSettings, lastModified, f.getDataSize());
+			if (m_compressionExecutor != null)
+			{
+				addPendingEntry(new PendingEntry(ed, new ParallelFileWriteStrategy(f, effectiveSettings, isStoreIncompressibleFiles(), m_compressionMemoryBudget)));
+			}
+			else
+			{
+				writeFile(ed, new RereadableFileWriteStrategy(f, effectiveSettings, isStoreIncompressibleFiles()));
+			}
 		}
 		catch (IOException e)
 		{
@@ -730,9 +625,14 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 	@Override
 	protected void addStreamCallback(AbsoluteLocation location, InputStream is, ZipEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
 	{
+		assertCanAddEntry(location);
 		try
 		{
-			writeFile(location, new StreamFileWriteStrategy(is, effectiveSettings), is, effectiveSettings, lastModified);
+			EntryData ed = prepareEntry(location, UnixEntityType.REGULAR_FILE, is, effectiveSettings, lastModified, -1L);
+			// The stream has to be read before this method returns, so all
+			// pending entries must be written first.
+			writePendingEntries(true);
+			writeFile(ed, new StreamFileWriteStrategy(is, effectiveSettings, isStoreIncompressibleFiles() ? m_compressionMemoryBudget : null));
 		}
 		catch (IOException e)
 		{
@@ -740,68 +640,75 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 		}
 	}
 
-	public boolean isClosed()
+	/**
+	 * Copy a file entry from another Zip file to this Zip file without
+	 * uncompressing and recompressing its data. This is much faster than
+	 * adding the entry's uncompressed data, which makes this useful for
+	 * merging or filtering Zip files.
+	 * <p>
+	 * The entry's compressed data, checksum, sizes, compression method, last
+	 * modification time, comment, internal and external file attributes and
+	 * extra fields are copied as they are. The builder's entry settings and
+	 * rules are not used for the entry. Zip64 extra fields are not copied;
+	 * the builder creates new ones if they are needed. The entry may be
+	 * compressed using a compression method that is not supported by AT4J.
+	 * <p>
+	 * Encrypted entries that use data descriptors cannot be copied.
+	 * @param entry The entry to copy. Its Zip file must be open until this
+	 * method returns.
+	 * @param location The location of the entry in this Zip file.
+	 * @return {@code this}
+	 * @throws IllegalStateException If the builder is closed.
+	 * @throws WrappedIOException On I/O errors.
+	 * @throws ArchiveEntryAddException If the entry cannot be copied.
+	 * @since 1.2
+	 * @see #addRaw(ZipFileEntry)
+	 * @see ZipFileEntry#openCompressedForRead()
+	 */
+	public ZipBuilder addRaw(ZipFileEntry entry, AbsoluteLocation location) throws IllegalStateException, WrappedIOException, ArchiveEntryAddException
 	{
-		return m_closed;
-	}
+		// Null checks
+		entry.getClass();
+		location.getClass();
 
-	private byte[] createEndOfCentralDirectoryRecord(UnsignedInteger startOfCentralDirectory, UnsignedInteger sizeOfCentralDirectory)
-	{
-		byte[] fileComment = m_fileComment != null ? Charsets.getBytes(m_fileComment, m_textEncodingCharset) : new byte[0];
-
-		byte[] res = new byte[END_OF_CENTRAL_DIRECTORY_RECORD_SIZE + fileComment.length];
-
-		// End of central directory signature, big endian
-		res[0] = END_OF_CENTRAL_DIRECTORY_SIGNATURE[3];
-		res[1] = END_OF_CENTRAL_DIRECTORY_SIGNATURE[2];
-		res[2] = END_OF_CENTRAL_DIRECTORY_SIGNATURE[1];
-		res[3] = END_OF_CENTRAL_DIRECTORY_SIGNATURE[0];
-
-		// Number of this disk
-		res[4] = 0;
-		res[5] = 0;
-
-		// Number of the disk with the start of the central directory
-		res[6] = 0;
-		res[7] = 0;
-
-		// Total number of entries in the central directory on this disk, big
-		// endian
-		byte[] numberOfEntries = UnsignedShort.valueOf(m_numberOfEntriesInCentralDirectory).getBigEndianByteArray();
-		res[8] = numberOfEntries[0];
-		res[9] = numberOfEntries[1];
-
-		// Total number of entries in the central directory, big endian
-		res[10] = numberOfEntries[0];
-		res[11] = numberOfEntries[1];
-
-		// Size of the central directory, big endian
-		byte[] siocd = sizeOfCentralDirectory.getBigEndianByteArray();
-		res[12] = siocd[0];
-		res[13] = siocd[1];
-		res[14] = siocd[2];
-		res[15] = siocd[3];
-
-		// Offset of start of central directory with respect to the starting
-		// disk number, big endian
-		byte[] socd = startOfCentralDirectory.getBigEndianByteArray();
-		res[16] = socd[0];
-		res[17] = socd[1];
-		res[18] = socd[2];
-		res[19] = socd[3];
-
-		// Zip file comment length, big endian
-		byte[] fileCommentLength = UnsignedShort.valueOf(fileComment.length).getBigEndianByteArray();
-		res[20] = fileCommentLength[0];
-		res[21] = fileCommentLength[1];
-
-		// Zip file comment
-		if (fileComment.length > 0)
+		assertNotClosed();
+		assertCanAddEntry(location);
+		try
+		{
+			EntryData ed = prepareRawEntry(entry, location, getDefaultFileEntrySettings());
+			// Copying is fast, so just write all pending entries first
+			// instead of adding the copied entry to them.
+			writePendingEntries(true);
+			writeFile(ed, new RawFileWriteStrategy(entry));
+		}
+		catch (IOException e)
 		{
-			System.arraycopy(fileComment, 0, res, 22, fileComment.length);
+			throw new WrappedIOException(e);
 		}
+		return this;
+	}
 
-		return res;
+	/**
+	 * Copy a file entry from another Zip file to the same location in this Zip
+	 * file without uncompressing and recompressing its data. See
+	 * {@link #addRaw(ZipFileEntry, AbsoluteLocation)}.
+	 * @param entry The entry to copy. Its Zip file must be open until this
+	 * method returns.
+	 * @return {@code this}
+	 * @throws IllegalStateException If the builder is closed.
+	 * @throws WrappedIOException On I/O errors.
+	 * @throws ArchiveEntryAddException If the entry cannot be copied.
+	 * @since 1.2
+	 * @see #addRaw(ZipFileEntry, AbsoluteLocation)
+	 */
+	public ZipBuilder addRaw(ZipFileEntry entry) throws IllegalStateException, WrappedIOException, ArchiveEntryAddException
+	{
+		return addRaw(entry, entry.getLocation());
+	}
+
+	public boolean isClosed()
+	{
+		return m_closed;
 	}
 
 	/**
@@ -812,26 +719,37 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 	{
 		if (!m_closed)
 		{
+			RuntimeException pendingEntryException = null;
 			try
 			{
 				try
 				{
-					// Write the central directory
-					try
+					// Write all pending entries. If an entry fails, the
+					// remaining entries are still written so that the Zip
+					// file is complete.
+					while (!m_pendingEntries.isEmpty())
 					{
-						m_centralHeaderStream.close();
+						try
+						{
+							writePendingEntry(m_pendingEntries.removeFirst());
+						}
+						catch (RuntimeException e)
+						{
+							if (pendingEntryException == null)
+							{
+								pendingEntryException = e;
+							}
+						}
 					}
-					catch (IOException e)
+
+					// Write the central directory
+					writeCentralDirectory(m_targetRandomAccess, m_targetRandomAccess.getFilePointer());
+					if (m_closeRandomAccessWhenClosingBuilder)
 					{
-						throw new WrappedIOException(e);
+						// Discard old data after the end of the Zip file. There
+						// is old data if an existing Zip file was updated.
+						m_targetRandomAccess.setLength(m_targetRandomAccess.getFilePointer());
 					}
-
-					long startOfCentralDirectory = m_targetRandomAccess.getFilePointer();
-					m_targetRandomAccess.write(m_centralHeaderStream.toByteArray());
-					long sizeOfCentralDirectory = m_targetRandomAccess.getFilePointer() - startOfCentralDirectory;
-
-					// Write the end of central directory record
-					m_targetRandomAccess.write(createEndOfCentralDirectoryRecord(UnsignedInteger.valueOf(startOfCentralDirectory), UnsignedInteger.valueOf(sizeOfCentralDirectory)));
 				}
 				finally
 				{
@@ -843,9 +761,24 @@ public class ZipBuilder extends AbstractStreamAddCapableArchiveBuilder<ZipBuilde
 			}
 			finally
 			{
+				// Release the resources held by entries that were not
+				// written
+				for (PendingEntry pe : m_pendingEntries)
+				{
+					if (pe.m_fileWriteStrategy != null)
+					{
+						pe.m_fileWriteStrategy.dispose();
+					}
+				}
+				m_pendingEntries.clear();
 				m_targetWriteLock.unlock();
 				m_closed = true;
 			}
+
+			if (pendingEntryException != null)
+			{
+				throw pendingEntryException;
+			}
 		}
 	}
 
@@ -1,6 +1,7 @@
 package org.at4j.zip.builder;
 
 import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
 
 import org.at4j.comp.CompressionLevel;
 
@@ -55,6 +56,15 @@ import org.at4j.comp.CompressionLevel;
  * <p>
  * The platform's default {@link Charset} is used for encoding text.
  * <p>
+ * By default, the Zip64 extensions are only used when they are required (
+ * {@link Zip64Mode#AS_NEEDED}).
+ * <p>
+ * By default, file entries are compressed by the thread that adds them to the
+ * Zip builder. Set a compression executor to compress them in parallel.
+ * <p>
+ * By default, the Zip builders store file entries that do not compress
+ * uncompressed. See {@link #setStoreIncompressibleFiles(boolean)}.
+ * <p>
  * The setter methods of this object return the object instance so that setter
  * calls can be chained together.
  * @author Karl Gustafsson
@@ -71,12 +81,29 @@ public class ZipBuilderSettings
 	 */
 	public static final String DEFAULT_FILE_COMMENT = "*** Created by AT4J -- www.at4j.org ***";
 
+	/**
+	 * The default Zip64 mode.
+	 * @since 1.2
+	 */
+	public static final Zip64Mode DEFAULT_ZIP64_MODE = Zip64Mode.AS_NEEDED;
+
+	/**
+	 * The default memory budget for buffering compressed entries when parallel
+	 * compression is used (32 MB).
+	 * @since 1.2
+	 */
+	public static final long DEFAULT_COMPRESSION_MEMORY_BUDGET = 32 * 1024 * 1024;
+
 	private ZipEntrySettings m_defaultFileEntrySettings = new ZipEntrySettings(ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_FILE_ENTRY_SETTINGS);
 	private ZipEntrySettings m_defaultDirectoryEntrySettings = new ZipEntrySettings(ZipBuilderConstants.DEFAULT_DEFAULT_ZIP_DIRECTORY_ENTRY_SETTINGS);
 	private Charset m_fileNameEncodingCharset = DEFAULT_FILE_NAME_ENCODING_CHARSET;
 	private Charset m_textEncodingCharset = DEFAULT_TEXT_ENCODING_CHARSET;
 	private InternalFileAttributesStrategy m_internalFileAttributesStrategy = new DefaultInternalFileAttributesStrategy();
 	private String m_fileComment = DEFAULT_FILE_COMMENT;
+	private Zip64Mode m_zip64Mode = DEFAULT_ZIP64_MODE;
+	private Executor m_compressionExecutor;
+	private long m_compressionMemoryBudget = DEFAULT_COMPRESSION_MEMORY_BUDGET;
+	private boolean m_storeIncompressibleFiles = true;
 
 	/**
 	 * Get the default settings for file entries.
@@ -245,4 +272,141 @@ public class ZipBuilderSettings
 		m_fileComment = s;
 		return this;
 	}
+
+	/**
+	 * Get the Zip64 mode.
+	 * @return The Zip64 mode.
+	 * @since 1.2
+	 */
+	public Zip64Mode getZip64Mode()
+	{
+		return m_zip64Mode;
+	}
+
+	/**
+	 * Set when the Zip builder should use the Zip64 extensions to the Zip
+	 * file format. The default value is {@link Zip64Mode#AS_NEEDED}.
+	 * @param mode The Zip64 mode.
+	 * @return {@code this}
+	 * @since 1.2
+	 */
+	public ZipBuilderSettings setZip64Mode(Zip64Mode mode)
+	{
+		// Null check
+		mode.getClass();
+
+		m_zip64Mode = mode;
+		return this;
+	}
+
+	/**
+	 * Get the executor used for compressing file entries in parallel.
+	 * @return The executor, or {@code null} if file entries are compressed by
+	 * the thread adding them to the Zip builder.
+	 * @since 1.2
+	 */
+	public Executor getCompressionExecutor()
+	{
+		return m_compressionExecutor;
+	}
+
+	/**
+	 * Set an executor that the {@link ZipBuilder} uses to compress several
+	 * file entries in parallel. The entries are still written to the Zip file
+	 * in the order that they were added. This speeds up adding many files,
+	 * for instance using one of the {@code addRecursively} methods, on a
+	 * computer with several CPU:s.
+	 * <p>
+	 * The compressed data for an entry is kept in memory until the entry is
+	 * written to the Zip file. When the {@link #setCompressionMemoryBudget(long)
+	 * memory budget} is used up, it is stored in temporary files instead.
+	 * <p>
+	 * Entries whose data is read from streams are compressed by the thread
+	 * adding them. The Zip builder does not shut the executor down when it is
+	 * closed.
+	 * @param executor The executor, or {@code null} if file entries should be
+	 * compressed by the thread adding them to the Zip builder.
+	 * @return {@code this}
+	 * @since 1.2
+	 */
+	public ZipBuilderSettings setCompressionExecutor(Executor executor)
+	{
+		m_compressionExecutor = executor;
+		return this;
+	}
+
+	/**
+	 * Get the memory budget for buffering compressed entries when parallel
+	 * compression is used.
+	 * @return The memory budget, in bytes.
+	 * @since 1.2
+	 */
+	public long getCompressionMemoryBudget()
+	{
+		return m_compressionMemoryBudget;
+	}
+
+	/**
+	 * Set the memory budget for buffering compressed entries when parallel
+	 * compression is used. The default budget is
+	 * {@link #DEFAULT_COMPRESSION_MEMORY_BUDGET}.
+	 * @param budget The memory budget, in bytes.
+	 * @return {@code this}
+	 * @throws IllegalArgumentException If {@code budget} is negative.
+	 * @since 1.2
+	 * @see #setCompressionExecutor(Executor)
+	 */
+	public ZipBuilderSettings setCompressionMemoryBudget(long budget) throws IllegalArgumentException
+	{
+		if (budget < 0)
+		{
+			throw new IllegalArgumentException("Invalid memory budget " + budget + ". It must be zero or greater");
+		}
+
+		m_compressionMemoryBudget = budget;
+		return this;
+	}
+
+	/**
+	 * Are file entries that do not compress stored uncompressed?
+	 * @return {@code true} if incompressible file entries are stored
+	 * uncompressed.
+	 * @since 1.2
+	 * @see #setStoreIncompressibleFiles(boolean)
+	 */
+	public boolean isStoreIncompressibleFiles()
+	{
+		return m_storeIncompressibleFiles;
+	}
+
+	/**
+	 * Should file entries that do not compress be stored uncompressed?
+	 * <p>
+	 * If this is enabled (the default), the Zip builders estimate how well each
+	 * file compresses from the first 64 kilobytes of its data before
+	 * compressing it. Data that does not compress, such as JPEG images, other
+	 * archives or encrypted data, is stored uncompressed without being
+	 * compressed first.
+	 * <p>
+	 * The {@link ZipBuilder} also checks the result of compressing each file.
+	 * If the compressed data turns out to be larger than the uncompressed
+	 * data, the file is stored uncompressed instead. Data from streams that
+	 * may not compress is saved in memory or in a temporary file while it is
+	 * compressed, for that purpose.
+	 * <p>
+	 * The {@link ZipStreamBuilder} cannot rewrite entries. It stores
+	 * incompressible files, and data from streams if all of the stream's data
+	 * fits in the sample.
+	 * <p>
+	 * This setting is ignored for entries that have the
+	 * {@link org.at4j.zip.comp.StoredCompressionMethod}.
+	 * @param b Should incompressible file entries be stored uncompressed?
+	 * @return {@code this}
+	 * @since 1.2
+	 */
+	public ZipBuilderSettings setStoreIncompressibleFiles(boolean b)
+	{
+		m_storeIncompressibleFiles = b;
+		return this;
+	}
 }
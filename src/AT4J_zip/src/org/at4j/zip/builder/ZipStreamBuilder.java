@@ -0,0 +1,569 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+import java.util.zip.CRC32;
+
+import org.at4j.archive.builder.ArchiveEntryAddException;
+import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
+import org.at4j.support.lang.UnsignedShort;
+import org.at4j.zip.comp.StoredCompressionMethod;
+import org.at4j.zip.ef.Zip64ExtendedInformationExtraField;
+import org.at4j.zip.extattrs.UnixEntityType;
+import org.entityfs.DataSink;
+import org.entityfs.ReadableFile;
+import org.entityfs.WritableFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.lock.DummyLock;
+import org.entityfs.lock.EntityLock;
+import org.entityfs.support.exception.WrappedIOException;
+import org.entityfs.support.io.ChecksumInputStream;
+import org.entityfs.support.io.CountingOutputStream;
+import org.entityfs.support.io.OutputStreamProxy;
+import org.entityfs.support.io.StreamUtil;
+import org.entityfs.util.io.OutputStreamToDataSinkAdapter;
+
+/**
+ * This Zip builder writes its output to a stream or to a
+ * {@link java.nio.channels.WritableByteChannel}, so it can be used when the
+ * target cannot be rewound, for instance when writing a Zip file to a network
+ * socket or to a HTTP response. Apart from that, it works just like the
+ * {@link ZipBuilder}.
+ * <p>
+ * Since the builder cannot go back and update an entry's local file header
+ * after the entry's data has been written, the CRC32 checksum and the
+ * compressed and uncompressed sizes of a compressed file entry are written in
+ * a <i>data descriptor</i> after the entry's data. This is signaled by setting
+ * bit 3 in the entry's general purpose bit flag. Files that are stored
+ * uncompressed are read twice; first to calculate their checksums and then to
+ * write them to the archive. They do not need a data descriptor. Data added
+ * from streams always gets a data descriptor.
+ * <p>
+ * Unlike the {@link ZipBuilder}, this builder cannot fall back to storing a
+ * file uncompressed if compressing it makes it larger.
+ * <p>
+ * If an entry uses Zip64 extensions, the sizes in the data descriptor are
+ * eight bytes long. Whether an entry uses Zip64 extensions or not must be
+ * decided before its data is written. In the {@link Zip64Mode#AS_NEEDED} mode,
+ * they are used for files that may be 4 GB or larger when compressed. They
+ * are also used for data added from streams that are longer than
+ * {@value CompressibilityEstimator#SAMPLE_SIZE} bytes, since the builder cannot
+ * know the size of that data in advance. Some older Zip readers, such as
+ * Java's {@code ZipInputStream} before Java 21, expect four byte sizes in the
+ * data descriptors of small entries even if they have Zip64 extra fields. Use
+ * the {@link Zip64Mode#NEVER} mode for archives that will be read by them. In
+ * that mode, adding a stream that contains 4 GB of data or more fails with an
+ * {@link ArchiveEntryAddException}, and it leaves a corrupt archive behind.
+ * <p>
+ * If it is in a locking {@link org.entityfs.FileSystem}, the target file is
+ * locked for writing until the Zip builder is {@link #close()}:d.
+ * <p>
+ * This object is <i>not</i> safe to use concurrently from several threads
+ * without external synchronization.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see ZipBuilder
+ * @see org.at4j.zip.ZipFile
+ */
+public class ZipStreamBuilder extends AbstractZipBuilder<ZipStreamBuilder>
+{
+	/**
+	 * This stream is used when writing an entry's data to the target stream.
+	 * It does not close the target stream when it is closed.
+	 */
+	private static class NonClosingOutputStream extends OutputStreamProxy
+	{
+		private NonClosingOutputStream(OutputStream os)
+		{
+			super(os);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			flush();
+		}
+	}
+
+	// The data descriptor signature is optional, but it is recommended by the
+	// Zip file format specification.
+	private static final byte[] DATA_DESCRIPTOR_SIGNATURE = new byte[] { (byte) 8, (byte) 7, (byte) 0x4b, (byte) 0x50 };
+
+	// Count the number of bytes written to keep track of the offsets of the
+	// entries' local headers.
+	private final CountingOutputStream m_countingOut;
+	private final DataSink m_out;
+	private final boolean m_closeOutStreamWhenClosing;
+	private final EntityLock m_targetWriteLock;
+
+	private boolean m_closed = false;
+
+	/**
+	 * Create a Zip builder using the default settings. (See
+	 * {@link ZipBuilderSettings}.)
+	 * @param f The file to write the archive to. The previous contents of this
+	 * file is discarded. If this method completes successfully, the target file
+	 * is locked for writing until {@link #close()} is called.
+	 * @throws WrappedIOException On I/O errors.
+	 * @see #ZipStreamBuilder(WritableFile, ZipBuilderSettings)
+	 * @see #ZipStreamBuilder(OutputStream, ZipBuilderSettings)
+	 */
+	public ZipStreamBuilder(WritableFile f) throws WrappedIOException
+	{
+		this(f, null);
+	}
+
+	/**
+	 * Create a Zip builder using the supplied settings.
+	 * @param f The file to write the archive to. The previous contents of this
+	 * file is discarded. If this method completes successfully, the target file
+	 * is locked for writing until {@link #close()} is called.
+	 * @param settings The settings for the builder. Set this to {@code null} to
+	 * use the default settings. The compression executor setting is ignored.
+	 * @throws WrappedIOException On I/O errors.
+	 * @see #ZipStreamBuilder(WritableFile)
+	 * @see #ZipStreamBuilder(OutputStream, ZipBuilderSettings)
+	 */
+	public ZipStreamBuilder(WritableFile f, ZipBuilderSettings settings) throws WrappedIOException
+	{
+		super(settings);
+
+		// Null check
+		f.getClass();
+
+		m_closeOutStreamWhenClosing = true;
+		boolean successful = false;
+		OutputStream outStream = null;
+		m_targetWriteLock = f.lockForWriting();
+		try
+		{
+			outStream = new BufferedOutputStream(f.openForWrite());
+			m_countingOut = new CountingOutputStream(outStream);
+			m_out = new OutputStreamToDataSinkAdapter(m_countingOut);
+			successful = true;
+		}
+		finally
+		{
+			if (!successful)
+			{
+				m_closed = true;
+				m_targetWriteLock.unlock();
+				if (outStream != null)
+				{
+					try
+					{
+						outStream.close();
+					}
+					catch (IOException e)
+					{
+						throw new WrappedIOException(e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a new Zip archive builder on an already open
+	 * {@link java.io.OutputStream} object. It will use the supplied settings
+	 * object.
+	 * @param os The output stream to write data to. This stream is <i>not</i>
+	 * closed when {@link #close()} is called. The Zip builder assumes that it
+	 * has exclusive access to this {@code OutputStream}.
+	 * @param settings The settings for the builder. Set this to {@code null} to
+	 * use the default settings. The compression executor setting is ignored.
+	 * @throws WrappedIOException On I/O errors.
+	 * @see #ZipStreamBuilder(WritableFile, ZipBuilderSettings)
+	 * @see #ZipStreamBuilder(WritableByteChannel, ZipBuilderSettings)
+	 */
+	public ZipStreamBuilder(OutputStream os, ZipBuilderSettings settings) throws WrappedIOException
+	{
+		super(settings);
+
+		// Null check
+		os.getClass();
+
+		m_countingOut = new CountingOutputStream(os);
+		m_out = new OutputStreamToDataSinkAdapter(m_countingOut);
+		m_closeOutStreamWhenClosing = false;
+		m_targetWriteLock = DummyLock.INSTANCE;
+	}
+
+	/**
+	 * Create a new Zip archive builder on an already open
+	 * {@link java.nio.channels.WritableByteChannel} object. It will use the
+	 * supplied settings object.
+	 * @param c The channel to write data to. This channel is <i>not</i> closed
+	 * when {@link #close()} is called. The Zip builder assumes that it has
+	 * exclusive access to this {@code WritableByteChannel}.
+	 * @param settings The settings for the builder. Set this to {@code null} to
+	 * use the default settings. The compression executor setting is ignored.
+	 * @throws WrappedIOException On I/O errors.
+	 * @see #ZipStreamBuilder(OutputStream, ZipBuilderSettings)
+	 */
+	public ZipStreamBuilder(WritableByteChannel c, ZipBuilderSettings settings) throws WrappedIOException
+	{
+		this(Channels.newOutputStream(c), settings);
+	}
+
+	@Override
+	protected void assertNotClosed() throws IllegalStateException
+	{
+		if (m_closed)
+		{
+			throw new IllegalStateException("This Zip builder is closed");
+		}
+	}
+
+	/**
+	 * Write the local header, the file name and the local extra fields for an
+	 * entry.
+	 */
+	private void writeLocalHeader(EntryData ed, byte[] localHeader, boolean zip64InLocalHeader, long uncompressedSize, long compressedSize)
+	{
+		m_out.write(localHeader);
+		m_out.write(ed.m_fileName);
+		if (zip64InLocalHeader)
+		{
+			m_out.write(encodeZip64ExtraField(new Zip64ExtendedInformationExtraField(true, UnsignedLong.valueOf(uncompressedSize), UnsignedLong.valueOf(compressedSize), null, null)));
+		}
+		for (byte[] localExtraFieldFragment : ed.m_extraFields.m_localHeaderExtraFieldFragments)
+		{
+			m_out.write(localExtraFieldFragment);
+		}
+	}
+
+	/**
+	 * Create the local and central file headers for an entry.
+	 */
+	private byte[][] createFileHeaders(EntryData ed, FileWriteResult fwr, long startPos, boolean zip64InLocalHeader, Zip64ExtendedInformationExtraField cz64ef, byte[] centralZip64ExtraField, boolean dataDescriptor)
+	{
+		UnsignedShort localExtraFieldsLength = UnsignedShort.valueOf(ed.m_extraFields.m_localHeaderExtraFieldSize.intValue() + (zip64InLocalHeader ? ZIP64_LOCAL_EXTRA_FIELD_SIZE : 0));
+		UnsignedShort centralExtraFieldsLength = UnsignedShort.valueOf(ed.m_extraFields.m_centralHeaderExtraFieldSize.intValue() + (centralZip64ExtraField != null ? centralZip64ExtraField.length : 0));
+		return createFileHeaders(ed.m_effectiveSettings, ed.m_lastModified, fwr, UnsignedShort.valueOf(ed.m_fileName.length), UnsignedShort.valueOf(ed.m_fileComment.length), localExtraFieldsLength, centralExtraFieldsLength,
+				ed.m_internalFileAttributes, startPos, ed.m_externalFileAttributes, zip64InLocalHeader, cz64ef, dataDescriptor);
+	}
+
+	/**
+	 * Create the data descriptor that is written after an entry's data.
+	 * @param zip64 Should the sizes be written as eight byte values?
+	 */
+	private byte[] createDataDescriptor(FileWriteResult fwr, boolean zip64)
+	{
+		byte[] res = new byte[zip64 ? 24 : 16];
+
+		// Data descriptor signature, big endian
+		res[0] = DATA_DESCRIPTOR_SIGNATURE[3];
+		res[1] = DATA_DESCRIPTOR_SIGNATURE[2];
+		res[2] = DATA_DESCRIPTOR_SIGNATURE[1];
+		res[3] = DATA_DESCRIPTOR_SIGNATURE[0];
+
+		// CRC32
+		System.arraycopy(UnsignedInteger.valueOf(fwr.getCrc32Checksum()).getBigEndianByteArray(), 0, res, 4, 4);
+
+		// Compressed and uncompressed sizes
+		if (zip64)
+		{
+			System.arraycopy(UnsignedLong.valueOf(fwr.getCompressedSize()).getBigEndianByteArray(), 0, res, 8, 8);
+			System.arraycopy(UnsignedLong.valueOf(fwr.getUncompressedSize()).getBigEndianByteArray(), 0, res, 16, 8);
+		}
+		else
+		{
+			System.arraycopy(UnsignedInteger.valueOf(fwr.getCompressedSize()).getBigEndianByteArray(), 0, res, 8, 4);
+			System.arraycopy(UnsignedInteger.valueOf(fwr.getUncompressedSize()).getBigEndianByteArray(), 0, res, 12, 4);
+		}
+		return res;
+	}
+
+	/**
+	 * Write a file entry followed by a data descriptor.
+	 * @param ed The entry's metadata.
+	 * @param is The stream to read the file's data from. This is not closed
+	 * by this method.
+	 * @throws IOException On I/O errors
+	 * @throws ArchiveEntryAddException If the entry requires Zip64 extensions
+	 * and they are not used for it.
+	 */
+	private void writeFileWithDataDescriptor(EntryData ed, InputStream is) throws IOException, ArchiveEntryAddException
+	{
+		AbsoluteLocation loc = ed.m_location;
+		// The data is compressed, and this builder cannot fall back to storing
+		// it uncompressed if it gets larger.
+		boolean zip64InLocalHeader = isZip64InLocalHeader(ed.m_dataSize, true);
+		long startPos = m_countingOut.getNoOfBytesWritten();
+
+		// The checksum and the sizes are not known yet. They are written as
+		// zeroes.
+		byte[][] headers = createFileHeaders(ed, new FileWriteResult(ed.m_effectiveSettings.getCompressionMethod(), 0L, 0L, 0L), startPos, zip64InLocalHeader, null, null, true);
+		writeLocalHeader(ed, headers[0], zip64InLocalHeader, 0L, 0L);
+
+		FileWriteResult fwr = new StreamFileWriteStrategy(is, ed.m_effectiveSettings).writeFile(new NonClosingOutputStream(m_countingOut));
+		if ((!zip64InLocalHeader) && ((fwr.getUncompressedSize() >= ZIP64_MAGIC_INTEGER) || (fwr.getCompressedSize() >= ZIP64_MAGIC_INTEGER)))
+		{
+			throw new ArchiveEntryAddException("Cannot add " + loc + ". Entries larger than 4 GB require Zip64 extensions, and they were not used for the entry. The archive is corrupt.");
+		}
+		m_out.write(createDataDescriptor(fwr, zip64InLocalHeader));
+		assertEntryEndsWithinLimits(loc, m_countingOut.getNoOfBytesWritten());
+
+		byte[] centralZip64ExtraField = null;
+		Zip64ExtendedInformationExtraField cz64ef = createCentralZip64ExtraField(fwr.getUncompressedSize(), fwr.getCompressedSize(), startPos);
+		if (cz64ef != null)
+		{
+			centralZip64ExtraField = encodeZip64ExtraField(cz64ef);
+		}
+		headers = createFileHeaders(ed, fwr, startPos, zip64InLocalHeader, cz64ef, centralZip64ExtraField, true);
+		writeCentralFileHeader(ed, headers[1], centralZip64ExtraField);
+	}
+
+	/**
+	 * Write an uncompressed file entry. The file is read twice; first to
+	 * calculate its checksum and then to write it to the archive.
+	 * @param ed The entry's metadata.
+	 * @param f The file. It is locked for reading by the calling thread.
+	 * @throws IOException On I/O errors
+	 * @throws ArchiveEntryAddException If the entry requires Zip64 extensions
+	 * and they are disabled.
+	 */
+	private void writeStoredFile(EntryData ed, ReadableFile f) throws IOException, ArchiveEntryAddException
+	{
+		CRC32 checksum = new CRC32();
+		long size;
+		ChecksumInputStream<CRC32> chis = new ChecksumInputStream<CRC32>(f.openForRead(), checksum);
+		try
+		{
+			size = StreamUtil.getSizeOfDataInStream(chis, 16384);
+		}
+		finally
+		{
+			chis.close();
+		}
+
+		InputStream is = f.openForRead();
+		try
+		{
+			writeStoredData(ed, new FileWriteResult(StoredCompressionMethod.INSTANCE, checksum.getValue(), size, size), is);
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	/**
+	 * Write an uncompressed file entry whose checksum and size are known.
+	 * @param ed The entry's metadata.
+	 * @param fwr The entry's checksum and size.
+	 * @param is The stream to read the file's data from. This is not closed
+	 * by this method.
+	 * @throws IOException On I/O errors
+	 * @throws ArchiveEntryAddException If the entry requires Zip64 extensions
+	 * and they are disabled.
+	 * @since 1.2
+	 */
+	private void writeStoredData(EntryData ed, FileWriteResult fwr, InputStream is) throws IOException, ArchiveEntryAddException
+	{
+		long size = fwr.getUncompressedSize();
+		long startPos = m_countingOut.getNoOfBytesWritten();
+		boolean zip64InLocalHeader = isZip64InLocalHeader(size, false);
+		if ((!zip64InLocalHeader) && (size >= ZIP64_MAGIC_INTEGER))
+		{
+			// Zip64 extensions are disabled.
+			throw new ArchiveEntryAddException("Cannot add " + ed.m_location + ". Entries larger than 4 GB require Zip64 extensions, and they are disabled");
+		}
+		assertEntryEndsWithinLimits(ed.m_location, startPos + LOCAL_HEADER_SIZE + ed.m_fileName.length + ed.m_extraFields.m_localHeaderExtraFieldSize.intValue() + size);
+
+		byte[] centralZip64ExtraField = null;
+		Zip64ExtendedInformationExtraField cz64ef = createCentralZip64ExtraField(size, size, startPos);
+		if (cz64ef != null)
+		{
+			centralZip64ExtraField = encodeZip64ExtraField(cz64ef);
+		}
+		byte[][] headers = createFileHeaders(ed, fwr, startPos, zip64InLocalHeader, cz64ef, centralZip64ExtraField, false);
+		writeLocalHeader(ed, headers[0], zip64InLocalHeader, size, size);
+
+		try
+		{
+			long noCopied = StreamUtil.copyStreams(is, m_countingOut, 16384);
+			if (noCopied != size)
+			{
+				throw new IOException("The size of " + ed.m_location + " changed while it was added to the archive");
+			}
+		}
+		catch (WrappedIOException e)
+		{
+			// Un-wrap
+			throw e.getWrapped();
+		}
+
+		writeCentralFileHeader(ed, headers[1], centralZip64ExtraField);
+	}
+
+	@Override
+	protected void addDirectoryCallback(AbsoluteLocation location, Object d, ZipEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
+	{
+		assertCanAddEntry(location);
+		try
+		{
+			EntryData ed = prepareEntry(location, UnixEntityType.DIRECTORY, d, effectiveSettings, lastModified, 0L);
+			long startPos = m_countingOut.getNoOfBytesWritten();
+			boolean zip64InLocalHeader = getZip64Mode() == Zip64Mode.ALWAYS;
+			assertEntryEndsWithinLimits(location, startPos + LOCAL_HEADER_SIZE + ed.m_fileName.length + ed.m_extraFields.m_localHeaderExtraFieldSize.intValue());
+
+			byte[] centralZip64ExtraField = null;
+			Zip64ExtendedInformationExtraField cz64ef = createCentralZip64ExtraField(0L, 0L, startPos);
+			if (cz64ef != null)
+			{
+				centralZip64ExtraField = encodeZip64ExtraField(cz64ef);
+			}
+			byte[][] headers = createFileHeaders(ed, null, startPos, zip64InLocalHeader, cz64ef, centralZip64ExtraField, false);
+			writeLocalHeader(ed, headers[0], zip64InLocalHeader, 0L, 0L);
+			writeCentralFileHeader(ed, headers[1], centralZip64ExtraField);
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+	}
+
+	@Override
+	protected void addFileCallback(AbsoluteLocation location, ReadableFile f, ZipEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
+	{
+		assertCanAddEntry(location);
+		try
+		{
+			EntryData ed = prepareEntry(location, UnixEntityType.REGULAR_FILE, f, effectiveSettings, lastModified, f.getDataSize());
+			if ((effectiveSettings.getCompressionMethod() instanceof StoredCompressionMethod) || (isStoreIncompressibleFiles() && CompressibilityEstimator.isIncompressible(f)))
+			{
+				writeStoredFile(ed, f);
+			}
+			else
+			{
+				InputStream is = f.openForRead();
+				try
+				{
+					writeFileWithDataDescriptor(ed, is);
+				}
+				finally
+				{
+					is.close();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+	}
+
+	@Override
+	protected void addStreamCallback(AbsoluteLocation location, InputStream is, ZipEntrySettings effectiveSettings, Date lastModified) throws WrappedIOException, ArchiveEntryAddException
+	{
+		assertCanAddEntry(location);
+		try
+		{
+			// Read a sample from the start of the stream. If all of the data
+			// fits in the sample, its size is known in advance, and the entry
+			// does not need Zip64 extensions in the Zip64Mode.AS_NEEDED mode.
+			byte[] sample = new byte[CompressibilityEstimator.SAMPLE_SIZE];
+			int sampleLen = CompressibilityEstimator.readSample(is, sample);
+			long dataSize = -1L;
+			if (sampleLen < sample.length)
+			{
+				if (isStoreIncompressibleFiles() && (!(effectiveSettings.getCompressionMethod() instanceof StoredCompressionMethod)) && CompressibilityEstimator.isIncompressible(sample, sampleLen))
+				{
+					// The checksum and size of the data are known. It can be
+					// written uncompressed without a data descriptor.
+					CRC32 checksum = new CRC32();
+					checksum.update(sample, 0, sampleLen);
+					EntryData ed = prepareEntry(location, UnixEntityType.REGULAR_FILE, is, effectiveSettings, lastModified, sampleLen);
+					writeStoredData(ed, new FileWriteResult(StoredCompressionMethod.INSTANCE, checksum.getValue(), sampleLen, sampleLen), new ByteArrayInputStream(sample, 0, sampleLen));
+					return;
+				}
+				dataSize = sampleLen;
+			}
+			InputStream data = new SequenceInputStream(new ByteArrayInputStream(sample, 0, sampleLen), is);
+			writeFileWithDataDescriptor(prepareEntry(location, UnixEntityType.REGULAR_FILE, is, effectiveSettings, lastModified, dataSize), data);
+		}
+		catch (IOException e)
+		{
+			throw new WrappedIOException(e);
+		}
+	}
+
+	public boolean isClosed()
+	{
+		return m_closed;
+	}
+
+	/**
+	 * This method writes the Zip file's central directory and closes the
+	 * builder. It also releases the write lock on the created Zip file, if it
+	 * is in a locking {@link org.entityfs.FileSystem}.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public void close() throws WrappedIOException
+	{
+		if (!m_closed)
+		{
+			try
+			{
+				try
+				{
+					writeCentralDirectory(m_out, m_countingOut.getNoOfBytesWritten());
+				}
+				finally
+				{
+					if (m_closeOutStreamWhenClosing)
+					{
+						m_out.close();
+					}
+					else
+					{
+						m_out.flush();
+					}
+				}
+			}
+			finally
+			{
+				m_targetWriteLock.unlock();
+				m_closed = true;
+			}
+		}
+	}
+
+	@Override
+	protected void finalize() throws Throwable
+	{
+		if (!m_closed)
+		{
+			close();
+		}
+		super.finalize();
+	}
+}
@@ -0,0 +1,394 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
+import org.at4j.support.lang.UnsignedShort;
+import org.at4j.zip.ZipEntry;
+import org.at4j.zip.ZipEntryCentralFileHeaderData;
+import org.at4j.zip.ZipEntryCollaborator;
+import org.at4j.zip.ZipFileContents;
+import org.at4j.zip.ZipFileParseException;
+import org.at4j.zip.ZipFileParser;
+import org.entityfs.RandomAccess;
+import org.entityfs.RandomlyAccessibleFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.support.exception.WrappedIOException;
+
+/**
+ * The Zip updater is a {@link ZipBuilder} that adds entries to an existing Zip
+ * file instead of creating a new one. The existing entries are left where they
+ * are in the file, and new entries are written after the data of the last
+ * existing entry, where the old central directory started. When the updater is
+ * {@link #close()}:d, it writes a new central directory containing both the
+ * existing and the new entries.
+ * <p>
+ * Existing entries can be deleted using {@link #delete(AbsoluteLocation)}. If
+ * an entry is added to the same location as an existing entry, the existing
+ * entry is replaced. Deleting or replacing an entry only removes it from the
+ * central directory; its data is left in the Zip file as dead space. Call
+ * {@link #compact()} before adding any new entries to reclaim the space used
+ * by deleted entries.
+ * <p>
+ * The Zip file's comment is replaced with the comment from the
+ * {@link ZipBuilderSettings}, if settings are supplied. Otherwise the existing
+ * comment is kept.
+ * <p>
+ * The Zip file is not a valid Zip file until the updater is closed, since new
+ * entries overwrite the old central directory. If the Zip file must always be
+ * valid, create a new Zip file with a {@link ZipBuilder} instead.
+ * <p>
+ * If it is in a locking {@link org.entityfs.FileSystem}, the Zip file is
+ * locked for writing until the Zip updater is {@link #close()}:d.
+ * <p>
+ * This object is <i>not</i> safe to use concurrently from several threads
+ * without external synchronization.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see ZipBuilder
+ */
+public class ZipUpdater extends ZipBuilder
+{
+	// The offsets of the fields in a central file header record.
+	private static final int CENTRAL_COMPRESSED_SIZE_OFFSET = 20;
+	private static final int CENTRAL_UNCOMPRESSED_SIZE_OFFSET = 24;
+	private static final int CENTRAL_FILE_NAME_LENGTH_OFFSET = 28;
+	private static final int CENTRAL_EXTRA_FIELDS_LENGTH_OFFSET = 30;
+	private static final int CENTRAL_RELATIVE_OFFSET_OF_LOCAL_HEADER_OFFSET = 42;
+	private static final int CENTRAL_FILE_HEADER_SIZE = 46;
+	private static final int ZIP64_EXTRA_FIELD_HEADER_ID = 1;
+
+	private static final Comparator<byte[]> LOCAL_HEADER_OFFSET_COMPARATOR = new Comparator<byte[]>()
+	{
+		public int compare(byte[] r1, byte[] r2)
+		{
+			long o1 = getRelativeOffsetOfLocalHeader(r1);
+			long o2 = getRelativeOffsetOfLocalHeader(r2);
+			return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+		}
+	};
+
+	// The central file header records of the existing entries that are kept,
+	// keyed on their locations. The records are kept in the order that they
+	// were in the central directory.
+	private final Map<AbsoluteLocation, byte[]> m_existingCentralFileHeaders;
+	// The sorted positions of the local headers of all existing entries,
+	// including deleted ones, followed by the position of the end of the
+	// entries' data. This is used for finding out where each existing entry
+	// ends when compacting the Zip file.
+	private long[] m_entryBoundaries;
+	// The Zip file comment.
+	private final String m_fileComment;
+	// The number of entries that this updater has written.
+	private int m_numberOfWrittenEntries;
+
+	/**
+	 * Create a new Zip updater that uses the default default entry settings
+	 * when adding entries, and the platform's default charset to decode and
+	 * encode entry names and other text data.
+	 * @param target The Zip file to update. If it is empty, a new Zip file is
+	 * created. If it is in a locking {@link org.entityfs.FileSystem}, the file
+	 * will be locked for writing by the calling thread until this object is
+	 * {@link #close()}:d.
+	 * @throws ZipFileParseException If the existing Zip file cannot be parsed.
+	 * @throws WrappedIOException On I/O errors
+	 * @see #ZipUpdater(RandomlyAccessibleFile, ZipBuilderSettings)
+	 */
+	public ZipUpdater(RandomlyAccessibleFile target) throws ZipFileParseException, WrappedIOException
+	{
+		this(target, null);
+	}
+
+	/**
+	 * Create a new Zip updater that uses the supplied configuration. The
+	 * charsets in the configuration are used both for decoding the existing
+	 * entries and for encoding the new entries.
+	 * @param target The Zip file to update. If it is empty, a new Zip file is
+	 * created. If it is in a locking {@link org.entityfs.FileSystem}, the file
+	 * will be locked for writing by the calling thread until this object is
+	 * {@link #close()}:d.
+	 * @param settings The configuration of the Zip updater. Set this to {@code
+	 * null} to use the default configuration and to keep the Zip file's
+	 * comment.
+	 * @throws ZipFileParseException If the existing Zip file cannot be parsed.
+	 * @throws WrappedIOException On I/O errors
+	 * @see #ZipUpdater(RandomlyAccessibleFile)
+	 */
+	public ZipUpdater(RandomlyAccessibleFile target, ZipBuilderSettings settings) throws ZipFileParseException, WrappedIOException
+	{
+		super(target, settings, false);
+
+		boolean successful = false;
+		try
+		{
+			RandomAccess ra = getTargetRandomAccess();
+			if (ra.length() == 0)
+			{
+				// A new Zip file
+				m_existingCentralFileHeaders = new LinkedHashMap<AbsoluteLocation, byte[]>();
+				m_entryBoundaries = new long[] { 0L };
+				m_fileComment = settings != null ? settings.getFileComment() : ZipBuilderSettings.DEFAULT_FILE_COMMENT;
+			}
+			else
+			{
+				ZipFileContents zfc = new ZipFileParser().parse(new ZipEntryCollaborator(target, new HashMap<AbsoluteLocation, ZipEntry>()), ra, getFileNameEncodingCharset(), getTextEncodingCharset());
+				List<ZipEntryCentralFileHeaderData> cfhds = zfc.getCentralFileHeaders();
+				m_existingCentralFileHeaders = new LinkedHashMap<AbsoluteLocation, byte[]>(cfhds.size() * 2);
+				m_entryBoundaries = new long[cfhds.size() + 1];
+				int i = 0;
+				for (ZipEntryCentralFileHeaderData cfhd : cfhds)
+				{
+					byte[] record = new byte[cfhd.getSizeOfCentralFileHeader()];
+					ra.seek(cfhd.getStartPositionOfCentralFileHeader());
+					readFully(ra, record, record.length);
+					m_existingCentralFileHeaders.put(cfhd.getLocation(), record);
+					m_entryBoundaries[i++] = cfhd.getRelativeOffsetOfLocalHeader().longValue();
+				}
+				m_entryBoundaries[i] = zfc.getStartOfCentralDirectory();
+				Arrays.sort(m_entryBoundaries);
+				m_fileComment = settings != null ? settings.getFileComment() : zfc.getComment();
+
+				// New entries are written over the old central directory
+				ra.seek(zfc.getStartOfCentralDirectory());
+			}
+			successful = true;
+		}
+		finally
+		{
+			if (!successful)
+			{
+				abort();
+			}
+		}
+	}
+
+	private static void readFully(RandomAccess ra, byte[] barr, int len)
+	{
+		int noRead = 0;
+		while (noRead < len)
+		{
+			int r = ra.read(barr, noRead, len - noRead);
+			if (r < 0)
+			{
+				throw new WrappedIOException(new IOException("Unexpected end of file at position " + ra.getFilePointer()));
+			}
+			noRead += r;
+		}
+	}
+
+	/**
+	 * Get the position of the data in a central file header record's Zip64
+	 * extra field where the relative offset of the local header is stored.
+	 * @return The position, or {@code -1} if the record does not have a Zip64
+	 * extra field with the relative offset of the local header.
+	 */
+	private static int getZip64RelativeOffsetOfLocalHeaderPosition(byte[] record)
+	{
+		int pos = CENTRAL_FILE_HEADER_SIZE + UnsignedShort.fromBigEndianByteArray(record, CENTRAL_FILE_NAME_LENGTH_OFFSET).intValue();
+		int end = pos + UnsignedShort.fromBigEndianByteArray(record, CENTRAL_EXTRA_FIELDS_LENGTH_OFFSET).intValue();
+		while (pos + 4 <= end)
+		{
+			int headerId = UnsignedShort.fromBigEndianByteArray(record, pos).intValue();
+			int dataSize = UnsignedShort.fromBigEndianByteArray(record, pos + 2).intValue();
+			if (headerId == ZIP64_EXTRA_FIELD_HEADER_ID)
+			{
+				// The uncompressed and compressed sizes are stored before the
+				// offset if they did not fit in the header.
+				int offsetPos = pos + 4;
+				if (UnsignedInteger.fromBigEndianByteArray(record, CENTRAL_UNCOMPRESSED_SIZE_OFFSET).longValue() == ZIP64_MAGIC_INTEGER)
+				{
+					offsetPos += 8;
+				}
+				if (UnsignedInteger.fromBigEndianByteArray(record, CENTRAL_COMPRESSED_SIZE_OFFSET).longValue() == ZIP64_MAGIC_INTEGER)
+				{
+					offsetPos += 8;
+				}
+				return offsetPos + 8 <= pos + 4 + dataSize ? offsetPos : -1;
+			}
+			pos += 4 + dataSize;
+		}
+		return -1;
+	}
+
+	private static long getRelativeOffsetOfLocalHeader(byte[] record)
+	{
+		long res = UnsignedInteger.fromBigEndianByteArray(record, CENTRAL_RELATIVE_OFFSET_OF_LOCAL_HEADER_OFFSET).longValue();
+		if (res == ZIP64_MAGIC_INTEGER)
+		{
+			int pos = getZip64RelativeOffsetOfLocalHeaderPosition(record);
+			if (pos >= 0)
+			{
+				res = UnsignedLong.fromBigEndianByteArray(record, pos).longValue();
+			}
+		}
+		return res;
+	}
+
+	private static void setRelativeOffsetOfLocalHeader(byte[] record, long offset)
+	{
+		if (UnsignedInteger.fromBigEndianByteArray(record, CENTRAL_RELATIVE_OFFSET_OF_LOCAL_HEADER_OFFSET).longValue() == ZIP64_MAGIC_INTEGER)
+		{
+			int pos = getZip64RelativeOffsetOfLocalHeaderPosition(record);
+			if (pos >= 0)
+			{
+				// Keep the Zip64 extra field, even if the offset is small
+				// enough to fit in the header now.
+				System.arraycopy(UnsignedLong.valueOf(offset).getBigEndianByteArray(), 0, record, pos, 8);
+				return;
+			}
+		}
+		// Entries are only moved towards the start of the file, so the offset
+		// still fits in the header.
+		System.arraycopy(UnsignedInteger.valueOf(offset).getBigEndianByteArray(), 0, record, CENTRAL_RELATIVE_OFFSET_OF_LOCAL_HEADER_OFFSET, 4);
+	}
+
+	/**
+	 * Get the locations of the existing entries that are still in the Zip
+	 * file, i.e. that have not been deleted or replaced.
+	 * @return An unmodifiable set with the locations of the existing entries.
+	 */
+	public Set<AbsoluteLocation> getExistingEntryLocations()
+	{
+		return Collections.unmodifiableSet(m_existingCentralFileHeaders.keySet());
+	}
+
+	/**
+	 * Delete an existing entry from the Zip file. The entry is removed from the
+	 * central directory, but its data is left in the Zip file until the file
+	 * is {@link #compact()}:ed.
+	 * <p>
+	 * Deleting a directory entry does not delete the entries in the directory.
+	 * Entries that are added by this updater cannot be deleted.
+	 * @param location The location of the entry to delete.
+	 * @return {@code true} if the entry was deleted, {@code false} if there was
+	 * no existing entry at the location.
+	 * @throws IllegalStateException If the updater is closed.
+	 */
+	public boolean delete(AbsoluteLocation location) throws IllegalStateException
+	{
+		// Null check
+		location.getClass();
+
+		assertNotClosed();
+		return m_existingCentralFileHeaders.remove(location) != null;
+	}
+
+	/**
+	 * Reclaim the space used by deleted and replaced entries by moving the
+	 * existing entries that are kept towards the start of the Zip file. This
+	 * must be called before any new entries are added to the Zip file.
+	 * <p>
+	 * The entries' data is moved within the file, and their central file
+	 * header records are updated with the new positions. The entries are not
+	 * uncompressed.
+	 * @return {@code this}
+	 * @throws IllegalStateException If the updater is closed, or if entries
+	 * have already been added to it.
+	 * @throws WrappedIOException On I/O errors.
+	 */
+	public ZipUpdater compact() throws IllegalStateException, WrappedIOException
+	{
+		assertNotClosed();
+		if ((m_numberOfWrittenEntries > 0) || (getNumberOfPendingEntries() > 0))
+		{
+			throw new IllegalStateException("The Zip file must be compacted before any new entries are added to it");
+		}
+
+		RandomAccess ra = getTargetRandomAccess();
+		List<byte[]> records = new ArrayList<byte[]>(m_existingCentralFileHeaders.values());
+		Collections.sort(records, LOCAL_HEADER_OFFSET_COMPARATOR);
+
+		// Keep any data before the first entry, such as a self-extracting
+		// program.
+		long writePos = m_entryBoundaries[0];
+		long[] newEntryBoundaries = new long[records.size() + 1];
+		byte[] buf = new byte[65536];
+		int i = 0;
+		for (byte[] record : records)
+		{
+			long startPos = getRelativeOffsetOfLocalHeader(record);
+			// The entry ends where the next entry, deleted or not, starts.
+			int boundaryIndex = Arrays.binarySearch(m_entryBoundaries, startPos);
+			while (m_entryBoundaries[boundaryIndex] <= startPos)
+			{
+				boundaryIndex++;
+			}
+			long endPos = m_entryBoundaries[boundaryIndex];
+
+			if (startPos != writePos)
+			{
+				// Move the entry. It is always moved towards the start of the
+				// file, so the data can be copied from the start.
+				long readPos = startPos;
+				while (readPos < endPos)
+				{
+					int len = (int) Math.min(buf.length, endPos - readPos);
+					ra.seek(readPos);
+					readFully(ra, buf, len);
+					ra.seek(writePos + (readPos - startPos));
+					ra.write(buf, 0, len);
+					readPos += len;
+				}
+				setRelativeOffsetOfLocalHeader(record, writePos);
+			}
+			newEntryBoundaries[i++] = writePos;
+			writePos += endPos - startPos;
+		}
+		newEntryBoundaries[i] = writePos;
+		m_entryBoundaries = newEntryBoundaries;
+
+		// New entries are written after the compacted entries
+		ra.seek(writePos);
+		return this;
+	}
+
+	@Override
+	Collection<byte[]> getExistingCentralFileHeaders()
+	{
+		return m_existingCentralFileHeaders.values();
+	}
+
+	@Override
+	void writeCentralFileHeader(EntryData ed, byte[] centralHeader, byte[] centralZip64ExtraField) throws IOException
+	{
+		// The new entry replaces an existing entry with the same location
+		m_existingCentralFileHeaders.remove(ed.m_location);
+		super.writeCentralFileHeader(ed, centralHeader, centralZip64ExtraField);
+		m_numberOfWrittenEntries++;
+	}
+
+	@Override
+	public String getFileComment()
+	{
+		return m_fileComment;
+	}
+}
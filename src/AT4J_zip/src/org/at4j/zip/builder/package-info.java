@@ -17,8 +17,10 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 /**
- * This package contains the {@link org.at4j.zip.builder.ZipBuilder} object for
- * building Zip archives.
+ * This package contains the {@link org.at4j.zip.builder.ZipBuilder} and the
+ * {@link org.at4j.zip.builder.ZipStreamBuilder} objects for building Zip
+ * archives, and the {@link org.at4j.zip.builder.ZipUpdater} for updating
+ * existing Zip archives.
  * @since 1.0
  * @author Karl Gustafsson
  */
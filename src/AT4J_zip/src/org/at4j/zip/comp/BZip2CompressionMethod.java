@@ -23,6 +23,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.at4j.comp.CompressionLevel;
+import org.at4j.comp.bzip2.BZip2EncoderExecutorService;
 import org.at4j.comp.bzip2.BZip2InputStream;
 import org.at4j.comp.bzip2.BZip2OutputStream;
 import org.at4j.comp.bzip2.BZip2OutputStreamSettings;
@@ -35,6 +36,16 @@ import org.entityfs.RandomAccess;
  * <p>
  * This class cannot be instantiated. Use the singleton instance
  * {@link #INSTANCE} instead.
+ * <p>
+ * bzip2 encoding is slow. Since version 1.2, a compression method can be
+ * created with {@link BZip2OutputStreamSettings} that spread the encoding of
+ * each entry's blocks over several threads. If the settings have a
+ * {@link BZip2EncoderExecutorService}, all entries compressed with the
+ * compression method share its threads. Use such a compression method as the
+ * compression method in the default file entry settings of a
+ * {@link org.at4j.zip.builder.ZipBuilder} to let one thread pool encode all
+ * bzip2 entries in the archive. The executor service must be shut down by the
+ * client when the archive has been built.
  * @author Karl Gustafsson
  * @since 1.0
  */
@@ -64,6 +75,9 @@ public class BZip2CompressionMethod implements ZipEntryCompressionMethod, ZipEnt
 	public static final BZip2CompressionMethod INSTANCE = new BZip2CompressionMethod();
 
 	private final int m_blockSize;
+	// Settings for the output streams. The block size is set from m_blockSize.
+	// This is never modified after the object has been created.
+	private final BZip2OutputStreamSettings m_outputStreamSettings;
 
 	/**
 	 * This creates a bzip2 compression method that will use the default block
@@ -75,6 +89,7 @@ public class BZip2CompressionMethod implements ZipEntryCompressionMethod, ZipEnt
 	public BZip2CompressionMethod()
 	{
 		m_blockSize = BLOCK_SIZE_NOT_CONFIGURED;
+		m_outputStreamSettings = new BZip2OutputStreamSettings();
 	}
 
 	/**
@@ -91,6 +106,7 @@ public class BZip2CompressionMethod implements ZipEntryCompressionMethod, ZipEnt
 			throw new IllegalArgumentException("Invalid block size. It must be a number between 1 and 9 (inclusive)");
 		}
 		m_blockSize = blockSize;
+		m_outputStreamSettings = new BZip2OutputStreamSettings();
 	}
 
 	/**
@@ -101,6 +117,37 @@ public class BZip2CompressionMethod implements ZipEntryCompressionMethod, ZipEnt
 	 */
 	public BZip2CompressionMethod(CompressionLevel level)
 	{
+		this(level, new BZip2OutputStreamSettings());
+	}
+
+	/**
+	 * Create a bzip2 compression method that uses the supplied settings for
+	 * compressing data. The settings may for instance have a
+	 * {@link BZip2EncoderExecutorService} that is shared by all entries
+	 * compressed with this compression method, or a number of encoder threads
+	 * that each entry should use.
+	 * @param settings The settings. They are copied, so later changes to the
+	 * settings object do not affect this compression method. If the settings
+	 * have an executor service, that is shared, though.
+	 * @since 1.2
+	 */
+	public BZip2CompressionMethod(BZip2OutputStreamSettings settings)
+	{
+		m_outputStreamSettings = settings.clone();
+		m_blockSize = m_outputStreamSettings.getBlockSize();
+	}
+
+	/**
+	 * Create a bzip2 compression method that has the supplied compression
+	 * level and uses the supplied settings for compressing data. The block size
+	 * of the settings is ignored.
+	 * @param level The compression level.
+	 * @param settings The settings. They are copied.
+	 * @since 1.2
+	 */
+	public BZip2CompressionMethod(CompressionLevel level, BZip2OutputStreamSettings settings)
+	{
+		m_outputStreamSettings = settings.clone();
 		switch (level)
 		{
 			case BEST:
@@ -108,6 +155,7 @@ public class BZip2CompressionMethod implements ZipEntryCompressionMethod, ZipEnt
 				break;
 			case DEFAULT:
 				m_blockSize = BLOCK_SIZE_NOT_CONFIGURED;
+				m_outputStreamSettings.setBlockSize(BZip2OutputStreamSettings.DEFAULT_BLOCK_SIZE);
 				break;
 			case FASTEST:
 				m_blockSize = 1;
@@ -137,14 +185,25 @@ public class BZip2CompressionMethod implements ZipEntryCompressionMethod, ZipEnt
 		return new BZip2InputStream(is);
 	}
 
-	public OutputStream createOutputStream(OutputStream os) throws IOException, UnsupportedCompressionMethodException
+	/**
+	 * Get a copy of the settings that this compression method uses for
+	 * compressing data.
+	 * @return A copy of the settings.
+	 * @since 1.2
+	 */
+	public BZip2OutputStreamSettings getOutputStreamSettings()
 	{
-		BZip2OutputStreamSettings settings = new BZip2OutputStreamSettings();
+		BZip2OutputStreamSettings res = m_outputStreamSettings.clone();
 		if (m_blockSize != BLOCK_SIZE_NOT_CONFIGURED)
 		{
-			settings.setBlockSize(m_blockSize);
+			res.setBlockSize(m_blockSize);
 		}
-		return new BZip2OutputStream(os, settings);
+		return res;
+	}
+
+	public OutputStream createOutputStream(OutputStream os) throws IOException, UnsupportedCompressionMethodException
+	{
+		return new BZip2OutputStream(os, getOutputStreamSettings());
 	}
 
 	public BZip2CompressionMethod create(ZipGeneralPurposeBitFlags gbBitFlags)
@@ -170,9 +229,14 @@ public class BZip2CompressionMethod implements ZipEntryCompressionMethod, ZipEnt
 		return false;
 	}
 
+	/**
+	 * Create a new compression method with the supplied compression level. It
+	 * uses the same output stream settings as this object, except for the
+	 * block size.
+	 */
 	public ZipEntryCompressionMethod createWithCompressionLevel(CompressionLevel level)
 	{
-		return new BZip2CompressionMethod(level);
+		return new BZip2CompressionMethod(level, m_outputStreamSettings);
 	}
 	
 	@Override
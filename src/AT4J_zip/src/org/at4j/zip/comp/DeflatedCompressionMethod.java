@@ -18,16 +18,19 @@
  */
 package org.at4j.zip.comp;
 
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 import org.at4j.comp.CompressionLevel;
+import org.at4j.support.comp.DeflateIndex;
+import org.at4j.support.comp.DeflateIndexCache;
+import org.at4j.support.comp.DeflatedRandomAccess;
+import org.at4j.support.comp.InflaterDeflaterPool;
+import org.at4j.support.comp.PooledInflaterInputStream;
 import org.at4j.support.lang.UnsignedShort;
 import org.entityfs.RandomAccess;
 
@@ -44,6 +47,11 @@ import org.entityfs.RandomAccess;
  * stream". See <a
  * href="http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4040920">this bug
  * report</a>.
+ * <p>
+ * Deflated entries can be opened for random access. Since a deflated stream
+ * can only be inflated from its beginning, the random access object uses a
+ * {@link DeflateIndex} with access points in the stream to start inflating
+ * close to the wanted position.
  * @author Karl Gustafsson
  * @since 1.0
  */
@@ -105,6 +113,11 @@ public class DeflatedCompressionMethod implements ZipEntryCompressionMethod
 	 */
 	public static final DeflatedCompressionMethod MAXIMUM_COMPRESSION = new DeflatedCompressionMethod(DeflatedCompressionMethod.MAXIMUM_COMPRESSION_LEVEL);
 
+	/**
+	 * The size of the buffers used by the inflating and deflating streams.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
 	private final int m_compressionLevel;
 
 	/**
@@ -182,99 +195,129 @@ public class DeflatedCompressionMethod implements ZipEntryCompressionMethod
 		return m_compressionLevel;
 	}
 
-	private static class ExtraDummyByteAtTheEndStream extends FilterInputStream
+	/**
+	 * This stream returns its {@link Deflater} to the pool when it is closed.
+	 */
+	private static class PooledDeflaterOutputStream extends DeflaterOutputStream
 	{
-		private boolean m_haveReturnedDummyByte = false;
-		
-		private ExtraDummyByteAtTheEndStream(InputStream proxied)
-		{
-			super(proxied);
-		}
-		
-		@Override
-		public int read() throws IOException
-		{
-			int res = super.read();
-			if (res < 0)
-			{
-				if (m_haveReturnedDummyByte)
-				{
-					return res;
-				}
-				else
-				{
-					m_haveReturnedDummyByte = true;
-					return 0;
-				}
-			}
-			else
-			{
-				return res;
-			}
-		}
-		
-		@Override
-		public int read(byte[] barr) throws IOException
+		private final int m_level;
+		private boolean m_closed = false;
+
+		private PooledDeflaterOutputStream(OutputStream out, Deflater def, int level)
 		{
-			return read(barr, 0, barr.length);
+			super(out, def, BUFFER_SIZE);
+			m_level = level;
 		}
-		
+
 		@Override
-		public int read(byte[] barr, int offset, int length) throws IOException
+		public void close() throws IOException
 		{
-			int res = super.read(barr, offset, length);
-			if (res < 0)
+			if (!m_closed)
 			{
-				if (m_haveReturnedDummyByte)
+				m_closed = true;
+				try
 				{
-					return res;
+					super.close();
 				}
-				else
+				finally
 				{
-					m_haveReturnedDummyByte = true;
-					barr[0] = 0;
-					return 1;
+					InflaterDeflaterPool.INSTANCE.returnDeflater(m_level, def);
 				}
 			}
-			else
-			{
-				return res;
-			}
 		}
 	}
-	
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The returned stream uses an {@link Inflater} from a pool and gives it
+	 * back when it is closed, so the stream should always be closed.
+	 */
 	public InputStream createInputStream(InputStream is, long compressedSize, long uncompressedSize)
 	{
 		// The deflated stream in a Zip file does not contain a header.
-		Inflater inf = new Inflater(true);
-		// Wrap the stream in a stream that will produce an extra 0 at the end
-		// of the data. This is needed by the Inflater. See Inflater docs.
-		return new InflaterInputStream(new ExtraDummyByteAtTheEndStream(is), inf);
+		Inflater inf = InflaterDeflaterPool.INSTANCE.borrowInflater();
+		return new PooledInflaterInputStream(is, inf);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The returned stream uses a {@link Deflater} from a pool and gives it
+	 * back when it is closed, so the stream should always be closed.
+	 */
 	public OutputStream createOutputStream(OutputStream os) throws IOException, UnsupportedCompressionMethodException
 	{
 		// The deflated stream in a Zip file does not contain a header.
-		Deflater def = new Deflater(m_compressionLevel, true);
-		return new DeflaterOutputStream(os, def);
+		Deflater def = InflaterDeflaterPool.INSTANCE.borrowDeflater(m_compressionLevel);
+		return new PooledDeflaterOutputStream(os, def, m_compressionLevel);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The returned object uses a {@link DeflateIndex} to find the closest
+	 * position before the wanted position where it can start to inflate data.
+	 * The index is built the first time that it is needed, i.e. when a client
+	 * seeks backwards or far forwards in the data. It is not cached. See
+	 * {@link #createRandomAccess(RandomAccess, long, long, DeflateIndexCache, Object)}
+	 * .
+	 */
+	public RandomAccess createRandomAccess(RandomAccess ra, long compressedSize, long uncompressedSize)
+	{
+		return new DeflatedRandomAccess(ra, compressedSize, uncompressedSize, null, DeflateIndex.DEFAULT_ACCESS_POINT_SPACING, null, null);
+	}
+
+	/**
+	 * Open a read only random access object on the file entry's data, using a
+	 * cache for the entry's {@link DeflateIndex}. If the index is not in the
+	 * cache, it is built the first time that it is needed and then put in the
+	 * cache.
+	 * @param ra An open random access object on the file entry's data.
+	 * @param compressedSize The total size of the compressed data.
+	 * @param uncompressedSize The total size of the uncompressed data.
+	 * @param cache The index cache.
+	 * @param key The key for the entry's index in the cache.
+	 * @return On open {@code RandomAccess} that can be used to read
+	 * uncompressed data.
+	 * @since 1.2
+	 */
+	public RandomAccess createRandomAccess(RandomAccess ra, long compressedSize, long uncompressedSize, DeflateIndexCache cache, Object key)
+	{
+		// Null checks
+		cache.getClass();
+		key.getClass();
+
+		return new DeflatedRandomAccess(ra, compressedSize, uncompressedSize, null, DeflateIndex.DEFAULT_ACCESS_POINT_SPACING, cache, key);
 	}
 
 	/**
-	 * This method always throws an {@link UnsupportedOperationException}.
-	 * @throws UnsupportedOperationException Always.
+	 * Open a read only random access object on the file entry's data, using
+	 * an index that has already been built.
+	 * @param ra An open random access object on the file entry's data.
+	 * @param compressedSize The total size of the compressed data.
+	 * @param uncompressedSize The total size of the uncompressed data.
+	 * @param index The index for the entry's data.
+	 * @return On open {@code RandomAccess} that can be used to read
+	 * uncompressed data.
+	 * @since 1.2
+	 * @see DeflateIndex#build(InputStream, long)
 	 */
-	public RandomAccess createRandomAccess(RandomAccess ra, long compressedSize, long uncompressedSize) throws UnsupportedOperationException
+	public RandomAccess createRandomAccess(RandomAccess ra, long compressedSize, long uncompressedSize, DeflateIndex index)
 	{
-		throw new UnsupportedOperationException("Random access is not supported for the Deflate compression method");
+		// Null check
+		index.getClass();
+
+		return new DeflatedRandomAccess(ra, compressedSize, uncompressedSize, index, index.getAccessPointSpacing(), null, null);
 	}
 
 	/**
-	 * This method always returns {@code false}
-	 * @return {@code false}, always.
+	 * Deflated entries support random access through a {@link DeflateIndex}.
+	 * @return {@code true}, always.
 	 */
 	public boolean isRandomAccessSupported()
 	{
-		return false;
+		return true;
 	}
 
 	@Override
@@ -0,0 +1,157 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.comp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+
+import org.at4j.comp.CompressionLevel;
+import org.at4j.support.comp.ParallelDeflaterOutputStream;
+
+/**
+ * This is a variant of the {@link DeflatedCompressionMethod} that compresses
+ * the data of a single entry in parallel, in the same way as <a
+ * href="http://www.zlib.net/pigz/">pigz</a> does. It is useful for speeding up
+ * the compression of large entries on computers with several processors.
+ * <p>
+ * The entry data is split into chunks that are deflated concurrently by the
+ * threads of an {@link Executor}. Each chunk is deflated using the last 32
+ * kilobytes of the previous chunk as its dictionary, so the compression ratio
+ * is only a little worse than for the ordinary Deflated compression method.
+ * The compressed chunks are joined into a single, standard deflate stream, so
+ * entries compressed with this compression method can be read by any Zip
+ * program. When a Zip file is read, its deflated entries always get the
+ * ordinary {@link DeflatedCompressionMethod}.
+ * <p>
+ * This compression method uses {@code chunkSize * (maxPendingChunks + 2)}
+ * bytes of memory for buffers while it compresses an entry.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see ParallelDeflaterOutputStream
+ */
+public class ParallelDeflatedCompressionMethod extends DeflatedCompressionMethod
+{
+	/**
+	 * The default chunk size, 128 kilobytes.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+
+	/**
+	 * The smallest allowed chunk size, 32 kilobytes. This is the size of the
+	 * deflate dictionary.
+	 */
+	public static final int MIN_CHUNK_SIZE = ParallelDeflaterOutputStream.DICTIONARY_SIZE;
+
+	private final Executor m_executor;
+	private final int m_chunkSize;
+	private final int m_maxPendingChunks;
+
+	/**
+	 * Create a parallel deflated compression method that uses the default
+	 * compression level (6) and the default chunk size. The number of chunks
+	 * that are compressed at the same time is limited to twice the number of
+	 * available processors.
+	 * @param executor The executor that is used for compressing chunks.
+	 */
+	public ParallelDeflatedCompressionMethod(Executor executor)
+	{
+		this(NORMAL_COMPRESSION_LEVEL, executor, DEFAULT_CHUNK_SIZE, 2 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a parallel deflated compression method.
+	 * @param compressionLevel The compression level, between {@code 1}
+	 * (fastest) and {@code 9} (best compression}.
+	 * @param executor The executor that is used for compressing chunks.
+	 * @param chunkSize The size of each chunk of uncompressed data. It must be
+	 * at least {@link #MIN_CHUNK_SIZE} bytes. Sizes between 128 kilobytes and
+	 * one megabyte usually give a good balance between compression ratio and
+	 * parallelism.
+	 * @param maxPendingChunks The maximum number of chunks that are compressed
+	 * or wait to be written at the same time. This should be at least the
+	 * number of threads used by the executor.
+	 * @throws IllegalArgumentException If the compression level, the chunk size
+	 * or the maximum number of pending chunks are invalid.
+	 */
+	public ParallelDeflatedCompressionMethod(int compressionLevel, Executor executor, int chunkSize, int maxPendingChunks) throws IllegalArgumentException
+	{
+		super(compressionLevel);
+		// Null check
+		executor.getClass();
+
+		if (chunkSize < MIN_CHUNK_SIZE)
+		{
+			throw new IllegalArgumentException("Invalid chunk size " + chunkSize + ". It must be at least " + MIN_CHUNK_SIZE);
+		}
+		if (maxPendingChunks < 1)
+		{
+			throw new IllegalArgumentException("Invalid maximum number of pending chunks " + maxPendingChunks + ". It must be at least 1");
+		}
+		m_executor = executor;
+		m_chunkSize = chunkSize;
+		m_maxPendingChunks = maxPendingChunks;
+	}
+
+	/**
+	 * Get the executor that is used for compressing chunks.
+	 * @return The executor.
+	 */
+	public Executor getExecutor()
+	{
+		return m_executor;
+	}
+
+	/**
+	 * Get the chunk size.
+	 * @return The chunk size.
+	 */
+	public int getChunkSize()
+	{
+		return m_chunkSize;
+	}
+
+	/**
+	 * Get the maximum number of chunks that are compressed or wait to be
+	 * written at the same time.
+	 * @return The maximum number of pending chunks.
+	 */
+	public int getMaxPendingChunks()
+	{
+		return m_maxPendingChunks;
+	}
+
+	@Override
+	public OutputStream createOutputStream(OutputStream os) throws IOException, UnsupportedCompressionMethodException
+	{
+		return new ParallelDeflaterOutputStream(os, getCompressionLevel(), m_executor, m_chunkSize, m_maxPendingChunks);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Parallel deflated compression (" + getCompressionLevel() + ", " + m_chunkSize + " byte chunks)";
+	}
+
+	@Override
+	public ZipEntryCompressionMethod createWithCompressionLevel(CompressionLevel level)
+	{
+		return new ParallelDeflatedCompressionMethod(new DeflatedCompressionMethod(level).getCompressionLevel(), m_executor, m_chunkSize, m_maxPendingChunks);
+	}
+}
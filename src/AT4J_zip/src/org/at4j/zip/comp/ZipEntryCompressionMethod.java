@@ -90,11 +90,11 @@ public interface ZipEntryCompressionMethod
 	 * Does this compression method support read only random access on
 	 * uncompressed file data?
 	 * <p>
-	 * Random access is only supported by the compression methods that don't
-	 * have a position-based state for the compressed data (which currently all
-	 * compressing compression methods have). In other words, this is only
-	 * supported if the file is stored uncompressed in the archive using the
-	 * {@link StoredCompressionMethod}.
+	 * Random access is supported by the compression methods that don't have a
+	 * position-based state for the compressed data, i.e. the
+	 * {@link StoredCompressionMethod}. It is also supported by the
+	 * {@link DeflatedCompressionMethod}, which uses a {@link DeflateIndex} to
+	 * start inflating data close to the wanted position.
 	 * @return {@code true} if the compression method supports read only random
 	 * access on file data.
 	 */
@@ -0,0 +1,218 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.ef;
+
+import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
+import org.at4j.support.lang.UnsignedShort;
+import org.at4j.zip.ZipFileParseException;
+import org.at4j.zip.builder.ZipBuilderConfiguration;
+
+/**
+ * This extra field contains the 64-bit sizes and offsets of a Zip64 entry, i.e.
+ * an entry with a compressed or uncompressed size, or a local header offset,
+ * that does not fit in the four bytes reserved for it in the Zip entry's
+ * headers. The header fields that are stored in this extra field are set to
+ * {@code 0xFFFFFFFF} ({@code 0xFFFF} for the disk number) in the regular
+ * headers.
+ * <p>
+ * The extra field only contains values for the header fields that overflowed.
+ * The values that are present are always stored in the order uncompressed
+ * size, compressed size, relative offset of local header and disk start
+ * number. Values that are not present are {@code null}.
+ * <p>
+ * Since which of the values that are present is determined by the contents of
+ * the Zip entry's header, the {@link Zip64ExtendedInformationExtraFieldParser}
+ * cannot know this when parsing the field. It assumes that the values that are
+ * present are the first values in the order above. The {@link #reinterpret}
+ * method can be used to reinterpret the data when it is known which values
+ * actually are present.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see Zip64ExtendedInformationExtraFieldParser
+ */
+public class Zip64ExtendedInformationExtraField implements ZipEntryExtraField
+{
+	/**
+	 * The code that is used to identify this extra field in a Zip file.
+	 */
+	public static final UnsignedShort CODE = UnsignedShort.valueOf(0x0001);
+
+	private final boolean m_inLocalHeader;
+	private final UnsignedLong m_uncompressedSize;
+	private final UnsignedLong m_compressedSize;
+	private final UnsignedLong m_relativeOffsetOfLocalHeader;
+	private final UnsignedInteger m_diskNumberStart;
+
+	/**
+	 * Create a new Zip64 extended information extra field.
+	 * @param inLocalHeader Is the extra field in the Zip entry's local header
+	 * or in the Zip file's central directory?
+	 * @param uncompressedSize The uncompressed size of the entry's data, or
+	 * {@code null} if it is not present in this field. The local header version
+	 * of this field must always contain both the uncompressed and the
+	 * compressed size.
+	 * @param compressedSize The compressed size of the entry's data, or {@code
+	 * null} if it is not present in this field.
+	 * @param relativeOffsetOfLocalHeader The offset of the entry's local
+	 * header from the start of the Zip file, or {@code null} if it is not
+	 * present in this field.
+	 * @param diskNumberStart The number of the disk where the entry starts, or
+	 * {@code null} if it is not present in this field.
+	 */
+	public Zip64ExtendedInformationExtraField(boolean inLocalHeader, UnsignedLong uncompressedSize, UnsignedLong compressedSize, UnsignedLong relativeOffsetOfLocalHeader, UnsignedInteger diskNumberStart)
+	{
+		m_inLocalHeader = inLocalHeader;
+		m_uncompressedSize = uncompressedSize;
+		m_compressedSize = compressedSize;
+		m_relativeOffsetOfLocalHeader = relativeOffsetOfLocalHeader;
+		m_diskNumberStart = diskNumberStart;
+	}
+
+	public boolean isInLocalHeader()
+	{
+		return m_inLocalHeader;
+	}
+
+	/**
+	 * Get the uncompressed size of the entry's data.
+	 * @return The uncompressed size, or {@code null} if it is not present in
+	 * this field.
+	 */
+	public UnsignedLong getUncompressedSize()
+	{
+		return m_uncompressedSize;
+	}
+
+	/**
+	 * Get the compressed size of the entry's data.
+	 * @return The compressed size, or {@code null} if it is not present in
+	 * this field.
+	 */
+	public UnsignedLong getCompressedSize()
+	{
+		return m_compressedSize;
+	}
+
+	/**
+	 * Get the offset of the entry's local header from the start of the Zip
+	 * file.
+	 * @return The offset, or {@code null} if it is not present in this field.
+	 */
+	public UnsignedLong getRelativeOffsetOfLocalHeader()
+	{
+		return m_relativeOffsetOfLocalHeader;
+	}
+
+	/**
+	 * Get the number of the disk where the entry starts.
+	 * @return The disk number, or {@code null} if it is not present in this
+	 * field.
+	 */
+	public UnsignedInteger getDiskNumberStart()
+	{
+		return m_diskNumberStart;
+	}
+
+	/**
+	 * Reinterpret the data in this extra field when it is known which of the
+	 * values that are present in it.
+	 * @param uncompressedSizePresent Is the uncompressed size present?
+	 * @param compressedSizePresent Is the compressed size present?
+	 * @param relativeOffsetOfLocalHeaderPresent Is the local header offset
+	 * present?
+	 * @param diskNumberStartPresent Is the disk start number present?
+	 * @return A new extra field with the reinterpreted data.
+	 * @throws ZipFileParseException If this field does not contain the
+	 * requested values.
+	 */
+	public Zip64ExtendedInformationExtraField reinterpret(boolean uncompressedSizePresent, boolean compressedSizePresent, boolean relativeOffsetOfLocalHeaderPresent, boolean diskNumberStartPresent) throws ZipFileParseException
+	{
+		return Zip64ExtendedInformationExtraFieldParser.INSTANCE.parse(encodeInternal(), m_inLocalHeader, uncompressedSizePresent, compressedSizePresent, relativeOffsetOfLocalHeaderPresent, diskNumberStartPresent);
+	}
+
+	private byte[] encodeInternal()
+	{
+		int size = (m_uncompressedSize != null ? 8 : 0) + (m_compressedSize != null ? 8 : 0) + (m_relativeOffsetOfLocalHeader != null ? 8 : 0) + (m_diskNumberStart != null ? UnsignedInteger.SIZE : 0);
+		byte[] res = new byte[size];
+		int pos = 0;
+		if (m_uncompressedSize != null)
+		{
+			System.arraycopy(m_uncompressedSize.getBigEndianByteArray(), 0, res, pos, 8);
+			pos += 8;
+		}
+		if (m_compressedSize != null)
+		{
+			System.arraycopy(m_compressedSize.getBigEndianByteArray(), 0, res, pos, 8);
+			pos += 8;
+		}
+		if (m_relativeOffsetOfLocalHeader != null)
+		{
+			System.arraycopy(m_relativeOffsetOfLocalHeader.getBigEndianByteArray(), 0, res, pos, 8);
+			pos += 8;
+		}
+		if (m_diskNumberStart != null)
+		{
+			System.arraycopy(m_diskNumberStart.getBigEndianByteArray(), 0, res, pos, UnsignedInteger.SIZE);
+		}
+		return res;
+	}
+
+	public byte[] encode(ZipBuilderConfiguration c)
+	{
+		return encodeInternal();
+	}
+
+	private static boolean nullSafeEquals(Object o1, Object o2)
+	{
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if ((o != null) && (o instanceof Zip64ExtendedInformationExtraField))
+		{
+			Zip64ExtendedInformationExtraField f2 = (Zip64ExtendedInformationExtraField) o;
+			return (m_inLocalHeader == f2.m_inLocalHeader) && nullSafeEquals(m_uncompressedSize, f2.m_uncompressedSize) && nullSafeEquals(m_compressedSize, f2.m_compressedSize)
+					&& nullSafeEquals(m_relativeOffsetOfLocalHeader, f2.m_relativeOffsetOfLocalHeader) && nullSafeEquals(m_diskNumberStart, f2.m_diskNumberStart);
+		}
+		else
+		{
+			return false;
+		}
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int res = m_inLocalHeader ? 1 : 0;
+		res += m_uncompressedSize != null ? m_uncompressedSize.hashCode() : 0;
+		res += m_compressedSize != null ? 3 * m_compressedSize.hashCode() : 0;
+		res += m_relativeOffsetOfLocalHeader != null ? 5 * m_relativeOffsetOfLocalHeader.hashCode() : 0;
+		res += m_diskNumberStart != null ? 7 * m_diskNumberStart.hashCode() : 0;
+		return res;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Zip64 extended information: uncompressed size: " + m_uncompressedSize + ", compressed size: " + m_compressedSize + ", local header offset: " + m_relativeOffsetOfLocalHeader + ", disk start number: " + m_diskNumberStart;
+	}
+}
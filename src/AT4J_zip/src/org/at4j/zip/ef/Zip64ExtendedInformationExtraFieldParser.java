@@ -0,0 +1,109 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.ef;
+
+import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
+import org.at4j.support.lang.UnsignedShort;
+import org.at4j.zip.ZipFileParseException;
+
+/**
+ * This parser is used for parsing extra fields of the type
+ * {@link Zip64ExtendedInformationExtraField}.
+ * <p>
+ * Without knowing the contents of the Zip entry's header, this parser assumes
+ * that the values present in the field are the first values of uncompressed
+ * size, compressed size, relative offset of local header and disk start
+ * number, in that order. The {@link org.at4j.zip.ZipFileParser} uses
+ * {@link Zip64ExtendedInformationExtraField#reinterpret} to get the right
+ * values for the central directory version of the field.
+ * @author Karl Gustafsson
+ * @since 1.2
+ * @see Zip64ExtendedInformationExtraField
+ */
+public class Zip64ExtendedInformationExtraFieldParser implements ZipEntryExtraFieldParser
+{
+	/**
+	 * Singleton instance that may be used instead of instantiating this class.
+	 */
+	public static final Zip64ExtendedInformationExtraFieldParser INSTANCE = new Zip64ExtendedInformationExtraFieldParser();
+
+	public UnsignedShort getCode()
+	{
+		return Zip64ExtendedInformationExtraField.CODE;
+	}
+
+	/**
+	 * Parse the extra field data when it is known which values are present in
+	 * it.
+	 * @param barr The extra field data.
+	 * @param inLocalHeader Is the extra field from the Zip entry's local
+	 * header?
+	 * @param uncompressedSizePresent Is the uncompressed size present?
+	 * @param compressedSizePresent Is the compressed size present?
+	 * @param relativeOffsetOfLocalHeaderPresent Is the local header offset
+	 * present?
+	 * @param diskNumberStartPresent Is the disk start number present?
+	 * @return The parsed extra field.
+	 * @throws ZipFileParseException If the data is too short to contain all
+	 * requested values.
+	 */
+	public Zip64ExtendedInformationExtraField parse(byte[] barr, boolean inLocalHeader, boolean uncompressedSizePresent, boolean compressedSizePresent, boolean relativeOffsetOfLocalHeaderPresent, boolean diskNumberStartPresent)
+			throws ZipFileParseException
+	{
+		int requiredSize = (uncompressedSizePresent ? 8 : 0) + (compressedSizePresent ? 8 : 0) + (relativeOffsetOfLocalHeaderPresent ? 8 : 0) + (diskNumberStartPresent ? UnsignedInteger.SIZE : 0);
+		if (barr.length < requiredSize)
+		{
+			throw new ZipFileParseException("Invalid data in Zip64 extended information extra field: It was " + barr.length + " bytes long. Expected at least " + requiredSize + " bytes");
+		}
+
+		int pos = 0;
+		UnsignedLong uncompressedSize = null;
+		if (uncompressedSizePresent)
+		{
+			uncompressedSize = UnsignedLong.fromBigEndianByteArray(barr, pos);
+			pos += 8;
+		}
+		UnsignedLong compressedSize = null;
+		if (compressedSizePresent)
+		{
+			compressedSize = UnsignedLong.fromBigEndianByteArray(barr, pos);
+			pos += 8;
+		}
+		UnsignedLong relativeOffsetOfLocalHeader = null;
+		if (relativeOffsetOfLocalHeaderPresent)
+		{
+			relativeOffsetOfLocalHeader = UnsignedLong.fromBigEndianByteArray(barr, pos);
+			pos += 8;
+		}
+		UnsignedInteger diskNumberStart = null;
+		if (diskNumberStartPresent)
+		{
+			diskNumberStart = UnsignedInteger.fromBigEndianByteArray(barr, pos);
+		}
+		return new Zip64ExtendedInformationExtraField(inLocalHeader, uncompressedSize, compressedSize, relativeOffsetOfLocalHeader, diskNumberStart);
+	}
+
+	public Zip64ExtendedInformationExtraField parse(byte[] barr, boolean inLocalHeader) throws ZipFileParseException
+	{
+		int noOfLongs = Math.min(barr.length / 8, 3);
+		boolean diskNumberStartPresent = (barr.length - noOfLongs * 8) >= UnsignedInteger.SIZE;
+		return parse(barr, inLocalHeader, noOfLongs > 0, noOfLongs > 1, noOfLongs > 2, diskNumberStartPresent);
+	}
+}
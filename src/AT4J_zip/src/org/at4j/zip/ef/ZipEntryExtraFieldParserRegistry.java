@@ -48,6 +48,7 @@ public class ZipEntryExtraFieldParserRegistry
 		m_registry.put(NtfsExtraField.CODE, NtfsExtraFieldParser.INSTANCE);
 		m_registry.put(UnicodePathExtraField.CODE, UnicodePathExtraFieldParser.INSTANCE);
 		m_registry.put(UnicodeCommentExtraField.CODE, UnicodeCommentExtraFieldParser.INSTANCE);
+		m_registry.put(Zip64ExtendedInformationExtraField.CODE, Zip64ExtendedInformationExtraFieldParser.INSTANCE);
 	}
 
 	/**
@@ -18,7 +18,8 @@
  */
 /**
  * This package contains the {@link org.at4j.zip.ZipFile} class and different
- * {@link org.at4j.zip.ZipEntry} implementations.
+ * {@link org.at4j.zip.ZipEntry} implementations. It also contains the
+ * {@link org.at4j.zip.ZipStreamParser} for reading Zip archives from streams.
  * @since 1.0
  * @author Karl Gustafsson
  */
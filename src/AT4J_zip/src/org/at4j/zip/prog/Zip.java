@@ -2,10 +2,13 @@ package org.at4j.zip.prog;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.at4j.support.prog.AbstractProgram;
 import org.at4j.support.prog.CommandErrorException;
 import org.at4j.zip.builder.ZipBuilder;
+import org.at4j.zip.builder.ZipBuilderSettings;
 import org.entityfs.RandomlyAccessibleFile;
 import org.entityfs.el.AbsoluteLocation;
 import org.entityfs.support.exception.WrappedIOException;
@@ -27,6 +30,10 @@ import org.entityfs.util.io.ReadWritableFileAdapter;
  *               -r option is used, directories are added recursively.
  * Options:
  *   -r        - Add directories recursively.
+ *   --threads no - Set the number of threads to use for compressing. Several
+ *               files are compressed in parallel, but they are still added to
+ *               the archive in the order that they were found. The default
+ *               number of threads is one.
  *   --timing  - After building the archive, print out how long it took.
  * </pre>
  * @author Karl Gustafsson
@@ -45,6 +52,10 @@ public final class Zip extends AbstractProgram
 			{
 				res.setRecursive();
 			}
+			else if ("--threads".equals(arg))
+			{
+				res.setNumberOfThreads(Integer.parseInt(getArg(args, pos++, "Missing number of threads")));
+			}
 			else if ("--timing".equals(arg))
 			{
 				res.setTiming();
@@ -76,25 +87,36 @@ public final class Zip extends AbstractProgram
 			throw new CommandErrorException("Could not create target file " + targetFile);
 		}
 		RandomlyAccessibleFile f = new ReadWritableFileAdapter(targetFile);
-		ZipBuilder zb = new ZipBuilder(f);
+		ExecutorService exec = cla.getNumberOfThreads() > 1 ? Executors.newFixedThreadPool(cla.getNumberOfThreads()) : null;
 		try
 		{
-			for (File ftz : cla.getFilesToZip())
+			ZipBuilder zb = new ZipBuilder(f, new ZipBuilderSettings().setCompressionExecutor(exec));
+			try
 			{
-				AbsoluteLocation parentLocation = getParentLocation(ftz);
-				if (cla.isRecursive())
-				{
-					zb.addRecursively(ftz, parentLocation.getChildLocation(ftz.getName()));
-				}
-				else
+				for (File ftz : cla.getFilesToZip())
 				{
-					zb.add(ftz, parentLocation);
+					AbsoluteLocation parentLocation = getParentLocation(ftz);
+					if (cla.isRecursive())
+					{
+						zb.addRecursively(ftz, parentLocation.getChildLocation(ftz.getName()));
+					}
+					else
+					{
+						zb.add(ftz, parentLocation);
+					}
 				}
 			}
+			finally
+			{
+				zb.close();
+			}
 		}
 		finally
 		{
-			zb.close();
+			if (exec != null)
+			{
+				exec.shutdown();
+			}
 		}
 
 		long end = System.currentTimeMillis();
@@ -10,6 +10,7 @@ final class ZipCommandLineArguments
 {
 	private boolean m_recursive;
 	private boolean m_timing;
+	private int m_numberOfThreads = 1;
 	private File m_targetFile;
 	private final List<File> m_filesToZip = new ArrayList<File>();
 
@@ -23,6 +24,20 @@ final class ZipCommandLineArguments
 		return m_recursive;
 	}
 
+	void setNumberOfThreads(int no) throws CommandErrorException
+	{
+		if (no < 1)
+		{
+			throw new CommandErrorException("Invalid number of threads: " + no);
+		}
+		m_numberOfThreads = no;
+	}
+
+	int getNumberOfThreads()
+	{
+		return m_numberOfThreads;
+	}
+
 	void setTargetFile(File f) throws CommandErrorException
 	{
 		if (f.exists())
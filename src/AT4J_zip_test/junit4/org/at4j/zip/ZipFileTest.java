@@ -34,6 +34,7 @@ import java.util.EnumSet;
 
 import org.at4j.support.lang.UnsignedByte;
 import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
 import org.at4j.support.lang.UnsignedShort;
 import org.at4j.support.nio.charset.Charsets;
 import org.at4j.support.util.WinNtTime;
@@ -47,6 +48,7 @@ import org.at4j.zip.ef.InfoZipUnixExtraField;
 import org.at4j.zip.ef.NewInfoZipUnixExtraField;
 import org.at4j.zip.ef.NtfsExtraField;
 import org.at4j.zip.ef.UnicodePathExtraField;
+import org.at4j.zip.ef.Zip64ExtendedInformationExtraField;
 import org.at4j.zip.ef.ZipEntryExtraField;
 import org.at4j.zip.extattrs.MsDosExternalFileAttributes;
 import org.at4j.zip.extattrs.MsDosFileAttributes;
@@ -1134,15 +1136,30 @@ public class ZipFileTest extends At4JTestCase
 				ra.close();
 			}
 
+			// Contents of f2, contents of f2\n
+			ZipFileEntry f2 = (ZipFileEntry) zf.get(new AbsoluteLocation("/f2_deflated"));
+			ra = f2.openForRandomAccess(RandomAccessMode.READ_ONLY);
 			try
 			{
-				((ZipFileEntry) zf.get(new AbsoluteLocation("/f2_deflated"))).openForRandomAccess(RandomAccessMode.READ_ONLY);
-				fail();
+				assertEquals(31, ra.length());
+				ra.seek(16);
+				byte[] barr = new byte[8];
+				assertEquals(8, ra.read(barr));
+				assertEquals("contents", new String(barr));
+				// Backwards. This builds an index for the entry.
+				ra.seek(0);
+				assertEquals(8, ra.read(barr));
+				assertEquals("Contents", new String(barr));
+				ra.seek(30);
+				assertEquals('\n', ra.read());
+				assertEquals(-1, ra.read());
 			}
-			catch (UnsupportedOperationException e)
+			finally
 			{
-				// ok
+				ra.close();
 			}
+			assertSame(f2.getDeflateIndex(), f2.getDeflateIndex());
+			assertEquals(1, zf.getDeflateIndexCache().size());
 		}
 		finally
 		{
@@ -1197,4 +1214,47 @@ public class ZipFileTest extends At4JTestCase
 			zf.close();
 		}
 	}
+
+	@Test
+	public void testZip64InfoZip() throws Exception
+	{
+		// Created by Info-Zip's zip -fz. The central directory offset is only
+		// stored in the Zip64 end of central directory record, and the central
+		// header uncompressed sizes are only stored in Zip64 extra fields.
+		ZipFile zf = new ZipFile(getTestDataFile("zip/Zip64InfoZip.zip"));
+		try
+		{
+			assertEquals(4, zf.size());
+
+			ZipFileEntry f1 = (ZipFileEntry) zf.get(new AbsoluteLocation("/f1_stored"));
+			assertSame(StoredCompressionMethod.INSTANCE, f1.getCompressionMethod());
+			assertEquals("Contents of f1\n", Files.readTextFile(f1));
+			assertEquals(UnsignedInteger.valueOf(0x8ef5bfb4L), f1.getCrc32());
+			assertEquals(15L, f1.getCompressedSize().longValue());
+			assertEquals(15L, f1.getUncompressedSize().longValue());
+			assertEquals(getLocalDate("20261019120000"), f1.getLastModified());
+			assertHasExtraField(f1, new Zip64ExtendedInformationExtraField(false, UnsignedLong.valueOf(15L), null, null, null));
+			assertHasExtraField(f1, new Zip64ExtendedInformationExtraField(true, UnsignedLong.valueOf(15L), UnsignedLong.valueOf(15L), null, null));
+
+			ZipDirectoryEntry d = (ZipDirectoryEntry) zf.get(new AbsoluteLocation("/d"));
+			assertSame(zf.getRootEntry(), d.getParent());
+
+			ZipFileEntry f2 = (ZipFileEntry) zf.get(new AbsoluteLocation("/d/f2_deflated"));
+			assertSame(d, f2.getParent());
+			assertSame(DeflatedCompressionMethod.MAXIMUM_COMPRESSION, f2.getCompressionMethod());
+			assertEquals(UnsignedInteger.valueOf(0xd9e12ddeL), f2.getCrc32());
+			assertEquals(25L, f2.getCompressedSize().longValue());
+			assertEquals(288L, f2.getUncompressedSize().longValue());
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < 6; i++)
+			{
+				expected.append("Contents of f2. Contents of f2. Contents of f2.\n");
+			}
+			assertEquals(expected.toString(), Files.readTextFile(f2));
+		}
+		finally
+		{
+			zf.close();
+		}
+	}
 }
@@ -0,0 +1,241 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.at4j.support.nio.charset.Charsets;
+import org.at4j.test.support.At4JTestCase;
+import org.at4j.zip.builder.Zip64Mode;
+import org.at4j.zip.builder.ZipBuilderSettings;
+import org.at4j.zip.builder.ZipEntrySettings;
+import org.at4j.zip.builder.ZipStreamBuilder;
+import org.at4j.zip.comp.BZip2CompressionMethod;
+import org.at4j.zip.comp.DeflatedCompressionMethod;
+import org.at4j.zip.comp.StoredCompressionMethod;
+import org.at4j.zip.ef.Zip64ExtendedInformationExtraField;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.support.io.StreamUtil;
+import org.entityfs.util.CharSequenceReadableFile;
+import org.entityfs.util.Files;
+import org.entityfs.util.NamedReadableFileAdapter;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class ZipStreamParserTest extends At4JTestCase
+{
+	private static final String F1_CONTENTS = "Contents of f1. Contents of f1. Contents of f1. Contents of f1.";
+	private static final String F2_CONTENTS = "Contents of f2";
+
+	private static class CollectingEntryHandler implements ZipStreamEntryHandlerDelegate
+	{
+		private final List<ZipStreamEntryHeaderData> m_headers = new ArrayList<ZipStreamEntryHeaderData>();
+		private final List<String> m_contents = new ArrayList<String>();
+
+		public void handle(ZipStreamEntryHeaderData ehd, InputStream data)
+		{
+			m_headers.add(ehd);
+			m_contents.add(new String(StreamUtil.readStreamFully(data, 64), Charsets.UTF8));
+		}
+	}
+
+	private byte[] readTestDataFile(String relPath)
+	{
+		return StreamUtil.readStreamFully(getTestDataFile(relPath).openForRead(), 8192);
+	}
+
+	private void assertSameAsZipFile(String relPath, CollectingEntryHandler h)
+	{
+		ZipFile zf = new ZipFile(getTestDataFile(relPath), Charsets.UTF8, Charsets.UTF8);
+		try
+		{
+			// The root directory is not included in the parsed entries.
+			assertEquals(zf.size() - 1, h.m_headers.size());
+			for (int i = 0; i < h.m_headers.size(); i++)
+			{
+				ZipStreamEntryHeaderData ehd = h.m_headers.get(i);
+				ZipEntry ze = zf.get(ehd.getLocation());
+				assertEquals(ze.getLocation(), ehd.getLocation());
+				assertEquals(ze instanceof ZipDirectoryEntry, ehd.isDirectory());
+				assertEquals(ze.getLastModified(), ehd.getLastModificationTime());
+				if (ze instanceof ZipFileEntry)
+				{
+					ZipFileEntry zfe = (ZipFileEntry) ze;
+					assertSame(zfe.getCompressionMethod(), ehd.getCompressionMethod());
+					assertEquals(zfe.getCrc32(), ehd.getCrc32());
+					assertEquals(zfe.getCompressedSize(), ehd.getCompressedSize());
+					assertEquals(zfe.getUncompressedSize(), ehd.getUncompressedSize());
+					assertEquals(Files.readTextFile(zfe, Charsets.UTF8), h.m_contents.get(i));
+				}
+			}
+		}
+		finally
+		{
+			zf.close();
+		}
+	}
+
+	@Test
+	public void testParseInfoZipSimpleUnix()
+	{
+		CollectingEntryHandler h = new CollectingEntryHandler();
+		new ZipStreamParser().parse(new ByteArrayInputStream(readTestDataFile("zip/InfoZipSimpleUnix.zip")), Charsets.UTF8, h);
+		assertEquals(3, h.m_headers.size());
+		assertFalse(h.m_headers.get(2).isDataDescriptorUsed());
+		assertSameAsZipFile("zip/InfoZipSimpleUnix.zip", h);
+	}
+
+	@Test
+	public void testParseMacOsXWithDataDescriptors()
+	{
+		// This archive uses data descriptors for its deflated entries.
+		CollectingEntryHandler h = new CollectingEntryHandler();
+		new ZipStreamParser().parse(Channels.newChannel(new ByteArrayInputStream(readTestDataFile("zip/MacOSX.zip"))), Charsets.UTF8, h);
+		assertEquals(7, h.m_headers.size());
+		assertTrue(h.m_headers.get(1).isDataDescriptorUsed());
+		assertSameAsZipFile("zip/MacOSX.zip", h);
+	}
+
+	@Test
+	public void testParseBZip2()
+	{
+		CollectingEntryHandler h = new CollectingEntryHandler();
+		new ZipStreamParser().parse(new ByteArrayInputStream(readTestDataFile("zip/7ZipBZip2Windows.zip")), Charsets.UTF8, h);
+		assertEquals(1, h.m_headers.size());
+		assertTrue(h.m_headers.get(0).getCompressionMethod() instanceof BZip2CompressionMethod);
+	}
+
+	@Test
+	public void testParseZip64InfoZip()
+	{
+		CollectingEntryHandler h = new CollectingEntryHandler();
+		new ZipStreamParser().parse(new ByteArrayInputStream(readTestDataFile("zip/Zip64InfoZip.zip")), Charsets.UTF8, h);
+		assertSameAsZipFile("zip/Zip64InfoZip.zip", h);
+	}
+
+	private byte[] buildWithZipStreamBuilder(ZipBuilderSettings settings)
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZipStreamBuilder b = new ZipStreamBuilder(bout, settings);
+		b.add(new ByteArrayInputStream(F1_CONTENTS.getBytes()), new AbsoluteLocation("/f1.txt"));
+		// Stored files get their checksums calculated in advance and do not
+		// use data descriptors.
+		b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(F2_CONTENTS), "f2.txt"), new AbsoluteLocation("/d"), new ZipEntrySettings().setCompressionMethod(StoredCompressionMethod.INSTANCE));
+		b.add(new ByteArrayInputStream(new byte[0]), new AbsoluteLocation("/f3.txt"));
+		b.close();
+		return bout.toByteArray();
+	}
+
+	private void assertParsesStreamBuiltArchive(byte[] zipData, boolean zip64)
+	{
+		// Stop reading the first entry half way through. The parser skips the
+		// rest.
+		final List<String> contents = new ArrayList<String>();
+		CollectingEntryHandler h = new CollectingEntryHandler()
+		{
+			@Override
+			public void handle(ZipStreamEntryHeaderData ehd, InputStream data)
+			{
+				if (ehd.getLocation().getName().equals("f1.txt"))
+				{
+					try
+					{
+						byte[] barr = new byte[10];
+						assertEquals(10, data.read(barr));
+						contents.add(new String(barr));
+						super.m_headers.add(ehd);
+					}
+					catch (IOException e)
+					{
+						fail(e.getMessage());
+					}
+				}
+				else
+				{
+					super.handle(ehd, data);
+					contents.add(super.m_contents.get(super.m_contents.size() - 1));
+				}
+			}
+		};
+		new ZipStreamParser().parse(new ByteArrayInputStream(zipData), Charsets.UTF8, h);
+		assertEquals(Arrays.asList("Contents o", F2_CONTENTS, ""), contents);
+
+		ZipStreamEntryHeaderData f1 = h.m_headers.get(0);
+		assertTrue(f1.isDataDescriptorUsed());
+		assertSame(DeflatedCompressionMethod.NORMAL_COMPRESSION, f1.getCompressionMethod());
+		// The values from the data descriptor
+		assertEquals(F1_CONTENTS.length(), f1.getUncompressedSize().longValue());
+		assertTrue(f1.getCompressedSize().longValue() > 0);
+		assertEquals(zip64, f1.getExtraFields().iterator().hasNext() && (f1.getExtraFields().iterator().next() instanceof Zip64ExtendedInformationExtraField));
+
+		ZipStreamEntryHeaderData f2 = h.m_headers.get(1);
+		assertEquals(new AbsoluteLocation("/d/f2.txt"), f2.getLocation());
+		assertSame(StoredCompressionMethod.INSTANCE, f2.getCompressionMethod());
+		assertFalse(f2.isDataDescriptorUsed());
+		assertEquals(F2_CONTENTS.length(), f2.getCompressedSize().longValue());
+	}
+
+	@Test
+	public void testParseStreamBuiltArchive()
+	{
+		assertParsesStreamBuiltArchive(buildWithZipStreamBuilder(new ZipBuilderSettings()), false);
+	}
+
+	@Test
+	public void testParseStreamBuiltZip64Archive()
+	{
+		assertParsesStreamBuiltArchive(buildWithZipStreamBuilder(new ZipBuilderSettings().setZip64Mode(Zip64Mode.ALWAYS)), true);
+	}
+
+	@Test
+	public void testStoredEntryWithDataDescriptorCannotBeParsed()
+	{
+		// A stored entry from a stream is written with a data descriptor. The
+		// parser cannot find the end of its data.
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZipStreamBuilder b = new ZipStreamBuilder(bout, new ZipBuilderSettings().setDefaultFileEntrySettings(new ZipEntrySettings().setCompressionMethod(StoredCompressionMethod.INSTANCE)));
+		b.add(new ByteArrayInputStream(F2_CONTENTS.getBytes()), new AbsoluteLocation("/f2.txt"));
+		b.close();
+		try
+		{
+			new ZipStreamParser().parse(new ByteArrayInputStream(bout.toByteArray()), Charsets.UTF8, new CollectingEntryHandler());
+			fail();
+		}
+		catch (ZipFileParseException e)
+		{
+			// ok
+		}
+	}
+}
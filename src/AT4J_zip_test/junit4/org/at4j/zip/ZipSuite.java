@@ -19,6 +19,8 @@
 package org.at4j.zip;
 
 import org.at4j.zip.builder.BuilderSuite;
+import org.at4j.zip.comp.DeflatedCompressionMethodTest;
+import org.at4j.zip.comp.ParallelDeflatedCompressionMethodTest;
 import org.at4j.zip.ef.EfSuite;
 import org.at4j.zip.extattrs.FileattrsSuite;
 import org.junit.runner.RunWith;
@@ -30,9 +32,9 @@ import org.junit.runners.Suite.SuiteClasses;
  * @since 1.0
  */
 @RunWith(Suite.class)
-@SuiteClasses( { ZipFileTest.class,
+@SuiteClasses( { ZipFileTest.class, ZipStreamParserTest.class,
 
-BuilderSuite.class, EfSuite.class, FileattrsSuite.class })
+BuilderSuite.class, DeflatedCompressionMethodTest.class, ParallelDeflatedCompressionMethodTest.class, EfSuite.class, FileattrsSuite.class })
 public class ZipSuite
 {
 	// Nothing
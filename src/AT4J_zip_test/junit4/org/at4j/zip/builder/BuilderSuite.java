@@ -27,7 +27,7 @@ import org.junit.runners.Suite.SuiteClasses;
  * @since 1.0
  */
 @RunWith(Suite.class)
-@SuiteClasses( { ZipBuilderTest.class })
+@SuiteClasses( { EntryDataBufferTest.class, ZipBuilderTest.class, ZipStreamBuilderTest.class, ZipUpdaterTest.class })
 public class BuilderSuite
 {
 	// Nothing
@@ -0,0 +1,96 @@
+package org.at4j.zip.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.at4j.test.support.At4JTestCase;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class EntryDataBufferTest extends At4JTestCase
+{
+	private byte[] createData(int len)
+	{
+		byte[] res = new byte[len];
+		new Random(len).nextBytes(res);
+		return res;
+	}
+
+	private byte[] readContents(EntryDataBuffer b)
+	{
+		EntryDataBuffer target = new EntryDataBuffer(new CompressionMemoryBudget(Long.MAX_VALUE));
+		try
+		{
+			b.writeTo(target);
+			byte[] res = new byte[(int) target.length()];
+			target.seek(0);
+			assertEquals(res.length, target.read(res));
+			return res;
+		}
+		finally
+		{
+			target.close();
+		}
+	}
+
+	@Test
+	public void testInMemory()
+	{
+		CompressionMemoryBudget budget = new CompressionMemoryBudget(100000);
+		EntryDataBuffer b = new EntryDataBuffer(budget);
+		byte[] data = createData(20000);
+		b.write(data, 0, 10000);
+		b.write(data, 10000, 10000);
+		assertTrue(b.isInMemory());
+		assertEquals(20000L, b.length());
+		assertEquals(20000L, b.getFilePointer());
+		assertTrue(budget.getUsed() >= 20000L);
+		assertTrue(Arrays.equals(data, readContents(b)));
+
+		// Truncate and write again
+		b.setLength(0);
+		assertEquals(0L, b.getFilePointer());
+		b.write(data, 0, 100);
+		assertEquals(100L, b.length());
+		assertTrue(Arrays.equals(Arrays.copyOf(data, 100), readContents(b)));
+
+		b.close();
+		assertEquals(0L, budget.getUsed());
+	}
+
+	@Test
+	public void testMoveToTempFile()
+	{
+		CompressionMemoryBudget budget = new CompressionMemoryBudget(50000);
+		EntryDataBuffer b1 = new EntryDataBuffer(budget);
+		EntryDataBuffer b2 = new EntryDataBuffer(budget);
+		byte[] data1 = createData(40000);
+		byte[] data2 = createData(30000);
+		b1.write(data1);
+		assertTrue(b1.isInMemory());
+		// This does not fit in the budget
+		b2.write(data2, 0, 5000);
+		b2.write(data2, 5000, 25000);
+		assertFalse(b2.isInMemory());
+		assertEquals(30000L, b2.length());
+		assertEquals(30000L, b2.getFilePointer());
+		assertTrue(Arrays.equals(data1, readContents(b1)));
+		assertTrue(Arrays.equals(data2, readContents(b2)));
+
+		// Truncate and write again
+		b2.setLength(0);
+		b2.write(data2, 0, 100);
+		assertTrue(Arrays.equals(Arrays.copyOf(data2, 100), readContents(b2)));
+
+		b2.close();
+		b1.close();
+		assertEquals(0L, budget.getUsed());
+	}
+}
@@ -27,31 +27,46 @@ import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.CRC32;
 
+import org.at4j.archive.builder.ArchiveEntryAddException;
 import org.at4j.archive.builder.ArchiveEntrySettingsRule;
 import org.at4j.archive.builder.DirectoryETAF;
 import org.at4j.archive.builder.EntityTypeETAF;
 import org.at4j.archive.builder.FileETAF;
 import org.at4j.archive.builder.NameGlobETAF;
+import org.at4j.comp.CompressionLevel;
+import org.at4j.comp.bzip2.BZip2EncoderExecutorService;
+import org.at4j.comp.bzip2.BZip2OutputStream;
+import org.at4j.comp.bzip2.BZip2OutputStreamSettings;
 import org.at4j.support.lang.UnsignedByte;
 import org.at4j.support.lang.UnsignedShort;
 import org.at4j.test.support.At4JTestCase;
 import org.at4j.test.support.FaultInjectionReadableFile;
 import org.at4j.test.support.TestFileSupport;
 import org.at4j.zip.ZipDirectoryEntry;
+import org.at4j.zip.ZipEntry;
 import org.at4j.zip.ZipFile;
 import org.at4j.zip.ZipFileEntry;
 import org.at4j.zip.ZipVersionMadeBy;
 import org.at4j.zip.comp.BZip2CompressionMethod;
 import org.at4j.zip.comp.DeflatedCompressionMethod;
 import org.at4j.zip.comp.LzmaCompressionMethod;
+import org.at4j.zip.comp.PpmdCompressionMethod;
 import org.at4j.zip.comp.StoredCompressionMethod;
 import org.at4j.zip.ef.ExtendedTimestampExtraField;
 import org.at4j.zip.ef.ExtendedTimestampExtraFieldFactory;
+import org.at4j.zip.ef.Zip64ExtendedInformationExtraField;
+import org.at4j.zip.ef.ZipEntryExtraField;
 import org.at4j.zip.ef.InfoZipUnixExtraField;
 import org.at4j.zip.ef.InfoZipUnixExtraFieldFactory;
+import org.at4j.zip.ef.NtfsExtraField;
 import org.at4j.zip.ef.NewInfoZipUnixExtraField;
 import org.at4j.zip.ef.NewInfoZipUnixExtraFieldFactory;
 import org.at4j.zip.ef.UnicodeCommentExtraField;
@@ -72,6 +87,7 @@ import org.entityfs.el.AbsoluteLocation;
 import org.entityfs.entityattrs.unix.UnixEntityMode;
 import org.entityfs.exception.EntityNotFoundException;
 import org.entityfs.ram.RamFileSystemBuilder;
+import org.entityfs.support.io.StreamUtil;
 import org.entityfs.support.util.regexp.Glob;
 import org.entityfs.util.ByteArrayReadableFile;
 import org.entityfs.util.CharSequenceReadableFile;
@@ -576,18 +592,19 @@ public class ZipBuilderTest extends At4JTestCase
 				assertSame(root, f.getParent());
 				assertSame(ZipVersionMadeBy.MSDOS, f.getExternalFileAttributes().getVersionMadeBy());
 				assertEquals(MsDosExternalFileAttributes.DEFAULT_FILE_ATTRIBUTES, f.getExternalFileAttributes());
-				assertSame(DeflatedCompressionMethod.NORMAL_COMPRESSION, f.getCompressionMethod());
+				// The data got larger when it was compressed, so it is stored
+				// uncompressed.
+				assertSame(StoredCompressionMethod.INSTANCE, f.getCompressionMethod());
 				assertEquals("Contents of test.txt", Files.readTextFile(f));
 				assertEquals(calcCrc32("Contents of test.txt".getBytes()), f.getCrc32().longValue());
 				assertEquals("test.txt", f.getName());
-				assertEquals(UnsignedByte.valueOf(20), f.getVersionUsedToCreate());
-				assertEquals(UnsignedByte.valueOf(20), f.getVersionNeededToExtract());
+				assertEquals(UnsignedByte.valueOf(10), f.getVersionUsedToCreate());
+				assertEquals(UnsignedByte.valueOf(10), f.getVersionNeededToExtract());
 				assertFalse(f.isEncrypted());
 				assertFalse(f.isStrongEncryption());
 				assertFalse(f.isCompressedPatchData());
 				assertWithinLast30Seconds(f.getLastModified());
-				assertEquals(22L, f.getCompressedSize().longValue());
-				// Doh! Smaller!
+				assertEquals(20L, f.getCompressedSize().longValue());
 				assertEquals(20L, f.getUncompressedSize().longValue());
 				assertEquals(UnsignedShort.valueOf(0), f.getDiskNumberStart());
 				assertTrue(f.isAppearingToBeTextFile());
@@ -605,6 +622,127 @@ public class ZipBuilderTest extends At4JTestCase
 		}
 	}
 
+	private byte[] createRandomData(int size, int noSymbols, Random r)
+	{
+		byte[] res = new byte[size];
+		for (int i = 0; i < size; i++)
+		{
+			res[i] = (byte) r.nextInt(noSymbols);
+		}
+		return res;
+	}
+
+	@Test
+	public void testStoreIncompressibleFiles() throws IOException
+	{
+		Random r = new Random(1234);
+		byte[] randomData = createRandomData(200000, 256, r);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++)
+		{
+			sb.append("Contents of text.txt ").append(i).append('\n');
+		}
+		byte[] textData = sb.toString().getBytes();
+
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			ZipBuilder b = new ZipBuilder(raf);
+			assertTrue(b.isStoreIncompressibleFiles());
+			b.add(new NamedReadableFileAdapter(new ByteArrayReadableFile(randomData), "random.bin"));
+			b.add(new ByteArrayInputStream(randomData), new AbsoluteLocation("/random_stream.bin"));
+			b.add(new ByteArrayInputStream(textData), new AbsoluteLocation("/text.txt"));
+			b.close();
+
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				ZipFileEntry f = (ZipFileEntry) zf.get(new AbsoluteLocation("/random.bin"));
+				assertSame(StoredCompressionMethod.INSTANCE, f.getCompressionMethod());
+				assertEquals(calcCrc32(randomData), f.getCrc32().longValue());
+				assertEquals(randomData.length, f.getCompressedSize().longValue());
+
+				f = (ZipFileEntry) zf.get(new AbsoluteLocation("/random_stream.bin"));
+				assertSame(StoredCompressionMethod.INSTANCE, f.getCompressionMethod());
+				assertEquals(calcCrc32(randomData), f.getCrc32().longValue());
+				assertEquals(randomData.length, f.getCompressedSize().longValue());
+				assertTrue(Arrays.equals(randomData, StreamUtil.readStreamFully(f.openForRead(), 8192)));
+
+				f = (ZipFileEntry) zf.get(new AbsoluteLocation("/text.txt"));
+				assertSame(DeflatedCompressionMethod.NORMAL_COMPRESSION, f.getCompressionMethod());
+				assertEquals(sb.toString(), Files.readTextFile(f));
+			}
+			finally
+			{
+				zf.close();
+			}
+
+			// Without incompressible data detection
+			b = new ZipBuilder(raf, new ZipBuilderSettings().setStoreIncompressibleFiles(false));
+			assertFalse(b.isStoreIncompressibleFiles());
+			b.add(new ByteArrayInputStream(randomData), new AbsoluteLocation("/random_stream.bin"));
+			b.close();
+
+			zf = new ZipFile(raf);
+			try
+			{
+				ZipFileEntry f = (ZipFileEntry) zf.get(new AbsoluteLocation("/random_stream.bin"));
+				assertSame(DeflatedCompressionMethod.NORMAL_COMPRESSION, f.getCompressionMethod());
+				assertTrue(f.getCompressedSize().longValue() > randomData.length);
+				assertTrue(Arrays.equals(randomData, StreamUtil.readStreamFully(f.openForRead(), 8192)));
+			}
+			finally
+			{
+				zf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testRewriteStreamEntryThatGetsLargerWhenCompressed() throws IOException
+	{
+		// The start of the data compresses a little with Deflate, so it is
+		// compressed. The rest is random data that bzip2 makes larger.
+		Random r = new Random(1);
+		byte[] start = createRandomData(65536, 190, r);
+		byte[] rest = createRandomData(1000000, 256, r);
+		byte[] data = new byte[start.length + rest.length];
+		System.arraycopy(start, 0, data, 0, start.length);
+		System.arraycopy(rest, 0, data, start.length, rest.length);
+
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			ZipBuilder b = new ZipBuilder(raf);
+			b.add(new ByteArrayInputStream(data), new AbsoluteLocation("/f.bin"), new ZipEntrySettings().setCompressionMethod(BZip2CompressionMethod.INSTANCE));
+			b.add(new ByteArrayInputStream("Contents of f2".getBytes()), new AbsoluteLocation("/f2.txt"));
+			b.close();
+
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				ZipFileEntry f = (ZipFileEntry) zf.get(new AbsoluteLocation("/f.bin"));
+				assertSame(StoredCompressionMethod.INSTANCE, f.getCompressionMethod());
+				assertEquals(data.length, f.getCompressedSize().longValue());
+				assertEquals(calcCrc32(data), f.getCrc32().longValue());
+				assertTrue(Arrays.equals(data, StreamUtil.readStreamFully(f.openForRead(), 8192)));
+				assertEquals("Contents of f2", Files.readTextFile((ZipFileEntry) zf.get(new AbsoluteLocation("/f2.txt"))));
+			}
+			finally
+			{
+				zf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
 	@Test
 	public void testZipSingleDirectory()
 	{
@@ -1074,6 +1212,70 @@ public class ZipBuilderTest extends At4JTestCase
 		}
 	}
 
+	@Test
+	public void testAddFilesWithSharedBZip2EncoderExecutor() throws IOException
+	{
+		String[] contents = new String[3];
+		for (int i = 0; i < contents.length; i++)
+		{
+			StringBuilder sb = new StringBuilder();
+			Random r = new Random(i);
+			while (sb.length() < 250000)
+			{
+				sb.append("Contents of f").append(i).append(' ').append(r.nextInt(1000)).append('\n');
+			}
+			contents[i] = sb.toString();
+		}
+
+		BZip2EncoderExecutorService executor = BZip2OutputStream.createExecutorService(2);
+		try
+		{
+			// Use a small block size to get several blocks for each entry
+			BZip2CompressionMethod cm = new BZip2CompressionMethod(new BZip2OutputStreamSettings().setBlockSize(1).setExecutorService(executor));
+			assertEquals(1, cm.getOutputStreamSettings().getBlockSize());
+			assertSame(executor, cm.getOutputStreamSettings().getExecutorService());
+			// The executor is kept when the compression level is changed
+			BZip2CompressionMethod cm2 = (BZip2CompressionMethod) cm.createWithCompressionLevel(CompressionLevel.BEST);
+			assertEquals(9, cm2.getOutputStreamSettings().getBlockSize());
+			assertSame(executor, cm2.getOutputStreamSettings().getExecutorService());
+
+			ReadWritableFile raf = createTargetFile();
+			try
+			{
+				ZipBuilder b = new ZipBuilder(raf, new ZipBuilderSettings().setDefaultFileEntrySettings(new ZipEntrySettings().setCompressionMethod(cm)));
+				for (int i = 0; i < contents.length; i++)
+				{
+					b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(contents[i]), "f" + i + ".txt"));
+				}
+				b.close();
+
+				ZipFile zf = new ZipFile(raf);
+				try
+				{
+					for (int i = 0; i < contents.length; i++)
+					{
+						ZipFileEntry f = (ZipFileEntry) zf.get(new AbsoluteLocation("/f" + i + ".txt"));
+						assertSame(BZip2CompressionMethod.INSTANCE, f.getCompressionMethod());
+						assertEquals(contents[i], Files.readTextFile(f));
+						assertEquals(calcCrc32(contents[i].getBytes()), f.getCrc32().longValue());
+					}
+				}
+				finally
+				{
+					zf.close();
+				}
+			}
+			finally
+			{
+				raf.delete();
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	public void testFileAndDirectoryWithAllSortsOfExtraFields()
 	{
@@ -1966,4 +2168,375 @@ public class ZipBuilderTest extends At4JTestCase
 			raf.delete();
 		}
 	}
+
+	@Test
+	public void testZip64Always()
+	{
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			String contents = "Contents of f1. Contents of f1. Contents of f1. Contents of f1. Contents of f1.";
+
+			ZipBuilder b = new ZipBuilder(raf, new ZipBuilderSettings().setZip64Mode(Zip64Mode.ALWAYS));
+			assertSame(Zip64Mode.ALWAYS, b.getZip64Mode());
+			b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(contents), "f1.txt"));
+			b.add(new ByteArrayInputStream("Contents of f2".getBytes()), new AbsoluteLocation("/d/f2.txt"));
+			b.close();
+
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				assertEquals(4, zf.size());
+				assertEquals(ZipBuilderSettings.DEFAULT_FILE_COMMENT, zf.getComment());
+
+				ZipFileEntry f1 = (ZipFileEntry) zf.get(new AbsoluteLocation("/f1.txt"));
+				assertEquals(contents, Files.readTextFile(f1));
+				assertEquals(calcCrc32(contents.getBytes()), f1.getCrc32().longValue());
+				assertEquals(UnsignedByte.valueOf(45), f1.getVersionNeededToExtract());
+				assertEquals(contents.length(), f1.getUncompressedSize().longValue());
+				// A local and a central header Zip64 extra field
+				assertEquals(2, f1.getExtraFields().size());
+				for (ZipEntryExtraField zef : f1.getExtraFields())
+				{
+					Zip64ExtendedInformationExtraField ef = (Zip64ExtendedInformationExtraField) zef;
+					assertEquals(f1.getUncompressedSize(), ef.getUncompressedSize());
+					assertEquals(f1.getCompressedSize(), ef.getCompressedSize());
+					if (ef.isInLocalHeader())
+					{
+						assertNull(ef.getRelativeOffsetOfLocalHeader());
+					}
+					else
+					{
+						assertEquals(0L, ef.getRelativeOffsetOfLocalHeader().longValue());
+					}
+					assertNull(ef.getDiskNumberStart());
+				}
+
+				ZipDirectoryEntry d = (ZipDirectoryEntry) zf.get(new AbsoluteLocation("/d"));
+				assertEquals(UnsignedByte.valueOf(10), d.getVersionNeededToExtract());
+
+				ZipFileEntry f2 = (ZipFileEntry) zf.get(new AbsoluteLocation("/d/f2.txt"));
+				assertEquals("Contents of f2", Files.readTextFile(f2));
+				assertEquals(UnsignedByte.valueOf(45), f2.getVersionNeededToExtract());
+				assertEquals(14L, f2.getUncompressedSize().longValue());
+			}
+			finally
+			{
+				zf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testZip64ManyEntries()
+	{
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			ZipBuilder b = new ZipBuilder(raf, new ZipBuilderSettings().setDefaultFileEntrySettings(new ZipEntrySettings().setCompressionMethod(StoredCompressionMethod.INSTANCE)));
+			for (int i = 0; i < 70000; i++)
+			{
+				b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(""), "f" + i));
+			}
+			b.close();
+
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				// Including the root directory
+				assertEquals(70001, zf.size());
+				ZipFileEntry f = (ZipFileEntry) zf.get(new AbsoluteLocation("/f69999"));
+				assertEquals(0L, f.getUncompressedSize().longValue());
+				assertEquals(0, f.getExtraFields().size());
+			}
+			finally
+			{
+				zf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testZip64NeverTooManyEntries()
+	{
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			ZipBuilder b = new ZipBuilder(raf, new ZipBuilderSettings().setZip64Mode(Zip64Mode.NEVER).setDefaultFileEntrySettings(new ZipEntrySettings().setCompressionMethod(StoredCompressionMethod.INSTANCE)));
+			for (int i = 0; i < 65534; i++)
+			{
+				b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(""), "f" + i));
+			}
+			try
+			{
+				b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(""), "f65534"));
+				fail();
+			}
+			catch (ArchiveEntryAddException e)
+			{
+				// ok
+			}
+			b.close();
+
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				assertEquals(65535, zf.size());
+			}
+			finally
+			{
+				zf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	private Directory createTreeForParallelCompression()
+	{
+		Random r = new Random(4711);
+		Directory rootd = new RamFileSystemBuilder().create().getRootDirectory();
+		for (int i = 0; i < 10; i++)
+		{
+			Directory d = Directories.newDirectory(rootd, "d" + i);
+			for (int j = 0; j < 30; j++)
+			{
+				byte[] contents;
+				switch (j % 3)
+				{
+					case 0:
+						// Compressible
+						StringBuilder sb = new StringBuilder();
+						int n = r.nextInt(1000);
+						for (int k = 0; k < n; k++)
+						{
+							sb.append("Contents of f" + j + " in d" + i + ". ");
+						}
+						contents = sb.toString().getBytes();
+						break;
+					case 1:
+						// Incompressible. This is stored uncompressed
+						contents = new byte[r.nextInt(100000)];
+						r.nextBytes(contents);
+						break;
+					default:
+						contents = new byte[0];
+				}
+				Files.writeData(Directories.newFile(d, "f" + j), contents);
+			}
+		}
+		return rootd;
+	}
+
+	@Test
+	public void testParallelCompression() throws Exception
+	{
+		Directory rootd = createTreeForParallelCompression();
+		ReadWritableFile raf1 = createTargetFile();
+		ReadWritableFile raf2 = createTargetFile();
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try
+		{
+			// Build the same archive serially and in parallel
+			ZipBuilder b = new ZipBuilder(raf1);
+			b.addRecursively(rootd, new AbsoluteLocation("/d"));
+			b.add(new ByteArrayInputStream("Contents of stream".getBytes()), new AbsoluteLocation("/d/stream"));
+			b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f"), "f"), new AbsoluteLocation("/d"), new ZipEntrySettings().setComment("A file"));
+			b.close();
+
+			// A small memory budget, so that some entries are buffered in
+			// temporary files.
+			b = new ZipBuilder(raf2, new ZipBuilderSettings().setCompressionExecutor(exec).setCompressionMemoryBudget(100000));
+			b.addRecursively(rootd, new AbsoluteLocation("/d"));
+			b.add(new ByteArrayInputStream("Contents of stream".getBytes()), new AbsoluteLocation("/d/stream"));
+			b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f"), "f"), new AbsoluteLocation("/d"), new ZipEntrySettings().setComment("A file"));
+			b.close();
+
+			ZipFile zf = new ZipFile(raf2);
+			ZipFile zf1 = new ZipFile(raf1);
+			try
+			{
+				// 300 files, 10 directories, /d, the stream, f and the root
+				// directory
+				assertEquals(314, zf.size());
+				ZipFileEntry f = (ZipFileEntry) zf.get(new AbsoluteLocation("/d/d5/f3"));
+				assertTrue(Arrays.equals(Files.readBinaryFile(Directories.getFile(Directories.getDirectory(rootd, "d5"), "f3")), Files.readBinaryFile(f)));
+				f = (ZipFileEntry) zf.get(new AbsoluteLocation("/d/d9/f28"));
+				assertTrue(Arrays.equals(Files.readBinaryFile(Directories.getFile(Directories.getDirectory(rootd, "d9"), "f28")), Files.readBinaryFile(f)));
+				assertEquals("Contents of stream", Files.readTextFile((ZipFileEntry) zf.get(new AbsoluteLocation("/d/stream"))));
+				assertEquals("A file", zf.get(new AbsoluteLocation("/d/f")).getComment());
+
+				// The archives should be identical, except for the last
+				// modification times of the stream and of f. They are set to
+				// the current time when the entries are added.
+				assertEquals(raf1.getSize(), raf2.getSize());
+				for (ZipEntry ze1 : zf1.values())
+				{
+					ZipEntry ze2 = zf.get(ze1.getLocation());
+					assertEquals(ze1.getClass(), ze2.getClass());
+					if (ze1 instanceof ZipFileEntry)
+					{
+						assertEquals(((ZipFileEntry) ze1).getCompressionMethod(), ((ZipFileEntry) ze2).getCompressionMethod());
+						assertEquals(((ZipFileEntry) ze1).getCrc32(), ((ZipFileEntry) ze2).getCrc32());
+						assertEquals(((ZipFileEntry) ze1).getCompressedSize(), ((ZipFileEntry) ze2).getCompressedSize());
+					}
+				}
+			}
+			finally
+			{
+				zf.close();
+				zf1.close();
+			}
+		}
+		finally
+		{
+			exec.shutdown();
+			raf1.delete();
+			raf2.delete();
+		}
+	}
+
+	private void assertIsRawCopy(ZipFileEntry expected, ZipFileEntry actual)
+	{
+		assertEquals(expected.getCompressionMethod().getCode(), actual.getCompressionMethod().getCode());
+		assertEquals(expected.getCrc32(), actual.getCrc32());
+		assertEquals(expected.getCompressedSize(), actual.getCompressedSize());
+		assertEquals(expected.getUncompressedSize(), actual.getUncompressedSize());
+		assertEquals(expected.getLastModified(), actual.getLastModified());
+		assertEquals(expected.getComment(), actual.getComment());
+		assertEquals(expected.getExternalFileAttributes(), actual.getExternalFileAttributes());
+		assertTrue(Arrays.equals(StreamUtil.readStreamFully(expected.openCompressedForRead(), 8192), StreamUtil.readStreamFully(actual.openCompressedForRead(), 8192)));
+	}
+
+	private void testAddRawInternal(Zip64Mode zip64Mode)
+	{
+		ReadWritableFile raf1 = createTargetFile();
+		ReadWritableFile raf2 = createTargetFile();
+		try
+		{
+			ZipBuilder b = new ZipBuilder(raf1);
+			b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f1. Contents of f1. Contents of f1."), "f1"), AbsoluteLocation.ROOT_DIR, new ZipEntrySettings().setComment("Comment of f1")
+					.addExtraFieldFactory(ExtendedTimestampExtraFieldFactory.INSTANCE));
+			b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f2"), "f2"), AbsoluteLocation.ROOT_DIR, new ZipEntrySettings().setCompressionMethod(StoredCompressionMethod.INSTANCE));
+			b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile("Contents of f3. Contents of f3. Contents of f3."), "f3"), AbsoluteLocation.ROOT_DIR, new ZipEntrySettings().setCompressionMethod(BZip2CompressionMethod.INSTANCE));
+			b.close();
+
+			ZipFile zf1 = new ZipFile(raf1);
+			try
+			{
+				b = new ZipBuilder(raf2, new ZipBuilderSettings().setZip64Mode(zip64Mode));
+				b.addRaw((ZipFileEntry) zf1.get(new AbsoluteLocation("/f1")));
+				b.add(new ByteArrayInputStream("Contents of stream".getBytes()), new AbsoluteLocation("/stream"));
+				b.addRaw((ZipFileEntry) zf1.get(new AbsoluteLocation("/f2")), new AbsoluteLocation("/d/f2_copy"));
+				b.addRaw((ZipFileEntry) zf1.get(new AbsoluteLocation("/f3")));
+				b.close();
+
+				ZipFile zf2 = new ZipFile(raf2);
+				try
+				{
+					// The root directory, d and four files
+					assertEquals(6, zf2.size());
+					ZipFileEntry f1 = (ZipFileEntry) zf2.get(new AbsoluteLocation("/f1"));
+					assertIsRawCopy((ZipFileEntry) zf1.get(new AbsoluteLocation("/f1")), f1);
+					assertEquals("Contents of f1. Contents of f1. Contents of f1.", Files.readTextFile(f1));
+					assertEquals("Comment of f1", f1.getComment());
+					assertEquals(zf1.get(new AbsoluteLocation("/f1")).getExtraField(ExtendedTimestampExtraField.class, true), f1.getExtraField(ExtendedTimestampExtraField.class, true));
+					assertEquals(zf1.get(new AbsoluteLocation("/f1")).getExtraField(ExtendedTimestampExtraField.class, false), f1.getExtraField(ExtendedTimestampExtraField.class, false));
+					assertEquals(zip64Mode == Zip64Mode.ALWAYS, f1.getExtraField(Zip64ExtendedInformationExtraField.class, false) != null);
+
+					ZipFileEntry f2 = (ZipFileEntry) zf2.get(new AbsoluteLocation("/d/f2_copy"));
+					assertIsRawCopy((ZipFileEntry) zf1.get(new AbsoluteLocation("/f2")), f2);
+					assertEquals("Contents of f2", Files.readTextFile(f2));
+
+					ZipFileEntry f3 = (ZipFileEntry) zf2.get(new AbsoluteLocation("/f3"));
+					assertIsRawCopy((ZipFileEntry) zf1.get(new AbsoluteLocation("/f3")), f3);
+					assertEquals("Contents of f3. Contents of f3. Contents of f3.", Files.readTextFile(f3));
+
+					assertEquals("Contents of stream", Files.readTextFile((ZipFileEntry) zf2.get(new AbsoluteLocation("/stream"))));
+				}
+				finally
+				{
+					zf2.close();
+				}
+			}
+			finally
+			{
+				zf1.close();
+			}
+		}
+		finally
+		{
+			raf1.delete();
+			raf2.delete();
+		}
+	}
+
+	@Test
+	public void testAddRaw()
+	{
+		testAddRawInternal(Zip64Mode.AS_NEEDED);
+	}
+
+	@Test
+	public void testAddRawWithZip64()
+	{
+		testAddRawInternal(Zip64Mode.ALWAYS);
+	}
+
+	@Test
+	public void testAddRawWithUnsupportedCompressionMethod()
+	{
+		// The entry is compressed using PPMd, which is not supported by AT4J.
+		// It can still be copied.
+		ZipFile zf1 = new ZipFile(getTestDataFile("zip/WinZipWindowsPPMd.zip"), Charset.forName("Cp437"), Charset.forName("Cp1252"));
+		try
+		{
+			ZipFileEntry source = null;
+			for (ZipEntry ze : zf1.values())
+			{
+				if (ze instanceof ZipFileEntry)
+				{
+					source = (ZipFileEntry) ze;
+				}
+			}
+			ReadWritableFile raf = createTargetFile();
+			try
+			{
+				ZipBuilder b = new ZipBuilder(raf);
+				b.addRaw(source, new AbsoluteLocation("/copy.txt"));
+				b.close();
+
+				ZipFile zf2 = new ZipFile(raf);
+				try
+				{
+					ZipFileEntry f = (ZipFileEntry) zf2.get(new AbsoluteLocation("/copy.txt"));
+					assertIsRawCopy(source, f);
+					assertTrue(f.getCompressionMethod() instanceof PpmdCompressionMethod);
+					assertEquals(source.getExtraField(NtfsExtraField.class, false), f.getExtraField(NtfsExtraField.class, false));
+				}
+				finally
+				{
+					zf2.close();
+				}
+			}
+			finally
+			{
+				raf.delete();
+			}
+		}
+		finally
+		{
+			zf1.close();
+		}
+	}
 }
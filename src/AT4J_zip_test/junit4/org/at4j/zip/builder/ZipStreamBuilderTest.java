@@ -0,0 +1,336 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipInputStream;
+
+import org.at4j.support.lang.UnsignedByte;
+import org.at4j.test.support.At4JTestCase;
+import org.at4j.test.support.TestFileSupport;
+import org.at4j.zip.ZipDirectoryEntry;
+import org.at4j.zip.ZipFile;
+import org.at4j.zip.ZipFileEntry;
+import org.at4j.zip.comp.DeflatedCompressionMethod;
+import org.at4j.zip.comp.StoredCompressionMethod;
+import org.at4j.zip.ef.Zip64ExtendedInformationExtraField;
+import org.at4j.zip.ef.ZipEntryExtraField;
+import org.entityfs.ReadWritableFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.ram.RamFileSystemBuilder;
+import org.entityfs.support.io.StreamUtil;
+import org.entityfs.util.ByteArrayReadableFile;
+import org.entityfs.util.CharSequenceReadableFile;
+import org.entityfs.util.Directories;
+import org.entityfs.util.Files;
+import org.entityfs.util.NamedReadableFileAdapter;
+import org.entityfs.util.io.ReadWritableFileAdapter;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class ZipStreamBuilderTest extends At4JTestCase
+{
+	private static final String F1_CONTENTS = "Contents of f1. Contents of f1. Contents of f1. Contents of f1. Contents of f1.";
+	private static final String F2_CONTENTS = "Contents of f2";
+	private static final String F3_CONTENTS = "Contents of f3. Contents of f3. Contents of f3.";
+
+	private ReadWritableFile createTargetFile()
+	{
+		return new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+	}
+
+	private long calcCrc32(byte[] barr)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(barr);
+		return crc.getValue();
+	}
+
+	private void addTestEntries(ZipStreamBuilder b)
+	{
+		b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(F1_CONTENTS), "f1.txt"));
+		b.add(Directories.newDirectory(new RamFileSystemBuilder().create().getRootDirectory(), "d"));
+		b.add(new ByteArrayInputStream(F2_CONTENTS.getBytes()), new AbsoluteLocation("/d/f2.txt"));
+		b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(F3_CONTENTS), "f3.txt"), new AbsoluteLocation("/d"), new ZipEntrySettings().setCompressionMethod(StoredCompressionMethod.INSTANCE));
+	}
+
+	/**
+	 * Read the archive sequentially, using the data descriptors, with Java's
+	 * Zip input stream.
+	 */
+	private void assertReadableAsStream(byte[] zipData) throws IOException
+	{
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData));
+		try
+		{
+			assertEquals("f1.txt", zis.getNextEntry().getName());
+			assertEquals(F1_CONTENTS, new String(StreamUtil.readStreamFully(zis, 256)));
+			assertEquals("d/", zis.getNextEntry().getName());
+			assertEquals("d/f2.txt", zis.getNextEntry().getName());
+			assertEquals(F2_CONTENTS, new String(StreamUtil.readStreamFully(zis, 256)));
+			assertEquals("d/f3.txt", zis.getNextEntry().getName());
+			assertEquals(F3_CONTENTS, new String(StreamUtil.readStreamFully(zis, 256)));
+			assertNull(zis.getNextEntry());
+		}
+		finally
+		{
+			zis.close();
+		}
+	}
+
+	@Test
+	public void testBuildZipToStream() throws IOException
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZipStreamBuilder b = new ZipStreamBuilder(bout, new ZipBuilderSettings().setFileComment("File comment"));
+		addTestEntries(b);
+		b.close();
+		assertTrue(b.isClosed());
+		byte[] zipData = bout.toByteArray();
+
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			Files.writeData(raf, zipData);
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				assertEquals(5, zf.size());
+				assertEquals("File comment", zf.getComment());
+
+				// A compressed file. The checksum and sizes are written in a
+				// data descriptor.
+				ZipFileEntry f1 = (ZipFileEntry) zf.get(new AbsoluteLocation("/f1.txt"));
+				assertEquals(F1_CONTENTS, Files.readTextFile(f1));
+				assertSame(DeflatedCompressionMethod.NORMAL_COMPRESSION, f1.getCompressionMethod());
+				assertTrue(f1.getGeneralPurposeBitFlags().isLocalHeaderFieldZeroed());
+				assertEquals(calcCrc32(F1_CONTENTS.getBytes()), f1.getCrc32().longValue());
+				assertEquals(F1_CONTENTS.length(), f1.getUncompressedSize().longValue());
+				assertEquals(UnsignedByte.valueOf(20), f1.getVersionNeededToExtract());
+				assertEquals(0, f1.getExtraFields().size());
+
+				ZipDirectoryEntry d = (ZipDirectoryEntry) zf.get(new AbsoluteLocation("/d"));
+				assertFalse(d.getGeneralPurposeBitFlags().isLocalHeaderFieldZeroed());
+
+				// Data from a stream
+				ZipFileEntry f2 = (ZipFileEntry) zf.get(new AbsoluteLocation("/d/f2.txt"));
+				assertEquals(F2_CONTENTS, Files.readTextFile(f2));
+				assertTrue(f2.getGeneralPurposeBitFlags().isLocalHeaderFieldZeroed());
+				assertEquals(calcCrc32(F2_CONTENTS.getBytes()), f2.getCrc32().longValue());
+				// Compressed even though it got larger.
+				assertSame(DeflatedCompressionMethod.NORMAL_COMPRESSION, f2.getCompressionMethod());
+				assertEquals(F2_CONTENTS.length(), f2.getUncompressedSize().longValue());
+
+				// An uncompressed file. It does not need a data descriptor.
+				ZipFileEntry f3 = (ZipFileEntry) zf.get(new AbsoluteLocation("/d/f3.txt"));
+				assertEquals(F3_CONTENTS, Files.readTextFile(f3));
+				assertSame(StoredCompressionMethod.INSTANCE, f3.getCompressionMethod());
+				assertFalse(f3.getGeneralPurposeBitFlags().isLocalHeaderFieldZeroed());
+				assertEquals(calcCrc32(F3_CONTENTS.getBytes()), f3.getCrc32().longValue());
+				assertEquals(F3_CONTENTS.length(), f3.getCompressedSize().longValue());
+			}
+			finally
+			{
+				zf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+
+		assertReadableAsStream(zipData);
+	}
+
+	@Test
+	public void testBuildZip64ZipToChannel() throws IOException
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZipStreamBuilder b = new ZipStreamBuilder(Channels.newChannel(bout), new ZipBuilderSettings().setZip64Mode(Zip64Mode.ALWAYS));
+		addTestEntries(b);
+		b.close();
+		byte[] zipData = bout.toByteArray();
+
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			Files.writeData(raf, zipData);
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				assertEquals(5, zf.size());
+
+				ZipFileEntry f1 = (ZipFileEntry) zf.get(new AbsoluteLocation("/f1.txt"));
+				assertEquals(F1_CONTENTS, Files.readTextFile(f1));
+				assertTrue(f1.getGeneralPurposeBitFlags().isLocalHeaderFieldZeroed());
+				assertEquals(UnsignedByte.valueOf(45), f1.getVersionNeededToExtract());
+				assertEquals(F1_CONTENTS.length(), f1.getUncompressedSize().longValue());
+				// A local and a central header Zip64 extra field. The sizes
+				// are not known when the local header is written.
+				assertEquals(2, f1.getExtraFields().size());
+				for (ZipEntryExtraField zef : f1.getExtraFields())
+				{
+					Zip64ExtendedInformationExtraField ef = (Zip64ExtendedInformationExtraField) zef;
+					if (ef.isInLocalHeader())
+					{
+						assertEquals(0L, ef.getUncompressedSize().longValue());
+						assertEquals(0L, ef.getCompressedSize().longValue());
+					}
+					else
+					{
+						assertEquals(f1.getUncompressedSize(), ef.getUncompressedSize());
+						assertEquals(f1.getCompressedSize(), ef.getCompressedSize());
+						assertEquals(0L, ef.getRelativeOffsetOfLocalHeader().longValue());
+					}
+				}
+
+				ZipFileEntry f2 = (ZipFileEntry) zf.get(new AbsoluteLocation("/d/f2.txt"));
+				assertEquals(F2_CONTENTS, Files.readTextFile(f2));
+				assertEquals(UnsignedByte.valueOf(45), f2.getVersionNeededToExtract());
+
+				ZipFileEntry f3 = (ZipFileEntry) zf.get(new AbsoluteLocation("/d/f3.txt"));
+				assertEquals(F3_CONTENTS, Files.readTextFile(f3));
+				assertEquals(UnsignedByte.valueOf(45), f3.getVersionNeededToExtract());
+				assertFalse(f3.getGeneralPurposeBitFlags().isLocalHeaderFieldZeroed());
+			}
+			finally
+			{
+				zf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+		// Java's ZipInputStream (before Java 21) expects four byte sizes in
+		// the data descriptors of small entries, even if the entries have
+		// Zip64 extra fields, so it cannot be used for verifying this
+		// archive.
+	}
+
+	@Test
+	public void testZip64InLocalHeader()
+	{
+		ZipStreamBuilder b = new ZipStreamBuilder(new ByteArrayOutputStream(), null);
+		// Data of unknown size
+		assertTrue(b.isZip64InLocalHeader(-1L, true));
+		assertTrue(b.isZip64InLocalHeader(-1L, false));
+		assertFalse(b.isZip64InLocalHeader(100000L, true));
+		// Compressed data may become larger than 4 GB
+		assertTrue(b.isZip64InLocalHeader(AbstractZipBuilder.ZIP64_MAGIC_INTEGER - 1000, true));
+		assertFalse(b.isZip64InLocalHeader(AbstractZipBuilder.ZIP64_MAGIC_INTEGER - 1000, false));
+		assertTrue(b.isZip64InLocalHeader(AbstractZipBuilder.ZIP64_MAGIC_INTEGER, false));
+		b.close();
+
+		b = new ZipStreamBuilder(new ByteArrayOutputStream(), new ZipBuilderSettings().setZip64Mode(Zip64Mode.NEVER));
+		assertFalse(b.isZip64InLocalHeader(-1L, true));
+		b.close();
+	}
+
+	@Test
+	public void testStoreIncompressibleFiles() throws IOException
+	{
+		byte[] randomData = new byte[50000];
+		new Random(1234).nextBytes(randomData);
+		byte[] largeRandomData = new byte[100000];
+		new Random(4321).nextBytes(largeRandomData);
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZipStreamBuilder b = new ZipStreamBuilder(bout, null);
+		assertTrue(b.isStoreIncompressibleFiles());
+		b.add(new NamedReadableFileAdapter(new ByteArrayReadableFile(largeRandomData), "f1.bin"));
+		b.add(new ByteArrayInputStream(randomData), new AbsoluteLocation("/f2.bin"));
+		// All of this data does not fit in the sample, so it is compressed.
+		b.add(new ByteArrayInputStream(largeRandomData), new AbsoluteLocation("/f3.bin"));
+		b.close();
+		byte[] zipData = bout.toByteArray();
+
+		ReadWritableFile raf = createTargetFile();
+		try
+		{
+			Files.writeData(raf, zipData);
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				ZipFileEntry f1 = (ZipFileEntry) zf.get(new AbsoluteLocation("/f1.bin"));
+				assertSame(StoredCompressionMethod.INSTANCE, f1.getCompressionMethod());
+				assertFalse(f1.getGeneralPurposeBitFlags().isLocalHeaderFieldZeroed());
+				assertEquals(calcCrc32(largeRandomData), f1.getCrc32().longValue());
+
+				ZipFileEntry f2 = (ZipFileEntry) zf.get(new AbsoluteLocation("/f2.bin"));
+				assertSame(StoredCompressionMethod.INSTANCE, f2.getCompressionMethod());
+				assertFalse(f2.getGeneralPurposeBitFlags().isLocalHeaderFieldZeroed());
+				assertEquals(calcCrc32(randomData), f2.getCrc32().longValue());
+				assertEquals(randomData.length, f2.getCompressedSize().longValue());
+
+				ZipFileEntry f3 = (ZipFileEntry) zf.get(new AbsoluteLocation("/f3.bin"));
+				assertSame(DeflatedCompressionMethod.NORMAL_COMPRESSION, f3.getCompressionMethod());
+				assertTrue(f3.getGeneralPurposeBitFlags().isLocalHeaderFieldZeroed());
+				assertEquals(calcCrc32(largeRandomData), f3.getCrc32().longValue());
+				assertTrue(Arrays.equals(largeRandomData, Files.readBinaryFile(f3)));
+				// The size of the data was not known in advance, so space for
+				// the sizes was reserved in a Zip64 extra field in the local
+				// header.
+				assertEquals(UnsignedByte.valueOf(45), f3.getVersionNeededToExtract());
+				assertEquals(1, f3.getExtraFields().size());
+				assertTrue(((Zip64ExtendedInformationExtraField) f3.getExtraFields().iterator().next()).isInLocalHeader());
+			}
+			finally
+			{
+				zf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+
+		// Java's Zip input stream can read the stored entries, since they
+		// don't have data descriptors. Before Java 21, it cannot read the
+		// Zip64 data descriptor of the last entry.
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData));
+		try
+		{
+			assertEquals("f1.bin", zis.getNextEntry().getName());
+			assertTrue(Arrays.equals(largeRandomData, StreamUtil.readStreamFully(zis, 8192)));
+			assertEquals("f2.bin", zis.getNextEntry().getName());
+			assertTrue(Arrays.equals(randomData, StreamUtil.readStreamFully(zis, 8192)));
+			assertEquals("f3.bin", zis.getNextEntry().getName());
+		}
+		finally
+		{
+			zis.close();
+		}
+	}
+}
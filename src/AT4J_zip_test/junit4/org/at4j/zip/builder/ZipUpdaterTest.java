@@ -0,0 +1,274 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.at4j.test.support.At4JTestCase;
+import org.at4j.test.support.TestFileSupport;
+import org.at4j.zip.ZipDirectoryEntry;
+import org.at4j.zip.ZipFile;
+import org.at4j.zip.ZipFileEntry;
+import org.entityfs.ReadWritableFile;
+import org.entityfs.el.AbsoluteLocation;
+import org.entityfs.ram.RamFileSystemBuilder;
+import org.entityfs.support.io.StreamUtil;
+import org.entityfs.util.CharSequenceReadableFile;
+import org.entityfs.util.Directories;
+import org.entityfs.util.Files;
+import org.entityfs.util.NamedReadableFileAdapter;
+import org.entityfs.util.io.ReadWritableFileAdapter;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class ZipUpdaterTest extends At4JTestCase
+{
+	private static final String F1_CONTENTS = "Contents of f1. Contents of f1. Contents of f1. Contents of f1. Contents of f1.";
+	private static final String F2_CONTENTS = "Contents of f2";
+	private static final String F3_CONTENTS = "Contents of f3. Contents of f3. Contents of f3.";
+	private static final String NEW_F2_CONTENTS = "New contents of f2. New contents of f2.";
+
+	private static final AbsoluteLocation F1_LOC = new AbsoluteLocation("/f1.txt");
+	private static final AbsoluteLocation D_LOC = new AbsoluteLocation("/d");
+	private static final AbsoluteLocation F2_LOC = new AbsoluteLocation("/d/f2.txt");
+	private static final AbsoluteLocation F3_LOC = new AbsoluteLocation("/d/f3.txt");
+
+	private void createTestZip(ReadWritableFile f, ZipBuilderSettings settings)
+	{
+		ZipBuilder b = new ZipBuilder(f, settings);
+		b.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(F1_CONTENTS), "f1.txt"));
+		b.add(Directories.newDirectory(new RamFileSystemBuilder().create().getRootDirectory(), "d"));
+		b.add(new ByteArrayInputStream(F2_CONTENTS.getBytes()), F2_LOC);
+		b.close();
+	}
+
+	private void assertFileEntry(ZipFile zf, AbsoluteLocation loc, String contents)
+	{
+		assertEquals(contents, Files.readTextFile((ZipFileEntry) zf.get(loc)));
+	}
+
+	/**
+	 * Verify that Java's Zip implementation can read the updated file too.
+	 */
+	private void assertJavaZipFileEntry(File f, String name, String contents) throws IOException
+	{
+		java.util.zip.ZipFile zf = new java.util.zip.ZipFile(f);
+		try
+		{
+			if (contents == null)
+			{
+				assertNull(zf.getEntry(name));
+			}
+			else
+			{
+				assertEquals(contents, new String(StreamUtil.readStreamFully(zf.getInputStream(zf.getEntry(name)), 256)));
+			}
+		}
+		finally
+		{
+			zf.close();
+		}
+	}
+
+	@Test
+	public void testAppendEntry() throws IOException
+	{
+		File f = TestFileSupport.createTemporaryFile();
+		ReadWritableFile raf = new ReadWritableFileAdapter(f);
+		try
+		{
+			createTestZip(raf, new ZipBuilderSettings().setFileComment("Original comment"));
+			long originalSize = raf.getSize();
+
+			ZipUpdater u = new ZipUpdater(raf);
+			assertEquals(new HashSet<AbsoluteLocation>(Arrays.asList(F1_LOC, D_LOC, F2_LOC)), u.getExistingEntryLocations());
+			u.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(F3_CONTENTS), "f3.txt"), D_LOC);
+			u.close();
+			assertTrue(u.isClosed());
+			assertTrue(raf.getSize() > originalSize);
+
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				assertEquals(5, zf.size());
+				// No settings were given to the updater, so the comment is kept
+				assertEquals("Original comment", zf.getComment());
+				assertFileEntry(zf, F1_LOC, F1_CONTENTS);
+				assertTrue(zf.get(D_LOC) instanceof ZipDirectoryEntry);
+				assertFileEntry(zf, F2_LOC, F2_CONTENTS);
+				assertFileEntry(zf, F3_LOC, F3_CONTENTS);
+			}
+			finally
+			{
+				zf.close();
+			}
+			assertJavaZipFileEntry(f, "f1.txt", F1_CONTENTS);
+			assertJavaZipFileEntry(f, "d/f3.txt", F3_CONTENTS);
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testUpdateEmptyFile() throws IOException
+	{
+		ReadWritableFile raf = new ReadWritableFileAdapter(TestFileSupport.createTemporaryFile());
+		try
+		{
+			ZipUpdater u = new ZipUpdater(raf);
+			assertTrue(u.getExistingEntryLocations().isEmpty());
+			u.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(F1_CONTENTS), "f1.txt"));
+			u.close();
+
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				assertEquals(2, zf.size());
+				assertEquals(ZipBuilderSettings.DEFAULT_FILE_COMMENT, zf.getComment());
+				assertFileEntry(zf, F1_LOC, F1_CONTENTS);
+			}
+			finally
+			{
+				zf.close();
+			}
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testDeleteAndReplaceEntries() throws IOException
+	{
+		File f = TestFileSupport.createTemporaryFile();
+		ReadWritableFile raf = new ReadWritableFileAdapter(f);
+		try
+		{
+			createTestZip(raf, null);
+
+			ZipUpdater u = new ZipUpdater(raf, new ZipBuilderSettings().setFileComment("New comment"));
+			assertTrue(u.delete(F1_LOC));
+			assertFalse(u.delete(F1_LOC));
+			assertFalse(u.delete(F3_LOC));
+			// Replace f2
+			u.add(new ByteArrayInputStream(NEW_F2_CONTENTS.getBytes()), F2_LOC);
+			assertEquals(new HashSet<AbsoluteLocation>(Arrays.asList(D_LOC)), u.getExistingEntryLocations());
+			u.close();
+
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				assertEquals(3, zf.size());
+				assertEquals("New comment", zf.getComment());
+				assertNull(zf.get(F1_LOC));
+				assertFileEntry(zf, F2_LOC, NEW_F2_CONTENTS);
+			}
+			finally
+			{
+				zf.close();
+			}
+			assertJavaZipFileEntry(f, "f1.txt", null);
+			assertJavaZipFileEntry(f, "d/f2.txt", NEW_F2_CONTENTS);
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	private void testCompact(ZipBuilderSettings settings) throws IOException
+	{
+		File f = TestFileSupport.createTemporaryFile();
+		ReadWritableFile raf = new ReadWritableFileAdapter(f);
+		try
+		{
+			createTestZip(raf, settings);
+			long originalSize = raf.getSize();
+
+			ZipUpdater u = new ZipUpdater(raf, settings);
+			// Delete the first entry so that all other entries have to be moved
+			u.delete(F1_LOC);
+			u.compact();
+			u.close();
+			assertTrue(raf.getSize() < originalSize);
+
+			u = new ZipUpdater(raf, settings);
+			u.add(new NamedReadableFileAdapter(new CharSequenceReadableFile(F3_CONTENTS), "f3.txt"), D_LOC);
+			try
+			{
+				u.compact();
+				fail();
+			}
+			catch (IllegalStateException e)
+			{
+				// ok
+			}
+			u.close();
+
+			ZipFile zf = new ZipFile(raf);
+			try
+			{
+				assertEquals(4, zf.size());
+				assertNull(zf.get(F1_LOC));
+				assertTrue(zf.get(D_LOC) instanceof ZipDirectoryEntry);
+				assertFileEntry(zf, F2_LOC, F2_CONTENTS);
+				assertFileEntry(zf, F3_LOC, F3_CONTENTS);
+			}
+			finally
+			{
+				zf.close();
+			}
+			assertJavaZipFileEntry(f, "d/f2.txt", F2_CONTENTS);
+			assertJavaZipFileEntry(f, "d/f3.txt", F3_CONTENTS);
+		}
+		finally
+		{
+			raf.delete();
+		}
+	}
+
+	@Test
+	public void testCompact() throws IOException
+	{
+		testCompact(new ZipBuilderSettings());
+	}
+
+	@Test
+	public void testCompactZip64() throws IOException
+	{
+		// The entries' offsets are stored in Zip64 extra fields
+		testCompact(new ZipBuilderSettings().setZip64Mode(Zip64Mode.ALWAYS));
+	}
+}
@@ -0,0 +1,116 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.comp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.at4j.support.comp.InflaterDeflaterPool;
+import org.at4j.test.support.At4JTestCase;
+import org.entityfs.support.io.StreamUtil;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class DeflatedCompressionMethodTest extends At4JTestCase
+{
+	private static final String CONTENTS = "Contents of f. Contents of f. Contents of f. Contents of f.";
+
+	private byte[] deflate(DeflatedCompressionMethod cm, String s) throws IOException
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OutputStream os = cm.createOutputStream(bout);
+		try
+		{
+			os.write(s.getBytes());
+		}
+		finally
+		{
+			os.close();
+		}
+		return bout.toByteArray();
+	}
+
+	private String inflate(DeflatedCompressionMethod cm, byte[] barr, int uncompressedSize) throws IOException
+	{
+		InputStream is = cm.createInputStream(new ByteArrayInputStream(barr), barr.length, uncompressedSize);
+		try
+		{
+			return new String(StreamUtil.readStreamFully(is, 64));
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	@Test
+	public void testDeflaterAndInflaterAreReused() throws IOException
+	{
+		DeflatedCompressionMethod cm = new DeflatedCompressionMethod(4);
+		InflaterDeflaterPool pool = InflaterDeflaterPool.INSTANCE;
+		for (int i = 0; i < 3; i++)
+		{
+			byte[] compressed = deflate(cm, CONTENTS);
+			// The same Deflater is reused for all iterations
+			assertEquals(1, pool.getNumberOfIdleDeflaters(4));
+			// A reused Inflater is properly reset
+			assertEquals(CONTENTS, inflate(cm, compressed, CONTENTS.length()));
+		}
+		// Another compression level uses another pool
+		assertEquals(0, pool.getNumberOfIdleDeflaters(2));
+	}
+
+	@Test
+	public void testClosingTwiceReturnsOnce() throws IOException
+	{
+		DeflatedCompressionMethod cm = new DeflatedCompressionMethod(5);
+		InflaterDeflaterPool pool = InflaterDeflaterPool.INSTANCE;
+		OutputStream os = cm.createOutputStream(new ByteArrayOutputStream());
+		os.close();
+		os.close();
+		assertEquals(1, pool.getNumberOfIdleDeflaters(5));
+	}
+
+	@Test
+	public void testPoolIsBounded() throws IOException
+	{
+		DeflatedCompressionMethod cm = new DeflatedCompressionMethod(7);
+		InflaterDeflaterPool pool = InflaterDeflaterPool.INSTANCE;
+		List<OutputStream> streams = new ArrayList<OutputStream>();
+		for (int i = 0; i < InflaterDeflaterPool.MAX_POOL_SIZE + 5; i++)
+		{
+			streams.add(cm.createOutputStream(new ByteArrayOutputStream()));
+		}
+		for (OutputStream os : streams)
+		{
+			os.close();
+		}
+		assertEquals(InflaterDeflaterPool.MAX_POOL_SIZE, pool.getNumberOfIdleDeflaters(7));
+	}
+}
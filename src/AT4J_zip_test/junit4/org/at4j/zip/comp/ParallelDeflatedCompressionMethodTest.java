@@ -0,0 +1,155 @@
+/* AT4J -- Archive file tools for Java -- http://www.at4j.org
+ * Copyright (C) 2009 Karl Gustafsson
+ *
+ * This file is a part of AT4J
+ *
+ * AT4J is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * AT4J is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.at4j.zip.comp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.at4j.comp.CompressionLevel;
+import org.at4j.test.support.At4JTestCase;
+import org.entityfs.support.io.StreamUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Karl Gustafsson
+ * @since 1.2
+ */
+public class ParallelDeflatedCompressionMethodTest extends At4JTestCase
+{
+	private ExecutorService m_executor;
+
+	@Before
+	public void setUp()
+	{
+		m_executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown()
+	{
+		m_executor.shutdown();
+	}
+
+	private byte[] createData(int size)
+	{
+		// Compressible, but not too compressible, data
+		Random r = new Random(4711);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(size);
+		while (bout.size() < size)
+		{
+			bout.write('a' + r.nextInt(8));
+			if (r.nextInt(50) == 0)
+			{
+				byte[] word = ("word" + r.nextInt(100) + " ").getBytes();
+				bout.write(word, 0, word.length);
+			}
+		}
+		return Arrays.copyOf(bout.toByteArray(), size);
+	}
+
+	private byte[] deflate(ZipEntryCompressionMethod cm, byte[] data, int writeSize) throws IOException
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		OutputStream os = cm.createOutputStream(bout);
+		try
+		{
+			int pos = 0;
+			while (pos < data.length)
+			{
+				int len = Math.min(writeSize, data.length - pos);
+				os.write(data, pos, len);
+				pos += len;
+			}
+		}
+		finally
+		{
+			os.close();
+		}
+		return bout.toByteArray();
+	}
+
+	private byte[] inflateWithJavaInflater(byte[] compressed)
+	{
+		// Use a plain Inflater and not the compression method for verifying
+		// that the result is a standard deflate stream.
+		return StreamUtil.readStreamFully(new InflaterInputStream(new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length + 1)), new Inflater(true)), 8192);
+	}
+
+	private void assertRoundTrip(ParallelDeflatedCompressionMethod cm, int dataSize, int writeSize) throws IOException
+	{
+		byte[] data = createData(dataSize);
+		byte[] compressed = deflate(cm, data, writeSize);
+		assertTrue(Arrays.equals(data, inflateWithJavaInflater(compressed)));
+		assertTrue(Arrays.equals(data, StreamUtil.readStreamFully(cm.createInputStream(new ByteArrayInputStream(compressed), compressed.length, data.length), 8192)));
+	}
+
+	@Test
+	public void testCompressSeveralChunks() throws IOException
+	{
+		ParallelDeflatedCompressionMethod cm = new ParallelDeflatedCompressionMethod(DeflatedCompressionMethod.NORMAL_COMPRESSION_LEVEL, m_executor, ParallelDeflatedCompressionMethod.MIN_CHUNK_SIZE, 3);
+		assertRoundTrip(cm, 1000000, 10000);
+		// A multiple of the chunk size
+		assertRoundTrip(cm, 10 * ParallelDeflatedCompressionMethod.MIN_CHUNK_SIZE, 7);
+	}
+
+	@Test
+	public void testCompressSmallAndEmptyData() throws IOException
+	{
+		ParallelDeflatedCompressionMethod cm = new ParallelDeflatedCompressionMethod(m_executor);
+		assertRoundTrip(cm, 1000, 1000);
+		assertRoundTrip(cm, 0, 1);
+	}
+
+	@Test
+	public void testCompressionRatioIsCloseToSerialDeflate() throws IOException
+	{
+		byte[] data = createData(2000000);
+		int serialSize = deflate(DeflatedCompressionMethod.NORMAL_COMPRESSION, data, 65536).length;
+		int parallelSize = deflate(new ParallelDeflatedCompressionMethod(m_executor), data, 65536).length;
+		// The dictionaries keep the loss small
+		assertTrue(parallelSize < serialSize * 1.02);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooSmallChunkSize()
+	{
+		new ParallelDeflatedCompressionMethod(DeflatedCompressionMethod.NORMAL_COMPRESSION_LEVEL, m_executor, 1000, 4);
+	}
+
+	@Test
+	public void testCreateWithCompressionLevel()
+	{
+		ParallelDeflatedCompressionMethod cm = (ParallelDeflatedCompressionMethod) new ParallelDeflatedCompressionMethod(m_executor).createWithCompressionLevel(CompressionLevel.BEST);
+		assertEquals(DeflatedCompressionMethod.MAXIMUM_COMPRESSION_LEVEL, cm.getCompressionLevel());
+		assertEquals(ParallelDeflatedCompressionMethod.DEFAULT_CHUNK_SIZE, cm.getChunkSize());
+	}
+}
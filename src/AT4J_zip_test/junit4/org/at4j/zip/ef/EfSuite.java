@@ -27,7 +27,7 @@ import org.junit.runners.Suite.SuiteClasses;
  * @since 1.0
  */
 @RunWith(Suite.class)
-@SuiteClasses( { ExtendedTimestampExtraFieldTest.class, InfoZipUnixExtraFieldTest.class, NewInfoZipUnixExtraFieldTest.class, NtfsExtraFieldTest.class, UnicodeCommentExtraFieldTest.class, UnicodePathExtraFieldTest.class })
+@SuiteClasses( { ExtendedTimestampExtraFieldTest.class, InfoZipUnixExtraFieldTest.class, NewInfoZipUnixExtraFieldTest.class, NtfsExtraFieldTest.class, UnicodeCommentExtraFieldTest.class, UnicodePathExtraFieldTest.class, Zip64ExtendedInformationExtraFieldTest.class })
 public class EfSuite
 {
 	// Nothing
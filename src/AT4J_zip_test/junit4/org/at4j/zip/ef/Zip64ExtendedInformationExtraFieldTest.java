@@ -0,0 +1,46 @@
+package org.at4j.zip.ef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.at4j.support.lang.UnsignedInteger;
+import org.at4j.support.lang.UnsignedLong;
+import org.at4j.test.support.At4JTestCase;
+import org.junit.Test;
+
+public class Zip64ExtendedInformationExtraFieldTest extends At4JTestCase
+{
+	@Test
+	public void testCreateAndParse()
+	{
+		Zip64ExtendedInformationExtraField zeef = new Zip64ExtendedInformationExtraField(true, UnsignedLong.valueOf(0x123456789L), UnsignedLong.valueOf(0x100000000L), null, null);
+		assertEquals(16, zeef.encode(null).length);
+
+		zeef = Zip64ExtendedInformationExtraFieldParser.INSTANCE.parse(zeef.encode(null), true);
+		assertEquals(0x123456789L, zeef.getUncompressedSize().longValue());
+		assertEquals(0x100000000L, zeef.getCompressedSize().longValue());
+		assertNull(zeef.getRelativeOffsetOfLocalHeader());
+		assertNull(zeef.getDiskNumberStart());
+	}
+
+	@Test
+	public void testReinterpret()
+	{
+		// Only the local header offset and the disk number are present
+		Zip64ExtendedInformationExtraField zeef = new Zip64ExtendedInformationExtraField(false, null, null, UnsignedLong.valueOf(0x987654321L), UnsignedInteger.valueOf(3));
+		assertEquals(12, zeef.encode(null).length);
+
+		zeef = Zip64ExtendedInformationExtraFieldParser.INSTANCE.parse(zeef.encode(null), false);
+		// The parser has to guess
+		assertEquals(0x987654321L, zeef.getUncompressedSize().longValue());
+		assertNull(zeef.getCompressedSize());
+		assertNull(zeef.getRelativeOffsetOfLocalHeader());
+		assertEquals(UnsignedInteger.valueOf(3), zeef.getDiskNumberStart());
+
+		zeef = zeef.reinterpret(false, false, true, true);
+		assertNull(zeef.getUncompressedSize());
+		assertNull(zeef.getCompressedSize());
+		assertEquals(0x987654321L, zeef.getRelativeOffsetOfLocalHeader().longValue());
+		assertEquals(UnsignedInteger.valueOf(3), zeef.getDiskNumberStart());
+	}
+}